@@ -16,6 +16,7 @@
  */
 package plugins;
 
+import whitebox.algorithms.Reclassifier;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
@@ -202,35 +203,40 @@ public class SetNoData implements WhiteboxPlugin {
         }
 
         try {
-            int row, col;
-            int progress = 0;
-            double[] data;
             for (int a = 0; a < numFiles; a++) {
                 WhiteboxRaster inputFile = new WhiteboxRaster(imageFiles[a], "rw");
 
-                int rows = inputFile.getNumberRows();
-                int cols = inputFile.getNumberColumns();
-
                 double noData = inputFile.getNoDataValue();
+                final String label = "Processing image " + (a + 1) + " of " + numFiles + ":";
+
+                // the image is updated in place, with the rows processed in 
+                // parallel bands
+                Reclassifier reclassifier = Reclassifier.forValues(new double[]{backgroundValue}, 
+                        new double[]{noData}, Double.NaN);
+                boolean completed = reclassifier.reclassify(inputFile, inputFile, new Reclassifier.Progress() {
+                    int oldProgress = -1;
 
-                for (row = 0; row < rows; row++) {
-                    data = inputFile.getRowValues(row);
-                    for (col = 0; col < cols; col++) {
-                        if (data[col] == backgroundValue) {
-                            inputFile.setValue(row, col, noData);
+                    @Override
+                    public boolean rowsCompleted(int completed, int total) {
+                        if (cancelOp) {
+                            return false;
                         }
+                        int progress = (int) (100f * completed / total);
+                        if (progress != oldProgress) {
+                            updateProgress(label, progress);
+                            oldProgress = progress;
+                        }
+                        return true;
                     }
-                    if (cancelOp) {
-                        cancelOperation();
-                        return;
-                    }
-                    progress = (int) (100f * row / (rows - 1));
-                    updateProgress("Processing image " + (a + 1) + " of " + numFiles + ":", progress);
-                }
+                });
 
                 // close all of the open Whitebox rasters.
                 inputFile.close();
 
+                if (!completed) {
+                    cancelOperation();
+                    return;
+                }
             }
 
             showFeedback("Operation complete");
@@ -16,12 +16,8 @@
  */
 package plugins;
 
-import java.text.DecimalFormat;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
 import java.util.Date;
-import java.util.PriorityQueue;
+import whitebox.algorithms.ScanlineRasterizer;
 import whitebox.geospatialfiles.ShapeFile;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.geospatialfiles.WhiteboxRasterBase.DataType;
@@ -35,7 +31,6 @@ import static whitebox.geospatialfiles.shapefile.ShapeType.POLYGONZ;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
 import whitebox.structures.BoundingBox;
-import whitebox.structures.RowPriorityGridCell;
 
 /**
  * WhiteboxPlugin is used to define a plugin tool for Whitebox GIS.
@@ -202,27 +197,13 @@ public class ClipRasterToPolygon implements WhiteboxPlugin {
         amIActive = true;
 
         String outputHeader = "";
-        int row, col;
-        double rowYCoord, value;
-        int progress = 0;
         double cellSizeX, cellSizeY;
-        int rows, topRow, bottomRow;
+        int rows;
         int cols;
-        int inputRow, inputCol;
-        double inputX, inputY;
         double east;
         double west;
         double north;
         double south;
-        BoundingBox box;
-        double[][] geometry;
-        int numPoints, numParts, i, part, numEdges;
-        int stCol, endCol;
-        int startingPointInPart, endingPointInPart;
-        double x1, y1, x2, y2, xPrime;
-        boolean foundIntersection;
-        ArrayList<Integer> edgeList = new ArrayList<>();
-        DecimalFormat df = new DecimalFormat("###,###,###,###");
         
         if (args.length <= 0) {
             showFeedback("Plugin parameters have not been set.");
@@ -233,7 +214,7 @@ public class ClipRasterToPolygon implements WhiteboxPlugin {
         String[] inputFiles = inputFilesString.split(";");
         int numFiles = inputFiles.length;
         String clipFile = args[1];
-        boolean maintainInputDimensions = Boolean.parseBoolean(args[2]);
+        final boolean maintainInputDimensions = Boolean.parseBoolean(args[2]);
 
         // check to see that the inputHeader and outputHeader are not null.
         if (inputFilesString.isEmpty() || numFiles < 1) {
@@ -243,11 +224,6 @@ public class ClipRasterToPolygon implements WhiteboxPlugin {
 
         try {
 
-            long heapSize = Runtime.getRuntime().totalMemory();
-            int flushSize = (int) (heapSize / 32);
-            int j, numCellsToWrite;
-            PriorityQueue<RowPriorityGridCell> pq = new PriorityQueue<>(flushSize);
-
             ShapeFile clip = new ShapeFile(clipFile);
 
             BoundingBox clipBox = new BoundingBox();
@@ -261,29 +237,17 @@ public class ClipRasterToPolygon implements WhiteboxPlugin {
                 return;
             }
 
-            // first sort the records based on their maxY coordinate. This will
-            // help reduce the amount of disc IO for larger rasters.
-            ArrayList<RecordInfo> myList = new ArrayList<>();
-
-            for (ShapeFileRecord record : clip.records) {
-                i = record.getRecordNumber();
-                box = getBoundingBoxFromShapefileRecord(record);
-                myList.add(new RecordInfo(box.getMaxY(), i));
-            }
-
-            Collections.sort(myList);
-
 
             for (int k = 0; k < numFiles; k++) {
                 // initialize the shapefile input
 
-                WhiteboxRaster input = new WhiteboxRaster(inputFiles[k], "r");
+                final WhiteboxRaster input = new WhiteboxRaster(inputFiles[k], "r");
                 outputHeader = inputFiles[k].replace(".dep", "_clipped.dep");
-                double noData = input.getNoDataValue();
+                final double noData = input.getNoDataValue();
                 DataType dataType = input.getDataType();
 
                 // initialize the output raster
-                WhiteboxRaster output;
+                final WhiteboxRaster output;
                 if (!maintainInputDimensions) {
                     cellSizeX = input.getCellSizeX();
                     cellSizeY = input.getCellSizeY();
@@ -312,159 +276,54 @@ public class ClipRasterToPolygon implements WhiteboxPlugin {
                 
                 output.setPreferredPalette(input.getPreferredPalette());
                 
-                pq.clear();
-                RowPriorityGridCell cell;
-                int numRecords = clip.getNumberOfRecords();
-                int count = 0;
-                int progressCount = (int) (numRecords / 100.0);
-                if (progressCount <= 0) {
-                    progressCount = 1;
+                // cells inside of the clip polygons, but not within their
+                // holes, are marked with 1
+                ScanlineRasterizer mask = new ScanlineRasterizer(output);
+                for (ShapeFileRecord record : clip.records) {
+                    if (record.getShapeType() != ShapeType.NULLSHAPE) {
+                        mask.addPolygon(getXYFromShapefileRecord(record), partData, 1);
+                    }
                 }
-                ShapeFileRecord record;
-                for (RecordInfo ri : myList) {
-                    record = clip.getRecord(ri.recNumber - 1);
-                    geometry = getXYFromShapefileRecord(record);
-                    numPoints = geometry.length;
-                    numParts = partData.length;
-
-                    // do the non-holes.
-                    for (part = 0; part < numParts; part++) {
-                        if (!partHoleData[part]) {
-                            box = new BoundingBox();
-                            startingPointInPart = partData[part];
-                            if (part < numParts - 1) {
-                                endingPointInPart = partData[part + 1];
-                            } else {
-                                endingPointInPart = numPoints;
-                            }
-                            for (i = startingPointInPart; i < endingPointInPart; i++) {
-                                if (geometry[i][1] < box.getMinY()) {
-                                    box.setMinY(geometry[i][1]);
-                                }
-                                if (geometry[i][1] > box.getMaxY()) {
-                                    box.setMaxY(geometry[i][1]);
-                                }
-                            }
-                            topRow = output.getRowFromYCoordinate(box.getMaxY());
-                            bottomRow = output.getRowFromYCoordinate(box.getMinY());
-
-                            for (row = topRow; row <= bottomRow; row++) {
-
-                                edgeList.clear();
-                                foundIntersection = false;
-                                rowYCoord = output.getYCoordinateFromRow(row);
-                                // find the x-coordinates of each of the edges that 
-                                // intersect this row's y coordinate
-
-                                for (i = startingPointInPart; i < endingPointInPart - 1; i++) {
-                                    if (isBetween(rowYCoord, geometry[i][1], geometry[i + 1][1])) {
-                                        y1 = geometry[i][1];
-                                        y2 = geometry[i + 1][1];
-                                        if (y2 != y1) {
-                                            x1 = geometry[i][0];
-                                            x2 = geometry[i + 1][0];
-
-                                            // calculate the intersection point
-                                            xPrime = (x1 + (rowYCoord - y1) / (y2 - y1) * (x2 - x1));
-                                            edgeList.add(new Integer(output.getColumnFromXCoordinate(xPrime)));
-                                            foundIntersection = true;
-                                        }
-                                    }
-                                }
 
-                                if (foundIntersection) {
-                                    numEdges = edgeList.size();
-                                    if (numEdges == 2) {
-                                        stCol = Math.min(edgeList.get(0), edgeList.get(1));
-                                        endCol = Math.max(edgeList.get(0), edgeList.get(1));
-                                        for (col = stCol; col <= endCol; col++) {
-                                            if (maintainInputDimensions) {
-                                                value = input.getValue(row, col);
-                                            } else {
-                                                inputX = output.getXCoordinateFromColumn(col);
-                                                inputCol = input.getColumnFromXCoordinate(inputX);
-                                                inputY = output.getYCoordinateFromRow(row);
-                                                inputRow = input.getRowFromYCoordinate(inputY);
-                                                value = input.getValue(inputRow, inputCol);
-                                            }
-                                            pq.add(new RowPriorityGridCell(row, col, value));
-                                        }
-                                    } else {
-                                        //sort the edges.
-                                        Integer[] edgeArray = new Integer[numEdges];
-                                        edgeList.toArray(edgeArray);
-                                        Arrays.sort(edgeArray);
-
-                                        boolean fillFlag = true;
-                                        for (i = 0; i < numEdges - 1; i++) {
-                                            stCol = edgeArray[i];
-                                            endCol = edgeArray[i + 1];
-                                            if (fillFlag) {
-                                                for (col = stCol; col <= endCol; col++) {
-                                                    if (maintainInputDimensions) {
-                                                        value = input.getValue(row, col);
-                                                    } else {
-                                                        inputX = output.getXCoordinateFromColumn(col);
-                                                        inputCol = input.getColumnFromXCoordinate(inputX);
-                                                        inputY = output.getYCoordinateFromRow(row);
-                                                        inputRow = input.getRowFromYCoordinate(inputY);
-                                                        value = input.getValue(inputRow, inputCol);
-                                                    }
-                                                    pq.add(new RowPriorityGridCell(row, col, value));
-                                                }
-                                            }
-                                            fillFlag = !fillFlag;
-                                        }
-                                    }
-                                }
-                            }
+                final int numRows = output.getNumberRows();
+                final int inputRows = input.getNumberRows();
+                final int inputCols = input.getNumberColumns();
+                final String label = "Clipping image " + (k + 1) + " of " + numFiles + ":";
+                boolean completed = mask.rasterize(0, new ScanlineRasterizer.Output() {
+                    @Override
+                    public boolean processRow(int row, double[] values, double[] coverage) {
+                        double[] data = new double[values.length];
+                        int inputRow = row;
+                        if (!maintainInputDimensions) {
+                            inputRow = input.getRowFromYCoordinate(output.getYCoordinateFromRow(row));
                         }
-                    }
-
-                    if (pq.size() >= flushSize) {
-                        j = 0;
-                        numCellsToWrite = pq.size();
-                        do {
-                            cell = pq.poll();
-                            output.setValue(cell.row, cell.col, cell.z);
-                            
-                            j++;
-                            if (j % 1000 == 0) {
-                                if (cancelOp) {
-                                    cancelOperation();
-                                    return;
+                        double[] inputData = null;
+                        if (inputRow >= 0 && inputRow < inputRows) {
+                            inputData = input.getRowValues(inputRow);
+                        }
+                        for (int col = 0; col < values.length; col++) {
+                            data[col] = noData;
+                            if (values[col] == 1 && inputData != null) {
+                                int inputCol = col;
+                                if (!maintainInputDimensions) {
+                                    inputCol = input.getColumnFromXCoordinate(output.getXCoordinateFromColumn(col));
+                                }
+                                if (inputCol >= 0 && inputCol < inputCols) {
+                                    data[col] = inputData[inputCol];
                                 }
-                                updateProgress("Writing to Output (" + df.format(j) + " of " + df.format(numCellsToWrite) + "):", (int) (j * 100.0 / numCellsToWrite));
                             }
-                        } while (pq.size() > 0);
-                    }
-
-                    if (cancelOp) {
-                        cancelOperation();
-                        return;
-                    }
-                    count++;
-                    if (count % progressCount == 0) {
-                        progress++;
-                        updateProgress(progress);
-                    }
-                }
-
-                j = 0;
-                numCellsToWrite = pq.size();
-                do {
-                    cell = pq.poll();
-                    output.setValue(cell.row, cell.col, cell.z);
-                    
-                    j++;
-                    if (j % 1000 == 0) {
-                        if (cancelOp) {
-                            cancelOperation();
-                            return;
                         }
-                        updateProgress("Writing to Output (" + df.format(j) + " of " + df.format(numCellsToWrite) + "):", (int) (j * 100.0 / numCellsToWrite));
+                        output.setRowValues(row, data);
+                        updateProgress(label, (int) (100f * (row + 1) / numRows));
+                        return !cancelOp;
                     }
-                } while (pq.size() > 0);
+                });
+                if (!completed) {
+                    input.close();
+                    output.close();
+                    cancelOperation();
+                    return;
+                }
 
                 output.addMetadataEntry("Created by the "
                         + getDescriptiveName() + " tool.");
@@ -489,7 +348,6 @@ public class ClipRasterToPolygon implements WhiteboxPlugin {
             myHost.pluginComplete();
         }
     }
-    boolean[] partHoleData;
     int[] partData;
 
     private double[][] getXYFromShapefileRecord(ShapeFileRecord record) {
@@ -501,19 +359,16 @@ public class ClipRasterToPolygon implements WhiteboxPlugin {
                         (whitebox.geospatialfiles.shapefile.Polygon) (record.getGeometry());
                 ret = recPolygon.getPoints();
                 partData = recPolygon.getParts();
-                partHoleData = recPolygon.getPartHoleData();
                 break;
             case POLYGONZ:
                 PolygonZ recPolygonZ = (PolygonZ) (record.getGeometry());
                 ret = recPolygonZ.getPoints();
                 partData = recPolygonZ.getParts();
-                partHoleData = recPolygonZ.getPartHoleData();
                 break;
             case POLYGONM:
                 PolygonM recPolygonM = (PolygonM) (record.getGeometry());
                 ret = recPolygonM.getPoints();
                 partData = recPolygonM.getParts();
-                partHoleData = recPolygonM.getPartHoleData();
                 break;
             default:
                 ret = new double[1][2];
@@ -524,69 +379,4 @@ public class ClipRasterToPolygon implements WhiteboxPlugin {
 
         return ret;
     }
-
-    private BoundingBox getBoundingBoxFromShapefileRecord(ShapeFileRecord record) {
-        BoundingBox ret;
-        ShapeType shapeType = record.getShapeType();
-        switch (shapeType) {
-            case POLYGON:
-                whitebox.geospatialfiles.shapefile.Polygon recPolygon =
-                        (whitebox.geospatialfiles.shapefile.Polygon) (record.getGeometry());
-                ret = recPolygon.getBox();
-                break;
-            case POLYGONZ:
-                PolygonZ recPolygonZ = (PolygonZ) (record.getGeometry());
-                ret = recPolygonZ.getBox();
-                break;
-            case POLYGONM:
-                PolygonM recPolygonM = (PolygonM) (record.getGeometry());
-                ret = recPolygonM.getBox();
-                break;
-            default:
-                ret = new BoundingBox(Double.NaN, Double.NaN, Double.NaN, Double.NaN);
-                break;
-        }
-
-        return ret;
-    }
-
-    private class RecordInfo implements Comparable<RecordInfo> {
-
-        public double maxY;
-        public int recNumber;
-
-        public RecordInfo(double maxY, int recNumber) {
-            this.maxY = maxY;
-            this.recNumber = recNumber;
-        }
-
-        @Override
-        public int compareTo(RecordInfo other) {
-            final int BEFORE = -1;
-            final int EQUAL = 0;
-            final int AFTER = 1;
-
-            if (this.maxY < other.maxY) {
-                return BEFORE;
-            } else if (this.maxY > other.maxY) {
-                return AFTER;
-            }
-
-            if (this.recNumber < other.recNumber) {
-                return BEFORE;
-            } else if (this.recNumber > other.recNumber) {
-                return AFTER;
-            }
-
-            return EQUAL;
-        }
-    }
-
-    // Return true if val is between theshold1 and theshold2.
-    private static boolean isBetween(double val, double threshold1, double threshold2) {
-        if (val == threshold1 || val == threshold2) {
-            return true;
-        }
-        return threshold2 > threshold1 ? val > threshold1 && val < threshold2 : val > threshold2 && val < threshold1;
-    }
 }
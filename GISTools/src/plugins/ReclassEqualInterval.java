@@ -17,6 +17,7 @@
 package plugins;
 
 import java.text.DecimalFormat;
+import whitebox.algorithms.Reclassifier;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.geospatialfiles.WhiteboxRasterInfo;
 import whitebox.interfaces.WhiteboxPlugin;
@@ -188,15 +189,13 @@ public class ReclassEqualInterval implements WhiteboxPlugin {
 
         WhiteboxRasterInfo image;
         WhiteboxRaster output;
-        int cols, rows, col, row, a, progress;
+        int a;
         double noData;
         String inputHeader;
         String outputHeader;
-        double[] data;
         double reclassInterval = 0;
         double startingValue = 0;
         double endingValue = Float.POSITIVE_INFINITY;
-        double z;
         
         if (args.length <= 0) {
             showFeedback("Plugin parameters have not been set.");
@@ -221,31 +220,32 @@ public class ReclassEqualInterval implements WhiteboxPlugin {
 
             image = new WhiteboxRasterInfo(inputHeader);
             noData = image.getNoDataValue();
-            rows = image.getNumberRows();
-            cols = image.getNumberColumns();
 
             output = new WhiteboxRaster(outputHeader, "rw", inputHeader, WhiteboxRaster.DataType.FLOAT, noData);
 
-            for (row = 0; row < rows; row++) {
-                data = image.getRowValues(row);
-                for (col = 0; col < cols; col++) {
-                    if (data[col] != noData) {
-                        if (isBetween(data[col], startingValue, endingValue)) {
-                            z = Math.floor(data[col] / reclassInterval) * reclassInterval;
-                            output.setValue(row, col, z);
-                        } else {
-                            output.setValue(row, col, data[col]);
-                        }
-                    } else {
-                        output.setValue(row, col, noData);
+            Reclassifier reclassifier = Reclassifier.forEqualIntervals(reclassInterval, 
+                    startingValue, endingValue, noData);
+            boolean completed = reclassifier.reclassify(image, output, new Reclassifier.Progress() {
+                int oldProgress = -1;
+
+                @Override
+                public boolean rowsCompleted(int completed, int total) {
+                    if (cancelOp) {
+                        return false;
                     }
+                    int progress = (int) (100f * completed / total);
+                    if (progress != oldProgress) {
+                        updateProgress(progress);
+                        oldProgress = progress;
+                    }
+                    return true;
                 }
-                if (cancelOp) {
-                    cancelOperation();
-                    return;
-                }
-                progress = (int) (row * 100.0 / rows);
-                updateProgress(progress);
+            });
+            if (!completed) {
+                image.close();
+                output.close();
+                cancelOperation();
+                return;
             }
 
             image.close();
@@ -265,12 +265,4 @@ public class ReclassEqualInterval implements WhiteboxPlugin {
             myHost.pluginComplete();
         }
     }
-
-    // Return true if val is between theshold1 and theshold2.
-    private static boolean isBetween(double val, double threshold1, double threshold2) {
-        if (val == threshold1 || val == threshold2) {
-            return true;
-        }
-        return threshold2 > threshold1 ? val > threshold1 && val < threshold2 : val > threshold2 && val < threshold1;
-    }
 }
@@ -17,9 +17,11 @@
 
 package plugins;
 
+import java.util.Arrays;
 import java.util.Date;
 import java.io.*;
 import java.nio.*;
+import whitebox.algorithms.Reclassifier;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
@@ -160,10 +162,7 @@ public class ReclassFromFile implements WhiteboxPlugin {
         String inputHeader = null;
         String outputHeader = null;
         String reclassFile = null;
-        int row, col;
-        float progress = 0;
-        double z, val;
-        int i;
+        int i = 0;
         double noData; 
         boolean assignMode = false;
         boolean assignModeFound = false;
@@ -193,8 +192,6 @@ public class ReclassFromFile implements WhiteboxPlugin {
         
         try {
             WhiteboxRaster image = new WhiteboxRaster(inputHeader, "r");
-            int rows = image.getNumberRows();
-            int cols = image.getNumberColumns();
             noData = image.getNoDataValue();
             
             WhiteboxRaster output = new WhiteboxRaster(outputHeader, "rw", inputHeader, WhiteboxRaster.DataType.FLOAT, noData);
@@ -226,7 +223,11 @@ public class ReclassFromFile implements WhiteboxPlugin {
                     
                     //Read File Line By Line
                     i = 0;
-                    while ((line = br.readLine().trim()) != null) {
+                    while ((line = br.readLine()) != null) {
+                        line = line.trim();
+                        if (line.isEmpty()) {
+                            continue;
+                        }
                         str = line.split(delimiter);
                         if (!delimiterFound) {
                             if (str.length < 2) {
@@ -291,64 +292,38 @@ public class ReclassFromFile implements WhiteboxPlugin {
 
             }
 
+            // the reclass table is compiled into a table that is searched
+            // rather than scanned; cells that are not in the table keep their
+            // input value.
+            Reclassifier reclassifier;
             if (!assignMode) {
-                for (row = 0; row < rows; row++) {
-                    for (col = 0; col < cols; col++) {
-                        z = image.getValue(row, col);
-                        if (z != noData) {
-                            val = noData;
-                            for (i = 0; i < numClasses; i++) {
-                                if ((z >= reclassData[1][i]) && (z < reclassData[2][i])) {
-                                    val = reclassData[0][i];
-                                    break;
-                                }
-                            }
-                            if (val != noData) { // a value was found.
-                                output.setValue(row, col, val);
-                            } else {
-                                output.setValue(row, col, z);
-                            }
-                        } else {
-                            output.setValue(row, col, noData);
-                        }
-                            
-                    }
-                    if (cancelOp) {
-                        cancelOperation();
-                        return;
-                    }
-                    progress = (float) (100f * row / (rows - 1));
-                    updateProgress((int) progress);
-                }
+                reclassifier = Reclassifier.forRanges(Arrays.copyOf(reclassData[1], i), 
+                        Arrays.copyOf(reclassData[2], i), Arrays.copyOf(reclassData[0], i), noData);
             } else {
-                for (row = 0; row < rows; row++) {
-                    for (col = 0; col < cols; col++) {
-                        z = image.getValue(row, col);
-                        if (z != noData) {
-                            val = noData;
-                            for (i = 0; i < numClasses; i++) {
-                                if ((z == reclassData[1][i])) {
-                                    val = reclassData[0][i];
-                                    break;
-                                }
-                                if (val != noData) { // a value was found.
-                                    output.setValue(row, col, val);
-                                } else {
-                                    output.setValue(row, col, z);
-                                }
-                            }
-                        } else {
-                            output.setValue(row, col, noData);
-                        }
-                            
-                    }
+                reclassifier = Reclassifier.forValues(Arrays.copyOf(reclassData[1], i), 
+                        Arrays.copyOf(reclassData[0], i), noData);
+            }
+            boolean completed = reclassifier.reclassify(image, output, new Reclassifier.Progress() {
+                int oldProgress = -1;
+
+                @Override
+                public boolean rowsCompleted(int completed, int total) {
                     if (cancelOp) {
-                        cancelOperation();
-                        return;
+                        return false;
+                    }
+                    int progress = (int) (100f * completed / total);
+                    if (progress != oldProgress) {
+                        updateProgress(progress);
+                        oldProgress = progress;
                     }
-                    progress = (float) (100f * row / (rows - 1));
-                    updateProgress((int) progress);
+                    return true;
                 }
+            });
+            if (!completed) {
+                image.close();
+                output.close();
+                cancelOperation();
+                return;
             }
 
             image.close();
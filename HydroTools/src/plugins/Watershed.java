@@ -18,6 +18,7 @@ package plugins;
 
 import java.util.ArrayList;
 import java.util.Date;
+import whitebox.algorithms.ScanlineRasterizer;
 import whitebox.geospatialfiles.ShapeFile;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.geospatialfiles.WhiteboxRasterBase;
@@ -232,7 +233,8 @@ public class Watershed implements WhiteboxPlugin {
         }
 
         try {
-            WhiteboxRaster outlet;
+            WhiteboxRaster outlet = null;
+            ScanlineRasterizer outletPoints = null;
             WhiteboxRaster pntr = new WhiteboxRaster(inputHeader, "r");
             int rows = pntr.getNumberRows();
             int cols = pntr.getNumberColumns();
@@ -300,27 +302,14 @@ public class Watershed implements WhiteboxPlugin {
                     }
                 }
 
-                outlet = new WhiteboxRaster(outletHeader.replace(".shp", ".dep"), "rw",
-                    inputHeader, WhiteboxRaster.DataType.FLOAT, 0);
-                outlet.isTemporaryFile = true;
-                
+                // the outlets are numbered in the order that they were read
+                // and burned directly into the output
+                outletPoints = new ScanlineRasterizer(pntr);
                 int numOutlets = outletXs.size();
-                double outletX, outletY;
-                int outletCol, outletRow;
-                int outletNum = 1;
                 for (int a = 0; a < numOutlets; a++) {
-                    outletX = outletXs.get(a);
-                    outletY = outletYs.get(a);
-                    
-                    outletRow = outlet.getRowFromYCoordinate(outletY);
-                    outletCol = outlet.getColumnFromXCoordinate(outletX);
-                    
-                    outlet.setValue(outletRow, outletCol, outletNum);
-                    outletNum++;
+                    outletPoints.addPoint(outletXs.get(a), outletYs.get(a), a + 1);
                 }
                 
-                
-                
             } else if (outletHeader.toLowerCase().endsWith(".dep")) {
                 outlet = new WhiteboxRaster(outletHeader, "r");
 
@@ -333,24 +322,44 @@ public class Watershed implements WhiteboxPlugin {
                 return;
             }
 
-            WhiteboxRaster output = new WhiteboxRaster(outputHeader, "rw",
+            final WhiteboxRaster output = new WhiteboxRaster(outputHeader, "rw",
                     inputHeader, WhiteboxRaster.DataType.FLOAT, -999);
             output.setDataScale(WhiteboxRasterBase.DataScale.CATEGORICAL);
             output.setPreferredPalette("categorical1.pal");
             
-            for (row = 0; row < rows; row++) {
-                for (col = 0; col < cols; col++) {
-                    z = outlet.getValue(row, col);
-                    if (z != 0 && z != noData) {
-                        output.setValue(row, col, z);
+            if (outletPoints != null) {
+                final int numRows = rows;
+                boolean completed = outletPoints.rasterize(0, new ScanlineRasterizer.Output() {
+                    @Override
+                    public boolean processRow(int row, double[] values, double[] coverage) {
+                        for (int col = 0; col < values.length; col++) {
+                            if (values[col] != 0) {
+                                output.setValue(row, col, values[col]);
+                            }
+                        }
+                        updateProgress("Loop 1 of 2:", (int) (100f * row / (numRows - 1)));
+                        return !cancelOp;
                     }
-                }
-                if (cancelOp) {
+                });
+                if (!completed) {
                     cancelOperation();
                     return;
                 }
-                progress = (float) (100f * row / (rows - 1));
-                updateProgress("Loop 1 of 2:", (int) progress);
+            } else {
+                for (row = 0; row < rows; row++) {
+                    for (col = 0; col < cols; col++) {
+                        z = outlet.getValue(row, col);
+                        if (z != 0 && z != noData) {
+                            output.setValue(row, col, z);
+                        }
+                    }
+                    if (cancelOp) {
+                        cancelOperation();
+                        return;
+                    }
+                    progress = (float) (100f * row / (rows - 1));
+                    updateProgress("Loop 1 of 2:", (int) progress);
+                }
             }
 
             for (row = 0; row < rows; row++) {
@@ -417,7 +426,9 @@ public class Watershed implements WhiteboxPlugin {
             output.addMetadataEntry("Created on " + new Date());
 
             pntr.close();
-            outlet.close();
+            if (outlet != null) {
+                outlet.close();
+            }
             output.close();
 
             // returning a header file string displays the image.
@@ -31,6 +31,7 @@ import javax.swing.event.TableModelEvent;
 import javax.swing.table.*;
 import javax.swing.event.TableModelListener;
 import org.apache.commons.math3.linear.*;
+import whitebox.algorithms.Resampler;
 import whitebox.geospatialfiles.ShapeFile;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.geospatialfiles.shapefile.*;
@@ -38,6 +39,7 @@ import static whitebox.geospatialfiles.shapefile.ShapeType.POINT;
 import static whitebox.geospatialfiles.shapefile.ShapeType.POINTM;
 import static whitebox.geospatialfiles.shapefile.ShapeType.POINTZ;
 import whitebox.interfaces.WhiteboxPluginHost;
+import whitebox.parallel.RowBands;
 import whitebox.structures.XYPoint;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
@@ -944,39 +946,53 @@ public class ImageRectificationPanel extends JPanel implements ActionListener,
                         inputImage.getDataType(), inputImage.getNoDataValue(), inputImage.getNoDataValue());
 
 
-                double outputX, outputY;
-                double inputX, inputY;
-                int inputCol, inputRow;
-                XYPoint point;
-                double z;
-                int oldProgress = -1;
-                int progress;
-                for (int row = 0; row < nRows; row++) {
-                    for (int col = 0; col < nCols; col++) {
-                        outputX = output.getXCoordinateFromColumn(col);
-                        outputY = output.getYCoordinateFromRow(row);
-
-                        // back transform them into image 2 coordinates.
-                        point = getBackwardCoordinates(outputX, outputY);
-
-                        inputX = point.x;
-                        inputY = point.y;
-
-                        inputCol = inputImage.getColumnFromXCoordinate(inputX);
-                        inputRow = inputImage.getRowFromYCoordinate(inputY);
-
-                        z = inputImage.getValue(inputRow, inputCol);
-
-                        output.setValue(row, col, z);
+                // map each output cell back into the input image; blocks of
+                // rows are resampled in parallel
+                final Resampler resampler = new Resampler(inputImage,
+                        Resampler.Method.NEAREST_NEIGHBOUR);
+                resampler.setTransform(new Resampler.Transform() {
+                    @Override
+                    public void toSource(double x, double y, double[] ret) {
+                        XYPoint point = getBackwardCoordinates(x, y);
+                        ret[0] = point.x;
+                        ret[1] = point.y;
                     }
-                    if (cancelOp) {
-                        cancelOperation();
-                        return null;
+                });
+                final WhiteboxRaster dest = output;
+                final int rows = nRows;
+                final int cols = nCols;
+                final double noData = inputImage.getNoDataValue();
+                boolean completed = RowBands.process(nRows, new RowBands.Task<double[][]>() {
+                    @Override
+                    public double[][] process(int startRow, int endRow) {
+                        return resampler.resample(dest, startRow, endRow, 0, cols);
                     }
-                    progress = (int) (100f * row / (nRows - 1));
-                    if (progress != oldProgress) {
-                        setProgress(progress);
+                }, new RowBands.Consumer<double[][]>() {
+                    int oldProgress = -1;
+
+                    @Override
+                    public boolean consume(int startRow, int endRow, double[][] result) {
+                        for (int row = startRow; row < endRow; row++) {
+                            double[] vals = result[row - startRow];
+                            for (int col = 0; col < cols; col++) {
+                                if (!Double.isNaN(vals[col])) {
+                                    dest.setValue(row, col, vals[col]);
+                                } else {
+                                    dest.setValue(row, col, noData);
+                                }
+                            }
+                        }
+                        int progress = (int) (100f * endRow / rows);
+                        if (progress != oldProgress) {
+                            setProgress(progress);
+                            oldProgress = progress;
+                        }
+                        return !cancelOp;
                     }
+                });
+                if (!completed) {
+                    cancelOperation();
+                    return null;
                 }
 
                 output.addMetadataEntry("Created by the "
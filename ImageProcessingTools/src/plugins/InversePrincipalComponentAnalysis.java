@@ -19,11 +19,13 @@ package plugins;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Date;
+import whitebox.algorithms.LinearBandCombination;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.geospatialfiles.WhiteboxRasterBase.DataScale;
 import whitebox.geospatialfiles.WhiteboxRasterInfo;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
+import whitebox.parallel.RowBands;
 
 /**
  * WhiteboxPlugin is used to define a plugin tool for Whitebox GIS.
@@ -164,17 +166,10 @@ public class InversePrincipalComponentAnalysis implements WhiteboxPlugin {
         WhiteboxRaster ouptut = null;
         int nCols = 0;
         int nRows = 0;
-        double z;
         int numImages = 0;
         int numFiles, numComponents;
         int progress = 0;
-        int col, row;
         int a, i, j;
-        double[] imageAverages;
-        double[] imageTotals;
-        double[] imageNumPixels;
-        double[][] data;
-        double[] noDataValues;
         String pathSep = File.separator;
         
         if (args.length <= 0) {
@@ -196,12 +191,6 @@ public class InversePrincipalComponentAnalysis implements WhiteboxPlugin {
             numFiles = imageFiles.length;
             components = new WhiteboxRasterInfo[numFiles];
             
-            imageAverages = new double[numFiles];
-            imageTotals = new double[numFiles];
-            imageNumPixels = new double[numFiles];
-            noDataValues = new double[numFiles];
-            data = new double[numFiles][];
-            
             int[] componentNumbers = new int[numFiles];
             
             double[][] eigenvectors = null;
@@ -211,7 +200,6 @@ public class InversePrincipalComponentAnalysis implements WhiteboxPlugin {
             for (i = 0; i < numFiles; i++) {
                 boolean isComponent = false;
                 components[i] = new WhiteboxRasterInfo(imageFiles[i]);
-                noDataValues[i] = components[i].getNoDataValue();
                 if (i == 0) {
                     nCols = components[i].getNumberColumns();
                     nRows = components[i].getNumberRows();
@@ -254,46 +242,45 @@ public class InversePrincipalComponentAnalysis implements WhiteboxPlugin {
                 componentPointers[componentNumbers[i]] = i;
             }
             
+            // set up the output images and the weight of each component in each
+            double[][] weights = new double[numImages][numFiles];
+            WhiteboxRaster[] outputs = new WhiteboxRaster[numImages];
             for (j = 0; j < numImages; j++) {
-                    // now set up the output image
-                    String outputHeader = workingDirectory + pathSep + outputName + (j + 1) + ".dep";
-                    if (new File(outputHeader).exists()) {
-                        (new File(outputHeader)).delete();
-                    }
-                    if (new File(outputHeader.replace(".dep", ".tas")).exists()) {
-                        (new File(outputHeader.replace(".dep", ".tas"))).delete();
-                    }
-                    WhiteboxRaster output = new WhiteboxRaster(outputHeader, "rw",
-                            imageFiles[0], WhiteboxRaster.DataType.FLOAT, 0);
-                    output.setDataScale(DataScale.CONTINUOUS);
-
-                    for (row = 0; row < nRows; row++) {
-                        for (i = 0; i < numFiles; i++) {
-                            data[i] = components[i].getRowValues(row);
-                        }
-                        for (col = 0; col < nCols; col++) {
-                            if (data[0][col] != noDataValues[0]) {
-                                z = 0;
-                                for (i = 0; i < numFiles; i++) {
-                                    z += data[i][col] * eigenvectors[componentPointers[i]][j];
-                                }
-                                output.setValue(row, col, z);
-                            } else {
-                                output.setValue(row, col, noDataValues[0]);
-                            }
-                        }
-                        if (cancelOp) {
-                            cancelOperation();
-                            return;
-                        }
-                        progress = (int) (100f * row / (nRows - 1));
-                        updateProgress("Creating image " + (j + 1) + ":", progress);
-                    }
-
-                    output.addMetadataEntry("Created by the "
-                            + getDescriptiveName() + " tool.");
-                    output.addMetadataEntry("Created on " + new Date());
-                    output.close();
+                for (i = 0; i < numFiles; i++) {
+                    weights[j][i] = eigenvectors[componentPointers[i]][j];
+                }
+                String outputHeader = workingDirectory + pathSep + outputName + (j + 1) + ".dep";
+                if (new File(outputHeader).exists()) {
+                    (new File(outputHeader)).delete();
+                }
+                if (new File(outputHeader.replace(".dep", ".tas")).exists()) {
+                    (new File(outputHeader.replace(".dep", ".tas"))).delete();
+                }
+                outputs[j] = new WhiteboxRaster(outputHeader, "rw",
+                        imageFiles[0], WhiteboxRaster.DataType.FLOAT, 0);
+                outputs[j].setDataScale(DataScale.CONTINUOUS);
+            }
+            
+            // create all of the output images in a single pass through the components
+            final int rows = nRows;
+            LinearBandCombination reconstruction = new LinearBandCombination(components, weights);
+            boolean completed = reconstruction.writeOutputs(outputs, new RowBands.Consumer<Void>() {
+                @Override
+                public boolean consume(int startRow, int endRow, Void result) {
+                    updateProgress("Creating images:", (int) (100f * endRow / rows));
+                    return !cancelOp;
+                }
+            });
+            if (!completed) {
+                cancelOperation();
+                return;
+            }
+            
+            for (WhiteboxRaster output : outputs) {
+                output.addMetadataEntry("Created by the "
+                        + getDescriptiveName() + " tool.");
+                output.addMetadataEntry("Created on " + new Date());
+                output.close();
             }
             
             for (i = 0; i < numFiles; i++) {
@@ -20,11 +20,13 @@ import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.PrintWriter;
 import java.util.Date;
+import whitebox.algorithms.Resampler;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.geospatialfiles.WhiteboxRasterBase;
 import whitebox.geospatialfiles.WhiteboxRasterInfo;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
+import whitebox.parallel.RowBands;
 
 /**
  * 
@@ -158,24 +160,17 @@ public class Mosaic implements WhiteboxPlugin {
         amIActive = true;
 
         String destHeader = null;
-        WhiteboxRaster image = null;
         WhiteboxRaster destination = null;
         WhiteboxRasterInfo imageInfo = null;
         int nCols = 0;
         int nRows = 0;
-        double imageNoData = -32768;
         double outputNoData = -32768;
         int numImages;
-        double x, y, z;
-        int progress = 0;
-        int col, row;
-        int a, i;
+        int a;
         String inputFilesString = null;
         String[] imageFiles;
         String resampleMethod = "nearest neighbour";
         double north, south, east, west;
-        double gridResX, gridResY;
-        int currentFile = -1;
         
         String str1 = null;
         FileWriter fw = null;
@@ -192,9 +187,8 @@ public class Mosaic implements WhiteboxPlugin {
         inputFilesString = args[0];
         destHeader = args[1];
         resampleMethod = args[2].toLowerCase().trim();
-        if (!resampleMethod.equals("nearest neighbour")
-                && !resampleMethod.equals("bilinear")
-                && !resampleMethod.equals("cubic convolution")) {
+        final Resampler.Method method = Resampler.Method.fromString(resampleMethod);
+        if (method == null) {
             showFeedback("Resample method not recognized");
             return;
         }
@@ -278,160 +272,54 @@ public class Mosaic implements WhiteboxPlugin {
                     WhiteboxRasterBase.DataType.FLOAT, outputNoData, outputNoData);
             
             
-            int nColsLessOne = nCols - 1;
-            int nRowsLessOne = nRows - 1;
-            
-            // these may not be exactly the same as above now.
-            gridResX = destination.getCellSizeX();
-            gridResY = destination.getCellSizeY();
-            double northernEdge = north - gridResY;
-            double westernEdge = west + gridResX;
-            if (north < south) {
-                northernEdge = north + gridResY;
+            if (method != Resampler.Method.NEAREST_NEIGHBOUR
+                    && destination.getDataType() != WhiteboxRaster.DataType.DOUBLE
+                    && destination.getDataType() != WhiteboxRaster.DataType.FLOAT) {
+                showFeedback("The destination image is not of an appropriate data"
+                        + " type (i.e. double or float) to perform this operation.");
+                return;
             }
 
-            if (east < west) {
-                westernEdge = west - gridResX;
+            // set up a resampler for each image. Where the images overlap, the
+            // first image in the list with a valid value takes priority.
+            final Resampler[] sources = new Resampler[numImages];
+            final int[][] extents = new int[numImages][];
+            for (a = 0; a < numImages; a++) {
+                sources[a] = new Resampler(new WhiteboxRasterInfo(imageFiles[a]), method);
+                extents[a] = sources[a].getDestinationExtent(destination);
             }
 
-            
-            double yRange = north - south - gridResY;
-            double xRange = east - west - gridResX;
-            int sourceCol, sourceRow;
-            
-
-            if (resampleMethod.equals("nearest neighbour")) {
-                for (a = 0; a < numImages; a++) {
-                    image = new WhiteboxRaster(imageFiles[a], "r");
-                    int startRow = destination.getRowFromYCoordinate(image.getNorth()) - 1;
-                    int endRow = destination.getRowFromYCoordinate(image.getSouth()) + 1;
-                    int startCol = destination.getColumnFromXCoordinate(image.getWest()) - 1;
-                    int endCol = destination.getColumnFromXCoordinate(image.getEast()) + 1;
-                    if (startRow < 0) { startRow = 0; }
-                    if (startCol < 0) { startCol = 0; }
-                    if (endRow > nRows - 1) { endRow = nRows - 1; }
-                    if (endCol > nCols - 1) { endCol = nCols - 1; }
-                    for (row = startRow; row <= endRow; row++) {
-                        y = northernEdge - (yRange * row) / nRowsLessOne;
-                        for (col = startCol; col <= endCol; col++) {
-                            x = westernEdge + (xRange * col) / nColsLessOne;
-                            if (isBetween(y, imageData[a][0], imageData[a][1])
-                                    && isBetween(x, imageData[a][2], imageData[a][3])) {
-                                 //what are the column and row of the image?
-                                sourceRow = (int) Math.round((imageData[a][0] - y) / imageData[a][10] * (imageData[a][4] - 0.5));
-                                sourceCol = (int) Math.round((x - imageData[a][3]) / imageData[a][9] * (imageData[a][5] - 0.5));
-                                z = image.getValue(sourceRow, sourceCol);
-                                if (z != imageData[a][8]) {
-                                    destination.setValue(row, col, z);
-                                } else {
-                                    destination.setValue(row, col, outputNoData);
-                                }
-                            }
-                        }
-                    }
-                    image.close();
-                    if (cancelOp) {
-                        cancelOperation();
-                        return;
-                    }
-                    progress = (int) (100f * (a + 1) / numImages);
-                    updateProgress(progress);
-                }
-                
-            } else {
-                if (destination.getDataType() != WhiteboxRaster.DataType.DOUBLE && 
-                        destination.getDataType() != WhiteboxRaster.DataType.FLOAT) {
-                    showFeedback("The destination image is not of an appropriate data"
-                            + " type (i.e. double or float) to perform this operation.");
-                    return;
+            final WhiteboxRaster dest = destination;
+            final double noData = outputNoData;
+            final int rows = nRows;
+            boolean completed = RowBands.process(nRows, new RowBands.Task<double[][]>() {
+                @Override
+                public double[][] process(int startRow, int endRow) {
+                    return Resampler.composite(sources, extents, dest, startRow, endRow, noData);
                 }
-                double dX, dY;
-                double srcRow, srcCol; 
-                double originRow, originCol;
-                double rowN, colN;
-                double sumOfDist;
-                double[] shiftX;
-                double[] shiftY;
-                int numNeighbours = 0;
-                double[][] neighbour;
-                if (resampleMethod.equals("cubic convolution")) {
-                    shiftX = new double[]{ -1, 0, 1, 2, -1, 0, 1, 2, -1, 0, 1, 2, -1, 0, 1, 2 };
-                    shiftY = new double[]{ -1, -1, -1, -1, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2 };
-                    numNeighbours = 16;
-                    neighbour = new double[16][2];
-                } else { // resampleMethod is "bilinear"
-                    shiftX = new double[]{ 0, 1, 0, 1 };
-                    shiftY = new double[]{ 0, 0, 1, 1 };
-                    numNeighbours = 4;
-                    neighbour = new double[4][2];
-                }
-                
-                for (a = 0; a < numImages; a++) {
-                    image = new WhiteboxRaster(imageFiles[a], "r");
-                    int startRow = destination.getRowFromYCoordinate(image.getNorth()) - 1;
-                    int endRow = destination.getRowFromYCoordinate(image.getSouth()) + 1;
-                    int startCol = destination.getColumnFromXCoordinate(image.getWest()) - 1;
-                    int endCol = destination.getColumnFromXCoordinate(image.getEast()) + 1;
-                    if (startRow < 0) { startRow = 0; }
-                    if (startCol < 0) { startCol = 0; }
-                    if (endRow > nRows - 1) { endRow = nRows - 1; }
-                    if (endCol > nCols - 1) { endCol = nCols - 1; }
-                    for (row = startRow; row <= endRow; row++) {
-                        y = northernEdge - (yRange * row) / nRowsLessOne;
-                        for (col = startCol; col <= endCol; col++) {
-                            x = westernEdge + (xRange * col) / nColsLessOne;
-                            // see if this x, y location falls within the input image
-                            if (isBetween(y, imageData[a][0], imageData[a][1])
-                                    && isBetween(x, imageData[a][2], imageData[a][3])) {
-                                imageNoData = imageData[a][8];
-                                // what are the exact col and row of the image?
-                                srcRow = (imageData[a][0] - y) / imageData[a][10] * (imageData[a][4] - 0.5);
-                                srcCol = (x - imageData[a][3]) / imageData[a][9] * (imageData[a][5] - 0.5);
-
-                                originRow = Math.floor(srcRow);
-                                originCol = Math.floor(srcCol);
-
-                                sumOfDist = 0;
-                                for (i = 0; i < numNeighbours; i++) {
-                                    rowN = originRow + shiftY[i];
-                                    colN = originCol + shiftX[i];
-                                    neighbour[i][0] = image.getValue((int) rowN, (int) colN);
-                                    dY = rowN - srcRow;
-                                    dX = colN - srcCol;
-
-                                    if ((dX + dY) != 0 && neighbour[i][0] != imageNoData) {
-                                        neighbour[i][1] = 1 / (dX * dX + dY * dY);
-                                        sumOfDist += neighbour[i][1];
-                                    } else if (neighbour[i][0] == imageNoData) {
-                                        neighbour[i][1] = 0;
-                                    } else {
-                                        destination.setValue(row, col, neighbour[0][3]);
-                                        break;
-                                    }
-
-                                }
-
-                                if (sumOfDist > 0) {
-                                    z = 0;
-                                    for (i = 0; i < numNeighbours; i++) {
-                                        z += (neighbour[i][0] * neighbour[i][1]) / sumOfDist;
-                                    }
-                                    destination.setValue(row, col, z);
-                                    //break; 
-                                } else {
-                                    destination.setValue(row, col, outputNoData);
-                                }
+            }, new RowBands.Consumer<double[][]>() {
+                @Override
+                public boolean consume(int startRow, int endRow, double[][] result) {
+                    for (int r = startRow; r < endRow; r++) {
+                        double[] vals = result[r - startRow];
+                        for (int c = 0; c < vals.length; c++) {
+                            if (!Double.isNaN(vals[c])) {
+                                dest.setValue(r, c, vals[c]);
+                            } else {
+                                dest.setValue(r, c, noData);
                             }
                         }
                     }
-                    image.close();
-                    if (cancelOp) {
-                        cancelOperation();
-                        return;
-                    }
-                    progress = (int) (100f * (a + 1) / numImages);
-                    updateProgress(progress);
+                    updateProgress((int) (100f * endRow / rows));
+                    return !cancelOp;
                 }
+            });
+            for (a = 0; a < numImages; a++) {
+                sources[a].getSource().close();
+            }
+            if (!completed) {
+                cancelOperation();
+                return;
             }
 
             destination.addMetadataEntry("Created by the "
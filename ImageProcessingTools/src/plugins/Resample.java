@@ -17,10 +17,12 @@
 package plugins;
 
 import java.util.Date;
+import whitebox.algorithms.Resampler;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.geospatialfiles.WhiteboxRasterInfo;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
+import whitebox.parallel.RowBands;
 
 /**
  * WhiteboxPlugin is used to define a plugin tool for Whitebox GIS.
@@ -154,24 +156,14 @@ public class Resample implements WhiteboxPlugin {
         amIActive = true;
 
         String destHeader = null;
-        WhiteboxRaster image = null;
         WhiteboxRaster destination = null;
-        WhiteboxRasterInfo imageInfo = null;
-        int nCols = 0;
         int nRows = 0;
-        double imageNoData = -32768;
         double outputNoData = -32768;
         int numImages;
-        double x, y, z;
-        int progress = 0;
-        int col, row;
-        int a, i;
+        int a;
         String inputFilesString = null;
         String[] imageFiles;
         String resampleMethod = "nearest neighbour";
-        double north, south, east, west;
-        double gridResX, gridResY;
-        int currentFile = -1;
 
         if (args.length <= 0) {
             showFeedback("Plugin parameters have not been set.");
@@ -182,9 +174,8 @@ public class Resample implements WhiteboxPlugin {
         inputFilesString = args[0];
         destHeader = args[1];
         resampleMethod = args[2].toLowerCase().trim();
-        if (!resampleMethod.equals("nearest neighbour")
-                && !resampleMethod.equals("bilinear")
-                && !resampleMethod.equals("cubic convolution")) {
+        final Resampler.Method method = Resampler.Method.fromString(resampleMethod);
+        if (method == null) {
             showFeedback("Resample method not recognized");
             return;
         }
@@ -202,183 +193,56 @@ public class Resample implements WhiteboxPlugin {
         try {
 
             destination = new WhiteboxRaster(destHeader, "rw");
-            nCols = destination.getNumberColumns();
             nRows = destination.getNumberRows();
-            int nColsLessOne = nCols - 1;
-            int nRowsLessOne = nRows - 1;
-            north = destination.getNorth();
-            south = destination.getSouth();
-            east = destination.getEast();
-            west = destination.getWest();
-            gridResX = destination.getCellSizeX();
-            gridResY = destination.getCellSizeY();
-            double northernEdge = north - gridResY;
-            double westernEdge = west + gridResX;
-            if (north < south) {
-                northernEdge = north + gridResY;
-            }
+            outputNoData = destination.getNoDataValue();
 
-            if (east < west) {
-                westernEdge = west - gridResX;
+            if (method != Resampler.Method.NEAREST_NEIGHBOUR
+                    && destination.getDataType() != WhiteboxRaster.DataType.DOUBLE
+                    && destination.getDataType() != WhiteboxRaster.DataType.FLOAT) {
+                showFeedback("The destination image is not of an appropriate data"
+                        + " type (i.e. double or float) to perform this operation.");
+                return;
             }
 
-            outputNoData = destination.getNoDataValue();
-
-            double yRange = north - south - gridResY;
-            double xRange = east - west - gridResX;
-            int sourceCol, sourceRow;
-            
-            // retrieve data about each image.
-            double[][] imageData = new double[numImages][11];
+            // set up a resampler for each image. Where the images overlap, the
+            // first image in the list with a valid value takes priority.
+            final Resampler[] sources = new Resampler[numImages];
+            final int[][] extents = new int[numImages][];
             for (a = 0; a < numImages; a++) {
-                imageInfo = new WhiteboxRasterInfo(imageFiles[a]);
-                imageData[a][0] = imageInfo.getNorth();
-                imageData[a][1] = imageInfo.getSouth();
-                imageData[a][2] = imageInfo.getEast();
-                imageData[a][3] = imageInfo.getWest();
-                imageData[a][4] = imageInfo.getNumberRows();
-                imageData[a][5] = imageInfo.getNumberColumns();
-                imageData[a][6] = imageInfo.getCellSizeX();
-                imageData[a][7] = imageInfo.getCellSizeY();
-                imageData[a][8] = imageInfo.getNoDataValue();
-                imageData[a][9] = imageInfo.getEast() - imageInfo.getWest();
-                imageData[a][10] = imageInfo.getNorth() - imageInfo.getSouth();
+                sources[a] = new Resampler(new WhiteboxRasterInfo(imageFiles[a]), method);
+                extents[a] = sources[a].getDestinationExtent(destination);
             }
 
-            if (resampleMethod.equals("nearest neighbour")) {
-                for (row = 0; row < nRows; row++) {
-                    y = northernEdge - (yRange * row) / nRowsLessOne;
-                    for (col = 0; col < nCols; col++) {
-                        x = westernEdge + (xRange * col) / nColsLessOne;
-                        // see if this x, y location falls within any of the input images
-                        for (a = 0; a < numImages; a++) {
-                            if (isBetween(y, imageData[a][0], imageData[a][1])
-                                    && isBetween(x, imageData[a][2], imageData[a][3])) {
-                                if (a != currentFile) {
-                                    if (currentFile >= 0) {
-                                        image.close();
-                                    }
-                                    image = new WhiteboxRaster(imageFiles[a], "r");
-                                    currentFile = a;
-                                }
-                                // what are the col and row of the image?
-                                //row = (int) ((top - northing) / (top - bottom) * (rows - 0.5));
-                                sourceRow = (int)Math.round((imageData[a][0] - y) / imageData[a][10] * (imageData[a][4] - 0.5));
-                                //col = (int) ((easting - left) / (right - left) * (columns - 0.5));
-                                sourceCol = (int)Math.round((x - imageData[a][3]) / imageData[a][9] * (imageData[a][5] - 0.5));
-                                z = image.getValue(sourceRow, sourceCol);
-                                if (z != imageData[a][8]) { 
-                                    destination.setValue(row, col, z);
-                                    break; 
-                                } else {
-                                    destination.setValue(row, col, outputNoData);
-                                }
-                            }
-                        }
-                    }
-                    if (cancelOp) {
-                        cancelOperation();
-                        return;
-                    }
-                    progress = (int) (100f * row / (nRows - 1));
-                    updateProgress(progress);
-                }
-                image.close();
-                
-            } else {
-                if (destination.getDataType() != WhiteboxRaster.DataType.DOUBLE && 
-                        destination.getDataType() != WhiteboxRaster.DataType.FLOAT) {
-                    showFeedback("The destination image is not of an appropriate data"
-                            + " type (i.e. double or float) to perform this operation.");
-                    return;
-                }
-                double dX, dY;
-                double srcRow, srcCol; 
-                double originRow, originCol;
-                double rowN, colN;
-                double sumOfDist;
-                double[] shiftX;
-                double[] shiftY;
-                int numNeighbours = 0;
-                double[][] neighbour;
-                if (resampleMethod.equals("cubic convolution")) {
-                    shiftX = new double[]{ -1, 0, 1, 2, -1, 0, 1, 2, -1, 0, 1, 2, -1, 0, 1, 2 };
-                    shiftY = new double[]{ -1, -1, -1, -1, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2 };
-                    numNeighbours = 16;
-                    neighbour = new double[16][2];
-                } else { // resampleMethod is "bilinear"
-                    shiftX = new double[]{ 0, 1, 0, 1 };
-                    shiftY = new double[]{ 0, 0, 1, 1 };
-                    numNeighbours = 4;
-                    neighbour = new double[4][2];
+            final WhiteboxRaster dest = destination;
+            final double noData = outputNoData;
+            final int rows = nRows;
+            boolean completed = RowBands.process(nRows, new RowBands.Task<double[][]>() {
+                @Override
+                public double[][] process(int startRow, int endRow) {
+                    return Resampler.composite(sources, extents, dest, startRow, endRow, noData);
                 }
-                
-                for (row = 0; row < nRows; row++) {
-                    y = northernEdge - (yRange * row) / nRowsLessOne;
-                    for (col = 0; col < nCols; col++) {
-                        x = westernEdge + (xRange * col) / nColsLessOne;
-                        // see if this x, y location falls within any of the input images
-                        for (a = 0; a < numImages; a++) {
-                            if (isBetween(y, imageData[a][0], imageData[a][1])
-                                    && isBetween(x, imageData[a][2], imageData[a][3])) {
-                                if (a != currentFile) {
-                                    if (currentFile >= 0) {
-                                        image.close();
-                                    }
-                                    image = new WhiteboxRaster(imageFiles[a], "r");
-                                    currentFile = a;
-                                }
-                                imageNoData = imageData[a][8];
-                                // what are the col and row of the image?
-                                //row = ((top - northing) / (top - bottom) * (rows - 0.5));
-                                srcRow = (imageData[a][0] - y) / imageData[a][10] * (imageData[a][4] - 0.5);
-                                //col = ((easting - left) / (right - left) * (columns - 0.5));
-                                srcCol = (x - imageData[a][3]) / imageData[a][9] * (imageData[a][5] - 0.5);
-                                
-                                originRow = Math.floor(srcRow);
-                                originCol = Math.floor(srcCol);
-                                
-                                sumOfDist = 0;
-                                for (i = 0; i < numNeighbours; i++) {
-                                    rowN = originRow + shiftY[i];
-                                    colN = originCol + shiftX[i];
-                                    neighbour[i][0] = image.getValue((int)rowN, (int)colN);
-                                    dY = rowN - srcRow;
-                                    dX = colN - srcCol;
-                                    
-                                    if ((dX + dY) != 0 && neighbour[i][0] != imageNoData) {
-                                        neighbour[i][1] = 1 /(dX * dX + dY * dY);
-                                        sumOfDist += neighbour[i][1];
-                                    } else if (neighbour[i][0] == imageNoData) {
-                                        neighbour[i][1] = 0;
-                                    } else {
-                                        destination.setValue(row, col, neighbour[i][0]);
-                                        break;
-                                    }
-                                    
-                                }               
-                                
-                                if (sumOfDist > 0) { 
-                                    z = 0;
-                                    for (i = 0; i < numNeighbours; i++) {
-                                        z += (neighbour[i][0] * neighbour[i][1]) / sumOfDist;
-                                    }
-                                    destination.setValue(row, col, z);
-                                    break; 
-                                } else {
-                                    destination.setValue(row, col, outputNoData);
-                                }
+            }, new RowBands.Consumer<double[][]>() {
+                @Override
+                public boolean consume(int startRow, int endRow, double[][] result) {
+                    for (int r = startRow; r < endRow; r++) {
+                        double[] vals = result[r - startRow];
+                        for (int c = 0; c < vals.length; c++) {
+                            // grid cells outside of all the images are left unchanged
+                            if (!Double.isNaN(vals[c])) {
+                                dest.setValue(r, c, vals[c]);
                             }
                         }
                     }
-                    if (cancelOp) {
-                        cancelOperation();
-                        return;
-                    }
-                    progress = (int) (100f * row / (nRows - 1));
-                    updateProgress(progress);
+                    updateProgress((int) (100f * endRow / rows));
+                    return !cancelOp;
                 }
-                image.close();
+            });
+            for (a = 0; a < numImages; a++) {
+                sources[a].getSource().close();
+            }
+            if (!completed) {
+                cancelOperation();
+                return;
             }
 
             destination.addMetadataEntry("Created by the "
@@ -29,7 +29,7 @@ import java.util.stream.IntStream;
 import whitebox.interfaces.WhiteboxPluginHost;
 import whitebox.geospatialfiles.LASReader;
 import whitebox.geospatialfiles.LASReader.PointRecord;
-import whitebox.structures.KdTree;
+import whitebox.structures.FixedRadiusIndex;
 import whitebox.ui.plugin_dialog.ScriptDialog;
 import whitebox.utilities.StringUtilities;
 import whitebox.geospatialfiles.LASReader.VariableLengthRecord;
@@ -56,7 +56,7 @@ public class FilterPoints {
     private double searchDist;
     private long numClassifiedPoints = 0;
     private BooleanBitArray1D done;
-    private KdTree<Integer> pointsTree;
+    private FixedRadiusIndex pointsIndex;
     private int numPoints;
     private int progress, oldProgress = -1;
 
@@ -21,15 +21,13 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.PrintWriter;
 import java.util.Date;
-import java.util.List;
+import whitebox.algorithms.LasTileGridder;
 import whitebox.geospatialfiles.LASReader;
 import whitebox.geospatialfiles.LASReader.PointRecColours;
 import whitebox.geospatialfiles.LASReader.PointRecord;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
-import whitebox.structures.KdTree;
-import whitebox.utilities.Parallel;
 
 /**
  * WhiteboxPlugin is used to define a plugin tool for Whitebox GIS.
@@ -323,408 +321,143 @@ public class LiDAR_IDW_interpolation implements WhiteboxPlugin {
             }
 
             pointFiles = inputFilesString.split(";");
-
-            if (maxDist < Double.POSITIVE_INFINITY) {
-                maxDist = maxDist * maxDist;
-            }
-
-            Parallel.For(0, pointFiles.length, 1, new Parallel.LoopBody<Integer>() {
-
+            final int numPointFiles = pointFiles.length;
+
+            final double maxSqrDist = maxDist * maxDist;
+            final double noData = -32768;
+            final boolean interpolateRGB = whatToInterpolate.equals("rgb data");
+
+            // The points of all of the files are binned into one tile per 
+            // file, with a halo around each tile so that the cells along the 
+            // edges of a tile also see the points of the neighbouring files.
+            // Without a maximum distance, each tile uses only its own points.
+            LasTileGridder gridder = new LasTileGridder(pointFiles, resolution, maxDist,
+                    new LasTileGridder.PointSelector() {
                 @Override
-                public void run(Integer j) {
-                    int row, col;
-                    int nrows, ncols;
-                    double x, y;
-                    double z = 0;
-                    int a, i;
-                    int progress = 0;
-                    int numPoints = 0;
-                    int numPointFiles = pointFiles.length;
-                    double north, south, east, west;
-                    String str1;
-                    PointRecord point;
-                    PointRecColours pointColours;
-                    double[] entry;
-                    double northing, easting;
-                    double noData = -32768;
-                    FileWriter fw = null;
-                    BufferedWriter bw = null;
-                    PrintWriter out = null;
-                    List<KdTree.Entry<InterpolationRecord>> results;
-                    double sumWeights;
-                    double dist;
-
-                    LASReader las = new LASReader(pointFiles[j]);
-
-                    long numPointsInFile = las.getNumPointRecords();
-                    // first count how many valid points there are.
-                    numPoints = 0;
-                    for (a = 0; a < numPointsInFile; a++) {
-                        point = las.getPointRecord(a);
-                        if (returnNumberToInterpolate.equals("all points")) {
-                            if (!point.isPointWithheld()
-                                    && !(classValuesToExclude[point.getClassification()])
-                                    && Math.abs(point.getScanAngle()) <= maxAbsScanAngle) {
-                                numPoints++;
-                            }
-                        } else if (returnNumberToInterpolate.equals("first return")) {
-                            if (!point.isPointWithheld()
-                                    && !(classValuesToExclude[point.getClassification()]
-                                    && Math.abs(point.getScanAngle()) <= maxAbsScanAngle)
-                                    && point.getReturnNumber() == 1) {
-                                numPoints++;
-                            }
-                        } else { // if (returnNumberToInterpolate.equals("last return")) {
-                            if (!point.isPointWithheld()
-                                    && !(classValuesToExclude[point.getClassification()])
-                                    && point.getReturnNumber() == point.getNumberOfReturns()
-                                    && Math.abs(point.getScanAngle()) <= maxAbsScanAngle) {
-                                numPoints++;
-                            }
-                        }
+                public boolean isSelected(PointRecord point) {
+                    if (point.isPointWithheld()
+                            || classValuesToExclude[point.getClassification()]
+                            || Math.abs(point.getScanAngle()) > maxAbsScanAngle) {
+                        return false;
                     }
-
-                    // now read the valid points into the k-dimensional tree.
-                    double minX = Double.POSITIVE_INFINITY;
-                    double maxX = Double.NEGATIVE_INFINITY;
-                    double minY = Double.POSITIVE_INFINITY;
-                    double maxY = Double.NEGATIVE_INFINITY;
-
-                    KdTree<InterpolationRecord> pointsTree = new KdTree.SqrEuclid<>(2, new Integer(numPoints));
-
-                    // read the points in
                     if (returnNumberToInterpolate.equals("all points")) {
-                        for (a = 0; a < numPointsInFile; a++) {
-                            point = las.getPointRecord(a);
-                            if (!point.isPointWithheld()
-                                    && !(classValuesToExclude[point.getClassification()])
-                                    && Math.abs(point.getScanAngle()) <= maxAbsScanAngle) {
-                                x = point.getX();
-                                y = point.getY();
-                                if (whatToInterpolate.equals("z (elevation)")) {
-                                    z = point.getZ();
-                                } else if (whatToInterpolate.equals("intensity")) {
-                                    z = point.getIntensity();
-                                } else if (whatToInterpolate.equals("classification")) {
-                                    z = point.getClassification();
-                                } else if (whatToInterpolate.equals("scan angle")) {
-                                    z = point.getScanAngle();
-                                } else if (whatToInterpolate.equals("rgb data")) {
-                                    pointColours = las.getPointRecordColours(a);
-                                    z = (double) ((255 << 24) | (pointColours.getBlue()
-                                            << 16) | (pointColours.getGreen() << 8)
-                                            | pointColours.getRed());
-                                }
-
-                                entry = new double[]{y, x};
-                                pointsTree.addPoint(entry, new InterpolationRecord(z, point.getScanAngle()));
-
-                                if (x < minX) {
-                                    minX = x;
-                                }
-                                if (x > maxX) {
-                                    maxX = x;
-                                }
-                                if (y < minY) {
-                                    minY = y;
-                                }
-                                if (y > maxY) {
-                                    maxY = y;
-                                }
-                            }
-//                            progress = (int) (100d * (a + 1) / numPointsInFile);
-//                            if ((progress % 2) == 0) {
-//                                updateProgress("Reading point data:", progress);
-//                            }
-                        }
+                        return true;
                     } else if (returnNumberToInterpolate.equals("first return")) {
-                        for (a = 0; a < numPointsInFile; a++) {
-                            point = las.getPointRecord(a);
-                            if (!point.isPointWithheld()
-                                    && !(classValuesToExclude[point.getClassification()]
-                                    && Math.abs(point.getScanAngle()) <= maxAbsScanAngle)
-                                    && point.getReturnNumber() == 1) {
-                                x = point.getX();
-                                y = point.getY();
-                                if (whatToInterpolate.equals("z (elevation)")) {
-                                    z = point.getZ();
-                                } else if (whatToInterpolate.equals("intensity")) {
-                                    z = point.getIntensity();
-                                } else if (whatToInterpolate.equals("classification")) {
-                                    z = point.getClassification();
-                                } else if (whatToInterpolate.equals("scan angle")) {
-                                    z = point.getScanAngle();
-                                } else if (whatToInterpolate.equals("rgb data")) {
-                                    pointColours = las.getPointRecordColours(a);
-                                    z = (double) ((255 << 24) | (pointColours.getBlue()
-                                            << 16) | (pointColours.getGreen() << 8)
-                                            | pointColours.getRed());
-                                }
-
-                                entry = new double[]{y, x};
-                                pointsTree.addPoint(entry, new InterpolationRecord(z, point.getScanAngle()));
-
-                                if (x < minX) {
-                                    minX = x;
-                                }
-                                if (x > maxX) {
-                                    maxX = x;
-                                }
-                                if (y < minY) {
-                                    minY = y;
-                                }
-                                if (y > maxY) {
-                                    maxY = y;
-                                }
-                            }
-                        }
+                        return point.getReturnNumber() == 1;
                     } else { // if (returnNumberToInterpolate.equals("last return")) {
-                        for (a = 0; a < numPointsInFile; a++) {
-                            point = las.getPointRecord(a);
-                            if (!point.isPointWithheld()
-                                    && !(classValuesToExclude[point.getClassification()])
-                                    && point.getReturnNumber() == point.getNumberOfReturns()
-                                    && Math.abs(point.getScanAngle()) <= maxAbsScanAngle) {
-                                x = point.getX();
-                                y = point.getY();
-                                if (whatToInterpolate.equals("z (elevation)")) {
-                                    z = point.getZ();
-                                } else if (whatToInterpolate.equals("intensity")) {
-                                    z = point.getIntensity();
-                                } else if (whatToInterpolate.equals("classification")) {
-                                    z = point.getClassification();
-                                } else if (whatToInterpolate.equals("scan angle")) {
-                                    z = point.getScanAngle();
-                                } else if (whatToInterpolate.equals("rgb data")) {
-                                    pointColours = las.getPointRecordColours(a);
-                                    z = (double) ((255 << 24) | (pointColours.getBlue()
-                                            << 16) | (pointColours.getGreen() << 8)
-                                            | pointColours.getRed());
-                                }
-
-                                entry = new double[]{y, x};
-                                pointsTree.addPoint(entry, new InterpolationRecord(z, point.getScanAngle()));
-
-                                if (x < minX) {
-                                    minX = x;
-                                }
-                                if (x > maxX) {
-                                    maxX = x;
-                                }
-                                if (y < minY) {
-                                    minY = y;
-                                }
-                                if (y > maxY) {
-                                    maxY = y;
-                                }
-                            }
-                        }
+                        return point.getReturnNumber() == point.getNumberOfReturns();
                     }
+                }
 
-                    String outputHeader = pointFiles[j].replace(".las", suffix + ".dep");
-
-                    // see if the output files already exist, and if so, delete them.
-                    if ((new File(outputHeader)).exists()) {
-                        (new File(outputHeader)).delete();
-                        (new File(outputHeader.replace(".dep", ".tas"))).delete();
+                @Override
+                public double getValue(LASReader las, int index, PointRecord point) {
+                    double z = 0;
+                    if (whatToInterpolate.equals("z (elevation)")) {
+                        z = point.getZ();
+                    } else if (whatToInterpolate.equals("intensity")) {
+                        z = point.getIntensity();
+                    } else if (whatToInterpolate.equals("classification")) {
+                        z = point.getClassification();
+                    } else if (whatToInterpolate.equals("scan angle")) {
+                        z = point.getScanAngle();
+                    } else if (whatToInterpolate.equals("rgb data")) {
+                        PointRecColours pointColours = las.getPointRecordColours(index);
+                        z = (double) ((255 << 24) | (pointColours.getBlue()
+                                << 16) | (pointColours.getGreen() << 8)
+                                | pointColours.getRed());
                     }
+                    return z;
+                }
+            });
+            if (maxDist == Double.POSITIVE_INFINITY) {
+                gridder.setHalo(0);
+            }
 
-                    // What are north, south, east, and west and how many rows and 
-                    // columns should there be?
-                    west = minX - 0.5 * resolution;
-                    north = maxY + 0.5 * resolution;
-                    nrows = (int) (Math.ceil((north - minY) / resolution));
-                    ncols = (int) (Math.ceil((maxX - west) / resolution));
-                    south = north - nrows * resolution;
-                    east = west + ncols * resolution;
-
-                    try {
-                        // create the whitebox header file.
-                        fw = new FileWriter(outputHeader, false);
-                        bw = new BufferedWriter(fw);
-                        out = new PrintWriter(bw, true);
-
-                        str1 = "Min:\t" + Double.toString(Integer.MAX_VALUE);
-                        out.println(str1);
-                        str1 = "Max:\t" + Double.toString(Integer.MIN_VALUE);
-                        out.println(str1);
-                        str1 = "North:\t" + Double.toString(north);
-                        out.println(str1);
-                        str1 = "South:\t" + Double.toString(south);
-                        out.println(str1);
-                        str1 = "East:\t" + Double.toString(east);
-                        out.println(str1);
-                        str1 = "West:\t" + Double.toString(west);
-                        out.println(str1);
-                        str1 = "Cols:\t" + Integer.toString(ncols);
-                        out.println(str1);
-                        str1 = "Rows:\t" + Integer.toString(nrows);
-                        out.println(str1);
-                        str1 = "Data Type:\t" + "float";
-                        out.println(str1);
-                        str1 = "Z Units:\t" + "not specified";
-                        out.println(str1);
-                        str1 = "XY Units:\t" + "not specified";
-                        out.println(str1);
-                        str1 = "Projection:\t" + "not specified";
-                        out.println(str1);
-                        if (!whatToInterpolate.equals("rgb data")) {
-                            str1 = "Data Scale:\tcontinuous";
-                        } else {
-                            str1 = "Data Scale:\trgb";
-                        }
-                        out.println(str1);
-                        if (whatToInterpolate.equals("rgb data")) {
-                            str1 = "Preferred Palette:\t" + "rgb.pal";
-                        } else if (whatToInterpolate.equals("intensity")) {
-                            str1 = "Preferred Palette:\t" + "grey.pal";
-                        } else {
-                            str1 = "Preferred Palette:\t" + "spectrum.pal";
-                        }
-                        out.println(str1);
-                        str1 = "NoData:\t" + noData;
-                        out.println(str1);
-                        if (java.nio.ByteOrder.nativeOrder() == java.nio.ByteOrder.LITTLE_ENDIAN) {
-                            str1 = "Byte Order:\t" + "LITTLE_ENDIAN";
-                        } else {
-                            str1 = "Byte Order:\t" + "BIG_ENDIAN";
+            numCompletedFiles = 0;
+            boolean completed = gridder.run(new LasTileGridder.CellEstimator() {
+                @Override
+                public double estimate(LasTileGridder.Neighbourhood results) {
+                    int i;
+                    double dist;
+                    double sumWeights = 0;
+                    // a point that coincides with the cell centre takes its value
+                    for (i = 0; i < results.size(); i++) {
+                        if (results.getSqrDistance(i) == 0) {
+                            return results.getValue(i);
                         }
-                        out.println(str1);
-
-                        out.close();
-
-                    } catch (Exception e) {
-                        showFeedback(e.getMessage());
-                        return;
                     }
-
-                    // Create the whitebox raster object.
-                    WhiteboxRaster image = new WhiteboxRaster(outputHeader, "rw");
-                    
-                    
-                    double halfResolution = resolution / 2;
-                    if (!whatToInterpolate.equals("rgb data")) {
-                        for (row = 0; row < nrows; row++) {
-                            for (col = 0; col < ncols; col++) {
-                                easting = (col * resolution) + (west + halfResolution);
-                                northing = (north - halfResolution) - (row * resolution);
-                                entry = new double[]{northing, easting};
-                                results = pointsTree.neighborsWithinRange(entry, maxDist);
-                                double minScanAngle = Double.POSITIVE_INFINITY;
-                                double maxScanAngle = Double.NEGATIVE_INFINITY;
-                                double scanAngle;
-                                for (i = 0; i < results.size(); i++) {
-                                    scanAngle = results.get(i).value.scanAngle;
-                                    if (scanAngle > maxScanAngle) { maxScanAngle = scanAngle; }
-                                    if (scanAngle < minScanAngle) { minScanAngle = scanAngle; }
-                                }
-                                boolean[] scanAngleFilter = new boolean[results.size()];
-                                for (i = 0; i < results.size(); i++) {
-                                    scanAngle = results.get(i).value.scanAngle;
-                                    if ((scanAngle - minScanAngle) < 3) {
-                                        scanAngleFilter[i] = true;
-                                    }
-                                }
-                                
-                                sumWeights = 0;
-                                for (i = 0; i < results.size(); i++) {
-                                    if ((results.get(i).distance > 0) && (results.get(i).distance < maxDist) &&
-                                            scanAngleFilter[i]) {
-                                        dist = Math.pow(Math.sqrt(results.get(i).distance), weight);
-                                        sumWeights += 1 / dist;
-                                    } else if (results.get(i).distance == 0) {
-                                        break;
-                                    }
-                                }
-                                if (sumWeights > 0) {
-                                    z = 0;
-                                    for (i = 0; i < results.size(); i++) {
-                                        if ((results.get(i).distance > 0) && (results.get(i).distance < maxDist) &&
-                                                scanAngleFilter[i]) {
-                                            dist = 1 / Math.pow(Math.sqrt(results.get(i).distance), weight);
-                                            z += (dist * results.get(i).value.value) / sumWeights;
-                                        } else if (results.get(i).distance == 0) {
-                                            z = results.get(i).value.value;
-                                            break;
-                                        }
-                                    }
-                                    image.setValue(row, col, z);
-                                } else {
-                                    image.setValue(row, col, noData);
-                                }
-                            }
-                            if (cancelOp) {
-                                cancelOperation();
-                                return;
+                    if (!interpolateRGB) {
+                        // only the points scanned at angles close to the 
+                        // most nadir point are used
+                        int minScanAngle = Integer.MAX_VALUE;
+                        for (i = 0; i < results.size(); i++) {
+                            int scanAngle = Math.abs(results.getScanAngle(i));
+                            if (scanAngle < minScanAngle) { minScanAngle = scanAngle; }
+                        }
+                        double z = 0;
+                        for (i = 0; i < results.size(); i++) {
+                            if (results.getSqrDistance(i) < maxSqrDist
+                                    && (Math.abs(results.getScanAngle(i)) - minScanAngle) < 3) {
+                                dist = 1 / Math.pow(Math.sqrt(results.getSqrDistance(i)), weight);
+                                sumWeights += dist;
+                                z += dist * results.getValue(i);
                             }
                         }
+                        return sumWeights > 0 ? z / sumWeights : noData;
                     } else { // rgb is being interpolated
-                        double r, g, b;
-                        double zR, zG, zB;
-                        double val;
-                        for (row = 0; row < nrows; row++) {
-                            for (col = 0; col < ncols; col++) {
-                                easting = (col * resolution) + (west + halfResolution);
-                                northing = (north - halfResolution) - (row * resolution);
-                                entry = new double[]{northing, easting};
-                                results = pointsTree.neighborsWithinRange(entry, maxDist);
-                                sumWeights = 0;
-                                for (i = 0; i < results.size(); i++) {
-                                    if ((results.get(i).distance > 0) && (results.get(i).distance < maxDist)) {
-                                        dist = Math.pow(Math.sqrt(results.get(i).distance), weight);
-                                        sumWeights += 1 / dist;
-                                    } else if (results.get(i).distance == 0) {
-                                        break;
-                                    }
-                                }
-                                if (sumWeights > 0) {
-                                    z = 0;
-                                    zR = 0;
-                                    zG = 0;
-                                    zB = 0;
-                                    for (i = 0; i < results.size(); i++) {
-                                        if ((results.get(i).distance > 0) && (results.get(i).distance < maxDist)) {
-                                            val = results.get(i).value.value;
-                                            r = (double) ((int) val & 0xFF);
-                                            g = (double) (((int) val >> 8) & 0xFF);
-                                            b = (double) (((int) val >> 16) & 0xFF);
-
-                                            dist = 1 / Math.pow(Math.sqrt(results.get(i).distance), weight);
-                                            zR += (dist * r) / sumWeights;
-                                            zG += (dist * g) / sumWeights;
-                                            zB += (dist * b) / sumWeights;
-                                        } else if (results.get(i).distance == 0) {
-                                            z = results.get(i).value.value;
-                                            break;
-                                        }
-                                    }
-                                    z = (double) ((255 << 24) | ((int) zB << 16) | ((int) zG << 8) | (int) zR);
-                                    image.setValue(row, col, z);
-                                } else {
-                                    image.setValue(row, col, noData);
-                                }
+                        double zR = 0;
+                        double zG = 0;
+                        double zB = 0;
+                        for (i = 0; i < results.size(); i++) {
+                            if (results.getSqrDistance(i) < maxSqrDist) {
+                                int val = (int) results.getValue(i);
+                                dist = 1 / Math.pow(Math.sqrt(results.getSqrDistance(i)), weight);
+                                sumWeights += dist;
+                                zR += dist * (val & 0xFF);
+                                zG += dist * ((val >> 8) & 0xFF);
+                                zB += dist * ((val >> 16) & 0xFF);
                             }
-                            if (cancelOp) {
-                                cancelOperation();
-                                return;
-                            }
-//                            progress = (int) (100f * row / (nrows - 1));
-//                            updateProgress("Interpolating point data:", progress);
-                            
                         }
+                        if (sumWeights == 0) {
+                            return noData;
+                        }
+                        return (double) ((255 << 24) | ((int) (zB / sumWeights) << 16)
+                                | ((int) (zG / sumWeights) << 8) | (int) (zR / sumWeights));
+                    }
+                }
+            }, new LasTileGridder.TileOutput() {
+                @Override
+                public WhiteboxRaster createRaster(LasTileGridder.Tile tile) throws Exception {
+                    String outputHeader = tile.getFileName().replace(".las", suffix + ".dep");
+                    return createOutputRaster(outputHeader, tile, noData);
+                }
+
+                @Override
+                public boolean bandCompleted(LasTileGridder.Tile tile, int rowsCompleted) {
+                    if (cancelOp) {
+                        return false;
                     }
+                    int progress = (int) (100f * rowsCompleted / tile.getRows());
+                    updateProgress("Loop " + (numCompletedFiles + 1) + " of " + numPointFiles + ":", progress);
+                    return true;
+                }
+
+                @Override
+                public boolean tileCompleted(LasTileGridder.Tile tile, WhiteboxRaster image) {
                     image.addMetadataEntry("Created by the "
                             + getDescriptiveName() + " tool.");
                     image.addMetadataEntry("Created on " + new Date());
 
                     image.close();
-                    
-                    numCompletedFiles++;
-                    progress = (int) (numCompletedFiles * 100d / numPointFiles);
-                    updateProgress("Loop " + numCompletedFiles + " of " + numPointFiles + ":", progress);
 
+                    numCompletedFiles++;
+                    return !cancelOp;
                 }
             });
+            if (!completed) {
+                cancelOperation();
+                return;
+            }
 
             returnData(pointFiles[0].replace(".las", suffix + ".dep"));
 
@@ -741,24 +474,72 @@ public class LiDAR_IDW_interpolation implements WhiteboxPlugin {
         }
     }
     
-    private class InterpolationRecord {
-        
-        double value;
-        byte scanAngle;
-        
-        InterpolationRecord(double value, byte scanAngle) {
-            this.value = value;
-            this.scanAngle = (byte)Math.abs(scanAngle);
+    private WhiteboxRaster createOutputRaster(String outputHeader, LasTileGridder.Tile tile,
+            double noData) throws Exception {
+        String str1;
+
+        // see if the output files already exist, and if so, delete them.
+        if ((new File(outputHeader)).exists()) {
+            (new File(outputHeader)).delete();
+            (new File(outputHeader.replace(".dep", ".tas"))).delete();
         }
-        
-        double getValue() {
-            return value;
+
+        // create the whitebox header file.
+        FileWriter fw = new FileWriter(outputHeader, false);
+        BufferedWriter bw = new BufferedWriter(fw);
+        PrintWriter out = new PrintWriter(bw, true);
+
+        str1 = "Min:\t" + Double.toString(Integer.MAX_VALUE);
+        out.println(str1);
+        str1 = "Max:\t" + Double.toString(Integer.MIN_VALUE);
+        out.println(str1);
+        str1 = "North:\t" + Double.toString(tile.getNorth());
+        out.println(str1);
+        str1 = "South:\t" + Double.toString(tile.getSouth());
+        out.println(str1);
+        str1 = "East:\t" + Double.toString(tile.getEast());
+        out.println(str1);
+        str1 = "West:\t" + Double.toString(tile.getWest());
+        out.println(str1);
+        str1 = "Cols:\t" + Integer.toString(tile.getColumns());
+        out.println(str1);
+        str1 = "Rows:\t" + Integer.toString(tile.getRows());
+        out.println(str1);
+        str1 = "Data Type:\t" + "float";
+        out.println(str1);
+        str1 = "Z Units:\t" + "not specified";
+        out.println(str1);
+        str1 = "XY Units:\t" + "not specified";
+        out.println(str1);
+        str1 = "Projection:\t" + "not specified";
+        out.println(str1);
+        if (!whatToInterpolate.equals("rgb data")) {
+            str1 = "Data Scale:\tcontinuous";
+        } else {
+            str1 = "Data Scale:\trgb";
         }
-        
-        byte getScanAngle() {
-            return scanAngle;
+        out.println(str1);
+        if (whatToInterpolate.equals("rgb data")) {
+            str1 = "Preferred Palette:\t" + "rgb.pal";
+        } else if (whatToInterpolate.equals("intensity")) {
+            str1 = "Preferred Palette:\t" + "grey.pal";
+        } else {
+            str1 = "Preferred Palette:\t" + "spectrum.pal";
         }
-        
+        out.println(str1);
+        str1 = "NoData:\t" + noData;
+        out.println(str1);
+        if (java.nio.ByteOrder.nativeOrder() == java.nio.ByteOrder.LITTLE_ENDIAN) {
+            str1 = "Byte Order:\t" + "LITTLE_ENDIAN";
+        } else {
+            str1 = "Byte Order:\t" + "BIG_ENDIAN";
+        }
+        out.println(str1);
+
+        out.close();
+
+        // Create the whitebox raster object.
+        return new WhiteboxRaster(outputHeader, "rw");
     }
     
 //    // this is only used for debugging the tool
@@ -17,13 +17,12 @@
 package plugins;
 
 import java.util.Date;
-import java.util.List;
+import whitebox.algorithms.LasTileGridder;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.geospatialfiles.LASReader;
 import whitebox.geospatialfiles.LASReader.PointRecord;
 import whitebox.interfaces.WhiteboxPluginHost;
 import whitebox.interfaces.WhiteboxPlugin;
-import whitebox.structures.KdTree;
 import java.io.*;
 
 /**
@@ -188,38 +187,12 @@ public class LiDAR_PointDensity implements WhiteboxPlugin {
 
     @Override
     public void run() {
-        /* The problem with this algorithm is that the implementation of the
-         * k-d tree used here only allows you to return the n-closest neighbours
-         * and does not allow you to search for points that are within a specified
-         * distance. This will introduce an inaccuracy in point density estimates.
-         */
-        
         amIActive = true;
 
         String inputFilesString = null;
         String[] pointFiles;
-        String outputHeader = null;
-        int row, col;
-        int nrows, ncols;
-        double x, y;
-        double z = 0;
-        int a, i;
-        int progress = 0;
-        int numPoints = 0;
-        double maxDist = Double.POSITIVE_INFINITY;
-        double minX = Double.POSITIVE_INFINITY;
-        double maxX = Double.NEGATIVE_INFINITY;
-        double minY = Double.POSITIVE_INFINITY;
-        double maxY = Double.NEGATIVE_INFINITY;
-        double north, south, east, west;
         double resolution = 1;
-        String str1 = null;
-        FileWriter fw = null;
-        BufferedWriter bw = null;
-        PrintWriter out = null;
-        List<KdTree.Entry<Double>> results;
-        double noData = -32768;
-        double northing, easting;
+        final double noData = -32768;
         String returnNumberToInterpolate = "all points";
         String suffix = "";
         boolean excludeNeverClassified = false;
@@ -263,7 +236,7 @@ public class LiDAR_PointDensity implements WhiteboxPlugin {
 
         try {
             
-            boolean[] classValuesToExclude = new boolean[32]; // there can be up to 32 different classes in future versions
+            final boolean[] classValuesToExclude = new boolean[32]; // there can be up to 32 different classes in future versions
             
             if (excludeNeverClassified) { classValuesToExclude[0] = true; }
             if (excludeUnclassified) { classValuesToExclude[1] = true; }
@@ -277,271 +250,60 @@ public class LiDAR_PointDensity implements WhiteboxPlugin {
             if (excludeWater) { classValuesToExclude[9] = true; }
             
             pointFiles = inputFilesString.split(";");
-            int numPointFiles = pointFiles.length;
-            long numPointsInFile = 0;
-            maxDist = (resolution * 2) * (resolution * 2); // actually squared
+            final int numPointFiles = pointFiles.length;
+            double maxDist = (resolution * 2) * (resolution * 2); // actually squared
+            final double area = Math.PI * maxDist; // maxDist is already the squared radius
             
-            PointRecord point;
-            double[] entry;
-            for (int j = 0; j < numPointFiles; j++) {
-                
-                LASReader las = new LASReader(pointFiles[j]);
-                
-                progress = (int)((j + 1) * 100d / numPointFiles);
-                updateProgress("Loop " + (j + 1) + " of " + numPointFiles + " Reading point data:", progress);
-                
-                numPointsInFile = las.getNumPointRecords();
-                // first count how many valid points there are.
-                numPoints = 0;
-                for (a = 0; a < las.getNumPointRecords(); a++) {
-                    point = las.getPointRecord(a);
-                    if (returnNumberToInterpolate.equals("all points")) {
-                        if (!point.isPointWithheld() && 
-                                !(classValuesToExclude[point.getClassification()])) {
-                            numPoints++;
-                        }
-                    } else if (returnNumberToInterpolate.equals("first return")) {
-                        if (!point.isPointWithheld() && 
-                                !(classValuesToExclude[point.getClassification()]) &&
-                                point.getReturnNumber() == 1) {
-                            numPoints++;
-                        }
-                    } else { // if (returnNumberToInterpolate.equals("last return")) {
-                        if (!point.isPointWithheld() && 
-                                !(classValuesToExclude[point.getClassification()]) &&
-                                point.getReturnNumber() == point.getNumberOfReturns()) {
-                            numPoints++;
-                        }
-                    }
-                }
-                
-                // now read the valid points into the k-dimensional tree.
-                
-                minX = Double.POSITIVE_INFINITY;
-                maxX = Double.NEGATIVE_INFINITY;
-                minY = Double.POSITIVE_INFINITY;
-                maxY = Double.NEGATIVE_INFINITY;
-        
-                KdTree<Double> pointsTree = new KdTree.SqrEuclid<Double>(2, new Integer(numPoints));
+            // The points of all of the files are binned into one tile per 
+            // file, with a halo around each tile so that the cells along the 
+            // edges of a tile also see the points of the neighbouring files.
+            LasTileGridder gridder = new LasTileGridder(pointFiles, resolution,
+                    resolution * 2, new LasPointSelector(returnNumberToInterpolate, 
+                            classValuesToExclude));
             
-                
-                // read the points in
-                if (returnNumberToInterpolate.equals("all points")) {
-                    for (a = 0; a < numPointsInFile; a++) {
-                        point = las.getPointRecord(a);
-                        if (!point.isPointWithheld()
-                                && !(classValuesToExclude[point.getClassification()])) {
-                            x = point.getX();
-                            y = point.getY();
-                            z = point.getZ();
-                            
-                            entry = new double[]{y, x};
-                            pointsTree.addPoint(entry, z);
-
-                            if (x < minX) {
-                                minX = x;
-                            }
-                            if (x > maxX) {
-                                maxX = x;
-                            }
-                            if (y < minY) {
-                                minY = y;
-                            }
-                            if (y > maxY) {
-                                maxY = y;
-                            }
-                        }
-                        progress = (int) (100d * (a + 1) / numPointsInFile);
-                        if ((progress % 2) == 0) {
-                            updateProgress("Reading point data:", progress);
-                        }
-                    }
-                } else if (returnNumberToInterpolate.equals("first return")) {
-                    for (a = 0; a < numPointsInFile; a++) {
-                        point = las.getPointRecord(a);
-                        if (!point.isPointWithheld()
-                                && !(classValuesToExclude[point.getClassification()]) &&
-                                point.getReturnNumber() == 1) {
-                            x = point.getX();
-                            y = point.getY();
-                            z = point.getZ();
-                            
-                            entry = new double[]{y, x};
-                            pointsTree.addPoint(entry, z);
-
-                            if (x < minX) {
-                                minX = x;
-                            }
-                            if (x > maxX) {
-                                maxX = x;
-                            }
-                            if (y < minY) {
-                                minY = y;
-                            }
-                            if (y > maxY) {
-                                maxY = y;
-                            }
-                        }
-                        progress = (int) (100d * (a + 1) / numPointsInFile);
-                        if ((progress % 2) == 0) {
-                            updateProgress("Reading point data:", progress);
-                        }
-                    }
-                } else { // if (returnNumberToInterpolate.equals("last return")) {
-                    for (a = 0; a < numPointsInFile; a++) {
-                        point = las.getPointRecord(a);
-                        if (!point.isPointWithheld()
-                                && !(classValuesToExclude[point.getClassification()]) &&
-                                point.getReturnNumber() == point.getNumberOfReturns()) {
-                            x = point.getX();
-                            y = point.getY();
-                            z = point.getZ();
-                            
-                            entry = new double[]{y, x};
-                            pointsTree.addPoint(entry, z);
-
-                            if (x < minX) {
-                                minX = x;
-                            }
-                            if (x > maxX) {
-                                maxX = x;
-                            }
-                            if (y < minY) {
-                                minY = y;
-                            }
-                            if (y > maxY) {
-                                maxY = y;
-                            }
-                        }
-                        progress = (int) (100d * (a + 1) / numPointsInFile);
-                        if ((progress % 2) == 0) {
-                            updateProgress("Reading point data:", progress);
-                        }
-                    }
+            final String outputSuffix = suffix;
+            final int[] tilesCompleted = new int[1];
+            boolean completed = gridder.run(new LasTileGridder.CellEstimator() {
+                @Override
+                public double estimate(LasTileGridder.Neighbourhood neighbourhood) {
+                    // how many points are within the radius?
+                    return neighbourhood.size() / area;
                 }
-                
-                outputHeader = pointFiles[j].replace(".las", suffix + ".dep");
-                
-                // see if the output files already exist, and if so, delete them.
-                if ((new File(outputHeader)).exists()) {
-                    (new File(outputHeader)).delete();
-                    (new File(outputHeader.replace(".dep", ".tas"))).delete();
+            }, new LasTileGridder.TileOutput() {
+                @Override
+                public WhiteboxRaster createRaster(LasTileGridder.Tile tile) throws Exception {
+                    String outputHeader = tile.getFileName().replace(".las", outputSuffix + ".dep");
+                    return createOutputRaster(outputHeader, tile, noData);
                 }
-            
-                // What are north, south, east, and west and how many rows and 
-                // columns should there be?
-                west = minX - 0.5 * resolution;
-                north = maxY + 0.5 * resolution;
-                nrows = (int)(Math.ceil((north - minY) / resolution));
-                ncols = (int)(Math.ceil((maxX - west) / resolution));
-                south = north - nrows * resolution;
-                east = west + ncols * resolution;
-            
-                // create the whitebox header file.
-                fw = new FileWriter(outputHeader, false);
-                bw = new BufferedWriter(fw);
-                out = new PrintWriter(bw, true);
-
-                str1 = "Min:\t" + Double.toString(Integer.MAX_VALUE);
-                out.println(str1);
-                str1 = "Max:\t" + Double.toString(Integer.MIN_VALUE);
-                out.println(str1);
-                str1 = "North:\t" + Double.toString(north);
-                out.println(str1);
-                str1 = "South:\t" + Double.toString(south);
-                out.println(str1);
-                str1 = "East:\t" + Double.toString(east);
-                out.println(str1);
-                str1 = "West:\t" + Double.toString(west);
-                out.println(str1);
-                str1 = "Cols:\t" + Integer.toString(ncols);
-                out.println(str1);
-                str1 = "Rows:\t" + Integer.toString(nrows);
-                out.println(str1);
-                str1 = "Data Type:\t" + "float";
-                out.println(str1);
-                str1 = "Z Units:\t" + "not specified";
-                out.println(str1);
-                str1 = "XY Units:\t" + "not specified";
-                out.println(str1);
-                str1 = "Projection:\t" + "not specified";
-                out.println(str1);
-                str1 = "Data Scale:\tcontinuous"; 
-                out.println(str1);
-                str1 = "Preferred Palette:\t" + "spectrum.pal";
-                out.println(str1);
-                str1 = "NoData:\t" + noData;
-                out.println(str1);
-                if (java.nio.ByteOrder.nativeOrder() == java.nio.ByteOrder.LITTLE_ENDIAN) {
-                    str1 = "Byte Order:\t" + "LITTLE_ENDIAN";
-                } else {
-                    str1 = "Byte Order:\t" + "BIG_ENDIAN";
-                }
-                out.println(str1);
 
-                out.close();
-
-                // Create the whitebox raster object.
-                WhiteboxRaster image = new WhiteboxRaster(outputHeader, "rw");
-                int numPointsToUse = 10;
-                int numPointsInArea = 0;
-                boolean flag = false;
-                int maxIteration = 20;
-                int k = 0;
-                double halfResolution = resolution / 2;
-                double area = Math.PI * maxDist; // maxDist is already the squared radius
-                for (row = 0; row < nrows; row++) {
-                    for (col = 0; col < ncols; col++) {
-                        easting = (col * resolution) + (west + halfResolution);
-                        northing = (north - halfResolution) - (row * resolution);
-                        entry = new double[]{northing, easting};
-                        
-                        // keep increasing the numPointsToUse, until you have a point
-                        // that is at a greater distance than maxDist.
-                        numPointsToUse = 10;
-                        flag = false;
-                        k = 0;
-                        do {
-                            k++;
-                            results = pointsTree.nearestNeighbor(entry, numPointsToUse, true);
-                            for (i = 0; i < results.size(); i++) {
-                                if (results.get(i).distance > maxDist) {
-                                    flag = true;
-                                }
-                            }
-                            if (!flag) {
-                                numPointsToUse = numPointsToUse * 2;
-                            }
-                        } while (!flag && k < maxIteration);
-                        
-                        // how many points are within the radius?
-                        numPointsInArea = 0;
-                        for (i = 0; i < results.size(); i++) {
-                            if (results.get(i).distance <= maxDist) {
-                                numPointsInArea++;
-                            }
-                        }
-                        
-                        image.setValue(row, col, numPointsInArea / area);
-                        
-                    }
+                @Override
+                public boolean bandCompleted(LasTileGridder.Tile tile, int rowsCompleted) {
                     if (cancelOp) {
-                        cancelOperation();
-                        return;
+                        return false;
                     }
-                    progress = (int) (100f * row / (nrows - 1));
-                    updateProgress("Calculating point density:", progress);
+                    int progress = (int) (100f * rowsCompleted / tile.getRows());
+                    updateProgress("Loop " + (tilesCompleted[0] + 1) + " of " + numPointFiles + " Calculating point density:", progress);
+                    return true;
                 }
 
-                image.addMetadataEntry("Created by the "
-                        + getDescriptiveName() + " tool.");
-                image.addMetadataEntry("Created on " + new Date());
+                @Override
+                public boolean tileCompleted(LasTileGridder.Tile tile, WhiteboxRaster image) {
+                    image.addMetadataEntry("Created by the "
+                            + getDescriptiveName() + " tool.");
+                    image.addMetadataEntry("Created on " + new Date());
 
-                image.close();
+                    image.close();
+                    tilesCompleted[0]++;
+                    return !cancelOp;
+                }
+            });
+            if (!completed) {
+                cancelOperation();
+                return;
             }
             
             returnData(pointFiles[0].replace(".las", suffix + ".dep"));
-
+            
         } catch (OutOfMemoryError oe) {
             myHost.showFeedback("An out-of-memory error has occurred during operation.");
         } catch (Exception e) {
@@ -554,6 +316,97 @@ public class LiDAR_PointDensity implements WhiteboxPlugin {
             myHost.pluginComplete();
         }
     }
+    
+    private WhiteboxRaster createOutputRaster(String outputHeader, LasTileGridder.Tile tile,
+            double noData) throws Exception {
+        String str1;
+        
+        // see if the output files already exist, and if so, delete them.
+        if ((new File(outputHeader)).exists()) {
+            (new File(outputHeader)).delete();
+            (new File(outputHeader.replace(".dep", ".tas"))).delete();
+        }
+
+        // create the whitebox header file.
+        FileWriter fw = new FileWriter(outputHeader, false);
+        BufferedWriter bw = new BufferedWriter(fw);
+        PrintWriter out = new PrintWriter(bw, true);
+
+        str1 = "Min:\t" + Double.toString(Integer.MAX_VALUE);
+        out.println(str1);
+        str1 = "Max:\t" + Double.toString(Integer.MIN_VALUE);
+        out.println(str1);
+        str1 = "North:\t" + Double.toString(tile.getNorth());
+        out.println(str1);
+        str1 = "South:\t" + Double.toString(tile.getSouth());
+        out.println(str1);
+        str1 = "East:\t" + Double.toString(tile.getEast());
+        out.println(str1);
+        str1 = "West:\t" + Double.toString(tile.getWest());
+        out.println(str1);
+        str1 = "Cols:\t" + Integer.toString(tile.getColumns());
+        out.println(str1);
+        str1 = "Rows:\t" + Integer.toString(tile.getRows());
+        out.println(str1);
+        str1 = "Data Type:\t" + "float";
+        out.println(str1);
+        str1 = "Z Units:\t" + "not specified";
+        out.println(str1);
+        str1 = "XY Units:\t" + "not specified";
+        out.println(str1);
+        str1 = "Projection:\t" + "not specified";
+        out.println(str1);
+        str1 = "Data Scale:\tcontinuous"; 
+        out.println(str1);
+        str1 = "Preferred Palette:\t" + "spectrum.pal";
+        out.println(str1);
+        str1 = "NoData:\t" + noData;
+        out.println(str1);
+        if (java.nio.ByteOrder.nativeOrder() == java.nio.ByteOrder.LITTLE_ENDIAN) {
+            str1 = "Byte Order:\t" + "LITTLE_ENDIAN";
+        } else {
+            str1 = "Byte Order:\t" + "BIG_ENDIAN";
+        }
+        out.println(str1);
+
+        out.close();
+
+        // Create the whitebox raster object.
+        return new WhiteboxRaster(outputHeader, "rw");
+    }
+    
+    /**
+     * Selects the points that are counted by the tool.
+     */
+    private static class LasPointSelector implements LasTileGridder.PointSelector {
+        
+        private final String returnNumberToInterpolate;
+        private final boolean[] classValuesToExclude;
+        
+        LasPointSelector(String returnNumberToInterpolate, boolean[] classValuesToExclude) {
+            this.returnNumberToInterpolate = returnNumberToInterpolate;
+            this.classValuesToExclude = classValuesToExclude;
+        }
+        
+        @Override
+        public boolean isSelected(PointRecord point) {
+            if (point.isPointWithheld() || classValuesToExclude[point.getClassification()]) {
+                return false;
+            }
+            if (returnNumberToInterpolate.equals("all points")) {
+                return true;
+            } else if (returnNumberToInterpolate.equals("first return")) {
+                return point.getReturnNumber() == 1;
+            } else { // if (returnNumberToInterpolate.equals("last return")) {
+                return point.getReturnNumber() == point.getNumberOfReturns();
+            }
+        }
+        
+        @Override
+        public double getValue(LASReader las, int index, PointRecord point) {
+            return point.getZ();
+        }
+    }
       
 //    // this is only used for debugging the tool
 //    public static void main(String[] args) {
@@ -16,24 +16,17 @@
  */
 package plugins;
 
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
-import java.io.PrintWriter;
-import java.util.Date;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 import whitebox.geospatialfiles.LASReader;
-import whitebox.geospatialfiles.LASReader.PointRecColours;
 import whitebox.geospatialfiles.LASReader.PointRecord;
-import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.geospatialfiles.ShapeFile;
+import whitebox.geospatialfiles.ShapeFileWriter;
 import whitebox.geospatialfiles.shapefile.*;
 import whitebox.geospatialfiles.shapefile.attributes.DBFField;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
-import whitebox.structures.KdTree;
-import whitebox.structures.BooleanBitArray1D;
+import whitebox.parallel.RowBands;
+import whitebox.structures.FixedRadiusIndex;
 
 /**
  *
@@ -43,12 +36,16 @@ public class LiDAR_segmentation implements WhiteboxPlugin {
 
     private WhiteboxPluginHost myHost = null;
     private String[] args;
-    KdTree<Integer> pointsTree;
-    LidarData[] data;
-    double threshold;
+    FixedRadiusIndex pointsIndex;
+    double[] x, y, z;
+    int[] intensity;
+    int[] classValue;
+    double[] maxDownwardAngle;
+    double[] w;
+    double slopeThreshold;
     double searchDist;
-    long numClassifiedPoints = 0;
-    BooleanBitArray1D done;
+    int[] labelParents;
+    int numLabels;
 
     /**
      * Used to retrieve the plugin tool's name. This is a short, unique name
@@ -208,13 +205,8 @@ public class LiDAR_segmentation implements WhiteboxPlugin {
     public void run() {
         amIActive = true;
 
-        double x, y;
-        double z = 0;
-        int a, intensity;
+        int a;
         PointRecord point;
-        double[] entry;
-        int lowestPointIndex = -1;
-        double lowestPointZ = Double.POSITIVE_INFINITY;
 
         // get the arguments
         if (args.length <= 0) {
@@ -223,9 +215,8 @@ public class LiDAR_segmentation implements WhiteboxPlugin {
         }
         String inputFile = args[0];
         String outputFile = args[1];
-        threshold = Double.parseDouble(args[2]);
         // convert the threshold from degrees to tan slope
-        //threshold = Math.tan(Math.toRadians(threshold));
+        slopeThreshold = Math.tan(Math.toRadians(Double.parseDouble(args[2])));
         searchDist = Double.parseDouble(args[3]);
 
         // check to see that the input and output are not null.
@@ -237,30 +228,21 @@ public class LiDAR_segmentation implements WhiteboxPlugin {
         try {
             if (inputFile.endsWith(".las")) {
                 LASReader las = new LASReader(inputFile);
-                numPoints = (int) las.getNumPointRecords();
-                data = new LidarData[numPoints];
-                done = new BooleanBitArray1D(numPoints);
+                int numRecords = (int) las.getNumPointRecords();
+                allocatePoints(numRecords);
 
-                // Read the valid points into the k-dimensional tree.
-                pointsTree = new KdTree.SqrEuclid<>(2, numPoints);
-                for (a = 0; a < numPoints; a++) {
+                // Read the valid points into the point arrays.
+                numPoints = 0;
+                for (a = 0; a < numRecords; a++) {
                     point = las.getPointRecord(a);
                     if (!point.isPointWithheld()) {
-                        x = point.getX();
-                        y = point.getY();
-                        z = point.getZ();
-                        intensity = point.getIntensity();
-
-                        entry = new double[]{x, y};
-                        pointsTree.addPoint(entry, a);
-                        data[a] = new LidarData(x, y, z, intensity, a);
-
-                        if (z < lowestPointZ) {
-                            lowestPointZ = z;
-                            lowestPointIndex = a;
-                        }
+                        x[numPoints] = point.getX();
+                        y[numPoints] = point.getY();
+                        z[numPoints] = point.getZ();
+                        intensity[numPoints] = point.getIntensity();
+                        numPoints++;
                     }
-                    progress = (int) (100f * (a + 1) / numPoints);
+                    progress = (int) (100f * (a + 1) / numRecords);
                     if (progress != oldProgress) {
                         oldProgress = progress;
                         updateProgress("Reading point data:", progress);
@@ -279,174 +261,98 @@ public class LiDAR_segmentation implements WhiteboxPlugin {
                 // how many points are there?
                 MultiPointZ mpz = (MultiPointZ) (input.getRecord(0).getGeometry());
                 numPoints = mpz.getNumPoints();
-                data = new LidarData[numPoints];
-                done = new BooleanBitArray1D(numPoints);
+                allocatePoints(numPoints);
                 double[][] points = mpz.getPoints();
                 double[] zArray = mpz.getzArray();
-
-                // Read the valid points into the k-dimensional tree.
-                pointsTree = new KdTree.SqrEuclid<>(2, numPoints);
                 for (a = 0; a < numPoints; a++) {
-                    entry = new double[]{points[a][0], points[a][1]}; //, zArray[a]};
-                    pointsTree.addPoint(entry, a);
-                    data[a] = new LidarData(points[a][0], points[a][1], zArray[a], 0, a);
+                    x[a] = points[a][0];
+                    y[a] = points[a][1];
+                    z[a] = zArray[a];
+                }
+            }
 
-                    if (zArray[a] < lowestPointZ) {
-                        lowestPointZ = zArray[a];
-                        lowestPointIndex = a;
+            updateProgress("Indexing points:", 0);
+            pointsIndex = new FixedRadiusIndex(x, y, numPoints, searchDist);
+            final int numCellRows = pointsIndex.getNumberOfCellRows();
+
+            // calculate the maximum elevation drop to a neighbour for each point
+            final double weightThreshold = searchDist * Math.tan(Math.toRadians(65.0));
+            oldProgress = -1;
+            boolean completed = RowBands.process(numCellRows, new RowBands.Task<Object>() {
+                @Override
+                public Object process(int startRow, int endRow) {
+                    MinimumZ minimum = new MinimumZ();
+                    int end = pointsIndex.getRowStart(endRow);
+                    for (int k = pointsIndex.getRowStart(startRow); k < end; k++) {
+                        int i = pointsIndex.getSortedIndex(k);
+                        minimum.self = i;
+                        minimum.minZ = z[i];
+                        pointsIndex.neighboursWithinRange(x[i], y[i], minimum);
+                        maxDownwardAngle[i] = z[i] - minimum.minZ;
+                        if (maxDownwardAngle[i] > weightThreshold) {
+                            w[i] = 0;
+                        } else {
+                            w[i] = 1 - maxDownwardAngle[i] / weightThreshold;
+                        }
                     }
-
-                    progress = (int) (100f * (a + 1) / numPoints);
+                    return null;
+                }
+            }, new RowBands.Consumer<Object>() {
+                @Override
+                public boolean consume(int startRow, int endRow, Object result) {
+                    progress = (int) (100f * endRow / numCellRows);
                     if (progress != oldProgress) {
                         oldProgress = progress;
-                        updateProgress("Reading point data:", progress);
-                        if (cancelOp) {
-                            cancelOperation();
-                            return;
-                        }
+                        updateProgress("Calculating elev. diff.:", progress);
                     }
+                    return !cancelOp;
                 }
+            });
+            if (!completed) {
+                cancelOperation();
+                return;
             }
 
-            // calculate the maximum downward angle for each point
-            threshold = searchDist * Math.tan(Math.toRadians(65.0));
-            
-            for (a = 0; a < numPoints; a++) {
-                z = data[a].z;
-                entry = new double[]{data[a].x, data[a].y};
-                List<KdTree.Entry<Integer>> results = pointsTree.neighborsWithinRange(entry, searchDist);
-                double minSlope = z; //Double.POSITIVE_INFINITY;
-                for (int i = 0; i < results.size(); i++) {
-                    int pointNum = results.get(i).value;
-                    if (pointNum != a) {
-                        if (data[pointNum].z < minSlope) {
-                            minSlope = data[pointNum].z;
-                        }
-//                        double dist = Math.sqrt(results.get(i).distance);
-//                        double slope = (data[pointNum].z - z) / dist;
-//                        if (slope < minSlope) {
-//                            minSlope = slope;
-//                        }
-                    }
-                }
-                data[a].maxDownwardAngle = (z - minSlope); //Math.toDegrees(Math.atan(minSlope));
-                
-                if (data[a].maxDownwardAngle > threshold) {
-                    data[a].w = 0;
-                } else {
-                    data[a].w = 1 - data[a].maxDownwardAngle / threshold;
+            // Perform the segmentation. Each band of cell rows is region-grown
+            // independently and the segments that meet at the seams between
+            // neighbouring bands are then merged in band order.
+            labelParents = new int[1024];
+            numLabels = 0;
+            oldProgress = -1;
+            completed = RowBands.process(numCellRows, new RowBands.Task<int[]>() {
+                @Override
+                public int[] process(int startRow, int endRow) {
+                    return growSegments(startRow, endRow);
                 }
-                
-                progress = (int) (100f * a / numPoints);
-                if (progress != oldProgress) {
-                    oldProgress = progress;
-                    updateProgress("Calculating elev. diff.:", progress);
-                    if (cancelOp) {
-                        cancelOperation();
-                        return;
+            }, new RowBands.Consumer<int[]>() {
+                @Override
+                public boolean consume(int startRow, int endRow, int[] seams) {
+                    mergeSegments(startRow, endRow, seams);
+                    progress = (int) (100f * endRow / numCellRows);
+                    if (progress != oldProgress) {
+                        oldProgress = progress;
+                        updateProgress("Segmenting points:", progress);
                     }
+                    return !cancelOp;
                 }
+            });
+            if (!completed) {
+                cancelOperation();
+                return;
             }
 
-//            // calculate the weight value for the point
-//            for (a = 0; a < numPoints; a++) {
-//                z = data[a].maxDownwardAngle;
-//                if (data[a].maxDownwardAngle > 0) {
-//                    x = data[a].x;
-//                    y = data[a].y;
-//                    entry = new double[]{x, y};
-//                    List<KdTree.Entry<Integer>> results = pointsTree.neighborsWithinRange(entry, searchDist);
-//                    double sum = 0;
-//                    for (int i = 0; i < results.size(); i++) {
-//                        int pointNum = results.get(i).value;
-//                        double dist =((data[pointNum].x - x) * (data[pointNum].x - x) + (data[pointNum].y - y) * (data[pointNum].y - y) + data[pointNum].maxDownwardAngle * data[pointNum].maxDownwardAngle);
-//                        sum += 1 / dist;
-//                    }
-//                    double w = (1 / (data[a].maxDownwardAngle * data[a].maxDownwardAngle)) / sum;
-//                    data[a].w = w; //(1 / (data[a].maxDownwardAngle * data[a].maxDownwardAngle)) / sum;
-//                } else {
-//                    data[a].w = 1.0;
-//                }
-//
-//                progress = (int) (100f * a / numPoints);
-//                if (progress != oldProgress) {
-//                    oldProgress = progress;
-//                    updateProgress("Calculating weights:", progress);
-//                    if (cancelOp) {
-//                        cancelOperation();
-//                        return;
-//                    }
-//                }
-//            }
-            
-            
-            
-            
+            // number the segments in the order of their first point
+            int[] classOfLabel = new int[numLabels + 1];
+            int numClasses = 0;
+            for (a = 0; a < numPoints; a++) {
+                int root = findLabel(classValue[a]);
+                if (classOfLabel[root] == 0) {
+                    numClasses++;
+                    classOfLabel[root] = numClasses;
+                }
+                classValue[a] = classOfLabel[root];
+            }
 
-//            // perform the segmentation
-//            int currentClass = 0;
-//
-////            long oldNumClassifiedPoints = 0;
-////            List<Long> histo = new ArrayList<>();
-//            do {
-//                // find the lowest unclassified point
-//                int startingPoint = -1;
-//                lowestPointZ = Double.POSITIVE_INFINITY;
-//                for (a = 0; a < numPoints; a++) {
-//                    if (data[a].classValue == -1 && data[a].z < lowestPointZ) {
-//                        lowestPointZ = data[a].z;
-//                        startingPoint = a;
-////                        currentClass++;
-////                        break;
-//                    }
-//                }
-//                if (startingPoint == -1) {
-//                    break;
-//                }
-//
-//                currentClass++;
-//
-//                List<Integer> seeds = new ArrayList<>();
-//                seeds.add(startingPoint);
-//                boolean flag = false;
-//
-//                do {
-//                    flag = false;
-//                    for (Integer s : seeds) {
-//                        if (!done.getValue(s)) {
-//                            data[s].setClassValue(currentClass);
-//                            scanNeighbours(s);
-//                        }
-//                    }
-//                    seeds.clear();
-//                    if (seedPoints.size() > 0) {
-//                        flag = true;
-//                        seedPoints.stream().forEach((s) -> {
-//                            if (!done.getValue(s)) {
-//                                seeds.add(s);
-//                            }
-//                        });
-//                        seedPoints.clear();
-//                    }
-//
-//                    startingPoint = -1;
-////                    progress = (int) (100f * numClassifiedPoints / numPoints);
-////                    if (progress != oldProgress) {
-////                        oldProgress = progress;
-////                        updateProgress(progress);
-////                        if (cancelOp) {
-////                            cancelOperation();
-////                            return;
-////                        }
-////                    }
-//                } while (flag);
-////                histo.add(numClassifiedPoints - oldNumClassifiedPoints);
-////                oldNumClassifiedPoints = numClassifiedPoints;
-//            } while (numClassifiedPoints < numPoints);
-//            int classVal = 1;
-//            for (Long val : histo) {
-//                System.out.println("Class " + String.valueOf(classVal) + ": " + String.valueOf(val));
-//            }
             // output
             DBFField fields[] = new DBFField[5];
 
@@ -480,40 +386,33 @@ public class LiDAR_segmentation implements WhiteboxPlugin {
             fields[4].setFieldLength(8);
             fields[4].setDecimalCount(4);
 
-            File outFile = new File(outputFile);
-            if (outFile.exists()) {
-                outFile.delete();
-            }
-            ShapeFile output = new ShapeFile(outputFile, ShapeType.POINT, fields);
+            ShapeFileWriter output = new ShapeFileWriter(outputFile, ShapeType.POINT, fields);
 
             for (a = 0; a < numPoints; a++) {
-                //if (data[a].classValue > -1) {
-                whitebox.geospatialfiles.shapefile.Point wbGeometry = new whitebox.geospatialfiles.shapefile.Point(data[a].x, data[a].y);
+                whitebox.geospatialfiles.shapefile.Point wbGeometry = new whitebox.geospatialfiles.shapefile.Point(x[a], y[a]);
 
                 Object[] rowData = new Object[5];
-                rowData[0] = data[a].z;
-                rowData[1] = (double) data[a].intensity;
-                rowData[2] = (double) data[a].classValue;
-                rowData[3] = data[a].maxDownwardAngle;
-                rowData[4] = data[a].w;
+                rowData[0] = z[a];
+                rowData[1] = (double) intensity[a];
+                rowData[2] = (double) classValue[a];
+                rowData[3] = maxDownwardAngle[a];
+                rowData[4] = w[a];
 
                 output.addRecord(wbGeometry, rowData);
-                //}
 
                 progress = (int) (100f * (a + 1) / numPoints);
                 if (progress != oldProgress) {
                     oldProgress = progress;
                     updateProgress("Outputting point data:", progress);
                     if (cancelOp) {
+                        output.close();
                         cancelOperation();
                         return;
                     }
                 }
             }
 
-            output.write();
-
-            System.out.println("Done!");
+            output.close();
 
         } catch (OutOfMemoryError oe) {
             myHost.showFeedback("An out-of-memory error has occurred during operation.");
@@ -528,86 +427,154 @@ public class LiDAR_segmentation implements WhiteboxPlugin {
         }
     }
 
-    private long depth = 0;
-    private final long maxDepth = 1000;
-    private final List<Integer> seedPoints = new ArrayList<>();
+    private void allocatePoints(int n) {
+        x = new double[n];
+        y = new double[n];
+        z = new double[n];
+        intensity = new int[n];
+        classValue = new int[n];
+        maxDownwardAngle = new double[n];
+        w = new double[n];
+    }
 
-    private void scanNeighbours(int refPointNum) {
-        depth++;
-        if (depth > maxDepth) {
-            if (seedPoints.size() < 80000) {
-                seedPoints.add(refPointNum);
+    /*
+     * Finds the lowest neighbour of a point.
+     */
+    private class MinimumZ implements FixedRadiusIndex.Visitor {
+
+        int self;
+        double minZ;
+
+        @Override
+        public void visit(int index, double sqrDist) {
+            if (index != self && z[index] < minZ) {
+                minZ = z[index];
             }
-            depth--;
-            return;
         }
+    }
 
-        if (done.getValue(refPointNum)) {
-            depth--;
-            return;
-        }
+    /*
+     * Two neighbouring points belong to the same segment when the slope
+     * between them is no steeper than the threshold.
+     */
+    private boolean isConnected(int i, int j, double sqrDist) {
+        return Math.abs(z[i] - z[j]) <= slopeThreshold * Math.sqrt(sqrDist);
+    }
 
-        int classValue = data[refPointNum].classValue;
-
-        double[] entry = new double[]{data[refPointNum].x, data[refPointNum].y}; //, data[refPointNum].z};
-        List<KdTree.Entry<Integer>> results = pointsTree.neighborsWithinRange(entry, searchDist);
-        for (int i = 0; i < results.size(); i++) {
-            int pointNum = results.get(i).value;
-            if (pointNum != data[refPointNum].pointNum) {
-                if (data[pointNum].classValue == -1) {
-                    double dist = Math.sqrt(results.get(i).distance);
-                    //if (Math.abs(data[pointNum].z - data[refPointNum].z) / dist <= threshold) {
-                    //if (Math.abs(data[pointNum].z - data[refPointNum].z) <= threshold) {
-                    if (Math.abs(data[pointNum].maxDownwardAngle - data[refPointNum].maxDownwardAngle) <= threshold) {
-                        data[pointNum].setClassValue(classValue);
-                        scanNeighbours(pointNum);
-                    }
-                }
+    /*
+     * Labels the points in a band of cell rows with segment numbers starting
+     * at 1, considering only the links between points within the band. Links
+     * to points in the previous band are returned as pairs of point indices,
+     * preceded by the number of segments in the band.
+     */
+    private int[] growSegments(int startRow, int endRow) {
+        SegmentGrower grower = new SegmentGrower(startRow, endRow);
+        int numSegments = 0;
+        int end = pointsIndex.getRowStart(endRow);
+        for (int k = pointsIndex.getRowStart(startRow); k < end; k++) {
+            int seed = pointsIndex.getSortedIndex(k);
+            if (classValue[seed] != 0) {
+                continue;
+            }
+            numSegments++;
+            classValue[seed] = numSegments;
+            grower.push(seed);
+            while (grower.stackSize > 0) {
+                grower.current = grower.stack[--grower.stackSize];
+                pointsIndex.neighboursWithinRange(x[grower.current], y[grower.current], grower);
             }
         }
-        done.setValue(refPointNum, true);
-        depth--;
+        int[] ret = new int[1 + grower.numSeamValues];
+        ret[0] = numSegments;
+        System.arraycopy(grower.seams, 0, ret, 1, grower.numSeamValues);
+        return ret;
     }
 
-    int progress = -1;
-    int oldProgress = -1;
-    int numPoints = 0;
+    private class SegmentGrower implements FixedRadiusIndex.Visitor {
 
-    class LidarData {
-
-        double x, y, z;
-        int pointNum;
-        int classValue = -1;
-        int intensity;
-        double maxDownwardAngle = Double.POSITIVE_INFINITY;
-        double w = 0;
-
-        public LidarData(double x, double y, double z, int intensity, int pointNum) {
-            this.x = x;
-            this.y = y;
-            this.z = z;
-            this.intensity = intensity;
-            this.pointNum = pointNum;
+        final int startRow;
+        final int endRow;
+        int current;
+        int[] stack = new int[256];
+        int stackSize = 0;
+        int[] seams = new int[256];
+        int numSeamValues = 0;
+
+        SegmentGrower(int startRow, int endRow) {
+            this.startRow = startRow;
+            this.endRow = endRow;
         }
 
-        public void setClassValue(int value) {
-            if (classValue != value) {
-                this.classValue = value;
-                numClassifiedPoints++;
+        void push(int index) {
+            if (stackSize == stack.length) {
+                stack = Arrays.copyOf(stack, 2 * stackSize);
+            }
+            stack[stackSize++] = index;
+        }
 
-                progress = (int) (100f * numClassifiedPoints / numPoints);
-                if (progress != oldProgress) {
-                    oldProgress = progress;
-                    updateProgress(progress);
-                    if (cancelOp) {
-                        cancelOperation();
-                        return;
-                    }
+        @Override
+        public void visit(int index, double sqrDist) {
+            int row = pointsIndex.getCellRow(index);
+            if (row >= startRow && row < endRow) {
+                if (classValue[index] == 0 && isConnected(current, index, sqrDist)) {
+                    classValue[index] = classValue[current];
+                    push(index);
+                }
+            } else if (row == startRow - 1 && isConnected(current, index, sqrDist)) {
+                if (numSeamValues + 2 > seams.length) {
+                    seams = Arrays.copyOf(seams, 2 * seams.length);
                 }
+                seams[numSeamValues++] = current;
+                seams[numSeamValues++] = index;
             }
         }
     }
 
+    /*
+     * Converts the segment numbers of a band to global labels and merges
+     * the segments that are linked across the seam with the previous band.
+     * Called in band order on a single thread.
+     */
+    private void mergeSegments(int startRow, int endRow, int[] seams) {
+        int base = numLabels;
+        numLabels += seams[0];
+        if (numLabels + 1 > labelParents.length) {
+            labelParents = Arrays.copyOf(labelParents, Math.max(numLabels + 1, 2 * labelParents.length));
+        }
+        for (int label = base + 1; label <= numLabels; label++) {
+            labelParents[label] = label;
+        }
+        int end = pointsIndex.getRowStart(endRow);
+        for (int k = pointsIndex.getRowStart(startRow); k < end; k++) {
+            classValue[pointsIndex.getSortedIndex(k)] += base;
+        }
+        for (int s = 1; s < seams.length; s += 2) {
+            int root1 = findLabel(classValue[seams[s]]);
+            int root2 = findLabel(classValue[seams[s + 1]]);
+            if (root1 != root2) {
+                // keep the lower label as the root
+                labelParents[Math.max(root1, root2)] = Math.min(root1, root2);
+            }
+        }
+    }
+
+    private int findLabel(int label) {
+        int root = label;
+        while (labelParents[root] != root) {
+            root = labelParents[root];
+        }
+        while (labelParents[label] != root) {
+            int next = labelParents[label];
+            labelParents[label] = root;
+            label = next;
+        }
+        return root;
+    }
+
+    int progress = -1;
+    int oldProgress = -1;
+    int numPoints = 0;
+
     //this is only used for debugging the tool
     public static void main(String[] args) {
         LiDAR_segmentation seg = new LiDAR_segmentation();
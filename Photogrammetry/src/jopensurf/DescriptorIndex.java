@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jopensurf;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A randomized k-d forest over the descriptors of a set of interest points,
+ * used for approximate nearest-neighbour matching (Silpa-Anan and Hartley,
+ * 2008; Muja and Lowe, 2009). A single k-d tree performs poorly with 64
+ * dimensional SURF descriptors because the search must visit a large fraction
+ * of the leaves to be exact. Instead, several trees are built, each splitting
+ * on a dimension chosen at random from those with the greatest variance, and
+ * the trees are searched together in best-bin-first order until a fixed number
+ * of descriptors has been checked. The descriptors are held in a single flat
+ * array.
+ * <p>
+ * The index is read-only once built. Searches are carried out by a Searcher,
+ * which holds the working memory for a query; each thread should use its own.
+ *
+ * @author johnlindsay
+ */
+public class DescriptorIndex {
+
+    private static final int MAX_LEAF_SIZE = 8;
+    private static final int NUM_CANDIDATE_DIMS = 5;
+    private static final int VARIANCE_SAMPLE_SIZE = 100;
+    private final SURFInterestPoint[] points;
+    private final float[] data;
+    private final int dims;
+    private final int n;
+    private final Tree[] trees;
+
+    /**
+     * @param points The interest points, which must have descriptors.
+     * @param numTrees The number of randomized trees. With one tree and an
+     * unlimited number of checks the search is exact.
+     * @param seed Seed for the random choice of split dimensions.
+     */
+    public DescriptorIndex(List<SURFInterestPoint> points, int numTrees, long seed) {
+        n = points.size();
+        this.points = points.toArray(new SURFInterestPoint[n]);
+        dims = n > 0 ? this.points[0].getDescriptor().length : 0;
+        data = new float[n * dims];
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(this.points[i].getDescriptor(), 0, data, i * dims, dims);
+        }
+        Random rand = new Random(seed);
+        trees = new Tree[Math.max(1, numTrees)];
+        for (int t = 0; t < trees.length; t++) {
+            trees[t] = new Tree(rand);
+        }
+    }
+
+    public int size() {
+        return n;
+    }
+
+    public SURFInterestPoint getPoint(int index) {
+        return points[index];
+    }
+
+    /**
+     * Creates a new searcher.
+     *
+     * @param maxChecks The maximum number of descriptors that are compared
+     * during a search; zero or less for an exact search.
+     * @return a new Searcher.
+     */
+    public Searcher newSearcher(int maxChecks) {
+        return new Searcher(maxChecks);
+    }
+
+    private float squaredDistance(float[] query, int index) {
+        int offset = index * dims;
+        float sum = 0;
+        for (int d = 0; d < dims; d++) {
+            float diff = query[d] - data[offset + d];
+            sum += diff * diff;
+        }
+        return sum;
+    }
+
+    /*
+     * The nodes of a tree are stored in parallel arrays. Leaf nodes have a
+     * negative left child and refer to a range of the permuted point indices.
+     */
+    private class Tree {
+
+        int[] perm;
+        int[] splitDim;
+        float[] splitVal;
+        int[] left;
+        int[] right;
+        int[] start;
+        int[] end;
+        int numNodes = 0;
+
+        Tree(Random rand) {
+            perm = new int[n];
+            for (int i = 0; i < n; i++) {
+                perm[i] = i;
+            }
+            int capacity = Math.max(1, 2 * n / MAX_LEAF_SIZE + 2);
+            splitDim = new int[capacity];
+            splitVal = new float[capacity];
+            left = new int[capacity];
+            right = new int[capacity];
+            start = new int[capacity];
+            end = new int[capacity];
+            build(0, n, rand);
+        }
+
+        private int newNode() {
+            if (numNodes == left.length) {
+                int capacity = left.length * 2;
+                splitDim = Arrays.copyOf(splitDim, capacity);
+                splitVal = Arrays.copyOf(splitVal, capacity);
+                left = Arrays.copyOf(left, capacity);
+                right = Arrays.copyOf(right, capacity);
+                start = Arrays.copyOf(start, capacity);
+                end = Arrays.copyOf(end, capacity);
+            }
+            return numNodes++;
+        }
+
+        private int build(int lo, int hi, Random rand) {
+            int node = newNode();
+            start[node] = lo;
+            end[node] = hi;
+            left[node] = -1;
+            if (hi - lo <= MAX_LEAF_SIZE) {
+                return node;
+            }
+
+            // estimate the mean and variance of each dimension from a sample
+            int step = Math.max(1, (hi - lo) / VARIANCE_SAMPLE_SIZE);
+            double[] mean = new double[dims];
+            double[] var = new double[dims];
+            int count = 0;
+            for (int i = lo; i < hi; i += step) {
+                int offset = perm[i] * dims;
+                count++;
+                for (int d = 0; d < dims; d++) {
+                    double delta = data[offset + d] - mean[d];
+                    mean[d] += delta / count;
+                    var[d] += delta * (data[offset + d] - mean[d]);
+                }
+            }
+
+            // pick one of the dimensions of greatest variance at random
+            int numCandidates = Math.min(NUM_CANDIDATE_DIMS, dims);
+            int[] candidates = new int[numCandidates];
+            Arrays.fill(candidates, -1);
+            for (int d = 0; d < dims; d++) {
+                for (int j = 0; j < numCandidates; j++) {
+                    if (candidates[j] < 0 || var[d] > var[candidates[j]]) {
+                        for (int k = numCandidates - 1; k > j; k--) {
+                            candidates[k] = candidates[k - 1];
+                        }
+                        candidates[j] = d;
+                        break;
+                    }
+                }
+            }
+            int dim = candidates[rand.nextInt(numCandidates)];
+            float val = (float) mean[dim];
+
+            // partition the points about the mean
+            int i = lo;
+            int j = hi - 1;
+            while (i <= j) {
+                if (data[perm[i] * dims + dim] < val) {
+                    i++;
+                } else {
+                    int tmp = perm[i];
+                    perm[i] = perm[j];
+                    perm[j] = tmp;
+                    j--;
+                }
+            }
+            if (i == lo || i == hi) {
+                // the points cannot be separated on this dimension
+                return node;
+            }
+
+            splitDim[node] = dim;
+            splitVal[node] = val;
+            int l = build(lo, i, rand);
+            int r = build(i, hi, rand);
+            left[node] = l;
+            right[node] = r;
+            return node;
+        }
+    }
+
+    /**
+     * Finds the nearest and second nearest descriptors to a query. The
+     * distances are Euclidean.
+     */
+    public class Searcher {
+
+        private final int maxChecks;
+        private final int[] visited;
+        private int stamp = 0;
+        // binary min-heap of unexplored branches
+        private float[] heapDist = new float[64];
+        private int[] heapTree = new int[64];
+        private int[] heapNode = new int[64];
+        private int heapSize;
+        private int nearest;
+        private int secondNearest;
+        private float nearestDist;
+        private float secondNearestDist;
+        private int checks;
+
+        private Searcher(int maxChecks) {
+            this.maxChecks = maxChecks > 0 ? maxChecks : Integer.MAX_VALUE;
+            visited = new int[n];
+        }
+
+        /**
+         * Searches the index.
+         *
+         * @param query The query descriptor.
+         * @return the index of the nearest point, or -1 if the index is empty.
+         */
+        public int search(float[] query) {
+            stamp++;
+            if (stamp == Integer.MAX_VALUE) {
+                Arrays.fill(visited, 0);
+                stamp = 1;
+            }
+            nearest = -1;
+            secondNearest = -1;
+            nearestDist = Float.POSITIVE_INFINITY;
+            secondNearestDist = Float.POSITIVE_INFINITY;
+            checks = 0;
+            heapSize = 0;
+            if (n == 0) {
+                return -1;
+            }
+            for (int t = 0; t < trees.length; t++) {
+                descend(query, t, 0);
+            }
+            while (heapSize > 0 && checks < maxChecks) {
+                float bound = heapDist[0];
+                int t = heapTree[0];
+                int node = heapNode[0];
+                pop();
+                if (bound >= secondNearestDist) {
+                    break;
+                }
+                descend(query, t, node);
+            }
+            return nearest;
+        }
+
+        private void descend(float[] query, int t, int node) {
+            Tree tree = trees[t];
+            while (tree.left[node] >= 0) {
+                float diff = query[tree.splitDim[node]] - tree.splitVal[node];
+                int near, far;
+                if (diff < 0) {
+                    near = tree.left[node];
+                    far = tree.right[node];
+                } else {
+                    near = tree.right[node];
+                    far = tree.left[node];
+                }
+                float bound = diff * diff;
+                if (bound < secondNearestDist) {
+                    push(bound, t, far);
+                }
+                node = near;
+            }
+            for (int i = tree.start[node]; i < tree.end[node]; i++) {
+                int p = tree.perm[i];
+                if (visited[p] == stamp) {
+                    continue;
+                }
+                visited[p] = stamp;
+                checks++;
+                float dist = squaredDistance(query, p);
+                if (dist < nearestDist) {
+                    secondNearestDist = nearestDist;
+                    secondNearest = nearest;
+                    nearestDist = dist;
+                    nearest = p;
+                } else if (dist < secondNearestDist) {
+                    secondNearestDist = dist;
+                    secondNearest = p;
+                }
+            }
+        }
+
+        private void push(float dist, int t, int node) {
+            if (heapSize == heapDist.length) {
+                heapDist = Arrays.copyOf(heapDist, heapSize * 2);
+                heapTree = Arrays.copyOf(heapTree, heapSize * 2);
+                heapNode = Arrays.copyOf(heapNode, heapSize * 2);
+            }
+            int i = heapSize++;
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (heapDist[parent] <= dist) {
+                    break;
+                }
+                heapDist[i] = heapDist[parent];
+                heapTree[i] = heapTree[parent];
+                heapNode[i] = heapNode[parent];
+                i = parent;
+            }
+            heapDist[i] = dist;
+            heapTree[i] = t;
+            heapNode[i] = node;
+        }
+
+        private void pop() {
+            heapSize--;
+            if (heapSize == 0) {
+                return;
+            }
+            float dist = heapDist[heapSize];
+            int t = heapTree[heapSize];
+            int node = heapNode[heapSize];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= heapSize) {
+                    break;
+                }
+                if (child + 1 < heapSize && heapDist[child + 1] < heapDist[child]) {
+                    child++;
+                }
+                if (heapDist[child] >= dist) {
+                    break;
+                }
+                heapDist[i] = heapDist[child];
+                heapTree[i] = heapTree[child];
+                heapNode[i] = heapNode[child];
+                i = child;
+            }
+            heapDist[i] = dist;
+            heapTree[i] = t;
+            heapNode[i] = node;
+        }
+
+        public int getNearest() {
+            return nearest;
+        }
+
+        public int getSecondNearest() {
+            return secondNearest;
+        }
+
+        public double getNearestDistance() {
+            return Math.sqrt(nearestDist);
+        }
+
+        public double getSecondNearestDistance() {
+            return Math.sqrt(secondNearestDist);
+        }
+    }
+}
@@ -35,6 +35,7 @@ package jopensurf;
 
 import java.io.File;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -44,6 +45,8 @@ import org.apache.commons.math3.linear.Array2DRowRealMatrix;
 import org.apache.commons.math3.linear.DecompositionSolver;
 import org.apache.commons.math3.linear.LUDecomposition;
 import org.apache.commons.math3.linear.RealMatrix;
+import whitebox.parallel.LoopBody;
+import whitebox.parallel.Parallel;
 
 public class FastHessian implements Serializable {
 
@@ -75,24 +78,39 @@ public class FastHessian implements Serializable {
             mInterestPoints = new LinkedList<>();
             buildResponseMap();
 
-            ResponseLayer b, m, t;
             for (int o = 0; o < mOctaves; o++) {
                 for (int i = 0; i <= 1; i++) {
-                    b = mLayers.get(filter_map[o][i]);
-                    m = mLayers.get(filter_map[o][i + 1]);
-                    t = mLayers.get(filter_map[o][i + 2]);
+                    final ResponseLayer b = mLayers.get(filter_map[o][i]);
+                    final ResponseLayer m = mLayers.get(filter_map[o][i + 1]);
+                    final ResponseLayer t = mLayers.get(filter_map[o][i + 2]);
 
                     // loop over middle response layer at density of the most
-                    // sparse layer (always top), to find maxima across scale and space
+                    // sparse layer (always top), to find maxima across scale and space.
+                    // Rows are searched in parallel and their points gathered
+                    // in row order, so the result doesn't depend on scheduling.
+                    final List<List<SURFInterestPoint>> rowPoints = new ArrayList<>(t.getHeight());
                     for (int r = 0; r < t.getHeight(); r++) {
-                        for (int c = 0; c < t.getWidth(); c++) {
-                            if (isExtremum(r, c, t, m, b)) {
-                                //System.out.println("r = " + r + ", c = " + c);
-                                SURFInterestPoint point = interpolateExtremum(r, c, t, m, b);
-                                if (point != null) {
-                                    mInterestPoints.add(point);
+                        rowPoints.add(null);
+                    }
+                    Parallel.For(0, t.getHeight(), 1, new LoopBody<Integer>() {
+                        @Override
+                        public void run(Integer r) {
+                            List<SURFInterestPoint> points = new ArrayList<>();
+                            for (int c = 0; c < t.getWidth(); c++) {
+                                if (isExtremum(r, c, t, m, b)) {
+                                    //System.out.println("r = " + r + ", c = " + c);
+                                    SURFInterestPoint point = interpolateExtremum(r, c, t, m, b);
+                                    if (point != null) {
+                                        points.add(point);
+                                    }
                                 }
                             }
+                            rowPoints.set(r, points);
+                        }
+                    });
+                    for (List<SURFInterestPoint> points : rowPoints) {
+                        if (points != null) {
+                            mInterestPoints.addAll(points);
                         }
                     }
                 }
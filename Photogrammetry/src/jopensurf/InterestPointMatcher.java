@@ -16,73 +16,90 @@
  */
 package jopensurf;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Callable;
 
 /**
+ * Matches a block of interest points against the points of a second image.
+ * The two nearest neighbours of each point's descriptor are found among the
+ * comparison points with the same Laplacian sign, using a DescriptorIndex. A
+ * match is accepted if it passes the distance ratio test, i.e. the nearest
+ * neighbour is sufficiently closer than the second nearest, and if it is
+ * symmetrical, i.e. the point is also the nearest neighbour of its match.
  *
  * @author johnlindsay
  */
-public class InterestPointMatcher implements Callable<InterestPointPair> {
+public class InterestPointMatcher implements Callable<List<InterestPointPair>> {
 
-    private SURFInterestPoint mPoint;
     private List<SURFInterestPoint> mPoints;
-    private List<SURFInterestPoint> mComparisonPoints;
+    private int mStart;
+    private int mEnd;
+    private DescriptorIndex[] mPointIndices;
+    private DescriptorIndex[] mComparisonIndices;
     private double mMatchThreshold;
+    private int mMaxChecks;
 
-    public InterestPointMatcher(int pointNum, List<SURFInterestPoint> points,
-            List<SURFInterestPoint> comparisonPoints,
-            double matchThreshold) {
-        mPoint = points.get(pointNum);
+    /**
+     * @param points The points to match.
+     * @param start The first point in the block (inclusive).
+     * @param end The last point in the block (exclusive).
+     * @param pointIndices Indices of the points, by Laplacian sign.
+     * @param comparisonIndices Indices of the comparison points, by Laplacian
+     * sign.
+     * @param matchThreshold The maximum ratio of the nearest to the second
+     * nearest neighbour distance.
+     * @param maxChecks The maximum number of descriptors compared during each
+     * search; zero or less for an exact search.
+     */
+    public InterestPointMatcher(List<SURFInterestPoint> points, int start, int end,
+            DescriptorIndex[] pointIndices, DescriptorIndex[] comparisonIndices,
+            double matchThreshold, int maxChecks) {
         mPoints = points;
-        mComparisonPoints = comparisonPoints;
+        mStart = start;
+        mEnd = end;
+        mPointIndices = pointIndices;
+        mComparisonIndices = comparisonIndices;
         mMatchThreshold = matchThreshold;
+        mMaxChecks = maxChecks;
     }
 
     @Override
-    public InterestPointPair call() throws Exception {
-        try {
-            double smallestDistance = Float.MAX_VALUE;
-            double nextSmallestDistance = Float.MAX_VALUE;
-            SURFInterestPoint possibleMatch = null;
-            int lap = mPoint.getLaplacian();
-            for (SURFInterestPoint b : mComparisonPoints) {
-                if (b.getLaplacian() == lap) {
-                    double distance = mPoint.getDistance(b);
-                    if (distance < smallestDistance) {
-                        nextSmallestDistance = smallestDistance;
-                        smallestDistance = distance;
-                        possibleMatch = b;
-                    } else if (distance < nextSmallestDistance) {
-                        nextSmallestDistance = distance;
-                    }
-                }
+    public List<InterestPointPair> call() throws Exception {
+        List<InterestPointPair> ret = new ArrayList<>();
+        DescriptorIndex.Searcher[] searchers = new DescriptorIndex.Searcher[mComparisonIndices.length];
+        DescriptorIndex.Searcher[] symmSearchers = new DescriptorIndex.Searcher[mPointIndices.length];
+        for (int i = 0; i < searchers.length; i++) {
+            searchers[i] = mComparisonIndices[i].newSearcher(mMaxChecks);
+            symmSearchers[i] = mPointIndices[i].newSearcher(mMaxChecks);
+        }
+        for (int i = mStart; i < mEnd; i++) {
+            SURFInterestPoint point = mPoints.get(i);
+            int lap = point.getLaplacian();
+            if (point.getDescriptor() == null || lap < 0 || lap >= searchers.length) {
+                continue;
             }
+            DescriptorIndex.Searcher searcher = searchers[lap];
+            int nearest = searcher.search(point.getDescriptor());
+            if (nearest < 0 || searcher.getSecondNearest() < 0) {
+                continue;
+            }
+            double smallestDistance = searcher.getNearestDistance();
+            double nextSmallestDistance = searcher.getSecondNearestDistance();
 
             // If match has a d1:d2 ratio < mMatchThreshold points are a match
             if (smallestDistance / nextSmallestDistance <= mMatchThreshold) {
                 // is it symmetrical?
-                double smallestDistanceSymm = Float.MAX_VALUE;
-                SURFInterestPoint possibleMatchSymm = null;
-                for (SURFInterestPoint b : mPoints) {
-                    if (b.getLaplacian() == lap) {
-                        double distance = possibleMatch.getDistance(b);
-                        if (distance < smallestDistanceSymm) {
-                            smallestDistanceSymm = distance;
-                            possibleMatchSymm = b;
-                        }
-                    }
-                }
-                if (possibleMatchSymm.isEquivalentTo(mPoint)) {
+                SURFInterestPoint possibleMatch = mComparisonIndices[lap].getPoint(nearest);
+                int symm = symmSearchers[lap].search(possibleMatch.getDescriptor());
+                if (symm >= 0 && mPointIndices[lap].getPoint(symm).isEquivalentTo(point)) {
                     // you have a point with a unambiguously matched point in the 
                     // other image for which the nearest point in the first image 
                     // is the point of interest.
-                    return new InterestPointPair(mPoint, possibleMatch, smallestDistance);
+                    ret.add(new InterestPointPair(point, possibleMatch, smallestDistance));
                 }
             }
-            return null;
-        } catch (Exception e) {
-            return null;
         }
+        return ret;
     }
 }
@@ -33,6 +33,8 @@ package jopensurf;
  */
 
 import java.io.Serializable;
+import whitebox.parallel.LoopBody;
+import whitebox.parallel.Parallel;
 
 public class ResponseLayer implements Serializable {
 
@@ -56,42 +58,48 @@ public class ResponseLayer implements Serializable {
         buildResponseLayer(integralImage);
     }
 
-    private void buildResponseLayer(IntegralImage img) {
-        int b = (mFilter - 1) / 2;
-        int l = mFilter / 3;
-        int w = mFilter;
-        double inverse_area = 1D / (w * w);
-        double Dxx, Dyy, Dxy;
+    private void buildResponseLayer(final IntegralImage img) {
+        final int b = (mFilter - 1) / 2;
+        final int l = mFilter / 3;
+        final int w = mFilter;
+        final double inverse_area = 1D / (w * w);
         //System.out.println("w: " + mWidth + ", h: " + mHeight + ", step: " + mStep + ", filter: " + mFilter);
         //System.out.println("filter: " + mFilter + ", b: " + b + ", l: " + l + ", w: " + w);
         //System.out.println("inverse area = " + inverse_area);
-        for (int r, c, ar = 0, index = 0; ar < mHeight; ++ar) {
-            for (int ac = 0; ac < mWidth; ++ac, index++) {
-                r = ar * mStep;
-                c = ac * mStep;
-
-                // Compute response components
-                Dxx = ImageTransformUtils.BoxIntegral(img, r - l + 1, c - b, 2 * l - 1, w)
-                        - ImageTransformUtils.BoxIntegral(img, r - l + 1, c - l / 2, 2 * l - 1, l) * 3;
-                Dyy = ImageTransformUtils.BoxIntegral(img, r - b, c - l + 1, w, 2 * l - 1)
-                        - ImageTransformUtils.BoxIntegral(img, r - l / 2, c - l + 1, l, 2 * l - 1) * 3;
-                Dxy = +ImageTransformUtils.BoxIntegral(img, r - l, c + 1, l, l)
-                        + ImageTransformUtils.BoxIntegral(img, r + 1, c - l, l, l)
-                        - ImageTransformUtils.BoxIntegral(img, r - l, c - l, l, l)
-                        - ImageTransformUtils.BoxIntegral(img, r + 1, c + 1, l, l);
-
-                //System.out.println("dxx: " + Dxx + ", dyy: " + Dyy + ", Dxy: " + Dxy);
-
-                // Normalise the filter responses with respect to their size
-                Dxx *= inverse_area;
-                Dyy *= inverse_area;
-                Dxy *= inverse_area;
-
-                // Get the determinant of hessian response & laplacian sign
-                mResponses[ac][ar] = (Dxx * Dyy - 0.81f * Dxy * Dxy);
-                mLaplacian[ac][ar] = (char) (Dxx + Dyy >= 0 ? 1 : 0);
+        
+        // each row of responses depends only on the integral image
+        Parallel.For(0, mHeight, 1, new LoopBody<Integer>() {
+            @Override
+            public void run(Integer row) {
+                int ar = row;
+                double Dxx, Dyy, Dxy;
+                for (int r, c, ac = 0; ac < mWidth; ++ac) {
+                    r = ar * mStep;
+                    c = ac * mStep;
+
+                    // Compute response components
+                    Dxx = ImageTransformUtils.BoxIntegral(img, r - l + 1, c - b, 2 * l - 1, w)
+                            - ImageTransformUtils.BoxIntegral(img, r - l + 1, c - l / 2, 2 * l - 1, l) * 3;
+                    Dyy = ImageTransformUtils.BoxIntegral(img, r - b, c - l + 1, w, 2 * l - 1)
+                            - ImageTransformUtils.BoxIntegral(img, r - l / 2, c - l + 1, l, 2 * l - 1) * 3;
+                    Dxy = +ImageTransformUtils.BoxIntegral(img, r - l, c + 1, l, l)
+                            + ImageTransformUtils.BoxIntegral(img, r + 1, c - l, l, l)
+                            - ImageTransformUtils.BoxIntegral(img, r - l, c - l, l, l)
+                            - ImageTransformUtils.BoxIntegral(img, r + 1, c + 1, l, l);
+
+                    //System.out.println("dxx: " + Dxx + ", dyy: " + Dyy + ", Dxy: " + Dxy);
+
+                    // Normalise the filter responses with respect to their size
+                    Dxx *= inverse_area;
+                    Dyy *= inverse_area;
+                    Dxy *= inverse_area;
+
+                    // Get the determinant of hessian response & laplacian sign
+                    mResponses[ac][ar] = (Dxx * Dyy - 0.81f * Dxy * Dxy);
+                    mLaplacian[ac][ar] = (char) (Dxx + Dyy >= 0 ? 1 : 0);
+                }
             }
-        }
+        });
     }
 
     public double getResponse(int row, int col) {
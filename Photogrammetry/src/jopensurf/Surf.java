@@ -70,6 +70,8 @@ public class Surf implements Serializable {
     private static final int HESSIAN_INIT_SAMPLE = 2;
     private static final float HESSIAN_THRESHOLD = 0.0085F;
     private static final float HESSIAN_BALANCE_VALUE = 0.81F;
+    private static final int DEFAULT_NUM_TREES = 4;
+    private static final int DEFAULT_MAX_CHECKS = 256;
 //    private transient BufferedImage mOriginalImage;
     private FastHessian mHessian;
     private List<SURFInterestPoint> mFreeOrientedPoints;
@@ -366,6 +368,24 @@ public class Surf implements Serializable {
 
     public Map<SURFInterestPoint, SURFInterestPoint> getMatchingPoints(Surf other,
             double matchThreshold, boolean upright) {
+        return getMatchingPoints(other, matchThreshold, upright, DEFAULT_MAX_CHECKS);
+    }
+
+    /**
+     * Finds the interest points in this image that are unambiguously matched
+     * by a point in another image.
+     *
+     * @param other The other image.
+     * @param matchThreshold The maximum ratio of the distance to the nearest
+     * and second nearest descriptors.
+     * @param upright Whether to use upright or free-oriented points.
+     * @param maxChecks The maximum number of descriptors compared when
+     * searching for the neighbours of each point. Larger values give more
+     * accurate but slower matching; zero or less gives an exact search.
+     * @return The matching points.
+     */
+    public Map<SURFInterestPoint, SURFInterestPoint> getMatchingPoints(Surf other,
+            double matchThreshold, boolean upright, int maxChecks) {
         if (matchThreshold < 0.05) {
             matchThreshold = 0.05;
         } else if (matchThreshold > 0.99) {
@@ -377,34 +397,33 @@ public class Surf implements Serializable {
 
         final Map<SURFInterestPoint, SURFInterestPoint> matchingPoints = new HashMap<>((int) (myPoints.size() * 0.1));
 
-        /* I've parallelized the point matching. The simple linear solution was
-         * far too slow. I tried a kd tree but it also yielded poor performance 
-         * due to its high dimensionality (64). There are more performant 
-         * approximate solutions, but this is the best compromise for an exact
-         * solution.
+        /* The simple linear solution was far too slow and a single kd tree 
+         * performs poorly due to the high dimensionality (64) of the 
+         * descriptors. Instead, the descriptors of each image are held in 
+         * randomized k-d forests, one for each Laplacian sign, and the 
+         * neighbour searches are approximate unless maxChecks is zero. The 
+         * points are matched in blocks on separate threads.
          */
-
-        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-
-        ArrayList<Callable<InterestPointPair>> tasks = new ArrayList<>();
-
-//        for (SURFInterestPoint a : myPoints) {
-//            tasks.add(new InterestPointMatcher(a, otherPoints, matchThreshold));
-//        }
-
-        for (int i = 0; i < myPoints.size(); i++) {
-            tasks.add(new InterestPointMatcher(i, myPoints, otherPoints, matchThreshold));
+        int numTrees = maxChecks > 0 ? DEFAULT_NUM_TREES : 1;
+        DescriptorIndex[] myIndices = buildDescriptorIndices(myPoints, numTrees);
+        DescriptorIndex[] otherIndices = buildDescriptorIndices(otherPoints, numTrees);
+
+        int numThreads = Parallel.getPluginProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+
+        ArrayList<Callable<List<InterestPointPair>>> tasks = new ArrayList<>();
+        int numPoints = myPoints.size();
+        int blockSize = Math.max(1, (numPoints + numThreads * 4 - 1) / (numThreads * 4));
+        for (int i = 0; i < numPoints; i += blockSize) {
+            tasks.add(new InterestPointMatcher(myPoints, i, Math.min(numPoints, i + blockSize),
+                    myIndices, otherIndices, matchThreshold, maxChecks));
         }
 
-        //ArrayList<InterestPointPair> possibleMatches = new ArrayList<>();
-
         try {
-            List<Future<InterestPointPair>> futures = executor.invokeAll(tasks);
-            for (Future<InterestPointPair> fut : futures) {
-                InterestPointPair pair = fut.get();
-                if (pair != null) {
+            List<Future<List<InterestPointPair>>> futures = executor.invokeAll(tasks);
+            for (Future<List<InterestPointPair>> fut : futures) {
+                for (InterestPointPair pair : fut.get()) {
                     matchingPoints.put(pair.getPoint1(), pair.getPoint2());
-                    //possibleMatches.add(pair);
                 }
             }
         } catch (InterruptedException | ExecutionException e) {
@@ -412,18 +431,29 @@ public class Surf implements Serializable {
         } finally {
             executor.shutdown();
         }
-//        
-//        Collections.sort(possibleMatches);
-//        
-//        int maxReturnNumber = (possibleMatches.size() < 100) ? possibleMatches.size() : 100;
-//        for (int i = 0; i < maxReturnNumber; i++) {
-//            InterestPointPair pair = possibleMatches.get(i);
-//            matchingPoints.put(pair.getPoint1(), pair.getPoint2());
-//        }
 
         return matchingPoints;
     }
 
+    private static DescriptorIndex[] buildDescriptorIndices(List<SURFInterestPoint> points, int numTrees) {
+        List<SURFInterestPoint> negative = new ArrayList<>();
+        List<SURFInterestPoint> positive = new ArrayList<>();
+        for (SURFInterestPoint p : points) {
+            if (p.getDescriptor() == null) {
+                continue;
+            }
+            if (p.getLaplacian() == 0) {
+                negative.add(p);
+            } else if (p.getLaplacian() == 1) {
+                positive.add(p);
+            }
+        }
+        return new DescriptorIndex[]{
+            new DescriptorIndex(negative, numTrees, 0),
+            new DescriptorIndex(positive, numTrees, 1)
+        };
+    }
+
     public String getStringRepresentation(boolean freeOriented) {
         StringBuilder buffer = new StringBuilder();
         for (SURFInterestPoint point : freeOriented ? getFreeOrientedInterestPoints() : getUprightInterestPoints()) {
@@ -20,6 +20,7 @@ import java.text.DecimalFormat;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
+import whitebox.stats.CategoricalComparison;
 
 /**
  * WhiteboxPlugin is used to define a plugin tool for Whitebox GIS.
@@ -60,7 +61,7 @@ public class CrossTabulation implements WhiteboxPlugin {
      */
     @Override
     public String getToolDescription() {
-        return "Performs a cross-tabulation on two categorical images.";
+        return "Performs a cross-tabulation on two or more categorical images.";
     }
 
     /**
@@ -185,92 +186,141 @@ public class CrossTabulation implements WhiteboxPlugin {
     public void run() {
         amIActive = true;
 
-        String inputHeader1 = null;
-        String inputHeader2 = null;
+        String inputFiles = null;
 
         if (args.length <= 0) {
             showFeedback("Plugin parameters have not been set.");
             return;
         }
 
-        inputHeader1 = args[0];
-        inputHeader2 = args[1];
+        // the images are given as a semicolon-separated list; older scripts
+        // give the two images as separate parameters
+        inputFiles = args[0];
+        if (inputFiles != null && args.length > 1 && args[1] != null
+                && !args[1].toLowerCase().equals("not specified")) {
+            inputFiles += ";" + args[1];
+        }
 
-        // check to see that the inputHeader1 and outputHeader are not null.
-        if (inputHeader1 == null || inputHeader2 == null) {
+        // check to see that the inputFiles are not null.
+        if (inputFiles == null) {
             showFeedback("One or more of the input parameters have not been set properly.");
             return;
         }
 
         try {
-            int row, col;
-            double x, y;
-            float progress = 0;
-
-            WhiteboxRaster image1 = new WhiteboxRaster(inputHeader1, "r");
-            int rows = image1.getNumberRows();
-            int cols = image1.getNumberColumns();
-            double noData1 = image1.getNoDataValue();
-            int image1Min = (int) image1.getMinimumValue();
-            int image1Max = (int) image1.getMaximumValue();
-            int image1Range = image1Max - image1Min + 1;
+            String[] imageFiles = inputFiles.split(";");
+            int numImages = imageFiles.length;
+            if (numImages < 2) {
+                showFeedback("At least two input images must be specified.");
+                return;
+            }
+            WhiteboxRaster[] images = new WhiteboxRaster[numImages];
+            for (int i = 0; i < numImages; i++) {
+                images[i] = new WhiteboxRaster(imageFiles[i], "r");
+            }
 
-            WhiteboxRaster image2 = new WhiteboxRaster(inputHeader2, "r");
-            if (rows != image2.getNumberRows() || cols != image2.getNumberColumns()) {
+            CategoricalComparison comparison;
+            try {
+                comparison = new CategoricalComparison(images);
+            } catch (IllegalArgumentException e) {
                 showFeedback("The input images must have the same dimensions (rows and columns).");
                 return;
             }
-            double noData2 = image2.getNoDataValue();
-            int image2Min = (int) image2.getMinimumValue();
-            int image2Max = (int) image2.getMaximumValue();
-            int image2Range = image2Max - image2Min + 1;
 
-            long[][] contingencyTable = new long[image1Range][image2Range];
+            // the tables of every pair of images are gathered in a single
+            // pass through the images
+            try {
+                boolean completed = comparison.calculate(new CategoricalComparison.Progress() {
+                    int oldProgress = -1;
 
-            double[] data1, data2;
-            for (row = 0; row < rows; row++) {
-                data1 = image1.getRowValues(row);
-                data2 = image2.getRowValues(row);
-                for (col = 0; col < cols; col++) {
-                    x = data1[col];
-                    y = data2[col];
-                    if (x != noData1 && y != noData2) {
-                        contingencyTable[(int)(x - image1Min)][(int)(y - image2Min)]++;
+                    @Override
+                    public boolean rowsCompleted(int completed, int total) {
+                        if (cancelOp) {
+                            return false;
+                        }
+                        int progress = (int) (100f * completed / total);
+                        if (progress != oldProgress) {
+                            updateProgress(progress);
+                            oldProgress = progress;
+                        }
+                        return true;
                     }
-                }
-                if (cancelOp) {
+                });
+                if (!completed) {
                     cancelOperation();
                     return;
                 }
-                progress = (float) (100f * row / (rows - 1));
-                updateProgress((int) progress);
+            } catch (IllegalArgumentException e) {
+                showFeedback(e.getMessage());
+                return;
+            }
+
+            for (int i = 0; i < numImages; i++) {
+                images[i].close();
             }
 
+            int numClasses = comparison.getNumberOfClasses();
             DecimalFormat df = new DecimalFormat("###,###,###,###");
-            String retstr = null;
-            retstr = "CROSS-TABULATION REPORT\n\n";
-            retstr += "Input Image 1 (X):\t\t" + image1.getShortHeaderFile() + "\n";
-            retstr += "Input Image 2 (Y):\t\t" + image2.getShortHeaderFile() + "\n\n";
+            DecimalFormat df2 = new DecimalFormat("0.000");
+            StringBuilder retstr = new StringBuilder();
+            retstr.append("CROSS-TABULATION REPORT\n");
+            for (int i = 0; i < numImages - 1; i++) {
+                for (int j = i + 1; j < numImages; j++) {
+                    retstr.append("\nInput Image 1 (X):\t\t").append(images[i].getShortHeaderFile()).append("\n");
+                    retstr.append("Input Image 2 (Y):\t\t").append(images[j].getShortHeaderFile()).append("\n\n");
 
-            String contingency = "\t\tImage 1\nImage 2";
-            for (int a = 0; a < image1Range; a++) {
-                contingency += "\t" + (a + image1Min);
-            }
-            contingency += "\n";
-            for (int b = 0; b < image2Range; b++) {
-                contingency += (b + image2Min);
-                for (int a = 0; a < image1Range; a++) {
-                    contingency += "\t" + df.format(contingencyTable[a][b]);
+                    // only the classes that occur in each image are listed
+                    retstr.append("\t\tImage 1\nImage 2");
+                    for (int a = 0; a < numClasses; a++) {
+                        if (comparison.getClassCount(i, a) > 0) {
+                            retstr.append("\t").append(comparison.getClassValue(a));
+                        }
+                    }
+                    retstr.append("\n");
+                    for (int b = 0; b < numClasses; b++) {
+                        if (comparison.getClassCount(j, b) == 0) {
+                            continue;
+                        }
+                        retstr.append(comparison.getClassValue(b));
+                        for (int a = 0; a < numClasses; a++) {
+                            if (comparison.getClassCount(i, a) > 0) {
+                                retstr.append("\t").append(df.format(comparison.getCount(i, j, a, b)));
+                            }
+                        }
+                        retstr.append("\n");
+                    }
+                    retstr.append("\nOverall Agreement:\t\t").append(df2.format(comparison.getOverallAccuracy(i, j))).append("\n");
+                    retstr.append("Kappa:\t\t\t\t").append(df2.format(comparison.getKappa(i, j))).append("\n");
                 }
-                contingency += "\n";
             }
 
-            retstr += contingency;
-            
-            returnData(retstr);
+            if (numImages > 2) {
+                // summary matrices of the pairwise agreement
+                String[] titles = {"OVERALL AGREEMENT", "KAPPA"};
+                for (int t = 0; t < 2; t++) {
+                    retstr.append("\n").append(titles[t]).append("\n");
+                    for (int j = 0; j < numImages; j++) {
+                        retstr.append("\t").append(images[j].getShortHeaderFile());
+                    }
+                    retstr.append("\n");
+                    for (int i = 0; i < numImages; i++) {
+                        retstr.append(images[i].getShortHeaderFile());
+                        for (int j = 0; j < numImages; j++) {
+                            retstr.append("\t");
+                            if (i == j) {
+                                retstr.append("-");
+                            } else if (t == 0) {
+                                retstr.append(df2.format(comparison.getOverallAccuracy(i, j)));
+                            } else {
+                                retstr.append(df2.format(comparison.getKappa(i, j)));
+                            }
+                        }
+                        retstr.append("\n");
+                    }
+                }
+            }
 
-            image1.close();
-            image2.close();
+            returnData(retstr.toString());
 
         } catch (OutOfMemoryError oe) {
             myHost.showFeedback("An out-of-memory error has occurred during operation.");
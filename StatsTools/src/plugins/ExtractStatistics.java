@@ -17,11 +17,13 @@
 package plugins;
 
 import java.text.DecimalFormat;
+import java.util.Arrays;
 import java.util.Date;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.geospatialfiles.WhiteboxRasterInfo;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
+import whitebox.stats.ZonalStatistics;
 
 /**
  * WhiteboxPlugin is used to define a plugin tool for Whitebox GIS.
@@ -186,6 +188,9 @@ public class ExtractStatistics implements WhiteboxPlugin {
         return amIActive;
     }
 
+    // the number of histogram bins per zone used to estimate the median
+    private static final int MEDIAN_BINS = 1000;
+
     @Override
     public void run() {
         amIActive = true;
@@ -193,19 +198,15 @@ public class ExtractStatistics implements WhiteboxPlugin {
         String dataImageHeader = null;
         String featureImageHeader = null;
         String outputHeader = null;
+        String csvFile = "not specified";
     	
-        WhiteboxRasterInfo dataImage;
+        WhiteboxRasterInfo[] dataImages;
         WhiteboxRasterInfo featureImage;
         WhiteboxRaster output;
         int cols, rows;
-        double imageTotal = 0;
-        long imageN = 0;
-        double imageAverage = 0;
-        double imageTotalDeviation = 0;
-        double stdDeviation = 0;
         float progress = 0;
         int col, row;
-        int i;
+        int i, v, z;
         String statType = null;
         boolean textOutput = false;
                 
@@ -225,6 +226,8 @@ public class ExtractStatistics implements WhiteboxPlugin {
                 statType = args[i].toLowerCase();
             } else if (i == 4) {
                 textOutput = Boolean.parseBoolean(args[i]);
+            } else if (i == 5) {
+                csvFile = args[i];
             }
         }
 
@@ -233,222 +236,110 @@ public class ExtractStatistics implements WhiteboxPlugin {
             showFeedback("One or more of the input parameters have not been set properly.");
             return;
         }
+        
+        if (!Arrays.asList("average", "minimum", "maximum", "range", 
+                "standard deviation", "total", "median").contains(statType)) {
+            showFeedback("Specified statistic type not recognized");
+            return;
+        }
 
         try {
-            dataImage = new WhiteboxRasterInfo(dataImageHeader);
-            rows = dataImage.getNumberRows();
-            cols = dataImage.getNumberColumns();
-            double noData = dataImage.getNoDataValue();
+            // several data images may be summarised at once
+            String[] dataFiles = dataImageHeader.split(";");
+            int numDataImages = dataFiles.length;
+            dataImages = new WhiteboxRasterInfo[numDataImages];
+            String[] dataImageShortNames = new String[numDataImages];
+            for (v = 0; v < numDataImages; v++) {
+                dataImages[v] = new WhiteboxRasterInfo(dataFiles[v]);
+                dataImageShortNames[v] = dataImages[v].getShortHeaderFile();
+            }
+            rows = dataImages[0].getNumberRows();
+            cols = dataImages[0].getNumberColumns();
 
             featureImage = new WhiteboxRasterInfo(featureImageHeader);
-            if (featureImage.getNumberColumns() != cols || 
-                    featureImage.getNumberRows() != rows) {
-                showFeedback("Input images must have the same dimensions (i.e. rows and columns).");
-                return;
-            }
             double featureNoData = featureImage.getNoDataValue();
-            
             String featureImageShortName = featureImage.getShortHeaderFile();
-            String dataImageShortName = dataImage.getShortHeaderFile();
             
-            //see how many features there are
-            int numFeatures = 0;
-            double[] featureData;
-            double[] data;
-            int minFeatureID = 99999999;
-            int maxFeatureID = -99999999;
-            for (row = 0; row < rows; row++) {
-                featureData = featureImage.getRowValues(row);
-                for (col = 0; col < cols; col++) {
-                    if (featureData[col] != featureNoData) {
-                        //make sure that the feature ID is an integer value
-                        if (Math.rint(featureData[col]) != featureData[col]) {
-                            showFeedback("The feature definition image should "
-                                    + "contain integer values only.");
-                            return;
-                        }
-                        if ((int)featureData[col] < minFeatureID) { 
-                            minFeatureID = (int)featureData[col];
-                        } 
-                        if ((int)featureData[col] > maxFeatureID) { 
-                            maxFeatureID = (int)featureData[col];
-                        } 
-                    }
-                }
-                if (cancelOp) { cancelOperation(); return; }
-                progress = (float) (100f * row / (rows - 1));
-                updateProgress((int)progress);
-            }
-
-            numFeatures = maxFeatureID - minFeatureID + 1;
-            // in reality this is only the number of features if there are no 
-            // unused feature IDs between the min and max values
-
-            double[] featureTotal = new double[numFeatures];
-            long[] featureN = new long[numFeatures];
-            double[] featureAverage = new double[numFeatures];
-            double[] featureTotalDeviation = new double[numFeatures];
-            double[] featureStdDeviation = new double[numFeatures];
-            double[] featureMins = new double[numFeatures];
-            double[] featureMaxs = new double[numFeatures];
-            boolean[] featurePresent = new boolean[numFeatures];
-
-            for (i = 0; i < numFeatures; i++) {
-                featureMins[i] = 99999999;
-                featureMaxs[i] = -99999999;
+            ZonalStatistics zonalStats;
+            try {
+                zonalStats = new ZonalStatistics(featureImage, dataImages);
+            } catch (IllegalArgumentException e) {
+                showFeedback(e.getMessage());
+                return;
             }
-                    
-            updateProgress("Loop 1 of 2:", 0);
-            for (row = 0; row < rows; row++) {
-                data = dataImage.getRowValues(row);
-                featureData = featureImage.getRowValues(row);
-                for (col = 0; col < cols; col++) {
-                    if (featureData[col] != featureNoData) {
-                        i = (int) (featureData[col] - minFeatureID);
-                        featurePresent[i] = true;
-                        if (data[col] != noData) {
-                            featureTotal[i] += data[col];
-                            featureN[i]++;
-                            if (data[col] < featureMins[i]) {
-                                featureMins[i] = data[col];
-                            }
-                            if (data[col] > featureMaxs[i]) {
-                                featureMaxs[i] = data[col];
-                            }
-                        }
-                    }
-                }
-                if (cancelOp) {
-                    cancelOperation(); return; }
-                progress = (float) (100f * row / (rows - 1));
-                updateProgress("Loop 1 of 2:", (int)progress);
+            if (statType.equals("median")) {
+                zonalStats.setQuantileBins(MEDIAN_BINS);
             }
             
-            for (i = 0; i < numFeatures; i++) {
-                if (featureN[i] > 0) {
-                    featureAverage[i] = featureTotal[i] / featureN[i];
-                }
-            }
-               
-            updateProgress("Loop 2 of 2:", (int)progress);
-            for (row = 0; row < rows; row++) {
-                data = dataImage.getRowValues(row);
-                featureData = featureImage.getRowValues(row);
-                for (col = 0; col < cols; col++) {
-                    if (featureData[col] != featureNoData && data[col] != noData) {
-                        i = (int)(featureData[col] - minFeatureID);
-                        featureTotalDeviation[i] += (data[col] - featureAverage[i]) * 
-                             (data[col] - featureAverage[i]);
+            // all of the statistics of every data image are gathered in a 
+            // single pass through the images
+            updateProgress("Calculating statistics:", 0);
+            try {
+                boolean completed = zonalStats.calculate(new ZonalStatistics.Progress() {
+                    int oldProgress = -1;
+
+                    @Override
+                    public boolean rowsCompleted(int completed, int total) {
+                        if (cancelOp) {
+                            return false;
+                        }
+                        int progress = (int) (100f * completed / total);
+                        if (progress != oldProgress) {
+                            updateProgress("Calculating statistics:", progress);
+                            oldProgress = progress;
+                        }
+                        return true;
                     }
+                });
+                if (!completed) {
+                    cancelOperation();
+                    return;
                 }
-                if (cancelOp) { cancelOperation(); return; }
-                progress = (float) (100f * row / (rows - 1));
-                updateProgress("Loop 2 of 2:", (int)progress);
-            }
-            
-            for (i = 0; i < numFeatures; i++) {
-                if (featureN[i] > 0) {
-                    featureStdDeviation[i] = Math.sqrt(featureTotalDeviation[i] / (featureN[i] - 1));
-                }
+            } catch (IllegalArgumentException e) {
+                showFeedback("The feature definition image should "
+                        + "contain integer values only.");
+                return;
             }
             
-            dataImage.close();
+            int numFeatures = zonalStats.getNumberOfZones();
             
             if (!outputHeader.toLowerCase().equals("not specified")) {
-                output = new WhiteboxRaster(outputHeader, "rw", dataImageHeader, 
-                        WhiteboxRaster.DataType.FLOAT, noData);
-                output.setPreferredPalette(dataImage.getPreferredPalette());
-                output.setDataScale(WhiteboxRaster.DataScale.CONTINUOUS);
-                updateProgress("Outputing image data:", (int)progress);
-                if (statType.equals("average")) {
-                    for (row = 0; row < rows; row++) {
-                        featureData = featureImage.getRowValues(row);
-                        for (col = 0; col < cols; col++) {
-                            if (featureData[col] != featureNoData) {
-                                i = (int) (featureData[col] - minFeatureID);
-                                output.setValue(row, col, featureAverage[i]);
-                            }
-                        }
-                        if (cancelOp) {
-                            cancelOperation();
-                            return;
-                        }
-                        progress = (float) (100f * row / (rows - 1));
-                        updateProgress("Outputing image data:", (int) progress);
-                    }
-                } else if (statType.equals("minimum")) {
-                    for (row = 0; row < rows; row++) {
-                        featureData = featureImage.getRowValues(row);
-                        for (col = 0; col < cols; col++) {
-                            if (featureData[col] != featureNoData) {
-                                i = (int) (featureData[col] - minFeatureID);
-                                output.setValue(row, col, featureMins[i]);
-                            }
-                        }
-                        if (cancelOp) {
-                            cancelOperation();
-                            return;
-                        }
-                        progress = (float) (100f * row / (rows - 1));
-                        updateProgress("Outputing image data:", (int) progress);
-                    }
-                } else if (statType.equals("maximum")) {
-                    for (row = 0; row < rows; row++) {
-                        featureData = featureImage.getRowValues(row);
-                        for (col = 0; col < cols; col++) {
-                            if (featureData[col] != featureNoData) {
-                                i = (int) (featureData[col] - minFeatureID);
-                                output.setValue(row, col, featureMaxs[i]);
-                            }
-                        }
-                        if (cancelOp) {
-                            cancelOperation();
-                            return;
-                        }
-                        progress = (float) (100f * row / (rows - 1));
-                        updateProgress("Outputing image data:", (int) progress);
+                for (v = 0; v < numDataImages; v++) {
+                    double noData = dataImages[v].getNoDataValue();
+                    double[] featureStat = new double[numFeatures];
+                    for (z = 0; z < numFeatures; z++) {
+                        featureStat[z] = getStatistic(zonalStats, z, v, statType, noData);
                     }
-                } else if (statType.equals("range")) {
-                    for (row = 0; row < rows; row++) {
-                        featureData = featureImage.getRowValues(row);
-                        for (col = 0; col < cols; col++) {
-                            if (featureData[col] != featureNoData) {
-                                i = (int) (featureData[col] - minFeatureID);
-                                output.setValue(row, col, featureMaxs[i] - featureMins[i]);
-                            }
-                        }
-                        if (cancelOp) {
-                            cancelOperation();
-                            return;
-                        }
-                        progress = (float) (100f * row / (rows - 1));
-                        updateProgress("Outputing image data:", (int) progress);
-                    }
-                } else if (statType.equals("standard deviation")) {
-                    for (row = 0; row < rows; row++) {
-                        featureData = featureImage.getRowValues(row);
-                        for (col = 0; col < cols; col++) {
-                            if (featureData[col] != featureNoData) {
-                                i = (int) (featureData[col] - minFeatureID);
-                                output.setValue(row, col, featureStdDeviation[i]);
-                            }
-                        }
-                        if (cancelOp) {
-                            cancelOperation();
-                            return;
-                        }
-                        progress = (float) (100f * row / (rows - 1));
-                        updateProgress("Outputing image data:", (int) progress);
+                    
+                    // with more than one data image, each output file is 
+                    // named after its data image
+                    String outputFile = outputHeader;
+                    if (numDataImages > 1) {
+                        outputFile = outputHeader.replace(".dep", "_" 
+                                + dataImageShortNames[v] + ".dep");
                     }
-                } else if (statType.equals("total")) {
+                    output = new WhiteboxRaster(outputFile, "rw", dataFiles[v], 
+                            WhiteboxRaster.DataType.FLOAT, noData);
+                    output.setPreferredPalette(dataImages[v].getPreferredPalette());
+                    output.setDataScale(WhiteboxRaster.DataScale.CONTINUOUS);
+                    double[] outputData = new double[cols];
+                    updateProgress("Outputing image data:", 0);
                     for (row = 0; row < rows; row++) {
-                        featureData = featureImage.getRowValues(row);
+                        double[] featureData = featureImage.getRowValues(row);
+                        int lastID = 0;
+                        z = -1;
                         for (col = 0; col < cols; col++) {
                             if (featureData[col] != featureNoData) {
-                                i = (int) (featureData[col] - minFeatureID);
-                                output.setValue(row, col, featureTotal[i]);
+                                if (z < 0 || (int) featureData[col] != lastID) {
+                                    lastID = (int) featureData[col];
+                                    z = zonalStats.getZoneIndex(lastID);
+                                }
+                                outputData[col] = featureStat[z];
+                            } else {
+                                outputData[col] = noData;
                             }
                         }
+                        output.setRowValues(row, outputData);
                         if (cancelOp) {
                             cancelOperation();
                             return;
@@ -456,89 +347,65 @@ public class ExtractStatistics implements WhiteboxPlugin {
                         progress = (float) (100f * row / (rows - 1));
                         updateProgress("Outputing image data:", (int) progress);
                     }
-                } else {
-                    showFeedback("Specified statistic type not recognized");
-                    return;
+        
+                    output.addMetadataEntry("Created by the "
+                        + getDescriptiveName() + " tool.");
+                    output.addMetadataEntry("Created on " + new Date());
+                    output.close();
+                    
+                    returnData(outputFile);
                 }
-    
-                output.addMetadataEntry("Created by the "
-                    + getDescriptiveName() + " tool.");
-                output.addMetadataEntry("Created on " + new Date());
-                output.close();
-                
-                returnData(outputHeader);
             }
             
+            if (!csvFile.toLowerCase().equals("not specified")) {
+                zonalStats.writeCSV(csvFile, dataImageShortNames);
+            }
 
             if (textOutput) {
 
                 DecimalFormat df;
                 df = new DecimalFormat("0.000");
 
-                String retstr = null;
-                retstr = "EXTRACT STATISTICS\n\n";
-                retstr += "Data Image:\t" + dataImageShortName + "\n";
-                retstr += "Feature Image:\t" + featureImageShortName + "\n";
-                retstr += "NoData Value:\t" + noData + "\n";
-                retstr += "Output Stat:\t" + statType + "\n\n";
-                retstr += "ID\t" + "Value" + "\n";
-                
-                if (statType.equals("average")) {
-                    for (i = 0; i < numFeatures; i++) {
-                        if (featureN[i] > 0) {
-                            retstr += (i + minFeatureID) + "\t" + df.format(featureAverage[i]) + "\n";
-                        } else if (featurePresent[i]) {
-                            retstr += (i + minFeatureID) + "\t" + df.format(noData) + "\n";
-                        }
-                    }
-                } else if (statType.equals("minimum")) {
-                    for (i = 0; i < numFeatures; i++) {
-                        if (featureN[i] > 0) {
-                            retstr += (i + minFeatureID) + "\t" + df.format(featureMins[i]) + "\n";
-                        } else if (featurePresent[i]) {
-                            retstr += (i + minFeatureID) + "\t" + df.format(noData) + "\n";
-                        }
-                    }
-                } else if (statType.equals("maximum")) {
-                    for (i = 0; i < numFeatures; i++) {
-                        if (featureN[i] > 0) {
-                            retstr += (i + minFeatureID) + "\t" + df.format(featureMaxs[i]) + "\n";
-                        } else if (featurePresent[i]) {
-                            retstr += (i + minFeatureID) + "\t" + df.format(noData) + "\n";
-                        }
-                    }
-                } else if (statType.equals("range")) {
-                    for (i = 0; i < numFeatures; i++) {
-                        if (featureN[i] > 0) {
-                            retstr += (i + minFeatureID) + "\t" + df.format((featureMaxs[i] - featureMins[i])) + "\n";
-                        } else if (featurePresent[i]) {
-                            retstr += (i + minFeatureID) + "\t" + df.format(noData) + "\n";
-                        }
+                StringBuilder retstr = new StringBuilder();
+                retstr.append("EXTRACT STATISTICS\n\n");
+                if (numDataImages == 1) {
+                    retstr.append("Data Image:\t").append(dataImageShortNames[0]).append("\n");
+                } else {
+                    retstr.append("Data Images:\t");
+                    for (v = 0; v < numDataImages; v++) {
+                        retstr.append(v > 0 ? ", " : "").append(dataImageShortNames[v]);
                     }
-                } else if (statType.equals("standard deviation")) {
-                    for (i = 0; i < numFeatures; i++) {
-                        if (featureN[i] > 0) {
-                            retstr += (i + minFeatureID) + "\t" + df.format(featureStdDeviation[i]) + "\n";
-                        } else if (featurePresent[i]) {
-                            retstr += (i + minFeatureID) + "\t" + df.format(noData) + "\n";
-                        }
+                    retstr.append("\n");
+                }
+                retstr.append("Feature Image:\t").append(featureImageShortName).append("\n");
+                retstr.append("NoData Value:\t").append(dataImages[0].getNoDataValue()).append("\n");
+                retstr.append("Output Stat:\t").append(statType).append("\n\n");
+                retstr.append("ID");
+                if (numDataImages == 1) {
+                    retstr.append("\tValue");
+                } else {
+                    for (v = 0; v < numDataImages; v++) {
+                        retstr.append("\t").append(dataImageShortNames[v]);
                     }
-                } else if (statType.equals("total")) {
-                    for (i = 0; i < numFeatures; i++) {
-                        if (featureN[i] > 0) {
-                            retstr += (i + minFeatureID) + "\t" + df.format(featureTotal[i]) + "\n";
-                        } else if (featurePresent[i]) {
-                            retstr += (i + minFeatureID) + "\t" + df.format(noData) + "\n";
-                        }
+                }
+                retstr.append("\n");
+                
+                for (z = 0; z < numFeatures; z++) {
+                    retstr.append(zonalStats.getZoneID(z));
+                    for (v = 0; v < numDataImages; v++) {
+                        double noData = dataImages[v].getNoDataValue();
+                        retstr.append("\t").append(df.format(getStatistic(zonalStats, 
+                                z, v, statType, noData)));
                     }
-                } else {
-                    showFeedback("Specified statistic type not recognized");
-                    return;
+                    retstr.append("\n");
                 }
-                returnData(retstr);
+                returnData(retstr.toString());
 
             }
             
+            for (v = 0; v < numDataImages; v++) {
+                dataImages[v].close();
+            }
             featureImage.close();
             
             
@@ -554,4 +421,38 @@ public class ExtractStatistics implements WhiteboxPlugin {
             myHost.pluginComplete();
         }
     }
+    
+    /*
+     * Returns the chosen statistic of a feature, or the NoData value if the 
+     * feature has no valid data.
+     */
+    private double getStatistic(ZonalStatistics zonalStats, int zone, int dataImage, 
+            String statType, double noData) {
+        double ret;
+        switch (statType) {
+            case "average":
+                ret = zonalStats.getMean(zone, dataImage);
+                break;
+            case "minimum":
+                ret = zonalStats.getMinimum(zone, dataImage);
+                break;
+            case "maximum":
+                ret = zonalStats.getMaximum(zone, dataImage);
+                break;
+            case "range":
+                ret = zonalStats.getRange(zone, dataImage);
+                break;
+            case "standard deviation":
+                ret = zonalStats.getStandardDeviation(zone, dataImage);
+                break;
+            case "total":
+                ret = zonalStats.getCount(zone, dataImage) > 0 
+                        ? zonalStats.getSum(zone, dataImage) : Double.NaN;
+                break;
+            default:
+                ret = zonalStats.getQuantile(zone, dataImage, 0.5);
+                break;
+        }
+        return Double.isNaN(ret) ? noData : ret;
+    }
 }
@@ -20,6 +20,8 @@ import java.text.DecimalFormat;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
+import whitebox.parallel.RowBands;
+import whitebox.stats.StreamingStatistics;
 
 /**
  * WhiteboxPlugin is used to define a plugin tool for Whitebox GIS.
@@ -184,6 +186,32 @@ public class ImageAverage implements WhiteboxPlugin {
         return amIActive;
     }
 
+    /*
+     * Calculates the statistics of the valid cells of an image, reading the
+     * rows in parallel bands. Returns null if the operation is cancelled.
+     */
+    private StreamingStatistics scanImage(final WhiteboxRaster image) throws Exception {
+        final double noData = image.getNoDataValue();
+        final StreamingStatistics stats = new StreamingStatistics();
+        boolean completed = RowBands.process(image.getNumberRows(), new RowBands.Task<StreamingStatistics>() {
+            @Override
+            public StreamingStatistics process(int startRow, int endRow) {
+                StreamingStatistics band = new StreamingStatistics();
+                for (int row = startRow; row < endRow; row++) {
+                    band.add(image.getRowValues(row), noData);
+                }
+                return band;
+            }
+        }, new RowBands.Consumer<StreamingStatistics>() {
+            @Override
+            public boolean consume(int startRow, int endRow, StreamingStatistics band) {
+                stats.merge(band);
+                return !cancelOp;
+            }
+        });
+        return completed ? stats : null;
+    }
+
     @Override
     public void run() {
         amIActive = true;
@@ -200,8 +228,6 @@ public class ImageAverage implements WhiteboxPlugin {
         int a, b, i;
         String inputFilesString = null;
         String[] imageFiles;
-        double[] imageTotals;
-        long[] imageNs;
         double[] imageAverages;
         String[] shortNames = null;
         String[] units = null;
@@ -226,13 +252,10 @@ public class ImageAverage implements WhiteboxPlugin {
         try {
             
             //initialize the image data arrays
-            imageTotals = new double[numImages];
-            imageNs = new long[numImages];
             imageAverages = new double[numImages];
             shortNames = new String[numImages];
             units = new String[numImages];
             
-            double[] data;
             // check that each of the input images has the same number of rows and columns
             // and calculate the image averages.
             for (a = 0; a < numImages; a++) {
@@ -249,18 +272,11 @@ public class ImageAverage implements WhiteboxPlugin {
                     units[a] = "";
                 }
                 
-                for (row = 0; row < rows; row++) {
-                    data = image.getRowValues(row);
-                    for (col = 0; col < cols; col++) {
-                        if (data[col] != noData) {
-                            imageTotals[a] += data[col];
-                            imageNs[a]++;
-                        }
-                    }
-                    if (cancelOp) { cancelOperation(); return; }
-                }
+                // the rows are summarised in parallel bands
+                StreamingStatistics stats = scanImage(image);
                 image.close();
-                imageAverages[a] = imageTotals[a] / imageNs[a];
+                if (stats == null) { cancelOperation(); return; }
+                imageAverages[a] = stats.getMean();
                 progress = (int)(100f * (a + 1) / numImages);
                 updateProgress("Image " + (a + 1) + ", Calculating image average:", (int)progress);
             }
@@ -18,6 +18,8 @@ package plugins;
 
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPluginHost;
+import whitebox.parallel.RowBands;
+import whitebox.stats.StreamingStatistics;
 import whitebox.interfaces.WhiteboxPlugin;
 import java.text.DecimalFormat;
 
@@ -184,6 +186,32 @@ public class ImageStandardDeviation implements WhiteboxPlugin {
         return amIActive;
     }
 
+    /*
+     * Calculates the statistics of the valid cells of an image, reading the
+     * rows in parallel bands. Returns null if the operation is cancelled.
+     */
+    private StreamingStatistics scanImage(final WhiteboxRaster image) throws Exception {
+        final double noData = image.getNoDataValue();
+        final StreamingStatistics stats = new StreamingStatistics();
+        boolean completed = RowBands.process(image.getNumberRows(), new RowBands.Task<StreamingStatistics>() {
+            @Override
+            public StreamingStatistics process(int startRow, int endRow) {
+                StreamingStatistics band = new StreamingStatistics();
+                for (int row = startRow; row < endRow; row++) {
+                    band.add(image.getRowValues(row), noData);
+                }
+                return band;
+            }
+        }, new RowBands.Consumer<StreamingStatistics>() {
+            @Override
+            public boolean consume(int startRow, int endRow, StreamingStatistics band) {
+                stats.merge(band);
+                return !cancelOp;
+            }
+        });
+        return completed ? stats : null;
+    }
+
     @Override
     public void run() {
         amIActive = true;
@@ -228,7 +256,6 @@ public class ImageStandardDeviation implements WhiteboxPlugin {
             shortNames = new String[numImages];
             units = new String[numImages];
             
-            double[] data;
             // check that each of the input images has the same number of rows and columns
             // and calculate the image averages.
             for (a = 0; a < numImages; a++) {
@@ -245,33 +272,12 @@ public class ImageStandardDeviation implements WhiteboxPlugin {
                     units[a] = "";
                 }
                 
-                double imageTotal = 0;
-                double imageN = 0;
-                for (row = 0; row < rows; row++) {
-                    data = image.getRowValues(row);
-                    for (col = 0; col < cols; col++) {
-                        if (data[col] != noData) {
-                            imageTotal += data[col];
-                            imageN++;
-                        }
-                    }
-                    if (cancelOp) { cancelOperation(); return; }
-                }
-                
-                double imageAverage = imageTotal / imageN;
-                double totalDeviation = 0;
-                for (row = 0; row < rows; row++) {
-                    data = image.getRowValues(row);
-                    for (col = 0; col < cols; col++) {
-                        if (data[col] != noData) {
-                            totalDeviation += (data[col] - imageAverage) * (data[col] - imageAverage);
-                        }
-                    }
-                    if (cancelOp) { cancelOperation(); return; }
-                }
-                
-                imageSDs[a] = Math.sqrt(totalDeviation / (imageN - 1));
+                // the mean and the sum of squared deviations are found in a
+                // single pass, reading the rows in parallel bands
+                StreamingStatistics stats = scanImage(image);
                 image.close();
+                if (stats == null) { cancelOperation(); return; }
+                imageSDs[a] = stats.getStandardDeviation();
                 
                 progress = (int)(100f * (a + 1) / numImages);
                 updateProgress("Image " + (a + 1) + ", Calculating image average:", (int)progress);
@@ -20,6 +20,7 @@ import java.text.DecimalFormat;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
+import whitebox.parallel.RowBands;
 
 /**
  * WhiteboxPlugin is used to define a plugin tool for Whitebox GIS.
@@ -189,7 +190,7 @@ public class ImageTotal implements WhiteboxPlugin {
         amIActive = true;
         
         WhiteboxRaster image;
-        int cols, rows, col, row, a, numImages,loopNum, progress;
+        int rows, a, numImages, loopNum;
         double noData;
         String inputFilesString;
         String[] imageFiles;
@@ -209,8 +210,6 @@ public class ImageTotal implements WhiteboxPlugin {
             
             imageTotals = new double[numImages];
             shortNames = new String[numImages];
-            double[] data;
-            
             loopNum = 0;
             for (a = 0; a < numImages; a++) {
                 loopNum++;
@@ -218,23 +217,42 @@ public class ImageTotal implements WhiteboxPlugin {
                 image = new WhiteboxRaster(imageFiles[a], "r");
                 noData = image.getNoDataValue();
                 rows = image.getNumberRows();
-                cols = image.getNumberColumns();
                 shortNames[a] = image.getShortHeaderFile();
                 
-                for (row = 0; row < rows; row++) {
-                    data = image.getRowValues(row);
-                    for (col = 0; col < cols; col++) {
-                        if (data[col] != noData) {
-                            imageTotals[a] += data[col];
+                // the rows are summed in parallel bands
+                final WhiteboxRaster img = image;
+                final double nd = noData;
+                final double[] total = new double[1];
+                final String label = "Loop " + loopNum + " of " + numImages + ":";
+                final int numRows = rows;
+                boolean completed = RowBands.process(rows, new RowBands.Task<Double>() {
+                    @Override
+                    public Double process(int startRow, int endRow) {
+                        double sum = 0;
+                        for (int row = startRow; row < endRow; row++) {
+                            double[] data = img.getRowValues(row);
+                            for (int col = 0; col < data.length; col++) {
+                                if (data[col] != nd) {
+                                    sum += data[col];
+                                }
+                            }
                         }
+                        return sum;
                     }
-                    if (cancelOp) {
-                        cancelOperation();
-                        return;
+                }, new RowBands.Consumer<Double>() {
+                    @Override
+                    public boolean consume(int startRow, int endRow, Double sum) {
+                        total[0] += sum;
+                        updateProgress(label, (int) (endRow * 100.0 / numRows));
+                        return !cancelOp;
                     }
-                    progress = (int) (row * 100.0 / rows);
-                    updateProgress("Loop " + loopNum + " of " + numImages + ":", progress);
+                });
+                if (!completed) {
+                    image.close();
+                    cancelOperation();
+                    return;
                 }
+                imageTotals[a] = total[0];
 
                 image.close();
                 
@@ -17,6 +17,7 @@
 package plugins;
 
 import java.io.File;
+import whitebox.algorithms.StreamNetwork;
 import whitebox.geospatialfiles.ShapeFile;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.geospatialfiles.shapefile.attributes.DBFField;
@@ -36,9 +37,6 @@ public class RasterStreamsToVector implements WhiteboxPlugin {
     
     private WhiteboxPluginHost myHost = null;
     private String[] args;
-    
-    // Constants
-    private static final double LnOf2 = 0.693147180559945;
 
     /**
      * Used to retrieve the plugin tool's name. This is a short, unique name
@@ -200,18 +198,12 @@ public class RasterStreamsToVector implements WhiteboxPlugin {
         String streamsHeader;
         String pointerHeader;
         String outputFileName;
-        int row, col, x, y;
+        int row, col, link, cell;
         double xCoord, yCoord;
-        int progress;
+        int progress = 0;
         int c;
-        int[] dX = new int[]{1, 1, 1, 0, -1, -1, -1, 0};
-        int[] dY = new int[]{-1, 0, 1, 1, 1, 0, -1, -1};
-        double[] inflowingVals = new double[]{16, 32, 64, 128, 1, 2, 4, 8};
-        boolean flag;
-        double flowDir;
-        double previousFlowDir;
-        double linkLength;
-        double streamValue;
+        int flowDir;
+        int previousFlowDir;
                 
         if (args.length <= 0) {
             showFeedback("Plugin parameters have not been set.");
@@ -232,11 +224,8 @@ public class RasterStreamsToVector implements WhiteboxPlugin {
             WhiteboxRaster streams = new WhiteboxRaster(streamsHeader, "r");
             int rows = streams.getNumberRows();
             int cols = streams.getNumberColumns();
-            double noData = streams.getNoDataValue();
             double gridResX = streams.getCellSizeX();
             double gridResY = streams.getCellSizeY();
-            double diagGridRes = Math.sqrt(gridResX * gridResX + gridResY * gridResY);
-            double[] gridLengths = new double[]{diagGridRes, gridResX, diagGridRes, gridResY, diagGridRes, gridResX, diagGridRes, gridResY};
             double east = streams.getEast() - gridResX / 2.0;
             double west = streams.getWest() + gridResX / 2.0;
             double EWRange = east - west;
@@ -250,6 +239,41 @@ public class RasterStreamsToVector implements WhiteboxPlugin {
                 showFeedback("The input images must be of the same dimensions.");
                 return;
             }
+            
+            // read the stream network once and trace its links
+            StreamNetwork network = new StreamNetwork(rows, cols, 
+                    gridResX, gridResY, false);
+            updateProgress("Loop 1 of 3:", 0);
+            for (row = 0; row < rows; row++) {
+                network.addRow(row, streams.getRowValues(row), pntr.getRowValues(row));
+                if (cancelOp) {
+                    cancelOperation();
+                    return;
+                }
+                progress = (int) (100f * row / (rows - 1));
+                updateProgress("Loop 1 of 3:", progress);
+            }
+            network.build();
+            int numLinks = network.getNumberOfLinks();
+            
+            // find the stream value at the start of each link
+            double[] streamValues = new double[numLinks];
+            updateProgress("Loop 2 of 3:", 0);
+            for (row = 0; row < rows; row++) {
+                double[] values = streams.getRowValues(row);
+                for (int i : network.getCellsInRow(row)) {
+                    link = network.getCellLink(i);
+                    if (network.getFirstCell(link) == i) {
+                        streamValues[link] = values[network.getCellColumn(i)];
+                    }
+                }
+                if (cancelOp) {
+                    cancelOperation();
+                    return;
+                }
+                progress = (int) (100f * row / (rows - 1));
+                updateProgress("Loop 2 of 3:", progress);
+            }
                         
             DBFField fields[] = new DBFField[3];
 
@@ -274,114 +298,47 @@ public class RasterStreamsToVector implements WhiteboxPlugin {
             // set up the output files of the shapefile and the dbf
             ShapeFile output = new ShapeFile(outputFileName, ShapeType.POLYLINE, fields);
 
-            byte numNeighbouringStreamCells;
-            int FID = 0;
-            for (row = 0; row < rows; row++) {
-                for (col = 0; col < cols; col++) {
-                    streamValue = streams.getValue(row, col);
-                    if (streamValue > 0) {
-                        // see if it is a headwater location
-                        numNeighbouringStreamCells = 0;
-                        for (c = 0; c < 8; c++) {
-                            x = col + dX[c];
-                            y = row + dY[c];
-                            if (streams.getValue(y, x) > 0 && 
-                                    pntr.getValue(y, x) == inflowingVals[c]) { 
-                                numNeighbouringStreamCells++; 
-                            }
-                        }
-                        if (numNeighbouringStreamCells != 1) {
-                            //it's the start of a link.
-                            FID++;
-                            linkLength = 0;
-                            int[] parts = {0};
-                            PointsList points = new PointsList();
-                            x = col;
-                            y = row;
-                            previousFlowDir = -99;
-                            flag = true;
-                            do {
-                                //find the downslope neighbour
-                                flowDir = pntr.getValue(y, x);
-                                if (flowDir > 0) {
-                                    if (flowDir != previousFlowDir) {
-                                        // it's a bend in the stream so add this point
-                                        xCoord = west + ((double)x / cols) * EWRange;
-                                        yCoord = north - ((double)y / rows) * NSRange;
-                                        points.addPoint(xCoord, yCoord);
-                                        
-                                        previousFlowDir = flowDir;
-                                    }
-                                    
-                                    // update the row and column values to the
-                                    // cell that the flowpath leads to.
-                                    c = (int)(Math.log(flowDir) / LnOf2);
-                                    if (c > 7) {
-                                        showFeedback("An unexpected value has "
-                                                + "been identified in the pointer "
-                                                + "image. This tool requires a "
-                                                + "pointer grid that has been "
-                                                + "created using either the D8 "
-                                                + "or Rho8 tools.");
-                                        return;
-                                    }
-                                    
-                                    x += dX[c];
-                                    y += dY[c];
-
-                                    linkLength += gridLengths[c];
-                                    
-                                    if (streams.getValue(y, x) <= 0) { //it's not a stream cell
-                                        flag = false;
-                                    } else {
-                                        //is it a confluence
-                                        numNeighbouringStreamCells = 0;
-                                        int x2, y2;
-                                        for (int d = 0; d < 8; d++) {
-                                            x2 = x + dX[d];
-                                            y2 = y + dY[d];
-                                            if (streams.getValue(y2, x2) > 0 
-                                                    && pntr.getValue(y2, x2) == 
-                                                    inflowingVals[d]) {
-                                                numNeighbouringStreamCells++;
-                                            }
-                                        }
-                                        if (numNeighbouringStreamCells > 1) {
-                                            // It's a confluence and you should stop here.
-                                            flag = false;
-                                        }
-                                    }
-
-                                } else {
-                                    flag = false;
-                                }
-                                
-                                if (!flag) {
-                                    // it's the end of the stream link so
-                                    // add the point.
-                                    xCoord = west + ((double)x / cols) * EWRange;
-                                    yCoord = north - ((double)y / rows) * NSRange;
-                                    points.addPoint(xCoord, yCoord);
-                                }
-                                
-                            } while (flag);
-                            
-                            // add the line to the shapefile.
-                            PolyLine line = new PolyLine(parts, points.getPointsArray());
-                            Object[] rowData = new Object[3];
-                            rowData[0] = new Double(FID);
-                            rowData[1] = new Double(streamValue);
-                            rowData[2] = new Double(linkLength / 1000.0);
-                            output.addRecord(line, rowData);
-                        }
+            updateProgress("Loop 3 of 3:", 0);
+            for (link = 0; link < numLinks; link++) {
+                int[] parts = {0};
+                PointsList points = new PointsList();
+                previousFlowDir = -99;
+                for (cell = network.getFirstCell(link); cell <= network.getLastCell(link); cell++) {
+                    row = network.getCellRow(cell);
+                    col = network.getCellColumn(cell);
+                    flowDir = network.getFlowDirection(row, col);
+                    if (flowDir >= 0 && flowDir != previousFlowDir) {
+                        // it's a bend in the stream so add this point
+                        xCoord = west + ((double) col / cols) * EWRange;
+                        yCoord = north - ((double) row / rows) * NSRange;
+                        points.addPoint(xCoord, yCoord);
+                        previousFlowDir = flowDir;
                     }
                 }
+                
+                // it's the end of the stream link so add the point that the
+                // link drains to.
+                xCoord = west + ((double) network.getOutletColumn(link) / cols) * EWRange;
+                yCoord = north - ((double) network.getOutletRow(link) / rows) * NSRange;
+                points.addPoint(xCoord, yCoord);
+
+                // add the line to the shapefile.
+                PolyLine line = new PolyLine(parts, points.getPointsArray());
+                Object[] rowData = new Object[3];
+                rowData[0] = new Double(link + 1);
+                rowData[1] = new Double(streamValues[link]);
+                rowData[2] = new Double(network.getLength(link) / 1000.0);
+                output.addRecord(line, rowData);
+                
                 if (cancelOp) {
                     cancelOperation();
                     return;
                 }
-                progress = (int)(100f * row / (rows - 1));
-                updateProgress(progress);
+                c = (int) (100f * link / numLinks);
+                if (c != progress) {
+                    progress = c;
+                    updateProgress("Loop 3 of 3:", progress);
+                }
             }
             output.write();
 
@@ -393,6 +350,9 @@ public class RasterStreamsToVector implements WhiteboxPlugin {
 
         } catch (OutOfMemoryError oe) {
             myHost.showFeedback("An out-of-memory error has occurred during operation.");
+        } catch (IllegalArgumentException e) {
+            // an invalid flow pointer value
+            myHost.showFeedback(e.getMessage());
         } catch (Exception e) {
             myHost.showFeedback("An error has occurred during operation. See log file for details.");
             myHost.logException("Error in " + getDescriptiveName(), e);
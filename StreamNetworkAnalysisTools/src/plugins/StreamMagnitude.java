@@ -17,6 +17,7 @@
 package plugins;
 
 import java.util.Date;
+import whitebox.algorithms.StreamNetwork;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
@@ -30,9 +31,6 @@ public class StreamMagnitude implements WhiteboxPlugin {
     
     private WhiteboxPluginHost myHost = null;
     private String[] args;
-    
-    // Constants
-    private static final double LnOf2 = 0.693147180559945;
 
     /**
      * Used to retrieve the plugin tool's name. This is a short, unique name
@@ -194,15 +192,9 @@ public class StreamMagnitude implements WhiteboxPlugin {
         String streamsHeader = null;
         String pointerHeader = null;
         String outputHeader = null;
-        int row, col, x, y;
+        int row, link;
         float progress = 0;
-        double z;
-        int i, c;
-        int[] dX = new int[]{1, 1, 1, 0, -1, -1, -1, 0};
-        int[] dY = new int[]{-1, 0, 1, 1, 1, 0, -1, -1};
-        double[] inflowingVals = new double[]{16, 32, 64, 128, 1, 2, 4, 8};
-        boolean flag = false;
-        double flowDir = 0;
+        int i;
                 
         if (args.length <= 0) {
             showFeedback("Plugin parameters have not been set.");
@@ -238,44 +230,12 @@ public class StreamMagnitude implements WhiteboxPlugin {
                 return;
             }
             
-            WhiteboxRaster output = new WhiteboxRaster(outputHeader, "rw", 
-                    streamsHeader, WhiteboxRaster.DataType.INTEGER, 0);
-            output.setPreferredPalette("spectrum.pal");
-            output.setDataScale(WhiteboxRaster.DataScale.CONTINUOUS);
-            
-            WhiteboxRaster numInflowingStreamCells = new WhiteboxRaster(outputHeader.replace(".dep", "_temp.dep"), "rw", 
-                    streamsHeader, WhiteboxRaster.DataType.INTEGER, noData);
-            numInflowingStreamCells.isTemporaryFile = true;
-            
-            byte numNeighbouringStreamCells = 0;
-            double currentValue = 0;
-            
+            // read the stream network once and trace its links
+            StreamNetwork network = new StreamNetwork(rows, cols, 
+                    streams.getCellSizeX(), streams.getCellSizeY(), false);
             updateProgress("Loop 1 of 2:", 0);
             for (row = 0; row < rows; row++) {
-                for (col = 0; col < cols; col++) {
-                    if (streams.getValue(row, col) > 0) {
-                        // count the number of neighbouring stream cells
-                        numNeighbouringStreamCells = 0;
-                        for (c = 0; c < 8; c++) {
-                            x = col + dX[c];
-                            y = row + dY[c];
-                            if (streams.getValue(y, x) > 0 && 
-                                    pntr.getValue(y, x) == inflowingVals[c]) { 
-                                numNeighbouringStreamCells++; 
-                            }
-                        }
-                        
-                        if (numNeighbouringStreamCells == 0) { // it's a headwater
-                            output.setValue(row, col, 1);
-                            numInflowingStreamCells.setValue(row, col, -1);
-                        } else {
-                            output.setValue(row, col, 0); // it's not a headwater
-                            numInflowingStreamCells.setValue(row, col, numNeighbouringStreamCells);
-                        }
-                    } else {
-                        output.setValue(row, col, noData);
-                    }
-                }
+                network.addRow(row, streams.getRowValues(row), pntr.getRowValues(row));
                 if (cancelOp) {
                     cancelOperation();
                     return;
@@ -283,54 +243,23 @@ public class StreamMagnitude implements WhiteboxPlugin {
                 progress = (float) (100f * row / (rows - 1));
                 updateProgress("Loop 1 of 2:", (int) progress);
             }
+            network.build();
+            
+            // the Shreve magnitude of each link
+            long[] magnitude = network.getShreveMagnitude();
+            double[] linkValues = new double[magnitude.length];
+            for (link = 0; link < magnitude.length; link++) {
+                linkValues[link] = magnitude[link];
+            }
+            
+            WhiteboxRaster output = new WhiteboxRaster(outputHeader, "rw", 
+                    streamsHeader, WhiteboxRaster.DataType.INTEGER, 0);
+            output.setPreferredPalette("spectrum.pal");
+            output.setDataScale(WhiteboxRaster.DataScale.CONTINUOUS);
             
             updateProgress("Loop 2 of 2:", 0);
             for (row = 0; row < rows; row++) {
-                for (col = 0; col < cols; col++) {
-                    if (numInflowingStreamCells.getValue(row, col) == -1) {
-                        //it's a headwater location so start a downstream flowpath
-                        x = col;
-                        y = row;
-                        flag = true;
-                        do {
-                            z = output.getValue(y, x);
-                            //find the downslope neighbour
-                            flowDir = pntr.getValue(y, x);
-                            if (flowDir > 0) {
-                                c = (int) (Math.log(flowDir) / LnOf2);
-                                if (c > 7) {
-                                    showFeedback("An unexpected value has "
-                                            + "been identified in the pointer "
-                                            + "image. This tool requires a "
-                                            + "pointer grid that has been "
-                                            + "created using either the D8 "
-                                            + "or Rho8 tools.");
-                                    return;
-                                }
-                                x += dX[c];
-                                y += dY[c];
-
-                                if (streams.getValue(y, x) <= 0) { //it's not a stream cell
-                                    flag = false;
-                                } else {
-                                    //update the numInflowingStreamCells grid
-                                    currentValue = numInflowingStreamCells.getValue(y, x) - 1;
-                                    numInflowingStreamCells.setValue(y, x, currentValue);
-                                    if (currentValue > 0) { 
-                                        flag = false; 
-                                    }
-                                    
-                                    //update the output grid
-                                    currentValue = output.getValue(y, x);
-                                    output.setValue(y, x, z + currentValue);
-                                }
-
-                            } else {
-                                flag = false;
-                            }
-                        } while (flag);
-                    }
-                }
+                output.setRowValues(row, network.getRowValues(row, linkValues, noData, 0));
                 if (cancelOp) {
                     cancelOperation();
                     return;
@@ -338,7 +267,7 @@ public class StreamMagnitude implements WhiteboxPlugin {
                 progress = (float) (100f * row / (rows - 1));
                 updateProgress("Loop 2 of 2:", (int) progress);
             }
-
+              
             output.addMetadataEntry("Created by the "
                     + getDescriptiveName() + " tool.");
             output.addMetadataEntry("Created on " + new Date());
@@ -346,13 +275,15 @@ public class StreamMagnitude implements WhiteboxPlugin {
             pntr.close();
             streams.close();
             output.close();
-            numInflowingStreamCells.close();
-
+            
             // returning a header file string displays the image.
             returnData(outputHeader);
 
         } catch (OutOfMemoryError oe) {
             myHost.showFeedback("An out-of-memory error has occurred during operation.");
+        } catch (IllegalArgumentException e) {
+            // an invalid flow pointer value
+            myHost.showFeedback(e.getMessage());
         } catch (Exception e) {
             myHost.showFeedback("An error has occurred during operation. See log file for details.");
             myHost.logException("Error in " + getDescriptiveName(), e);
@@ -17,6 +17,7 @@
 package plugins;
 
 import java.util.Date;
+import whitebox.algorithms.StreamNetwork;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
@@ -30,9 +31,6 @@ public class StreamOrder implements WhiteboxPlugin {
     
     private WhiteboxPluginHost myHost = null;
     private String[] args;
-    
-    // Constants
-    private static final double LnOf2 = 0.693147180559945;
 
     /**
      * Used to retrieve the plugin tool's name. This is a short, unique name
@@ -194,16 +192,9 @@ public class StreamOrder implements WhiteboxPlugin {
         String streamsHeader = null;
         String pointerHeader = null;
         String outputHeader = null;
-        int row, col, x, y;
+        int row, link;
         float progress = 0;
-        double z;
-        int i, c;
-        int d, x2, y2;
-        int[] dX = new int[]{1, 1, 1, 0, -1, -1, -1, 0};
-        int[] dY = new int[]{-1, 0, 1, 1, 1, 0, -1, -1};
-        double[] inflowingVals = new double[]{16, 32, 64, 128, 1, 2, 4, 8};
-        boolean flag = false;
-        double flowDir = 0;
+        int i;
                 
         if (args.length <= 0) {
             showFeedback("Plugin parameters have not been set.");
@@ -239,104 +230,42 @@ public class StreamOrder implements WhiteboxPlugin {
                 return;
             }
             
+            // read the stream network once and trace its links
+            StreamNetwork network = new StreamNetwork(rows, cols, 
+                    streams.getCellSizeX(), streams.getCellSizeY(), false);
+            updateProgress("Loop 1 of 2:", 0);
+            for (row = 0; row < rows; row++) {
+                network.addRow(row, streams.getRowValues(row), pntr.getRowValues(row));
+                if (cancelOp) {
+                    cancelOperation();
+                    return;
+                }
+                progress = (float) (100f * row / (rows - 1));
+                updateProgress("Loop 1 of 2:", (int) progress);
+            }
+            network.build();
+            
+            // the Strahler order of each link
+            int[] order = network.getStrahlerOrder();
+            double[] linkValues = new double[order.length];
+            for (link = 0; link < order.length; link++) {
+                linkValues[link] = order[link];
+            }
+            
             WhiteboxRaster output = new WhiteboxRaster(outputHeader, "rw", 
                     streamsHeader, WhiteboxRaster.DataType.INTEGER, 0);
             output.setPreferredPalette("spectrum.pal");
             output.setDataScale(WhiteboxRaster.DataScale.CONTINUOUS);
             
-            byte numNeighbouringStreamCells = 0;
-            double currentValue = 0;
-            double currentOrder = 0;
-            double maxStreamOrder = noData;
+            updateProgress("Loop 2 of 2:", 0);
             for (row = 0; row < rows; row++) {
-                for (col = 0; col < cols; col++) {
-                    if (streams.getValue(row, col) > 0) {
-                        // see if it is a headwater location
-                        numNeighbouringStreamCells = 0;
-                        for (c = 0; c < 8; c++) {
-                            x = col + dX[c];
-                            y = row + dY[c];
-                            if (streams.getValue(y, x) > 0 && 
-                                    pntr.getValue(y, x) == inflowingVals[c]) { 
-                                numNeighbouringStreamCells++; 
-                            }
-                        }
-                        if (numNeighbouringStreamCells == 0) {
-                            //it's a headwater location so start a downstream flowpath
-                            x = col;
-                            y = row;
-                            currentOrder = 1;
-                            output.setValue(y, x, currentOrder);
-                            flag = true;
-                            do {
-                                //find the downslope neighbour
-                                flowDir = pntr.getValue(y, x);
-                                if (flowDir > 0) {
-                                    c = (int)(Math.log(flowDir) / LnOf2);
-                                    if (c > 7) {
-                                        showFeedback("An unexpected value has "
-                                                + "been identified in the pointer "
-                                                + "image. This tool requires a "
-                                                + "pointer grid that has been "
-                                                + "created using either the D8 "
-                                                + "or Rho8 tools.");
-                                        return;
-                                    }
-                                    x += dX[c];
-                                    y += dY[c];
-
-                                    if (streams.getValue(y, x) <= 0) { //it's not a stream cell
-                                        flag = false;
-                                    } else {
-                                        currentValue = output.getValue(y, x);
-                                        if (currentValue > currentOrder) {
-                                            flag = false; //run into a larger stream, end the downstream search
-                                            break;
-                                        }
-                                        if (currentValue == currentOrder) {
-                                            numNeighbouringStreamCells = 0;
-                                            for (d = 0; d < 8; d++) {
-                                                x2 = x + dX[d];
-                                                y2 = y + dY[d];
-                                                if (streams.getValue(y2, x2) > 0 &&
-                                                        pntr.getValue(y2, x2) == inflowingVals[d] &&
-                                                        output.getValue(y2, x2) == currentOrder) {
-                                                    numNeighbouringStreamCells++;
-                                                }
-                                            }
-                                            if (numNeighbouringStreamCells >= 2) {
-                                                currentOrder++;
-                                                if (currentOrder > maxStreamOrder) {
-                                                    maxStreamOrder = currentOrder;
-                                                }
-                                            } else {
-                                                flag = false;
-                                                break;
-                                            }
-                                        }
-                                        if (currentValue < currentOrder) {
-                                            output.setValue(y, x, currentOrder);
-                                        }
-                                    }
-
-                                } else {
-                                    if (streams.getValue(y, x) > 0) { //it is a valid stream cell and probably just has no downslope neighbour (e.g. at the edge of the grid)
-                                        output.setValue(y, x, output.getValue(y, x) + 1);
-                                    }
-                                    flag = false;
-                                }
-                            } while (flag);
-                        }
-                    } else {
-                        output.setValue(row, col, noData);
-                    }
-                }
+                output.setRowValues(row, network.getRowValues(row, linkValues, noData, 0));
                 if (cancelOp) {
                     cancelOperation();
                     return;
                 }
                 progress = (float) (100f * row / (rows - 1));
-                updateProgress((int) progress);
+                updateProgress("Loop 2 of 2:", (int) progress);
             }
               
             output.addMetadataEntry("Created by the "
@@ -352,6 +281,9 @@ public class StreamOrder implements WhiteboxPlugin {
 
         } catch (OutOfMemoryError oe) {
             myHost.showFeedback("An out-of-memory error has occurred during operation.");
+        } catch (IllegalArgumentException e) {
+            // an invalid flow pointer value
+            myHost.showFeedback(e.getMessage());
         } catch (Exception e) {
             myHost.showFeedback("An error has occurred during operation. See log file for details.");
             myHost.logException("Error in " + getDescriptiveName(), e);
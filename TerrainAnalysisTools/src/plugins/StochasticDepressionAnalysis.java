@@ -18,12 +18,14 @@ package plugins;
 
 import java.io.File;
 import java.io.RandomAccessFile;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.PriorityQueue;
-import java.util.Random;
+import java.util.SplittableRandom;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
+import whitebox.parallel.MonteCarlo;
 
 
 /**
@@ -34,8 +36,9 @@ import whitebox.interfaces.WhiteboxPluginHost;
 public class StochasticDepressionAnalysis implements WhiteboxPlugin {
     private WhiteboxRaster outputFile = null;
     private WhiteboxRaster DEM = null; 
-    private double[][] tempGrid1;
-    private double[][] tempGrid2;
+    private double[][] dem;
+    private double[][] referenceCDF;
+    private int[] startingVals;
     private WhiteboxPluginHost myHost = null;
     private String[] args;
     private int rows = 0;
@@ -203,11 +206,9 @@ public class StochasticDepressionAnalysis implements WhiteboxPlugin {
         String histoFile = null;
         double range = 0;
         int numIterations = 0;
-        double z = 0;
+        long seed = System.nanoTime();
         int row, col;
-        float progress = 0;
         double[] data1;
-        double[] data2;
             
     	
         if (args.length <= 0) {
@@ -228,6 +229,10 @@ public class StochasticDepressionAnalysis implements WhiteboxPlugin {
                 numIterations = Integer.parseInt(args[i]);
             } else if (i == 5) {
                 numBands = Integer.parseInt(args[i]);
+            } else if (i == 6) {
+                if (!args[i].toLowerCase().contains("not specified") && !args[i].trim().isEmpty()) {
+                    seed = Long.parseLong(args[i].trim());
+                }
             }
         }
 
@@ -243,111 +248,79 @@ public class StochasticDepressionAnalysis implements WhiteboxPlugin {
             rows = DEM.getNumberRows();
             cols = DEM.getNumberColumns();
             noData = DEM.getNoDataValue();
-
-            double[][] output = new double[rows][cols];
-                
-            for (int iterationNum = 0; iterationNum < numIterations; iterationNum++) {
-                if (cancelOp) {
-                    cancelOperation();
-                    return;
-                }
-                progress = (float) (0 * 100f / 5);
-                updateProgress("Loop " + (iterationNum + 1) + " of " + numIterations + ": ", (int) progress);
             
-                tempGrid1 = new double[rows][cols];
-                tempGrid2 = new double[rows][cols];
-                for (row = 0; row < rows; row++) {  // takes tempGrid2 and outputs back to tempGrid1
-                    for (col = 0; col < cols; col++) {
-                        tempGrid2[row][col] = noData;
-                    }
-                }
-                
-                TurningBandSimulation(range); // takes DEM as input; outputs to tempGrid1
-                
-                if (cancelOp) {
-                    cancelOperation();
-                    return;
-                }
-                progress = (float) (1 * 100f / 5);
-                updateProgress("Loop " + (iterationNum + 1) + " of " + numIterations + ": ", (int) progress);
+            if (!readReferenceCDF(histoFile)) {
+                return;
+            }
             
-                HistogramMatching(histoFile); // takes tempGrid1 as input; outputs to tempGrid2
-                
-                if (cancelOp) {
-                    cancelOperation();
-                    return;
-                }
-                progress = (float) (2 * 100f / 5);
-                updateProgress("Loop " + (iterationNum + 1) + " of " + numIterations + ": ", (int) progress);
+            // the DEM is shared, read-only, by all of the realisations
+            dem = new double[rows][];
+            for (row = 0; row < rows; row++) {
+                dem[row] = DEM.getRowValues(row);
+            }
             
-                // add random grid to the DEM
-                for (row = 0; row < rows; row++) {  // takes tempGrid2 and outputs back to tempGrid1
-                    data1 = DEM.getRowValues(row);
-                    for (col = 0; col < cols; col++) {
-                        if (data1[col] != noData) {
-                            tempGrid1[row][col] = data1[col] + tempGrid2[row][col];
-                        } else {
-                            tempGrid1[row][col] = noData;
-                        }
-                    }
-                }
-                
-                if (cancelOp) {
-                    cancelOperation();
-                    return;
-                }
-                progress = (float) (3 * 100f / 5);
-                updateProgress("Loop " + (iterationNum + 1) + " of " + numIterations + ": ", (int) progress);
+            if (range < 3 * DEM.getCellSizeX()) {
+                range = 3 * DEM.getCellSizeX();
+            }
+            final double filterRange = range;
             
-
-                FillDepressions(); // takes tempGrid2 as input and outputs to tempGrid1
-                
-                if (cancelOp) {
-                    cancelOperation();
-                    return;
-                }
-                progress = (float) (4 * 100f / 5);
-                updateProgress("Loop " + (iterationNum + 1) + " of " + numIterations + ": ", (int) progress);
+            // each realisation in progress holds two double grids, the fill 
+            // queue and its worker's counts in memory
+            long bytesPerRealisation = (long) rows * cols * 40;
+            int numWorkers = MonteCarlo.getNumberOfWorkers(bytesPerRealisation, numIterations);
             
-                // find the cells within depressions and increment the output grid for those cells.
-                for (row = 0; row < rows; row++){ // takes tempGrid1 as input and outputs to outputFile
-                    for (col = 0; col < cols; col++){
-                        if (tempGrid2[row][col] > tempGrid1[row][col]) {
-                            output[row][col] += 1;
-                        }                        
-                    }
+            updateProgress("Simulating realisations:", 0);
+            int[] output = MonteCarlo.run(numIterations, rows * cols, seed, numWorkers, 
+                    new MonteCarlo.SimulatorFactory() {
+                @Override
+                public MonteCarlo.Simulator newSimulator() {
+                    return new Realisation(filterRange);
                 }
+            }, new MonteCarlo.Progress() {
+                int oldProgress = -1;
                 
-                progress = (float) (5 * 100f / 5);
-                updateProgress("Loop " + (iterationNum + 1) + " of " + numIterations + ": ", (int) progress);
-            
-                if (cancelOp) {
-                    cancelOperation();
-                    return;
+                @Override
+                public boolean realisationsCompleted(int completed, int total) {
+                    if (cancelOp) {
+                        return false;
+                    }
+                    int progress = (int) (100f * completed / total);
+                    if (progress != oldProgress) {
+                        updateProgress("Simulating realisations:", progress);
+                        oldProgress = progress;
+                    }
+                    return true;
                 }
+            });
+            if (output == null) {
+                cancelOperation();
+                return;
             }
             
             outputFile = new WhiteboxRaster(outputHeader, "rw", inputHeader, WhiteboxRaster.DataType.FLOAT, 0);
             outputFile.setPreferredPalette("spectrum.pal");
 
+            double[] outputData = new double[cols];
             for (row = 0; row < rows; row++) { 
-                data1 = DEM.getRowValues(row);
+                data1 = dem[row];
                 for (col = 0; col < cols; col++) {
                     if (data1[col] != noData) {
-                        //z = output[row][col] / numIterations;
-                        outputFile.setValue(row, col, output[row][col]);
+                        outputData[col] = output[row * cols + col];
                     } else {
-                        outputFile.setValue(row, col, noData);
+                        outputData[col] = noData;
                     }
                 }
+                outputFile.setRowValues(row, outputData);
             }
             
             outputFile.addMetadataEntry("Created by the "
                     + getDescriptiveName() + " tool.");
             outputFile.addMetadataEntry("Created on " + new Date());
+            outputFile.addMetadataEntry("Random seed: " + seed);
 
             DEM.close();
             outputFile.close();
+            dem = null;
             
             // returning a header file string displays the image.
             returnData(outputHeader);
@@ -368,207 +341,345 @@ public class StochasticDepressionAnalysis implements WhiteboxPlugin {
         }
     }
     
-    private void TurningBandSimulation(double range) {
-        int row, col;
-        int i, j, k, m, n;
-        int edge1, edge2;
-        double pnt1x = 0, pnt1y = 0, pnt2x = 0, pnt2y = 0;
-        double z;
-        int diagonalSize = 0;
-        Random generator = new Random();
-        diagonalSize = (int) (Math.sqrt(rows * rows + cols * cols));
-        if (range < 3 * DEM.getCellSizeX()) {
-            range = 3 * DEM.getCellSizeX();
-        }
-        int filterHalfSize = (int) (range / (2 * DEM.getCellSizeX()));
-        int filterSize = filterHalfSize * 2 + 1;
-        int[] cellOffsets = new int[filterSize];
-        for (i = 0; i < filterSize; i++) {
-            cellOffsets[i] = i - filterHalfSize;
+    /*
+     * Reads the reference error histogram and converts it to a cdf. This only
+     * needs to be done once, however many realisations there are.
+     */
+    private boolean readReferenceCDF(String referenceHistoFile) throws Exception {
+        String line;
+        String[] str;
+        String[] delimiters = { "\t", " ", ",", ":", ";" };
+        int delimiterNum = 0;
+        int i;
+        File file = new File(referenceHistoFile);
+        RandomAccessFile raf = null;
+        raf = new RandomAccessFile(file, "r");
+        int numLines = 0;
+        while ((line = raf.readLine()) != null) {
+            if (!line.trim().equals("")) {
+                numLines++;
+            }
+        } 
+
+        referenceCDF = new double[numLines][2];
+
+        raf.seek(0);
+
+        //Read File Line By Line
+        i = 0;
+        while ((line = raf.readLine()) != null) {
+            str = line.split(delimiters[delimiterNum]);
+            while (str.length < 2) {
+                delimiterNum++;
+                if (delimiterNum == delimiters.length) {
+                    showFeedback("the cdf file does not appear to be properly formated.\n"
+                            + "It must be delimited using a tab, space, comma, colon, or semicolon.");
+                    raf.close();
+                    return false;
+                }
+                str = line.split(delimiters[delimiterNum]);
+            }
+            referenceCDF[i][0] = Double.parseDouble(str[0]); // x value
+            referenceCDF[i][1] = Double.parseDouble(str[1]); // frequency value
+            i++;
         }
 
-        double w = Math.sqrt(36d / (filterHalfSize * (filterHalfSize + 1) * filterSize));
+        raf.close();
 
-        for (i = 0; i < numBands; i++) {
+        // convert the referene histogram to a cdf.
+        for (i = 1; i < numLines; i++) {
+            referenceCDF[i][1] += referenceCDF[i - 1][1];
+        }
+        double totalFrequency = referenceCDF[numLines - 1][1];
+        for (i = 0; i < numLines; i++) {
+            referenceCDF[i][1] = referenceCDF[i][1] / totalFrequency;
+        }
 
-            // create the data line and fill it with random numbers.
-            // notice that the initial dataline is 2 * filterHalfSize larger 
-            // because of the edge effects of the filter.
-            double[] T = new double[diagonalSize + 2 * filterHalfSize];
-            for (j = 0; j < diagonalSize; j++) {
-                T[j] = generator.nextGaussian();
+        startingVals = new int[11];
+        double pVal = 0;
+        for (i = 0; i < numLines; i++) {
+            pVal = referenceCDF[i][1];
+            if (pVal < 0.1) {
+                startingVals[1] = i;
+            }
+            if (pVal < 0.2) {
+                startingVals[2] = i;
+            }
+            if (pVal < 0.3) {
+                startingVals[3] = i;
+            }
+            if (pVal < 0.4) {
+                startingVals[4] = i;
+            }
+            if (pVal < 0.5) {
+                startingVals[5] = i;
+            }
+            if (pVal < 0.6) {
+                startingVals[6] = i;
+            }
+            if (pVal < 0.7) {
+                startingVals[7] = i;
+            }
+            if (pVal < 0.8) {
+                startingVals[8] = i;
+            }
+            if (pVal < 0.9) {
+                startingVals[9] = i;
+            }
+            if (pVal <= 1) {
+                startingVals[10] = i;
+            }
+        }
+        return true;
+    }
+    
+    /*
+     * The working grids of one realisation. Each worker thread has its own 
+     * Realisation, which it reuses for every realisation that it runs.
+     */
+    private class Realisation implements MonteCarlo.Simulator {
+        
+        private final double range;
+        private final double[][] tempGrid1 = new double[rows][cols];
+        private final double[][] tempGrid2 = new double[rows][cols];
+        
+        Realisation(double range) {
+            this.range = range;
+        }
+        
+        @Override
+        public void simulate(int realisation, SplittableRandom random, int[] counts) {
+            int row, col;
+            double[] data1;
+            
+            for (row = 0; row < rows; row++) {
+                Arrays.fill(tempGrid1[row], 0);
+                Arrays.fill(tempGrid2[row], noData);
             }
 
-            double[] y = new double[diagonalSize];
+            TurningBandSimulation(random); // outputs to tempGrid1
 
-            // filter the line
-            for (j = 0; j < diagonalSize; j++) {
-                z = 0;
-                for (k = 0; k < filterSize; k++) {
-                    m = cellOffsets[k];
-                    z += m * T[j + filterHalfSize + m];
-                }
-                y[j] = w * z;
-            }
-
-            // assign the spatially autocorrelated data line an equation of a transect of the grid
-            // first, pick two points on different edges of the grid at random.
-            // Edges are as follows 0 = left, 1 = top, 2 = right, and 3 = bottom
-            edge1 = generator.nextInt(4);
-            edge2 = edge1;
-            do {
-                edge2 = generator.nextInt(4);
-            } while (edge2 == edge1);
-            switch (edge1) {
-                case 0:
-                    pnt1x = 0;
-                    pnt1y = generator.nextDouble() * (rows - 1);
-                    break;
-                case 1:
-                    pnt1x = generator.nextDouble() * (cols - 1);
-                    pnt1y = 0;
-                    break;
-                case 2:
-                    pnt1x = cols - 1;
-                    pnt1y = generator.nextDouble() * (rows - 1);
-                    break;
-                case 3:
-                    pnt1x = generator.nextDouble() * (cols - 1);
-                    pnt1y = rows - 1;
-                    break;
-            }
-
-            switch (edge2) {
-                case 0:
-                    pnt2x = 0;
-                    pnt2y = generator.nextDouble() * (rows - 1);
-                    break;
-                case 1:
-                    pnt2x = generator.nextDouble() * (cols - 1);
-                    pnt2y = 0;
-                    break;
-                case 2:
-                    pnt2x = cols - 1;
-                    pnt2y = generator.nextDouble() * (rows - 1);
-                    break;
-                case 3:
-                    pnt2x = generator.nextDouble() * (cols - 1);
-                    pnt2y = rows - 1;
-                    break;
-            }
-
-            if (pnt1x == pnt2x || pnt1y == pnt2y) {
-                do {
-                    switch (edge2) {
-                        case 0:
-                            pnt2x = 0;
-                            pnt2y = generator.nextDouble() * (rows - 1);
-                            break;
-                        case 1:
-                            pnt2x = generator.nextDouble() * (cols - 1);
-                            pnt2y = 0;
-                            break;
-                        case 2:
-                            pnt2x = cols - 1;
-                            pnt2y = generator.nextDouble() * (rows - 1);
-                            break;
-                        case 3:
-                            pnt2x = generator.nextDouble() * (cols - 1);
-                            pnt2y = rows - 1;
-                            break;
+            HistogramMatching(); // takes tempGrid1 as input; outputs to tempGrid2
+
+            // add random grid to the DEM
+            for (row = 0; row < rows; row++) {  // takes tempGrid2 and outputs back to tempGrid1
+                data1 = dem[row];
+                for (col = 0; col < cols; col++) {
+                    if (data1[col] != noData) {
+                        tempGrid1[row][col] = data1[col] + tempGrid2[row][col];
+                    } else {
+                        tempGrid1[row][col] = noData;
                     }
-                } while (pnt1x == pnt2x || pnt1y == pnt2y);
-            }
-
-            double lineSlope = (pnt2y - pnt1y) / (pnt2x - pnt1x);
-            double lineIntercept = pnt1y - lineSlope * pnt1x;
-            double perpendicularLineSlope = -1 / lineSlope;
-            double slopeDiff = (lineSlope - perpendicularLineSlope);
-            double perpendicularLineIntercept = 0;
-            double intersectingPointX, intersectingPointY;
-
-            // for each of the four corners, figure out what the perpendicular line 
-            // intersection coordinates would be.
-
-            // point (0,0)
-            perpendicularLineIntercept = 0;
-            double corner1X = (perpendicularLineIntercept - lineIntercept) / slopeDiff;
-            double corner1Y = lineSlope * corner1X - lineIntercept;
-
-            // point (0,cols)
-            row = 0;
-            col = cols;
-            perpendicularLineIntercept = row - perpendicularLineSlope * col;
-            double corner2X = (perpendicularLineIntercept - lineIntercept) / slopeDiff;
-            double corner2Y = lineSlope * corner2X - lineIntercept;
-
-            // point (rows,0)
-            row = rows;
-            col = 0;
-            perpendicularLineIntercept = row - perpendicularLineSlope * col;
-            double corner3X = (perpendicularLineIntercept - lineIntercept) / slopeDiff;
-            double corner3Y = lineSlope * corner3X - lineIntercept;
-
-            // point (rows,cols)
-            row = rows;
-            col = cols;
-            perpendicularLineIntercept = row - perpendicularLineSlope * col;
-            double corner4X = (perpendicularLineIntercept - lineIntercept) / slopeDiff;
-            double corner4Y = lineSlope * corner4X - lineIntercept;
-
-            // find the point with the minimum Y value and set it as the line starting point
-            double lineStartX, lineStartY;
-            lineStartX = corner1X;
-            lineStartY = corner1Y;
-            if (corner2Y < lineStartY) {
-                lineStartX = corner2X;
-                lineStartY = corner2Y;
-            }
-            if (corner3Y < lineStartY) {
-                lineStartX = corner3X;
-                lineStartY = corner3Y;
-            }
-            if (corner4Y < lineStartY) {
-                lineStartX = corner4X;
-                lineStartY = corner4Y;
-            }
-
-            // scan through each grid cell and assign it the closest value on the line segment
+                }
+            }
+
+            FillDepressions(); // takes tempGrid1 as input and outputs to tempGrid2
+
+            // find the cells within depressions and increment the counts for those cells.
             for (row = 0; row < rows; row++) {
                 for (col = 0; col < cols; col++) {
-                    perpendicularLineIntercept = row - perpendicularLineSlope * col;
-                    intersectingPointX = (perpendicularLineIntercept - lineIntercept) / slopeDiff;
-                    intersectingPointY = lineSlope * intersectingPointX - lineIntercept;
-                    int p = (int) (Math.sqrt((intersectingPointX - lineStartX) * (intersectingPointX - lineStartX)
-                            + (intersectingPointY - lineStartY) * (intersectingPointY - lineStartY)));
-                    if (p < 0) {
-                        p = 0;
-                    }
-                    if (p > (diagonalSize - 1)) {
-                        p = diagonalSize - 1;
+                    if (tempGrid2[row][col] > tempGrid1[row][col]) {
+                        counts[row * cols + col]++;
                     }
-                    tempGrid1[row][col] += y[p];
                 }
             }
         }
-        
-        for (row = 0; row < rows; row++) {
-            for (col = 0; col < cols; col++) {
-                tempGrid1[row][col] = (float)(tempGrid1[row][col] / numBands);
-            }
-        }
-        
-    }
     
-    private void HistogramMatching(String referenceHistoFile) {
-        try {
+        private void TurningBandSimulation(SplittableRandom generator) {
             int row, col;
+            int i, j, k, m, n;
+            int edge1, edge2;
+            double pnt1x = 0, pnt1y = 0, pnt2x = 0, pnt2y = 0;
             double z;
+            int diagonalSize = 0;
+            diagonalSize = (int) (Math.sqrt(rows * rows + cols * cols));
+            int filterHalfSize = (int) (range / (2 * DEM.getCellSizeX()));
+            int filterSize = filterHalfSize * 2 + 1;
+            int[] cellOffsets = new int[filterSize];
+            for (i = 0; i < filterSize; i++) {
+                cellOffsets[i] = i - filterHalfSize;
+            }
+
+            double w = Math.sqrt(36d / (filterHalfSize * (filterHalfSize + 1) * filterSize));
+
+            for (i = 0; i < numBands; i++) {
+
+                // create the data line and fill it with random numbers.
+                // notice that the initial dataline is 2 * filterHalfSize larger 
+                // because of the edge effects of the filter.
+                double[] T = new double[diagonalSize + 2 * filterHalfSize];
+                for (j = 0; j < diagonalSize; j++) {
+                    T[j] = MonteCarlo.nextGaussian(generator);
+                }
+
+                double[] y = new double[diagonalSize];
+
+                // filter the line
+                for (j = 0; j < diagonalSize; j++) {
+                    z = 0;
+                    for (k = 0; k < filterSize; k++) {
+                        m = cellOffsets[k];
+                        z += m * T[j + filterHalfSize + m];
+                    }
+                    y[j] = w * z;
+                }
+
+                // assign the spatially autocorrelated data line an equation of a transect of the grid
+                // first, pick two points on different edges of the grid at random.
+                // Edges are as follows 0 = left, 1 = top, 2 = right, and 3 = bottom
+                edge1 = generator.nextInt(4);
+                edge2 = edge1;
+                do {
+                    edge2 = generator.nextInt(4);
+                } while (edge2 == edge1);
+                switch (edge1) {
+                    case 0:
+                        pnt1x = 0;
+                        pnt1y = generator.nextDouble() * (rows - 1);
+                        break;
+                    case 1:
+                        pnt1x = generator.nextDouble() * (cols - 1);
+                        pnt1y = 0;
+                        break;
+                    case 2:
+                        pnt1x = cols - 1;
+                        pnt1y = generator.nextDouble() * (rows - 1);
+                        break;
+                    case 3:
+                        pnt1x = generator.nextDouble() * (cols - 1);
+                        pnt1y = rows - 1;
+                        break;
+                }
+
+                switch (edge2) {
+                    case 0:
+                        pnt2x = 0;
+                        pnt2y = generator.nextDouble() * (rows - 1);
+                        break;
+                    case 1:
+                        pnt2x = generator.nextDouble() * (cols - 1);
+                        pnt2y = 0;
+                        break;
+                    case 2:
+                        pnt2x = cols - 1;
+                        pnt2y = generator.nextDouble() * (rows - 1);
+                        break;
+                    case 3:
+                        pnt2x = generator.nextDouble() * (cols - 1);
+                        pnt2y = rows - 1;
+                        break;
+                }
+
+                if (pnt1x == pnt2x || pnt1y == pnt2y) {
+                    do {
+                        switch (edge2) {
+                            case 0:
+                                pnt2x = 0;
+                                pnt2y = generator.nextDouble() * (rows - 1);
+                                break;
+                            case 1:
+                                pnt2x = generator.nextDouble() * (cols - 1);
+                                pnt2y = 0;
+                                break;
+                            case 2:
+                                pnt2x = cols - 1;
+                                pnt2y = generator.nextDouble() * (rows - 1);
+                                break;
+                            case 3:
+                                pnt2x = generator.nextDouble() * (cols - 1);
+                                pnt2y = rows - 1;
+                                break;
+                        }
+                    } while (pnt1x == pnt2x || pnt1y == pnt2y);
+                }
+
+                double lineSlope = (pnt2y - pnt1y) / (pnt2x - pnt1x);
+                double lineIntercept = pnt1y - lineSlope * pnt1x;
+                double perpendicularLineSlope = -1 / lineSlope;
+                double slopeDiff = (lineSlope - perpendicularLineSlope);
+                double perpendicularLineIntercept = 0;
+                double intersectingPointX, intersectingPointY;
+
+                // for each of the four corners, figure out what the perpendicular line 
+                // intersection coordinates would be.
+
+                // point (0,0)
+                perpendicularLineIntercept = 0;
+                double corner1X = (perpendicularLineIntercept - lineIntercept) / slopeDiff;
+                double corner1Y = lineSlope * corner1X - lineIntercept;
+
+                // point (0,cols)
+                row = 0;
+                col = cols;
+                perpendicularLineIntercept = row - perpendicularLineSlope * col;
+                double corner2X = (perpendicularLineIntercept - lineIntercept) / slopeDiff;
+                double corner2Y = lineSlope * corner2X - lineIntercept;
+
+                // point (rows,0)
+                row = rows;
+                col = 0;
+                perpendicularLineIntercept = row - perpendicularLineSlope * col;
+                double corner3X = (perpendicularLineIntercept - lineIntercept) / slopeDiff;
+                double corner3Y = lineSlope * corner3X - lineIntercept;
+
+                // point (rows,cols)
+                row = rows;
+                col = cols;
+                perpendicularLineIntercept = row - perpendicularLineSlope * col;
+                double corner4X = (perpendicularLineIntercept - lineIntercept) / slopeDiff;
+                double corner4Y = lineSlope * corner4X - lineIntercept;
+
+                // find the point with the minimum Y value and set it as the line starting point
+                double lineStartX, lineStartY;
+                lineStartX = corner1X;
+                lineStartY = corner1Y;
+                if (corner2Y < lineStartY) {
+                    lineStartX = corner2X;
+                    lineStartY = corner2Y;
+                }
+                if (corner3Y < lineStartY) {
+                    lineStartX = corner3X;
+                    lineStartY = corner3Y;
+                }
+                if (corner4Y < lineStartY) {
+                    lineStartX = corner4X;
+                    lineStartY = corner4Y;
+                }
+
+                // scan through each grid cell and assign it the closest value on the line segment
+                for (row = 0; row < rows; row++) {
+                    for (col = 0; col < cols; col++) {
+                        perpendicularLineIntercept = row - perpendicularLineSlope * col;
+                        intersectingPointX = (perpendicularLineIntercept - lineIntercept) / slopeDiff;
+                        intersectingPointY = lineSlope * intersectingPointX - lineIntercept;
+                        int p = (int) (Math.sqrt((intersectingPointX - lineStartX) * (intersectingPointX - lineStartX)
+                                + (intersectingPointY - lineStartY) * (intersectingPointY - lineStartY)));
+                        if (p < 0) {
+                            p = 0;
+                        }
+                        if (p > (diagonalSize - 1)) {
+                            p = diagonalSize - 1;
+                        }
+                        tempGrid1[row][col] += y[p];
+                    }
+                }
+            }
+
+            for (row = 0; row < rows; row++) {
+                for (col = 0; col < cols; col++) {
+                    tempGrid1[row][col] = (float)(tempGrid1[row][col] / numBands);
+                }
+            }
+
+        }
+
+        private void HistogramMatching() {
+            int row, col;
             int numCells = 0;
             int i = 0;
-            
+
             int numBins = 50000;
-            
+
             // find the min and max values in tempGrid1
             double minValue = 99999999;
             double maxValue = -99999999;
@@ -578,27 +689,23 @@ public class StochasticDepressionAnalysis implements WhiteboxPlugin {
                     if (tempGrid1[row][col] > maxValue) { maxValue = tempGrid1[row][col]; }
                 }
             }
-            
+
             double binSize = (maxValue - minValue) / numBins;
             long[] histogram = new long[numBins];
             int binNum;
             int numBinsLessOne = numBins - 1;
-            double data1[];
-            
+
             for (row = 0; row < rows; row++) {
                 for (col = 0; col < cols; col++) {
-                    //z = data1[col];
                     if (tempGrid1[row][col] != noData) {
                         numCells++;
                         binNum = (int)((tempGrid1[row][col] - minValue) / binSize);
                         if (binNum > numBinsLessOne) { binNum = numBinsLessOne; }
                         histogram[binNum]++;
                     }
-
                 }
-                                
             }
-            
+
             double[] cdf = new double[numBins];
             cdf[0] = histogram[0]; 
             for (i = 1; i < numBins; i++) {
@@ -608,95 +715,10 @@ public class StochasticDepressionAnalysis implements WhiteboxPlugin {
             for (i = 0; i < numBins; i++) {
                 cdf[i] = cdf[i] / numCells;
             }
- 
-            String line;
-            String[] str;
-            String[] delimiters = { "\t", " ", ",", ":", ";" };
-            int delimiterNum = 0;
-            File file = new File(referenceHistoFile);
-            RandomAccessFile raf = null;
-            raf = new RandomAccessFile(file, "r");
-            int numLines = 0;
-            while ((line = raf.readLine()) != null) {
-                if (!line.trim().equals("")) {
-                    numLines++;
-                }
-            } 
-            
-            double[][] referenceCDF = new double[numLines][2];
-            
-            raf.seek(0);
 
-            //Read File Line By Line
-            i = 0;
-            while ((line = raf.readLine()) != null) {
-                str = line.split(delimiters[delimiterNum]);
-                while (str.length < 2) {
-                    delimiterNum++;
-                    if (delimiterNum == delimiters.length) {
-                        showFeedback("the cdf file does not appear to be properly formated.\n"
-                                + "It must be delimited using a tab, space, comma, colon, or semicolon.");
-                        return;
-                    }
-                    str = line.split(delimiters[delimiterNum]);
-                }
-                referenceCDF[i][0] = Double.parseDouble(str[0]); // x value
-                referenceCDF[i][1] = Double.parseDouble(str[1]); // frequency value
-                i++;
-            }
-            
-            raf.close();
-            
-            // convert the referene histogram to a cdf.
-            for (i = 1; i < numLines; i++) {
-                referenceCDF[i][1] += referenceCDF[i - 1][1];
-            }
-            double totalFrequency = referenceCDF[numLines - 1][1];
-            for (i = 0; i < numLines; i++) {
-                referenceCDF[i][1] = referenceCDF[i][1] / totalFrequency;
-            }
-            
-            int[] startingVals = new int[11];
-            double pVal = 0;
-            for (i = 0; i < numLines; i++) {
-                pVal = referenceCDF[i][1];
-                if (pVal < 0.1) {
-                    startingVals[1] = i;
-                }
-                if (pVal < 0.2) {
-                    startingVals[2] = i;
-                }
-                if (pVal < 0.3) {
-                    startingVals[3] = i;
-                }
-                if (pVal < 0.4) {
-                    startingVals[4] = i;
-                }
-                if (pVal < 0.5) {
-                    startingVals[5] = i;
-                }
-                if (pVal < 0.6) {
-                    startingVals[6] = i;
-                }
-                if (pVal < 0.7) {
-                    startingVals[7] = i;
-                }
-                if (pVal < 0.8) {
-                    startingVals[8] = i;
-                }
-                if (pVal < 0.9) {
-                    startingVals[9] = i;
-                }
-                if (pVal < 0.9) {
-                    startingVals[9] = i;
-                }
-                if (pVal <= 1) {
-                    startingVals[10] = i;
-                }
-            }
-                
-            
+            int numLines = referenceCDF.length;
             int j = 0;
+            double pVal;
             double xVal = 0;
             double x1, x2, p1, p2;
             for (row = 0; row < rows; row++) {
@@ -722,76 +744,45 @@ public class StochasticDepressionAnalysis implements WhiteboxPlugin {
                                     xVal = referenceCDF[i][0];
                                 }
                                 break;
-                                
+
                             }
                         }
                         tempGrid2[row][col] = xVal;
                     }
-
                 }
-                
-                
             }
-             
-        } catch (OutOfMemoryError oe) {
-            myHost.showFeedback("An out-of-memory error has occurred during operation.");
-        } catch (Exception e) {
-            myHost.showFeedback("An error has occurred during operation. See log file for details.");
-            myHost.logException("Error in " + getDescriptiveName(), e);
         }
-    }
-    
-    private void FillDepressions (){
-        
-         try {
+
+        private void FillDepressions() {
             int row_n, col_n;
             int row, col;
             double z_n;
-            long k = 0;
             GridCell gc = null;
             double z;
             int[] Dy = {-1, 0, 1, 1, 1, 0, -1, -1};
             int[] Dx = {1, 1, 1, 0, -1, -1, -1, 0};
             boolean flag = false;
-            int numCells = 0;
-            double[][] input = new double[rows + 2][cols + 2];
-            
-            for (row = 0; row < rows + 2; row++) {
-                input[row][0] = noData;
-                input[row][cols + 1] = noData;
-            }
-            
-            for (col = 0; col < cols + 2; col++) {
-                input[0][col] = noData;
-                input[rows + 1][col] = noData;
-            }
-            
-            double[] data;
+
             for (row = 0; row < rows; row++) {
-                for (col = 0; col < cols; col++) {
-                    tempGrid2[row][col] = -999;
-                    input[row + 1][col + 1] = tempGrid1[row][col];
-                }
+                Arrays.fill(tempGrid2[row], -999);
             }
-            
-            data = new double[0];
-            
+
             // initialize and fill the priority queue.
             PriorityQueue<GridCell> queue = new PriorityQueue<GridCell>((2 * rows + 2 * cols) * 2);
 
             for (row = 0; row < rows; row++) {
                 for (col = 0; col < cols; col++) {
-                    z = input[row + 1][col + 1];
+                    z = tempGrid1[row][col];
                     if (z != noData) {
-                        numCells++;
                         flag = false;
                         for (int i = 0; i < 8; i++) {
                             row_n = row + Dy[i];
                             col_n = col + Dx[i];
-                            z_n = input[row_n + 1][col_n + 1];
-                            if (z_n == noData) {
+                            if (row_n < 0 || row_n >= rows || col_n < 0 || col_n >= cols
+                                    || tempGrid1[row_n][col_n] == noData) {
                                 // it's an edge cell.
                                 flag = true;
+                                break;
                             }
                         }
                         if (flag) {
@@ -800,15 +791,13 @@ public class StochasticDepressionAnalysis implements WhiteboxPlugin {
                             tempGrid2[row][col] = z;
                         }
                     } else {
-                        k++;
                         tempGrid2[row][col] = noData;
                     }
-
                 }
             }
 
             // now fill!
-            do {
+            while (!queue.isEmpty()) {
                 gc = queue.poll();
                 row = gc.row;
                 col = gc.col;
@@ -816,7 +805,10 @@ public class StochasticDepressionAnalysis implements WhiteboxPlugin {
                 for (int i = 0; i < 8; i++) {
                     row_n = row + Dy[i];
                     col_n = col + Dx[i];
-                    z_n = input[row_n + 1][col_n + 1];
+                    if (row_n < 0 || row_n >= rows || col_n < 0 || col_n >= cols) {
+                        continue;
+                    }
+                    z_n = tempGrid1[row_n][col_n];
                     if ((z_n != noData) && (tempGrid2[row_n][col_n] == -999)) {
                         if (z_n <= z) {
                             z_n = z;
@@ -826,15 +818,8 @@ public class StochasticDepressionAnalysis implements WhiteboxPlugin {
                         queue.add(gc);
                     }
                 }
-            } while (queue.isEmpty() == false);
-
-        } catch (OutOfMemoryError oe) {
-            myHost.showFeedback("An out-of-memory error has occurred during operation.");
-        } catch (Exception e) {
-            myHost.showFeedback("An error has occurred during operation. See log file for details.");
-            myHost.logException("Error in " + getDescriptiveName(), e);
+            }
         }
-        
     }
     
     class GridCell implements Comparable<GridCell> {
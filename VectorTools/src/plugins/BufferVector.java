@@ -19,19 +19,19 @@ package plugins;
 
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.GeometryFactory;
-import com.vividsolutions.jts.geom.LineString;
-import com.vividsolutions.jts.geom.MultiPolygon;
-import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import whitebox.algorithms.CascadedUnion;
 import whitebox.geospatialfiles.ShapeFile;
+import whitebox.geospatialfiles.ShapeFileWriter;
 import whitebox.geospatialfiles.shapefile.attributes.DBFField;
-import whitebox.geospatialfiles.shapefile.attributes.DBFWriter;
 import whitebox.geospatialfiles.shapefile.PointsList;
 import whitebox.geospatialfiles.shapefile.ShapeFileRecord;
 import whitebox.geospatialfiles.shapefile.ShapeType;
 import whitebox.geospatialfiles.shapefile.ShapefilePoint;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
+import whitebox.parallel.RowBands;
 import whitebox.utilities.Topology;
 
 /**
@@ -203,14 +203,8 @@ public class BufferVector implements WhiteboxPlugin {
         amIActive = true;
         String inputFile;
         String outputFile;
-        int progress;
-        int i, j, n, FID;
-        int oneHundredthTotal;
-        int numRecs;
-        ShapeType shapeType;
-        double bufferSize = 0;
-        GeometryFactory factory = new GeometryFactory();
-        com.vividsolutions.jts.geom.Geometry geometriesToBuffer = null;
+        final double bufferSize;
+        boolean dissolve = true;
         if (args.length <= 0) {
             showFeedback("Plugin parameters have not been set.");
             return;
@@ -219,6 +213,9 @@ public class BufferVector implements WhiteboxPlugin {
         inputFile = args[0];
         outputFile = args[1];
         bufferSize = Double.parseDouble(args[2]);
+        if (args.length > 3) {
+            dissolve = Boolean.parseBoolean(args[3]);
+        }
         
         if (bufferSize < 0) {
             showFeedback("The buffer size has not been set properly.");
@@ -231,248 +228,135 @@ public class BufferVector implements WhiteboxPlugin {
             return;
         }
 
+        ShapeFileWriter output = null;
         try {
             // set up the input shapefile.
-            ShapeFile input = new ShapeFile(inputFile);
-            shapeType = input.getShapeType();
-            numRecs = input.getNumberOfRecords();
-            
-            oneHundredthTotal = numRecs / 100;
+            final ShapeFile input = new ShapeFile(inputFile);
+            ShapeType baseType = input.getShapeType().getBaseType();
+            final int numRecs = input.getNumberOfRecords();
+            if (baseType != ShapeType.POLYGON && baseType != ShapeType.POLYLINE
+                    && baseType != ShapeType.POINT && baseType != ShapeType.MULTIPOINT) {
+                showFeedback("The input shapefile's shape type is not supported by this tool.");
+                return;
+            }
             
             // set up the output files of the shapefile and the dbf
-            ShapeFile output = new ShapeFile(outputFile, ShapeType.POLYGON);
-            output.setProjectionStringFromOtherShapefile(input);
-            
-            DBFField fields[] = new DBFField[1];
+            DBFField fields[] = new DBFField[dissolve ? 1 : 2];
 
             fields[0] = new DBFField();
             fields[0].setName("FID");
             fields[0].setDataType(DBFField.DBFDataType.NUMERIC);
             fields[0].setFieldLength(10);
             fields[0].setDecimalCount(0);
-
-            String DBFName = output.getDatabaseFile();
-            DBFWriter writer = new DBFWriter(new File(DBFName));
             
-            writer.setFields(fields);
-
-            if (shapeType.getBaseType() == ShapeType.POLYGON) {
-                progress = 0;
-                ArrayList<com.vividsolutions.jts.geom.Polygon> polygons = new ArrayList<>();
-                com.vividsolutions.jts.geom.Geometry[] recJTSPoly = null;
-                n = 0;
-                for (ShapeFileRecord record : input.records) {
-                    if (record.getShapeType() != ShapeType.NULLSHAPE) {
-                        recJTSPoly = record.getGeometry().getJTSGeometries();
-                        for (int a = 0; a < recJTSPoly.length; a++) {
-                            polygons.add((com.vividsolutions.jts.geom.Polygon) recJTSPoly[a]);
-                        }
-                    }
-                    n++;
-                    if (n >= oneHundredthTotal) {
-                        n = 0;
-                        if (cancelOp) {
-                            cancelOperation();
-                            return;
-                        }
-                        progress++;
-                        updateProgress("Reading shapefile data:", progress);
-                    }
-                }
-                // create an array of polygons
-                com.vividsolutions.jts.geom.Polygon[] polygonArray = new com.vividsolutions.jts.geom.Polygon[polygons.size()];
-                for (i = 0; i < polygons.size(); i++) {
-                    polygonArray[i] = polygons.get(i);
-                }
-                polygons.clear();
-
-                geometriesToBuffer = factory.createMultiPolygon(polygonArray);
-                
-            } else if (shapeType.getBaseType() == ShapeType.POLYLINE) {
-                ArrayList<LineString> lineStringList = new ArrayList<>();
-                com.vividsolutions.jts.geom.Geometry[] recJTSPoly = null;
-                progress = 0;
-                n = 0;
-                for (ShapeFileRecord record : input.records) {
-                    if (record.getShapeType() != ShapeType.NULLSHAPE) {
-                        recJTSPoly = record.getGeometry().getJTSGeometries();
-                        for (int a = 0; a < recJTSPoly.length; a++) {
-                            lineStringList.add((com.vividsolutions.jts.geom.LineString) recJTSPoly[a]);
-                        }
-                    }
-                    n++;
-                    if (n >= oneHundredthTotal) {
-                        n = 0;
-                        if (cancelOp) {
-                            cancelOperation();
-                            return;
-                        }
-                        progress++;
-                        updateProgress("Reading shapefile data:", progress);
-                    }
-                }
-                // create an array of polygons
-                com.vividsolutions.jts.geom.LineString[] lineStringArray = new com.vividsolutions.jts.geom.LineString[lineStringList.size()];
-                for (i = 0; i < lineStringList.size(); i++) {
-                    lineStringArray[i] = lineStringList.get(i);
-                }
-                lineStringList.clear();
+            if (!dissolve) {
+                fields[1] = new DBFField();
+                fields[1].setName("PARENT_ID");
+                fields[1].setDataType(DBFField.DBFDataType.NUMERIC);
+                fields[1].setFieldLength(10);
+                fields[1].setDecimalCount(0);
+            }
 
-                geometriesToBuffer = factory.createMultiLineString(lineStringArray);
-                
-            } else if (shapeType.getBaseType() == ShapeType.POINT ||
-                    shapeType.getBaseType() == ShapeType.MULTIPOINT) {
-                ArrayList<com.vividsolutions.jts.geom.Point> pointList = new ArrayList<>();
-                com.vividsolutions.jts.geom.Geometry[] recJTSPoly = null;
-                n = 0;
-                progress = 0;
-                for (ShapeFileRecord record : input.records) {
-                    if (record.getShapeType() != ShapeType.NULLSHAPE) {
-                        recJTSPoly = record.getGeometry().getJTSGeometries();
-                        for (int a = 0; a < recJTSPoly.length; a++) {
-                            pointList.add((com.vividsolutions.jts.geom.Point) recJTSPoly[a]);
-                        }
-                    }
-                    n++;
-                    if (n >= oneHundredthTotal) {
-                        n = 0;
-                        if (cancelOp) {
-                            cancelOperation();
-                            return;
+            final ShapeFileWriter writer = new ShapeFileWriter(outputFile, ShapeType.POLYGON, fields);
+            output = writer;
+            writer.setProjectionStringFromOtherShapefile(input);
+            
+            // each feature is buffered on its own by one of the worker threads
+            RowBands.Task<com.vividsolutions.jts.geom.Geometry[]> bufferTask = new RowBands.Task<com.vividsolutions.jts.geom.Geometry[]>() {
+                @Override
+                public com.vividsolutions.jts.geom.Geometry[] process(int startRec, int endRec) {
+                    GeometryFactory factory = new GeometryFactory();
+                    com.vividsolutions.jts.geom.Geometry[] buffers = new com.vividsolutions.jts.geom.Geometry[endRec - startRec];
+                    for (int r = startRec; r < endRec; r++) {
+                        ShapeFileRecord record = input.getRecord(r);
+                        if (record.getShapeType() != ShapeType.NULLSHAPE) {
+                            com.vividsolutions.jts.geom.Geometry g = factory.buildGeometry(
+                                    Arrays.asList(record.getGeometry().getJTSGeometries()));
+                            com.vividsolutions.jts.geom.Geometry buffer = g.buffer(bufferSize);
+                            if (!buffer.isEmpty()) {
+                                buffers[r - startRec] = buffer;
+                            }
                         }
-                        progress++;
-                        updateProgress("Reading shapefile data:", progress);
                     }
+                    return buffers;
                 }
-                // create an array of polygons
-                com.vividsolutions.jts.geom.Point[] pointArray = new com.vividsolutions.jts.geom.Point[pointList.size()];
-                for (i = 0; i < pointList.size(); i++) {
-                    pointArray[i] = pointList.get(i);
-                }
-                pointList.clear();
-
-                geometriesToBuffer = factory.createMultiPoint(pointArray);
-                
-            }
+            };
             
-            updateProgress("Buffering data (progress will not be updated):", -1);
-            com.vividsolutions.jts.geom.Geometry buffer = geometriesToBuffer.buffer(bufferSize);
-
-            progress = 0;
-            updateProgress("Creating new shapefile:", -1);
-            if (buffer instanceof com.vividsolutions.jts.geom.MultiPolygon) {
-                MultiPolygon mpBuffer = (MultiPolygon) buffer;
-                FID = 0;
-                n = 0;
-                for (int a = 0; a < mpBuffer.getNumGeometries(); a++) {
-                    com.vividsolutions.jts.geom.Geometry g = mpBuffer.getGeometryN(a);
-                    if (g instanceof com.vividsolutions.jts.geom.Polygon) {
-                        com.vividsolutions.jts.geom.Polygon bufferPoly = (com.vividsolutions.jts.geom.Polygon) g;
-                        ArrayList<ShapefilePoint> pnts = new ArrayList<>();
-                        int[] parts = new int[bufferPoly.getNumInteriorRing() + 1];
-
-                        Coordinate[] buffCoords = bufferPoly.getExteriorRing().getCoordinates();
-                        if (!Topology.isLineClosed(buffCoords)) {
-                            System.out.println("Exterior ring not closed.");
-                        }
-                        if (Topology.isClockwisePolygon(buffCoords)) {
-                            for (i = 0; i < buffCoords.length; i++) {
-                                pnts.add(new ShapefilePoint(buffCoords[i].x, buffCoords[i].y));
-                            }
-                        } else {
-                            for (i = buffCoords.length - 1; i >= 0; i--) {
-                                pnts.add(new ShapefilePoint(buffCoords[i].x, buffCoords[i].y));
+            boolean completed;
+            if (!dissolve) {
+                // the buffers are written as soon as each band of features
+                // is complete, so that they never all need to be held in memory
+                completed = RowBands.process(numRecs, bufferTask, new RowBands.Consumer<com.vividsolutions.jts.geom.Geometry[]>() {
+                    @Override
+                    public boolean consume(int startRec, int endRec, com.vividsolutions.jts.geom.Geometry[] buffers) throws Exception {
+                        for (int r = startRec; r < endRec; r++) {
+                            if (buffers[r - startRec] != null) {
+                                Object[] rowData = new Object[2];
+                                rowData[0] = new Double(writer.getNumberOfRecords() + 1);
+                                rowData[1] = new Double(input.getRecord(r).getRecordNumber());
+                                writer.addRecord(getWhiteboxPolygon(buffers[r - startRec]), rowData);
                             }
                         }
-
-                        for (int b = 0; b < bufferPoly.getNumInteriorRing(); b++) {
-                            parts[b + 1] = pnts.size();
-                            buffCoords = bufferPoly.getInteriorRingN(b).getCoordinates();
-                            if (!Topology.isLineClosed(buffCoords)) {
-                                System.out.println("Interior ring not closed.");
-                            }
-                            if (Topology.isClockwisePolygon(buffCoords)) {
-                                for (i = buffCoords.length - 1; i >= 0; i--) {
-                                    pnts.add(new ShapefilePoint(buffCoords[i].x, buffCoords[i].y));
-                                }
-                            } else {
-                                for (i = 0; i < buffCoords.length; i++) {
-                                    pnts.add(new ShapefilePoint(buffCoords[i].x, buffCoords[i].y));
-                                }
+                        updateProgress("Buffering features:", (int) (100L * endRec / numRecs));
+                        return !cancelOp;
+                    }
+                });
+            } else {
+                final ArrayList<com.vividsolutions.jts.geom.Geometry> buffers = new ArrayList<>();
+                completed = RowBands.process(numRecs, bufferTask, new RowBands.Consumer<com.vividsolutions.jts.geom.Geometry[]>() {
+                    @Override
+                    public boolean consume(int startRec, int endRec, com.vividsolutions.jts.geom.Geometry[] bandBuffers) {
+                        for (com.vividsolutions.jts.geom.Geometry buffer : bandBuffers) {
+                            if (buffer != null) {
+                                buffers.add(buffer);
                             }
                         }
-
-                        PointsList pl = new PointsList(pnts);
-
-                        whitebox.geospatialfiles.shapefile.Polygon wbPoly = new whitebox.geospatialfiles.shapefile.Polygon(parts, pl.getPointsArray());
-                        output.addRecord(wbPoly);
-
-                        FID++;
-                        Object[] rowData = new Object[1];
-                        rowData[0] = new Double(FID);
-                        writer.addRecord(rowData);
-
-                        if (cancelOp) {
-                            cancelOperation();
-                            return;
-                        }
-                        n++;
-                        progress = (int) (n * 100.0 / mpBuffer.getNumGeometries());
-                        updateProgress("Creating new shapefile:", progress);
-
-                    } else {
-                        // I'm really hoping this is never hit.
+                        updateProgress("Buffering features:", (int) (100L * endRec / numRecs));
+                        return !cancelOp;
                     }
-                }
-            } else if (buffer instanceof com.vividsolutions.jts.geom.Polygon) {
-                com.vividsolutions.jts.geom.Polygon pBuffer = (com.vividsolutions.jts.geom.Polygon) buffer;
-                com.vividsolutions.jts.geom.Geometry g = pBuffer.getGeometryN(0);
-                if (g instanceof com.vividsolutions.jts.geom.Polygon) {
-                    ArrayList<ShapefilePoint> pnts = new ArrayList<>();
-
-                    int[] parts = new int[pBuffer.getNumInteriorRing() + 1];
-
-                    Coordinate[] buffCoords = pBuffer.getExteriorRing().getCoordinates();
-                    if (Topology.isClockwisePolygon(buffCoords)) {
-                        for (i = 0; i < buffCoords.length; i++) {
-                            pnts.add(new ShapefilePoint(buffCoords[i].x, buffCoords[i].y));
+                });
+                
+                if (completed && !buffers.isEmpty()) {
+                    // overlapping buffers are merged neighbourhood by neighbourhood
+                    com.vividsolutions.jts.geom.Geometry dissolved = CascadedUnion.union(buffers, new CascadedUnion.Progress() {
+                        @Override
+                        public boolean unionsCompleted(int unionsCompleted, int total) {
+                            if (total > 0) {
+                                updateProgress("Dissolving buffers:", (int) (100L * unionsCompleted / total));
+                            }
+                            return !cancelOp;
                         }
+                    });
+                    buffers.clear();
+                    
+                    if (dissolved == null) {
+                        completed = false;
                     } else {
-                        for (i = buffCoords.length - 1; i >= 0; i--) {
-                            pnts.add(new ShapefilePoint(buffCoords[i].x, buffCoords[i].y));
-                        }
-                    }
-
-                    for (int b = 0; b < pBuffer.getNumInteriorRing(); b++) {
-                        parts[b + 1] = pnts.size();
-                        buffCoords = pBuffer.getInteriorRingN(b).getCoordinates();
-                        if (Topology.isClockwisePolygon(buffCoords)) {
-                            for (i = buffCoords.length - 1; i >= 0; i--) {
-                                pnts.add(new ShapefilePoint(buffCoords[i].x, buffCoords[i].y));
+                        int numPolygons = dissolved.getNumGeometries();
+                        for (int a = 0; a < numPolygons; a++) {
+                            com.vividsolutions.jts.geom.Geometry g = dissolved.getGeometryN(a);
+                            if (g instanceof com.vividsolutions.jts.geom.Polygon) {
+                                Object[] rowData = new Object[1];
+                                rowData[0] = new Double(writer.getNumberOfRecords() + 1);
+                                writer.addRecord(getWhiteboxPolygon(g), rowData);
                             }
-                        } else {
-                            for (i = 0; i < buffCoords.length; i++) {
-                                pnts.add(new ShapefilePoint(buffCoords[i].x, buffCoords[i].y));
+                            if (cancelOp) {
+                                completed = false;
+                                break;
                             }
+                            updateProgress("Saving output file:", (int) (100L * (a + 1) / numPolygons));
                         }
                     }
-
-                    PointsList pl = new PointsList(pnts);
-                    whitebox.geospatialfiles.shapefile.Polygon wbPoly = new whitebox.geospatialfiles.shapefile.Polygon(parts, pl.getPointsArray());
-                    output.addRecord(wbPoly);
-
-                    Object[] rowData = new Object[1];
-                    rowData[0] = new Double(1);
-                    writer.addRecord(rowData);
-                } else {
-                        // I'm really hoping this is never hit.
                 }
-
             }
 
-            output.write();
-            writer.write();
+            output = null;
+            writer.close();
             
+            if (!completed) {
+                cancelOperation();
+                return;
+            }
             
             // returning a header file string displays the image.
             returnData(outputFile);
@@ -484,6 +368,13 @@ public class BufferVector implements WhiteboxPlugin {
             myHost.showFeedback("An error has occurred during operation. See log file for details.");
             myHost.logException("Error in " + getDescriptiveName(), e);
         } finally {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (Exception e) {
+                    // the error has already been reported
+                }
+            }
             updateProgress("Progress: ", 0);
             // tells the main application that this process is completed.
             amIActive = false;
@@ -492,9 +383,49 @@ public class BufferVector implements WhiteboxPlugin {
        
     }
     
+    /*
+     * Converts the polygons of a buffer into a single Whitebox polygon, with
+     * each exterior ring running clockwise and each hole counter-clockwise.
+     */
+    private static whitebox.geospatialfiles.shapefile.Polygon getWhiteboxPolygon(
+            com.vividsolutions.jts.geom.Geometry buffer) {
+        ArrayList<ShapefilePoint> pnts = new ArrayList<>();
+        ArrayList<Integer> partStarts = new ArrayList<>();
+        for (int a = 0; a < buffer.getNumGeometries(); a++) {
+            com.vividsolutions.jts.geom.Geometry g = buffer.getGeometryN(a);
+            if (g instanceof com.vividsolutions.jts.geom.Polygon) {
+                com.vividsolutions.jts.geom.Polygon bufferPoly = (com.vividsolutions.jts.geom.Polygon) g;
+                partStarts.add(pnts.size());
+                addRing(bufferPoly.getExteriorRing().getCoordinates(), true, pnts);
+                for (int b = 0; b < bufferPoly.getNumInteriorRing(); b++) {
+                    partStarts.add(pnts.size());
+                    addRing(bufferPoly.getInteriorRingN(b).getCoordinates(), false, pnts);
+                }
+            }
+        }
+        int[] parts = new int[partStarts.size()];
+        for (int a = 0; a < parts.length; a++) {
+            parts[a] = partStarts.get(a);
+        }
+        PointsList pl = new PointsList(pnts);
+        return new whitebox.geospatialfiles.shapefile.Polygon(parts, pl.getPointsArray());
+    }
+    
+    private static void addRing(Coordinate[] buffCoords, boolean clockwise, ArrayList<ShapefilePoint> pnts) {
+        if (Topology.isClockwisePolygon(buffCoords) == clockwise) {
+            for (int i = 0; i < buffCoords.length; i++) {
+                pnts.add(new ShapefilePoint(buffCoords[i].x, buffCoords[i].y));
+            }
+        } else {
+            for (int i = buffCoords.length - 1; i >= 0; i--) {
+                pnts.add(new ShapefilePoint(buffCoords[i].x, buffCoords[i].y));
+            }
+        }
+    }
+    
     // This method is only used during testing.
     public static void main(String[] args) {
-        args = new String[3];
+        args = new String[4];
         args[0] = "/Users/johnlindsay/Downloads/sample/tmp1.shp";
         args[1] = "/Users/johnlindsay/Downloads/sample/tmp3.shp";
 //        args[0] = "/Users/johnlindsay/Documents/Data/ShapeFiles/rondeau lakes.shp";
@@ -518,6 +449,7 @@ public class BufferVector implements WhiteboxPlugin {
         //args[0] = "/Users/johnlindsay/Documents/Research/Conference Presentations and Guest Talks/2012 CGU/Data/ontario roads.shp";
         //args[1] = "/Users/johnlindsay/Documents/Research/Conference Presentations and Guest Talks/2012 CGU/Data/tmp1.shp";
         args[2] = "0.0";
+        args[3] = "true";
         
         BufferVector bv = new BufferVector();
         bv.setArgs(args);
@@ -16,23 +16,23 @@
  */
 package plugins;
 
+import com.vividsolutions.jts.algorithm.locate.SimplePointInAreaLocator;
 import com.vividsolutions.jts.geom.Coordinate;
-import com.vividsolutions.jts.geom.GeometryCollection;
-import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.LineString;
-import com.vividsolutions.jts.geom.prep.PreparedGeometry;
-import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
-import java.io.File;
+import com.vividsolutions.jts.index.strtree.STRtree;
+import com.vividsolutions.jts.operation.polygonize.Polygonizer;
 import java.util.ArrayList;
+import whitebox.algorithms.CascadedUnion;
 import whitebox.geospatialfiles.ShapeFile;
 import whitebox.geospatialfiles.shapefile.attributes.DBFField;
-import whitebox.geospatialfiles.shapefile.attributes.DBFWriter;
 import whitebox.geospatialfiles.shapefile.PointsList;
 import whitebox.geospatialfiles.shapefile.ShapeFileRecord;
 import whitebox.geospatialfiles.shapefile.ShapeType;
 import whitebox.geospatialfiles.shapefile.ShapefilePoint;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
+import whitebox.parallel.RowBands;
 import whitebox.utilities.Topology;
 
 /**
@@ -202,14 +202,10 @@ public class Fuse implements WhiteboxPlugin {
         String[] shapefiles = new String[2];
         String outputFile;
         int progress;
-        int i, n, FID;
+        int n;
         int oneHundredthTotal;
         int numRecs;
-        ShapeType shapeType;
-        ShapeType outputShapeType = ShapeType.POLYGON;
-        GeometryFactory factory = new GeometryFactory();
-        com.vividsolutions.jts.geom.Geometry g1 = null;
-        com.vividsolutions.jts.geom.Geometry g2 = null;
+        ShapeType outputShapeType = null;
 
         if (args.length <= 0) {
             showFeedback("Plugin parameters have not been set.");
@@ -228,119 +224,102 @@ public class Fuse implements WhiteboxPlugin {
 
         try {
 
+            // The boundaries of the features in both files are noded against
+            // each other, so that every interior boundary is kept, and each of
+            // the resulting pieces is attributed with the features of the two
+            // inputs that it falls within.
             com.vividsolutions.jts.geom.Geometry[] recJTSGeometries = null;
-            ArrayList<com.vividsolutions.jts.geom.Geometry> inputGeometryList =
-                    new ArrayList<>();
-            com.vividsolutions.jts.geom.Geometry outputGeometry = null;
-
-
-            ShapeFile input1 = new ShapeFile(shapefiles[0]);
-            shapeType = input1.getShapeType();
-            numRecs = input1.getNumberOfRecords();
-
-            if (shapeType.getBaseType() == ShapeType.POINT
-                    || shapeType.getBaseType() == ShapeType.MULTIPOINT) {
-                outputShapeType = ShapeType.POINT;
-            } else if (shapeType.getBaseType() == ShapeType.POLYLINE
-                    && outputShapeType == ShapeType.POLYGON) {
-                outputShapeType = ShapeType.POLYLINE;
-            }
+            ArrayList<com.vividsolutions.jts.geom.Geometry> linework = new ArrayList<>();
+            final STRtree[] parentIndices = new STRtree[2];
+            ShapeFile input1 = null;
+
+            for (int k = 0; k < 2; k++) {
+                ShapeFile input = new ShapeFile(shapefiles[k]);
+                ShapeType baseType = input.getShapeType().getBaseType();
+                if (baseType == ShapeType.MULTIPOINT) {
+                    baseType = ShapeType.POINT;
+                }
+                if (k == 0) {
+                    input1 = input;
+                    outputShapeType = baseType;
+                } else if (baseType != outputShapeType) {
+                    showFeedback("Both input files must be of the same shape type.");
+                    return;
+                }
+                numRecs = input.getNumberOfRecords();
 
-            oneHundredthTotal = numRecs / 100;
-            progress = 0;
-            n = 0;
-            for (ShapeFileRecord record : input1.records) {
-                if (record.getShapeType() != ShapeType.NULLSHAPE) {
-                    recJTSGeometries = record.getGeometry().getJTSGeometries();
-                    for (int a = 0; a < recJTSGeometries.length; a++) {
-                        recJTSGeometries[a].setUserData(record.getRecordNumber());
-                        if (recJTSGeometries[a].isValid()) {
-                            inputGeometryList.add(recJTSGeometries[a]);
-                        } else {
-                            System.out.println(record.getRecordNumber() + " is invalid.");
+                parentIndices[k] = new STRtree();
+                oneHundredthTotal = numRecs / 100;
+                progress = 0;
+                n = 0;
+                for (ShapeFileRecord record : input.records) {
+                    if (record.getShapeType() != ShapeType.NULLSHAPE) {
+                        recJTSGeometries = record.getGeometry().getJTSGeometries();
+                        for (int a = 0; a < recJTSGeometries.length; a++) {
+                            recJTSGeometries[a].setUserData(record.getRecordNumber());
+                            if (recJTSGeometries[a].isValid()) {
+                                parentIndices[k].insert(recJTSGeometries[a].getEnvelopeInternal(), recJTSGeometries[a]);
+                                if (outputShapeType == ShapeType.POLYGON) {
+                                    linework.add(recJTSGeometries[a].getBoundary());
+                                } else {
+                                    linework.add(recJTSGeometries[a]);
+                                }
+                            } else {
+                                System.out.println(record.getRecordNumber() + " is invalid.");
+                            }
                         }
                     }
-                }
-                n++;
-                if (n >= oneHundredthTotal) {
-                    n = 0;
-                    if (cancelOp) {
-                        cancelOperation();
-                        return;
+                    n++;
+                    if (n >= oneHundredthTotal) {
+                        n = 0;
+                        if (cancelOp) {
+                            cancelOperation();
+                            return;
+                        }
+                        progress++;
+                        updateProgress("Loop " + (k + 1) + " of 2: Reading data:", progress);
                     }
-                    progress++;
-                    updateProgress("Loop 1 of " + 2 + ": Reading data:", progress);
                 }
+                parentIndices[k].build();
             }
-            g1 = factory.buildGeometry(inputGeometryList);
-            inputGeometryList.clear();
 
+            updateProgress("Noding features:", 0);
+            com.vividsolutions.jts.geom.Geometry noded = CascadedUnion.union(linework, new CascadedUnion.Progress() {
 
+                int oldProgress = -1;
 
-            ShapeFile input2 = new ShapeFile(shapefiles[1]);
-            shapeType = input2.getShapeType();
-            if (input2.getShapeType() != shapeType) {
-                showFeedback("Both input images must be of the same shape type.");
+                @Override
+                public boolean unionsCompleted(int completed, int total) {
+                    int progress = total > 0 ? (int) (100L * completed / total) : 100;
+                    if (progress != oldProgress) {
+                        updateProgress("Noding features:", progress);
+                        oldProgress = progress;
+                    }
+                    return !cancelOp;
+                }
+            });
+            if (noded == null) {
+                cancelOperation();
                 return;
             }
-            numRecs = input2.getNumberOfRecords();
-
-            if (shapeType.getBaseType() == ShapeType.POINT
-                    || shapeType.getBaseType() == ShapeType.MULTIPOINT) {
-                outputShapeType = ShapeType.POINT;
-            } else if (shapeType.getBaseType() == ShapeType.POLYLINE
-                    && outputShapeType == ShapeType.POLYGON) {
-                outputShapeType = ShapeType.POLYLINE;
-            }
+            linework.clear();
 
-            oneHundredthTotal = numRecs / 100;
-            progress = 0;
-            n = 0;
-            for (ShapeFileRecord record : input2.records) {
-                if (record.getShapeType() != ShapeType.NULLSHAPE) {
-                    recJTSGeometries = record.getGeometry().getJTSGeometries();
-                    for (int a = 0; a < recJTSGeometries.length; a++) {
-                        recJTSGeometries[a].setUserData(record.getRecordNumber());
-                        if (recJTSGeometries[a].isValid()) {
-                            inputGeometryList.add(recJTSGeometries[a]);
-                        } else {
-                            System.out.println(record.getRecordNumber() + " is invalid.");
-                        }
-                    }
+            final ArrayList<com.vividsolutions.jts.geom.Geometry> pieces = new ArrayList<>();
+            if (outputShapeType == ShapeType.POLYGON) {
+                updateProgress("Building polygons (progress will not be updated):", -1);
+                Polygonizer polygonizer = new Polygonizer();
+                polygonizer.add(noded);
+                for (Object o : polygonizer.getPolygons()) {
+                    pieces.add((com.vividsolutions.jts.geom.Geometry) o);
                 }
-                n++;
-                if (n >= oneHundredthTotal) {
-                    n = 0;
-                    if (cancelOp) {
-                        cancelOperation();
-                        return;
-                    }
-                    progress++;
-                    updateProgress("Loop 2 of " + 2 + ": Reading data:", progress);
+            } else {
+                for (int a = 0; a < noded.getNumGeometries(); a++) {
+                    pieces.add(noded.getGeometryN(a));
                 }
             }
+            noded = null;
 
-            g2 = factory.buildGeometry(inputGeometryList);
-            inputGeometryList.clear();
-
-
-
-            updateProgress("Performing operation (progress will not be updated):", -1);
-            try {
-                outputGeometry = g1.difference(g2);
-            } catch (Exception ex) {
-                outputGeometry = com.vividsolutions.jts.operation.overlay.snap.SnapOverlayOp.difference(g1, g2);
-            }
-
-
-            ShapeFile output = null;
-            DBFWriter writer = null;
-
-            // set up the output files of the shapefile and the dbf
-            output = new ShapeFile(outputFile, outputShapeType);
-            output.setProjectionStringFromOtherShapefile(input1);
-
-            DBFField fields[] = new DBFField[3];  //numFields];
+            DBFField fields[] = new DBFField[3];
 
             fields[0] = new DBFField();
             fields[0].setName("FID");
@@ -360,565 +339,176 @@ public class Fuse implements WhiteboxPlugin {
             fields[2].setFieldLength(10);
             fields[2].setDecimalCount(0);
 
-            String DBFName = output.getDatabaseFile();
-            writer = new DBFWriter(new File(DBFName));
-
-            writer.setFields(fields);
-
-            PreparedGeometry[] tests1 = new PreparedGeometry[g1.getNumGeometries()];
-            com.vividsolutions.jts.geom.Geometry[] testGs1 = new com.vividsolutions.jts.geom.Geometry[g1.getNumGeometries()];
-            int[] userData1 = new int[g1.getNumGeometries()];
-            for (int a = 0; a < g1.getNumGeometries(); a++) {
-                tests1[a] = PreparedGeometryFactory.prepare(g1.getGeometryN(a));
-                userData1[a] = Integer.parseInt(g1.getGeometryN(a).getUserData().toString());
-                testGs1[a] = g1.getGeometryN(a);
-
-            }
-
-            PreparedGeometry[] tests2 = new PreparedGeometry[g2.getNumGeometries()];
-            com.vividsolutions.jts.geom.Geometry[] testGs2 = new com.vividsolutions.jts.geom.Geometry[g2.getNumGeometries()];
-            int[] userData2 = new int[g2.getNumGeometries()];
-            for (int a = 0; a < g2.getNumGeometries(); a++) {
-                tests2[a] = PreparedGeometryFactory.prepare(g2.getGeometryN(a));
-                userData2[a] = Integer.parseInt(g2.getGeometryN(a).getUserData().toString());
-                testGs2[a] = g2.getGeometryN(a);
-            }
-
-            if (outputGeometry instanceof GeometryCollection) {
+            final ShapeFile output = new ShapeFile(outputFile, outputShapeType, fields);
+            output.setProjectionStringFromOtherShapefile(input1);
 
-                int numGeometries = outputGeometry.getNumGeometries();
-                oneHundredthTotal = (int) (numGeometries / 100.0);
-                progress = 0;
-                n = 0;
-                FID = 0;
-                int parentRecNum = 0;
-                for (int a = 0; a < numGeometries; a++) {
-                    parentRecNum = -99;
-                    com.vividsolutions.jts.geom.Geometry gN = outputGeometry.getGeometryN(a);
-
-                    for (int m = 0; m < tests1.length; m++) {
-                        if (tests1[m].overlaps(gN) || tests1[m].covers(gN) || gN.distance(testGs1[m]) < 0.0001) {
-                            parentRecNum = userData1[m];
-                            break;
+            // the parents of the pieces are found in parallel and the pieces
+            // are written in order
+            final ShapeType shapeType = outputShapeType;
+            final int numPieces = pieces.size();
+            boolean completed = RowBands.process(numPieces, new RowBands.Task<int[][]>() {
+                @Override
+                public int[][] process(int startPiece, int endPiece) {
+                    int[][] parents = new int[endPiece - startPiece][2];
+                    for (int a = startPiece; a < endPiece; a++) {
+                        Coordinate p = getLocation(pieces.get(a));
+                        for (int k = 0; k < 2; k++) {
+                            parents[a - startPiece][k] = findParent(parentIndices[k], p, shapeType);
                         }
                     }
-                    if (gN instanceof com.vividsolutions.jts.geom.Point
-                            && outputShapeType == ShapeType.POINT) {
-                        Coordinate p = gN.getCoordinate();
-                        // you will loose any z and m information if they are in the input file.
-                        // you'll need to fix this some other time when you get a chance.
-                        whitebox.geospatialfiles.shapefile.Point wbGeometry = new whitebox.geospatialfiles.shapefile.Point(p.x, p.y);
-                        output.addRecord(wbGeometry);
-
-                        FID++;
-                        //Object[] rowData = attributeTableRecords[parentRecNum - 1];
-                        Object[] rowData = new Object[1];
-                        rowData[0] = new Double(FID);
-                        writer.addRecord(rowData);
-                    } else if (gN instanceof LineString
-                            && outputShapeType == ShapeType.POLYLINE) {
-                        LineString ls = (LineString) gN;
-                        ArrayList<ShapefilePoint> pnts = new ArrayList<>();
-
-                        int[] parts = {0};
-
-                        Coordinate[] coords = ls.getCoordinates();
-                        for (i = 0; i < coords.length; i++) {
-                            pnts.add(new ShapefilePoint(coords[i].x, coords[i].y));
-                        }
-
-                        PointsList pl = new PointsList(pnts);
-                        whitebox.geospatialfiles.shapefile.PolyLine wbGeometry = new whitebox.geospatialfiles.shapefile.PolyLine(parts, pl.getPointsArray());
-                        output.addRecord(wbGeometry);
-
-                        FID++;
-                        //Object[] rowData = attributeTableRecords[parentRecNum - 1];
-                        Object[] rowData = new Object[3];
-                        rowData[0] = new Double(FID);
-                        rowData[1] = new Double(parentRecNum);
-                        rowData[2] = null;
-                        writer.addRecord(rowData);
-                    } else if (gN instanceof com.vividsolutions.jts.geom.Polygon
-                            && outputShapeType == ShapeType.POLYLINE) {
-                        com.vividsolutions.jts.geom.Polygon p = (com.vividsolutions.jts.geom.Polygon) gN;
-                        ArrayList<ShapefilePoint> pnts = new ArrayList<>();
-
-                        int[] parts = new int[p.getNumInteriorRing() + 1];
-
-                        Coordinate[] coords = p.getExteriorRing().getCoordinates();
-                        if (Topology.isClockwisePolygon(coords)) {
-                            for (i = coords.length - 1; i >= 0; i--) {
-                                pnts.add(new ShapefilePoint(coords[i].x, coords[i].y));
-                            }
-                        } else {
-                            for (i = 0; i < coords.length; i++) {
-                                pnts.add(new ShapefilePoint(coords[i].x, coords[i].y));
-                            }
-                        }
-
-                        for (int b = 0; b < p.getNumInteriorRing(); b++) {
-                            parts[b + 1] = pnts.size();
-                            coords = p.getInteriorRingN(b).getCoordinates();
-                            if (Topology.isClockwisePolygon(coords)) {
-                                for (i = coords.length - 1; i >= 0; i--) {
-                                    pnts.add(new ShapefilePoint(coords[i].x, coords[i].y));
-                                }
-                            } else {
-                                for (i = 0; i < coords.length; i++) {
-                                    pnts.add(new ShapefilePoint(coords[i].x, coords[i].y));
-                                }
-                            }
-                        }
-
-                        PointsList pl = new PointsList(pnts);
-                        whitebox.geospatialfiles.shapefile.PolyLine wbGeometry = new whitebox.geospatialfiles.shapefile.PolyLine(parts, pl.getPointsArray());
-                        output.addRecord(wbGeometry);
-
-                        FID++;
-                        //Object[] rowData = attributeTableRecords[parentRecNum - 1];
-                        Object[] rowData = new Object[3];
-                        rowData[0] = new Double(FID);
-                        rowData[1] = new Double(parentRecNum);
-                        rowData[2] = null;
-                        writer.addRecord(rowData);
-                    } else if (gN instanceof com.vividsolutions.jts.geom.Polygon
-                            && outputShapeType == ShapeType.POLYGON) {
-                        com.vividsolutions.jts.geom.Polygon p = (com.vividsolutions.jts.geom.Polygon) gN;
-                        ArrayList<ShapefilePoint> pnts = new ArrayList<>();
-
-                        int[] parts = new int[p.getNumInteriorRing() + 1];
-
-                        Coordinate[] coords = p.getExteriorRing().getCoordinates();
-                        if (Topology.isClockwisePolygon(coords)) {
-                            for (i = coords.length - 1; i >= 0; i--) {
-                                pnts.add(new ShapefilePoint(coords[i].x, coords[i].y));
-                            }
-                        } else {
-                            for (i = 0; i < coords.length; i++) {
-                                pnts.add(new ShapefilePoint(coords[i].x, coords[i].y));
-                            }
-                        }
-
-                        for (int b = 0; b < p.getNumInteriorRing(); b++) {
-                            parts[b + 1] = pnts.size();
-                            coords = p.getInteriorRingN(b).getCoordinates();
-                            if (Topology.isClockwisePolygon(coords)) {
-                                for (i = coords.length - 1; i >= 0; i--) {
-                                    pnts.add(new ShapefilePoint(coords[i].x, coords[i].y));
-                                }
-                            } else {
-                                for (i = 0; i < coords.length; i++) {
-                                    pnts.add(new ShapefilePoint(coords[i].x, coords[i].y));
-                                }
-                            }
+                    return parents;
+                }
+            }, new RowBands.Consumer<int[][]>() {
+
+                int FID = 0;
+
+                @Override
+                public boolean consume(int startPiece, int endPiece, int[][] parents) throws Exception {
+                    for (int a = startPiece; a < endPiece; a++) {
+                        int parent1 = parents[a - startPiece][0];
+                        int parent2 = parents[a - startPiece][1];
+                        if (parent1 < 0 && parent2 < 0) {
+                            // a gap enclosed by the features of the inputs
+                            continue;
                         }
-
-                        PointsList pl = new PointsList(pnts);
-                        whitebox.geospatialfiles.shapefile.Polygon wbGeometry = new whitebox.geospatialfiles.shapefile.Polygon(parts, pl.getPointsArray());
-                        output.addRecord(wbGeometry);
-
                         FID++;
-                        //Object[] rowData = attributeTableRecords[parentRecNum - 1];
                         Object[] rowData = new Object[3];
                         rowData[0] = new Double(FID);
-                        rowData[1] = new Double(parentRecNum);
-                        rowData[2] = null;
-                        writer.addRecord(rowData);
-                    } else {
-                        // it shouldn't really hit here ever.
-                        //showFeedback("An error was encountered when saving the output file.");
-                        //return;
-                    }
-
-                    n++;
-                    if (n >= oneHundredthTotal) {
-                        n = 0;
-                        if (cancelOp) {
-                            cancelOperation();
-                            return;
-                        }
-                        progress++;
-                        updateProgress("Saving output file", progress);
+                        rowData[1] = parent1 < 0 ? null : new Double(parent1);
+                        rowData[2] = parent2 < 0 ? null : new Double(parent2);
+                        output.addRecord(getWhiteboxGeometry(pieces.get(a), shapeType), rowData);
                     }
+                    updateProgress("Saving output file", (int) (100L * endPiece / numPieces));
+                    return !cancelOp;
                 }
-            } else {
-                // it shouldn't really hit here ever.
-                showFeedback("An error was encountered when saving the output file.");
+            });
+            if (!completed) {
+                cancelOperation();
                 return;
             }
 
+            output.write();
 
-            updateProgress("Performing operation (progress will not be updated):", -1);
-            try {
-                outputGeometry = g2.difference(g1);
-            } catch (Exception ex) {
-                outputGeometry = com.vividsolutions.jts.operation.overlay.snap.SnapOverlayOp.difference(g2, g1);
-            }
-
-            if (outputGeometry instanceof GeometryCollection) {
-
-
-                int numGeometries = outputGeometry.getNumGeometries();
-                oneHundredthTotal = (int) (numGeometries / 100.0);
-                progress = 0;
-                n = 0;
-                int parentRecNum = 0;
-                for (int a = 0; a < numGeometries; a++) {
-                    parentRecNum = -99;
-                    com.vividsolutions.jts.geom.Geometry gN = outputGeometry.getGeometryN(a);
-
-                    for (int m = 0; m < tests2.length; m++) {
-                        if (tests2[m].overlaps(gN) || tests2[m].covers(gN) || gN.distance(testGs2[m]) < 0.0001) {
-                            parentRecNum = userData2[m];
-                            break;
-                        }
-                    }
-                    if (gN instanceof com.vividsolutions.jts.geom.Point
-                            && outputShapeType == ShapeType.POINT) {
-                        Coordinate p = gN.getCoordinate();
-                        // you will loose any z and m information if they are in the input file.
-                        // you'll need to fix this some other time when you get a chance.
-                        whitebox.geospatialfiles.shapefile.Point wbGeometry = new whitebox.geospatialfiles.shapefile.Point(p.x, p.y);
-                        output.addRecord(wbGeometry);
+            // returning a header file string displays the image.
+            returnData(outputFile);
 
-                        FID++;
-                        Object[] rowData = new Object[3];
-                        rowData[0] = new Double(FID);
-                        rowData[1] = null;
-                        rowData[2] = new Double(parentRecNum);
-                        writer.addRecord(rowData);
-                    } else if (gN instanceof LineString
-                            && outputShapeType == ShapeType.POLYLINE) {
-                        LineString ls = (LineString) gN;
-                        ArrayList<ShapefilePoint> pnts = new ArrayList<ShapefilePoint>();
-
-                        int[] parts = {0};
-
-                        Coordinate[] coords = ls.getCoordinates();
-                        for (i = 0; i < coords.length; i++) {
-                            pnts.add(new ShapefilePoint(coords[i].x, coords[i].y));
-                        }
 
-                        PointsList pl = new PointsList(pnts);
-                        whitebox.geospatialfiles.shapefile.PolyLine wbGeometry = new whitebox.geospatialfiles.shapefile.PolyLine(parts, pl.getPointsArray());
-                        output.addRecord(wbGeometry);
+        } catch (OutOfMemoryError oe) {
+            myHost.showFeedback("An out-of-memory error has occurred during operation.");
+        } catch (Exception e) {
+            myHost.showFeedback("An error has occurred during operation. See log file for details.");
+            myHost.logException("Error in " + getDescriptiveName(), e);
+        } finally {
+            updateProgress("Progress: ", 0);
+            // tells the main application that this process is completed.
+            amIActive = false;
+            myHost.pluginComplete();
+        }
 
-                        FID++;
-                        Object[] rowData = new Object[3];
-                        rowData[0] = new Double(FID);
-                        rowData[1] = null;
-                        rowData[2] = new Double(parentRecNum);
-                        writer.addRecord(rowData);
-                    } else if (gN instanceof com.vividsolutions.jts.geom.Polygon
-                            && outputShapeType == ShapeType.POLYLINE) {
-                        com.vividsolutions.jts.geom.Polygon p = (com.vividsolutions.jts.geom.Polygon) gN;
-                        ArrayList<ShapefilePoint> pnts = new ArrayList<ShapefilePoint>();
-
-                        int[] parts = new int[p.getNumInteriorRing() + 1];
-
-                        Coordinate[] coords = p.getExteriorRing().getCoordinates();
-                        if (Topology.isClockwisePolygon(coords)) {
-                            for (i = coords.length - 1; i >= 0; i--) {
-                                pnts.add(new ShapefilePoint(coords[i].x, coords[i].y));
-                            }
-                        } else {
-                            for (i = 0; i < coords.length; i++) {
-                                pnts.add(new ShapefilePoint(coords[i].x, coords[i].y));
-                            }
-                        }
+    }
 
-                        for (int b = 0; b < p.getNumInteriorRing(); b++) {
-                            parts[b + 1] = pnts.size();
-                            coords = p.getInteriorRingN(b).getCoordinates();
-                            if (Topology.isClockwisePolygon(coords)) {
-                                for (i = coords.length - 1; i >= 0; i--) {
-                                    pnts.add(new ShapefilePoint(coords[i].x, coords[i].y));
-                                }
-                            } else {
-                                for (i = 0; i < coords.length; i++) {
-                                    pnts.add(new ShapefilePoint(coords[i].x, coords[i].y));
-                                }
-                            }
-                        }
+    // the distance within which a line or point piece is taken to lie on a
+    // feature of an input
+    private static final double TOLERANCE = 0.0001;
 
-                        PointsList pl = new PointsList(pnts);
-                        whitebox.geospatialfiles.shapefile.PolyLine wbGeometry = new whitebox.geospatialfiles.shapefile.PolyLine(parts, pl.getPointsArray());
-                        output.addRecord(wbGeometry);
+    /*
+     * Returns a location inside of a piece, which is used to find its parent
+     * features. Every boundary is part of the noded linework, so a location
+     * inside a piece can't lie on the boundary of an input feature.
+     */
+    private static Coordinate getLocation(com.vividsolutions.jts.geom.Geometry piece) {
+        if (piece instanceof com.vividsolutions.jts.geom.Polygon) {
+            return piece.getInteriorPoint().getCoordinate();
+        } else if (piece instanceof LineString) {
+            Coordinate[] coords = piece.getCoordinates();
+            return new Coordinate((coords[0].x + coords[1].x) / 2, (coords[0].y + coords[1].y) / 2);
+        }
+        return piece.getCoordinate();
+    }
 
-                        FID++;
-                        Object[] rowData = new Object[3];
-                        rowData[0] = new Double(FID);
-                        rowData[1] = null;
-                        rowData[2] = new Double(parentRecNum);
-                        writer.addRecord(rowData);
-                    } else if (gN instanceof com.vividsolutions.jts.geom.Polygon
-                            && outputShapeType == ShapeType.POLYGON) {
-                        com.vividsolutions.jts.geom.Polygon p = (com.vividsolutions.jts.geom.Polygon) gN;
-                        ArrayList<ShapefilePoint> pnts = new ArrayList<ShapefilePoint>();
-
-                        int[] parts = new int[p.getNumInteriorRing() + 1];
-
-                        Coordinate[] coords = p.getExteriorRing().getCoordinates();
-                        if (Topology.isClockwisePolygon(coords)) {
-                            for (i = coords.length - 1; i >= 0; i--) {
-                                pnts.add(new ShapefilePoint(coords[i].x, coords[i].y));
-                            }
-                        } else {
-                            for (i = 0; i < coords.length; i++) {
-                                pnts.add(new ShapefilePoint(coords[i].x, coords[i].y));
-                            }
-                        }
+    /*
+     * Returns the record number of the lowest-numbered feature of an input
+     * that contains, or for lines and points lies on, a location, or -1 if
+     * there is none.
+     */
+    private static int findParent(STRtree index, Coordinate p, ShapeType shapeType) {
+        Envelope env = new Envelope(p);
+        if (shapeType != ShapeType.POLYGON) {
+            env.expandBy(TOLERANCE);
+        }
+        int parent = -1;
+        for (Object o : index.query(env)) {
+            com.vividsolutions.jts.geom.Geometry g = (com.vividsolutions.jts.geom.Geometry) o;
+            int recNum = (Integer) g.getUserData();
+            if (parent >= 0 && recNum >= parent) {
+                continue;
+            }
+            boolean found;
+            if (shapeType == ShapeType.POLYGON) {
+                found = SimplePointInAreaLocator.containsPointInPolygon(p, (com.vividsolutions.jts.geom.Polygon) g);
+            } else {
+                found = g.distance(g.getFactory().createPoint(p)) < TOLERANCE;
+            }
+            if (found) {
+                parent = recNum;
+            }
+        }
+        return parent;
+    }
 
-                        for (int b = 0; b < p.getNumInteriorRing(); b++) {
-                            parts[b + 1] = pnts.size();
-                            coords = p.getInteriorRingN(b).getCoordinates();
-                            if (Topology.isClockwisePolygon(coords)) {
-                                for (i = coords.length - 1; i >= 0; i--) {
-                                    pnts.add(new ShapefilePoint(coords[i].x, coords[i].y));
-                                }
-                            } else {
-                                for (i = 0; i < coords.length; i++) {
-                                    pnts.add(new ShapefilePoint(coords[i].x, coords[i].y));
-                                }
-                            }
-                        }
+    private static whitebox.geospatialfiles.shapefile.Geometry getWhiteboxGeometry(
+            com.vividsolutions.jts.geom.Geometry gN, ShapeType shapeType) {
+        int i;
+        if (shapeType == ShapeType.POINT) {
+            Coordinate p = gN.getCoordinate();
+            // you will loose any z and m information if they are in the input file.
+            return new whitebox.geospatialfiles.shapefile.Point(p.x, p.y);
+        } else if (shapeType == ShapeType.POLYLINE) {
+            ArrayList<ShapefilePoint> pnts = new ArrayList<>();
+
+            int[] parts = {0};
+
+            Coordinate[] coords = gN.getCoordinates();
+            for (i = 0; i < coords.length; i++) {
+                pnts.add(new ShapefilePoint(coords[i].x, coords[i].y));
+            }
 
-                        PointsList pl = new PointsList(pnts);
-                        whitebox.geospatialfiles.shapefile.Polygon wbGeometry = new whitebox.geospatialfiles.shapefile.Polygon(parts, pl.getPointsArray());
-                        output.addRecord(wbGeometry);
+            PointsList pl = new PointsList(pnts);
+            return new whitebox.geospatialfiles.shapefile.PolyLine(parts, pl.getPointsArray());
+        } else {
+            com.vividsolutions.jts.geom.Polygon p = (com.vividsolutions.jts.geom.Polygon) gN;
+            ArrayList<ShapefilePoint> pnts = new ArrayList<>();
 
-                        FID++;
-                        Object[] rowData = new Object[3];
-                        rowData[0] = new Double(FID);
-                        rowData[1] = null;
-                        rowData[2] = new Double(parentRecNum);
-                        writer.addRecord(rowData);
-                    } else {
-                        // it shouldn't really hit here ever.
-                        //showFeedback("An error was encountered when saving the output file.");
-                        //return;
-                    }
+            int[] parts = new int[p.getNumInteriorRing() + 1];
 
-                    n++;
-                    if (n >= oneHundredthTotal) {
-                        n = 0;
-                        if (cancelOp) {
-                            cancelOperation();
-                            return;
-                        }
-                        progress++;
-                        updateProgress("Saving output file", progress);
-                    }
+            Coordinate[] coords = p.getExteriorRing().getCoordinates();
+            if (!Topology.isClockwisePolygon(coords)) {
+                for (i = coords.length - 1; i >= 0; i--) {
+                    pnts.add(new ShapefilePoint(coords[i].x, coords[i].y));
                 }
             } else {
-                // it shouldn't really hit here ever.
-                showFeedback("An error was encountered when saving the output file.");
-                return;
-            }
-
-
-            if (outputShapeType == ShapeType.POLYGON) {
-                // Intersection
-
-                updateProgress("Performing operation (progress will not be updated):", -1);
-                try {
-                    outputGeometry = g1.intersection(g2);
-                } catch (Exception ex) {
-                    outputGeometry = com.vividsolutions.jts.operation.overlay.snap.SnapOverlayOp.intersection(g1, g2);
+                for (i = 0; i < coords.length; i++) {
+                    pnts.add(new ShapefilePoint(coords[i].x, coords[i].y));
                 }
+            }
 
-                if (outputGeometry instanceof GeometryCollection) {
-
-
-                    int numGeometries = outputGeometry.getNumGeometries();
-                    oneHundredthTotal = (int) (numGeometries / 100.0);
-                    progress = 0;
-                    n = 0;
-                    int parentRecNum1 = 0;
-                    int parentRecNum2 = 0;
-                    for (int a = 0; a < numGeometries; a++) {
-                        parentRecNum1 = -99;
-                        parentRecNum2 = -99;
-                        com.vividsolutions.jts.geom.Geometry gN = outputGeometry.getGeometryN(a);
-
-                        for (int m = 0; m < tests1.length; m++) {
-                            if (tests1[m].overlaps(gN) || tests1[m].covers(gN) || gN.distance(testGs1[m]) < 0.0001) {
-                                parentRecNum1 = userData1[m];
-                                break;
-                            }
-                        }
-                        for (int m = 0; m < tests2.length; m++) {
-                            if (tests2[m].overlaps(gN) || tests2[m].covers(gN) || gN.distance(testGs2[m]) < 0.0001) {
-                                parentRecNum2 = userData2[m];
-                                break;
-                            }
-                        }
-                        if (gN instanceof com.vividsolutions.jts.geom.Point
-                                && outputShapeType == ShapeType.POINT) {
-                            Coordinate p = gN.getCoordinate();
-                            // you will loose any z and m information if they are in the input file.
-                            // you'll need to fix this some other time when you get a chance.
-                            whitebox.geospatialfiles.shapefile.Point wbGeometry = new whitebox.geospatialfiles.shapefile.Point(p.x, p.y);
-                            output.addRecord(wbGeometry);
-
-                            FID++;
-                            Object[] rowData = new Object[3];
-                            rowData[0] = new Double(FID);
-                            rowData[1] = new Double(parentRecNum1);
-                            rowData[2] = new Double(parentRecNum2);
-                            writer.addRecord(rowData);
-                        } else if (gN instanceof LineString
-                                && outputShapeType == ShapeType.POLYLINE) {
-                            LineString ls = (LineString) gN;
-                            ArrayList<ShapefilePoint> pnts = new ArrayList<ShapefilePoint>();
-
-                            int[] parts = {0};
-
-                            Coordinate[] coords = ls.getCoordinates();
-                            for (i = 0; i < coords.length; i++) {
-                                pnts.add(new ShapefilePoint(coords[i].x, coords[i].y));
-                            }
-
-                            PointsList pl = new PointsList(pnts);
-                            whitebox.geospatialfiles.shapefile.PolyLine wbGeometry = new whitebox.geospatialfiles.shapefile.PolyLine(parts, pl.getPointsArray());
-                            output.addRecord(wbGeometry);
-
-                            FID++;
-                            Object[] rowData = new Object[3];
-                            rowData[0] = new Double(FID);
-                            rowData[1] = new Double(parentRecNum1);
-                            rowData[2] = new Double(parentRecNum2);
-                            writer.addRecord(rowData);
-                        } else if (gN instanceof com.vividsolutions.jts.geom.Polygon
-                                && outputShapeType == ShapeType.POLYLINE) {
-                            com.vividsolutions.jts.geom.Polygon p = (com.vividsolutions.jts.geom.Polygon) gN;
-                            ArrayList<ShapefilePoint> pnts = new ArrayList<ShapefilePoint>();
-
-                            int[] parts = new int[p.getNumInteriorRing() + 1];
-
-                            Coordinate[] coords = p.getExteriorRing().getCoordinates();
-                            if (Topology.isClockwisePolygon(coords)) {
-                                for (i = coords.length - 1; i >= 0; i--) {
-                                    pnts.add(new ShapefilePoint(coords[i].x, coords[i].y));
-                                }
-                            } else {
-                                for (i = 0; i < coords.length; i++) {
-                                    pnts.add(new ShapefilePoint(coords[i].x, coords[i].y));
-                                }
-                            }
-
-                            for (int b = 0; b < p.getNumInteriorRing(); b++) {
-                                parts[b + 1] = pnts.size();
-                                coords = p.getInteriorRingN(b).getCoordinates();
-                                if (Topology.isClockwisePolygon(coords)) {
-                                    for (i = coords.length - 1; i >= 0; i--) {
-                                        pnts.add(new ShapefilePoint(coords[i].x, coords[i].y));
-                                    }
-                                } else {
-                                    for (i = 0; i < coords.length; i++) {
-                                        pnts.add(new ShapefilePoint(coords[i].x, coords[i].y));
-                                    }
-                                }
-                            }
-
-                            PointsList pl = new PointsList(pnts);
-                            whitebox.geospatialfiles.shapefile.PolyLine wbGeometry = new whitebox.geospatialfiles.shapefile.PolyLine(parts, pl.getPointsArray());
-                            output.addRecord(wbGeometry);
-
-                            FID++;
-                            Object[] rowData = new Object[3];
-                            rowData[0] = new Double(FID);
-                            rowData[1] = new Double(parentRecNum1);
-                            rowData[2] = new Double(parentRecNum2);
-                            writer.addRecord(rowData);
-                        } else if (gN instanceof com.vividsolutions.jts.geom.Polygon
-                                && outputShapeType == ShapeType.POLYGON) {
-                            com.vividsolutions.jts.geom.Polygon p = (com.vividsolutions.jts.geom.Polygon) gN;
-                            ArrayList<ShapefilePoint> pnts = new ArrayList<ShapefilePoint>();
-
-                            int[] parts = new int[p.getNumInteriorRing() + 1];
-
-                            Coordinate[] coords = p.getExteriorRing().getCoordinates();
-                            if (Topology.isClockwisePolygon(coords)) {
-                                for (i = coords.length - 1; i >= 0; i--) {
-                                    pnts.add(new ShapefilePoint(coords[i].x, coords[i].y));
-                                }
-                            } else {
-                                for (i = 0; i < coords.length; i++) {
-                                    pnts.add(new ShapefilePoint(coords[i].x, coords[i].y));
-                                }
-                            }
-
-                            for (int b = 0; b < p.getNumInteriorRing(); b++) {
-                                parts[b + 1] = pnts.size();
-                                coords = p.getInteriorRingN(b).getCoordinates();
-                                if (Topology.isClockwisePolygon(coords)) {
-                                    for (i = coords.length - 1; i >= 0; i--) {
-                                        pnts.add(new ShapefilePoint(coords[i].x, coords[i].y));
-                                    }
-                                } else {
-                                    for (i = 0; i < coords.length; i++) {
-                                        pnts.add(new ShapefilePoint(coords[i].x, coords[i].y));
-                                    }
-                                }
-                            }
-
-                            PointsList pl = new PointsList(pnts);
-                            whitebox.geospatialfiles.shapefile.Polygon wbGeometry = new whitebox.geospatialfiles.shapefile.Polygon(parts, pl.getPointsArray());
-                            output.addRecord(wbGeometry);
-
-                            FID++;
-                            Object[] rowData = new Object[3];
-                            rowData[0] = new Double(FID);
-                            rowData[1] = new Double(parentRecNum1);
-                            rowData[2] = new Double(parentRecNum2);
-                            writer.addRecord(rowData);
-                        } else {
-                            // it shouldn't really hit here ever.
-                            //showFeedback("An error was encountered when saving the output file.");
-                            //return;
-                        }
-
-                        n++;
-                        if (n >= oneHundredthTotal) {
-                            n = 0;
-                            if (cancelOp) {
-                                cancelOperation();
-                                return;
-                            }
-                            progress++;
-                            updateProgress("Saving output file", progress);
-                        }
+            for (int b = 0; b < p.getNumInteriorRing(); b++) {
+                parts[b + 1] = pnts.size();
+                coords = p.getInteriorRingN(b).getCoordinates();
+                if (Topology.isClockwisePolygon(coords)) {
+                    for (i = coords.length - 1; i >= 0; i--) {
+                        pnts.add(new ShapefilePoint(coords[i].x, coords[i].y));
                     }
                 } else {
-                    // it shouldn't really hit here ever.
-                    showFeedback("An error was encountered when saving the output file.");
-                    return;
+                    for (i = 0; i < coords.length; i++) {
+                        pnts.add(new ShapefilePoint(coords[i].x, coords[i].y));
+                    }
                 }
             }
 
-
-
-            output.write();
-            writer.write();
-
-
-            // returning a header file string displays the image.
-            returnData(outputFile);
-
-
-        } catch (OutOfMemoryError oe) {
-            myHost.showFeedback("An out-of-memory error has occurred during operation.");
-        } catch (Exception e) {
-            myHost.showFeedback("An error has occurred during operation. See log file for details.");
-            myHost.logException("Error in " + getDescriptiveName(), e);
-        } finally {
-            updateProgress("Progress: ", 0);
-            // tells the main application that this process is completed.
-            amIActive = false;
-            myHost.pluginComplete();
+            PointsList pl = new PointsList(pnts);
+            return new whitebox.geospatialfiles.shapefile.Polygon(parts, pl.getPointsArray());
         }
-
     }
 //    // This method is only used during testing.
 //    public static void main(String[] args) {
@@ -23,6 +23,7 @@ import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.LineString;
 import java.io.File;
 import java.util.ArrayList;
+import whitebox.algorithms.CascadedUnion;
 import whitebox.geospatialfiles.ShapeFile;
 import whitebox.geospatialfiles.shapefile.attributes.DBFField;
 //import whitebox.geospatialfiles.shapefile.attributes.DBFWriter;
@@ -212,8 +213,6 @@ public class Union implements WhiteboxPlugin {
         ShapeType shapeType;
         ShapeType outputShapeType = ShapeType.POLYGON;
         GeometryFactory factory = new GeometryFactory();
-        com.vividsolutions.jts.geom.Geometry g1 = null;
-        com.vividsolutions.jts.geom.Geometry g2 = null;
             
         if (args.length <= 0) {
             showFeedback("Plugin parameters have not been set.");
@@ -290,13 +289,35 @@ public class Union implements WhiteboxPlugin {
             }
             
             try {
-                updateProgress("Performing operation (progress will not be updated):", -1);
-                g1 = factory.buildGeometry(inputGeometryList);
-                outputGeometry = g1.buffer(0);
+                updateProgress("Performing operation:", 0);
+                outputGeometry = CascadedUnion.union(inputGeometryList, new CascadedUnion.Progress() {
+                    
+                    int oldProgress = -1;
+                    
+                    @Override
+                    public boolean unionsCompleted(int completed, int total) {
+                        int progress = total > 0 ? (int) (100L * completed / total) : 100;
+                        if (progress != oldProgress) {
+                            updateProgress("Performing operation:", progress);
+                            oldProgress = progress;
+                        }
+                        return !cancelOp;
+                    }
+                });
             } catch (Exception e) {
                 showFeedback("Error during analysis.");
                 return;
             }
+            if (outputGeometry == null) {
+                cancelOperation();
+                return;
+            }
+            inputGeometryList.clear();
+            if (!(outputGeometry instanceof GeometryCollection)) {
+                // a single polygon or line
+                outputGeometry = factory.createGeometryCollection(
+                        new com.vividsolutions.jts.geom.Geometry[]{outputGeometry});
+            }
             
             ShapeFile output = null;
             
@@ -16,23 +16,17 @@
  */
 package plugins;
 
-import com.vividsolutions.jts.geom.Coordinate;
-import com.vividsolutions.jts.geom.Envelope;
-import com.vividsolutions.jts.geom.GeometryFactory;
-import com.vividsolutions.jts.geom.prep.PreparedGeometry;
-import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
-import com.vividsolutions.jts.triangulate.VoronoiDiagramBuilder;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import whitebox.algorithms.DelaunayTriangulation;
 import whitebox.geospatialfiles.ShapeFile;
-import whitebox.geospatialfiles.shapefile.PointsList;
 import whitebox.geospatialfiles.shapefile.ShapeFileRecord;
 import whitebox.geospatialfiles.shapefile.ShapeType;
-import whitebox.geospatialfiles.shapefile.ShapefilePoint;
 import whitebox.geospatialfiles.shapefile.attributes.DBFField;
 import whitebox.geospatialfiles.shapefile.attributes.AttributeTable;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
-import whitebox.utilities.Topology;
 
 /**
  * WhiteboxPlugin is used to define a plugin tool for Whitebox GIS.
@@ -206,7 +200,6 @@ public class VoronoiDiagram implements WhiteboxPlugin {
         int numRecs;
         int parentRecNum;
         ShapeType shapeType;
-        GeometryFactory factory = new GeometryFactory();
         if (args.length <= 0) {
             showFeedback("Plugin parameters have not been set.");
             return;
@@ -257,18 +250,26 @@ public class VoronoiDiagram implements WhiteboxPlugin {
             ShapeFile output = new ShapeFile(outputFile, ShapeType.POLYGON, fields);
             output.setProjectionStringFromOtherShapefile(input);
 
-            ArrayList<com.vividsolutions.jts.geom.Geometry> pointList = new ArrayList<>();
-            com.vividsolutions.jts.geom.Geometry[] recJTS = null;
+            // read the points, remembering the record that each came from
+            double[] xs = new double[Math.max(16, numRecs)];
+            double[] ys = new double[xs.length];
+            int[] recNums = new int[xs.length];
+            int numPoints = 0;
             n = 0;
             progress = 0;
             for (ShapeFileRecord record : input.records) {
                 if (record.getShapeType() != ShapeType.NULLSHAPE) {
-                    recJTS = record.getGeometry().getJTSGeometries();
-                    for (int a = 0; a < recJTS.length; a++) {
-                        recJTS[a].setUserData(record.getRecordNumber());
-                        //com.vividsolutions.jts.geom.Point p1 = (com.vividsolutions.jts.geom.Point)recJTS[a];
-                        pointList.add((com.vividsolutions.jts.geom.Point)recJTS[a]);
-                        com.vividsolutions.jts.geom.Coordinate c = recJTS[a].getCoordinate();
+                    double[][] points = record.getGeometry().getPoints();
+                    for (int a = 0; a < points.length; a++) {
+                        if (numPoints == xs.length) {
+                            xs = Arrays.copyOf(xs, 2 * numPoints);
+                            ys = Arrays.copyOf(ys, 2 * numPoints);
+                            recNums = Arrays.copyOf(recNums, 2 * numPoints);
+                        }
+                        xs[numPoints] = points[a][0];
+                        ys[numPoints] = points[a][1];
+                        recNums[numPoints] = record.getRecordNumber();
+                        numPoints++;
                     }
                 }
                 n++;
@@ -282,101 +283,129 @@ public class VoronoiDiagram implements WhiteboxPlugin {
                     updateProgress("Reading shapefile data:", progress);
                 }
             }
+            final double[] x = Arrays.copyOf(xs, numPoints);
+            final double[] y = Arrays.copyOf(ys, numPoints);
 
             double NSRange = maxY - minY;
             double EWRange = maxX - minX;
+            if (NSRange <= 0) {
+                NSRange = EWRange > 0 ? EWRange : 1.0;
+            }
+            if (EWRange <= 0) {
+                EWRange = NSRange;
+            }
             double NSOffset = NSRange * 0.05;
             double EWOffset = EWRange * 0.05;
+            double[][] envelope = {{minX - EWOffset, maxY + NSOffset},
+                {maxX + EWOffset, maxY + NSOffset}, {maxX + EWOffset, minY - NSOffset},
+                {minX - EWOffset, minY - NSOffset}};
 
-            Envelope env = new Envelope(minX - EWOffset, maxX + EWOffset,
-                    minY - NSOffset, maxY + NSOffset);
-
-
-            updateProgress("Creating Voronoi diagram (progress will not be updated):", 0);
-            VoronoiDiagramBuilder vdb = new VoronoiDiagramBuilder();
-            com.vividsolutions.jts.geom.Geometry geom = factory.buildGeometry(pointList);
-            vdb.setSites(geom);
-            vdb.setClipEnvelope(env);
-            com.vividsolutions.jts.geom.Geometry vd = vdb.getDiagram(factory);
-
-
-            int numPoints = pointList.size();
-            PreparedGeometry[] tests = new PreparedGeometry[numPoints];
-            int[] userData = new int[numPoints];
+            // Only the first of a set of coincident points is given a cell.
+            Integer[] order = new Integer[numPoints];
             for (int a = 0; a < numPoints; a++) {
-                tests[a] = PreparedGeometryFactory.prepare(geom.getGeometryN(a));
-                userData[a] = Integer.parseInt(geom.getGeometryN(a).getUserData().toString());
+                order[a] = a;
             }
-
-            Object[][] attributeTableRecords = new Object[reader.getNumberOfRecords()][numFields];
-            for (int a = 0; a < reader.getNumberOfRecords(); a++) {
-                Object[] rec = reader.nextRecord();
-                for (int b = 0; b < numFields - 1; b++) {
-                    attributeTableRecords[a][b] = rec[b];
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    int c = Double.compare(x[a] + 0.0, x[b] + 0.0);
+                    return c != 0 ? c : Double.compare(y[a] + 0.0, y[b] + 0.0);
+                }
+            });
+            boolean[] isDuplicate = new boolean[numPoints];
+            for (int a = 1; a < numPoints; a++) {
+                if (x[order[a]] == x[order[a - 1]] && y[order[a]] == y[order[a - 1]]) {
+                    isDuplicate[order[a]] = true;
+                    order[a] = order[a - 1];
                 }
             }
 
-            progress = 0;
-            updateProgress("Creating new shapefile:", -1);
-            for (int a = 0; a < vd.getNumGeometries(); a++) {
-                parentRecNum = 0;
-                com.vividsolutions.jts.geom.Geometry g = vd.getGeometryN(a);
-                if (g instanceof com.vividsolutions.jts.geom.Polygon) {
-                    com.vividsolutions.jts.geom.Polygon p = (com.vividsolutions.jts.geom.Polygon) g;
-                    ArrayList<ShapefilePoint> pnts = new ArrayList<>();
-                    int[] parts = new int[p.getNumInteriorRing() + 1];
-
-                    Coordinate[] buffCoords = p.getExteriorRing().getCoordinates();
-                    if (!Topology.isLineClosed(buffCoords)) {
-                        System.out.println("Exterior ring not closed.");
+            // The Voronoi neighbours of each point are its neighbours in the
+            // Delaunay triangulation, or if the points are all collinear,
+            // the points on either side of it.
+            updateProgress("Creating Voronoi diagram:", 0);
+            int[] triangles = new DelaunayTriangulation(x, y).getTriangles();
+            int[] neighbourStart = new int[numPoints + 1];
+            int[] neighbours;
+            if (triangles.length > 0) {
+                for (int a = 0; a < triangles.length; a++) {
+                    neighbourStart[triangles[a] + 1] += 2;
+                }
+                for (int a = 0; a < numPoints; a++) {
+                    neighbourStart[a + 1] += neighbourStart[a];
+                }
+                int[] next = Arrays.copyOf(neighbourStart, numPoints);
+                neighbours = new int[triangles.length * 2];
+                for (int a = 0; a < triangles.length; a += 3) {
+                    for (int k = 0; k < 3; k++) {
+                        int v = triangles[a + k];
+                        neighbours[next[v]++] = triangles[a + (k + 1) % 3];
+                        neighbours[next[v]++] = triangles[a + (k + 2) % 3];
                     }
-                    if (Topology.isClockwisePolygon(buffCoords)) {
-                        for (i = 0; i < buffCoords.length; i++) {
-                            pnts.add(new ShapefilePoint(buffCoords[i].x, buffCoords[i].y));
-                        }
-                    } else {
-                        for (i = buffCoords.length - 1; i >= 0; i--) {
-                            pnts.add(new ShapefilePoint(buffCoords[i].x, buffCoords[i].y));
-                        }
+                }
+            } else {
+                neighbours = new int[2 * numPoints];
+                int previous = -1;
+                for (int a = 0; a < numPoints; a++) {
+                    int v = order[a];
+                    if (isDuplicate[v] || v == previous) {
+                        continue;
                     }
-
-                    for (int b = 0; b < p.getNumInteriorRing(); b++) {
-                        parts[b + 1] = pnts.size();
-                        buffCoords = p.getInteriorRingN(b).getCoordinates();
-                        if (!Topology.isLineClosed(buffCoords)) {
-                            System.out.println("Interior ring not closed.");
-                        }
-                        if (Topology.isClockwisePolygon(buffCoords)) {
-                            for (i = buffCoords.length - 1; i >= 0; i--) {
-                                pnts.add(new ShapefilePoint(buffCoords[i].x, buffCoords[i].y));
-                            }
-                        } else {
-                            for (i = 0; i < buffCoords.length; i++) {
-                                pnts.add(new ShapefilePoint(buffCoords[i].x, buffCoords[i].y));
-                            }
-                        }
+                    if (previous >= 0) {
+                        neighbours[2 * previous + 1] = v;
+                        neighbours[2 * v] = previous;
+                    } else {
+                        neighbours[2 * v] = v;
                     }
+                    neighbours[2 * v + 1] = v;
+                    previous = v;
+                }
+                for (int a = 0; a <= numPoints; a++) {
+                    neighbourStart[a] = 2 * a;
+                }
+            }
 
-                    PointsList pl = new PointsList(pnts);
+            Object[][] attributeTableRecords = new Object[reader.getNumberOfRecords()][];
+            for (int a = 0; a < reader.getNumberOfRecords(); a++) {
+                attributeTableRecords[a] = reader.nextRecord();
+            }
 
-                    whitebox.geospatialfiles.shapefile.Polygon wbPoly = new whitebox.geospatialfiles.shapefile.Polygon(parts, pl.getPointsArray());
-                    
-                    // which point is contained within this polygon?
-                    for (int m = 0; m < tests.length; m++) {
-                        if ((tests[m].within(p))) {
-                            parentRecNum = userData[m];
-                            break;
-                        }
-                    }
-                    Object[] rowData = attributeTableRecords[parentRecNum - 1];
-//                    writer.addRecord(rowData);
-                    output.addRecord(wbPoly, rowData);
-                    if (cancelOp) {
-                        cancelOperation();
-                        return;
+            // Each cell is the envelope clipped by the half-plane that is
+            // closer to the point than to each of its neighbours.
+            n = 0;
+            progress = 0;
+            for (int a = 0; a < numPoints; a++) {
+                if (isDuplicate[a]) {
+                    continue;
+                }
+                double[][] cell = envelope;
+                for (int m = neighbourStart[a]; m < neighbourStart[a + 1] && cell.length > 0; m++) {
+                    int b = neighbours[m];
+                    if (b != a) {
+                        cell = clip(cell, x[a], y[a], x[b], y[b]);
                     }
-                    n++;
-                    progress = (int) (n * 100.0 / vd.getNumGeometries());
+                }
+                if (cell.length < 3) {
+                    continue;
+                }
+                // the cell is clockwise and closed
+                double[][] ring = new double[cell.length + 1][];
+                for (i = 0; i < cell.length; i++) {
+                    ring[i] = cell[i];
+                }
+                ring[cell.length] = cell[0];
+                int[] parts = {0};
+                whitebox.geospatialfiles.shapefile.Polygon wbPoly = new whitebox.geospatialfiles.shapefile.Polygon(parts, ring);
+                parentRecNum = recNums[a];
+                Object[] rowData = attributeTableRecords[parentRecNum - 1];
+                output.addRecord(wbPoly, rowData);
+                if (cancelOp) {
+                    cancelOperation();
+                    return;
+                }
+                n++;
+                if ((int) (n * 100.0 / numPoints) > progress) {
+                    progress = (int) (n * 100.0 / numPoints);
                     updateProgress("Creating new shapefile:", progress);
                 }
             }
@@ -403,6 +432,43 @@ public class VoronoiDiagram implements WhiteboxPlugin {
 
     }
 
+    /*
+     * Clips a clockwise convex polygon to the half-plane of points that are
+     * no further from point (ax, ay) than from point (bx, by).
+     */
+    private static double[][] clip(double[][] polygon, double ax, double ay,
+            double bx, double by) {
+        double dx = bx - ax;
+        double dy = by - ay;
+        double mx = (ax + bx) / 2;
+        double my = (ay + by) / 2;
+        int n = polygon.length;
+        double[] side = new double[n];
+        boolean clipped = false;
+        for (int i = 0; i < n; i++) {
+            side[i] = (polygon[i][0] - mx) * dx + (polygon[i][1] - my) * dy;
+            if (side[i] > 0) {
+                clipped = true;
+            }
+        }
+        if (!clipped) {
+            return polygon;
+        }
+        ArrayList<double[]> result = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            int j = (i + 1) % n;
+            if (side[i] <= 0) {
+                result.add(polygon[i]);
+            }
+            if ((side[i] < 0 && side[j] > 0) || (side[i] > 0 && side[j] < 0)) {
+                double t = side[i] / (side[i] - side[j]);
+                result.add(new double[]{polygon[i][0] + t * (polygon[j][0] - polygon[i][0]),
+                    polygon[i][1] + t * (polygon[j][1] - polygon[i][1])});
+            }
+        }
+        return result.toArray(new double[result.size()][]);
+    }
+
 //    // This method is only used during testing.
 //    public static void main(String[] args) {
 //        args = new String[2];
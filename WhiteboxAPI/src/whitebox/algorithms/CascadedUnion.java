@@ -0,0 +1,369 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.algorithms;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryCollection;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.operation.union.UnaryUnionOp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import whitebox.parallel.Parallel;
+
+/**
+ * Unions large numbers of geometries. Unioning everything in one overlay
+ * operation is slow and needs a great deal of memory, because every
+ * intermediate result is as complicated as the final one. Instead the
+ * geometries are packed into a Sort-Tile-Recursive (STR) tree, so that each
+ * node holds a few geometries that are close together, and the tree is
+ * unioned from the leaves up. Each union then only involves geometries from
+ * one neighbourhood, and nodes whose envelopes don't overlap are simply
+ * combined. The subtrees are unioned in parallel in a fork-join pool.
+ *
+ * The union of polygons dissolves their shared boundaries, the union of lines
+ * nodes them at their intersections and the union of points removes
+ * duplicates.
+ *
+ * @author johnlindsay
+ */
+public class CascadedUnion {
+
+    /*
+     * Receives the progress of a union, on the thread that called union() or
+     * dissolve(). Returning false stops the union.
+     */
+    public interface Progress {
+
+        boolean unionsCompleted(int completed, int total) throws Exception;
+    }
+
+    // the number of children of each node of the STR tree
+    private static final int NODE_CAPACITY = 4;
+    private final AtomicInteger unionsCompleted = new AtomicInteger();
+    private volatile boolean cancelled = false;
+
+    private CascadedUnion() {
+    }
+
+    /**
+     * Unions a collection of geometries.
+     *
+     * @param geometries The geometries.
+     * @param progress Receives the progress, or null.
+     * @return The union, or null if the progress stopped it.
+     * @throws Exception Any exception thrown during the union.
+     */
+    public static Geometry union(Collection<Geometry> geometries, Progress progress) throws Exception {
+        Map<Object, Collection<Geometry>> groups = new LinkedHashMap<>();
+        groups.put(Boolean.TRUE, geometries);
+        Map<Object, Geometry> result = dissolve(groups, progress);
+        return result == null ? null : result.get(Boolean.TRUE);
+    }
+
+    /**
+     * Unions each of several groups of geometries separately, e.g. the
+     * features sharing each value of an attribute. The groups are unioned
+     * concurrently.
+     *
+     * @param groups The geometries of each group.
+     * @param progress Receives the progress of all of the groups, or null.
+     * @return The union of each group, in the order of the groups, or null if
+     * the progress stopped it.
+     * @throws Exception Any exception thrown during the union.
+     */
+    public static <K> Map<K, Geometry> dissolve(Map<K, ? extends Collection<Geometry>> groups,
+            Progress progress) throws Exception {
+        CascadedUnion cu = new CascadedUnion();
+        GeometryFactory factory = new GeometryFactory();
+        int total = 0;
+        List<K> keys = new ArrayList<>();
+        List<Object> roots = new ArrayList<>();
+        for (Map.Entry<K, ? extends Collection<Geometry>> e : groups.entrySet()) {
+            Collection<Geometry> geometries = e.getValue();
+            keys.add(e.getKey());
+            if (geometries.isEmpty()) {
+                roots.add(factory.createGeometryCollection(new Geometry[0]));
+            } else {
+                roots.add(buildTree(geometries));
+                // each union of two nodes leaves one node fewer
+                total += geometries.size() - 1;
+            }
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(Parallel.getPluginProcessors());
+        try {
+            List<ForkJoinTask<Geometry>> tasks = new ArrayList<>();
+            for (Object root : roots) {
+                tasks.add(pool.submit(cu.new UnionTask(root)));
+            }
+            Map<K, Geometry> result = new LinkedHashMap<>();
+            for (int i = 0; i < tasks.size(); i++) {
+                ForkJoinTask<Geometry> task = tasks.get(i);
+                while (true) {
+                    if (progress != null && !progress.unionsCompleted(cu.unionsCompleted.get(), total)) {
+                        cu.cancelled = true;
+                        return null;
+                    }
+                    try {
+                        result.put(keys.get(i), task.get(250, TimeUnit.MILLISECONDS));
+                        break;
+                    } catch (TimeoutException te) {
+                        // check the progress again
+                    } catch (ExecutionException ee) {
+                        Throwable cause = ee.getCause();
+                        if (cause instanceof Exception) {
+                            throw (Exception) cause;
+                        }
+                        if (cause instanceof Error) {
+                            throw (Error) cause;
+                        }
+                        throw ee;
+                    }
+                }
+            }
+            if (progress != null) {
+                progress.unionsCompleted(total, total);
+            }
+            return result;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /*
+     * A node of the STR tree. Leaves hold a geometry and the other nodes hold
+     * their children.
+     */
+    private static class Node {
+
+        final Envelope envelope;
+        final Geometry geometry;
+        final List<Node> children;
+
+        Node(Geometry geometry) {
+            this.envelope = geometry.getEnvelopeInternal();
+            this.geometry = geometry;
+            this.children = null;
+        }
+
+        Node(List<Node> children) {
+            this.envelope = new Envelope();
+            for (Node child : children) {
+                envelope.expandToInclude(child.envelope);
+            }
+            this.geometry = null;
+            this.children = children;
+        }
+
+        double centreX() {
+            return (envelope.getMinX() + envelope.getMaxX()) / 2;
+        }
+
+        double centreY() {
+            return (envelope.getMinY() + envelope.getMaxY()) / 2;
+        }
+    }
+
+    private static final Comparator<Node> byCentreX = new Comparator<Node>() {
+        @Override
+        public int compare(Node n1, Node n2) {
+            return Double.compare(n1.centreX(), n2.centreX());
+        }
+    };
+
+    private static final Comparator<Node> byCentreY = new Comparator<Node>() {
+        @Override
+        public int compare(Node n1, Node n2) {
+            return Double.compare(n1.centreY(), n2.centreY());
+        }
+    };
+
+    /*
+     * Packs the geometries into an STR tree one level at a time. The nodes of
+     * a level are sorted into vertical slices by the x coordinate of their
+     * centres, and each slice is sorted by y and cut into parents of
+     * NODE_CAPACITY nodes.
+     */
+    private static Node buildTree(Collection<Geometry> geometries) {
+        List<Node> level = new ArrayList<>(geometries.size());
+        for (Geometry g : geometries) {
+            level.add(new Node(g));
+        }
+        while (level.size() > 1) {
+            int numParents = (level.size() + NODE_CAPACITY - 1) / NODE_CAPACITY;
+            int numSlices = (int) Math.ceil(Math.sqrt(numParents));
+            int sliceLength = numSlices * NODE_CAPACITY;
+            Collections.sort(level, byCentreX);
+            List<Node> parents = new ArrayList<>(numParents);
+            for (int s = 0; s < level.size(); s += sliceLength) {
+                List<Node> slice = new ArrayList<>(level.subList(s, Math.min(level.size(), s + sliceLength)));
+                Collections.sort(slice, byCentreY);
+                for (int c = 0; c < slice.size(); c += NODE_CAPACITY) {
+                    parents.add(new Node(new ArrayList<>(slice.subList(c, Math.min(slice.size(), c + NODE_CAPACITY)))));
+                }
+            }
+            level = parents;
+        }
+        return level.get(0);
+    }
+
+    /*
+     * Unions a node of the tree, or a run of the children of a node. The
+     * children are unioned as a balanced binary tree, so that the two sides
+     * of each union are of similar size.
+     */
+    private class UnionTask extends RecursiveTask<Geometry> {
+
+        private final Object item;
+        private final List<Node> children;
+        private final int start, end;
+
+        UnionTask(Object root) {
+            this.item = root;
+            this.children = null;
+            this.start = 0;
+            this.end = 0;
+        }
+
+        UnionTask(List<Node> children, int start, int end) {
+            this.item = null;
+            this.children = children;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected Geometry compute() {
+            if (cancelled) {
+                return null;
+            }
+            if (children == null) {
+                if (item instanceof Geometry) {
+                    return (Geometry) item;
+                }
+                Node node = (Node) item;
+                if (node.geometry != null) {
+                    // a geometry that isn't unioned with another is still
+                    // cleaned as the union of the whole collection would be
+                    return repair(node.geometry);
+                }
+                return new UnionTask(node.children, 0, node.children.size()).compute();
+            }
+            if (end - start == 1) {
+                return new UnionTask(children.get(start)).compute();
+            }
+            int mid = (start + end) / 2;
+            UnionTask left = new UnionTask(children, start, mid);
+            left.fork();
+            Geometry right = new UnionTask(children, mid, end).compute();
+            Geometry g = left.join();
+            if (g == null || right == null) {
+                return null;
+            }
+            Geometry ret = unionPair(g, right);
+            unionsCompleted.incrementAndGet();
+            return ret;
+        }
+    }
+
+    /*
+     * Unions two geometries. Only the parts of each that intersect the
+     * overlap of their envelopes can interact with the other, so the rest are
+     * simply carried over to the result.
+     */
+    private static Geometry unionPair(Geometry g0, Geometry g1) {
+        GeometryFactory factory = g0.getFactory();
+        Envelope common = g0.getEnvelopeInternal().intersection(g1.getEnvelopeInternal());
+        List<Geometry> parts = new ArrayList<>();
+        if (common.isNull()) {
+            // the geometries can't interact, so they only need to be combined
+            addParts(g0, null, parts, null);
+            addParts(g1, null, parts, null);
+            for (int i = 0; i < parts.size(); i++) {
+                parts.set(i, repair(parts.get(i)));
+            }
+            return factory.buildGeometry(parts);
+        }
+        List<Geometry> interacting0 = new ArrayList<>();
+        List<Geometry> interacting1 = new ArrayList<>();
+        addParts(g0, common, parts, interacting0);
+        addParts(g1, common, parts, interacting1);
+        Geometry u0 = factory.buildGeometry(interacting0);
+        Geometry u1 = factory.buildGeometry(interacting1);
+        Geometry u;
+        if (isHomogeneous(u0) && isHomogeneous(u1)) {
+            u = u0.union(u1);
+        } else {
+            // overlay can't take mixed collections
+            u = UnaryUnionOp.union(Arrays.asList(u0, u1));
+        }
+        if (parts.isEmpty()) {
+            return u;
+        }
+        addParts(u, null, parts, null);
+        return factory.buildGeometry(parts);
+    }
+
+    /*
+     * Adds the parts of a geometry to a list, or if an envelope is given, the
+     * parts that intersect it to a second list.
+     */
+    private static void addParts(Geometry g, Envelope env, List<Geometry> parts,
+            List<Geometry> interacting) {
+        for (int i = 0; i < g.getNumGeometries(); i++) {
+            Geometry part = g.getGeometryN(i);
+            if (env != null && env.intersects(part.getEnvelopeInternal())) {
+                interacting.add(part);
+            } else {
+                parts.add(part);
+            }
+        }
+    }
+
+    /*
+     * Returns a geometry that is valid and simple as it stands, or otherwise
+     * the union of the geometry with itself, which dissolves overlapping
+     * polygons and self-intersections and nodes crossing lines.
+     */
+    private static Geometry repair(Geometry g) {
+        if (g.isValid() && g.isSimple()) {
+            return g;
+        }
+        if (g.getDimension() == 2 && isHomogeneous(g)) {
+            return g.buffer(0);
+        }
+        return UnaryUnionOp.union(g);
+    }
+
+    private static boolean isHomogeneous(Geometry g) {
+        return !g.getClass().equals(GeometryCollection.class);
+    }
+}
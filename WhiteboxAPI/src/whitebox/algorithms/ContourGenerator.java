@@ -0,0 +1,514 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.algorithms;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import whitebox.geospatialfiles.WhiteboxRasterBase;
+import whitebox.parallel.RowBands;
+
+/**
+ * Generates contour lines from a DEM using marching squares. The grid cell
+ * centres are the corners of the squares, and each contour crosses the side
+ * of a square at the position found by linear interpolation between its two
+ * corners. A corner is above a contour when its elevation is greater than or
+ * equal to the contour value, and saddle squares are resolved using the
+ * average of the four corners. Squares with a NoData corner are skipped, so
+ * contours end at the edges of NoData areas and of the DEM.
+ * <p>
+ * All of the contour values are traced in a single pass through the rows of
+ * the DEM. The line segments of a band of rows are generated on a worker
+ * thread (see whitebox.parallel.RowBands) and are stitched together, in row
+ * order, on the calling thread. Only the lines that are still open are held
+ * in memory, in a map keyed by the contour value and the square side at
+ * each of their ends. A line whose ends can no longer be extended, either
+ * because it has closed on itself or because both of its ends lie on square
+ * sides that are behind the current row, is passed to the output
+ * immediately.
+ *
+ * @author johnlindsay
+ */
+public class ContourGenerator {
+
+    /*
+     * Receives the contour lines on the thread that called run().
+     */
+    public interface Output {
+
+        /**
+         * Receives a completed contour line. The first and last points of a
+         * closed line are equal.
+         *
+         * @param points The x and y coordinates of the line vertices.
+         * @param contourValue The elevation of the contour.
+         * @throws Exception
+         */
+        void writeLine(double[][] points, double contourValue) throws Exception;
+
+        /**
+         * Called after each band of rows has been stitched. Returning false
+         * stops the contouring.
+         *
+         * @param rowsCompleted The number of DEM rows that have been processed.
+         * @return false to stop the contouring.
+         * @throws Exception
+         */
+        boolean rowsCompleted(int rowsCompleted) throws Exception;
+    }
+
+    // the contour index occupies the high bits of an end key and the square
+    // side the low bits
+    private static final int SIDE_BITS = 40;
+    private final WhiteboxRasterBase dem;
+    private final double contourInterval;
+    private final double baseContour;
+    private final double zConvFactor;
+    private final int rows, cols;
+    private final double noData;
+    private final double west, north, cellSizeX, cellSizeY;
+    private final Map<Long, Line> openEnds = new HashMap<>();
+    private Output output;
+
+    /**
+     * @param dem The DEM. It is only read, from worker threads.
+     * @param contourInterval The contour interval.
+     * @param baseContour The elevation of a contour from which the others are
+     * spaced by the interval.
+     * @param zConvFactor A factor applied to the DEM elevations.
+     */
+    public ContourGenerator(WhiteboxRasterBase dem, double contourInterval,
+            double baseContour, double zConvFactor) {
+        if (contourInterval <= 0) {
+            throw new IllegalArgumentException("The contour interval must be greater than zero.");
+        }
+        this.dem = dem;
+        this.contourInterval = contourInterval;
+        this.baseContour = baseContour;
+        this.zConvFactor = zConvFactor;
+        rows = dem.getNumberRows();
+        cols = dem.getNumberColumns();
+        if (2L * rows * cols >= (1L << SIDE_BITS)) {
+            throw new IllegalArgumentException("The DEM is too large to contour.");
+        }
+        noData = dem.getNoDataValue();
+        west = dem.getWest();
+        north = dem.getNorth();
+        cellSizeX = dem.getCellSizeX();
+        cellSizeY = dem.getCellSizeY();
+    }
+
+    /**
+     * Traces the contours.
+     *
+     * @param output Receives the contour lines and progress.
+     * @return false if the output stopped the contouring.
+     * @throws Exception Any exception thrown while reading the DEM or by the
+     * output.
+     */
+    public boolean run(Output output) throws Exception {
+        this.output = output;
+        openEnds.clear();
+        int numSquareRows = Math.max(0, rows - 1);
+        boolean completed = RowBands.process(numSquareRows, new RowBands.Task<Segments>() {
+            @Override
+            public Segments process(int startRow, int endRow) {
+                return generateSegments(startRow, endRow);
+            }
+        }, new RowBands.Consumer<Segments>() {
+            @Override
+            public boolean consume(int startRow, int endRow, Segments segments) throws Exception {
+                int i = 0;
+                for (int row = startRow; row < endRow; row++) {
+                    int end = segments.rowEnd[row - startRow];
+                    for (; i < end; i++) {
+                        addSegment(segments, i);
+                    }
+                    closeEnds(row);
+                }
+                return ContourGenerator.this.output.rowsCompleted(endRow + 1);
+            }
+        });
+        if (completed) {
+            // whatever is still open after the last row has ended
+            closeEnds(numSquareRows);
+        }
+        openEnds.clear();
+        return completed;
+    }
+
+    /*
+     * The side of the square between corners (row, col) and (row, col + 1)
+     * has an even id and the side between (row, col) and (row + 1, col) the
+     * following odd id.
+     */
+    private long key(int contourIndex, long side) {
+        return (((long) contourIndex) << SIDE_BITS) | side;
+    }
+
+    private double contourValue(int contourIndex) {
+        return baseContour + contourIndex * contourInterval;
+    }
+
+    /*
+     * The line segments of the squares between DEM rows startRow and endRow
+     * (the squares of row r lie between DEM rows r and r + 1).
+     */
+    private Segments generateSegments(int startRow, int endRow) {
+        Segments segments = new Segments(endRow - startRow);
+        double[] px = new double[4];
+        double[] py = new double[4];
+        long[] sides = new long[4];
+        double[] upper = readRow(startRow);
+        for (int row = startRow; row < endRow; row++) {
+            double[] lower = readRow(row + 1);
+            double yTop = north - (row + 0.5) * cellSizeY;
+            double yBottom = north - (row + 1.5) * cellSizeY;
+            for (int col = 0; col < cols - 1; col++) {
+                double tl = upper[col];
+                double tr = upper[col + 1];
+                double br = lower[col + 1];
+                double bl = lower[col];
+                if (tl == noData || tr == noData || br == noData || bl == noData) {
+                    continue;
+                }
+                double min = Math.min(Math.min(tl, tr), Math.min(br, bl));
+                double max = Math.max(Math.max(tl, tr), Math.max(br, bl));
+                if (min == max) {
+                    continue;
+                }
+                int firstContour = (int) Math.floor((min - baseContour) / contourInterval);
+                int lastContour = (int) Math.floor((max - baseContour) / contourInterval);
+                double xLeft = west + (col + 0.5) * cellSizeX;
+                double xRight = west + (col + 1.5) * cellSizeX;
+                long top = 2L * ((long) row * cols + col);
+                long left = top + 1;
+                long bottom = 2L * ((long) (row + 1) * cols + col);
+                long right = top + 3;
+                for (int k = firstContour; k <= lastContour; k++) {
+                    double z = contourValue(k);
+                    int square = (tl >= z ? 8 : 0) | (tr >= z ? 4 : 0) | (br >= z ? 2 : 0) | (bl >= z ? 1 : 0);
+                    if (square == 0 || square == 15) {
+                        continue;
+                    }
+                    // the crossing points on the top, right, bottom and left
+                    // sides, each interpolated from its top or left corner
+                    sides[0] = top;
+                    sides[1] = right;
+                    sides[2] = bottom;
+                    sides[3] = left;
+                    px[0] = xLeft + (z - tl) / (tr - tl) * cellSizeX;
+                    py[0] = yTop;
+                    px[1] = xRight;
+                    py[1] = yTop - (z - tr) / (br - tr) * cellSizeY;
+                    px[2] = xLeft + (z - bl) / (br - bl) * cellSizeX;
+                    py[2] = yBottom;
+                    px[3] = xLeft;
+                    py[3] = yTop - (z - tl) / (bl - tl) * cellSizeY;
+                    boolean centreAbove = (tl + tr + br + bl) / 4 >= z;
+                    switch (square) {
+                        case 1:
+                        case 14:
+                            segments.add(k, sides, px, py, 3, 2);
+                            break;
+                        case 2:
+                        case 13:
+                            segments.add(k, sides, px, py, 2, 1);
+                            break;
+                        case 3:
+                        case 12:
+                            segments.add(k, sides, px, py, 3, 1);
+                            break;
+                        case 4:
+                        case 11:
+                            segments.add(k, sides, px, py, 0, 1);
+                            break;
+                        case 6:
+                        case 9:
+                            segments.add(k, sides, px, py, 0, 2);
+                            break;
+                        case 7:
+                        case 8:
+                            segments.add(k, sides, px, py, 3, 0);
+                            break;
+                        case 5: // top-right and bottom-left above
+                            if (centreAbove) {
+                                segments.add(k, sides, px, py, 3, 0);
+                                segments.add(k, sides, px, py, 2, 1);
+                            } else {
+                                segments.add(k, sides, px, py, 0, 1);
+                                segments.add(k, sides, px, py, 3, 2);
+                            }
+                            break;
+                        case 10: // top-left and bottom-right above
+                            if (centreAbove) {
+                                segments.add(k, sides, px, py, 0, 1);
+                                segments.add(k, sides, px, py, 3, 2);
+                            } else {
+                                segments.add(k, sides, px, py, 3, 0);
+                                segments.add(k, sides, px, py, 2, 1);
+                            }
+                            break;
+                    }
+                }
+            }
+            segments.rowEnd[row - startRow] = segments.size;
+            upper = lower;
+        }
+        return segments;
+    }
+
+    private double[] readRow(int row) {
+        double[] values = dem.getRowValues(row);
+        if (zConvFactor != 1.0) {
+            for (int col = 0; col < values.length; col++) {
+                if (values[col] != noData) {
+                    values[col] *= zConvFactor;
+                }
+            }
+        }
+        return values;
+    }
+
+    /*
+     * Joins a segment to the open lines that end at either of its ends.
+     */
+    private void addSegment(Segments s, int i) throws Exception {
+        long keyA = key(s.contour[i], s.sideA[i]);
+        long keyB = key(s.contour[i], s.sideB[i]);
+        Line lineA = openEnds.remove(keyA);
+        Line lineB = openEnds.remove(keyB);
+        if (lineA == null && lineB == null) {
+            Line line = new Line(s.contour[i], keyA, s.ax[i], s.ay[i]);
+            line.append(keyB, s.bx[i], s.by[i]);
+            openEnds.put(keyA, line);
+            openEnds.put(keyB, line);
+        } else if (lineB == null) {
+            lineA.extend(keyA, keyB, s.bx[i], s.by[i]);
+            openEnds.put(keyB, lineA);
+        } else if (lineA == null) {
+            lineB.extend(keyB, keyA, s.ax[i], s.ay[i]);
+            openEnds.put(keyA, lineB);
+        } else if (lineA == lineB) {
+            // the line has closed on itself
+            lineA.append(lineA.tailKey, lineA.x[lineA.head], lineA.y[lineA.head]);
+            writeLine(lineA);
+        } else {
+            lineA.join(keyA, lineB, keyB);
+            if (lineA.headOpen || lineA.tailOpen) {
+                if (lineA.headOpen) {
+                    openEnds.put(lineA.headKey, lineA);
+                }
+                if (lineA.tailOpen) {
+                    openEnds.put(lineA.tailKey, lineA);
+                }
+            } else {
+                writeLine(lineA);
+            }
+        }
+    }
+
+    /*
+     * Once the squares of a row have been stitched, only the sides along the
+     * bottom of the row can be extended by later rows. Lines whose ends both
+     * lie elsewhere are complete.
+     */
+    private void closeEnds(int row) throws Exception {
+        long firstLive = 2L * (row + 1) * cols;
+        long lastLive = firstLive + 2L * (cols - 1);
+        List<Line> completed = new ArrayList<>();
+        Iterator<Map.Entry<Long, Line>> it = openEnds.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Line> entry = it.next();
+            long side = entry.getKey() & ((1L << SIDE_BITS) - 1);
+            if (side >= firstLive && side <= lastLive && (side & 1) == 0) {
+                continue;
+            }
+            it.remove();
+            Line line = entry.getValue();
+            if (line.headOpen && line.headKey == entry.getKey()) {
+                line.headOpen = false;
+            } else {
+                line.tailOpen = false;
+            }
+            if (!line.headOpen && !line.tailOpen) {
+                completed.add(line);
+            }
+        }
+        for (Line line : completed) {
+            writeLine(line);
+        }
+    }
+
+    private void writeLine(Line line) throws Exception {
+        output.writeLine(line.getPoints(), contourValue(line.contour));
+    }
+
+    /*
+     * The segments of a band of rows, held in primitive arrays.
+     */
+    private static class Segments {
+
+        int size = 0;
+        int[] contour = new int[64];
+        long[] sideA = new long[64];
+        long[] sideB = new long[64];
+        double[] ax = new double[64];
+        double[] ay = new double[64];
+        double[] bx = new double[64];
+        double[] by = new double[64];
+        final int[] rowEnd;
+
+        Segments(int numRows) {
+            rowEnd = new int[numRows];
+        }
+
+        void add(int k, long[] sides, double[] px, double[] py, int a, int b) {
+            if (size == contour.length) {
+                int capacity = 2 * size;
+                contour = Arrays.copyOf(contour, capacity);
+                sideA = Arrays.copyOf(sideA, capacity);
+                sideB = Arrays.copyOf(sideB, capacity);
+                ax = Arrays.copyOf(ax, capacity);
+                ay = Arrays.copyOf(ay, capacity);
+                bx = Arrays.copyOf(bx, capacity);
+                by = Arrays.copyOf(by, capacity);
+            }
+            contour[size] = k;
+            sideA[size] = sides[a];
+            sideB[size] = sides[b];
+            ax[size] = px[a];
+            ay[size] = py[a];
+            bx[size] = px[b];
+            by[size] = py[b];
+            size++;
+        }
+    }
+
+    /*
+     * An open contour line. The vertices are stored between head and tail
+     * (exclusive) in arrays that can grow at either end.
+     */
+    private static class Line {
+
+        final int contour;
+        double[] x = new double[16];
+        double[] y = new double[16];
+        int head = 8, tail = 8;
+        long headKey, tailKey;
+        boolean headOpen = true, tailOpen = true;
+
+        Line(int contour, long key, double px, double py) {
+            this.contour = contour;
+            headKey = key;
+            tailKey = key;
+            x[tail] = px;
+            y[tail] = py;
+            tail++;
+        }
+
+        int size() {
+            return tail - head;
+        }
+
+        private void ensureCapacity(int front, int back) {
+            if (head >= front && x.length - tail >= back) {
+                return;
+            }
+            int n = size();
+            int capacity = 2 * (n + front + back) + 16;
+            int newHead = (capacity - n) / 2;
+            double[] nx = new double[capacity];
+            double[] ny = new double[capacity];
+            System.arraycopy(x, head, nx, newHead, n);
+            System.arraycopy(y, head, ny, newHead, n);
+            x = nx;
+            y = ny;
+            head = newHead;
+            tail = newHead + n;
+        }
+
+        void append(long key, double px, double py) {
+            ensureCapacity(0, 1);
+            x[tail] = px;
+            y[tail] = py;
+            tail++;
+            tailKey = key;
+        }
+
+        void prepend(long key, double px, double py) {
+            ensureCapacity(1, 0);
+            head--;
+            x[head] = px;
+            y[head] = py;
+            headKey = key;
+        }
+
+        /*
+         * Extends the line from its end at key to a new vertex.
+         */
+        void extend(long key, long newKey, double px, double py) {
+            if (tailOpen && tailKey == key) {
+                append(newKey, px, py);
+            } else {
+                prepend(newKey, px, py);
+            }
+        }
+
+        /*
+         * Joins another line, which ends at otherKey, to the end of this line
+         * at key. The two ends share a vertex.
+         */
+        void join(long key, Line other, long otherKey) {
+            boolean otherFromHead = other.headOpen && other.headKey == otherKey;
+            int n = other.size() - 1;
+            if (tailOpen && tailKey == key) {
+                ensureCapacity(0, n);
+                for (int i = 1; i <= n; i++) {
+                    int j = otherFromHead ? other.head + i : other.tail - 1 - i;
+                    x[tail] = other.x[j];
+                    y[tail] = other.y[j];
+                    tail++;
+                }
+                tailKey = otherFromHead ? other.tailKey : other.headKey;
+                tailOpen = otherFromHead ? other.tailOpen : other.headOpen;
+            } else {
+                ensureCapacity(n, 0);
+                for (int i = 1; i <= n; i++) {
+                    int j = otherFromHead ? other.head + i : other.tail - 1 - i;
+                    head--;
+                    x[head] = other.x[j];
+                    y[head] = other.y[j];
+                }
+                headKey = otherFromHead ? other.tailKey : other.headKey;
+                headOpen = otherFromHead ? other.tailOpen : other.headOpen;
+            }
+        }
+
+        double[][] getPoints() {
+            double[][] points = new double[size()][2];
+            for (int i = head; i < tail; i++) {
+                points[i - head][0] = x[i];
+                points[i - head][1] = y[i];
+            }
+            return points;
+        }
+    }
+}
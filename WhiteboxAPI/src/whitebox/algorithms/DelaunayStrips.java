@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.algorithms;
+
+import java.util.Arrays;
+
+/**
+ * Divides a set of points into horizontal buckets so that the points of any
+ * range of buckets, i.e. of a strip, can be triangulated on their own. Every
+ * strip is triangulated with the same origin, so that the triangles of
+ * different strips are calculated identically, and a triangle of a strip is
+ * final, i.e. a triangle of the triangulation of all of the points, if its
+ * circumcircle contains none of the points outside of the strip. This is
+ * tested against the east-west extent of the points of each bucket, so that
+ * the large, empty circumcircles of the triangles along the edges of the
+ * point set do not have to lie within the strip.
+ *
+ * @author johnlindsay
+ */
+class DelaunayStrips {
+
+    private final double[] x;
+    private final double[] y;
+    private final double originX;
+    private final double originY;
+    private final double top;
+    private final double bucketHeight;
+    private final int numBuckets;
+    // guards the tests against the rounding of the bucket of each point
+    private final double margin;
+    private final int[] bucketStart;
+    private final int[] bucketPoints;
+    // the east-west extent of the points of each bucket, relative to the
+    // origin, and of all of the points
+    private final double[] bucketMinX;
+    private final double[] bucketMaxX;
+    private final double width;
+    private DelaunayTriangulation whole;
+    // the number of buckets beyond a strip that are tested individually
+    private static final int MAX_SCAN = 256;
+
+    /**
+     * @param x The x coordinates of the points.
+     * @param y The y coordinates of the points.
+     * @param top The northern edge of the first bucket.
+     * @param bucketHeight The height of each bucket.
+     * @param numBuckets The number of buckets. Points outside of the buckets
+     * are placed in the first or last bucket.
+     */
+    DelaunayStrips(double[] x, double[] y, double top, double bucketHeight, int numBuckets) {
+        this.x = x;
+        this.y = y;
+        this.top = top;
+        this.bucketHeight = bucketHeight;
+        this.numBuckets = numBuckets;
+        this.margin = 1e-6 * bucketHeight;
+        int numPoints = x.length;
+        double minX = 0;
+        double minY = 0;
+        for (int i = 0; i < numPoints; i++) {
+            if (i == 0 || x[i] < minX) {
+                minX = x[i];
+            }
+            if (i == 0 || y[i] < minY) {
+                minY = y[i];
+            }
+        }
+        this.originX = minX;
+        this.originY = minY;
+        double maxX = minX;
+        for (int i = 0; i < numPoints; i++) {
+            maxX = Math.max(maxX, x[i]);
+        }
+        this.width = maxX - minX;
+
+        // a counting sort of the points by bucket, which keeps the points of
+        // each bucket in the order of their indices
+        int[] pointBucket = new int[numPoints];
+        bucketStart = new int[numBuckets + 1];
+        for (int i = 0; i < numPoints; i++) {
+            int b = getBucket(y[i]);
+            pointBucket[i] = b;
+            bucketStart[b + 1]++;
+        }
+        for (int b = 0; b < numBuckets; b++) {
+            bucketStart[b + 1] += bucketStart[b];
+        }
+        int[] next = new int[numBuckets];
+        System.arraycopy(bucketStart, 0, next, 0, numBuckets);
+        bucketPoints = new int[numPoints];
+        for (int i = 0; i < numPoints; i++) {
+            bucketPoints[next[pointBucket[i]]++] = i;
+        }
+        bucketMinX = new double[numBuckets];
+        bucketMaxX = new double[numBuckets];
+        Arrays.fill(bucketMinX, Double.POSITIVE_INFINITY);
+        Arrays.fill(bucketMaxX, Double.NEGATIVE_INFINITY);
+        for (int i = 0; i < numPoints; i++) {
+            int b = pointBucket[i];
+            bucketMinX[b] = Math.min(bucketMinX[b], x[i] - originX);
+            bucketMaxX[b] = Math.max(bucketMaxX[b], x[i] - originX);
+        }
+    }
+
+    int getNumberOfBuckets() {
+        return numBuckets;
+    }
+
+    int getBucket(double northing) {
+        double b = Math.floor((top - northing) / bucketHeight);
+        return (int) Math.max(0, Math.min(numBuckets - 1, b));
+    }
+
+    int getNumberOfPoints(int startBucket, int endBucket) {
+        return bucketStart[endBucket] - bucketStart[startBucket];
+    }
+
+    /**
+     * Triangulates the points of the buckets startBucket to endBucket - 1.
+     * The triangulation of all of the buckets is only calculated once.
+     */
+    DelaunayTriangulation triangulate(int startBucket, int endBucket) {
+        if (startBucket <= 0 && endBucket >= numBuckets) {
+            return getWhole();
+        }
+        return new DelaunayTriangulation(x, y, bucketPoints, bucketStart[startBucket],
+                bucketStart[endBucket], originX, originY);
+    }
+
+    private synchronized DelaunayTriangulation getWhole() {
+        if (whole == null) {
+            whole = new DelaunayTriangulation(x, y, bucketPoints, 0, x.length, originX, originY);
+        }
+        return whole;
+    }
+
+    /*
+     * The northern limit, relative to the origin, below which all points
+     * belong to buckets startBucket or later, or infinity for the first
+     * bucket.
+     */
+    private double getStripTop(int startBucket) {
+        if (startBucket <= 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return (top - startBucket * bucketHeight) - originY - margin;
+    }
+
+    /*
+     * The southern limit, relative to the origin, above which all points
+     * belong to buckets before endBucket, or minus infinity for the last
+     * bucket.
+     */
+    private double getStripBottom(int endBucket) {
+        if (endBucket >= numBuckets) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        return (top - endBucket * bucketHeight) - originY + margin;
+    }
+
+    /**
+     * Whether a triangle of the strip of buckets startBucket to endBucket - 1
+     * belongs to the triangulation of all of the points, which is so if its
+     * circumcircle, within which there are no other points of the strip,
+     * contains none of the points of the other buckets.
+     */
+    boolean isFinal(DelaunayTriangulation dt, int t, int startBucket, int endBucket) {
+        if (startBucket <= 0 && endBucket >= numBuckets) {
+            return true;
+        }
+        int a = dt.getVertex(t, 0);
+        int b = dt.getVertex(t, 1);
+        int c = dt.getVertex(t, 2);
+        double ax = dt.getX(a);
+        double ay = dt.getY(a);
+        double dx = dt.getX(b) - ax;
+        double dy = dt.getY(b) - ay;
+        double ex = dt.getX(c) - ax;
+        double ey = dt.getY(c) - ay;
+        double det = 2 * (dx * ey - dy * ex);
+        double dd = dx * dx + dy * dy;
+        double ee = ex * ex + ey * ey;
+        double ux = (ey * dd - dy * ee) / det;
+        double uy = (dx * ee - ex * dd) / det;
+        // a generous bound on the error of the circumcentre, which grows as
+        // the triangle becomes degenerate
+        double error = 1e-12 * (dd + ee) * (Math.sqrt(dd) + Math.sqrt(ee)) / Math.abs(det);
+        if (!(error < Double.POSITIVE_INFINITY)) {
+            return false;
+        }
+        double radius = Math.sqrt(ux * ux + uy * uy) + error;
+        double cx = ax + ux;
+        double cy = ay + uy;
+        return (startBucket <= 0 || isClear(cx, cy, radius, startBucket - 1, -1))
+                && (endBucket >= numBuckets || isClear(cx, cy, radius, endBucket, 1));
+    }
+
+    /*
+     * Whether a circle misses the points of the buckets from bucket b
+     * onwards, moving away from the strip by step. Beyond MAX_SCAN buckets,
+     * the extent of all of the points is used instead of that of each bucket.
+     */
+    private boolean isClear(double cx, double cy, double radius, int b, int step) {
+        for (int i = 0; b >= 0 && b < numBuckets; i++, b += step) {
+            double upper = (top - b * bucketHeight) - originY + margin;
+            double lower = upper - bucketHeight - 2 * margin;
+            if (step < 0 ? cy + radius < lower : cy - radius > upper) {
+                return true;
+            }
+            double minX = bucketMinX[b];
+            double maxX = bucketMaxX[b];
+            if (i == MAX_SCAN) {
+                // the rest of the buckets at once
+                if (step < 0) {
+                    upper = Double.POSITIVE_INFINITY;
+                } else {
+                    lower = Double.NEGATIVE_INFINITY;
+                }
+                minX = 0;
+                maxX = width;
+                b = step < 0 ? 0 : numBuckets - 1;
+            }
+            double gap = cy < lower ? lower - cy : (cy > upper ? cy - upper : 0);
+            double halfWidth = Math.sqrt(Math.max(0, radius * radius - gap * gap));
+            if (cx + halfWidth >= minX && cx - halfWidth <= maxX) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether a point of the whole set that lies within a given distance of
+     * a location, relative to the origin, must belong to the strip of buckets
+     * startBucket to endBucket - 1.
+     */
+    boolean isWithin(double northing, double distance, int startBucket, int endBucket) {
+        return (startBucket <= 0 || northing + distance <= getStripTop(startBucket))
+                && (endBucket >= numBuckets || northing - distance > getStripBottom(endBucket));
+    }
+
+    double getOriginX() {
+        return originX;
+    }
+
+    double getOriginY() {
+        return originY;
+    }
+}
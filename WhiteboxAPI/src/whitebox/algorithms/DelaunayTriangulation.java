@@ -0,0 +1,778 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.algorithms;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import whitebox.parallel.RowBands;
+
+/**
+ * The Delaunay triangulation of a set of points, held in primitive arrays.
+ * The points are inserted one at a time with the Bowyer-Watson algorithm, in
+ * a biased randomized insertion order (BRIO; Amenta et al., 2003): the points
+ * are divided into rounds of doubling size and the points of each round are
+ * sorted along a Hilbert curve, so that each point is usually found by a
+ * short walk from the triangle created by the previous insertion. The
+ * outside of the convex hull is covered by ghost triangles, each joining a
+ * hull edge to a vertex at infinity, so that points outside the hull need no
+ * special treatment.
+ * <p>
+ * The orientation and in-circle tests are exact: they are evaluated in
+ * floating point with the error bounds of Shewchuk (1997) and, in the rare
+ * cases where the bounds do not settle the sign, again with BigDecimal
+ * arithmetic. Four or more co-circular points, which are common in gridded
+ * data, are resolved by a symbolic perturbation that favours the points with
+ * the lowest indices, so the triangulation of a set of points is unique and
+ * does not depend on the order in which the points are inserted. Duplicate
+ * points are triangulated once, with the lowest index.
+ * <p>
+ * The uniqueness allows a large set of points to be triangulated in strips
+ * (see stream()). Each strip is triangulated together with a halo of the
+ * points around it and only those triangles whose circumcircles can contain
+ * none of the points that were left out, which are therefore triangles of
+ * the whole triangulation, are passed on; the rest of the strip is then
+ * discarded, so memory use depends on the size of a strip rather than on the
+ * number of points.
+ *
+ * @author johnlindsay
+ */
+public class DelaunayTriangulation {
+
+    /*
+     * Receives the triangles of a streamed triangulation, on the calling
+     * thread, as the indices of their vertices in anticlockwise order.
+     * Returning false stops the triangulation.
+     */
+    public interface TriangleConsumer {
+
+        boolean triangle(int a, int b, int c) throws Exception;
+    }
+
+    // the vertex at infinity of the ghost triangles, which is always the
+    // third vertex of a ghost triangle
+    static final int INFINITE = -1;
+    private static final int FREE = -2;
+    private static final double EPSILON = Math.ulp(1.0) / 2;
+    private static final double CCW_ERROR_BOUND = (3.0 + 16.0 * EPSILON) * EPSILON;
+    private static final double ICC_ERROR_BOUND = (10.0 + 96.0 * EPSILON) * EPSILON;
+    private static final int HILBERT_ORDER = 14;
+    private static final int BRIO_ROUNDS = 12;
+    // the approximate number of points in each strip of a streamed
+    // triangulation
+    private static final int STRIP_POINTS = 500000;
+
+    // the vertices, relative to the origin, and the index of each vertex in
+    // the input coordinate arrays
+    private final double[] vx;
+    private final double[] vy;
+    private final int[] ids;
+    private final int numVertices;
+    private final double originX;
+    private final double originY;
+
+    // the vertices of each triangle, in anticlockwise order, and the
+    // neighbouring triangle across the edge opposite each vertex
+    private int[] tv;
+    private int[] tn;
+    private int numSlots = 0;
+    private int[] freeSlots = new int[64];
+    private int numFree = 0;
+    private int numTriangles = 0;
+    private int numDuplicates = 0;
+    private int lastTriangle = -1;
+    private int walkStart = 0;
+
+    // the working storage of an insertion
+    private int[] mark;
+    private int stamp = 0;
+    private int[] stack = new int[64];
+    private int[] cavity = new int[64];
+    private int[] boundaryFrom = new int[64];
+    private int[] boundaryTo = new int[64];
+    private int[] boundaryOut = new int[64];
+    private int[] boundaryNew = new int[64];
+    // the new triangle whose cavity edge starts at each vertex
+    private int[] vertexTriangle;
+
+    /**
+     * Triangulates a set of points.
+     *
+     * @param x The x coordinates of the points.
+     * @param y The y coordinates of the points.
+     */
+    public DelaunayTriangulation(double[] x, double[] y) {
+        this(x, y, null, 0, x.length, minimum(x), minimum(y));
+    }
+
+    /*
+     * Triangulates the points points[from] to points[to - 1], or the points
+     * from to to - 1 if points is null. The coordinates are taken relative to
+     * the origin, which must be the same for every triangulation whose
+     * triangles are compared.
+     */
+    DelaunayTriangulation(double[] x, double[] y, int[] points, int from, int to,
+            double originX, double originY) {
+        if (x.length != y.length) {
+            throw new IllegalArgumentException("The coordinate arrays must be the same length.");
+        }
+        this.numVertices = to - from;
+        this.originX = originX;
+        this.originY = originY;
+        vx = new double[numVertices];
+        vy = new double[numVertices];
+        ids = new int[numVertices];
+        for (int i = 0; i < numVertices; i++) {
+            int id = points == null ? from + i : points[from + i];
+            ids[i] = id;
+            vx[i] = x[id] - originX;
+            vy[i] = y[id] - originY;
+        }
+        int capacity = 2 * numVertices + 16;
+        tv = new int[3 * capacity];
+        tn = new int[3 * capacity];
+        mark = new int[capacity];
+        vertexTriangle = new int[numVertices];
+        triangulate();
+    }
+
+    private static double minimum(double[] values) {
+        double min = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (i == 0 || values[i] < min) {
+                min = values[i];
+            }
+        }
+        return min;
+    }
+
+    /**
+     * @return The number of triangles, not counting the ghost triangles.
+     */
+    public int getNumberOfTriangles() {
+        return numTriangles;
+    }
+
+    /**
+     * @return The number of points that were not triangulated because they
+     * duplicate a point with a lower index.
+     */
+    public int getNumberOfDuplicatePoints() {
+        return numDuplicates;
+    }
+
+    /**
+     * @return The indices of the vertices of each triangle, three to a
+     * triangle and in anticlockwise order. The array is empty if all of the
+     * points are collinear.
+     */
+    public int[] getTriangles() {
+        int[] ret = new int[3 * numTriangles];
+        int n = 0;
+        for (int t = 0; t < numSlots; t++) {
+            if (isSolid(t)) {
+                ret[n++] = ids[tv[3 * t]];
+                ret[n++] = ids[tv[3 * t + 1]];
+                ret[n++] = ids[tv[3 * t + 2]];
+            }
+        }
+        return ret;
+    }
+
+    // the following give the strip triangulators access to the structure
+    int getNumberOfSlots() {
+        return numSlots;
+    }
+
+    boolean isSolid(int t) {
+        return tv[3 * t] != FREE && tv[3 * t + 2] != INFINITE;
+    }
+
+    boolean isGhost(int t) {
+        return tv[3 * t] != FREE && tv[3 * t + 2] == INFINITE;
+    }
+
+    // the local index of vertex k of a triangle, or INFINITE
+    int getVertex(int t, int k) {
+        return tv[3 * t + k];
+    }
+
+    // the triangle across the edge opposite vertex k
+    int getNeighbour(int t, int k) {
+        return tn[3 * t + k];
+    }
+
+    double getX(int vertex) {
+        return vx[vertex];
+    }
+
+    double getY(int vertex) {
+        return vy[vertex];
+    }
+
+    int getId(int vertex) {
+        return ids[vertex];
+    }
+
+    double getOriginX() {
+        return originX;
+    }
+
+    double getOriginY() {
+        return originY;
+    }
+
+    private void triangulate() {
+        if (numVertices < 3) {
+            return;
+        }
+        int[] order = insertionOrder();
+
+        // the first triangle is made of the first point, the next distinct
+        // point and the next point that is not collinear with them
+        int a = order[0];
+        int ib = 1;
+        while (ib < numVertices && vx[order[ib]] == vx[a] && vy[order[ib]] == vy[a]) {
+            ib++;
+        }
+        if (ib == numVertices) {
+            numDuplicates = numVertices - 1;
+            return;
+        }
+        int ic = ib + 1;
+        double o = 0;
+        while (ic < numVertices && (o = orient(a, order[ib], order[ic])) == 0) {
+            ic++;
+        }
+        if (ic == numVertices) {
+            // the points are all collinear and there are no triangles
+            return;
+        }
+        int b = order[ib];
+        int c = order[ic];
+        if (o < 0) {
+            int tmp = b;
+            b = c;
+            c = tmp;
+        }
+        int t = newTriangle(a, b, c);
+        int gab = newTriangle(b, a, INFINITE);
+        int gbc = newTriangle(c, b, INFINITE);
+        int gca = newTriangle(a, c, INFINITE);
+        link(t, a, b, gab);
+        link(t, b, c, gbc);
+        link(t, c, a, gca);
+        link(gab, a, INFINITE, gca);
+        link(gbc, b, INFINITE, gab);
+        link(gca, c, INFINITE, gbc);
+        lastTriangle = t;
+
+        for (int i = 1; i < numVertices; i++) {
+            if (i != ib && i != ic) {
+                insert(order[i]);
+            }
+        }
+    }
+
+    /*
+     * The BRIO: each point is assigned to a round by a hash of its
+     * coordinates, with half of the points in the last round, a quarter in
+     * the one before it and so on, and the points of each round are sorted
+     * along a Hilbert curve. Duplicate points fall in the same round and
+     * position along the curve, and so are inserted in the order of their
+     * indices.
+     */
+    private int[] insertionOrder() {
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < numVertices; i++) {
+            minX = Math.min(minX, vx[i]);
+            maxX = Math.max(maxX, vx[i]);
+            minY = Math.min(minY, vy[i]);
+            maxY = Math.max(maxY, vy[i]);
+        }
+        double extent = Math.max(maxX - minX, maxY - minY);
+        double scale = extent > 0 ? ((1 << HILBERT_ORDER) - 1) / extent : 0;
+        long[] keys = new long[numVertices];
+        for (int i = 0; i < numVertices; i++) {
+            int hx = (int) ((vx[i] - minX) * scale);
+            int hy = (int) ((vy[i] - minY) * scale);
+            long round = brioRound(vx[i], vy[i]);
+            keys[i] = (round << 59) | (hilbert(hx, hy) << 31) | i;
+        }
+        Arrays.sort(keys);
+        int[] order = new int[numVertices];
+        for (int i = 0; i < numVertices; i++) {
+            order[i] = (int) (keys[i] & 0x7FFFFFFFL);
+        }
+        return order;
+    }
+
+    private static int brioRound(double x, double y) {
+        long h = Double.doubleToLongBits(x) * 0x9E3779B97F4A7C15L
+                ^ Double.doubleToLongBits(y) * 0xC2B2AE3D27D4EB4FL;
+        h ^= h >>> 29;
+        h *= 0xBF58476D1CE4E5B9L;
+        h ^= h >>> 32;
+        int zeros = Math.min(Long.numberOfTrailingZeros(h), BRIO_ROUNDS - 1);
+        return BRIO_ROUNDS - 1 - zeros;
+    }
+
+    // the distance along a Hilbert curve of a cell of a 2^HILBERT_ORDER grid
+    private static long hilbert(int x, int y) {
+        int n = 1 << HILBERT_ORDER;
+        long d = 0;
+        for (int s = n / 2; s > 0; s /= 2) {
+            int rx = (x & s) > 0 ? 1 : 0;
+            int ry = (y & s) > 0 ? 1 : 0;
+            d += (long) s * s * ((3 * rx) ^ ry);
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = n - 1 - x;
+                    y = n - 1 - y;
+                }
+                int tmp = x;
+                x = y;
+                y = tmp;
+            }
+        }
+        return d;
+    }
+
+    private void insert(int p) {
+        int t = locate(p);
+        if (t < 0) {
+            numDuplicates++;
+            return;
+        }
+
+        // find the cavity of the triangles whose circumcircles contain the
+        // point, and the edges around it
+        stamp += 2;
+        int inside = stamp;
+        int outside = stamp + 1;
+        int numStack = 0;
+        int numCavity = 0;
+        int numBoundary = 0;
+        mark[t] = inside;
+        stack[numStack++] = t;
+        while (numStack > 0) {
+            int c = stack[--numStack];
+            if (numCavity == cavity.length) {
+                cavity = Arrays.copyOf(cavity, 2 * numCavity);
+            }
+            cavity[numCavity++] = c;
+            for (int k = 0; k < 3; k++) {
+                int n = tn[3 * c + k];
+                if (mark[n] == inside) {
+                    continue;
+                }
+                if (mark[n] != outside) {
+                    if (inCircumcircle(n, p)) {
+                        mark[n] = inside;
+                        if (numStack == stack.length) {
+                            stack = Arrays.copyOf(stack, 2 * numStack);
+                        }
+                        stack[numStack++] = n;
+                        continue;
+                    }
+                    mark[n] = outside;
+                }
+                if (numBoundary == boundaryFrom.length) {
+                    boundaryFrom = Arrays.copyOf(boundaryFrom, 2 * numBoundary);
+                    boundaryTo = Arrays.copyOf(boundaryTo, 2 * numBoundary);
+                    boundaryOut = Arrays.copyOf(boundaryOut, 2 * numBoundary);
+                    boundaryNew = Arrays.copyOf(boundaryNew, 2 * numBoundary);
+                }
+                boundaryFrom[numBoundary] = tv[3 * c + (k + 1) % 3];
+                boundaryTo[numBoundary] = tv[3 * c + (k + 2) % 3];
+                boundaryOut[numBoundary] = n;
+                numBoundary++;
+            }
+        }
+
+        // replace the cavity with a fan of triangles around the point
+        for (int i = 0; i < numCavity; i++) {
+            freeTriangle(cavity[i]);
+        }
+        int infiniteTriangle = -1;
+        for (int i = 0; i < numBoundary; i++) {
+            int from = boundaryFrom[i];
+            int to = boundaryTo[i];
+            int nt = newTriangle(from, to, p);
+            link(nt, from, to, boundaryOut[i]);
+            boundaryNew[i] = nt;
+            if (from == INFINITE) {
+                infiniteTriangle = nt;
+            } else {
+                vertexTriangle[from] = nt;
+            }
+        }
+        for (int i = 0; i < numBoundary; i++) {
+            int to = boundaryTo[i];
+            int next = to == INFINITE ? infiniteTriangle : vertexTriangle[to];
+            link(boundaryNew[i], to, p, next);
+        }
+        lastTriangle = boundaryNew[numBoundary - 1];
+    }
+
+    /*
+     * Walks from the last triangle created towards the point. Returns a
+     * triangle that contains the point, a ghost triangle whose hull edge the
+     * point lies strictly outside of, or -1 if the point duplicates a vertex.
+     */
+    private int locate(int p) {
+        int t = lastTriangle;
+        if (isGhost(t)) {
+            t = tn[3 * t + 2];
+        }
+        boolean moved = true;
+        while (moved) {
+            moved = false;
+            // varying the first edge tested prevents cycles in the walk
+            walkStart = (walkStart + 1) % 3;
+            for (int j = 0; j < 3; j++) {
+                int k = (walkStart + j) % 3;
+                int u = tv[3 * t + (k + 1) % 3];
+                int w = tv[3 * t + (k + 2) % 3];
+                if (orient(u, w, p) < 0) {
+                    t = tn[3 * t + k];
+                    moved = true;
+                    break;
+                }
+            }
+            if (moved && tv[3 * t + 2] == INFINITE) {
+                return t;
+            }
+        }
+        for (int k = 0; k < 3; k++) {
+            int v = tv[3 * t + k];
+            if (vx[v] == vx[p] && vy[v] == vy[p]) {
+                return -1;
+            }
+        }
+        return t;
+    }
+
+    private int newTriangle(int a, int b, int c) {
+        // the vertex at infinity is kept in the third position
+        if (a == INFINITE) {
+            a = b;
+            b = c;
+            c = INFINITE;
+        } else if (b == INFINITE) {
+            b = a;
+            a = c;
+            c = INFINITE;
+        }
+        int t;
+        if (numFree > 0) {
+            t = freeSlots[--numFree];
+        } else {
+            if (numSlots == mark.length) {
+                int capacity = numSlots + numSlots / 2 + 16;
+                tv = Arrays.copyOf(tv, 3 * capacity);
+                tn = Arrays.copyOf(tn, 3 * capacity);
+                mark = Arrays.copyOf(mark, capacity);
+            }
+            t = numSlots++;
+        }
+        tv[3 * t] = a;
+        tv[3 * t + 1] = b;
+        tv[3 * t + 2] = c;
+        mark[t] = 0;
+        if (c != INFINITE) {
+            numTriangles++;
+        }
+        return t;
+    }
+
+    private void freeTriangle(int t) {
+        if (tv[3 * t + 2] != INFINITE) {
+            numTriangles--;
+        }
+        tv[3 * t] = FREE;
+        if (numFree == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, 2 * numFree);
+        }
+        freeSlots[numFree++] = t;
+    }
+
+    // makes t and n neighbours across the edge from-to of t
+    private void link(int t, int from, int to, int n) {
+        setNeighbour(t, from, to, n);
+        setNeighbour(n, to, from, t);
+    }
+
+    private void setNeighbour(int t, int from, int to, int n) {
+        for (int k = 0; k < 3; k++) {
+            if (tv[3 * t + (k + 1) % 3] == from && tv[3 * t + (k + 2) % 3] == to) {
+                tn[3 * t + k] = n;
+                return;
+            }
+        }
+        throw new IllegalStateException("The triangulation is inconsistent.");
+    }
+
+    private boolean inCircumcircle(int t, int p) {
+        int a = tv[3 * t];
+        int b = tv[3 * t + 1];
+        int c = tv[3 * t + 2];
+        if (c == INFINITE) {
+            // the ghost triangle contains the points strictly outside its
+            // hull edge and those strictly between its ends
+            double o = orient(a, b, p);
+            if (o != 0) {
+                return o > 0;
+            }
+            if (vx[a] != vx[b]) {
+                return (vx[p] > vx[a]) != (vx[p] > vx[b]) && vx[p] != vx[a] && vx[p] != vx[b];
+            }
+            return (vy[p] > vy[a]) != (vy[p] > vy[b]) && vy[p] != vy[a] && vy[p] != vy[b];
+        }
+        double det = inCircle(vx[a], vy[a], vx[b], vy[b], vx[c], vy[c], vx[p], vy[p]);
+        if (det != 0) {
+            return det > 0;
+        }
+        // The four points are co-circular. Raising each point above the
+        // paraboloid of the in-circle test by a distinct infinitesimal amount,
+        // largest for the lowest index, decides the test by the first of the
+        // following terms, in order of the indices, that is not zero.
+        int[] q = {a, b, c, p};
+        int used = 0;
+        for (int r = 0; r < 4; r++) {
+            int best = -1;
+            for (int j = 0; j < 4; j++) {
+                if ((used & (1 << j)) == 0 && (best < 0 || ids[q[j]] < ids[q[best]])) {
+                    best = j;
+                }
+            }
+            used |= 1 << best;
+            double s;
+            switch (best) {
+                case 0:
+                    s = orient(b, c, p);
+                    break;
+                case 1:
+                    s = -orient(a, c, p);
+                    break;
+                case 2:
+                    s = orient(a, b, p);
+                    break;
+                default:
+                    s = -orient(a, b, c);
+                    break;
+            }
+            if (s != 0) {
+                return s > 0;
+            }
+        }
+        return false;
+    }
+
+    private double orient(int a, int b, int c) {
+        return orient(vx[a], vy[a], vx[b], vy[b], vx[c], vy[c]);
+    }
+
+    /**
+     * The orientation test. The sign of the result is exact.
+     *
+     * @return A positive value if a, b and c are in anticlockwise order, a
+     * negative value if they are in clockwise order and zero if they are
+     * collinear.
+     */
+    static double orient(double ax, double ay, double bx, double by, double cx, double cy) {
+        double detLeft = (ax - cx) * (by - cy);
+        double detRight = (ay - cy) * (bx - cx);
+        double det = detLeft - detRight;
+        double errorBound = CCW_ERROR_BOUND * (Math.abs(detLeft) + Math.abs(detRight));
+        if (det > errorBound || -det > errorBound) {
+            return det;
+        }
+        BigDecimal acx = exact(ax).subtract(exact(cx));
+        BigDecimal bcy = exact(by).subtract(exact(cy));
+        BigDecimal acy = exact(ay).subtract(exact(cy));
+        BigDecimal bcx = exact(bx).subtract(exact(cx));
+        return acx.multiply(bcy).subtract(acy.multiply(bcx)).signum();
+    }
+
+    /**
+     * The in-circle test. The sign of the result is exact.
+     *
+     * @return A positive value if d lies inside the circle through a, b and
+     * c, which must be in anticlockwise order, a negative value if it lies
+     * outside and zero if it lies on the circle.
+     */
+    static double inCircle(double ax, double ay, double bx, double by, double cx,
+            double cy, double dx, double dy) {
+        double adx = ax - dx;
+        double bdx = bx - dx;
+        double cdx = cx - dx;
+        double ady = ay - dy;
+        double bdy = by - dy;
+        double cdy = cy - dy;
+        double bdxcdy = bdx * cdy;
+        double cdxbdy = cdx * bdy;
+        double alift = adx * adx + ady * ady;
+        double cdxady = cdx * ady;
+        double adxcdy = adx * cdy;
+        double blift = bdx * bdx + bdy * bdy;
+        double adxbdy = adx * bdy;
+        double bdxady = bdx * ady;
+        double clift = cdx * cdx + cdy * cdy;
+        double det = alift * (bdxcdy - cdxbdy) + blift * (cdxady - adxcdy)
+                + clift * (adxbdy - bdxady);
+        double permanent = (Math.abs(bdxcdy) + Math.abs(cdxbdy)) * alift
+                + (Math.abs(cdxady) + Math.abs(adxcdy)) * blift
+                + (Math.abs(adxbdy) + Math.abs(bdxady)) * clift;
+        double errorBound = ICC_ERROR_BOUND * permanent;
+        if (det > errorBound || -det > errorBound) {
+            return det;
+        }
+        BigDecimal eadx = exact(ax).subtract(exact(dx));
+        BigDecimal ebdx = exact(bx).subtract(exact(dx));
+        BigDecimal ecdx = exact(cx).subtract(exact(dx));
+        BigDecimal eady = exact(ay).subtract(exact(dy));
+        BigDecimal ebdy = exact(by).subtract(exact(dy));
+        BigDecimal ecdy = exact(cy).subtract(exact(dy));
+        BigDecimal ealift = eadx.multiply(eadx).add(eady.multiply(eady));
+        BigDecimal eblift = ebdx.multiply(ebdx).add(ebdy.multiply(ebdy));
+        BigDecimal eclift = ecdx.multiply(ecdx).add(ecdy.multiply(ecdy));
+        return ealift.multiply(ebdx.multiply(ecdy).subtract(ecdx.multiply(ebdy)))
+                .add(eblift.multiply(ecdx.multiply(eady).subtract(eadx.multiply(ecdy))))
+                .add(eclift.multiply(eadx.multiply(ebdy).subtract(ebdx.multiply(eady))))
+                .signum();
+    }
+
+    private static BigDecimal exact(double value) {
+        return new BigDecimal(value);
+    }
+
+    /**
+     * Triangulates a set of points in strips, passing each triangle to the
+     * consumer as soon as it is known to belong to the Delaunay triangulation
+     * of the whole set. Only triangles whose edges are no longer than the
+     * maximum edge length are passed on, which is what keeps the strips
+     * local: a strip is triangulated together with the points within at
+     * least that distance of it, widening the halo only where a triangle's
+     * circumcircle reaches beyond it. Each triangle is passed on by the
+     * strip that contains its centroid. The strips are triangulated in
+     * parallel and the triangles are passed on in strip order, from north to
+     * south. With an infinite maximum edge length the points are triangulated
+     * as a whole.
+     *
+     * @param x The x coordinates of the points.
+     * @param y The y coordinates of the points.
+     * @param maxEdgeLength The length of the longest triangle edge, or
+     * positive infinity for no limit.
+     * @param consumer Receives the triangles.
+     * @return false if the consumer stopped the triangulation.
+     * @throws Exception Any exception thrown by the consumer.
+     */
+    public static boolean stream(final double[] x, final double[] y, final double maxEdgeLength,
+            final TriangleConsumer consumer) throws Exception {
+        if (x.length != y.length) {
+            throw new IllegalArgumentException("The coordinate arrays must be the same length.");
+        }
+        int numPoints = x.length;
+        if (numPoints < 3) {
+            return true;
+        }
+        if (!(maxEdgeLength < Double.POSITIVE_INFINITY)) {
+            int[] triangles = new DelaunayTriangulation(x, y).getTriangles();
+            for (int i = 0; i < triangles.length; i += 3) {
+                if (!consumer.triangle(triangles[i], triangles[i + 1], triangles[i + 2])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        double minY = minimum(y);
+        double maxY = minY;
+        for (int i = 0; i < numPoints; i++) {
+            maxY = Math.max(maxY, y[i]);
+        }
+        int numBuckets = Math.max(1, Math.min(1 << 20, numPoints / 64));
+        double bucketHeight = Math.max((maxY - minY) / numBuckets, Double.MIN_NORMAL);
+        final DelaunayStrips strips = new DelaunayStrips(x, y, maxY, bucketHeight, numBuckets);
+        final int halo = (int) Math.min(numBuckets, Math.ceil(maxEdgeLength / bucketHeight) + 1);
+        // strips several halos high, so that little of the work is repeated
+        int stripHeight = (int) Math.min((long) STRIP_POINTS * numBuckets / numPoints,
+                RowBands.defaultBandHeight(numBuckets));
+        stripHeight = (int) Math.max(1, Math.max(stripHeight, Math.min(numBuckets, 4L * halo)));
+        final double sqrMaxEdge = maxEdgeLength * maxEdgeLength;
+
+        return RowBands.process(numBuckets, stripHeight, new RowBands.Task<int[]>() {
+            @Override
+            public int[] process(int startBucket, int endBucket) {
+                int h = halo;
+                while (true) {
+                    int b0 = Math.max(0, startBucket - h);
+                    int b1 = Math.min(strips.getNumberOfBuckets(), endBucket + h);
+                    DelaunayTriangulation dt = strips.triangulate(b0, b1);
+                    int[] ret = new int[3 * Math.max(16, dt.getNumberOfTriangles())];
+                    int n = 0;
+                    boolean complete = true;
+                    for (int t = 0; t < dt.getNumberOfSlots() && complete; t++) {
+                        if (!dt.isSolid(t)) {
+                            continue;
+                        }
+                        int a = dt.getId(dt.getVertex(t, 0));
+                        int b = dt.getId(dt.getVertex(t, 1));
+                        int c = dt.getId(dt.getVertex(t, 2));
+                        int owner = strips.getBucket((y[a] + y[b] + y[c]) / 3);
+                        if (owner < startBucket || owner >= endBucket
+                                || sqrDist(x, y, a, b) > sqrMaxEdge
+                                || sqrDist(x, y, b, c) > sqrMaxEdge
+                                || sqrDist(x, y, c, a) > sqrMaxEdge) {
+                            continue;
+                        }
+                        if (!strips.isFinal(dt, t, b0, b1)) {
+                            complete = false;
+                            break;
+                        }
+                        ret[n++] = a;
+                        ret[n++] = b;
+                        ret[n++] = c;
+                    }
+                    if (complete) {
+                        return Arrays.copyOf(ret, n);
+                    }
+                    h *= 2;
+                }
+            }
+        }, new RowBands.Consumer<int[]>() {
+            @Override
+            public boolean consume(int startBucket, int endBucket, int[] triangles) throws Exception {
+                for (int i = 0; i < triangles.length; i += 3) {
+                    if (!consumer.triangle(triangles[i], triangles[i + 1], triangles[i + 2])) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        });
+    }
+
+    private static double sqrDist(double[] x, double[] y, int a, int b) {
+        double dx = x[a] - x[b];
+        double dy = y[a] - y[b];
+        return dx * dx + dy * dy;
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.algorithms;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import whitebox.parallel.Parallel;
+
+/**
+ * A complex fast Fourier transform of power-of-two length, using the
+ * iterative radix-2 Cooley-Tukey algorithm. The twiddle factors and the
+ * bit-reversal permutation are calculated once when the transform is created,
+ * so a transform can be reused for many arrays of the same length; a
+ * transform holds no other state and may be shared by several threads.
+ *
+ * The two-dimensional transform of a grid transforms each row and then each
+ * column, and the rows (or columns) are divided among the processors
+ * available to plugins.
+ *
+ * Neither direction is scaled, i.e. an inverse transform of a forward
+ * transform multiplies the data by the number of values.
+ *
+ * @author johnlindsay
+ */
+public class FFT {
+
+    private final int n;
+    private final double[] cos;
+    private final double[] sin;
+    private final int[] reversed;
+
+    /**
+     * @param n The length of the transform. It must be a power of two.
+     */
+    public FFT(int n) {
+        if (n < 1 || (n & (n - 1)) != 0) {
+            throw new IllegalArgumentException("The length of an FFT must be a power of two.");
+        }
+        this.n = n;
+        cos = new double[n / 2];
+        sin = new double[n / 2];
+        for (int i = 0; i < n / 2; i++) {
+            cos[i] = Math.cos(2 * Math.PI * i / n);
+            sin[i] = Math.sin(2 * Math.PI * i / n);
+        }
+        reversed = new int[n];
+        int bits = Integer.numberOfTrailingZeros(n);
+        for (int i = 0; i < n; i++) {
+            reversed[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+        }
+    }
+
+    /**
+     * @param n A positive number.
+     * @return The smallest power of two that is not less than n.
+     */
+    public static int nextPowerOfTwo(int n) {
+        int p = 1;
+        while (p < n) {
+            p <<= 1;
+        }
+        return p;
+    }
+
+    public int getLength() {
+        return n;
+    }
+
+    /**
+     * Transforms an array of complex values in place.
+     *
+     * @param re The real parts.
+     * @param im The imaginary parts.
+     * @param inverse Whether to carry out the inverse transform, i.e. with
+     * a positive exponent.
+     */
+    public void transform(double[] re, double[] im, boolean inverse) {
+        for (int i = 0; i < n; i++) {
+            int j = reversed[i];
+            if (j > i) {
+                double t = re[i];
+                re[i] = re[j];
+                re[j] = t;
+                t = im[i];
+                im[i] = im[j];
+                im[j] = t;
+            }
+        }
+        double sign = inverse ? 1 : -1;
+        for (int size = 2; size <= n; size <<= 1) {
+            int half = size / 2;
+            int step = n / size;
+            for (int start = 0; start < n; start += size) {
+                for (int k = 0; k < half; k++) {
+                    double wr = cos[k * step];
+                    double wi = sign * sin[k * step];
+                    int a = start + k;
+                    int b = a + half;
+                    double tr = re[b] * wr - im[b] * wi;
+                    double ti = re[b] * wi + im[b] * wr;
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+    }
+
+    /**
+     * Transforms a grid of complex values in place. Both dimensions must be
+     * powers of two.
+     *
+     * @param re The real parts, indexed [row][column].
+     * @param im The imaginary parts.
+     * @param inverse Whether to carry out the inverse transform.
+     * @throws Exception If a worker thread fails.
+     */
+    public static void transform2D(final double[][] re, final double[][] im,
+            final boolean inverse) throws Exception {
+        final int rows = re.length;
+        final int cols = re[0].length;
+        final FFT rowFFT = new FFT(cols);
+        final FFT colFFT = cols == rows ? rowFFT : new FFT(rows);
+        parallelFor(rows, new Range() {
+            @Override
+            public void process(int start, int end) {
+                for (int r = start; r < end; r++) {
+                    rowFFT.transform(re[r], im[r], inverse);
+                }
+            }
+        });
+        parallelFor(cols, new Range() {
+            @Override
+            public void process(int start, int end) {
+                double[] colRe = new double[rows];
+                double[] colIm = new double[rows];
+                for (int c = start; c < end; c++) {
+                    for (int r = 0; r < rows; r++) {
+                        colRe[r] = re[r][c];
+                        colIm[r] = im[r][c];
+                    }
+                    colFFT.transform(colRe, colIm, inverse);
+                    for (int r = 0; r < rows; r++) {
+                        re[r][c] = colRe[r];
+                        im[r][c] = colIm[r];
+                    }
+                }
+            }
+        });
+    }
+
+    private interface Range {
+
+        void process(int start, int end);
+    }
+
+    // divides the indices 0 to n - 1 into one contiguous range per thread
+    private static void parallelFor(int n, final Range range) throws Exception {
+        int numThreads = Math.max(1, Math.min(Parallel.getPluginProcessors(), n));
+        if (numThreads == 1) {
+            range.process(0, n);
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<Object>> futures = new ArrayList<>();
+            for (int t = 0; t < numThreads; t++) {
+                final int start = (int) ((long) n * t / numThreads);
+                final int end = (int) ((long) n * (t + 1) / numThreads);
+                futures.add(executor.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() {
+                        range.process(start, end);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Object> f : futures) {
+                try {
+                    f.get();
+                } catch (ExecutionException ee) {
+                    Throwable cause = ee.getCause();
+                    if (cause instanceof Exception) {
+                        throw (Exception) cause;
+                    }
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw ee;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
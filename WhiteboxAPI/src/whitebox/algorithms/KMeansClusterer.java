@@ -0,0 +1,920 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.algorithms;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import whitebox.geospatialfiles.WhiteboxRasterBase;
+import whitebox.parallel.Parallel;
+
+/**
+ * This class is the clustering engine shared by the k-means family of
+ * unsupervised classifiers (e.g. kMeansClassification and ModifiedKMeans).
+ * The multi-band image stack can either be loaded into memory once, in which
+ * case each valid pixel is stored as a compact band-interleaved float vector,
+ * or, when it is too large to be held in memory, streamed from disk. A
+ * streamed stack is re-read row by row on each full iteration, or the class
+ * centres may instead be estimated using mini-batches of randomly sampled
+ * rows. Pixel-to-centre assignment is spread
+ * across the available processors and uses Hamerly's upper and lower distance
+ * bounds to skip most of the distance calculations once the centres begin to
+ * settle. When there are many class centres, a k-d tree of the centres is used
+ * to find the nearest and second-nearest centre of a pixel.
+ *
+ * @author johnlindsay
+ */
+public class KMeansClusterer {
+
+    // centre sets larger than this are searched with a k-d tree
+    private static final int TREE_THRESHOLD = 32;
+    private static final int UNSET = Integer.MIN_VALUE;
+    private static final ThreadFactory daemonThreads = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "KMeansClusterer");
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    WhiteboxRasterBase[] images;
+    int numBands;
+    int rows;
+    int cols;
+    double[] noDataValues;
+    double maxDist = Double.POSITIVE_INFINITY;
+    int numThreads = Parallel.getPluginProcessors();
+    ExecutorService executor;
+
+    // in-memory image stack, one entry per row
+    float[][] rowData;
+    int[][] rowColumns;
+    int[][] rowClasses;
+    float[][] upperBounds;
+    float[][] lowerBounds;
+    long[] cumulativePixels;
+    int rowsLoaded = 0;
+    long numValidPixels = 0;
+    boolean boundsValid = false;
+    boolean labelsCurrent = false;
+
+    double[][] centres;
+    double[] centreShifts;
+    long[] numPixelsInEachClass;
+    long[] miniBatchCounts;
+
+    // the centres that the pixels of a streamed stack were last assigned to
+    double[][] assignedCentres;
+
+    // accumulated by classifyRow
+    long[] finalCounts;
+    double[] finalDeviations;
+    long numClassifiedPixels = 0;
+
+    public KMeansClusterer(WhiteboxRasterBase[] images) {
+        this.images = images.clone();
+        this.numBands = images.length;
+        this.rows = images[0].getNumberRows();
+        this.cols = images[0].getNumberColumns();
+        this.noDataValues = new double[numBands];
+        for (int i = 0; i < numBands; i++) {
+            if (images[i].getNumberRows() != rows || images[i].getNumberColumns() != cols) {
+                throw new IllegalArgumentException("All input images must have the same dimensions (rows and columns).");
+            }
+            noDataValues[i] = images[i].getNoDataValue();
+        }
+        executor = Executors.newFixedThreadPool(numThreads, daemonThreads);
+    }
+
+    /**
+     * Sets the largest distance between a pixel and its nearest class centre
+     * for which the pixel will be assigned to the class. More distant pixels
+     * are left unassigned (class -1).
+     *
+     * @param value The maximum Euclidean distance.
+     */
+    public void setMaximumDistance(double value) {
+        this.maxDist = value;
+        labelsCurrent = false;
+    }
+
+    /**
+     * Estimates whether the image stack can be held in memory, allowing for
+     * the per-pixel class labels and distance bounds.
+     *
+     * @return true if the stack is small enough to be loaded.
+     */
+    public boolean canLoadIntoMemory() {
+        Runtime rt = Runtime.getRuntime();
+        double available = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+        double required = (double) rows * cols * (4.0 * numBands + 16.0);
+        return required < 0.8 * available;
+    }
+
+    /**
+     * Reads one row of each of the input images into the in-memory stack.
+     * Rows must be loaded in order, beginning with row zero.
+     *
+     * @param row The zero-based row number.
+     */
+    public void loadRow(int row) {
+        if (row != rowsLoaded) {
+            throw new IllegalStateException("Rows must be loaded sequentially.");
+        }
+        if (rowData == null) {
+            rowData = new float[rows][];
+            rowColumns = new int[rows][];
+            rowClasses = new int[rows][];
+            upperBounds = new float[rows][];
+            lowerBounds = new float[rows][];
+        }
+        double[][] data = new double[numBands][];
+        for (int i = 0; i < numBands; i++) {
+            data[i] = images[i].getRowValues(row);
+        }
+        int n = 0;
+        boolean[] valid = new boolean[cols];
+        for (int col = 0; col < cols; col++) {
+            valid[col] = isValid(data, col);
+            if (valid[col]) {
+                n++;
+            }
+        }
+        float[] vals = new float[n * numBands];
+        int[] columns = new int[n];
+        int p = 0;
+        for (int col = 0; col < cols; col++) {
+            if (valid[col]) {
+                columns[p] = col;
+                for (int i = 0; i < numBands; i++) {
+                    vals[p * numBands + i] = (float) data[i][col];
+                }
+                p++;
+            }
+        }
+        rowData[row] = vals;
+        rowColumns[row] = columns;
+        int[] classes = new int[n];
+        Arrays.fill(classes, UNSET);
+        rowClasses[row] = classes;
+        upperBounds[row] = new float[n];
+        lowerBounds[row] = new float[n];
+        numValidPixels += n;
+        rowsLoaded++;
+        if (rowsLoaded == rows) {
+            cumulativePixels = new long[rows + 1];
+            for (int r = 0; r < rows; r++) {
+                cumulativePixels[r + 1] = cumulativePixels[r] + rowColumns[r].length;
+            }
+        }
+    }
+
+    public boolean isLoaded() {
+        return rowData != null && rowsLoaded == rows;
+    }
+
+    public long getNumValidPixels() {
+        return isLoaded() || finalCounts == null ? numValidPixels : numClassifiedPixels;
+    }
+
+    /**
+     * Replaces the current class centres. The distance bounds of each pixel
+     * are discarded, so the next iteration performs a full nearest-centre
+     * search.
+     *
+     * @param classCentres An array of numClasses x numBands centre vectors.
+     */
+    public void setClassCentres(double[][] classCentres) {
+        centres = new double[classCentres.length][];
+        for (int a = 0; a < classCentres.length; a++) {
+            centres[a] = classCentres[a].clone();
+        }
+        centreShifts = new double[centres.length];
+        numPixelsInEachClass = new long[centres.length];
+        miniBatchCounts = new long[centres.length];
+        boundsValid = false;
+        labelsCurrent = false;
+    }
+
+    public double[][] getClassCentres() {
+        double[][] ret = new double[centres.length][];
+        for (int a = 0; a < centres.length; a++) {
+            ret[a] = centres[a].clone();
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the number of pixels assigned to each class during the most
+     * recent call to iterate, or during the classifyRow pass if it has been
+     * performed.
+     *
+     * @return array of class sizes.
+     */
+    public long[] getNumPixelsInEachClass() {
+        if (finalCounts != null) {
+            return finalCounts.clone();
+        }
+        return numPixelsInEachClass.clone();
+    }
+
+    /**
+     * Returns the sum of squared deviations between the pixels of each class
+     * and the class centre, accumulated by classifyRow.
+     *
+     * @return array of total squared deviations.
+     */
+    public double[] getClassDeviations() {
+        return finalDeviations == null ? new double[centres.length] : finalDeviations.clone();
+    }
+
+    /**
+     * Performs one full k-means iteration, i.e. each pixel is assigned to its
+     * nearest class centre and the centres are then moved to the mean of
+     * their assigned pixels. If no rows have been loaded, the pixels are read
+     * from the input images.
+     *
+     * @return The number of pixels whose class changed during the iteration.
+     * @throws InterruptedException
+     * @throws ExecutionException
+     */
+    public long iterate() throws InterruptedException, ExecutionException {
+        if (rowsLoaded == 0) {
+            return streamIterate();
+        }
+        if (!isLoaded()) {
+            throw new IllegalStateException("The image stack has not been fully loaded.");
+        }
+        final int k = centres.length;
+        final boolean useBounds = boundsValid;
+        final CentreTree tree = k > TREE_THRESHOLD ? new CentreTree(centres) : null;
+        final double[] halfMinCentreDist = useBounds ? halfMinimumCentreDistances(tree) : null;
+
+        // the largest and second largest centre movements of the previous update
+        int maxShiftClass = -1;
+        double maxShift = 0;
+        double secondMaxShift = 0;
+        for (int a = 0; a < k; a++) {
+            if (centreShifts[a] > maxShift) {
+                secondMaxShift = maxShift;
+                maxShift = centreShifts[a];
+                maxShiftClass = a;
+            } else if (centreShifts[a] > secondMaxShift) {
+                secondMaxShift = centreShifts[a];
+            }
+        }
+        final int fMaxShiftClass = maxShiftClass;
+        final double fMaxShift = maxShift;
+        final double fSecondMaxShift = secondMaxShift;
+
+        List<Callable<Accumulator>> tasks = new ArrayList<>();
+        for (final int[] range : rowRanges()) {
+            tasks.add(new Callable<Accumulator>() {
+                @Override
+                public Accumulator call() {
+                    Accumulator acc = new Accumulator(k, numBands);
+                    double[] x = new double[numBands];
+                    double[] search = new double[3];
+                    for (int row = range[0]; row < range[1]; row++) {
+                        float[] vals = rowData[row];
+                        int[] classes = rowClasses[row];
+                        float[] upper = upperBounds[row];
+                        float[] lower = lowerBounds[row];
+                        for (int p = 0; p < classes.length; p++) {
+                            for (int i = 0; i < numBands; i++) {
+                                x[i] = vals[p * numBands + i];
+                            }
+                            int previous = classes[p];
+                            int a = 0;
+                            double u = 0, l = 0;
+                            boolean exact = false;
+                            boolean fullSearch = !useBounds || previous == UNSET;
+                            if (!fullSearch) {
+                                a = previous >= 0 ? previous : ~previous;
+                                u = upper[p] + centreShifts[a];
+                                l = lower[p] - (a == fMaxShiftClass ? fSecondMaxShift : fMaxShift);
+                                double z = Math.max(l, halfMinCentreDist[a]);
+                                if (u > z) {
+                                    u = Math.sqrt(squaredDistance(x, centres[a], Double.POSITIVE_INFINITY));
+                                    exact = true;
+                                    if (u > z) {
+                                        fullSearch = true;
+                                    }
+                                }
+                            }
+                            if (fullSearch) {
+                                nearestCentres(x, tree, search);
+                                a = (int) search[2];
+                                u = Math.sqrt(search[0]);
+                                l = Math.sqrt(search[1]);
+                                exact = true;
+                            }
+                            if (u > maxDist && !exact) {
+                                u = Math.sqrt(squaredDistance(x, centres[a], Double.POSITIVE_INFINITY));
+                            }
+                            upper[p] = Math.nextUp((float) u);
+                            lower[p] = Math.nextDown((float) l);
+                            int label = u <= maxDist ? a : ~a;
+                            if (label != previous && (previous >= 0 || label >= 0)) {
+                                acc.numChanged++;
+                            }
+                            classes[p] = label;
+                            if (label >= 0) {
+                                acc.add(label, x);
+                            }
+                        }
+                    }
+                    return acc;
+                }
+            });
+        }
+        Accumulator total = merge(executor.invokeAll(tasks), k);
+        moveCentres(total);
+        boundsValid = true;
+        labelsCurrent = true;
+        return total.numChanged;
+    }
+
+    /*
+     * A full iteration over a stack that is too large to be loaded, reading
+     * the rows of the input images in bands on the worker threads. No state
+     * is kept for each pixel, so the distance bounds cannot be used, and the
+     * pixels whose class changed are found by also assigning each pixel to
+     * the centres of the previous iteration.
+     */
+    private long streamIterate() throws InterruptedException, ExecutionException {
+        final int k = centres.length;
+        final double[][] current = centres;
+        final double[][] previous = assignedCentres;
+        final CentreTree tree = k > TREE_THRESHOLD ? new CentreTree(current) : null;
+        final CentreTree previousTree = previous != null && previous.length > TREE_THRESHOLD
+                ? new CentreTree(previous) : null;
+        List<Callable<Accumulator>> tasks = new ArrayList<>();
+        int numRanges = Math.min(rows, numThreads * 8);
+        for (int r = 0; r < numRanges; r++) {
+            final int startRow = (int) ((long) rows * r / numRanges);
+            final int endRow = (int) ((long) rows * (r + 1) / numRanges);
+            tasks.add(new Callable<Accumulator>() {
+                @Override
+                public Accumulator call() {
+                    Accumulator acc = new Accumulator(k, numBands);
+                    double[][] data = new double[numBands][];
+                    double[] x = new double[numBands];
+                    double[] search = new double[3];
+                    for (int row = startRow; row < endRow; row++) {
+                        for (int i = 0; i < numBands; i++) {
+                            data[i] = images[i].getRowValues(row);
+                        }
+                        for (int col = 0; col < cols; col++) {
+                            if (!isValid(data, col)) {
+                                continue;
+                            }
+                            for (int i = 0; i < numBands; i++) {
+                                x[i] = data[i][col];
+                            }
+                            acc.numValid++;
+                            nearestCentres(x, current, tree, search);
+                            int a = (int) search[2];
+                            int label = Math.sqrt(search[0]) <= maxDist ? a : ~a;
+                            int previousLabel = UNSET;
+                            if (previous != null) {
+                                nearestCentres(x, previous, previousTree, search);
+                                a = (int) search[2];
+                                previousLabel = Math.sqrt(search[0]) <= maxDist ? a : ~a;
+                            }
+                            if (label != previousLabel && (previousLabel >= 0 || label >= 0)) {
+                                acc.numChanged++;
+                            }
+                            if (label >= 0) {
+                                acc.add(label, x);
+                            }
+                        }
+                    }
+                    return acc;
+                }
+            });
+        }
+        Accumulator total = merge(executor.invokeAll(tasks), k);
+        numValidPixels = total.numValid;
+        assignedCentres = getClassCentres();
+        moveCentres(total);
+        boundsValid = false;
+        labelsCurrent = false;
+        return total.numChanged;
+    }
+
+    // moves the centres to the mean of their assigned pixels
+    private void moveCentres(Accumulator total) {
+        int k = centres.length;
+        for (int a = 0; a < k; a++) {
+            centreShifts[a] = 0;
+            if (total.counts[a] > 0) {
+                double dist = 0;
+                for (int i = 0; i < numBands; i++) {
+                    double newValue = total.sums[a][i] / total.counts[a];
+                    dist += (newValue - centres[a][i]) * (newValue - centres[a][i]);
+                    centres[a][i] = newValue;
+                }
+                centreShifts[a] = Math.sqrt(dist);
+            }
+        }
+        numPixelsInEachClass = total.counts;
+        finalCounts = null;
+        finalDeviations = null;
+    }
+
+    /**
+     * Performs one mini-batch k-means update (Sculley, 2010) using a random
+     * sample of pixels. If the stack has not been loaded into memory, the
+     * sample is drawn from randomly selected rows of the input images.
+     *
+     * @param batchSize The number of pixels in the sample.
+     * @param generator The random number generator used to draw the sample.
+     * @return The percentage of sampled pixels whose nearest centre changed as
+     * a result of the update.
+     * @throws InterruptedException
+     * @throws ExecutionException
+     */
+    public double miniBatchIterate(int batchSize, Random generator) throws InterruptedException, ExecutionException {
+        final int k = centres.length;
+        final double[][] batch = sampleBatch(batchSize, generator);
+        final int n = batch.length;
+        if (n == 0) {
+            return 0;
+        }
+        final int[] before = new int[n];
+        final int[] after = new int[n];
+        assignBatch(batch, before);
+        for (int s = 0; s < n; s++) {
+            int a = before[s];
+            miniBatchCounts[a]++;
+            double eta = 1.0 / miniBatchCounts[a];
+            for (int i = 0; i < numBands; i++) {
+                centres[a][i] += eta * (batch[s][i] - centres[a][i]);
+            }
+        }
+        assignBatch(batch, after);
+        long changed = 0;
+        numPixelsInEachClass = new long[k];
+        for (int s = 0; s < n; s++) {
+            if (before[s] != after[s]) {
+                changed++;
+            }
+            numPixelsInEachClass[after[s]]++;
+        }
+        boundsValid = false;
+        labelsCurrent = false;
+        return 100.0 * changed / n;
+    }
+
+    /**
+     * Assigns the class of each pixel in a row using the current class
+     * centres. Class sizes and squared deviations from the centres are
+     * accumulated as the rows are classified; these are reset when row zero
+     * is classified.
+     *
+     * @param row The zero-based row number.
+     * @param outputNoData The value assigned to pixels containing NoData in
+     * any of the input images.
+     * @return An array containing the class of each column; -1 indicates an
+     * unassigned pixel.
+     * @throws InterruptedException
+     * @throws ExecutionException
+     */
+    public double[] classifyRow(final int row, double outputNoData) throws InterruptedException, ExecutionException {
+        final int k = centres.length;
+        if (row == 0 || finalCounts == null) {
+            finalCounts = new long[k];
+            finalDeviations = new double[k];
+            numClassifiedPixels = 0;
+        }
+        double[] ret = new double[cols];
+        Arrays.fill(ret, outputNoData);
+        if (isLoaded() && labelsCurrent) {
+            float[] vals = rowData[row];
+            int[] columns = rowColumns[row];
+            int[] classes = rowClasses[row];
+            double[] x = new double[numBands];
+            for (int p = 0; p < columns.length; p++) {
+                int label = classes[p];
+                if (label >= 0) {
+                    for (int i = 0; i < numBands; i++) {
+                        x[i] = vals[p * numBands + i];
+                    }
+                    finalCounts[label]++;
+                    finalDeviations[label] += squaredDistance(x, centres[label], Double.POSITIVE_INFINITY);
+                    ret[columns[p]] = label;
+                } else {
+                    ret[columns[p]] = -1;
+                }
+            }
+            numClassifiedPixels += columns.length;
+            return ret;
+        }
+
+        final double[][] data = new double[numBands][];
+        for (int i = 0; i < numBands; i++) {
+            data[i] = images[i].getRowValues(row);
+        }
+        final double[] out = ret;
+        final CentreTree tree = k > TREE_THRESHOLD ? new CentreTree(centres) : null;
+        List<Callable<Accumulator>> tasks = new ArrayList<>();
+        int chunk = Math.max(1024, cols / numThreads + 1);
+        for (int start = 0; start < cols; start += chunk) {
+            final int s = start;
+            final int e = Math.min(cols, start + chunk);
+            tasks.add(new Callable<Accumulator>() {
+                @Override
+                public Accumulator call() {
+                    Accumulator acc = new Accumulator(k, 0);
+                    double[] x = new double[numBands];
+                    double[] search = new double[3];
+                    for (int col = s; col < e; col++) {
+                        if (isValid(data, col)) {
+                            for (int i = 0; i < numBands; i++) {
+                                x[i] = data[i][col];
+                            }
+                            nearestCentres(x, tree, search);
+                            acc.numValid++;
+                            if (Math.sqrt(search[0]) <= maxDist) {
+                                int a = (int) search[2];
+                                acc.counts[a]++;
+                                acc.deviations[a] += search[0];
+                                out[col] = a;
+                            } else {
+                                out[col] = -1;
+                            }
+                        }
+                    }
+                    return acc;
+                }
+            });
+        }
+        for (Future<Accumulator> f : executor.invokeAll(tasks)) {
+            Accumulator acc = f.get();
+            for (int a = 0; a < k; a++) {
+                finalCounts[a] += acc.counts[a];
+                finalDeviations[a] += acc.deviations[a];
+            }
+            numClassifiedPixels += acc.numValid;
+        }
+        return ret;
+    }
+
+    /**
+     * Releases the worker threads used by the clusterer.
+     */
+    public void close() {
+        executor.shutdown();
+        rowData = null;
+        rowColumns = null;
+        rowClasses = null;
+        upperBounds = null;
+        lowerBounds = null;
+    }
+
+    private boolean isValid(double[][] data, int col) {
+        for (int i = 0; i < numBands; i++) {
+            if (data[i][col] == noDataValues[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private List<int[]> rowRanges() {
+        // several small bands per thread keeps the load balanced when the
+        // valid pixels are unevenly distributed among rows
+        List<int[]> ranges = new ArrayList<>();
+        int numRanges = Math.min(rows, numThreads * 8);
+        long perRange = numValidPixels / numRanges + 1;
+        int start = 0;
+        for (int row = 0; row < rows; row++) {
+            if (cumulativePixels[row + 1] - cumulativePixels[start] >= perRange || row == rows - 1) {
+                ranges.add(new int[]{start, row + 1});
+                start = row + 1;
+            }
+        }
+        return ranges;
+    }
+
+    private Accumulator merge(List<Future<Accumulator>> futures, int k) throws InterruptedException, ExecutionException {
+        Accumulator total = new Accumulator(k, numBands);
+        for (Future<Accumulator> f : futures) {
+            Accumulator acc = f.get();
+            total.numChanged += acc.numChanged;
+            total.numValid += acc.numValid;
+            for (int a = 0; a < k; a++) {
+                total.counts[a] += acc.counts[a];
+                for (int i = 0; i < numBands; i++) {
+                    total.sums[a][i] += acc.sums[a][i];
+                }
+            }
+        }
+        return total;
+    }
+
+    private double[] halfMinimumCentreDistances(CentreTree tree) {
+        int k = centres.length;
+        double[] ret = new double[k];
+        double[] search = new double[3];
+        for (int a = 0; a < k; a++) {
+            if (tree != null) {
+                // the nearest centre is the centre itself
+                tree.search(centres[a], search);
+                ret[a] = 0.5 * Math.sqrt(search[1]);
+            } else {
+                double minDist = Double.POSITIVE_INFINITY;
+                for (int b = 0; b < k; b++) {
+                    if (b != a) {
+                        minDist = Math.min(minDist, squaredDistance(centres[a], centres[b], minDist));
+                    }
+                }
+                ret[a] = 0.5 * Math.sqrt(minDist);
+            }
+        }
+        return ret;
+    }
+
+    /*
+     * Finds the squared distances to the nearest and second-nearest centres
+     * and the index of the nearest centre, stored in result[0], result[1] and
+     * result[2] respectively.
+     */
+    private void nearestCentres(double[] x, CentreTree tree, double[] result) {
+        nearestCentres(x, centres, tree, result);
+    }
+
+    private static void nearestCentres(double[] x, double[][] centres, CentreTree tree,
+            double[] result) {
+        result[0] = Double.POSITIVE_INFINITY;
+        result[1] = Double.POSITIVE_INFINITY;
+        result[2] = 0;
+        if (tree != null) {
+            tree.search(x, result);
+            return;
+        }
+        for (int a = 0; a < centres.length; a++) {
+            double dist = squaredDistance(x, centres[a], result[1]);
+            if (dist < result[0]) {
+                result[1] = result[0];
+                result[0] = dist;
+                result[2] = a;
+            } else if (dist < result[1]) {
+                result[1] = dist;
+            }
+        }
+    }
+
+    /*
+     * Partial distance search; the summation stops once the running total
+     * exceeds the limit since the centre can then no longer be of interest.
+     */
+    private static double squaredDistance(double[] x, double[] c, double limit) {
+        double dist = 0;
+        for (int i = 0; i < x.length; i++) {
+            dist += (x[i] - c[i]) * (x[i] - c[i]);
+            if (dist > limit) {
+                return dist;
+            }
+        }
+        return dist;
+    }
+
+    private void assignBatch(final double[][] batch, final int[] classes) throws InterruptedException, ExecutionException {
+        final CentreTree tree = centres.length > TREE_THRESHOLD ? new CentreTree(centres) : null;
+        List<Callable<Object>> tasks = new ArrayList<>();
+        int chunk = batch.length / numThreads + 1;
+        for (int start = 0; start < batch.length; start += chunk) {
+            final int s = start;
+            final int e = Math.min(batch.length, start + chunk);
+            tasks.add(new Callable<Object>() {
+                @Override
+                public Object call() {
+                    double[] search = new double[3];
+                    for (int i = s; i < e; i++) {
+                        nearestCentres(batch[i], tree, search);
+                        classes[i] = (int) search[2];
+                    }
+                    return null;
+                }
+            });
+        }
+        for (Future<Object> f : executor.invokeAll(tasks)) {
+            f.get();
+        }
+    }
+
+    private double[][] sampleBatch(int batchSize, Random generator) {
+        ArrayList<double[]> samples = new ArrayList<>(batchSize);
+        if (isLoaded()) {
+            if (numValidPixels == 0) {
+                return new double[0][];
+            }
+            for (int s = 0; s < batchSize; s++) {
+                long index = (long) (generator.nextDouble() * numValidPixels);
+                int row = Arrays.binarySearch(cumulativePixels, index);
+                if (row < 0) {
+                    row = -row - 2;
+                }
+                while (cumulativePixels[row + 1] <= index) {
+                    row++; // skips rows without valid pixels
+                }
+                int p = (int) (index - cumulativePixels[row]);
+                double[] x = new double[numBands];
+                for (int i = 0; i < numBands; i++) {
+                    x[i] = rowData[row][p * numBands + i];
+                }
+                samples.add(x);
+            }
+        } else {
+            int numRowsToSample = Math.max(1, batchSize / cols);
+            for (int r = 0; r < numRowsToSample; r++) {
+                int row = generator.nextInt(rows);
+                double[][] data = new double[numBands][];
+                for (int i = 0; i < numBands; i++) {
+                    data[i] = images[i].getRowValues(row);
+                }
+                for (int col = 0; col < cols; col++) {
+                    if (isValid(data, col)) {
+                        double[] x = new double[numBands];
+                        for (int i = 0; i < numBands; i++) {
+                            x[i] = data[i][col];
+                        }
+                        samples.add(x);
+                    }
+                }
+            }
+        }
+        return samples.toArray(new double[samples.size()][]);
+    }
+
+    private static class Accumulator {
+
+        long[] counts;
+        double[][] sums;
+        double[] deviations;
+        long numChanged = 0;
+        long numValid = 0;
+
+        Accumulator(int k, int numBands) {
+            counts = new long[k];
+            sums = new double[k][numBands];
+            deviations = new double[k];
+        }
+
+        void add(int a, double[] x) {
+            counts[a]++;
+            double[] s = sums[a];
+            for (int i = 0; i < x.length; i++) {
+                s[i] += x[i];
+            }
+        }
+    }
+
+    /*
+     * A static k-d tree over the class centres, used to find the two nearest
+     * centres of a pixel. Nodes are immutable once built, so the tree can be
+     * searched by several threads at once.
+     */
+    private static class CentreTree {
+
+        private static final int LEAF_SIZE = 8;
+        final double[][] points;
+        final int[] index;
+        final Node root;
+
+        CentreTree(double[][] points) {
+            this.points = points;
+            index = new int[points.length];
+            for (int i = 0; i < index.length; i++) {
+                index[i] = i;
+            }
+            root = build(0, index.length);
+        }
+
+        private Node build(int start, int end) {
+            Node node = new Node();
+            node.start = start;
+            node.end = end;
+            if (end - start <= LEAF_SIZE) {
+                return node;
+            }
+            // split along the dimension of greatest spread
+            int dims = points[0].length;
+            double maxSpread = -1;
+            for (int d = 0; d < dims; d++) {
+                double min = Double.POSITIVE_INFINITY;
+                double max = Double.NEGATIVE_INFINITY;
+                for (int i = start; i < end; i++) {
+                    min = Math.min(min, points[index[i]][d]);
+                    max = Math.max(max, points[index[i]][d]);
+                }
+                if (max - min > maxSpread) {
+                    maxSpread = max - min;
+                    node.splitDimension = d;
+                }
+            }
+            if (maxSpread <= 0) {
+                return node; // coincident points
+            }
+            int mid = (start + end) >>> 1;
+            select(start, end - 1, mid, node.splitDimension);
+            node.splitValue = points[index[mid]][node.splitDimension];
+            node.left = build(start, mid);
+            node.right = build(mid, end);
+            return node;
+        }
+
+        // quickselect on the index array
+        private void select(int lo, int hi, int k, int d) {
+            while (hi > lo) {
+                double pivot = points[index[(lo + hi) >>> 1]][d];
+                int i = lo;
+                int j = hi;
+                while (i <= j) {
+                    while (points[index[i]][d] < pivot) {
+                        i++;
+                    }
+                    while (points[index[j]][d] > pivot) {
+                        j--;
+                    }
+                    if (i <= j) {
+                        int tmp = index[i];
+                        index[i] = index[j];
+                        index[j] = tmp;
+                        i++;
+                        j--;
+                    }
+                }
+                if (k <= j) {
+                    hi = j;
+                } else if (k >= i) {
+                    lo = i;
+                } else {
+                    return;
+                }
+            }
+        }
+
+        void search(double[] x, double[] result) {
+            result[0] = Double.POSITIVE_INFINITY;
+            result[1] = Double.POSITIVE_INFINITY;
+            result[2] = 0;
+            search(root, x, result);
+        }
+
+        private void search(Node node, double[] x, double[] result) {
+            if (node.left == null) {
+                for (int i = node.start; i < node.end; i++) {
+                    double dist = squaredDistance(x, points[index[i]], result[1]);
+                    if (dist < result[0]) {
+                        result[1] = result[0];
+                        result[0] = dist;
+                        result[2] = index[i];
+                    } else if (dist < result[1]) {
+                        result[1] = dist;
+                    }
+                }
+                return;
+            }
+            double diff = x[node.splitDimension] - node.splitValue;
+            Node near = diff < 0 ? node.left : node.right;
+            Node far = diff < 0 ? node.right : node.left;
+            search(near, x, result);
+            if (diff * diff < result[1]) {
+                search(far, x, result);
+            }
+        }
+
+        private static class Node {
+
+            int start, end;
+            int splitDimension;
+            double splitValue;
+            Node left, right;
+        }
+    }
+}
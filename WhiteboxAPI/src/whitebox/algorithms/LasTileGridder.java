@@ -0,0 +1,722 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.algorithms;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import whitebox.geospatialfiles.LASReader;
+import whitebox.geospatialfiles.LASReader.PointRecord;
+import whitebox.geospatialfiles.WhiteboxRaster;
+import whitebox.parallel.RowBands;
+
+/**
+ * Grids a set of LAS files, producing one output raster (tile) for each
+ * input file. The grid of each tile covers the selected points of its file,
+ * in the same way as the LiDAR interpolation plugins have always defined it,
+ * but the value of each grid cell is estimated from all of the selected
+ * points within the search radius of the cell centre, including those of
+ * neighbouring files that fall within a halo around the tile. Tiles
+ * therefore join without edge artifacts.
+ * <p>
+ * The files are first scanned to find the extent of their selected points.
+ * The tiles are then taken, in spatial order, in batches whose estimated
+ * memory requirement fits within the memory budget. For each batch, every
+ * file that overlaps a tile or its halo is streamed once and its selected
+ * points are binned into the tiles that they fall within. The points of
+ * each tile are held in primitive arrays, sorted into a grid of buckets, and
+ * the rows of the tiles are estimated in parallel bands (see
+ * whitebox.parallel.RowBands), so that the bands of several tiles may be in
+ * progress at once. Rasters are only created and written on the calling
+ * thread and only one is open at a time. A file is read again for each batch
+ * that it overlaps, so with a generous budget each file is read twice.
+ * <p>
+ * The neighbours of a cell are those points whose squared distance from the
+ * cell centre is no more than the square of the search radius, as with a
+ * KdTree range search. They are passed to the estimator in no particular
+ * order.
+ *
+ * @author johnlindsay
+ */
+public class LasTileGridder {
+
+    /*
+     * Chooses the points that are gridded and the value of each. Called on
+     * worker threads, each with its own LASReader.
+     */
+    public interface PointSelector {
+
+        boolean isSelected(PointRecord point);
+
+        double getValue(LASReader las, int index, PointRecord point);
+    }
+
+    /*
+     * Estimates the value of a grid cell from its neighbourhood. Called
+     * concurrently on worker threads and so must not hold any state.
+     */
+    public interface CellEstimator {
+
+        double estimate(Neighbourhood neighbourhood);
+    }
+
+    /*
+     * Creates and completes the output rasters. All of these are called on
+     * the thread that called run(), in tile order. Returning false from
+     * bandCompleted or tileCompleted stops the gridding.
+     */
+    public interface TileOutput {
+
+        WhiteboxRaster createRaster(Tile tile) throws Exception;
+
+        boolean bandCompleted(Tile tile, int rowsCompleted) throws Exception;
+
+        boolean tileCompleted(Tile tile, WhiteboxRaster raster) throws Exception;
+    }
+
+    // an estimate of the memory used by each binned point, including the
+    // growth of the bins and the sorted copy of the points
+    private static final int BYTES_PER_POINT = 64;
+    private final String[] fileNames;
+    private final double resolution;
+    private final double searchRadius;
+    private final PointSelector selector;
+    private double halo;
+    private long memoryBudget = Runtime.getRuntime().maxMemory() / 2;
+    private int numTiles = 0;
+    private int numBatches = 0;
+
+    /**
+     * @param fileNames The LAS files, each of which produces one tile.
+     * @param resolution The grid cell size.
+     * @param searchRadius The distance from a cell centre within which points
+     * are passed to the estimator.
+     * @param selector Chooses the points and their values.
+     */
+    public LasTileGridder(String[] fileNames, double resolution, double searchRadius,
+            PointSelector selector) {
+        this.fileNames = fileNames.clone();
+        this.resolution = resolution;
+        this.searchRadius = searchRadius;
+        this.selector = selector;
+        this.halo = Double.isInfinite(searchRadius) ? 0 : searchRadius;
+    }
+
+    public double getHalo() {
+        return halo;
+    }
+
+    /**
+     * Sets the width of the margin around each tile from which the points of
+     * neighbouring files are gathered. The default is the search radius, or
+     * zero if the search radius is infinite; a smaller halo truncates the
+     * neighbourhoods of cells near tile edges.
+     *
+     * @param halo The halo width, in map units.
+     */
+    public void setHalo(double halo) {
+        this.halo = Math.max(0, halo);
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Sets the number of bytes that the binned points of a batch of tiles may
+     * occupy. A tile that is larger than the budget on its own is gridded in a
+     * batch by itself. The default is half of the maximum heap size.
+     *
+     * @param memoryBudget The budget in bytes.
+     */
+    public void setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = Math.max(1, memoryBudget);
+    }
+
+    /**
+     * @return The number of tiles produced by the last run.
+     */
+    public int getNumTiles() {
+        return numTiles;
+    }
+
+    /**
+     * @return The number of batches, and so the number of passes through the
+     * points, in the last run.
+     */
+    public int getNumBatches() {
+        return numBatches;
+    }
+
+    /**
+     * Grids all of the files that contain selected points.
+     *
+     * @param estimator Estimates the value of each grid cell.
+     * @param output Creates and completes the output rasters.
+     * @return false if the output stopped the gridding early.
+     * @throws Exception Any exception thrown while reading the files or by
+     * the estimator or output.
+     */
+    public boolean run(CellEstimator estimator, TileOutput output) throws Exception {
+        final Tile[] tiles = scanFiles();
+        List<Tile> order = new ArrayList<>();
+        for (Tile t : tiles) {
+            if (t != null) {
+                order.add(t);
+            }
+        }
+        numTiles = order.size();
+        numBatches = 0;
+        Collections.sort(order, new Comparator<Tile>() {
+            @Override
+            public int compare(Tile a, Tile b) {
+                if (a.north != b.north) {
+                    return a.north > b.north ? -1 : 1;
+                }
+                return Double.compare(a.west, b.west);
+            }
+        });
+
+        int haloCells = (int) Math.ceil(halo / resolution);
+        int i = 0;
+        while (i < order.size()) {
+            List<TileGrid> batch = new ArrayList<>();
+            long bytes = 0;
+            while (i < order.size()) {
+                TileGrid grid = new TileGrid(order.get(i), haloCells);
+                long required = grid.estimateMemory();
+                if (!batch.isEmpty() && bytes + required > memoryBudget) {
+                    break;
+                }
+                batch.add(grid);
+                bytes += required;
+                i++;
+            }
+            numBatches++;
+            if (!gridBatch(batch, tiles, estimator, output)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Finds the number and extent of the selected points in each file. Files
+     * without selected points have no tile.
+     */
+    private Tile[] scanFiles() throws Exception {
+        final Tile[] tiles = new Tile[fileNames.length];
+        RowBands.process(fileNames.length, 1, new RowBands.Task<Tile>() {
+            @Override
+            public Tile process(int start, int end) {
+                LASReader las = new LASReader(fileNames[start]);
+                long numPointsInFile = las.getNumPointRecords();
+                long numPoints = 0;
+                double minX = Double.POSITIVE_INFINITY;
+                double maxX = Double.NEGATIVE_INFINITY;
+                double minY = Double.POSITIVE_INFINITY;
+                double maxY = Double.NEGATIVE_INFINITY;
+                for (int a = 0; a < numPointsInFile; a++) {
+                    PointRecord point = las.getPointRecord(a);
+                    if (point != null && selector.isSelected(point)) {
+                        double x = point.getX();
+                        double y = point.getY();
+                        if (x < minX) {
+                            minX = x;
+                        }
+                        if (x > maxX) {
+                            maxX = x;
+                        }
+                        if (y < minY) {
+                            minY = y;
+                        }
+                        if (y > maxY) {
+                            maxY = y;
+                        }
+                        numPoints++;
+                    }
+                }
+                if (numPoints == 0) {
+                    return null;
+                }
+                return new Tile(start, fileNames[start], minX, maxX, minY, maxY, numPoints, resolution);
+            }
+        }, new RowBands.Consumer<Tile>() {
+            @Override
+            public boolean consume(int start, int end, Tile tile) {
+                tiles[start] = tile;
+                return true;
+            }
+        });
+        return tiles;
+    }
+
+    private boolean gridBatch(final List<TileGrid> batch, Tile[] tiles,
+            final CellEstimator estimator, final TileOutput output) throws Exception {
+        // read each overlapping file once, binning its points into the tiles
+        final List<Tile> files = new ArrayList<>();
+        final List<int[]> fileTargets = new ArrayList<>();
+        for (Tile file : tiles) {
+            if (file == null) {
+                continue;
+            }
+            int[] targets = new int[batch.size()];
+            int numTargets = 0;
+            for (int k = 0; k < batch.size(); k++) {
+                if (batch.get(k).overlaps(file)) {
+                    targets[numTargets] = k;
+                    numTargets++;
+                }
+            }
+            if (numTargets > 0) {
+                files.add(file);
+                fileTargets.add(Arrays.copyOf(targets, numTargets));
+            }
+        }
+        RowBands.process(files.size(), 1, new RowBands.Task<PointBin[]>() {
+            @Override
+            public PointBin[] process(int start, int end) {
+                return readFile(files.get(start).fileName, batch, fileTargets.get(start));
+            }
+        }, new RowBands.Consumer<PointBin[]>() {
+            @Override
+            public boolean consume(int start, int end, PointBin[] bins) {
+                int[] targets = fileTargets.get(start);
+                for (int k = 0; k < targets.length; k++) {
+                    batch.get(targets[k]).bins.add(bins[k]);
+                }
+                return true;
+            }
+        });
+
+        // the bands of all of the tiles in the batch, in tile order
+        int numUnits = 0;
+        int[] bandHeights = new int[batch.size()];
+        for (int k = 0; k < batch.size(); k++) {
+            int rows = batch.get(k).tile.rows;
+            bandHeights[k] = RowBands.defaultBandHeight(rows);
+            numUnits += (rows + bandHeights[k] - 1) / bandHeights[k];
+        }
+        final int[] unitTile = new int[numUnits];
+        final int[] unitStart = new int[numUnits];
+        final int[] unitEnd = new int[numUnits];
+        int u = 0;
+        for (int k = 0; k < batch.size(); k++) {
+            int rows = batch.get(k).tile.rows;
+            for (int s = 0; s < rows; s += bandHeights[k]) {
+                unitTile[u] = k;
+                unitStart[u] = s;
+                unitEnd[u] = Math.min(rows, s + bandHeights[k]);
+                u++;
+            }
+        }
+
+        final WhiteboxRaster[] current = new WhiteboxRaster[1];
+        try {
+            return RowBands.process(numUnits, 1, new RowBands.Task<double[][]>() {
+                @Override
+                public double[][] process(int start, int end) {
+                    return batch.get(unitTile[start]).estimateRows(unitStart[start],
+                            unitEnd[start], estimator);
+                }
+            }, new RowBands.Consumer<double[][]>() {
+                @Override
+                public boolean consume(int start, int end, double[][] values) throws Exception {
+                    TileGrid grid = batch.get(unitTile[start]);
+                    Tile tile = grid.tile;
+                    if (unitStart[start] == 0) {
+                        current[0] = output.createRaster(tile);
+                    }
+                    WhiteboxRaster raster = current[0];
+                    for (int row = unitStart[start]; row < unitEnd[start]; row++) {
+                        double[] rowValues = values[row - unitStart[start]];
+                        for (int col = 0; col < tile.columns; col++) {
+                            raster.setValue(row, col, rowValues[col]);
+                        }
+                    }
+                    if (!output.bandCompleted(tile, unitEnd[start])) {
+                        return false;
+                    }
+                    if (unitEnd[start] == tile.rows) {
+                        grid.release();
+                        current[0] = null;
+                        return output.tileCompleted(tile, raster);
+                    }
+                    return true;
+                }
+            });
+        } finally {
+            if (current[0] != null) {
+                current[0].close();
+            }
+        }
+    }
+
+    /*
+     * Streams the points of a file, returning the selected points that fall
+     * within each of the target tiles and their halos.
+     */
+    private PointBin[] readFile(String fileName, List<TileGrid> batch, int[] targets) {
+        PointBin[] bins = new PointBin[targets.length];
+        TileGrid[] grids = new TileGrid[targets.length];
+        for (int k = 0; k < targets.length; k++) {
+            bins[k] = new PointBin();
+            grids[k] = batch.get(targets[k]);
+        }
+        LASReader las = new LASReader(fileName);
+        long numPointsInFile = las.getNumPointRecords();
+        for (int a = 0; a < numPointsInFile; a++) {
+            PointRecord point = las.getPointRecord(a);
+            if (point == null || !selector.isSelected(point)) {
+                continue;
+            }
+            double x = point.getX();
+            double y = point.getY();
+            boolean haveValue = false;
+            double value = 0;
+            for (int k = 0; k < grids.length; k++) {
+                if (grids[k].contains(x, y)) {
+                    if (!haveValue) {
+                        value = selector.getValue(las, a, point);
+                        haveValue = true;
+                    }
+                    bins[k].add(x, y, value, point.getScanAngle());
+                }
+            }
+        }
+        return bins;
+    }
+
+    /**
+     * An output tile, whose grid covers the selected points of one file.
+     */
+    public static class Tile {
+
+        private final int index;
+        private final String fileName;
+        private final double minX, maxX, minY, maxY;
+        private final long numPoints;
+        private final double north, south, east, west;
+        private final int rows, columns;
+        private final double resolution;
+
+        Tile(int index, String fileName, double minX, double maxX, double minY, double maxY,
+                long numPoints, double resolution) {
+            this.index = index;
+            this.fileName = fileName;
+            this.minX = minX;
+            this.maxX = maxX;
+            this.minY = minY;
+            this.maxY = maxY;
+            this.numPoints = numPoints;
+            this.resolution = resolution;
+            west = minX - 0.5 * resolution;
+            north = maxY + 0.5 * resolution;
+            rows = (int) (Math.ceil((north - minY) / resolution));
+            columns = (int) (Math.ceil((maxX - west) / resolution));
+            south = north - rows * resolution;
+            east = west + columns * resolution;
+        }
+
+        /**
+         * @return The position of the tile's file in the list of files.
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        /**
+         * @return The number of selected points in the tile's own file.
+         */
+        public long getNumPoints() {
+            return numPoints;
+        }
+
+        public double getNorth() {
+            return north;
+        }
+
+        public double getSouth() {
+            return south;
+        }
+
+        public double getEast() {
+            return east;
+        }
+
+        public double getWest() {
+            return west;
+        }
+
+        public int getRows() {
+            return rows;
+        }
+
+        public int getColumns() {
+            return columns;
+        }
+
+        public double getResolution() {
+            return resolution;
+        }
+    }
+
+    /**
+     * The points within the search radius of a grid cell centre. The buffers
+     * are reused from cell to cell, so the neighbourhood should not be kept.
+     */
+    public static class Neighbourhood {
+
+        private int size = 0;
+        private double x, y;
+        private double[] sqrDistances = new double[16];
+        private double[] values = new double[16];
+        private byte[] scanAngles = new byte[16];
+
+        void clear(double x, double y) {
+            this.x = x;
+            this.y = y;
+            size = 0;
+        }
+
+        void add(double sqrDistance, double value, byte scanAngle) {
+            if (size == values.length) {
+                int capacity = 2 * size;
+                sqrDistances = Arrays.copyOf(sqrDistances, capacity);
+                values = Arrays.copyOf(values, capacity);
+                scanAngles = Arrays.copyOf(scanAngles, capacity);
+            }
+            sqrDistances[size] = sqrDistance;
+            values[size] = value;
+            scanAngles[size] = scanAngle;
+            size++;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public boolean isEmpty() {
+            return size == 0;
+        }
+
+        /**
+         * @return The x coordinate of the cell centre.
+         */
+        public double getX() {
+            return x;
+        }
+
+        /**
+         * @return The y coordinate of the cell centre.
+         */
+        public double getY() {
+            return y;
+        }
+
+        public double getSqrDistance(int i) {
+            return sqrDistances[i];
+        }
+
+        public double getValue(int i) {
+            return values[i];
+        }
+
+        public byte getScanAngle(int i) {
+            return scanAngles[i];
+        }
+    }
+
+    /*
+     * A growable set of points read from one file for one tile.
+     */
+    private static class PointBin {
+
+        int size = 0;
+        double[] x = new double[64];
+        double[] y = new double[64];
+        double[] value = new double[64];
+        byte[] scanAngle = new byte[64];
+
+        void add(double px, double py, double pv, byte pa) {
+            if (size == x.length) {
+                int capacity = size + (size >> 1);
+                x = Arrays.copyOf(x, capacity);
+                y = Arrays.copyOf(y, capacity);
+                value = Arrays.copyOf(value, capacity);
+                scanAngle = Arrays.copyOf(scanAngle, capacity);
+            }
+            x[size] = px;
+            y[size] = py;
+            value[size] = pv;
+            scanAngle[size] = pa;
+            size++;
+        }
+    }
+
+    /*
+     * The points of a tile and its halo, sorted into a grid of buckets. The
+     * buckets are aligned with the tile's grid cells and are made coarser
+     * where there are fewer points than cells, so that the index never needs
+     * much more memory than the points themselves.
+     */
+    private class TileGrid {
+
+        final Tile tile;
+        final List<PointBin> bins = new ArrayList<>();
+        final double boxWest, boxEast, boxNorth, boxSouth;
+        final int gridRows, gridColumns;
+        double bucketSize;
+        int bucketRows, bucketColumns;
+        int[] bucketStart;
+        double[] x, y, value;
+        byte[] scanAngle;
+
+        TileGrid(Tile tile, int haloCells) {
+            this.tile = tile;
+            boxWest = tile.west - haloCells * resolution;
+            boxEast = tile.east + haloCells * resolution;
+            boxNorth = tile.north + haloCells * resolution;
+            boxSouth = tile.south - haloCells * resolution;
+            gridRows = tile.rows + 2 * haloCells;
+            gridColumns = tile.columns + 2 * haloCells;
+        }
+
+        long estimateMemory() {
+            double haloRatio = (double) gridRows * gridColumns / ((double) tile.rows * tile.columns);
+            return (long) (tile.numPoints * haloRatio * BYTES_PER_POINT);
+        }
+
+        boolean overlaps(Tile file) {
+            return file.minX <= boxEast && file.maxX >= boxWest
+                    && file.minY <= boxNorth && file.maxY >= boxSouth;
+        }
+
+        boolean contains(double px, double py) {
+            return px >= boxWest && px <= boxEast && py >= boxSouth && py <= boxNorth;
+        }
+
+        int bucketRow(double py) {
+            int r = (int) Math.floor((boxNorth - py) / bucketSize);
+            return r < 0 ? 0 : (r >= bucketRows ? bucketRows - 1 : r);
+        }
+
+        int bucketColumn(double px) {
+            int c = (int) Math.floor((px - boxWest) / bucketSize);
+            return c < 0 ? 0 : (c >= bucketColumns ? bucketColumns - 1 : c);
+        }
+
+        /*
+         * Sorts the binned points into buckets. The points keep the order of
+         * their files and, within a file, of their records.
+         */
+        synchronized void buildIndex() {
+            if (bucketStart != null) {
+                return;
+            }
+            int n = 0;
+            for (PointBin bin : bins) {
+                n += bin.size;
+            }
+            int factor = 1;
+            while ((long) ((gridRows + factor - 1) / factor) * ((gridColumns + factor - 1) / factor) > Math.max(1, n)) {
+                factor *= 2;
+            }
+            bucketSize = factor * resolution;
+            bucketRows = (gridRows + factor - 1) / factor;
+            bucketColumns = (gridColumns + factor - 1) / factor;
+
+            int[] bucket = new int[n];
+            int[] start = new int[bucketRows * bucketColumns + 1];
+            int i = 0;
+            for (PointBin bin : bins) {
+                for (int k = 0; k < bin.size; k++) {
+                    bucket[i] = bucketRow(bin.y[k]) * bucketColumns + bucketColumn(bin.x[k]);
+                    start[bucket[i] + 1]++;
+                    i++;
+                }
+            }
+            for (int b = 0; b < bucketRows * bucketColumns; b++) {
+                start[b + 1] += start[b];
+            }
+            int[] next = Arrays.copyOf(start, start.length - 1);
+            x = new double[n];
+            y = new double[n];
+            value = new double[n];
+            scanAngle = new byte[n];
+            i = 0;
+            for (PointBin bin : bins) {
+                for (int k = 0; k < bin.size; k++) {
+                    int j = next[bucket[i]]++;
+                    x[j] = bin.x[k];
+                    y[j] = bin.y[k];
+                    value[j] = bin.value[k];
+                    scanAngle[j] = bin.scanAngle[k];
+                    i++;
+                }
+            }
+            bins.clear();
+            bucketStart = start;
+        }
+
+        double[][] estimateRows(int startRow, int endRow, CellEstimator estimator) {
+            buildIndex();
+            double halfResolution = resolution / 2;
+            double sqrRadius = searchRadius * searchRadius;
+            Neighbourhood neighbourhood = new Neighbourhood();
+            double[][] values = new double[endRow - startRow][tile.columns];
+            for (int row = startRow; row < endRow; row++) {
+                double northing = (tile.north - halfResolution) - (row * resolution);
+                int r0 = bucketRow(northing + searchRadius);
+                int r1 = bucketRow(northing - searchRadius);
+                for (int col = 0; col < tile.columns; col++) {
+                    double easting = (col * resolution) + (tile.west + halfResolution);
+                    int c0 = bucketColumn(easting - searchRadius);
+                    int c1 = bucketColumn(easting + searchRadius);
+                    neighbourhood.clear(easting, northing);
+                    for (int r = r0; r <= r1; r++) {
+                        int end = bucketStart[r * bucketColumns + c1 + 1];
+                        for (int j = bucketStart[r * bucketColumns + c0]; j < end; j++) {
+                            double dy = y[j] - northing;
+                            double dx = x[j] - easting;
+                            double sqrDistance = dy * dy + dx * dx;
+                            if (sqrDistance <= sqrRadius) {
+                                neighbourhood.add(sqrDistance, value[j], scanAngle[j]);
+                            }
+                        }
+                    }
+                    values[row - startRow][col] = estimator.estimate(neighbourhood);
+                }
+            }
+            return values;
+        }
+
+        void release() {
+            bucketStart = null;
+            x = null;
+            y = null;
+            value = null;
+            scanAngle = null;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.algorithms;
+
+import whitebox.geospatialfiles.WhiteboxRaster;
+import whitebox.geospatialfiles.WhiteboxRasterBase;
+import whitebox.parallel.RowBands;
+
+/**
+ * Creates one or more output images, each of which is a weighted sum of a
+ * group of co-registered input images, e.g. the component images of a
+ * principal component analysis or the bands reconstructed by its inverse. All
+ * of the outputs are created during a single pass through the input data.
+ * Blocks of rows are calculated in parallel and written in row order on the
+ * calling thread. Grid cells that are NoData in the first input image are
+ * NoData in each output.
+ *
+ * @author johnlindsay
+ */
+public class LinearBandCombination {
+
+    // the largest number of output values held for a single band of rows,
+    // about 8 MB; several bands are in flight at once
+    private static final int MAX_BAND_VALUES = 1 << 20;
+
+    WhiteboxRasterBase[] inputs;
+    double[][] weights;
+
+    /**
+     * @param inputs The input images, which must share the same dimensions.
+     * @param weights The weights applied to the inputs for each output, i.e.
+     * weights[k][i] is the weight of input i in output k.
+     */
+    public LinearBandCombination(WhiteboxRasterBase[] inputs, double[][] weights) {
+        for (double[] w : weights) {
+            if (w.length != inputs.length) {
+                throw new IllegalArgumentException("There must be one weight for each input image.");
+            }
+        }
+        this.inputs = inputs;
+        this.weights = weights;
+    }
+
+    /**
+     * Writes each of the weighted sums to the corresponding output image.
+     *
+     * @param outputs The output images, one for each set of weights.
+     * @param monitor Called after each block of rows has been written, with a
+     * null result; returning false cancels the operation. May be null.
+     * @return false if the operation was cancelled.
+     * @throws Exception
+     */
+    public boolean writeOutputs(final WhiteboxRaster[] outputs,
+            final RowBands.Consumer<Void> monitor) throws Exception {
+        if (outputs.length != weights.length) {
+            throw new IllegalArgumentException("There must be one output image for each set of weights.");
+        }
+        final int rows = inputs[0].getNumberRows();
+        final int cols = inputs[0].getNumberColumns();
+        final double noData = inputs[0].getNoDataValue();
+        final int numInputs = inputs.length;
+        final int numOutputs = outputs.length;
+        // the band height is limited so that the outputs of a band stay small
+        // when there are many outputs or the rows are long
+        long rowValues = Math.max(1L, (long) cols * numOutputs);
+        int bandHeight = (int) Math.max(1, Math.min(RowBands.defaultBandHeight(rows),
+                MAX_BAND_VALUES / rowValues));
+        return RowBands.process(rows, bandHeight, new RowBands.Task<double[][][]>() {
+            @Override
+            public double[][][] process(int startRow, int endRow) {
+                double[][][] ret = new double[endRow - startRow][numOutputs][cols];
+                double[][] data = new double[numInputs][];
+                for (int row = startRow; row < endRow; row++) {
+                    for (int i = 0; i < numInputs; i++) {
+                        data[i] = inputs[i].getRowValues(row);
+                    }
+                    double[][] rowOut = ret[row - startRow];
+                    for (int col = 0; col < cols; col++) {
+                        if (data[0][col] != noData) {
+                            for (int k = 0; k < numOutputs; k++) {
+                                double z = 0;
+                                double[] w = weights[k];
+                                for (int i = 0; i < numInputs; i++) {
+                                    z += data[i][col] * w[i];
+                                }
+                                rowOut[k][col] = z;
+                            }
+                        } else {
+                            for (int k = 0; k < numOutputs; k++) {
+                                rowOut[k][col] = noData;
+                            }
+                        }
+                    }
+                }
+                return ret;
+            }
+        }, new RowBands.Consumer<double[][][]>() {
+            @Override
+            public boolean consume(int startRow, int endRow, double[][][] result) throws Exception {
+                for (int row = startRow; row < endRow; row++) {
+                    for (int k = 0; k < numOutputs; k++) {
+                        double[] vals = result[row - startRow][k];
+                        for (int col = 0; col < cols; col++) {
+                            outputs[k].setValue(row, col, vals[col]);
+                        }
+                    }
+                }
+                return monitor == null || monitor.consume(startRow, endRow, null);
+            }
+        });
+    }
+}
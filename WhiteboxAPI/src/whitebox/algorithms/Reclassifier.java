@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.algorithms;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import whitebox.geospatialfiles.WhiteboxRaster;
+import whitebox.geospatialfiles.WhiteboxRasterBase;
+import whitebox.parallel.RowBands;
+
+/**
+ * Reclassifies the values of a raster using a reclass table that is compiled
+ * once, so that the cost of each cell does not grow with the number of
+ * entries in the table. A table of exact values is held as a sorted array of
+ * distinct keys that is searched with a binary search. A table of ranges,
+ * which are tested in order with the first matching range taking precedence,
+ * is flattened into a sorted array of non-overlapping intervals that is also
+ * searched with a binary search. Where the values that can match are integers
+ * within a bounded range, i.e. for a table of integer keys or for a raster of
+ * the integer or byte data types, the table is further expanded into a
+ * direct lookup array.
+ *
+ * Values that are not matched by the table are left unchanged, as are cells
+ * with the NoData value, if one is given. A Reclassifier is immutable and the
+ * rows of a raster are reclassified in bands on the RowBands worker pool.
+ *
+ * @author johnlindsay
+ */
+public class Reclassifier {
+
+    /*
+     * Receives the progress on the calling thread. Returning false stops the
+     * reclassification.
+     */
+    public interface Progress {
+
+        boolean rowsCompleted(int completed, int total) throws Exception;
+    }
+
+    // the largest direct lookup array that will be built
+    private static final int MAX_LOOKUP_SIZE = 1 << 20;
+
+    private enum Mode {
+
+        VALUES, RANGES, EQUAL_INTERVAL
+    }
+
+    private final Mode mode;
+    private final double noData;
+    // the sorted keys (VALUES) or interval breakpoints (RANGES)
+    private final double[] keys;
+    // the new value of each key or of each interval [keys[k], keys[k + 1])
+    private final double[] newValues;
+    // whether each interval is covered by a range
+    private final boolean[] assigned;
+    private final double interval;
+    private final double startingValue;
+    private final double endingValue;
+
+    private Reclassifier(Mode mode, double noData, double[] keys, double[] newValues,
+            boolean[] assigned, double interval, double startingValue, double endingValue) {
+        this.mode = mode;
+        this.noData = noData;
+        this.keys = keys;
+        this.newValues = newValues;
+        this.assigned = assigned;
+        this.interval = interval;
+        this.startingValue = startingValue;
+        this.endingValue = endingValue;
+    }
+
+    /**
+     * Creates a reclassifier that assigns new values to exact old values. If
+     * an old value occurs more than once, its first entry is used.
+     *
+     * @param oldValues The old values.
+     * @param newValues The new value of each old value.
+     * @param noData Cells with this value are left unchanged. Use NaN to
+     * reclassify every cell.
+     * @return The reclassifier.
+     */
+    public static Reclassifier forValues(final double[] oldValues, double[] newValues,
+            double noData) {
+        Integer[] order = sortedOrder(oldValues);
+        double[] keys = new double[oldValues.length];
+        double[] values = new double[oldValues.length];
+        int n = 0;
+        for (Integer i : order) {
+            // -0.0 and 0.0 are the same value
+            double key = oldValues[i] + 0.0;
+            if (Double.isNaN(key) || (n > 0 && keys[n - 1] == key)) {
+                continue;
+            }
+            keys[n] = key;
+            values[n] = newValues[i];
+            n++;
+        }
+        return new Reclassifier(Mode.VALUES, noData, Arrays.copyOf(keys, n),
+                Arrays.copyOf(values, n), null, 0, 0, 0);
+    }
+
+    /**
+     * Creates a reclassifier that assigns new values to ranges of old values.
+     * Each range includes its lower bound and excludes its upper bound. Where
+     * ranges overlap, the one that comes first takes precedence.
+     *
+     * @param fromValues The lower bound of each range.
+     * @param toValues The upper bound of each range.
+     * @param newValues The new value of each range.
+     * @param noData Cells with this value are left unchanged. Use NaN to
+     * reclassify every cell.
+     * @return The reclassifier.
+     */
+    public static Reclassifier forRanges(double[] fromValues, double[] toValues,
+            double[] newValues, double noData) {
+        int numRanges = fromValues.length;
+        double[] breakpoints = new double[2 * numRanges];
+        int n = 0;
+        for (int i = 0; i < numRanges; i++) {
+            if (fromValues[i] < toValues[i]) {
+                breakpoints[n++] = fromValues[i] + 0.0;
+                breakpoints[n++] = toValues[i] + 0.0;
+            }
+        }
+        breakpoints = Arrays.copyOf(breakpoints, n);
+        Arrays.sort(breakpoints);
+        int numBreakpoints = 0;
+        for (int k = 0; k < n; k++) {
+            if (numBreakpoints == 0 || breakpoints[k] != breakpoints[numBreakpoints - 1]) {
+                breakpoints[numBreakpoints++] = breakpoints[k];
+            }
+        }
+        breakpoints = Arrays.copyOf(breakpoints, numBreakpoints);
+
+        // paint the ranges from last to first, so that earlier ranges win
+        int numIntervals = Math.max(0, numBreakpoints - 1);
+        double[] values = new double[numIntervals];
+        boolean[] assigned = new boolean[numIntervals];
+        for (int i = numRanges - 1; i >= 0; i--) {
+            if (fromValues[i] < toValues[i]) {
+                int a = Arrays.binarySearch(breakpoints, fromValues[i] + 0.0);
+                int b = Arrays.binarySearch(breakpoints, toValues[i] + 0.0);
+                for (int k = a; k < b; k++) {
+                    values[k] = newValues[i];
+                    assigned[k] = true;
+                }
+            }
+        }
+        return new Reclassifier(Mode.RANGES, noData, breakpoints, values, assigned, 0, 0, 0);
+    }
+
+    /**
+     * Creates a reclassifier that rounds values down to a multiple of a
+     * class interval.
+     *
+     * @param interval The class interval.
+     * @param startingValue One end of the range of values that are
+     * reclassified. Values outside of the range are left unchanged.
+     * @param endingValue The other end of the range.
+     * @param noData Cells with this value are left unchanged.
+     * @return The reclassifier.
+     */
+    public static Reclassifier forEqualIntervals(double interval, double startingValue,
+            double endingValue, double noData) {
+        return new Reclassifier(Mode.EQUAL_INTERVAL, noData, null, null, null,
+                interval, startingValue, endingValue);
+    }
+
+    private static Integer[] sortedOrder(final double[] values) {
+        Integer[] order = new Integer[values.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        // the sort is stable, so equal values stay in their original order
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Double.compare(values[a] + 0.0, values[b] + 0.0);
+            }
+        });
+        return order;
+    }
+
+    /**
+     * Reclassifies a single value.
+     *
+     * @param z The old value.
+     * @return The new value, or z if it is not matched by the table.
+     */
+    public double reclassify(double z) {
+        if (z == noData) {
+            return z;
+        }
+        int k;
+        switch (mode) {
+            case VALUES:
+                k = Arrays.binarySearch(keys, z + 0.0);
+                return k >= 0 ? newValues[k] : z;
+            case RANGES:
+                k = Arrays.binarySearch(keys, z + 0.0);
+                if (k < 0) {
+                    // the interval starting at the breakpoint below z
+                    k = -k - 2;
+                }
+                return k >= 0 && k < newValues.length && assigned[k] ? newValues[k] : z;
+            default:
+                if (isBetween(z, startingValue, endingValue)) {
+                    return Math.floor(z / interval) * interval;
+                }
+                return z;
+        }
+    }
+
+    // Return true if val is between theshold1 and theshold2.
+    private static boolean isBetween(double val, double threshold1, double threshold2) {
+        if (val == threshold1 || val == threshold2) {
+            return true;
+        }
+        return threshold2 > threshold1 ? val > threshold1 && val < threshold2 : val > threshold2 && val < threshold1;
+    }
+
+    /**
+     * Reclassifies a raster. The output may be the input raster itself,
+     * opened for writing, since each row is read before it is written.
+     *
+     * @param input The input raster.
+     * @param output The output raster, with the same number of rows and
+     * columns as the input.
+     * @param progress Receives the number of rows completed, or null.
+     * @return false if the progress stopped the reclassification.
+     * @throws Exception Any exception thrown while reading the input.
+     */
+    public boolean reclassify(final WhiteboxRasterBase input, final WhiteboxRaster output,
+            final Progress progress) throws Exception {
+        final int rows = input.getNumberRows();
+        if (output.getNumberRows() != rows || output.getNumberColumns() != input.getNumberColumns()) {
+            throw new IllegalArgumentException("The output image must have the same dimensions as the input.");
+        }
+
+        // the range of integer values covered by a direct lookup array, if any
+        double lowest = Double.NaN;
+        double highest = Double.NaN;
+        if (mode == Mode.VALUES && keys.length > 0) {
+            boolean integerKeys = true;
+            for (double key : keys) {
+                if (key != Math.floor(key) || Double.isInfinite(key)) {
+                    integerKeys = false;
+                    break;
+                }
+            }
+            if (integerKeys) {
+                lowest = keys[0];
+                highest = keys[keys.length - 1];
+            }
+        } else if (mode != Mode.VALUES && (input.getDataType() == WhiteboxRasterBase.DataType.INTEGER
+                || input.getDataType() == WhiteboxRasterBase.DataType.BYTE)) {
+            lowest = Math.floor(input.getMinimumValue());
+            highest = Math.ceil(input.getMaximumValue());
+        }
+        final double lookupStart = lowest;
+        final double[] lookup;
+        if (highest >= lowest && highest - lowest < MAX_LOOKUP_SIZE) {
+            lookup = new double[(int) (highest - lowest) + 1];
+            for (int i = 0; i < lookup.length; i++) {
+                lookup[i] = reclassify(lowest + i);
+            }
+        } else {
+            lookup = null;
+        }
+
+        return RowBands.process(rows, new RowBands.Task<double[][]>() {
+            @Override
+            public double[][] process(int startRow, int endRow) throws Exception {
+                double[][] result = new double[endRow - startRow][];
+                for (int row = startRow; row < endRow; row++) {
+                    double[] data = input.getRowValues(row);
+                    for (int col = 0; col < data.length; col++) {
+                        double z = data[col];
+                        if (z == noData) {
+                            continue;
+                        }
+                        if (lookup != null) {
+                            double d = z - lookupStart;
+                            int i = (int) d;
+                            if (d >= 0 && i < lookup.length && i == d) {
+                                data[col] = lookup[i];
+                                continue;
+                            }
+                        }
+                        data[col] = reclassify(z);
+                    }
+                    result[row - startRow] = data;
+                }
+                return result;
+            }
+        }, new RowBands.Consumer<double[][]>() {
+            @Override
+            public boolean consume(int startRow, int endRow, double[][] result) throws Exception {
+                for (int row = startRow; row < endRow; row++) {
+                    output.setRowValues(row, result[row - startRow]);
+                }
+                return progress == null || progress.rowsCompleted(endRow, rows);
+            }
+        });
+    }
+}
@@ -0,0 +1,458 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.algorithms;
+
+import java.util.Arrays;
+import whitebox.geospatialfiles.WhiteboxRasterBase;
+
+/**
+ * Resamples a source raster onto the grid of a destination raster by inverse
+ * mapping, i.e. the centre of each destination grid cell is mapped into the
+ * source image and the source is interpolated at that location. Rather than
+ * reading the source neighbours of each cell individually, the destination is
+ * processed in blocks of rows: the footprint of a block in the source image is
+ * calculated first and each source row within it is read only once. The
+ * interpolation kernels are then evaluated from these in-memory rows.
+ * <p>
+ * The resample method reads only from the source image and keeps no state
+ * between calls, so separate blocks of rows can be resampled on separate
+ * threads (see whitebox.parallel.RowBands).
+ * <p>
+ * Source grid cells containing NoData are excluded from the interpolation and
+ * the weights of the remaining cells are re-normalized.
+ *
+ * @author johnlindsay
+ */
+public class Resampler {
+
+    public enum Method {
+
+        NEAREST_NEIGHBOUR(0), BILINEAR(1), CUBIC_CONVOLUTION(2), LANCZOS(3);
+
+        private final int radius;
+
+        Method(int radius) {
+            this.radius = radius;
+        }
+
+        /**
+         * The number of source cells on either side of the interpolation
+         * point that are used by the kernel.
+         *
+         * @return the kernel radius.
+         */
+        public int getRadius() {
+            return radius;
+        }
+
+        /**
+         * Converts a resampling method name, as used in the plugin dialogs,
+         * into a Method.
+         *
+         * @param name e.g. "nearest neighbour", "bilinear", "cubic
+         * convolution" or "lanczos".
+         * @return The Method, or null if the name is not recognized.
+         */
+        public static Method fromString(String name) {
+            String str = name.toLowerCase().trim();
+            if (str.contains("nearest")) {
+                return NEAREST_NEIGHBOUR;
+            } else if (str.contains("bilinear")) {
+                return BILINEAR;
+            } else if (str.contains("cubic")) {
+                return CUBIC_CONVOLUTION;
+            } else if (str.contains("lanczos")) {
+                return LANCZOS;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Maps a location in the coordinate system of the destination image into
+     * the coordinate system of the source image. Implementations must be
+     * thread safe.
+     */
+    public interface Transform {
+
+        /**
+         * @param x The destination x coordinate.
+         * @param y The destination y coordinate.
+         * @param ret Receives the source x and y coordinates.
+         */
+        void toSource(double x, double y, double[] ret);
+    }
+
+    private final WhiteboxRasterBase source;
+    private final Method method;
+    private final int srcRows;
+    private final int srcCols;
+    private final double srcNorth;
+    private final double srcWest;
+    private final double srcNSRange;
+    private final double srcEWRange;
+    private final double noData;
+    private Transform transform = null;
+    private boolean rgbMode = false;
+
+    public Resampler(WhiteboxRasterBase source, Method method) {
+        this.source = source;
+        this.method = method;
+        srcRows = source.getNumberRows();
+        srcCols = source.getNumberColumns();
+        srcNorth = source.getNorth();
+        srcWest = source.getWest();
+        srcNSRange = source.getNorth() - source.getSouth();
+        srcEWRange = source.getEast() - source.getWest();
+        noData = source.getNoDataValue();
+    }
+
+    public WhiteboxRasterBase getSource() {
+        return source;
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    /**
+     * The value used to indicate source grid cells that could not be
+     * interpolated, i.e. the NoData value of the source image.
+     *
+     * @return the NoData value.
+     */
+    public double getNoDataValue() {
+        return noData;
+    }
+
+    /**
+     * Sets the transformation from destination to source coordinates. By
+     * default the two images are assumed to share a coordinate system.
+     *
+     * @param transform The transformation; null for none.
+     */
+    public void setTransform(Transform transform) {
+        this.transform = transform;
+    }
+
+    /**
+     * When set, the source values are treated as packed RGB colours and
+     * each of the red, green and blue channels is interpolated separately.
+     *
+     * @param rgbMode true for RGB data.
+     */
+    public void setRGBMode(boolean rgbMode) {
+        this.rgbMode = rgbMode;
+    }
+
+    /**
+     * Finds the block of destination grid cells that fall within the extent
+     * of the source image. Where a transformation has been set, the whole of
+     * the destination is returned.
+     *
+     * @param dest The destination image.
+     * @return {startRow, endRow, startCol, endCol}, with the end values
+     * exclusive. The block is empty if the images don't overlap.
+     */
+    public int[] getDestinationExtent(WhiteboxRasterBase dest) {
+        int rows = dest.getNumberRows();
+        int cols = dest.getNumberColumns();
+        if (transform != null) {
+            return new int[]{0, rows, 0, cols};
+        }
+        double dNorth = dest.getNorth();
+        double dWest = dest.getWest();
+        double dNSRange = dest.getNorth() - dest.getSouth();
+        double dEWRange = dest.getEast() - dest.getWest();
+        double r1 = (dNorth - source.getNorth()) / dNSRange * rows - 0.5;
+        double r2 = (dNorth - source.getSouth()) / dNSRange * rows - 0.5;
+        double c1 = (source.getWest() - dWest) / dEWRange * cols - 0.5;
+        double c2 = (source.getEast() - dWest) / dEWRange * cols - 0.5;
+        int startRow = Math.max(0, (int) Math.floor(Math.min(r1, r2)));
+        int endRow = Math.min(rows, (int) Math.ceil(Math.max(r1, r2)) + 1);
+        int startCol = Math.max(0, (int) Math.floor(Math.min(c1, c2)));
+        int endCol = Math.min(cols, (int) Math.ceil(Math.max(c1, c2)) + 1);
+        if (endRow < startRow) {
+            endRow = startRow;
+        }
+        if (endCol < startCol) {
+            endCol = startCol;
+        }
+        return new int[]{startRow, endRow, startCol, endCol};
+    }
+
+    /**
+     * Resamples a block of the destination grid.
+     *
+     * @param dest The destination image, which defines the grid.
+     * @param startRow The first destination row (inclusive).
+     * @param endRow The last destination row (exclusive).
+     * @param startCol The first destination column (inclusive).
+     * @param endCol The last destination column (exclusive).
+     * @return An array of [endRow - startRow][endCol - startCol] values.
+     * Cells whose centres fall outside of the source image are set to NaN and
+     * cells that fall within the source but cannot be interpolated are set to
+     * the source NoData value.
+     */
+    public double[][] resample(WhiteboxRasterBase dest, int startRow, int endRow,
+            int startCol, int endCol) {
+        int numRows = endRow - startRow;
+        int numCols = endCol - startCol;
+        double[][] ret = new double[numRows][numCols];
+        if (numRows <= 0 || numCols <= 0) {
+            return ret;
+        }
+
+        // find the location of each destination cell centre in the source image
+        double dNorth = dest.getNorth();
+        double dWest = dest.getWest();
+        double dRowSize = (dest.getNorth() - dest.getSouth()) / dest.getNumberRows();
+        double dColSize = (dest.getEast() - dest.getWest()) / dest.getNumberColumns();
+        double[][] srcRow = new double[numRows][numCols];
+        double[][] srcCol = new double[numRows][numCols];
+        double[] point = new double[2];
+        double minRow = Double.POSITIVE_INFINITY;
+        double maxRow = Double.NEGATIVE_INFINITY;
+        for (int r = 0; r < numRows; r++) {
+            double y = dNorth - (startRow + r + 0.5) * dRowSize;
+            for (int c = 0; c < numCols; c++) {
+                double x = dWest + (startCol + c + 0.5) * dColSize;
+                if (transform != null) {
+                    transform.toSource(x, y, point);
+                    x = point[0];
+                    y = point[1];
+                }
+                double sr = (srcNorth - y) / srcNSRange * srcRows - 0.5;
+                double sc = (x - srcWest) / srcEWRange * srcCols - 0.5;
+                if (sr < -0.5 || sr >= srcRows - 0.5 || sc < -0.5 || sc >= srcCols - 0.5
+                        || Double.isNaN(sr) || Double.isNaN(sc)) {
+                    srcRow[r][c] = Double.NaN;
+                    continue;
+                }
+                srcRow[r][c] = sr;
+                srcCol[r][c] = sc;
+                if (sr < minRow) {
+                    minRow = sr;
+                }
+                if (sr > maxRow) {
+                    maxRow = sr;
+                }
+            }
+        }
+
+        if (minRow > maxRow) { // the block doesn't overlap the source
+            for (int r = 0; r < numRows; r++) {
+                Arrays.fill(ret[r], Double.NaN);
+            }
+            return ret;
+        }
+
+        // read the footprint of the block, plus a margin for the kernel
+        int radius = Math.max(1, method.getRadius());
+        int firstRow = Math.max(0, (int) Math.floor(minRow) - radius);
+        int lastRow = Math.min(srcRows - 1, (int) Math.ceil(maxRow) + radius);
+        double[][] data = new double[lastRow - firstRow + 1][];
+        for (int i = firstRow; i <= lastRow; i++) {
+            data[i - firstRow] = source.getRowValues(i);
+        }
+
+        double[] wRow = new double[2 * radius];
+        double[] wCol = new double[2 * radius];
+        for (int r = 0; r < numRows; r++) {
+            for (int c = 0; c < numCols; c++) {
+                double sr = srcRow[r][c];
+                if (Double.isNaN(sr)) {
+                    ret[r][c] = Double.NaN;
+                    continue;
+                }
+                double sc = srcCol[r][c];
+                if (method == Method.NEAREST_NEIGHBOUR) {
+                    int nr = (int) Math.round(sr);
+                    int nc = (int) Math.round(sc);
+                    nr = Math.max(0, Math.min(srcRows - 1, nr));
+                    nc = Math.max(0, Math.min(srcCols - 1, nc));
+                    ret[r][c] = data[nr - firstRow][nc];
+                } else {
+                    ret[r][c] = interpolate(data, firstRow, sr, sc, wRow, wCol);
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Resamples a group of source images onto full rows of a common
+     * destination grid. Where the sources overlap, the first source in the
+     * array with a valid value at a grid cell takes priority.
+     *
+     * @param sources The source images, in order of priority.
+     * @param extents The destination extent of each source, as returned by
+     * getDestinationExtent.
+     * @param dest The destination image, which defines the grid.
+     * @param startRow The first destination row (inclusive).
+     * @param endRow The last destination row (exclusive).
+     * @param outputNoData The value assigned to cells that fall within one or
+     * more sources but have no valid value in any of them.
+     * @return An array of [endRow - startRow][columns] values. Cells that
+     * fall outside of all of the sources are set to NaN.
+     */
+    public static double[][] composite(Resampler[] sources, int[][] extents,
+            WhiteboxRasterBase dest, int startRow, int endRow, double outputNoData) {
+        int cols = dest.getNumberColumns();
+        double[][] ret = new double[endRow - startRow][cols];
+        boolean[][] isValid = new boolean[endRow - startRow][cols];
+        for (double[] r : ret) {
+            Arrays.fill(r, Double.NaN);
+        }
+        for (int a = 0; a < sources.length; a++) {
+            int[] ext = extents[a];
+            int r1 = Math.max(startRow, ext[0]);
+            int r2 = Math.min(endRow, ext[1]);
+            if (r2 <= r1 || ext[3] <= ext[2]) {
+                continue;
+            }
+            double noData = sources[a].getNoDataValue();
+            double[][] vals = sources[a].resample(dest, r1, r2, ext[2], ext[3]);
+            for (int r = r1; r < r2; r++) {
+                double[] v = vals[r - r1];
+                double[] out = ret[r - startRow];
+                boolean[] valid = isValid[r - startRow];
+                for (int c = ext[2]; c < ext[3]; c++) {
+                    double z = v[c - ext[2]];
+                    if (valid[c] || Double.isNaN(z)) {
+                        continue;
+                    }
+                    if (z != noData) {
+                        out[c] = z;
+                        valid[c] = true;
+                    } else {
+                        out[c] = outputNoData;
+                    }
+                }
+            }
+        }
+        return ret;
+    }
+
+    private double interpolate(double[][] data, int firstRow, double sr, double sc,
+            double[] wRow, double[] wCol) {
+        int radius = method.getRadius();
+        int r0 = (int) Math.floor(sr) - radius + 1;
+        int c0 = (int) Math.floor(sc) - radius + 1;
+        int n = 2 * radius;
+        for (int i = 0; i < n; i++) {
+            wRow[i] = kernel(sr - (r0 + i));
+            wCol[i] = kernel(sc - (c0 + i));
+        }
+        if (!rgbMode) {
+            double sumW = 0;
+            double sumWZ = 0;
+            for (int i = 0; i < n; i++) {
+                int row = r0 + i;
+                if (row < 0 || row >= srcRows || wRow[i] == 0) {
+                    continue;
+                }
+                double[] vals = data[row - firstRow];
+                for (int j = 0; j < n; j++) {
+                    int col = c0 + j;
+                    if (col < 0 || col >= srcCols) {
+                        continue;
+                    }
+                    double z = vals[col];
+                    if (z != noData) {
+                        double w = wRow[i] * wCol[j];
+                        sumW += w;
+                        sumWZ += w * z;
+                    }
+                }
+            }
+            if (sumW > 1e-6) {
+                return sumWZ / sumW;
+            }
+            return noData;
+        } else {
+            double sumW = 0;
+            double sumR = 0, sumG = 0, sumB = 0;
+            for (int i = 0; i < n; i++) {
+                int row = r0 + i;
+                if (row < 0 || row >= srcRows || wRow[i] == 0) {
+                    continue;
+                }
+                double[] vals = data[row - firstRow];
+                for (int j = 0; j < n; j++) {
+                    int col = c0 + j;
+                    if (col < 0 || col >= srcCols) {
+                        continue;
+                    }
+                    double z = vals[col];
+                    if (z != noData) {
+                        double w = wRow[i] * wCol[j];
+                        int rgb = (int) z;
+                        sumW += w;
+                        sumR += w * (rgb & 0xFF);
+                        sumG += w * ((rgb >> 8) & 0xFF);
+                        sumB += w * ((rgb >> 16) & 0xFF);
+                    }
+                }
+            }
+            if (sumW > 1e-6) {
+                int red = clampChannel(sumR / sumW);
+                int green = clampChannel(sumG / sumW);
+                int blue = clampChannel(sumB / sumW);
+                return (double) ((255 << 24) | (blue << 16) | (green << 8) | red);
+            }
+            return noData;
+        }
+    }
+
+    private static int clampChannel(double value) {
+        int ret = (int) Math.round(value);
+        if (ret < 0) {
+            return 0;
+        }
+        if (ret > 255) {
+            return 255;
+        }
+        return ret;
+    }
+
+    private double kernel(double t) {
+        t = Math.abs(t);
+        switch (method) {
+            case BILINEAR:
+                return t < 1 ? 1 - t : 0;
+            case CUBIC_CONVOLUTION:
+                // Keys (1981) cubic convolution kernel with a = -0.5
+                if (t <= 1) {
+                    return (1.5 * t - 2.5) * t * t + 1;
+                } else if (t < 2) {
+                    return ((-0.5 * t + 2.5) * t - 4) * t + 2;
+                }
+                return 0;
+            case LANCZOS:
+                if (t == 0) {
+                    return 1;
+                } else if (t < 3) {
+                    double px = Math.PI * t;
+                    return 3 * Math.sin(px) * Math.sin(px / 3) / (px * px);
+                }
+                return 0;
+            default:
+                return t < 0.5 ? 1 : 0;
+        }
+    }
+}
@@ -0,0 +1,599 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.algorithms;
+
+import java.util.Arrays;
+import whitebox.geospatialfiles.WhiteboxRasterBase;
+import whitebox.parallel.RowBands;
+
+/**
+ * Converts polygons, polylines and points into raster rows. Every edge is put
+ * into an edge table ordered by the first row that it touches, and each row
+ * is filled from the list of edges that are active at that row, so the cost
+ * of a row depends only on the edges that actually cross it rather than on
+ * every edge of every shape. The rows are produced in bands on the RowBands
+ * worker pool and handed to an Output in row order, which allows the output
+ * raster to be written sequentially.
+ *
+ * A polygon fills the cells in each row between pairs of boundary crossings
+ * of the row's centre line (the even-odd rule, so that holes are left
+ * unfilled), including the cells that contain the crossings. A polyline
+ * fills the cells containing its vertices and the cells in which it crosses
+ * the centre line of a row or column. A point fills the cell containing it.
+ * Shapes are drawn in the order that they were added, so where shapes
+ * overlap the value of the last one is kept.
+ *
+ * Optionally, the fraction of each cell covered by the polygons is also
+ * estimated, for anti-aliasing and area weighting. The coverage is measured
+ * exactly along several sub-scanlines within each row and averaged.
+ *
+ * @author johnlindsay
+ */
+public class ScanlineRasterizer {
+
+    /*
+     * Receives each row of the raster, in row order, on the thread that called
+     * rasterize(). The coverage array is null unless coverage samples were
+     * requested. Returning false stops the rasterization.
+     */
+    public interface Output {
+
+        boolean processRow(int row, double[] values, double[] coverage) throws Exception;
+    }
+
+    private static final byte EDGE = 0;
+    private static final byte SEGMENT = 1;
+    private static final byte POINT = 2;
+
+    private final int rows;
+    private final int cols;
+    private final double north;
+    private final double west;
+    private final double cellSizeX;
+    private final double cellSizeY;
+    private int coverageSamples = 0;
+
+    // the values of the shapes, in drawing order
+    private double[] shapeValues = new double[64];
+    private int numShapes = 0;
+
+    // the edge table, holding polygon edges, polyline segments and points
+    private byte[] itemType = new byte[256];
+    private int[] itemShape = new int[256];
+    private double[] itemCoords = new double[4 * 256];
+    private int[] itemTopRow = new int[256];
+    private int[] itemBottomRow = new int[256];
+    private int numItems = 0;
+
+    /**
+     * Creates a rasterizer for the grid of an existing raster.
+     *
+     * @param grid The raster whose rows and columns are to be filled.
+     */
+    public ScanlineRasterizer(WhiteboxRasterBase grid) {
+        this(grid.getNumberRows(), grid.getNumberColumns(), grid.getNorth(),
+                grid.getWest(), grid.getCellSizeX(), grid.getCellSizeY());
+    }
+
+    public ScanlineRasterizer(int rows, int cols, double north, double west,
+            double cellSizeX, double cellSizeY) {
+        this.rows = rows;
+        this.cols = cols;
+        this.north = north;
+        this.west = west;
+        this.cellSizeX = cellSizeX;
+        this.cellSizeY = cellSizeY;
+    }
+
+    /**
+     * Sets the number of sub-scanlines used to estimate the fraction of each
+     * cell covered by the polygons. Zero, the default, disables the coverage
+     * calculation.
+     *
+     * @param coverageSamples The number of sub-scanlines in each row.
+     */
+    public void setCoverageSamples(int coverageSamples) {
+        this.coverageSamples = Math.max(0, coverageSamples);
+    }
+
+    /**
+     * Adds a polygon. All of the rings of the polygon, including any holes,
+     * are filled together using the even-odd rule.
+     *
+     * @param points The vertices of all of the rings.
+     * @param parts The index of the first vertex of each ring.
+     * @param value The value of the cells inside the polygon.
+     */
+    public void addPolygon(double[][] points, int[] parts, double value) {
+        int shape = addShape(value);
+        for (int part = 0; part < parts.length; part++) {
+            int start = parts[part];
+            int end = part < parts.length - 1 ? parts[part + 1] : points.length;
+            if (end - start < 2) {
+                continue;
+            }
+            for (int i = start; i < end - 1; i++) {
+                addEdge(shape, points[i], points[i + 1]);
+            }
+            // rings are normally closed, but don't rely on it
+            if (points[end - 1][0] != points[start][0] || points[end - 1][1] != points[start][1]) {
+                addEdge(shape, points[end - 1], points[start]);
+            }
+        }
+    }
+
+    /**
+     * Adds a polyline.
+     *
+     * @param points The vertices of all of the parts.
+     * @param parts The index of the first vertex of each part.
+     * @param value The value of the cells that the line passes through.
+     */
+    public void addPolyLine(double[][] points, int[] parts, double value) {
+        int shape = addShape(value);
+        for (int part = 0; part < parts.length; part++) {
+            int start = parts[part];
+            int end = part < parts.length - 1 ? parts[part + 1] : points.length;
+            if (end - start == 1) {
+                addItem(POINT, shape, points[start][0], points[start][1],
+                        points[start][0], points[start][1]);
+            }
+            for (int i = start; i < end - 1; i++) {
+                addItem(SEGMENT, shape, points[i][0], points[i][1],
+                        points[i + 1][0], points[i + 1][1]);
+            }
+        }
+    }
+
+    /**
+     * Adds a point.
+     *
+     * @param x The x coordinate.
+     * @param y The y coordinate.
+     * @param value The value of the cell containing the point.
+     */
+    public void addPoint(double x, double y, double value) {
+        addItem(POINT, addShape(value), x, y, x, y);
+    }
+
+    private int addShape(double value) {
+        if (numShapes == shapeValues.length) {
+            shapeValues = Arrays.copyOf(shapeValues, 2 * numShapes);
+        }
+        shapeValues[numShapes] = value;
+        return numShapes++;
+    }
+
+    private void addEdge(int shape, double[] p1, double[] p2) {
+        // horizontal edges never cross a scanline
+        if (p1[1] != p2[1]) {
+            addItem(EDGE, shape, p1[0], p1[1], p2[0], p2[1]);
+        }
+    }
+
+    private void addItem(byte type, int shape, double x0, double y0, double x1, double y1) {
+        int topRow = getRow(Math.max(y0, y1));
+        int bottomRow = getRow(Math.min(y0, y1));
+        if (bottomRow < 0 || topRow >= rows) {
+            return;
+        }
+        if (numItems == itemType.length) {
+            int n = 2 * numItems;
+            itemType = Arrays.copyOf(itemType, n);
+            itemShape = Arrays.copyOf(itemShape, n);
+            itemCoords = Arrays.copyOf(itemCoords, 4 * n);
+            itemTopRow = Arrays.copyOf(itemTopRow, n);
+            itemBottomRow = Arrays.copyOf(itemBottomRow, n);
+        }
+        itemType[numItems] = type;
+        itemShape[numItems] = shape;
+        itemCoords[4 * numItems] = x0;
+        itemCoords[4 * numItems + 1] = y0;
+        itemCoords[4 * numItems + 2] = x1;
+        itemCoords[4 * numItems + 3] = y1;
+        itemTopRow[numItems] = Math.max(0, topRow);
+        itemBottomRow[numItems] = Math.min(rows - 1, bottomRow);
+        numItems++;
+    }
+
+    // the row whose strip contains y, which may lie outside of the grid
+    private int getRow(double y) {
+        double r = Math.floor((north - y) / cellSizeY);
+        return (int) Math.max(-1, Math.min(rows, r));
+    }
+
+    // the column containing x, which may lie outside of the grid
+    private int getColumn(double x) {
+        double c = Math.floor((x - west) / cellSizeX);
+        return (int) Math.max(-1, Math.min(cols, c));
+    }
+
+    /**
+     * Rasterizes the shapes, passing each row to the output in turn.
+     *
+     * @param background The value of cells not covered by any shape.
+     * @param output Receives the rows.
+     * @return false if the output stopped the rasterization.
+     * @throws Exception Any exception thrown by the output.
+     */
+    public boolean rasterize(final double background, final Output output) throws Exception {
+        final int bandHeight = RowBands.defaultBandHeight(rows);
+        final int numBands = (rows + bandHeight - 1) / bandHeight;
+
+        // bucket the edge table by band. Each band's items are ordered by
+        // the first row that they touch, so that the active edge list can be
+        // built up as the band's rows are filled.
+        final int[] bandStart = new int[numBands + 1];
+        for (int i = 0; i < numItems; i++) {
+            for (int b = itemTopRow[i] / bandHeight; b <= itemBottomRow[i] / bandHeight; b++) {
+                bandStart[b + 1]++;
+            }
+        }
+        for (int b = 0; b < numBands; b++) {
+            bandStart[b + 1] += bandStart[b];
+        }
+        long[] keys = new long[bandStart[numBands]];
+        int[] next = Arrays.copyOf(bandStart, numBands);
+        for (int i = 0; i < numItems; i++) {
+            for (int b = itemTopRow[i] / bandHeight; b <= itemBottomRow[i] / bandHeight; b++) {
+                int firstRow = Math.max(itemTopRow[i], b * bandHeight);
+                keys[next[b]++] = ((long) firstRow << 32) | i;
+            }
+        }
+        for (int b = 0; b < numBands; b++) {
+            Arrays.sort(keys, bandStart[b], bandStart[b + 1]);
+        }
+        final int[] bandItems = new int[keys.length];
+        for (int k = 0; k < keys.length; k++) {
+            bandItems[k] = (int) keys[k];
+        }
+
+        return RowBands.process(rows, bandHeight, new RowBands.Task<double[][][]>() {
+            @Override
+            public double[][][] process(int startRow, int endRow) {
+                int b = startRow / bandHeight;
+                return new Band(bandItems, bandStart[b], bandStart[b + 1]).fill(startRow, endRow, background);
+            }
+        }, new RowBands.Consumer<double[][][]>() {
+            @Override
+            public boolean consume(int startRow, int endRow, double[][][] band) throws Exception {
+                for (int row = startRow; row < endRow; row++) {
+                    double[] coverage = band[1] == null ? null : band[1][row - startRow];
+                    if (!output.processRow(row, band[0][row - startRow], coverage)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        });
+    }
+
+    /*
+     * Fills the rows of one band. The working arrays are reused from row to
+     * row.
+     */
+    private class Band {
+
+        private final int[] items;
+        private final int start, end;
+        private int[] active = new int[64];
+        private int numActive = 0;
+        // the crossings of a scanline by polygon edges
+        private int[] crossShape = new int[64];
+        private double[] crossX = new double[64];
+        private int numCross = 0;
+        // the runs of cells to fill, in drawing order once sorted
+        private int[] spanShape = new int[64];
+        private int[] spanStart = new int[64];
+        private int[] spanEnd = new int[64];
+        private int numSpans = 0;
+        // the polygon spans of a row come before its line and point cells
+        private int numPolygonSpans = 0;
+        private long[] sortKeys = new long[64];
+        private double[] runX = new double[64];
+        private double[] intervalStarts = new double[64];
+        private double[] intervalEnds = new double[64];
+
+        Band(int[] items, int start, int end) {
+            this.items = items;
+            this.start = start;
+            this.end = end;
+        }
+
+        double[][][] fill(int startRow, int endRow, double background) {
+            int numRows = endRow - startRow;
+            double[][] values = new double[numRows][cols];
+            double[][] coverage = coverageSamples > 0 ? new double[numRows][cols] : null;
+            int nextItem = start;
+            for (int row = startRow; row < endRow; row++) {
+                // update the active edge list
+                int n = 0;
+                for (int a = 0; a < numActive; a++) {
+                    if (itemBottomRow[active[a]] >= row) {
+                        active[n++] = active[a];
+                    }
+                }
+                numActive = n;
+                while (nextItem < end && itemTopRow[items[nextItem]] <= row) {
+                    if (numActive == active.length) {
+                        active = Arrays.copyOf(active, 2 * numActive);
+                    }
+                    active[numActive++] = items[nextItem++];
+                }
+
+                double[] rowValues = values[row - startRow];
+                Arrays.fill(rowValues, background);
+                numSpans = 0;
+                double rowTop = north - row * cellSizeY;
+                double centreY = rowTop - cellSizeY / 2;
+                findCrossings(centreY);
+                addPolygonSpans();
+                numPolygonSpans = numSpans;
+                addLineAndPointCells(row, rowTop);
+                drawSpans(rowValues);
+
+                if (coverage != null) {
+                    double[] rowCoverage = coverage[row - startRow];
+                    for (int s = 0; s < coverageSamples; s++) {
+                        findCrossings(rowTop - (s + 0.5) * cellSizeY / coverageSamples);
+                        addCoverage(rowCoverage);
+                    }
+                    for (int c = 0; c < cols; c++) {
+                        rowCoverage[c] /= coverageSamples;
+                    }
+                    // lines and points cover the cells that they are drawn in
+                    for (int s = numPolygonSpans; s < numSpans; s++) {
+                        rowCoverage[spanStart[s]] = 1;
+                    }
+                }
+            }
+            return new double[][][]{values, coverage};
+        }
+
+        /*
+         * Finds where the polygon edges cross a scanline. An edge includes
+         * its lower end but not its upper end, so a vertex shared by two
+         * edges is only counted once when the boundary passes through it.
+         */
+        private void findCrossings(double y) {
+            numCross = 0;
+            for (int a = 0; a < numActive; a++) {
+                int i = active[a];
+                if (itemType[i] != EDGE) {
+                    continue;
+                }
+                double x0 = itemCoords[4 * i];
+                double y0 = itemCoords[4 * i + 1];
+                double x1 = itemCoords[4 * i + 2];
+                double y1 = itemCoords[4 * i + 3];
+                if (y >= Math.min(y0, y1) && y < Math.max(y0, y1)) {
+                    if (numCross == crossX.length) {
+                        crossShape = Arrays.copyOf(crossShape, 2 * numCross);
+                        crossX = Arrays.copyOf(crossX, 2 * numCross);
+                    }
+                    crossShape[numCross] = itemShape[i];
+                    crossX[numCross] = x0 + (y - y0) / (y1 - y0) * (x1 - x0);
+                    numCross++;
+                }
+            }
+        }
+
+        /*
+         * Sorts the crossings by shape. The crossings of each shape are then
+         * a run of the sort keys.
+         */
+        private int sortCrossings() {
+            if (sortKeys.length < numCross) {
+                sortKeys = new long[Math.max(numCross, 2 * sortKeys.length)];
+                runX = new double[sortKeys.length];
+            }
+            for (int k = 0; k < numCross; k++) {
+                sortKeys[k] = ((long) crossShape[k] << 32) | k;
+            }
+            Arrays.sort(sortKeys, 0, numCross);
+            return numCross;
+        }
+
+        private void addPolygonSpans() {
+            int n = sortCrossings();
+            int k = 0;
+            while (k < n) {
+                int shape = (int) (sortKeys[k] >>> 32);
+                int runLength = 0;
+                while (k < n && (int) (sortKeys[k] >>> 32) == shape) {
+                    runX[runLength++] = crossX[(int) sortKeys[k]];
+                    k++;
+                }
+                Arrays.sort(runX, 0, runLength);
+                for (int p = 0; p + 1 < runLength; p += 2) {
+                    addSpan(shape, getColumn(runX[p]), getColumn(runX[p + 1]));
+                }
+            }
+        }
+
+        private void addLineAndPointCells(int row, double rowTop) {
+            double rowBottom = rowTop - cellSizeY;
+            double centreY = rowTop - cellSizeY / 2;
+            for (int a = 0; a < numActive; a++) {
+                int i = active[a];
+                byte type = itemType[i];
+                if (type == EDGE) {
+                    continue;
+                }
+                int shape = itemShape[i];
+                double x0 = itemCoords[4 * i];
+                double y0 = itemCoords[4 * i + 1];
+                double x1 = itemCoords[4 * i + 2];
+                double y1 = itemCoords[4 * i + 3];
+                // the cells containing the end points
+                if (getRow(y0) == row) {
+                    int c = getColumn(x0);
+                    addSpan(shape, c, c);
+                }
+                if (type == POINT) {
+                    continue;
+                }
+                if (getRow(y1) == row) {
+                    int c = getColumn(x1);
+                    addSpan(shape, c, c);
+                }
+
+                // the crossing of the row's centre line
+                if (y0 != y1 && centreY >= Math.min(y0, y1) && centreY <= Math.max(y0, y1)) {
+                    int c = getColumn(x0 + (centreY - y0) / (y1 - y0) * (x1 - x0));
+                    addSpan(shape, c, c);
+                }
+
+                // the crossings of column centre lines within this row
+                if (x0 != x1) {
+                    double xa, xb;
+                    if (y0 == y1) {
+                        xa = Math.min(x0, x1);
+                        xb = Math.max(x0, x1);
+                    } else {
+                        // the part of the segment lying within the row
+                        double t0 = (rowTop - y0) / (y1 - y0);
+                        double t1 = (rowBottom - y0) / (y1 - y0);
+                        double tMin = Math.max(0, Math.min(t0, t1));
+                        double tMax = Math.min(1, Math.max(t0, t1));
+                        if (tMin > tMax) {
+                            continue;
+                        }
+                        xa = x0 + tMin * (x1 - x0);
+                        xb = x0 + tMax * (x1 - x0);
+                        if (xa > xb) {
+                            double tmp = xa;
+                            xa = xb;
+                            xb = tmp;
+                        }
+                    }
+                    int firstCol = (int) Math.max(0, Math.ceil((xa - west) / cellSizeX - 0.5));
+                    int lastCol = (int) Math.min(cols - 1, Math.floor((xb - west) / cellSizeX - 0.5));
+                    for (int c = firstCol; c <= lastCol; c++) {
+                        addSpan(shape, c, c);
+                    }
+                }
+            }
+        }
+
+        private void addSpan(int shape, int c0, int c1) {
+            if (c0 > c1) {
+                int tmp = c0;
+                c0 = c1;
+                c1 = tmp;
+            }
+            c0 = Math.max(0, c0);
+            c1 = Math.min(cols - 1, c1);
+            if (c0 > c1) {
+                return;
+            }
+            if (numSpans == spanShape.length) {
+                spanShape = Arrays.copyOf(spanShape, 2 * numSpans);
+                spanStart = Arrays.copyOf(spanStart, 2 * numSpans);
+                spanEnd = Arrays.copyOf(spanEnd, 2 * numSpans);
+            }
+            spanShape[numSpans] = shape;
+            spanStart[numSpans] = c0;
+            spanEnd[numSpans] = c1;
+            numSpans++;
+        }
+
+        /*
+         * Draws the spans in the order that their shapes were added, so that
+         * later shapes overwrite earlier ones.
+         */
+        private void drawSpans(double[] rowValues) {
+            if (sortKeys.length < numSpans) {
+                sortKeys = new long[Math.max(numSpans, 2 * sortKeys.length)];
+                runX = new double[sortKeys.length];
+            }
+            for (int s = 0; s < numSpans; s++) {
+                sortKeys[s] = ((long) spanShape[s] << 32) | s;
+            }
+            Arrays.sort(sortKeys, 0, numSpans);
+            for (int k = 0; k < numSpans; k++) {
+                int s = (int) sortKeys[k];
+                Arrays.fill(rowValues, spanStart[s], spanEnd[s] + 1, shapeValues[spanShape[s]]);
+            }
+        }
+
+        /*
+         * Adds the length of each cell that lies inside of any polygon along
+         * one sub-scanline, as a fraction of the cell width.
+         */
+        private void addCoverage(double[] rowCoverage) {
+            int n = sortCrossings();
+            int numIntervals = 0;
+            int k = 0;
+            while (k < n) {
+                int shape = (int) (sortKeys[k] >>> 32);
+                int runLength = 0;
+                while (k < n && (int) (sortKeys[k] >>> 32) == shape) {
+                    runX[runLength++] = crossX[(int) sortKeys[k]];
+                    k++;
+                }
+                Arrays.sort(runX, 0, runLength);
+                for (int p = 0; p + 1 < runLength; p += 2) {
+                    if (numIntervals == intervalStarts.length) {
+                        intervalStarts = Arrays.copyOf(intervalStarts, 2 * numIntervals);
+                        intervalEnds = Arrays.copyOf(intervalEnds, 2 * numIntervals);
+                    }
+                    intervalStarts[numIntervals] = runX[p];
+                    intervalEnds[numIntervals] = runX[p + 1];
+                    numIntervals++;
+                }
+            }
+            if (numIntervals == 0) {
+                return;
+            }
+
+            // the intervals of different shapes may overlap. Sweeping the
+            // sorted starts and ends finds the extent of their union.
+            Arrays.sort(intervalStarts, 0, numIntervals);
+            Arrays.sort(intervalEnds, 0, numIntervals);
+            int depth = 0;
+            int e = 0;
+            double unionStart = 0;
+            for (int a = 0; a < numIntervals; a++) {
+                while (intervalEnds[e] < intervalStarts[a]) {
+                    depth--;
+                    e++;
+                    if (depth == 0) {
+                        addInterval(unionStart, intervalEnds[e - 1], rowCoverage);
+                    }
+                }
+                if (depth == 0) {
+                    unionStart = intervalStarts[a];
+                }
+                depth++;
+            }
+            addInterval(unionStart, intervalEnds[numIntervals - 1], rowCoverage);
+        }
+
+        private void addInterval(double xa, double xb, double[] rowCoverage) {
+            int c0 = Math.max(0, getColumn(xa));
+            int c1 = Math.min(cols - 1, getColumn(xb));
+            for (int c = c0; c <= c1; c++) {
+                double cellWest = west + c * cellSizeX;
+                double overlap = Math.min(xb, cellWest + cellSizeX) - Math.max(xa, cellWest);
+                if (overlap > 0) {
+                    rowCoverage[c] += overlap / cellSizeX;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,509 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.algorithms;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The link and junction topology of a raster stream network. The network is
+ * built from a streams raster, in which stream cells have values greater than
+ * zero, and a D8 (or Rho8) flow pointer raster. The rows of the two rasters
+ * are added in order, during which the number of stream cells flowing into
+ * each stream cell is counted by following each cell's pointer, rather than by
+ * examining all of its neighbours. Once every row has been added, the build
+ * method traces each link once, from its upstream end to the junction or
+ * outlet at its downstream end.
+ * <p>
+ * A link begins at a channel head (a stream cell with no inflowing stream
+ * cells) or at a confluence (a cell with two or more inflowing stream cells).
+ * If the network is split on value changes, a link also begins wherever the
+ * stream value differs from that of the cell flowing into it, which allows an
+ * existing stream link ID raster to be used as input. Links are numbered in the
+ * order that they are encountered while tracing downstream from each channel
+ * head in turn, with channel heads visited in row-major order. Each link
+ * stores the cells that it contains, its downstream link, the cell into which
+ * it drains, and its length, which includes the distance from its last cell to
+ * the cell into which it drains.
+ *
+ * @author johnlindsay
+ */
+public class StreamNetwork {
+
+    private static final int[] dX = new int[]{1, 1, 1, 0, -1, -1, -1, 0};
+    private static final int[] dY = new int[]{-1, 0, 1, 1, 1, 0, -1, -1};
+    private static final byte NOT_STREAM = -1;
+    private static final byte NO_FLOW = 8;
+    private static final byte BREAK_FLAG = 16;
+    private static final byte COUNT_MASK = 15;
+    private final int rows;
+    private final int cols;
+    private final boolean splitOnValueChange;
+    private final double[] gridLengths;
+    // flow direction (0-7) of each stream cell, NO_FLOW or NOT_STREAM
+    private final byte[][] dir;
+    // number of inflowing stream cells, plus BREAK_FLAG if the value changes
+    private final byte[][] inflow;
+    private int rowsAdded = 0;
+    private double[] previousValues;
+    private boolean built = false;
+    // link attributes
+    private int numLinks = 0;
+    private int[] linkFirstCell = new int[256];
+    private int[] linkNumCells = new int[256];
+    private int[] linkDownstream = new int[256];
+    private int[] linkOutletRow = new int[256];
+    private int[] linkOutletCol = new int[256];
+    private double[] linkLength = new double[256];
+    // cell attributes, stored contiguously for each link
+    private int numCells = 0;
+    private int[] cellRow = new int[1024];
+    private int[] cellCol = new int[1024];
+    private int[] cellLink = new int[1024];
+    // derived topology
+    private int[] upstreamStart;
+    private int[] upstreamLinks;
+    private int[] rowStart;
+    private int[] rowCells;
+
+    /**
+     * @param rows The number of rows in the rasters.
+     * @param cols The number of columns in the rasters.
+     * @param cellSizeX The grid cell width, used to calculate link lengths.
+     * @param cellSizeY The grid cell height.
+     * @param splitOnValueChange Whether a link begins wherever the stream
+     * value changes, e.g. when the input is a stream link ID raster.
+     */
+    public StreamNetwork(int rows, int cols, double cellSizeX, double cellSizeY,
+            boolean splitOnValueChange) {
+        this.rows = rows;
+        this.cols = cols;
+        this.splitOnValueChange = splitOnValueChange;
+        double diag = Math.sqrt(cellSizeX * cellSizeX + cellSizeY * cellSizeY);
+        gridLengths = new double[]{diag, cellSizeX, diag, cellSizeY, diag, cellSizeX, diag, cellSizeY};
+        dir = new byte[rows][];
+        inflow = new byte[rows][];
+    }
+
+    /**
+     * Adds a row of the streams and pointer rasters. Rows must be added in
+     * order, starting with row zero.
+     *
+     * @param row The row number.
+     * @param streamValues The values of the streams raster in this row.
+     * @param pointerValues The values of the flow pointer raster in this row.
+     */
+    public void addRow(int row, double[] streamValues, double[] pointerValues) {
+        if (row != rowsAdded) {
+            throw new IllegalStateException("Rows must be added in order.");
+        }
+        byte[] d = new byte[cols];
+        for (int col = 0; col < cols; col++) {
+            if (streamValues[col] > 0) {
+                d[col] = decodePointer(pointerValues[col]);
+            } else {
+                d[col] = NOT_STREAM;
+            }
+        }
+        dir[row] = d;
+        inflow[row] = new byte[cols];
+
+        // Cells can only be connected once both of their rows are present, so
+        // flows into the previous row and this row are counted now, as are
+        // flows from the previous row into this one.
+        for (int col = 0; col < cols; col++) {
+            if (d[col] >= 0 && d[col] < NO_FLOW && dY[d[col]] <= 0) {
+                connect(row, col, streamValues[col], row + dY[d[col]], col + dX[d[col]],
+                        dY[d[col]] < 0 ? previousValues : streamValues);
+            }
+        }
+        if (row > 0) {
+            byte[] pd = dir[row - 1];
+            for (int col = 0; col < cols; col++) {
+                if (pd[col] >= 0 && pd[col] < NO_FLOW && dY[pd[col]] > 0) {
+                    connect(row - 1, col, previousValues[col], row, col + dX[pd[col]], streamValues);
+                }
+            }
+        }
+        previousValues = splitOnValueChange ? streamValues.clone() : streamValues;
+        rowsAdded++;
+    }
+
+    private void connect(int row, int col, double value, int row2, int col2, double[] row2Values) {
+        if (row2 < 0 || col2 < 0 || col2 >= cols || dir[row2][col2] == NOT_STREAM) {
+            return;
+        }
+        byte n = inflow[row2][col2];
+        n++;
+        if (splitOnValueChange && row2Values[col2] != value) {
+            n |= BREAK_FLAG;
+        }
+        inflow[row2][col2] = n;
+    }
+
+    private static byte decodePointer(double flowDir) {
+        if (flowDir <= 0) {
+            return NO_FLOW;
+        }
+        int c = (int) (Math.log(flowDir) / Math.log(2) + 0.5);
+        if (c > 7 || (1 << c) != flowDir) {
+            throw new IllegalArgumentException("An unexpected value has "
+                    + "been identified in the pointer image. This tool "
+                    + "requires a pointer grid that has been created using "
+                    + "either the D8 or Rho8 tools.");
+        }
+        return (byte) c;
+    }
+
+    private boolean isStream(int row, int col) {
+        return row >= 0 && row < rows && col >= 0 && col < cols
+                && dir[row][col] != NOT_STREAM;
+    }
+
+    private boolean isLinkStart(int row, int col) {
+        byte n = inflow[row][col];
+        return (n & COUNT_MASK) != 1 || (n & BREAK_FLAG) != 0;
+    }
+
+    /**
+     * Traces the links of the network. Must be called after all rows have
+     * been added.
+     */
+    public void build() {
+        if (rowsAdded != rows) {
+            throw new IllegalStateException("Not all rows have been added.");
+        }
+        HashMap<Long, Integer> startLinks = new HashMap<>();
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < cols; col++) {
+                if (dir[row][col] == NOT_STREAM || (inflow[row][col] & COUNT_MASK) != 0) {
+                    continue;
+                }
+                // it's a channel head; trace downstream until an existing link
+                int link = newLink(row, col);
+                startLinks.put((long) row * cols + col, link);
+                int y = row;
+                int x = col;
+                while (link >= 0) {
+                    int next = -1;
+                    int c = dir[y][x];
+                    if (c == NO_FLOW) {
+                        linkOutletRow[link] = y;
+                        linkOutletCol[link] = x;
+                    } else {
+                        y += dY[c];
+                        x += dX[c];
+                        linkLength[link] += gridLengths[c];
+                        if (!isStream(y, x)) {
+                            linkOutletRow[link] = y;
+                            linkOutletCol[link] = x;
+                        } else if (isLinkStart(y, x)) {
+                            linkOutletRow[link] = y;
+                            linkOutletCol[link] = x;
+                            Long key = (long) y * cols + x;
+                            Integer existing = startLinks.get(key);
+                            if (existing != null) {
+                                linkDownstream[link] = existing;
+                            } else {
+                                next = newLink(y, x);
+                                startLinks.put(key, next);
+                                linkDownstream[link] = next;
+                            }
+                        } else {
+                            addCell(link, y, x);
+                            continue;
+                        }
+                    }
+                    link = next;
+                }
+            }
+        }
+        built = true;
+    }
+
+    private int newLink(int row, int col) {
+        if (numLinks == linkFirstCell.length) {
+            int capacity = numLinks * 2;
+            linkFirstCell = Arrays.copyOf(linkFirstCell, capacity);
+            linkNumCells = Arrays.copyOf(linkNumCells, capacity);
+            linkDownstream = Arrays.copyOf(linkDownstream, capacity);
+            linkOutletRow = Arrays.copyOf(linkOutletRow, capacity);
+            linkOutletCol = Arrays.copyOf(linkOutletCol, capacity);
+            linkLength = Arrays.copyOf(linkLength, capacity);
+        }
+        int link = numLinks++;
+        linkFirstCell[link] = numCells;
+        linkNumCells[link] = 0;
+        linkDownstream[link] = -1;
+        linkLength[link] = 0;
+        addCell(link, row, col);
+        return link;
+    }
+
+    private void addCell(int link, int row, int col) {
+        if (numCells == cellRow.length) {
+            int capacity = numCells * 2;
+            cellRow = Arrays.copyOf(cellRow, capacity);
+            cellCol = Arrays.copyOf(cellCol, capacity);
+            cellLink = Arrays.copyOf(cellLink, capacity);
+        }
+        cellRow[numCells] = row;
+        cellCol[numCells] = col;
+        cellLink[numCells] = link;
+        numCells++;
+        linkNumCells[link]++;
+    }
+
+    private void checkBuilt() {
+        if (!built) {
+            throw new IllegalStateException("The stream network has not been built.");
+        }
+    }
+
+    public int getNumberOfLinks() {
+        checkBuilt();
+        return numLinks;
+    }
+
+    public int getNumberOfCells() {
+        checkBuilt();
+        return numCells;
+    }
+
+    /**
+     * The flow direction of a cell, as an index into the neighbour offsets
+     * {1, 1, 1, 0, -1, -1, -1, 0} (columns) and {-1, 0, 1, 1, 1, 0, -1, -1}
+     * (rows), i.e. starting at the northeast and moving clockwise.
+     *
+     * @return the direction, or -1 if the cell is not a stream cell or has no
+     * downslope neighbour.
+     */
+    public int getFlowDirection(int row, int col) {
+        byte d = dir[row][col];
+        return d >= 0 && d < NO_FLOW ? d : -1;
+    }
+
+    /**
+     * @return the link that a link drains into, or -1 if it is an outlet link.
+     */
+    public int getDownstreamLink(int link) {
+        return linkDownstream[link];
+    }
+
+    /**
+     * @return the row of the cell into which a link drains. This is the first
+     * cell of the downstream link, a non-stream cell (which may lie outside of
+     * the grid) or, if the link's last cell has no flow direction, that cell.
+     */
+    public int getOutletRow(int link) {
+        return linkOutletRow[link];
+    }
+
+    public int getOutletColumn(int link) {
+        return linkOutletCol[link];
+    }
+
+    public double getLength(int link) {
+        return linkLength[link];
+    }
+
+    public int getNumberOfCells(int link) {
+        return linkNumCells[link];
+    }
+
+    /**
+     * @return the index of a link's most upstream cell. The cells of a link
+     * are numbered consecutively in the downstream direction.
+     */
+    public int getFirstCell(int link) {
+        return linkFirstCell[link];
+    }
+
+    public int getLastCell(int link) {
+        return linkFirstCell[link] + linkNumCells[link] - 1;
+    }
+
+    public int getCellRow(int cell) {
+        return cellRow[cell];
+    }
+
+    public int getCellColumn(int cell) {
+        return cellCol[cell];
+    }
+
+    public int getCellLink(int cell) {
+        return cellLink[cell];
+    }
+
+    /**
+     * @return the links that drain directly into a link.
+     */
+    public int[] getUpstreamLinks(int link) {
+        checkBuilt();
+        if (upstreamStart == null) {
+            upstreamStart = new int[numLinks + 1];
+            for (int i = 0; i < numLinks; i++) {
+                if (linkDownstream[i] >= 0) {
+                    upstreamStart[linkDownstream[i] + 1]++;
+                }
+            }
+            for (int i = 0; i < numLinks; i++) {
+                upstreamStart[i + 1] += upstreamStart[i];
+            }
+            upstreamLinks = new int[upstreamStart[numLinks]];
+            int[] fill = Arrays.copyOf(upstreamStart, numLinks);
+            for (int i = 0; i < numLinks; i++) {
+                if (linkDownstream[i] >= 0) {
+                    upstreamLinks[fill[linkDownstream[i]]++] = i;
+                }
+            }
+        }
+        return Arrays.copyOfRange(upstreamLinks, upstreamStart[link], upstreamStart[link + 1]);
+    }
+
+    /**
+     * @return the links ordered so that each link appears after all of the
+     * links upstream of it.
+     */
+    public int[] getUpstreamFirstOrder() {
+        checkBuilt();
+        int[] numUpstream = new int[numLinks];
+        for (int i = 0; i < numLinks; i++) {
+            if (linkDownstream[i] >= 0) {
+                numUpstream[linkDownstream[i]]++;
+            }
+        }
+        int[] ret = new int[numLinks];
+        int n = 0;
+        for (int i = 0; i < numLinks; i++) {
+            if (numUpstream[i] == 0) {
+                ret[n++] = i;
+            }
+        }
+        for (int k = 0; k < n; k++) {
+            int down = linkDownstream[ret[k]];
+            if (down >= 0 && --numUpstream[down] == 0) {
+                ret[n++] = down;
+            }
+        }
+        // links within a flow loop are never released; append them as found
+        if (n < numLinks) {
+            boolean[] added = new boolean[numLinks];
+            for (int k = 0; k < n; k++) {
+                added[ret[k]] = true;
+            }
+            for (int i = 0; i < numLinks; i++) {
+                if (!added[i]) {
+                    ret[n++] = i;
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return the Strahler order of each link.
+     */
+    public int[] getStrahlerOrder() {
+        int[] order = new int[numLinks];
+        int[] maxUpstream = new int[numLinks];
+        int[] numAtMax = new int[numLinks];
+        for (int link : getUpstreamFirstOrder()) {
+            if (maxUpstream[link] == 0) {
+                order[link] = 1;
+            } else {
+                order[link] = numAtMax[link] >= 2 ? maxUpstream[link] + 1 : maxUpstream[link];
+            }
+            int down = linkDownstream[link];
+            if (down >= 0) {
+                if (order[link] > maxUpstream[down]) {
+                    maxUpstream[down] = order[link];
+                    numAtMax[down] = 1;
+                } else if (order[link] == maxUpstream[down]) {
+                    numAtMax[down]++;
+                }
+            }
+        }
+        return order;
+    }
+
+    /**
+     * @return the Shreve magnitude of each link, i.e. the number of channel
+     * heads upstream of it.
+     */
+    public long[] getShreveMagnitude() {
+        long[] magnitude = new long[numLinks];
+        for (int link : getUpstreamFirstOrder()) {
+            if (magnitude[link] == 0) {
+                magnitude[link] = 1;
+            }
+            int down = linkDownstream[link];
+            if (down >= 0) {
+                magnitude[down] += magnitude[link];
+            }
+        }
+        return magnitude;
+    }
+
+    /**
+     * @return the indices of the link cells in a row.
+     */
+    public int[] getCellsInRow(int row) {
+        checkBuilt();
+        if (rowStart == null) {
+            rowStart = new int[rows + 1];
+            for (int i = 0; i < numCells; i++) {
+                rowStart[cellRow[i] + 1]++;
+            }
+            for (int r = 0; r < rows; r++) {
+                rowStart[r + 1] += rowStart[r];
+            }
+            rowCells = new int[numCells];
+            int[] fill = Arrays.copyOf(rowStart, rows);
+            for (int i = 0; i < numCells; i++) {
+                rowCells[fill[cellRow[i]]++] = i;
+            }
+        }
+        return Arrays.copyOfRange(rowCells, rowStart[row], rowStart[row + 1]);
+    }
+
+    /**
+     * Creates a row of output values in which each link cell is assigned the
+     * value of its link.
+     *
+     * @param row The row number.
+     * @param linkValues The value of each link.
+     * @param nonStreamValue The value assigned to cells that are not stream
+     * cells, usually NoData.
+     * @param unlinkedValue The value assigned to stream cells that don't
+     * belong to any link, which can only occur within a loop in the flow
+     * pointer raster.
+     * @return the row values.
+     */
+    public double[] getRowValues(int row, double[] linkValues, double nonStreamValue,
+            double unlinkedValue) {
+        double[] ret = new double[cols];
+        byte[] d = dir[row];
+        for (int col = 0; col < cols; col++) {
+            ret[col] = d[col] == NOT_STREAM ? nonStreamValue : unlinkedValue;
+        }
+        for (int cell : getCellsInRow(row)) {
+            ret[cellCol[cell]] = linkValues[cellLink[cell]];
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,621 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.algorithms;
+
+import java.util.Arrays;
+import whitebox.parallel.RowBands;
+
+/**
+ * Grids a set of scattered points from their Delaunay triangulation (see
+ * DelaunayTriangulation), i.e. a triangular irregular network (TIN). Rather
+ * than searching for the triangle that contains each grid cell, the
+ * triangles are rasterized directly: the cells whose centres lie within each
+ * triangle are found row by row from the triangle's edges. A cell is then
+ * either interpolated linearly, on the plane of its triangle, or by Sibson's
+ * natural-neighbour interpolation, which weights the vertices of the
+ * triangles whose circumcircles contain the cell centre by the area that a
+ * new point at the cell centre would take from their Voronoi cells (Watson,
+ * 1992). Where those triangles reach the edge of the TIN, the Voronoi cell of
+ * the new point is unbounded, and the natural-neighbour method falls back to
+ * linear interpolation.
+ * <p>
+ * Triangles with an edge longer than the maximum edge length are left out of
+ * the TIN, so the cells within them, like those outside the convex hull of
+ * the points, are given the NoData value. A finite maximum edge length also
+ * allows the grid to be interpolated in bands of rows without triangulating
+ * all of the points at once: each band is triangulated together with the
+ * points within a halo of at least the maximum edge length around it, and
+ * every triangle that a cell of the band depends upon is checked to belong
+ * to the triangulation of the whole set of points (see DelaunayStrips). The
+ * halo of a band is widened wherever that check fails, so the result is the
+ * same as that of interpolating from the whole triangulation. The bands are
+ * interpolated in parallel (see whitebox.parallel.RowBands).
+ * <p>
+ * The grid is defined by its north-west corner, cell size and dimensions, in
+ * the same way as a WhiteboxRaster, and the grid cell centres are calculated
+ * as in the interpolation plugins.
+ *
+ * @author johnlindsay
+ */
+public class TinGridder {
+
+    public enum Method {
+
+        LINEAR, NATURAL_NEIGHBOUR
+    }
+
+    // the status of a grid cell within a band
+    private static final byte EMPTY = 0;
+    private static final byte LONG = 1;
+    private static final byte PENDING = 2;
+    private static final byte DONE = 3;
+    private static final byte UNKNOWN = 0;
+    private static final byte FINAL = 1;
+    private static final byte NOT_FINAL = 2;
+
+    private final double[] x;
+    private final double[] y;
+    private final int numPoints;
+    private final double west;
+    private final double north;
+    private final double resolution;
+    private final int rows;
+    private final int columns;
+    private double maxEdgeLength = Double.POSITIVE_INFINITY;
+    private int bandHeight;
+    private DelaunayStrips strips;
+    // the number of buckets of the strips north of the first row
+    private int bucketOffset;
+    private double spacing;
+
+    /**
+     * Constructor.
+     *
+     * @param x The x coordinates of the points.
+     * @param y The y coordinates of the points.
+     * @param west The west edge of the grid.
+     * @param north The north edge of the grid.
+     * @param resolution The grid cell size.
+     * @param rows The number of rows in the grid.
+     * @param columns The number of columns in the grid.
+     */
+    public TinGridder(double[] x, double[] y, double west, double north,
+            double resolution, int rows, int columns) {
+        if (x.length != y.length) {
+            throw new IllegalArgumentException("The coordinate arrays must be the same length.");
+        }
+        if (!(resolution > 0) || rows < 1 || columns < 1) {
+            throw new IllegalArgumentException("The grid dimensions are not valid.");
+        }
+        this.x = x;
+        this.y = y;
+        this.numPoints = x.length;
+        this.west = west;
+        this.north = north;
+        this.resolution = resolution;
+        this.rows = rows;
+        this.columns = columns;
+        this.bandHeight = RowBands.defaultBandHeight(rows);
+        buildStrips();
+    }
+
+    public int getNumberOfRows() {
+        return rows;
+    }
+
+    public int getNumberOfColumns() {
+        return columns;
+    }
+
+    public double getMaximumEdgeLength() {
+        return maxEdgeLength;
+    }
+
+    /**
+     * Sets the length of the longest triangle edge that is interpolated
+     * across. Cells within triangles with a longer edge are given the NoData
+     * value. With no limit, all of the points are triangulated at once.
+     *
+     * @param maxEdgeLength The maximum edge length, or positive infinity for
+     * no limit.
+     */
+    public void setMaximumEdgeLength(double maxEdgeLength) {
+        this.maxEdgeLength = maxEdgeLength > 0 ? maxEdgeLength : Double.POSITIVE_INFINITY;
+    }
+
+    public void setBandHeight(int bandHeight) {
+        this.bandHeight = Math.max(1, bandHeight);
+    }
+
+    /*
+     * One bucket per grid row, with extra buckets above and below the grid
+     * for points beyond it.
+     */
+    private void buildStrips() {
+        double minX = west;
+        double maxX = west + columns * resolution;
+        double minY = north - rows * resolution;
+        double maxY = north;
+        for (int i = 0; i < numPoints; i++) {
+            minX = Math.min(minX, x[i]);
+            maxX = Math.max(maxX, x[i]);
+            minY = Math.min(minY, y[i]);
+            maxY = Math.max(maxY, y[i]);
+        }
+        bucketOffset = (int) Math.ceil((maxY - north) / resolution) + 1;
+        int below = (int) Math.ceil(((north - rows * resolution) - minY) / resolution) + 1;
+        double top = north + bucketOffset * resolution;
+        strips = new DelaunayStrips(x, y, top, resolution, bucketOffset + rows + below);
+        spacing = Math.sqrt((maxX - minX) * (maxY - minY) / Math.max(1, numPoints));
+    }
+
+    /**
+     * Interpolates the grid from the point values. The rows of the grid are
+     * passed to the consumer, in order and in bands, on the calling thread.
+     *
+     * @param z The value of each point.
+     * @param method The interpolation method.
+     * @param noData The value given to cells outside of the TIN.
+     * @param consumer Receives the interpolated rows.
+     * @return false if the consumer stopped the processing early.
+     * @throws Exception Any exception thrown by the consumer.
+     */
+    public boolean interpolate(final double[] z, final Method method, final double noData,
+            final RowBands.Consumer<double[][]> consumer) throws Exception {
+        if (z.length != numPoints) {
+            throw new IllegalArgumentException("There must be one value for each point.");
+        }
+        final int numBuckets = strips.getNumberOfBuckets();
+        final int halo;
+        if (maxEdgeLength < Double.POSITIVE_INFINITY) {
+            halo = (int) Math.min(numBuckets,
+                    Math.ceil(Math.max(maxEdgeLength, 3 * spacing) / resolution) + 1);
+        } else {
+            halo = numBuckets;
+        }
+        int height = halo < numBuckets ? Math.max(bandHeight, Math.min(2 * halo, rows)) : bandHeight;
+        return RowBands.process(rows, height, new RowBands.Task<double[][]>() {
+            @Override
+            public double[][] process(int startRow, int endRow) {
+                int h = halo;
+                while (true) {
+                    int b0 = Math.max(0, startRow + bucketOffset - h);
+                    int b1 = Math.min(numBuckets, endRow + bucketOffset + h);
+                    double[][] band = new Band(z, method, noData, startRow, endRow, b0, b1).grid();
+                    if (band != null) {
+                        return band;
+                    }
+                    h *= 2;
+                }
+            }
+        }, consumer);
+    }
+
+    /*
+     * The interpolation of a band of rows from the triangulation of the
+     * points of a strip of buckets.
+     */
+    private class Band {
+
+        final double[] z;
+        final Method method;
+        final double noData;
+        final int startRow;
+        final int endRow;
+        final DelaunayTriangulation dt;
+        final int startBucket;
+        final int endBucket;
+        // the grid, relative to the origin of the triangulation
+        final double localWest;
+        final double localNorth;
+        final double sqrMaxEdge;
+        final byte[] finality;
+        final byte[] length;
+        // the working storage of the natural-neighbour interpolation
+        int[] mark;
+        int stamp = 0;
+        int[] stack = new int[32];
+        int[] boundaryTriangle = new int[32];
+        int[] boundaryVertex = new int[32];
+        int numBoundary;
+
+        Band(double[] z, Method method, double noData, int startRow, int endRow,
+                int startBucket, int endBucket) {
+            this.z = z;
+            this.method = method;
+            this.noData = noData;
+            this.startRow = startRow;
+            this.endRow = endRow;
+            this.dt = strips.triangulate(startBucket, endBucket);
+            this.startBucket = startBucket;
+            this.endBucket = endBucket;
+            this.localWest = west - dt.getOriginX();
+            this.localNorth = north - dt.getOriginY();
+            this.sqrMaxEdge = maxEdgeLength < Double.POSITIVE_INFINITY
+                    ? maxEdgeLength * maxEdgeLength : Double.POSITIVE_INFINITY;
+            this.finality = new byte[dt.getNumberOfSlots()];
+            this.length = new byte[dt.getNumberOfSlots()];
+        }
+
+        /*
+         * Returns the rows of the band, or null if a cell depends on a
+         * triangle that might not belong to the whole triangulation.
+         */
+        double[][] grid() {
+            int numRows = endRow - startRow;
+            double[][] band = new double[numRows][columns];
+            byte[][] status = new byte[numRows][columns];
+            if (method == Method.NATURAL_NEIGHBOUR) {
+                mark = new int[dt.getNumberOfSlots()];
+            }
+            double[] xs = new double[3];
+            double[] ys = new double[3];
+            for (int t = 0; t < dt.getNumberOfSlots(); t++) {
+                if (!dt.isSolid(t)) {
+                    continue;
+                }
+                double minY = Double.POSITIVE_INFINITY;
+                double maxY = Double.NEGATIVE_INFINITY;
+                for (int k = 0; k < 3; k++) {
+                    int v = dt.getVertex(t, k);
+                    xs[k] = dt.getX(v);
+                    ys[k] = dt.getY(v);
+                    minY = Math.min(minY, ys[k]);
+                    maxY = Math.max(maxY, ys[k]);
+                }
+                // the rows whose cell centres may lie within the triangle,
+                // widened by one row against rounding
+                int r0 = (int) Math.max(startRow, Math.ceil((localNorth - maxY) / resolution - 0.5) - 1);
+                int r1 = (int) Math.min(endRow - 1, Math.floor((localNorth - minY) / resolution - 0.5) + 1);
+                if (r0 > r1) {
+                    continue;
+                }
+                byte cls;
+                if (isLong(t)) {
+                    cls = LONG;
+                } else {
+                    cls = isFinal(t) ? DONE : PENDING;
+                }
+                for (int row = r0; row <= r1; row++) {
+                    double yc = localNorth - (row + 0.5) * resolution;
+                    double xl = Double.POSITIVE_INFINITY;
+                    double xr = Double.NEGATIVE_INFINITY;
+                    for (int k = 0; k < 3; k++) {
+                        double xi = crossing(xs[k], ys[k], xs[(k + 1) % 3], ys[(k + 1) % 3], yc);
+                        if (!Double.isNaN(xi)) {
+                            xl = Math.min(xl, xi);
+                            xr = Math.max(xr, xi);
+                        }
+                        if (ys[k] == yc && ys[(k + 1) % 3] == yc) {
+                            xl = Math.min(xl, Math.min(xs[k], xs[(k + 1) % 3]));
+                            xr = Math.max(xr, Math.max(xs[k], xs[(k + 1) % 3]));
+                        }
+                    }
+                    if (xl > xr) {
+                        continue;
+                    }
+                    int c0 = (int) Math.max(0, Math.ceil((xl - localWest) / resolution - 0.5) - 1);
+                    int c1 = (int) Math.min(columns - 1, Math.floor((xr - localWest) / resolution - 0.5) + 1);
+                    byte[] st = status[row - startRow];
+                    double[] data = band[row - startRow];
+                    for (int col = c0; col <= c1; col++) {
+                        double xc = localWest + (col + 0.5) * resolution;
+                        if (xc < xl || xc > xr || st[col] >= cls || st[col] == DONE) {
+                            continue;
+                        }
+                        if (cls == DONE) {
+                            double value = method == Method.NATURAL_NEIGHBOUR
+                                    ? naturalNeighbour(t, xc, yc) : linear(t, xc, yc);
+                            if (Double.isNaN(value)) {
+                                st[col] = PENDING;
+                            } else {
+                                data[col] = value;
+                                st[col] = DONE;
+                            }
+                        } else {
+                            st[col] = cls;
+                        }
+                    }
+                }
+            }
+            for (int r = 0; r < numRows; r++) {
+                for (int col = 0; col < columns; col++) {
+                    if (status[r][col] == PENDING) {
+                        return null;
+                    }
+                    if (status[r][col] != DONE) {
+                        band[r][col] = noData;
+                    }
+                }
+            }
+            return band;
+        }
+
+        /*
+         * The x coordinate at which an edge crosses a row, or NaN. The edge
+         * is always taken from its southern end, so that the two triangles
+         * that share an edge find exactly the same crossing and no cell
+         * centre can fall between them.
+         */
+        private double crossing(double x1, double y1, double x2, double y2, double yc) {
+            if (y1 > y2 || (y1 == y2 && x1 > x2)) {
+                double tmp = x1;
+                x1 = x2;
+                x2 = tmp;
+                tmp = y1;
+                y1 = y2;
+                y2 = tmp;
+            }
+            if (yc < y1 || yc > y2 || y1 == y2) {
+                return Double.NaN;
+            }
+            if (yc == y1) {
+                return x1;
+            }
+            if (yc == y2) {
+                return x2;
+            }
+            return x1 + (yc - y1) * (x2 - x1) / (y2 - y1);
+        }
+
+        private boolean isLong(int t) {
+            if (length[t] == UNKNOWN) {
+                boolean isLong = false;
+                for (int k = 0; k < 3; k++) {
+                    int a = dt.getVertex(t, k);
+                    int b = dt.getVertex(t, (k + 1) % 3);
+                    double dx = dt.getX(a) - dt.getX(b);
+                    double dy = dt.getY(a) - dt.getY(b);
+                    if (dx * dx + dy * dy > sqrMaxEdge) {
+                        isLong = true;
+                    }
+                }
+                length[t] = isLong ? NOT_FINAL : FINAL;
+            }
+            return length[t] == NOT_FINAL;
+        }
+
+        private boolean isFinal(int t) {
+            if (finality[t] == UNKNOWN) {
+                finality[t] = strips.isFinal(dt, t, startBucket, endBucket) ? FINAL : NOT_FINAL;
+            }
+            return finality[t] == FINAL;
+        }
+
+        private double linear(int t, double xc, double yc) {
+            int k = first(t);
+            int a = dt.getVertex(t, k);
+            int b = dt.getVertex(t, (k + 1) % 3);
+            int c = dt.getVertex(t, (k + 2) % 3);
+            double ax = dt.getX(a);
+            double ay = dt.getY(a);
+            double bx = dt.getX(b) - ax;
+            double by = dt.getY(b) - ay;
+            double cx = dt.getX(c) - ax;
+            double cy = dt.getY(c) - ay;
+            double px = xc - ax;
+            double py = yc - ay;
+            double det = bx * cy - by * cx;
+            double wb = (px * cy - py * cx) / det;
+            double wc = (bx * py - by * px) / det;
+            double za = z[dt.getId(a)];
+            return za + wb * (z[dt.getId(b)] - za) + wc * (z[dt.getId(c)] - za);
+        }
+
+        /*
+         * Sibson's interpolation at a cell centre within the final triangle
+         * t, or NaN if it depends on a triangle that might not be final.
+         */
+        private double naturalNeighbour(int t, double qx, double qy) {
+            for (int k = 0; k < 3; k++) {
+                int v = dt.getVertex(t, k);
+                if (dt.getX(v) == qx && dt.getY(v) == qy) {
+                    return z[dt.getId(v)];
+                }
+            }
+
+            // the triangles whose circumcircles contain the cell centre
+            stamp += 2;
+            int inside = stamp;
+            int outside = stamp + 1;
+            int numStack = 0;
+            numBoundary = 0;
+            boolean open = false;
+            mark[t] = inside;
+            stack[numStack++] = t;
+            while (numStack > 0) {
+                int c = stack[--numStack];
+                for (int k = 0; k < 3; k++) {
+                    int n = dt.getNeighbour(c, k);
+                    if (mark[n] == inside) {
+                        continue;
+                    }
+                    if (mark[n] != outside) {
+                        if (dt.isSolid(n) && !isLong(n) && contains(n, qx, qy)) {
+                            if (!isFinal(n)) {
+                                return Double.NaN;
+                            }
+                            mark[n] = inside;
+                            if (numStack == stack.length) {
+                                stack = Arrays.copyOf(stack, 2 * numStack);
+                            }
+                            stack[numStack++] = n;
+                            continue;
+                        }
+                        mark[n] = outside;
+                    }
+                    int u = dt.getVertex(c, (k + 1) % 3);
+                    int w = dt.getVertex(c, (k + 2) % 3);
+                    if (dt.isSolid(n) && !isLong(n)) {
+                        // the neighbour must be final for the cell centre to
+                        // be known to lie outside its true circumcircle
+                        if (!isFinal(n)) {
+                            return Double.NaN;
+                        }
+                    } else {
+                        // A ghost or long neighbour is certain to have no
+                        // short counterpart in the whole triangulation if it
+                        // is final or if every point within the maximum edge
+                        // length of the edge belongs to the strip.
+                        if (!(dt.isSolid(n) && isFinal(n))
+                                && !(strips.isWithin(dt.getY(u), maxEdgeLength, startBucket, endBucket)
+                                && strips.isWithin(dt.getY(w), maxEdgeLength, startBucket, endBucket))) {
+                            return Double.NaN;
+                        }
+                        open = true;
+                    }
+                    if (numBoundary == boundaryTriangle.length) {
+                        boundaryTriangle = Arrays.copyOf(boundaryTriangle, 2 * numBoundary);
+                        boundaryVertex = Arrays.copyOf(boundaryVertex, 2 * numBoundary);
+                    }
+                    boundaryTriangle[numBoundary] = c;
+                    boundaryVertex[numBoundary] = u;
+                    numBoundary++;
+                }
+            }
+            if (open) {
+                return linear(t, qx, qy);
+            }
+
+            // in the order of the points, so that the sum does not depend on
+            // the strip that the cavity was found in
+            for (int i = 1; i < numBoundary; i++) {
+                int c = boundaryTriangle[i];
+                int v = boundaryVertex[i];
+                int j = i;
+                while (j > 0 && dt.getId(boundaryVertex[j - 1]) > dt.getId(v)) {
+                    boundaryTriangle[j] = boundaryTriangle[j - 1];
+                    boundaryVertex[j] = boundaryVertex[j - 1];
+                    j--;
+                }
+                boundaryTriangle[j] = c;
+                boundaryVertex[j] = v;
+            }
+
+            // The area taken from the Voronoi cell of each natural neighbour
+            // v is bounded by the circumcentres of the new triangles on
+            // either side of v and by those of the old triangles around v,
+            // from the cavity edge leaving v to the one entering it.
+            double sumWeights = 0;
+            double sumValues = 0;
+            double[] px = new double[8];
+            double[] py = new double[8];
+            double[] centre = new double[2];
+            for (int i = 0; i < numBoundary; i++) {
+                int c = boundaryTriangle[i];
+                int v = boundaryVertex[i];
+                int k = vertexIndex(c, v);
+                int w = dt.getVertex(c, (k + 1) % 3);
+                int n = 2;
+                while (true) {
+                    if (n == px.length) {
+                        px = Arrays.copyOf(px, 2 * n);
+                        py = Arrays.copyOf(py, 2 * n);
+                    }
+                    int f = first(c);
+                    circumcentre(dt.getVertex(c, f), dt.getVertex(c, (f + 1) % 3),
+                            dt.getVertex(c, (f + 2) % 3), qx, qy, centre);
+                    px[n] = centre[0];
+                    py[n] = centre[1];
+                    n++;
+                    k = vertexIndex(c, v);
+                    int next = dt.getNeighbour(c, (k + 1) % 3);
+                    if (mark[next] != inside) {
+                        break;
+                    }
+                    c = next;
+                }
+                int u = dt.getVertex(c, (k + 2) % 3);
+                newCircumcentre(u, v, qx, qy, centre);
+                px[0] = centre[0];
+                py[0] = centre[1];
+                newCircumcentre(v, w, qx, qy, centre);
+                px[1] = centre[0];
+                py[1] = centre[1];
+                double area = 0;
+                for (int j = 0; j < n; j++) {
+                    int j2 = (j + 1) % n;
+                    area += px[j] * py[j2] - px[j2] * py[j];
+                }
+                area = Math.abs(area) / 2;
+                sumWeights += area;
+                sumValues += area * z[dt.getId(v)];
+            }
+            double value = sumValues / sumWeights;
+            if (!(sumWeights > 0) || Double.isNaN(value) || Double.isInfinite(value)) {
+                return linear(t, qx, qy);
+            }
+            return value;
+        }
+
+        /*
+         * The position within a triangle of its vertex with the lowest point
+         * index. The calculations on a triangle start from this vertex, so
+         * that they do not depend on the strip that it was found in.
+         */
+        private int first(int t) {
+            int k = 0;
+            for (int j = 1; j < 3; j++) {
+                if (dt.getId(dt.getVertex(t, j)) < dt.getId(dt.getVertex(t, k))) {
+                    k = j;
+                }
+            }
+            return k;
+        }
+
+        private int vertexIndex(int t, int v) {
+            return dt.getVertex(t, 0) == v ? 0 : (dt.getVertex(t, 1) == v ? 1 : 2);
+        }
+
+        private boolean contains(int t, double qx, double qy) {
+            int a = dt.getVertex(t, 0);
+            int b = dt.getVertex(t, 1);
+            int c = dt.getVertex(t, 2);
+            return DelaunayTriangulation.inCircle(dt.getX(a), dt.getY(a), dt.getX(b), dt.getY(b),
+                    dt.getX(c), dt.getY(c), qx, qy) > 0;
+        }
+
+        // the circumcentre of a triangle, relative to the cell centre
+        private void circumcentre(int a, int b, int c, double qx, double qy, double[] centre) {
+            double ax = dt.getX(a) - qx;
+            double ay = dt.getY(a) - qy;
+            double dx = dt.getX(b) - qx - ax;
+            double dy = dt.getY(b) - qy - ay;
+            double ex = dt.getX(c) - qx - ax;
+            double ey = dt.getY(c) - qy - ay;
+            double det = 2 * (dx * ey - dy * ex);
+            double dd = dx * dx + dy * dy;
+            double ee = ex * ex + ey * ey;
+            centre[0] = ax + (ey * dd - dy * ee) / det;
+            centre[1] = ay + (dx * ee - ex * dd) / det;
+        }
+
+        // the circumcentre of the new triangle u, v and the cell centre,
+        // relative to the cell centre
+        private void newCircumcentre(int u, int v, double qx, double qy, double[] centre) {
+            double ux = dt.getX(u) - qx;
+            double uy = dt.getY(u) - qy;
+            double vx = dt.getX(v) - qx;
+            double vy = dt.getY(v) - qy;
+            double det = 2 * (ux * vy - uy * vx);
+            double uu = ux * ux + uy * uy;
+            double vv = vx * vx + vy * vy;
+            centre[0] = (vy * uu - uy * vv) / det;
+            centre[1] = (ux * vv - vx * uu) / det;
+        }
+    }
+}
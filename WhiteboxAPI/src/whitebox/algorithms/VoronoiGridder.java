@@ -0,0 +1,633 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.algorithms;
+
+import whitebox.parallel.RowBands;
+import whitebox.structures.StaticKdTree;
+
+/**
+ * Grids a set of scattered points by allocating each grid cell to the
+ * nearest point, i.e. by rasterizing the Voronoi diagram of the points. This
+ * is the basis of nearest-neighbour interpolation and of the discrete
+ * natural-neighbour (Sibson) interpolation of Park et al. (2006), which
+ * averages the nearest-neighbour values of all the cells whose nearest-point
+ * circles contain a cell.
+ * <p>
+ * Rather than searching a tree for every grid cell, the points are sorted
+ * into a coarse grid of buckets holding about two points each and an exact
+ * Euclidean distance transform of the occupied buckets is calculated. The
+ * nearest point to a grid cell must then lie in one of the occupied buckets
+ * in a narrow ring at the bucket distance of the cell, which is visited
+ * through a table of bucket offsets sorted by distance. The point distances
+ * are calculated from the exact point coordinates, so the allocation is
+ * identical to that of a nearest-neighbour search; equally distant points are
+ * resolved in favour of the one that was added first, except in the tree
+ * searches described below. Each row is allocated
+ * independently, so the rows of the grid are processed in parallel bands
+ * (see whitebox.parallel.RowBands). The ring widens with the distance to the
+ * data, so cells more than a few buckets from the nearest point, which occur
+ * only within gaps in the data, are found with a k-d tree instead. Where a
+ * maximum distance is set, most such cells are rejected without a search.
+ * <p>
+ * The grid is defined by its north-west corner, cell size and dimensions, in
+ * the same way as a WhiteboxRaster, and the grid cell centres are calculated
+ * as in the interpolation plugins.
+ *
+ * @author johnlindsay
+ */
+public class VoronoiGridder {
+
+    public enum Method {
+
+        NEAREST_NEIGHBOUR, NATURAL_NEIGHBOUR
+    }
+
+    // the bucket offsets visited by the ring search cover this many buckets;
+    // beyond it a tree search is quicker than visiting the ring
+    private static final int TABLE_RADIUS = 8;
+    private static final double SQRT2 = Math.sqrt(2);
+    private static final int[] offsetRows;
+    private static final int[] offsetCols;
+    private static final int[] offsetKeys;
+    private static final int[] keyStart;
+
+    static {
+        // The key of an offset is the squared distance, in buckets, between
+        // the nearest edges of two buckets with that offset, i.e. a lower
+        // bound of the distance between any two locations within them.
+        int maxKey = TABLE_RADIUS * TABLE_RADIUS;
+        int[] counts = new int[maxKey + 2];
+        for (int i = -TABLE_RADIUS - 1; i <= TABLE_RADIUS + 1; i++) {
+            for (int j = -TABLE_RADIUS - 1; j <= TABLE_RADIUS + 1; j++) {
+                int key = offsetKey(i, j);
+                if (key <= maxKey) {
+                    counts[key + 1]++;
+                }
+            }
+        }
+        for (int k = 1; k < counts.length; k++) {
+            counts[k] += counts[k - 1];
+        }
+        keyStart = counts.clone();
+        int n = counts[maxKey + 1];
+        offsetRows = new int[n];
+        offsetCols = new int[n];
+        offsetKeys = new int[n];
+        for (int i = -TABLE_RADIUS - 1; i <= TABLE_RADIUS + 1; i++) {
+            for (int j = -TABLE_RADIUS - 1; j <= TABLE_RADIUS + 1; j++) {
+                int key = offsetKey(i, j);
+                if (key <= maxKey) {
+                    int k = counts[key]++;
+                    offsetRows[k] = i;
+                    offsetCols[k] = j;
+                    offsetKeys[k] = key;
+                }
+            }
+        }
+    }
+
+    private static int offsetKey(int i, int j) {
+        int a = Math.max(0, Math.abs(i) - 1);
+        int b = Math.max(0, Math.abs(j) - 1);
+        return a * a + b * b;
+    }
+
+    private final double[] x;
+    private final double[] y;
+    private final int numPoints;
+    private final double west;
+    private final double north;
+    private final double resolution;
+    private final double halfResolution;
+    private final int rows;
+    private final int columns;
+    private double maxDist = Double.POSITIVE_INFINITY;
+    private double maxSqrDist = Double.POSITIVE_INFINITY;
+    private int bandHeight;
+
+    // the bucket grid
+    private double bucketWest;
+    private double bucketNorth;
+    private double bucketSize;
+    private int bucketRows;
+    private int bucketCols;
+    private int[] bucketStart;
+    private int[] bucketPoints;
+    private int[] bucketSqrDist;
+    private double maxNearestDist;
+    private volatile StaticKdTree farTree;
+
+    /**
+     * Constructor.
+     *
+     * @param x The x coordinates of the points.
+     * @param y The y coordinates of the points.
+     * @param west The west edge of the grid.
+     * @param north The north edge of the grid.
+     * @param resolution The grid cell size.
+     * @param rows The number of rows in the grid.
+     * @param columns The number of columns in the grid.
+     */
+    public VoronoiGridder(double[] x, double[] y, double west, double north,
+            double resolution, int rows, int columns) {
+        if (x.length != y.length) {
+            throw new IllegalArgumentException("The coordinate arrays must be the same length.");
+        }
+        if (!(resolution > 0) || rows < 1 || columns < 1) {
+            throw new IllegalArgumentException("The grid dimensions are not valid.");
+        }
+        this.x = x;
+        this.y = y;
+        this.numPoints = x.length;
+        this.west = west;
+        this.north = north;
+        this.resolution = resolution;
+        this.halfResolution = resolution / 2;
+        this.rows = rows;
+        this.columns = columns;
+        this.bandHeight = RowBands.defaultBandHeight(rows);
+        buildBuckets();
+    }
+
+    public int getNumberOfRows() {
+        return rows;
+    }
+
+    public int getNumberOfColumns() {
+        return columns;
+    }
+
+    public double getMaximumDistance() {
+        return maxDist;
+    }
+
+    /**
+     * Sets the distance beyond which grid cells are not allocated to a point.
+     * A cell is allocated only if its nearest point is strictly closer than
+     * this distance.
+     *
+     * @param maxDist The maximum distance, or positive infinity for no limit.
+     */
+    public void setMaximumDistance(double maxDist) {
+        this.maxDist = maxDist;
+        this.maxSqrDist = maxDist < Double.POSITIVE_INFINITY ? maxDist * maxDist
+                : Double.POSITIVE_INFINITY;
+    }
+
+    public void setBandHeight(int bandHeight) {
+        this.bandHeight = Math.max(1, bandHeight);
+    }
+
+    private void buildBuckets() {
+        double minX = west;
+        double maxX = west + columns * resolution;
+        double minY = north - rows * resolution;
+        double maxY = north;
+        for (int i = 0; i < numPoints; i++) {
+            if (x[i] < minX) {
+                minX = x[i];
+            }
+            if (x[i] > maxX) {
+                maxX = x[i];
+            }
+            if (y[i] < minY) {
+                minY = y[i];
+            }
+            if (y[i] > maxY) {
+                maxY = y[i];
+            }
+        }
+        double area = (maxX - minX) * (maxY - minY);
+        bucketSize = Math.sqrt(2 * area / Math.max(1, numPoints));
+        // one spare bucket on each side keeps rounding at the edges harmless
+        bucketWest = minX - bucketSize;
+        bucketNorth = maxY + bucketSize;
+        bucketCols = (int) Math.ceil((maxX - minX) / bucketSize) + 2;
+        bucketRows = (int) Math.ceil((maxY - minY) / bucketSize) + 2;
+        int numBuckets = bucketRows * bucketCols;
+
+        // a counting sort of the points by bucket, which keeps the points of
+        // each bucket in the order in which they were added
+        int[] pointBucket = new int[numPoints];
+        bucketStart = new int[numBuckets + 1];
+        for (int i = 0; i < numPoints; i++) {
+            int b = bucketRow(y[i]) * bucketCols + bucketCol(x[i]);
+            pointBucket[i] = b;
+            bucketStart[b + 1]++;
+        }
+        for (int b = 0; b < numBuckets; b++) {
+            bucketStart[b + 1] += bucketStart[b];
+        }
+        int[] next = new int[numBuckets];
+        System.arraycopy(bucketStart, 0, next, 0, numBuckets);
+        bucketPoints = new int[numPoints];
+        for (int i = 0; i < numPoints; i++) {
+            bucketPoints[next[pointBucket[i]]++] = i;
+        }
+
+        bucketSqrDist = distanceTransform();
+        int maxSqrDist = 0;
+        for (int d : bucketSqrDist) {
+            if (d > maxSqrDist) {
+                maxSqrDist = d;
+            }
+        }
+        maxNearestDist = (Math.sqrt(maxSqrDist) + SQRT2) * bucketSize;
+    }
+
+    private int bucketRow(double northing) {
+        int r = (int) ((bucketNorth - northing) / bucketSize);
+        return Math.max(0, Math.min(bucketRows - 1, r));
+    }
+
+    private int bucketCol(double easting) {
+        int c = (int) ((easting - bucketWest) / bucketSize);
+        return Math.max(0, Math.min(bucketCols - 1, c));
+    }
+
+    /*
+     * The exact squared Euclidean distance, in buckets, from the centre of
+     * each bucket to the centre of the nearest occupied bucket (Meijster et
+     * al., 2000), calculated column by column and then row by row.
+     */
+    private int[] distanceTransform() {
+        int numBuckets = bucketRows * bucketCols;
+        int[] g = new int[numBuckets];
+        int[] dist = new int[numBuckets];
+        if (numPoints == 0) {
+            return dist;
+        }
+        int inf = bucketRows + bucketCols;
+        for (int c = 0; c < bucketCols; c++) {
+            int d = inf;
+            for (int r = 0; r < bucketRows; r++) {
+                int b = r * bucketCols + c;
+                d = (bucketStart[b + 1] > bucketStart[b]) ? 0 : Math.min(inf, d + 1);
+                g[b] = d;
+            }
+            d = inf;
+            for (int r = bucketRows - 1; r >= 0; r--) {
+                int b = r * bucketCols + c;
+                d = (g[b] == 0) ? 0 : Math.min(inf, d + 1);
+                if (d < g[b]) {
+                    g[b] = d;
+                }
+            }
+        }
+        int[] s = new int[bucketCols];
+        int[] t = new int[bucketCols];
+        for (int r = 0; r < bucketRows; r++) {
+            int offset = r * bucketCols;
+            int q = 0;
+            s[0] = 0;
+            t[0] = 0;
+            for (int u = 1; u < bucketCols; u++) {
+                while (q >= 0 && f(t[q], s[q], g[offset + s[q]]) > f(t[q], u, g[offset + u])) {
+                    q--;
+                }
+                if (q < 0) {
+                    q = 0;
+                    s[0] = u;
+                } else {
+                    long w = sep(s[q], u, g[offset + s[q]], g[offset + u]);
+                    if (w < bucketCols) {
+                        q++;
+                        s[q] = u;
+                        t[q] = (int) w;
+                    }
+                }
+            }
+            for (int u = bucketCols - 1; u >= 0; u--) {
+                dist[offset + u] = (int) Math.min(Integer.MAX_VALUE, f(u, s[q], g[offset + s[q]]));
+                if (u == t[q]) {
+                    q--;
+                }
+            }
+        }
+        return dist;
+    }
+
+    private static long f(long u, long i, long gi) {
+        return (u - i) * (u - i) + gi * gi;
+    }
+
+    private static long sep(long i, long u, long gi, long gu) {
+        return 1 + Math.floorDiv(u * u - i * i + gu * gu - gi * gi, 2 * (u - i));
+    }
+
+    /**
+     * Finds the nearest point to each cell in a row of the grid. This method
+     * may be called from several threads at once.
+     *
+     * @param row The grid row.
+     * @param ids Receives the index of the nearest point to each cell, or -1
+     * if there is no point within the maximum distance.
+     * @param sqrDist Receives the squared distance to the nearest point, or
+     * positive infinity. May be null.
+     */
+    public void findNearest(int row, int[] ids, double[] sqrDist) {
+        double northing = (north - halfResolution) - (row * resolution);
+        int br = bucketRow(northing);
+        // a slightly reduced bucket size guards the search bounds against
+        // rounding in the bucket assignment of the points
+        double boundSize = bucketSize * (1 - 1e-9);
+        double boundSqrSize = boundSize * boundSize;
+        double slack = bucketSize * 1e-9;
+        double[] nearest = new double[2];
+        StaticKdTree.Neighbours farNeighbours = new StaticKdTree.Neighbours(1);
+        StaticKdTree tree = null;
+        for (int col = 0; col < columns; col++) {
+            double easting = (col * resolution) + (west + halfResolution);
+            int bc = bucketCol(easting);
+            int bestId = -1;
+            double best = Double.POSITIVE_INFINITY;
+            if (numPoints > 0) {
+                double d = Math.sqrt(bucketSqrDist[br * bucketCols + bc]);
+                if ((d - SQRT2) * bucketSize > maxDist * (1 + 1e-9)) {
+                    // no point can be within the maximum distance
+                } else if (d + SQRT2 > TABLE_RADIUS) {
+                    nearest[0] = easting;
+                    nearest[1] = northing;
+                    if (tree == null) {
+                        tree = getFarTree();
+                    }
+                    tree.nearestNeighbour(nearest, farNeighbours);
+                    bestId = farNeighbours.getIndex(0);
+                    best = farNeighbours.getSqrDistance(0);
+                } else {
+                    double t = Math.max(0, d - SQRT2);
+                    int k = keyStart[(int) (t * t)];
+                    for (; k < offsetKeys.length; k++) {
+                        if (offsetKeys[k] * boundSqrSize > best) {
+                            break;
+                        }
+                        int rr = br + offsetRows[k];
+                        int cc = bc + offsetCols[k];
+                        if (rr < 0 || rr >= bucketRows || cc < 0 || cc >= bucketCols) {
+                            continue;
+                        }
+                        int b = rr * bucketCols + cc;
+                        int start = bucketStart[b];
+                        int end = bucketStart[b + 1];
+                        if (start == end) {
+                            continue;
+                        }
+                        double left = bucketWest + cc * bucketSize - slack;
+                        double top = bucketNorth - rr * bucketSize + slack;
+                        double dx = Math.max(0, Math.max(left - easting, easting - (left + bucketSize + 2 * slack)));
+                        double dy = Math.max(0, Math.max(northing - top, (top - bucketSize - 2 * slack) - northing));
+                        if (dx * dx + dy * dy > best) {
+                            continue;
+                        }
+                        for (int n = start; n < end; n++) {
+                            int i = bucketPoints[n];
+                            double px = x[i] - easting;
+                            double py = y[i] - northing;
+                            double dist = py * py + px * px;
+                            if (dist < best || (dist == best && i < bestId)) {
+                                best = dist;
+                                bestId = i;
+                            }
+                        }
+                    }
+                }
+            }
+            if (best < maxSqrDist) {
+                ids[col] = bestId;
+                if (sqrDist != null) {
+                    sqrDist[col] = best;
+                }
+            } else {
+                ids[col] = -1;
+                if (sqrDist != null) {
+                    sqrDist[col] = Double.POSITIVE_INFINITY;
+                }
+            }
+        }
+    }
+
+    /*
+     * The tree is only built if a cell is beyond the offset table. Only its
+     * construction is synchronized, so once it exists the row workers don't
+     * contend for a lock.
+     */
+    private StaticKdTree getFarTree() {
+        StaticKdTree tree = farTree;
+        if (tree == null) {
+            synchronized (this) {
+                tree = farTree;
+                if (tree == null) {
+                    tree = new StaticKdTree(numPoints, x, y);
+                    farTree = tree;
+                }
+            }
+        }
+        return tree;
+    }
+
+    /**
+     * Interpolates the grid from the point values. The rows of the grid are
+     * passed to the consumer, in order and in bands, on the calling thread.
+     * <p>
+     * The natural-neighbour method adds the value of each cell's nearest
+     * point to every cell within its nearest-point circle and so needs to
+     * hold as many rows as the largest circle spans; setting a maximum
+     * distance bounds this.
+     *
+     * @param z The value of each point.
+     * @param method The interpolation method.
+     * @param noData The value given to cells that have no point within the
+     * maximum distance.
+     * @param consumer Receives the interpolated rows.
+     * @return false if the consumer stopped the processing early.
+     * @throws Exception Any exception thrown by the consumer.
+     */
+    public boolean interpolate(final double[] z, Method method, final double noData,
+            final RowBands.Consumer<double[][]> consumer) throws Exception {
+        if (z.length != numPoints) {
+            throw new IllegalArgumentException("There must be one value for each point.");
+        }
+        if (method == Method.NATURAL_NEIGHBOUR) {
+            return interpolateNaturalNeighbour(z, noData, consumer);
+        }
+        return RowBands.process(rows, bandHeight, new RowBands.Task<double[][]>() {
+            @Override
+            public double[][] process(int startRow, int endRow) {
+                int[] ids = new int[columns];
+                double[][] band = new double[endRow - startRow][columns];
+                for (int row = startRow; row < endRow; row++) {
+                    findNearest(row, ids, null);
+                    double[] data = band[row - startRow];
+                    for (int col = 0; col < columns; col++) {
+                        data[col] = ids[col] >= 0 ? z[ids[col]] : noData;
+                    }
+                }
+                return band;
+            }
+        }, consumer);
+    }
+
+    /*
+     * The nearest-neighbour value of each cell and the squared radius of its
+     * nearest-point circle, or a negative radius where there is no nearest
+     * point.
+     */
+    private static class Allocation {
+
+        final double[][] values;
+        final double[][] radii;
+
+        Allocation(int numRows, int numCols) {
+            values = new double[numRows][numCols];
+            radii = new double[numRows][numCols];
+        }
+    }
+
+    private boolean interpolateNaturalNeighbour(final double[] z, final double noData,
+            final RowBands.Consumer<double[][]> consumer) throws Exception {
+        final int span = (int) Math.ceil(Math.min(maxDist, maxNearestDist) / resolution);
+        // difference arrays of the sums and counts of the contributions to
+        // each row, and the allocations of the rows not yet passed to the
+        // consumer
+        final double[][] sums = new double[rows][];
+        final int[][] counts = new int[rows][];
+        final double[][] values = new double[rows][];
+        final double[][] radii = new double[rows][];
+        final int[] nextRow = new int[1];
+
+        return RowBands.process(rows, bandHeight, new RowBands.Task<Allocation>() {
+            @Override
+            public Allocation process(int startRow, int endRow) {
+                int[] ids = new int[columns];
+                double[] sqrDist = new double[columns];
+                Allocation a = new Allocation(endRow - startRow, columns);
+                for (int row = startRow; row < endRow; row++) {
+                    findNearest(row, ids, sqrDist);
+                    double[] v = a.values[row - startRow];
+                    double[] r = a.radii[row - startRow];
+                    for (int col = 0; col < columns; col++) {
+                        if (ids[col] >= 0) {
+                            v[col] = z[ids[col]];
+                            r[col] = sqrDist[col];
+                        } else {
+                            v[col] = noData;
+                            r[col] = -1;
+                        }
+                    }
+                }
+                return a;
+            }
+        }, new RowBands.Consumer<Allocation>() {
+            @Override
+            public boolean consume(int startRow, int endRow, Allocation a) throws Exception {
+                for (int row = startRow; row < endRow; row++) {
+                    values[row] = a.values[row - startRow];
+                    radii[row] = a.radii[row - startRow];
+                    for (int col = 0; col < columns; col++) {
+                        if (radii[row][col] >= 0) {
+                            scatter(row, col, radii[row][col], values[row][col], sums, counts);
+                        }
+                    }
+                }
+                // rows that are further than the largest circle from the
+                // rows still to come are complete
+                int finished = endRow < rows ? Math.max(0, endRow - span) : rows;
+                if (finished > nextRow[0]) {
+                    double[][] band = new double[finished - nextRow[0]][];
+                    for (int row = nextRow[0]; row < finished; row++) {
+                        band[row - nextRow[0]] = completeRow(values[row], radii[row],
+                                sums[row], counts[row]);
+                        values[row] = null;
+                        radii[row] = null;
+                        sums[row] = null;
+                        counts[row] = null;
+                    }
+                    int start = nextRow[0];
+                    nextRow[0] = finished;
+                    return consumer.consume(start, finished, band);
+                }
+                return true;
+            }
+        });
+    }
+
+    /*
+     * Adds a value to the cells whose centres are within the circle of the
+     * specified squared radius centred on a cell.
+     */
+    private void scatter(int row, int col, double sqrRadius, double value,
+            double[][] sums, int[][] counts) {
+        int maxOffset = (int) Math.floor(Math.sqrt(sqrRadius) / resolution);
+        while (sqr((maxOffset + 1) * resolution) <= sqrRadius) {
+            maxOffset++;
+        }
+        for (int dr = -maxOffset; dr <= maxOffset; dr++) {
+            int r = row + dr;
+            if (r < 0 || r >= rows) {
+                continue;
+            }
+            double dy = dr * resolution;
+            double remainder = sqrRadius - dy * dy;
+            if (remainder < 0) {
+                continue;
+            }
+            // the square root is only an estimate of the half-width, which
+            // is settled by the same test as the other cells
+            int w = (int) Math.floor(Math.sqrt(remainder) / resolution);
+            while (sqr((w + 1) * resolution) + dy * dy <= sqrRadius) {
+                w++;
+            }
+            while (w > 0 && sqr(w * resolution) + dy * dy > sqrRadius) {
+                w--;
+            }
+            int c0 = Math.max(0, col - w);
+            int c1 = Math.min(columns - 1, col + w);
+            if (sums[r] == null) {
+                sums[r] = new double[columns + 1];
+                counts[r] = new int[columns + 1];
+            }
+            sums[r][c0] += value;
+            sums[r][c1 + 1] -= value;
+            counts[r][c0]++;
+            counts[r][c1 + 1]--;
+        }
+    }
+
+    private static double sqr(double value) {
+        return value * value;
+    }
+
+    /*
+     * Sums the difference arrays of a row. Cells without a nearest point
+     * within the maximum distance keep the NoData value.
+     */
+    private double[] completeRow(double[] values, double[] radii, double[] rowSums,
+            int[] rowCounts) {
+        double sum = 0;
+        int count = 0;
+        for (int col = 0; col < columns; col++) {
+            if (rowSums != null) {
+                sum += rowSums[col];
+                count += rowCounts[col];
+            }
+            if (radii[col] >= 0 && count > 0) {
+                values[col] = sum / count;
+            }
+        }
+        return values;
+    }
+}
@@ -0,0 +1,443 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.geospatialfiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Holds the data files (.tas) of registered rasters in memory rather than on
+ * disk. This is used for the intermediate rasters of a workflow, which are
+ * written by one plugin and read by the next, so that they need not be
+ * written to and read back from disk. Plugins continue to refer to these
+ * rasters by file name; WhiteboxRaster directs reads and writes of a
+ * registered raster's data file here. The header file remains on disk.
+ * <p>
+ * The memory used is limited to a budget. When a registered raster would
+ * exceed the budget, or the Java heap is running short, the least recently
+ * used rasters that are not currently being read or written are spilled to
+ * their data files on disk. A raster that still doesn't fit is written to
+ * disk as usual. Rasters are only held in memory once they have been
+ * registered, so the store has no effect on other rasters.
+ *
+ * @author johnlindsay
+ */
+public class RasterMemoryStore {
+
+    private static final Object lock = new Object();
+    // in least recently used order
+    private static final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private static volatile boolean empty = true;
+    private static long budget = Runtime.getRuntime().maxMemory() / 4;
+    private static long memoryUsed = 0;
+
+    private RasterMemoryStore() {
+    }
+
+    private static class Entry {
+
+        final String dataFile;
+        byte[] data = null;
+        long size = 0;
+        boolean spilled = false;
+        int openChannels = 0;
+
+        Entry(String dataFile) {
+            this.dataFile = dataFile;
+        }
+    }
+
+    private static String key(String fileName) {
+        if (fileName.endsWith(".dep")) {
+            fileName = fileName.substring(0, fileName.length() - 4) + ".tas";
+        }
+        return new File(fileName).getAbsolutePath();
+    }
+
+    /**
+     * Sets the maximum amount of memory used to hold raster data.
+     *
+     * @param bytes The budget in bytes.
+     */
+    public static void setBudget(long bytes) {
+        synchronized (lock) {
+            budget = bytes;
+            makeRoom(0);
+        }
+    }
+
+    public static long getBudget() {
+        synchronized (lock) {
+            return budget;
+        }
+    }
+
+    /**
+     * @return the number of bytes of raster data currently held in memory.
+     */
+    public static long getMemoryUsed() {
+        synchronized (lock) {
+            return memoryUsed;
+        }
+    }
+
+    /**
+     * Registers a raster, so that its data will be held in memory when it is
+     * next created. A raster that already exists on disk is not loaded.
+     *
+     * @param headerFile The raster's header (.dep) file name.
+     */
+    public static void register(String headerFile) {
+        String key = key(headerFile);
+        synchronized (lock) {
+            if (!entries.containsKey(key)) {
+                Entry e = new Entry(key);
+                e.spilled = new File(key).exists();
+                entries.put(key, e);
+                empty = false;
+            }
+        }
+    }
+
+    /**
+     * @param headerFile The raster's header (.dep) file name.
+     * @return true if the raster's data are currently held in memory.
+     */
+    public static boolean isInMemory(String headerFile) {
+        if (empty) {
+            return false;
+        }
+        synchronized (lock) {
+            Entry e = entries.get(key(headerFile));
+            return e != null && e.data != null;
+        }
+    }
+
+    /**
+     * Writes a raster's data to disk, if they are held in memory, and
+     * unregisters it. Use this when an intermediate raster is to be kept.
+     *
+     * @param headerFile The raster's header (.dep) file name.
+     * @throws IOException if the data file cannot be written.
+     */
+    public static void persist(String headerFile) throws IOException {
+        synchronized (lock) {
+            Entry e = entries.get(key(headerFile));
+            if (e == null) {
+                return;
+            }
+            waitUntilClosed(e);
+            spill(e);
+            entries.remove(e.dataFile);
+            empty = entries.isEmpty();
+        }
+    }
+
+    /**
+     * Unregisters a raster and deletes it, both from memory and from disk,
+     * along with its header and statistics files.
+     *
+     * @param headerFile The raster's header (.dep) file name.
+     */
+    public static void delete(String headerFile) {
+        String key = key(headerFile);
+        synchronized (lock) {
+            Entry e = entries.remove(key);
+            if (e != null) {
+                waitUntilClosed(e);
+                free(e);
+            }
+            empty = entries.isEmpty();
+        }
+        String base = key.substring(0, key.length() - 4);
+        new File(base + ".dep").delete();
+        new File(base + ".tas").delete();
+        new File(base + ".wstat").delete();
+    }
+
+    private static void waitUntilClosed(Entry e) {
+        boolean interrupted = false;
+        while (e.openChannels > 0) {
+            try {
+                lock.wait();
+            } catch (InterruptedException ie) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void free(Entry e) {
+        if (e.data != null) {
+            memoryUsed -= e.data.length;
+            e.data = null;
+        }
+        e.size = 0;
+    }
+
+    /*
+     * Writes an entry to its data file and releases its memory. Called with
+     * the lock held and no channels open on the entry.
+     */
+    private static void spill(Entry e) throws IOException {
+        if (e.data != null) {
+            try (RandomAccessFile raf = new RandomAccessFile(e.dataFile, "rw")) {
+                raf.setLength(0);
+                raf.write(e.data, 0, (int) e.size);
+            }
+            free(e);
+        }
+        e.spilled = true;
+    }
+
+    /*
+     * Spills idle entries, least recently used first, until the requested
+     * number of bytes fits within the budget and the available heap.
+     */
+    private static boolean makeRoom(long bytes) {
+        Iterator<Entry> it = entries.values().iterator();
+        while (!fits(bytes) && it.hasNext()) {
+            Entry e = it.next();
+            if (e.data != null && e.openChannels == 0) {
+                try {
+                    spill(e);
+                } catch (IOException ioe) {
+                    // keep it in memory
+                }
+            }
+        }
+        return fits(bytes);
+    }
+
+    private static boolean fits(long bytes) {
+        if (memoryUsed + bytes > budget) {
+            return false;
+        }
+        Runtime rt = Runtime.getRuntime();
+        long available = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+        // leave the plugins at least as much heap as the raster itself
+        return bytes == 0 || available > 2 * bytes;
+    }
+
+    /**
+     * Whether a data file exists, either in memory or on disk.
+     */
+    static boolean exists(String dataFile) {
+        if (!empty) {
+            synchronized (lock) {
+                Entry e = entries.get(key(dataFile));
+                if (e != null && !e.spilled) {
+                    return e.data != null;
+                }
+            }
+        }
+        return new File(dataFile).exists();
+    }
+
+    /**
+     * The length of a data file, either in memory or on disk.
+     */
+    static long length(String dataFile) {
+        if (!empty) {
+            synchronized (lock) {
+                Entry e = entries.get(key(dataFile));
+                if (e != null && !e.spilled) {
+                    return e.size;
+                }
+            }
+        }
+        return new File(dataFile).length();
+    }
+
+    /**
+     * Deletes a data file, either from memory or from disk. A registered
+     * raster stays registered, so that it is held in memory when it is
+     * recreated.
+     */
+    static void deleteDataFile(String dataFile) {
+        if (!empty) {
+            synchronized (lock) {
+                Entry e = entries.get(key(dataFile));
+                if (e != null) {
+                    waitUntilClosed(e);
+                    free(e);
+                    e.spilled = false;
+                }
+            }
+        }
+        new File(dataFile).delete();
+    }
+
+    /**
+     * Opens a channel on a data file, which is in memory for a registered
+     * raster that fits, and on disk otherwise.
+     *
+     * @param dataFile The data file name.
+     * @param write True if the channel will be written.
+     * @param expectedSize The full size of the data file, in bytes.
+     */
+    static SeekableByteChannel open(String dataFile, boolean write, long expectedSize) throws IOException {
+        if (!empty) {
+            synchronized (lock) {
+                Entry e = entries.get(key(dataFile));
+                if (e != null && !e.spilled) {
+                    if (e.data == null) {
+                        if (!write) {
+                            throw new IOException("The file " + dataFile + " does not exist.");
+                        }
+                        if (expectedSize <= Integer.MAX_VALUE - 8 && makeRoom(expectedSize)) {
+                            e.data = new byte[(int) expectedSize];
+                            memoryUsed += expectedSize;
+                        } else {
+                            e.spilled = true;
+                        }
+                    }
+                    if (!e.spilled) {
+                        e.openChannels++;
+                        return new MemoryChannel(e);
+                    }
+                }
+            }
+        }
+        return new RandomAccessFile(dataFile, write ? "rw" : "r").getChannel();
+    }
+
+    /**
+     * Forces any writes to a channel returned by open to the storage device.
+     */
+    static void force(SeekableByteChannel channel) throws IOException {
+        if (channel instanceof FileChannel) {
+            ((FileChannel) channel).force(false);
+        }
+    }
+
+    /*
+     * A channel over an entry's data. Each channel has its own position, so
+     * several threads may read a raster at once.
+     */
+    private static class MemoryChannel implements SeekableByteChannel {
+
+        private final Entry entry;
+        private long position = 0;
+        private boolean open = true;
+
+        MemoryChannel(Entry entry) {
+            this.entry = entry;
+        }
+
+        private void checkOpen() throws IOException {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            checkOpen();
+            synchronized (entry) {
+                if (position >= entry.size) {
+                    return -1;
+                }
+                int n = (int) Math.min(dst.remaining(), entry.size - position);
+                dst.put(entry.data, (int) position, n);
+                position += n;
+                return n;
+            }
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            checkOpen();
+            synchronized (entry) {
+                int n = src.remaining();
+                long end = position + n;
+                if (end > entry.data.length) {
+                    throw new IOException("Write beyond the end of the raster data file " + entry.dataFile);
+                }
+                src.get(entry.data, (int) position, n);
+                position = end;
+                if (end > entry.size) {
+                    entry.size = end;
+                }
+                return n;
+            }
+        }
+
+        @Override
+        public long position() throws IOException {
+            checkOpen();
+            return position;
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition) throws IOException {
+            checkOpen();
+            if (newPosition < 0) {
+                throw new IllegalArgumentException();
+            }
+            position = newPosition;
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            checkOpen();
+            synchronized (entry) {
+                return entry.size;
+            }
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) throws IOException {
+            checkOpen();
+            synchronized (entry) {
+                if (size < entry.size) {
+                    entry.size = size;
+                }
+            }
+            if (position > size) {
+                position = size;
+            }
+            return this;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            if (open) {
+                open = false;
+                synchronized (lock) {
+                    entry.openChannels--;
+                    lock.notifyAll();
+                }
+            }
+        }
+    }
+}
@@ -225,7 +225,7 @@ public class ShapeFile {
         return st[i];
     }
 
-    private int getIntFromShapeType(ShapeType st) {
+    static int getIntFromShapeType(ShapeType st) {
         switch (st) {
             case NULLSHAPE:
                 return 0;
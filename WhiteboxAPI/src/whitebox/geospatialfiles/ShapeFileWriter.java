@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.geospatialfiles;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import whitebox.utilities.FileUtilities;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import whitebox.geospatialfiles.shapefile.Geometry;
+import whitebox.geospatialfiles.shapefile.ShapeFileRecord;
+import whitebox.geospatialfiles.shapefile.ShapeType;
+import whitebox.geospatialfiles.shapefile.ShapeTypeDimension;
+import whitebox.geospatialfiles.shapefile.attributes.DBFField;
+import whitebox.geospatialfiles.shapefile.attributes.DBFWriter;
+import whitebox.structures.BoundingBox;
+import whitebox.utilities.ByteSwapper;
+
+/**
+ * Writes a shapefile one record at a time. Unlike ShapeFile, which holds all
+ * of its records in memory until it is written, each record is appended to
+ * the .shp, .shx and .dbf files as soon as it is added, and the file headers
+ * are completed when the writer is closed. This suits tools that generate
+ * very large numbers of features. Only the two-dimensional shape types
+ * (point, multipoint, polyline and polygon) are supported.
+ *
+ * @author johnlindsay
+ */
+public class ShapeFileWriter {
+
+    private final String fileName;
+    private final String indexFile;
+    private final String projectionFile;
+    private final ShapeType shapeType;
+    private final OutputStream shp;
+    private final OutputStream shx;
+    private final DBFWriter dbf;
+    private int numRecs = 0;
+    private long shpPosition = 100; // in bytes, after the file header
+    private double xMin = Float.POSITIVE_INFINITY;
+    private double yMin = Float.POSITIVE_INFINITY;
+    private double xMax = Float.NEGATIVE_INFINITY;
+    private double yMax = Float.NEGATIVE_INFINITY;
+    private boolean closed = false;
+
+    /**
+     * Creates the shapefile, deleting any existing shapefile of the same
+     * name.
+     *
+     * @param fileName The name of the .shp file.
+     * @param shapeType The shape type, which must be two-dimensional.
+     * @param fields The fields of the attribute table.
+     * @throws IOException If the files cannot be created.
+     */
+    public ShapeFileWriter(String fileName, ShapeType shapeType, DBFField[] fields) throws IOException {
+        if (shapeType.getDimension() != ShapeTypeDimension.XY) {
+            throw new IllegalArgumentException("Only two-dimensional shape types can be streamed.");
+        }
+        this.fileName = fileName;
+        this.shapeType = shapeType;
+        int extensionIndex = fileName.lastIndexOf(".");
+        indexFile = fileName.substring(0, extensionIndex) + ".shx";
+        String databaseFile = fileName.substring(0, extensionIndex) + ".dbf";
+        projectionFile = fileName.substring(0, extensionIndex) + ".prj";
+        new File(fileName).delete();
+        new File(indexFile).delete();
+        new File(databaseFile).delete();
+
+        // the headers are written again once the records are known
+        shp = new BufferedOutputStream(new FileOutputStream(fileName));
+        shp.write(new byte[100]);
+        shx = new BufferedOutputStream(new FileOutputStream(indexFile));
+        shx.write(new byte[100]);
+        dbf = new DBFWriter(new File(databaseFile)); // in sync mode
+        dbf.setFields(fields);
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public int getNumberOfRecords() {
+        return numRecs;
+    }
+
+    /**
+     * Copies the projection (.prj) file of another shapefile, if it has one.
+     *
+     * @param otherShapeFile The shapefile whose projection is used.
+     * @throws IOException If the projection file cannot be copied.
+     */
+    public void setProjectionStringFromOtherShapefile(ShapeFile otherShapeFile) throws IOException {
+        File otherFile = new File(otherShapeFile.getProjectionFile());
+        if (otherFile.exists()) {
+            FileUtilities.copyFile(otherFile, new File(projectionFile));
+        }
+    }
+
+    /**
+     * Appends a record to the shapefile.
+     *
+     * @param recordGeometry The geometry, which must be of the shapefile's
+     * shape type.
+     * @param rowData The attributes of the record.
+     * @throws IOException If the record cannot be written.
+     */
+    public void addRecord(Geometry recordGeometry, Object[] rowData) throws IOException {
+        if (recordGeometry.getShapeType() != shapeType) {
+            throw new IllegalArgumentException("The geometry does not match the shape type of the shapefile.");
+        }
+        numRecs++;
+        int contentLength = (4 + recordGeometry.getLength()) / 2;
+        ShapeFileRecord sfr = new ShapeFileRecord(numRecs, contentLength,
+                shapeType, recordGeometry);
+        shp.write(sfr.toBytes());
+
+        ByteBuffer buf = ByteBuffer.allocate(8);
+        buf.order(ByteOrder.BIG_ENDIAN);
+        buf.putInt(0, (int) (shpPosition / 2));
+        buf.putInt(4, contentLength);
+        shx.write(buf.array());
+        shpPosition += sfr.getLength();
+
+        dbf.addRecord(rowData);
+
+        // update the min and max coordinates
+        double recXMin, recYMin, recXMax, recYMax;
+        if (shapeType == ShapeType.POINT) {
+            double[][] points = recordGeometry.getPoints();
+            recXMin = points[0][0];
+            recYMin = points[0][1];
+            recXMax = recXMin;
+            recYMax = recYMin;
+        } else {
+            BoundingBox box = recordGeometry.getBox();
+            recXMin = box.getMinX();
+            recYMin = box.getMinY();
+            recXMax = box.getMaxX();
+            recYMax = box.getMaxY();
+        }
+        if (recXMin < xMin) {
+            xMin = recXMin;
+        }
+        if (recYMin < yMin) {
+            yMin = recYMin;
+        }
+        if (recXMax > xMax) {
+            xMax = recXMax;
+        }
+        if (recYMax > yMax) {
+            yMax = recYMax;
+        }
+    }
+
+    /**
+     * Completes the file headers and closes the files.
+     *
+     * @throws IOException If the files cannot be completed.
+     */
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        shp.close();
+        shx.close();
+        dbf.write();
+        writeHeader(fileName, (int) (shpPosition / 2));
+        writeHeader(indexFile, (100 + 8 * numRecs) / 2);
+    }
+
+    /*
+     * Writes the 100-byte header, which is the same for the .shp and .shx
+     * files apart from the file length. The file code and length are big
+     * endian and the rest of the header is little endian.
+     */
+    private void writeHeader(String file, int fileLength) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(100);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(0, ByteSwapper.swap(9994));
+        buf.putInt(24, ByteSwapper.swap(fileLength));
+        buf.putInt(28, 1000);
+        buf.putInt(32, ShapeFile.getIntFromShapeType(shapeType));
+        // a file without records has no extent; the bounds are written as 0
+        if (xMin <= xMax) {
+            buf.putDouble(36, xMin);
+            buf.putDouble(44, yMin);
+            buf.putDouble(52, xMax);
+            buf.putDouble(60, yMax);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(0);
+            raf.write(buf.array());
+        }
+    }
+}
@@ -17,13 +17,13 @@
 package whitebox.geospatialfiles;
 
 import java.io.File;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.DoubleBuffer;
 import java.nio.FloatBuffer;
 import java.nio.ShortBuffer;
-import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
 import java.util.Arrays;
+import whitebox.stats.StreamingStatistics;
 
 /**
  * The whiteboxRaster is used to manipulate Whitebox GAT raster files (.dep and
@@ -42,6 +42,16 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
     private long blockEndingCell = -1;
     private double initialValue;
     private boolean isDirty = false;
+    private boolean dataChanged = false;
+    // The cells of a new raster are usually written once each, in order. As
+    // long as that holds, the statistics of the values written so far are
+    // accumulated for cells 0 to writtenEnd - 1, so that close() doesn't have
+    // to scan the data file for them. writtenEnd is -1 once the statistics
+    // are unreliable.
+    private long writtenEnd = -1;
+    private StreamingStatistics writtenStats;
+    private double writtenNoData;
+    private double[] writtenBuffer;
     /**
      * Set to false if the header and data files (.dep and .tas) should be
      * deleted when the object is closed.
@@ -114,10 +124,10 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
         statsFile = headerFile.replace(".dep", ".wstat");
         File f1 = new File(this.headerFile);
         f1.delete();
-        f1 = new File(this.dataFile);
-        f1.delete();
+        deleteDataFile();
         f1 = new File(this.statsFile);
         f1.delete();
+        writtenEnd = 0;
         initialValue = InitialValue;
         setFileAccess(FileAccess);
         setPropertiesUsingAnotherRaster(BaseRasterHeader, dataType);
@@ -147,10 +157,10 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
         statsFile = headerFile.replace(".dep", ".wstat");
         File f1 = new File(this.headerFile);
         f1.delete();
-        f1 = new File(this.dataFile);
-        f1.delete();
+        deleteDataFile();
         f1 = new File(this.statsFile);
         f1.delete();
+        writtenEnd = 0;
         initialValue = InitialValue;
         setFileAccess(FileAccess);
         setBufferSize(BufferSize);
@@ -166,10 +176,10 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
         statsFile = headerFile.replace(".dep", ".wstat");
         File f1 = new File(this.headerFile);
         f1.delete();
-        f1 = new File(this.dataFile);
-        f1.delete();
+        deleteDataFile();
         f1 = new File(this.statsFile);
         f1.delete();
+        writtenEnd = 0;
 
         this.north = north;
         this.south = south;
@@ -383,20 +393,24 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
             minimumValue = min;
         }
 
-        RandomAccessFile rOut = null;
-        FileChannel outChannel = null;
+        SeekableByteChannel outChannel = null;
         ByteBuffer buf = null;
         try {
             // See if the data file exists.
-            File file = new File(dataFile);
-            if (!file.exists()) {
+            if (!dataFileExists()) {
                 createNewDataFile();
             }
-            long startingCell = row * numberColumns;
+            long startingCell = (long) row * numberColumns;
             long endingCell = startingCell + numberColumns - 1;
 
-            rOut = new RandomAccessFile(dataFile, "rw");
-            outChannel = rOut.getChannel();
+            if (grid != null && startingCell <= blockEndingCell && endingCell >= blockStartingCell) {
+                // the block in memory no longer matches the file
+                writtenEnd = -1;
+            }
+            trackWrittenValues(startingCell, vals, numberColumns);
+            dataChanged = true;
+
+            outChannel = openDataFile(true);
             outChannel.position(startingCell * cellSizeInBytes);
             int writeLengthInCells = (int) (endingCell - startingCell + 1);
 
@@ -447,15 +461,9 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
             System.err.println(e.getStackTrace());
         } finally {
             buf = null;
-            if (rOut != null) {
-                try {
-                    rOut.close();
-                } catch (Exception e) {
-                }
-            }
             if (outChannel != null) {
                 try {
-                    outChannel.force(false);
+                    RasterMemoryStore.force(outChannel);
                     outChannel.close();
                 } catch (Exception e) {
                 }
@@ -617,6 +625,9 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
             if (grid == null) {
                 setBlockData();
             }
+            if (cellNum < writtenEnd) {
+                writtenEnd = -1;
+            }
             grid[(int) (cellNum - blockStartingCell)] = value;
             isDirty = true;
         }
@@ -674,6 +685,9 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
                 readDataBlock();
             }
 
+            if (cellNum < writtenEnd) {
+                writtenEnd = -1;
+            }
             grid[(int) (cellNum - blockStartingCell)] += value;
             isDirty = true;
         }
@@ -725,6 +739,9 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
                 readDataBlock();
             }
 
+            if (cellNum < writtenEnd) {
+                writtenEnd = -1;
+            }
             grid[(int) (cellNum - blockStartingCell)]++;
             isDirty = true;
         }
@@ -777,6 +794,9 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
                 readDataBlock();
             }
 
+            if (cellNum < writtenEnd) {
+                writtenEnd = -1;
+            }
             grid[(int) (cellNum - blockStartingCell)] -= value;
             isDirty = true;
         }
@@ -828,6 +848,9 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
                 readDataBlock();
             }
 
+            if (cellNum < writtenEnd) {
+                writtenEnd = -1;
+            }
             grid[(int) (cellNum - blockStartingCell)]--;
             isDirty = true;
         }
@@ -877,18 +900,16 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
 
     public void reinitialize(double initialValue) {
         this.initialValue = initialValue;
+        writtenEnd = -1;
 
-        // See if the data file exists.
-        File file = new File(dataFile);
-        file.delete();
+        deleteDataFile();
         createNewDataFile();
 
     }
 
     public void createNewDataFile() {
-        RandomAccessFile rOut = null;
         ByteBuffer buf = null;
-        FileChannel outChannel = null;
+        SeekableByteChannel outChannel = null;
         try {
             long numberCells = (long) ((long) (numberRows) * numberColumns);
             int writeLength = 2000000;
@@ -897,9 +918,7 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
             }
             long numCellsWritten = 0;
 
-            rOut = new RandomAccessFile(dataFile, "rws");
-
-            outChannel = rOut.getChannel();
+            outChannel = openDataFile(true);
             outChannel.position(0);
 
             buf = ByteBuffer.allocateDirect(cellSizeInBytes * writeLength);
@@ -1007,32 +1026,24 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
         } finally {
             if (outChannel != null) {
                 try {
-                    outChannel.force(false);
+                    RasterMemoryStore.force(outChannel);
                     outChannel.close();
                 } catch (Exception e) {
                     System.out.println(e.getMessage());
                 }
             }
             buf = null;
-            if (rOut != null) {
-                try {
-                    rOut.close();
-                } catch (Exception e) {
-                }
-            }
         }
 
     }
 
     private void readDataBlock() {
-        RandomAccessFile rIn = null;
-        FileChannel inChannel = null;
+        SeekableByteChannel inChannel = null;
         ByteBuffer buf = null;
         try {
 
             // See if the data file exists.
-            File file = new File(dataFile);
-            if (!file.exists()) {
+            if (!dataFileExists()) {
                 createNewDataFile();
             }
 
@@ -1047,9 +1058,7 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
             int readLengthInCells = (int) (blockEndingCell - blockStartingCell + 1);
             buf = ByteBuffer.allocate((int) (readLengthInCells * cellSizeInBytes));
 
-            rIn = new RandomAccessFile(dataFile, "r");
-
-            inChannel = rIn.getChannel();
+            inChannel = openDataFile(false);
 
             inChannel.position(blockStartingCell * cellSizeInBytes);
             inChannel.read(buf);
@@ -1099,12 +1108,6 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
                 System.err.println(t.getMessage());
             }
         } finally {
-            if (rIn != null) {
-                try {
-                    rIn.close();
-                } catch (Exception e) {
-                }
-            }
             if (inChannel != null) {
                 try {
                     inChannel.close();
@@ -1116,6 +1119,65 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
 
     }
 
+    @Override
+    public void setPixelValue(int row, int column, double value) {
+        writtenEnd = -1;
+        dataChanged = true;
+        super.setPixelValue(row, column, value);
+    }
+
+    /*
+     * Adds the cells startingCell to startingCell + length - 1, which are
+     * about to be written to the data file, to the statistics of the written
+     * values. Values are converted as they will be stored, so that the
+     * statistics match what is read back. Integer and byte rasters also get a
+     * histogram with a bin for every value that the type can hold, which can
+     * be trimmed to the range of the data once it is known.
+     */
+    private void trackWrittenValues(long startingCell, double[] values, int length) {
+        if (writtenEnd < 0) {
+            return;
+        }
+        if (startingCell > writtenEnd || (writtenEnd > 0 && noDataValue != writtenNoData)) {
+            writtenEnd = -1;
+            return;
+        }
+        writtenNoData = noDataValue;
+        if (writtenStats == null) {
+            if (dataType == DataType.INTEGER) {
+                writtenStats = new StreamingStatistics(Short.MIN_VALUE, 1, 65536);
+            } else if (dataType == DataType.BYTE) {
+                writtenStats = new StreamingStatistics(0, 1, 256);
+            } else {
+                writtenStats = new StreamingStatistics();
+            }
+        }
+        // cells before writtenEnd were tracked when they were first written
+        // and haven't been modified since
+        int first = (int) Math.min(writtenEnd - startingCell, length);
+        if (first >= length) {
+            return;
+        }
+        if (writtenBuffer == null || writtenBuffer.length != length - first) {
+            writtenBuffer = new double[length - first];
+        }
+        for (int i = first; i < length; i++) {
+            double z = values[i];
+            if (dataType == DataType.FLOAT) {
+                z = (float) z;
+            } else if (dataType == DataType.INTEGER) {
+                z = (short) z;
+            } else if (dataType == DataType.BYTE) {
+                z = ((byte) z) & 0xff;
+            }
+            writtenBuffer[i - first] = z;
+        }
+        writtenStats.add(writtenBuffer, noDataValue);
+        if (startingCell + length > writtenEnd) {
+            writtenEnd = startingCell + length;
+        }
+    }
+
     /**
      * Used to dump any data contained in memory to disk.
      */
@@ -1149,21 +1211,20 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
                 minimumValue = min;
             }
 
-            RandomAccessFile rOut = null;
             ByteBuffer buf = null;
-            FileChannel outChannel = null;
+            SeekableByteChannel outChannel = null;
             try {
 
                 // See if the data file exists.
-                File file = new File(dataFile);
-                if (!file.exists()) {
+                if (!dataFileExists()) {
                     createNewDataFile();
                 }
 
-                rOut = new RandomAccessFile(dataFile, "rw");
-                outChannel = rOut.getChannel();
+                outChannel = openDataFile(true);
                 outChannel.position(blockStartingCell * cellSizeInBytes);
                 int writeLengthInCells = (int) (blockEndingCell - blockStartingCell + 1);
+                trackWrittenValues(blockStartingCell, grid, writeLengthInCells);
+                dataChanged = true;
 
                 /*long startPos = blockStartingCell * cellSizeInBytes;
                  FileChannel fc = new RandomAccessFile(dataFile, "rw").getChannel();
@@ -1221,15 +1282,9 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
                 System.err.println(e.getStackTrace());
             } finally {
                 buf = null;
-                if (rOut != null) {
-                    try {
-                        rOut.close();
-                    } catch (Exception e) {
-                    }
-                }
                 if (outChannel != null) {
                     try {
-                        outChannel.force(false);
+                        RasterMemoryStore.force(outChannel);
                         outChannel.close();
                     } catch (Exception e) {
                     }
@@ -1253,15 +1308,30 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
         if (this.isTemporaryFile) {
             File f1 = new File(this.headerFile);
             f1.delete();
-            f1 = new File(this.dataFile);
-            f1.delete();
+            deleteDataFile();
         } else {
             if (saveChanges) {
                 if (isDirty) {
                     writeDataBlock();
                 }
-                findMinAndMaxVals();
-                writeHeaderFile();
+                if (writtenEnd == (long) numberRows * numberColumns && numberStacks == 1
+                        && noDataValue == writtenNoData && writtenStats.getCount() > 0) {
+                    // every cell was seen as it was written, so the range is
+                    // exact and the data file needn't be read again
+                    minimumValue = writtenStats.getMinimum();
+                    maximumValue = writtenStats.getMaximum();
+                    writeHeaderFile();
+                    if (writtenStats.getHistogram() != null && dataScale != DataScale.RGB) {
+                        int first = (int) (minimumValue - (dataType == DataType.INTEGER ? Short.MIN_VALUE : 0));
+                        writeStatsFile(writtenStats.trimHistogram(first, (int) (maximumValue - minimumValue + 1)));
+                    }
+                } else {
+                    findMinAndMaxVals();
+                    writeHeaderFile();
+                    if (dataChanged) {
+                        deleteStatsFile();
+                    }
+                }
             }
         }
         grid = null;
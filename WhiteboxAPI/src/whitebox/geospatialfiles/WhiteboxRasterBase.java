@@ -18,9 +18,11 @@ package whitebox.geospatialfiles;
 
 import java.io.*;
 import java.nio.*;
-import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
 import java.util.ArrayList;
 import whitebox.interfaces.Communicator;
+import whitebox.parallel.RowBands;
+import whitebox.stats.StreamingStatistics;
 
 /**
  * The base class serving the WhiteboxRaster and WhiteboxRasterInfo
@@ -108,8 +110,36 @@ public class WhiteboxRasterBase {
      * @return long containing the size of the data file in bytes.
      */
     public long getDataFileSize() {
-        File file = new File(dataFile);
-        return file.length();
+        return RasterMemoryStore.length(dataFile);
+    }
+
+    /**
+     * Whether the data file (.tas) exists. The data of an intermediate raster
+     * may be held in memory by the RasterMemoryStore rather than on disk.
+     *
+     * @return true if the data file exists.
+     */
+    protected boolean dataFileExists() {
+        return RasterMemoryStore.exists(dataFile);
+    }
+
+    /**
+     * Opens the data file (.tas) for reading or writing.
+     *
+     * @param write True if the data file will be written.
+     * @return a channel positioned at the start of the data file.
+     * @throws IOException if the data file cannot be opened.
+     */
+    protected SeekableByteChannel openDataFile(boolean write) throws IOException {
+        long size = (long) numberRows * numberColumns * numberStacks * cellSizeInBytes;
+        return RasterMemoryStore.open(dataFile, write, size);
+    }
+
+    /**
+     * Deletes the data file (.tas).
+     */
+    protected void deleteDataFile() {
+        RasterMemoryStore.deleteDataFile(dataFile);
     }
 
     protected String statsFile;
@@ -789,9 +819,9 @@ public class WhiteboxRasterBase {
                     }
                     int dataCol = str.length - 1;
                     if (str[0].toLowerCase().contains("min:") && (!str[0].toLowerCase().contains("display"))) {
-                        this.minimumValue = Float.parseFloat(str[dataCol]);
+                        this.minimumValue = Double.parseDouble(str[dataCol]);
                     } else if (str[0].toLowerCase().contains("max:") && (!str[0].toLowerCase().contains("display"))) {
-                        this.maximumValue = Float.parseFloat(str[dataCol]);
+                        this.maximumValue = Double.parseDouble(str[dataCol]);
                     } else if (str[0].toLowerCase().contains("north")) {
                         this.north = Double.parseDouble(str[dataCol]);
                     } else if (str[0].toLowerCase().contains("south")) {
@@ -1121,14 +1151,13 @@ public class WhiteboxRasterBase {
             return retVals;
         }
 
-        RandomAccessFile rIn = null;
+        SeekableByteChannel inChannel = null;
         ByteBuffer buf = null;
 
         try {
 
             // See if the data file exists.
-            File file = new File(dataFile);
-            if (!file.exists()) {
+            if (!dataFileExists()) {
                 return null;
             }
 
@@ -1139,9 +1168,7 @@ public class WhiteboxRasterBase {
             int readLengthInCells = (int) (endingCell - startingCell + 1);
             buf = ByteBuffer.allocate((int) (readLengthInCells * cellSizeInBytes));
 
-            rIn = new RandomAccessFile(dataFile, "r");
-
-            FileChannel inChannel = rIn.getChannel();
+            inChannel = openDataFile(false);
 
             long numCellsPerStack = numberColumns * numberRows;
             inChannel.position(startingCell * cellSizeInBytes + (numCellsPerStack * stack));
@@ -1193,9 +1220,9 @@ public class WhiteboxRasterBase {
             System.err.println("Caught exception: " + e.toString());
             System.err.println(e.getStackTrace());
         } finally {
-            if (rIn != null) {
+            if (inChannel != null) {
                 try {
-                    rIn.close();
+                    inChannel.close();
                 } catch (IOException e) {
                 }
             }
@@ -1223,21 +1250,19 @@ public class WhiteboxRasterBase {
             return retVals;
         }
 
-        RandomAccessFile rIn = null;
+        SeekableByteChannel inChannel = null;
         ByteBuffer buf = null;
 
         try {
 
             // See if the data file exists.
-            File file = new File(dataFile);
-            if (!file.exists()) {
+            if (!dataFileExists()) {
                 return null;
             }
 
-            rIn = new RandomAccessFile(dataFile, "r");
+            inChannel = openDataFile(false);
 
             buf = ByteBuffer.allocate((int) (cellSizeInBytes));
-            FileChannel inChannel = rIn.getChannel();
 
             long pos;
 
@@ -1248,7 +1273,8 @@ public class WhiteboxRasterBase {
                 case DOUBLE:
                     for (int i = 0; i < numberRows; i++) {
                         pos = i * cellSizeInBytes * numberColumns + cellSizeInBytes * col;
-                        inChannel.read(buf, pos);
+                        inChannel.position(pos);
+                        inChannel.read(buf);
                         buf.rewind();
                         DoubleBuffer db = buf.asDoubleBuffer();
                         retVals[i] = db.get(0);
@@ -1257,7 +1283,8 @@ public class WhiteboxRasterBase {
                 case FLOAT:
                     for (int i = 0; i < numberRows; i++) {
                         pos = i * cellSizeInBytes * numberColumns + cellSizeInBytes * col;
-                        inChannel.read(buf, pos);
+                        inChannel.position(pos);
+                        inChannel.read(buf);
                         buf.rewind();
                         FloatBuffer fb = buf.asFloatBuffer();
                         retVals[i] = (double) fb.get(0);
@@ -1266,7 +1293,8 @@ public class WhiteboxRasterBase {
                 case INTEGER:
                     for (int i = 0; i < numberRows; i++) {
                         pos = i * cellSizeInBytes * numberColumns + cellSizeInBytes * col;
-                        inChannel.read(buf, pos);
+                        inChannel.position(pos);
+                        inChannel.read(buf);
                         buf.rewind();
                         ShortBuffer sb = buf.asShortBuffer();
                         retVals[i] = (double) sb.get(0);
@@ -1287,9 +1315,9 @@ public class WhiteboxRasterBase {
             System.err.println("Caught exception: " + e.toString());
             System.err.println(e.getStackTrace());
         } finally {
-            if (rIn != null) {
+            if (inChannel != null) {
                 try {
-                    rIn.close();
+                    inChannel.close();
                 } catch (Exception e) {
                 }
             }
@@ -1314,14 +1342,13 @@ public class WhiteboxRasterBase {
     public double[] getPixelValues(int stack) {
         double[] retVals = new double[numberRows * numberColumns];
         
-        RandomAccessFile rIn = null;
+        SeekableByteChannel inChannel = null;
         ByteBuffer buf = null;
 
         try {
 
             // See if the data file exists.
-            File file = new File(dataFile);
-            if (!file.exists()) {
+            if (!dataFileExists()) {
                 return null;
             }
 
@@ -1332,9 +1359,7 @@ public class WhiteboxRasterBase {
             int readLengthInCells = (int) (endingCell - startingCell + 1);
             buf = ByteBuffer.allocate((int) (readLengthInCells * cellSizeInBytes));
 
-            rIn = new RandomAccessFile(dataFile, "r");
-
-            FileChannel inChannel = rIn.getChannel();
+            inChannel = openDataFile(false);
 
             long numCellsPerStack = numberColumns * numberRows;
             inChannel.position(startingCell * cellSizeInBytes + (numCellsPerStack * stack));
@@ -1386,9 +1411,9 @@ public class WhiteboxRasterBase {
             System.err.println("Caught exception: " + e.toString());
             System.err.println(e.getStackTrace());
         } finally {
-            if (rIn != null) {
+            if (inChannel != null) {
                 try {
-                    rIn.close();
+                    inChannel.close();
                 } catch (IOException e) {
                 }
             }
@@ -1421,13 +1446,11 @@ public class WhiteboxRasterBase {
             writeHeaderFile();
         }
 
-        RandomAccessFile rOut = null;
         ByteBuffer buf = null;
-        FileChannel outChannel = null;
+        SeekableByteChannel outChannel = null;
         try {
 
-            rOut = new RandomAccessFile(dataFile, "rw");
-            outChannel = rOut.getChannel();
+            outChannel = openDataFile(true);
             long cellNum = (long) (row) * numberColumns + column;
             outChannel.position(cellNum * cellSizeInBytes);
             int writeLengthInCells = 1;
@@ -1467,15 +1490,9 @@ public class WhiteboxRasterBase {
             System.err.println(e.getStackTrace());
         } finally {
             buf = null;
-            if (rOut != null) {
-                try {
-                    rOut.close();
-                } catch (Exception e) {
-                }
-            }
             if (outChannel != null) {
                 try {
-                    outChannel.force(false);
+                    RasterMemoryStore.force(outChannel);
                     outChannel.close();
                 } catch (Exception e) {
                 }
@@ -1489,28 +1506,9 @@ public class WhiteboxRasterBase {
      * and maximumValue fields.
      */
     public void findMinAndMaxVals() {
-        double[] data;
-        double min = Double.MAX_VALUE;
-        double max = -Double.MAX_VALUE;
-        double z;
-        for (int stack = 0; stack < numberStacks; stack++) {
-            for (int row = 0; row < numberRows; row++) {
-                data = getRowValues(row, stack);
-                for (int col = 0; col < numberColumns; col++) {
-                    z = data[col];
-                    if (z != noDataValue) {
-                        if (z < min) {
-                            min = z;
-                        }
-                        if (z > max) {
-                            max = z;
-                        }
-                    }
-                }
-            }
-        }
-        maximumValue = max;
-        minimumValue = min;
+        StreamingStatistics range = scanStatistics(1, 0);
+        maximumValue = range.getMaximum();
+        minimumValue = range.getMinimum();
     }
 
     protected double[] cumulativeHisto = null;
@@ -1521,7 +1519,7 @@ public class WhiteboxRasterBase {
         }
         percentile = percentile / 100;
         double retVal = 0;
-        double x1, x2;
+        double x1;
         double y1, y2;
 
         if (cumulativeHisto == null) {
@@ -1537,19 +1535,18 @@ public class WhiteboxRasterBase {
         }
         for (int i = 0; i < histo.length; i++) {
             if (cumulativeHisto[i] >= percentile) { // find the first bin with a value greater than percentile.
+                if (binWidth == 1 && (dataType == DataType.INTEGER || dataType == DataType.BYTE)) {
+                    // each bin holds a single value, so the percentile is exact
+                    retVal = minimumValue + i;
+                    break;
+                }
                 if (i > 0) {
-                    x1 = minimumValue + (i - 1) * binWidth;
-                    x2 = minimumValue + i * binWidth;
                     y1 = cumulativeHisto[i - 1];
-                    y2 = cumulativeHisto[i];
-
                 } else {
-                    x1 = minimumValue + (i - 1) * binWidth;
-                    x2 = minimumValue + i * binWidth;
                     y1 = 0;
-                    y2 = cumulativeHisto[i];
-
                 }
+                y2 = cumulativeHisto[i];
+                x1 = minimumValue + i * binWidth;
                 retVal = x1 + (percentile - y1) / (y2 - y1) * binWidth;
                 break;
             }
@@ -1576,6 +1573,7 @@ public class WhiteboxRasterBase {
             createStatsFile();
             return;
         }
+        cumulativeHisto = null;
 
         DataInputStream in = null;
         BufferedReader br = null;
@@ -1668,152 +1666,189 @@ public class WhiteboxRasterBase {
             file.delete();
         }
 
+        cumulativeHisto = null;
         mean = 0;
         mode = 0;
-        long n = 0;
-        double[] data;
-        double imageTotalDeviation = 0;
-        double min = Double.MAX_VALUE;
-        double max = -Double.MAX_VALUE;
-        double z;
-        double[] rowMedians = new double[numberRows];
-
         binWidth = 0;
-        int binNum = 0;
-        int numberOfBins = 0;
 
         if (dataScale != DataScale.RGB) { //DATA_SCALE_RGB) {
 
-            // calculate the mean, min and max.
-            for (int stack = 0; stack < numberStacks; stack++) {
-                for (int row = 0; row < numberRows; row++) {
-                    data = getRowValues(row, stack);
-                    for (int col = 0; col < numberColumns; col++) {
-                        z = data[col];
-                        if (z != noDataValue) {
-                            mean += z;
-                            n++;
-                            if (z < min) {
-                                min = z;
-                            }
-                            if (z > max) {
-                                max = z;
-                            }
-                        }
-                    }
+            // The histogram can only be binned once the range of the data is
+            // known. The range in the header is usually exact, in which case a
+            // single pass calculates everything; otherwise it's found first.
+            StreamingStatistics stats = null;
+            if (minimumValue <= maximumValue && !Double.isInfinite(minimumValue)
+                    && !Double.isInfinite(maximumValue)) {
+                stats = scanStatistics(minimumValue, maximumValue);
+                if (stats.getMinimum() != minimumValue || stats.getMaximum() != maximumValue) {
+                    stats = null;
                 }
             }
-
-            maximumValue = max;
-            minimumValue = min;
-            mean = mean / n;
-            numValidCells = n;
-
-            if (dataType == DataType.INTEGER) { //.equals("integer")) {
-                numberOfBins = (int) (max - min + 1);
-                binWidth = 1;
-            } else if (dataType == DataType.FLOAT || dataType == DataType.DOUBLE) { //.equals("float") || dataType.equals("double")) {
-                if ((max - min) < 512) {
-                    numberOfBins = 512;
-                } else if ((max - min) < 1024) {
-                    numberOfBins = 1024;
-                } else if ((max - min) < 2048) {
-                    numberOfBins = 2048;
-                } else if ((max - min) < 4096) {
-                    numberOfBins = 4096;
+            if (stats == null) {
+                StreamingStatistics range = scanStatistics(1, 0);
+                if (range.getCount() > 0) {
+                    stats = scanStatistics(range.getMinimum(), range.getMaximum());
                 } else {
-                    numberOfBins = 8196;
+                    stats = range;
                 }
-                binWidth = (max - min) / (numberOfBins - 1);
             }
+            writeStatsFile(stats);
+        }
+    }
 
-            histo = new long[numberOfBins];
-
-            // figure out how many bins should be in the histogram
-            for (int stack = 0; stack < numberStacks; stack++) {
-                for (int row = 0; row < numberRows; row++) {
-                    data = getRowValues(row, stack);
-                    for (int col = 0; col < numberColumns; col++) {
-                        z = data[col];
-                        if (z != noDataValue) {
-                            imageTotalDeviation += (z - mean) * (z - mean);
-                            binNum = (int) (Math.floor((z - min) / binWidth));
-                            histo[binNum]++;
-                        }
-                    }
-                }
+    /**
+     * Writes the .wstat file from statistics that have already been
+     * calculated. The histogram should span the minimum to the maximum value
+     * in the way that createStatsFile bins it.
+     *
+     * @param stats The statistics of the valid cells.
+     */
+    protected void writeStatsFile(StreamingStatistics stats) {
+        File file = new File(statsFile);
+        cumulativeHisto = null;
+
+        long n = stats.getCount();
+        maximumValue = stats.getMaximum();
+        minimumValue = stats.getMinimum();
+        mean = stats.getMean();
+        stdDeviation = stats.getStandardDeviation();
+        numValidCells = n;
+        histo = stats.getHistogram();
+        if (histo == null) {
+            histo = new long[1];
+        }
+        int numberOfBins = histo.length;
+        binWidth = stats.getBinWidth();
+
+        long highestVal = 0;
+        int highestBin = 0;
+        for (int i = 0; i < histo.length; i++) {
+            if (histo[i] > highestVal) {
+                highestVal = histo[i];
+                highestBin = i;
             }
+        }
 
-            stdDeviation = Math.sqrt(imageTotalDeviation / (n - 1));
+        mode = minimumValue + highestBin * binWidth;
+        median = getPercentileValue(50.0d);
+
+        String str = null;
+        FileWriter fw = null;
+        BufferedWriter bw = null;
+        PrintWriter out = null;
+        try {
+            fw = new FileWriter(file, false);
+            bw = new BufferedWriter(fw);
+            out = new PrintWriter(bw, true);
 
-            long highestVal = 0;
-            int highestBin = 0;
+            str = "START_STATS:";
+            out.println(str);
+            str = "MIN: \t" + Double.toString(this.minimumValue);
+            out.println(str);
+            str = "MAX: \t" + Double.toString(this.maximumValue);
+            out.println(str);
+            str = "MEAN: \t" + Double.toString(mean);
+            out.println(str);
+            str = "MEDIAN: \t" + Double.toString(median);
+            out.println(str);
+            str = "MODE: \t" + Double.toString(mode);
+            out.println(str);
+            str = "STD_DEV: \t" + Double.toString(stdDeviation);
+            out.println(str);
+            str = "NUM_VALID_CELLS: \t" + Long.toString(n);
+            out.println(str);
+            str = "END_STATS";
+            out.println(str);
+
+            str = "START_HISTO";
+            out.println(str);
+            str = "BIN_WIDTH: \t" + binWidth;
+            out.println(str);
+            str = "NUM_BINS: \t" + numberOfBins;
+            out.println(str);
             for (int i = 0; i < histo.length; i++) {
-                if (histo[i] > highestVal) {
-                    highestVal = histo[i];
-                    highestBin = i;
-                }
+                str = String.valueOf(histo[i]);
+                out.println(str);
             }
+            str = "END_HISTO";
+            out.println(str);
 
-            mode = highestBin * binWidth;
-            median = getPercentileValue(50.0d);
+        } catch (java.io.IOException e) {
+            System.err.println("Error: " + e.getMessage());
+        } catch (Exception e) { //Catch exception if any
+            System.err.println("Error: " + e.getMessage());
+        } finally {
+            if (out != null || bw != null) {
+                out.flush();
+                out.close();
+            }
 
-            String str = null;
-            FileWriter fw = null;
-            BufferedWriter bw = null;
-            PrintWriter out = null;
-            try {
-                fw = new FileWriter(file, false);
-                bw = new BufferedWriter(fw);
-                out = new PrintWriter(bw, true);
+        }
 
-                str = "START_STATS:";
-                out.println(str);
-                str = "MIN: \t" + Double.toString(this.minimumValue);
-                out.println(str);
-                str = "MAX: \t" + Double.toString(this.maximumValue);
-                out.println(str);
-                str = "MEAN: \t" + Double.toString(mean);
-                out.println(str);
-                str = "MEDIAN: \t" + Double.toString(median);
-                out.println(str);
-                str = "MODE: \t" + Double.toString(mode);
-                out.println(str);
-                str = "STD_DEV: \t" + Double.toString(stdDeviation);
-                out.println(str);
-                str = "NUM_VALID_CELLS: \t" + Long.toString(n);
-                out.println(str);
-                str = "END_STATS";
-                out.println(str);
+    }
 
-                str = "START_HISTO";
-                out.println(str);
-                str = "BIN_WIDTH: \t" + binWidth;
-                out.println(str);
-                str = "NUM_BINS: \t" + numberOfBins;
-                out.println(str);
-                for (int i = 0; i < histo.length; i++) {
-                    str = String.valueOf(histo[i]);
-                    out.println(str);
+    /*
+     * Calculates the statistics of the valid cells in all of the stacks,
+     * with a histogram spanning min to max. If min is greater than max no
+     * histogram is made. The rows are read in parallel bands.
+     */
+    private StreamingStatistics scanStatistics(double min, double max) {
+        final double histoMin = min;
+        final double histoWidth;
+        final int histoBins;
+        if (min > max) {
+            histoWidth = 0;
+            histoBins = 0;
+        } else if (dataType == DataType.INTEGER || dataType == DataType.BYTE) {
+            histoBins = (int) (max - min + 1);
+            histoWidth = 1;
+        } else {
+            if ((max - min) < 512) {
+                histoBins = 512;
+            } else if ((max - min) < 1024) {
+                histoBins = 1024;
+            } else if ((max - min) < 2048) {
+                histoBins = 2048;
+            } else if ((max - min) < 4096) {
+                histoBins = 4096;
+            } else {
+                histoBins = 8196;
+            }
+            histoWidth = (max - min) / (histoBins - 1);
+        }
+        final StreamingStatistics stats = histoBins > 0
+                ? new StreamingStatistics(histoMin, histoWidth, histoBins)
+                : new StreamingStatistics();
+        try {
+            RowBands.process(numberRows * numberStacks, new RowBands.Task<StreamingStatistics>() {
+                @Override
+                public StreamingStatistics process(int startRow, int endRow) {
+                    StreamingStatistics band = histoBins > 0
+                            ? new StreamingStatistics(histoMin, histoWidth, histoBins)
+                            : new StreamingStatistics();
+                    for (int r = startRow; r < endRow; r++) {
+                        double[] data = getRowValues(r % numberRows, r / numberRows);
+                        if (data != null) {
+                            band.add(data, noDataValue);
+                        }
+                    }
+                    return band;
                 }
-                str = "END_HISTO";
-                out.println(str);
-
-            } catch (java.io.IOException e) {
-                System.err.println("Error: " + e.getMessage());
-            } catch (Exception e) { //Catch exception if any
-                System.err.println("Error: " + e.getMessage());
-            } finally {
-                if (out != null || bw != null) {
-                    out.flush();
-                    out.close();
+            }, new RowBands.Consumer<StreamingStatistics>() {
+                @Override
+                public boolean consume(int startRow, int endRow, StreamingStatistics band) {
+                    stats.merge(band);
+                    return true;
                 }
-
+            });
+        } catch (Exception e) {
+            if (communicator != null) {
+                communicator.logException("WhiteboxRaster error", e);
+            } else {
+                System.err.println("Error: " + e.getMessage());
             }
-
-        } else {
-            numberOfBins = 256;
         }
+        return stats;
     }
 
     private double halfCellSizeX = -1;
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.parallel;
+
+import whitebox.geospatialfiles.WhiteboxRaster;
+import whitebox.geospatialfiles.WhiteboxRasterBase;
+
+/**
+ * Carries out a local (cell-by-cell) combination of several input rasters,
+ * e.g. a weighted overlay or a maximum overlay, in a single pass. The rows
+ * are processed in bands on worker threads using RowBands; each worker reads
+ * the rows of every input for its band and combines them with a Combiner,
+ * while the output rows are written in order on the calling thread. Because
+ * several bands are in flight at once, the reading of later bands overlaps
+ * with the combining of earlier ones and with the writing of the output.
+ *
+ * A Combiner receives whole rows as primitive arrays, so its loops over the
+ * columns are simple and free of per-cell method calls. It must not keep
+ * references to the rows it is given and, because it is called from several
+ * threads at once, any state it holds must be read-only.
+ *
+ * @author johnlindsay
+ */
+public class LocalCombination {
+
+    /*
+     * Combines the rows of the inputs into a row of the output. Called on a
+     * worker thread.
+     */
+    public interface Combiner {
+
+        void combine(int row, double[][] inputRows, double[] outputRow) throws Exception;
+    }
+
+    /*
+     * Receives the progress on the calling thread. Returning false stops the
+     * combination.
+     */
+    public interface Progress {
+
+        boolean rowsCompleted(int completed, int total) throws Exception;
+    }
+
+    private final WhiteboxRasterBase[] inputs;
+    private final int rows;
+    private final int cols;
+
+    /**
+     * @param inputs The input rasters. They must all have the same number of
+     * rows and columns.
+     */
+    public LocalCombination(WhiteboxRasterBase... inputs) {
+        if (inputs.length == 0) {
+            throw new IllegalArgumentException("At least one input image is needed.");
+        }
+        for (WhiteboxRasterBase r : inputs) {
+            if (r.getNumberRows() != inputs[0].getNumberRows()
+                    || r.getNumberColumns() != inputs[0].getNumberColumns()) {
+                throw new IllegalArgumentException("All input images must have the same dimensions (rows and columns).");
+            }
+        }
+        this.inputs = inputs.clone();
+        this.rows = inputs[0].getNumberRows();
+        this.cols = inputs[0].getNumberColumns();
+    }
+
+    /**
+     * Combines the inputs into the output raster.
+     *
+     * @param output The output raster, with the same number of rows and
+     * columns as the inputs.
+     * @param combiner Combines each row.
+     * @param progress Receives the number of rows completed, or null.
+     * @return false if the progress stopped the combination.
+     * @throws Exception Any exception thrown while reading the inputs or by
+     * the combiner.
+     */
+    public boolean run(final WhiteboxRaster output, final Combiner combiner,
+            final Progress progress) throws Exception {
+        if (output.getNumberRows() != rows || output.getNumberColumns() != cols) {
+            throw new IllegalArgumentException("The output image must have the same dimensions as the inputs.");
+        }
+        final int numInputs = inputs.length;
+        return RowBands.process(rows, new RowBands.Task<double[][]>() {
+            @Override
+            public double[][] process(int startRow, int endRow) throws Exception {
+                double[][] result = new double[endRow - startRow][];
+                double[][] inputRows = new double[numInputs][];
+                for (int row = startRow; row < endRow; row++) {
+                    for (int i = 0; i < numInputs; i++) {
+                        inputRows[i] = inputs[i].getRowValues(row);
+                    }
+                    double[] outputRow = new double[cols];
+                    combiner.combine(row, inputRows, outputRow);
+                    result[row - startRow] = outputRow;
+                }
+                return result;
+            }
+        }, new RowBands.Consumer<double[][]>() {
+            @Override
+            public boolean consume(int startRow, int endRow, double[][] result) throws Exception {
+                for (int row = startRow; row < endRow; row++) {
+                    output.setRowValues(row, result[row - startRow]);
+                }
+                return progress == null || progress.rowsCompleted(endRow, rows);
+            }
+        });
+    }
+}
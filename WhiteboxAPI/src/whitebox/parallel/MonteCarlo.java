@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.parallel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the realisations of a Monte Carlo simulation concurrently. Each worker
+ * thread creates one Simulator, which holds the working grids of a
+ * realisation in memory and reuses them for every realisation that the
+ * thread runs, so the number of workers is limited by a memory budget as well
+ * as by the number of processors.
+ *
+ * Every realisation is given its own random number stream, split from a
+ * master SplittableRandom in realisation order before any work starts. A
+ * realisation's random numbers therefore depend only on the seed and its
+ * index, not on the thread that runs it. Realisations record their outcome by
+ * incrementing integer counts (e.g. the number of realisations in which each
+ * grid cell was flagged); each worker has its own count array and the arrays
+ * are summed at the end. Because integer addition is exact and commutative,
+ * the result is identical for a given seed whatever the number of threads.
+ *
+ * @author johnlindsay
+ */
+public class MonteCarlo {
+
+    private static final ThreadFactory daemonThreads = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "MonteCarlo");
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    /*
+     * Runs realisations on one worker thread. Implementations hold the
+     * working memory for a single realisation.
+     */
+    public interface Simulator {
+
+        void simulate(int realisation, SplittableRandom random, int[] counts) throws Exception;
+    }
+
+    /*
+     * Creates one Simulator for each worker thread. Called on the worker
+     * thread.
+     */
+    public interface SimulatorFactory {
+
+        Simulator newSimulator() throws Exception;
+    }
+
+    /*
+     * Receives the progress on the calling thread. Returning false stops the
+     * simulation.
+     */
+    public interface Progress {
+
+        boolean realisationsCompleted(int completed, int total) throws Exception;
+    }
+
+    private MonteCarlo() {
+    }
+
+    /**
+     * Finds the number of worker threads to use, i.e. the number of
+     * processors available to plugins, reduced if need be so that the
+     * working memory of the realisations in progress fits in the memory that
+     * is currently free. At least one worker is always used.
+     *
+     * @param bytesPerRealisation An estimate of the working memory of one
+     * realisation, including its count array.
+     * @param numRealisations The number of realisations.
+     * @return The number of workers.
+     */
+    public static int getNumberOfWorkers(long bytesPerRealisation, int numRealisations) {
+        Runtime rt = Runtime.getRuntime();
+        long free = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+        // leave some headroom for the rest of the application
+        long budget = (long) (free * 0.8);
+        long byMemory = Math.max(1, budget / Math.max(1, bytesPerRealisation));
+        int n = (int) Math.min(Parallel.getPluginProcessors(), byMemory);
+        return Math.max(1, Math.min(n, numRealisations));
+    }
+
+    /**
+     * Runs the simulation.
+     *
+     * @param numRealisations The number of realisations.
+     * @param numCounts The length of the count arrays.
+     * @param seed The seed of the master random number generator.
+     * @param numWorkers The number of worker threads.
+     * @param factory Creates the Simulator of each worker.
+     * @param progress Receives the number of completed realisations, or null.
+     * @return The summed counts, or null if the progress stopped the
+     * simulation.
+     * @throws Exception Any exception thrown by a Simulator.
+     */
+    public static int[] run(int numRealisations, final int numCounts, long seed,
+            int numWorkers, final SimulatorFactory factory, Progress progress) throws Exception {
+        final SplittableRandom[] streams = new SplittableRandom[numRealisations];
+        SplittableRandom master = new SplittableRandom(seed);
+        for (int i = 0; i < numRealisations; i++) {
+            streams[i] = master.split();
+        }
+
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger completed = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(numWorkers, daemonThreads);
+        List<Future<int[]>> futures = new ArrayList<>();
+        try {
+            for (int w = 0; w < numWorkers; w++) {
+                futures.add(executor.submit(new Callable<int[]>() {
+                    @Override
+                    public int[] call() throws Exception {
+                        Simulator simulator = factory.newSimulator();
+                        int[] counts = new int[numCounts];
+                        int i;
+                        while ((i = next.getAndIncrement()) < streams.length) {
+                            if (Thread.currentThread().isInterrupted()) {
+                                return null;
+                            }
+                            simulator.simulate(i, streams[i], counts);
+                            // the stream is no longer needed
+                            streams[i] = null;
+                            completed.incrementAndGet();
+                        }
+                        return counts;
+                    }
+                }));
+            }
+
+            int[] total = new int[numCounts];
+            for (Future<int[]> f : futures) {
+                while (true) {
+                    if (progress != null && !progress.realisationsCompleted(completed.get(), numRealisations)) {
+                        return null;
+                    }
+                    try {
+                        int[] counts = f.get(250, TimeUnit.MILLISECONDS);
+                        for (int k = 0; k < numCounts; k++) {
+                            total[k] += counts[k];
+                        }
+                        break;
+                    } catch (TimeoutException te) {
+                        // check the progress again
+                    } catch (ExecutionException ee) {
+                        Throwable cause = ee.getCause();
+                        if (cause instanceof Exception) {
+                            throw (Exception) cause;
+                        }
+                        if (cause instanceof Error) {
+                            throw (Error) cause;
+                        }
+                        throw ee;
+                    }
+                }
+            }
+            if (progress != null) {
+                progress.realisationsCompleted(numRealisations, numRealisations);
+            }
+            return total;
+        } finally {
+            // stop any workers that are still running after a cancellation
+            next.set(numRealisations);
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Draws a normally distributed value with a mean of 0 and a standard
+     * deviation of 1 from a SplittableRandom, using the polar method of
+     * Marsaglia. The second value of each pair is discarded, so that the
+     * generator needs no extra state.
+     *
+     * @param random The random number stream.
+     * @return The value.
+     */
+    public static double nextGaussian(SplittableRandom random) {
+        double v1, v2, s;
+        do {
+            v1 = 2 * random.nextDouble() - 1;
+            v2 = 2 * random.nextDouble() - 1;
+            s = v1 * v1 + v2 * v2;
+        } while (s >= 1 || s == 0);
+        return v1 * Math.sqrt(-2 * Math.log(s) / s);
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.parallel;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Processes the rows of a raster in horizontal bands on a pool of worker
+ * threads. Each band is handed to a Task on a worker thread and the results
+ * are passed back, in row order, to a Consumer running on the calling thread.
+ * This allows a plugin to carry out its calculations in parallel while all
+ * writes to an output WhiteboxRaster, which is not thread safe, stay on a
+ * single thread. Only a small number of bands are in flight at any time, so
+ * memory use is bounded regardless of the size of the raster.
+ *
+ * @author johnlindsay
+ */
+public class RowBands {
+
+    private static final ThreadFactory daemonThreads = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "RowBands");
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    /*
+     * Computes a partial result for rows startRow (inclusive) to endRow
+     * (exclusive). Called on a worker thread.
+     */
+    public interface Task<T> {
+
+        T process(int startRow, int endRow) throws Exception;
+    }
+
+    /*
+     * Receives the result of each band in row order on the calling thread.
+     * Returning false stops the processing of further bands.
+     */
+    public interface Consumer<T> {
+
+        boolean consume(int startRow, int endRow, T result) throws Exception;
+    }
+
+    /*
+     * A band height that gives each worker thread several bands, which keeps
+     * the threads busy when some bands are more expensive than others.
+     */
+    public static int defaultBandHeight(int numRows) {
+        int numBands = Parallel.getPluginProcessors() * 8;
+        return Math.max(1, Math.min(256, (numRows + numBands - 1) / numBands));
+    }
+
+    public static <T> boolean process(int numRows, Task<T> task, Consumer<T> consumer) throws Exception {
+        return process(numRows, defaultBandHeight(numRows), task, consumer);
+    }
+
+    /**
+     * Processes the rows in bands of the specified height.
+     *
+     * @param numRows The number of rows in the raster.
+     * @param bandHeight The number of rows in each band.
+     * @param task The calculation carried out on each band.
+     * @param consumer Receives the band results in row order.
+     * @return false if the consumer stopped the processing early.
+     * @throws Exception Any exception thrown by the task or consumer.
+     */
+    public static <T> boolean process(int numRows, int bandHeight, final Task<T> task,
+            Consumer<T> consumer) throws Exception {
+        int numThreads = Parallel.getPluginProcessors();
+        int maxInFlight = 2 * numThreads;
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads, daemonThreads);
+        ArrayDeque<Future<T>> pending = new ArrayDeque<>();
+        try {
+            int nextStart = 0;
+            int consumedStart = 0;
+            while (consumedStart < numRows) {
+                while (nextStart < numRows && pending.size() < maxInFlight) {
+                    final int s = nextStart;
+                    final int e = Math.min(numRows, nextStart + bandHeight);
+                    pending.add(executor.submit(new Callable<T>() {
+                        @Override
+                        public T call() throws Exception {
+                            return task.process(s, e);
+                        }
+                    }));
+                    nextStart = e;
+                }
+                T result;
+                try {
+                    result = pending.poll().get();
+                } catch (ExecutionException ee) {
+                    Throwable cause = ee.getCause();
+                    if (cause instanceof Exception) {
+                        throw (Exception) cause;
+                    }
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw ee;
+                }
+                int consumedEnd = Math.min(numRows, consumedStart + bandHeight);
+                if (!consumer.consume(consumedStart, consumedEnd, result)) {
+                    return false;
+                }
+                consumedStart = consumedEnd;
+            }
+            return true;
+        } finally {
+            for (Future<T> f : pending) {
+                f.cancel(true);
+            }
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,512 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.plugins;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import whitebox.parallel.Parallel;
+
+/**
+ * Runs Whitebox plugins from the command line, without the Whitebox GAT user
+ * interface. Only the plugins that are named by the jobs are loaded. A single
+ * tool can be run with its parameters given on the command line:
+ * <pre>
+ * java -Djava.awt.headless=true -cp WhiteboxAPI.jar:lib/* whitebox.plugins.BatchRunner
+ *     -resources /opt/Whitebox/resources FillDepressions dem.dep filled.dep true
+ * </pre>
+ * or many jobs can be run from a JSON file, either an array of jobs or an
+ * object with a "jobs" array and optional "threads" and "progressStep" values:
+ * <pre>
+ * { "threads": 4,
+ *   "jobs": [ { "id": "fill1", "tool": "FillDepressions",
+ *               "args": ["dem1.dep", "filled1.dep", "true"] }, ... ] }
+ * </pre>
+ * With -stdin, jobs are read one JSON object per line from the standard
+ * input and started as they arrive, which allows a scheduler to feed a single
+ * long-running process. With -workflow, the steps of a Workflow description
+ * are run by a WorkflowExecutor. Jobs run concurrently on a fixed number of
+ * worker threads; each job's progress and output are written to the standard
+ * output prefixed with its id, and a summary line is written when it ends.
+ * The exit status is the number of failed jobs, up to 255.
+ *
+ * @author johnlindsay
+ */
+public class BatchRunner {
+
+    private static final String USAGE = "Usage: BatchRunner [-resources dir] [-threads n] "
+            + "[-progress step] (-jobs file.json | -workflow file.json | -stdin | toolName [arg ...])";
+    private final PluginRegistry registry;
+    private final String resourcesDirectory;
+    private final PrintStream out;
+    private final PrintStream err;
+    private int numThreads = 1;
+    private int progressStep = 10;
+    private final AtomicInteger jobCounter = new AtomicInteger();
+    private final AtomicInteger numFailed = new AtomicInteger();
+    private final List<HeadlessPluginHost> running = Collections.synchronizedList(
+            new ArrayList<HeadlessPluginHost>());
+
+    /**
+     * A single plugin run.
+     */
+    public static class Job {
+
+        private String id;
+        private String tool;
+        private String[] args;
+        private String workingDirectory;
+
+        public Job() {
+        }
+
+        public Job(String id, String tool, String[] args) {
+            this.id = id;
+            this.tool = tool;
+            this.args = args;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getTool() {
+            return tool;
+        }
+
+        public String[] getArgs() {
+            return args == null ? new String[0] : args.clone();
+        }
+
+        public String getWorkingDirectory() {
+            return workingDirectory;
+        }
+
+        public void setWorkingDirectory(String workingDirectory) {
+            this.workingDirectory = workingDirectory;
+        }
+    }
+
+    /*
+     * The optional settings and job list of a JSON job file.
+     */
+    private static class JobFile {
+
+        Integer threads;
+        Integer progressStep;
+        Job[] jobs;
+    }
+
+    /**
+     * @param resourcesDirectory The Whitebox resources directory, which
+     * contains the plugins directory.
+     * @param out The stream to which progress and returned data are written.
+     * @param err The stream to which messages and errors are written.
+     */
+    public BatchRunner(String resourcesDirectory, PrintStream out, PrintStream err) {
+        this.resourcesDirectory = resourcesDirectory;
+        this.out = out;
+        this.err = err;
+        File pluginDir = new File(resourcesDirectory, "plugins");
+        ClassLoader loader = createPluginClassLoader(pluginDir);
+        Thread.currentThread().setContextClassLoader(loader);
+        File indexFile = new File(pluginDir, StandardPluginService.INDEX_FILE_NAME);
+        registry = new PluginRegistry(loader, indexFile);
+    }
+
+    /*
+     * A class loader for the plugin jars. Plugins are only loaded from it
+     * when a job names them.
+     */
+    private static ClassLoader createPluginClassLoader(File pluginDir) {
+        ClassLoader parent = BatchRunner.class.getClassLoader();
+        File[] jars = pluginDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.toLowerCase().endsWith(".jar");
+            }
+        });
+        if (jars == null || jars.length == 0) {
+            return parent;
+        }
+        Arrays.sort(jars);
+        List<URL> urls = new ArrayList<>();
+        for (File jar : jars) {
+            try {
+                urls.add(jar.toURI().toURL());
+            } catch (IOException e) {
+                // skip it
+            }
+        }
+        return new URLClassLoader(urls.toArray(new URL[urls.size()]), parent);
+    }
+
+    public PluginRegistry getRegistry() {
+        return registry;
+    }
+
+    public String getResourcesDirectory() {
+        return resourcesDirectory;
+    }
+
+    public void setNumberOfThreads(int numThreads) {
+        this.numThreads = Math.max(1, numThreads);
+    }
+
+    public void setProgressStep(int progressStep) {
+        this.progressStep = progressStep;
+    }
+
+    public int getNumberOfFailedJobs() {
+        return numFailed.get();
+    }
+
+    /**
+     * Runs a job on the calling thread.
+     *
+     * @param job The job.
+     * @return true if the job succeeded.
+     */
+    public boolean runJob(Job job) {
+        String id = job.getId();
+        if (id == null || id.isEmpty()) {
+            id = String.valueOf(jobCounter.incrementAndGet());
+        }
+        HeadlessPluginHost host = new HeadlessPluginHost(registry, resourcesDirectory, id, out, err);
+        host.setProgressStep(progressStep);
+        if (job.getWorkingDirectory() != null) {
+            host.setWorkingDirectory(job.getWorkingDirectory());
+        }
+        running.add(host);
+        long start = System.currentTimeMillis();
+        boolean success;
+        try {
+            success = job.getTool() != null && host.run(job.getTool(), job.getArgs());
+            if (job.getTool() == null) {
+                host.showFeedback("The job does not name a tool.");
+            }
+        } finally {
+            running.remove(host);
+        }
+        if (!success) {
+            numFailed.incrementAndGet();
+        }
+        double seconds = (System.currentTimeMillis() - start) / 1000.0;
+        synchronized (out) {
+            out.println("[" + id + "] " + (success ? "Succeeded" : "FAILED")
+                    + " (" + job.getTool() + ", " + seconds + " s)");
+            out.flush();
+        }
+        return success;
+    }
+
+    /**
+     * Runs a list of jobs on the worker threads and waits for them to finish.
+     *
+     * @param jobs The jobs.
+     * @return the number of jobs that failed.
+     */
+    public int runJobs(List<Job> jobs) throws InterruptedException {
+        int failedBefore = numFailed.get();
+        JobQueue queue = new JobQueue();
+        try {
+            for (Job job : jobs) {
+                queue.submit(job);
+            }
+        } finally {
+            queue.close();
+        }
+        return numFailed.get() - failedBefore;
+    }
+
+    /**
+     * Reads jobs from a reader, one JSON object per line, and runs them as
+     * they are read. Blank lines and lines starting with # are ignored.
+     *
+     * @param reader The source of the jobs.
+     * @return the number of jobs that failed.
+     */
+    public int runJobStream(Reader reader) throws IOException, InterruptedException {
+        int failedBefore = numFailed.get();
+        Gson gson = new Gson();
+        BufferedReader br = new BufferedReader(reader);
+        JobQueue queue = new JobQueue();
+        try {
+            String line;
+            while ((line = br.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                try {
+                    queue.submit(gson.fromJson(line, Job.class));
+                } catch (JsonParseException e) {
+                    numFailed.incrementAndGet();
+                    synchronized (err) {
+                        err.println("Invalid job: " + line);
+                        err.flush();
+                    }
+                }
+            }
+        } finally {
+            queue.close();
+        }
+        return numFailed.get() - failedBefore;
+    }
+
+    /**
+     * Runs a workflow on the worker threads.
+     *
+     * @param workflow The workflow.
+     * @return true if every step succeeded.
+     */
+    public boolean runWorkflow(Workflow workflow) throws IOException, InterruptedException {
+        HeadlessPluginHost host = new HeadlessPluginHost(registry, resourcesDirectory, "workflow", out, err);
+        host.setProgressStep(progressStep);
+        WorkflowExecutor executor = new WorkflowExecutor(host, registry);
+        executor.setNumberOfThreads(numThreads);
+        running.add(host);
+        long start = System.currentTimeMillis();
+        boolean success;
+        try {
+            success = executor.run(workflow);
+        } finally {
+            running.remove(host);
+        }
+        if (!success) {
+            numFailed.incrementAndGet();
+        }
+        double seconds = (System.currentTimeMillis() - start) / 1000.0;
+        synchronized (out) {
+            out.println("[workflow] " + (success ? "Succeeded" : "FAILED") + " (" + seconds + " s)");
+            out.flush();
+        }
+        return success;
+    }
+
+    /**
+     * Asks all running jobs to stop.
+     */
+    public void cancelAll() {
+        synchronized (running) {
+            for (HeadlessPluginHost host : running) {
+                host.requestCancel();
+            }
+        }
+    }
+
+    /*
+     * A fixed pool of worker threads. The number of jobs that are waiting or
+     * running is bounded, so that submitting a long list or stream of jobs
+     * blocks rather than holding them all in memory.
+     */
+    private class JobQueue {
+
+        private final ExecutorService executor;
+        private final Semaphore permits;
+
+        JobQueue() {
+            final ClassLoader loader = Thread.currentThread().getContextClassLoader();
+            executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+                private int n = 0;
+
+                @Override
+                public synchronized Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "BatchRunner-" + (++n));
+                    t.setContextClassLoader(loader);
+                    return t;
+                }
+            });
+            permits = new Semaphore(2 * numThreads);
+        }
+
+        void submit(final Job job) throws InterruptedException {
+            permits.acquire();
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runJob(job);
+                    } finally {
+                        permits.release();
+                    }
+                }
+            });
+        }
+
+        void close() throws InterruptedException {
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                // wait for the running jobs
+            }
+        }
+    }
+
+    private static List<Job> readJobFile(BatchRunner runner, File file) throws IOException {
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8")) {
+            JsonElement root = new JsonParser().parse(reader);
+            Gson gson = new Gson();
+            Job[] jobs;
+            if (root.isJsonArray()) {
+                jobs = gson.fromJson(root, Job[].class);
+            } else if (root.isJsonObject()) {
+                JsonObject obj = root.getAsJsonObject();
+                JobFile jf = gson.fromJson(obj, JobFile.class);
+                if (jf.threads != null) {
+                    runner.setNumberOfThreads(jf.threads);
+                }
+                if (jf.progressStep != null) {
+                    runner.setProgressStep(jf.progressStep);
+                }
+                jobs = jf.jobs == null ? new Job[0] : jf.jobs;
+            } else {
+                throw new JsonParseException("Expected an array of jobs or an object with a jobs array.");
+            }
+            return Arrays.asList(jobs);
+        }
+    }
+
+    /*
+     * The resources directory of an installation, found relative to the
+     * location of the WhiteboxAPI classes.
+     */
+    private static String findResourcesDirectory() {
+        try {
+            File dir = new File(BatchRunner.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            while (dir != null) {
+                File res = new File(dir, "resources");
+                if (new File(res, "plugins").isDirectory()) {
+                    return res.getPath();
+                }
+                dir = dir.getParentFile();
+            }
+        } catch (Exception e) {
+            // fall through
+        }
+        return "resources";
+    }
+
+    public static void main(String[] args) {
+        // no part of the batch runner needs a display
+        System.setProperty("java.awt.headless", "true");
+        String resources = null;
+        String jobFile = null;
+        String workflowFile = null;
+        boolean fromStdin = false;
+        Integer threads = null;
+        Integer progress = null;
+        int i = 0;
+        try {
+            while (i < args.length && args[i].startsWith("-")) {
+                String opt = args[i].toLowerCase();
+                if (opt.equals("-resources") && i + 1 < args.length) {
+                    resources = args[++i];
+                } else if (opt.equals("-threads") && i + 1 < args.length) {
+                    threads = Integer.parseInt(args[++i]);
+                } else if (opt.equals("-progress") && i + 1 < args.length) {
+                    progress = Integer.parseInt(args[++i]);
+                } else if (opt.equals("-jobs") && i + 1 < args.length) {
+                    jobFile = args[++i];
+                } else if (opt.equals("-workflow") && i + 1 < args.length) {
+                    workflowFile = args[++i];
+                } else if (opt.equals("-stdin")) {
+                    fromStdin = true;
+                } else {
+                    System.err.println(USAGE);
+                    System.exit(255);
+                }
+                i++;
+            }
+        } catch (NumberFormatException e) {
+            System.err.println(USAGE);
+            System.exit(255);
+        }
+        if (jobFile == null && workflowFile == null && !fromStdin && i >= args.length) {
+            System.err.println(USAGE);
+            System.exit(255);
+        }
+        if (resources == null) {
+            resources = findResourcesDirectory();
+        }
+
+        final BatchRunner runner = new BatchRunner(resources, System.out, System.err);
+        if (progress != null) {
+            runner.setProgressStep(progress);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                runner.cancelAll();
+            }
+        });
+
+        int numFailed;
+        try {
+            if (jobFile != null) {
+                List<Job> jobs = readJobFile(runner, new File(jobFile));
+                if (threads != null) {
+                    runner.setNumberOfThreads(threads);
+                }
+                numFailed = runner.runJobs(jobs);
+            } else if (workflowFile != null) {
+                Workflow wf;
+                try (Reader reader = new InputStreamReader(new FileInputStream(workflowFile), "UTF-8")) {
+                    wf = Workflow.fromJson(reader);
+                }
+                runner.setNumberOfThreads(threads != null ? threads : Parallel.getPluginProcessors());
+                numFailed = runner.runWorkflow(wf) ? 0 : 1;
+            } else if (fromStdin) {
+                runner.setNumberOfThreads(threads != null ? threads : 1);
+                numFailed = runner.runJobStream(new InputStreamReader(System.in, "UTF-8"));
+            } else {
+                String[] toolArgs = Arrays.copyOfRange(args, i + 1, args.length);
+                numFailed = runner.runJob(new Job(args[i], args[i], toolArgs)) ? 0 : 1;
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            numFailed = 255;
+        } catch (IOException | JsonParseException e) {
+            System.err.println("Error reading the jobs: " + e.getMessage());
+            numFailed = 255;
+        } catch (InterruptedException e) {
+            numFailed = 255;
+        }
+        System.exit(Math.min(255, numFailed));
+    }
+}
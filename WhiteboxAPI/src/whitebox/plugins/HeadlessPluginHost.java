@@ -0,0 +1,490 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.plugins;
+
+import java.awt.Font;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.ResourceBundle;
+import java.util.logging.Level;
+import whitebox.interfaces.MapLayer;
+import whitebox.interfaces.WhiteboxPlugin;
+import whitebox.interfaces.WhiteboxPluginHost;
+import whitebox.internationalization.WhiteboxInternationalizationTools;
+
+/**
+ * A WhiteboxPluginHost for running a single plugin without a user interface.
+ * Progress and returned data are written to an output stream, with each line
+ * prefixed by an identifier for the job, and messages and errors are written
+ * to an error stream. Nothing in this class needs a display, so it can be used
+ * on a headless machine. Methods that act on the map or the selection do
+ * nothing.
+ * <p>
+ * A host serves one plugin run at a time. Use a separate host for each job
+ * that is run concurrently.
+ *
+ * @author johnlindsay
+ */
+public class HeadlessPluginHost implements WhiteboxPluginHost {
+
+    private final PluginRegistry registry;
+    private final String jobId;
+    private final PrintStream out;
+    private final PrintStream err;
+    private String applicationDirectory;
+    private String resourcesDirectory;
+    private String workingDirectory;
+    private int progressStep = 10;
+    private String languageCountryCode = "en_CA";
+    private volatile boolean cancelRequested = false;
+    private volatile WhiteboxPlugin plugin = null;
+    private boolean suppressReturnedData = false;
+    private boolean complete = false;
+    private boolean failed = false;
+    private String lastProgressLabel = null;
+    private int lastProgress = -1;
+    private final List<String> messages = new ArrayList<>();
+    private final List<Object> returnedData = new ArrayList<>();
+
+    /**
+     * @param registry The registry used to create plugins.
+     * @param resourcesDirectory The Whitebox resources directory, i.e. the
+     * directory containing the plugins and Help directories.
+     * @param jobId An identifier that prefixes each line of output.
+     * @param out The stream to which progress and returned data are written.
+     * @param err The stream to which messages and errors are written.
+     */
+    public HeadlessPluginHost(PluginRegistry registry, String resourcesDirectory,
+            String jobId, PrintStream out, PrintStream err) {
+        this.registry = registry;
+        this.jobId = jobId;
+        this.out = out;
+        this.err = err;
+        if (!resourcesDirectory.endsWith(File.separator)) {
+            resourcesDirectory += File.separator;
+        }
+        this.resourcesDirectory = resourcesDirectory;
+        this.applicationDirectory = new File(resourcesDirectory).getParent();
+        this.workingDirectory = System.getProperty("user.dir") + File.separator;
+    }
+
+    /**
+     * Runs a plugin on the calling thread.
+     *
+     * @param pluginName The name of the plugin, i.e. the value returned by
+     * getName().
+     * @param args The plugin's parameters.
+     * @return true if the plugin ran to completion without reporting an
+     * error.
+     */
+    public boolean run(String pluginName, String[] args) {
+        WhiteboxPlugin plugin = registry.createPlugin(pluginName);
+        if (plugin == null) {
+            PluginRegistry.Entry entry = registry.getEntryByDescriptiveName(pluginName);
+            if (entry != null) {
+                plugin = registry.createPlugin(entry.getName());
+            }
+        }
+        if (plugin == null) {
+            showFeedback("Unrecognized plugin: " + pluginName);
+            failed = true;
+            return false;
+        }
+        return run(plugin, args);
+    }
+
+    private boolean run(WhiteboxPlugin plugin, String[] args) {
+        complete = false;
+        lastProgressLabel = null;
+        lastProgress = -1;
+        plugin.setPluginHost(this);
+        plugin.setArgs(args);
+        this.plugin = plugin;
+        if (cancelRequested) {
+            plugin.setCancelOp(true);
+        }
+        try {
+            plugin.run();
+        } catch (Exception | Error e) {
+            // plugins normally report their own errors
+            logThrowable(plugin.getName(), e);
+        } finally {
+            this.plugin = null;
+        }
+        if (cancelRequested) {
+            failed = true;
+        }
+        return !failed;
+    }
+
+    /**
+     * Asks the running plugin to stop at its next check for cancellation.
+     */
+    public void requestCancel() {
+        cancelRequested = true;
+        WhiteboxPlugin p = plugin;
+        if (p != null) {
+            p.setCancelOp(true);
+        }
+    }
+
+    public String getJobId() {
+        return jobId;
+    }
+
+    /**
+     * @return true if the plugin reported an exception, could not be found,
+     * or was cancelled.
+     */
+    public boolean hasFailed() {
+        return failed;
+    }
+
+    /**
+     * @return true if the plugin called pluginComplete().
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * @return the messages passed to showFeedback, in the order received.
+     */
+    public synchronized List<String> getMessages() {
+        return Collections.unmodifiableList(new ArrayList<>(messages));
+    }
+
+    /**
+     * @return the data passed to returnData, in the order received.
+     */
+    public synchronized List<Object> getReturnedData() {
+        return Collections.unmodifiableList(new ArrayList<>(returnedData));
+    }
+
+    /**
+     * Sets the minimum change in percent progress that is reported. Zero or
+     * less reports every change; a value greater than 100 disables progress
+     * output.
+     *
+     * @param progressStep The step, in percent.
+     */
+    public void setProgressStep(int progressStep) {
+        this.progressStep = progressStep;
+    }
+
+    public void setSuppressReturnedData(boolean suppressReturnedData) {
+        this.suppressReturnedData = suppressReturnedData;
+    }
+
+    private void print(PrintStream stream, String text) {
+        // print each line whole, so that the output of concurrent jobs does not interleave
+        synchronized (stream) {
+            for (String line : text.split("\r?\n")) {
+                stream.println("[" + jobId + "] " + line);
+            }
+            stream.flush();
+        }
+    }
+
+    @Override
+    public String getWorkingDirectory() {
+        return workingDirectory;
+    }
+
+    @Override
+    public void setWorkingDirectory(String workingDirectory) {
+        this.workingDirectory = workingDirectory;
+    }
+
+    @Override
+    public String getApplicationDirectory() {
+        return applicationDirectory;
+    }
+
+    @Override
+    public void setApplicationDirectory(String applicationDirectory) {
+        this.applicationDirectory = applicationDirectory;
+    }
+
+    @Override
+    public String getResourcesDirectory() {
+        return resourcesDirectory;
+    }
+
+    @Override
+    public String getLogDirectory() {
+        return applicationDirectory + File.separator + "logs" + File.separator;
+    }
+
+    @Override
+    public String getHelpDirectory() {
+        return resourcesDirectory + "Help" + File.separator;
+    }
+
+    @Override
+    public synchronized int showFeedback(String message) {
+        messages.add(message);
+        print(err, message);
+        return 0;
+    }
+
+    @Override
+    public int showFeedback(String message, int optionType, int messageType) {
+        // there is no one to answer a question, so the default option (yes/ok) is returned
+        return showFeedback(message);
+    }
+
+    @Override
+    public ResourceBundle getGuiLabelsBundle() {
+        return WhiteboxInternationalizationTools.getGuiLabelsBundle();
+    }
+
+    @Override
+    public ResourceBundle getMessageBundle() {
+        return WhiteboxInternationalizationTools.getMessagesBundle();
+    }
+
+    @Override
+    public void logException(String message, Exception e) {
+        logThrowable(message, e);
+    }
+
+    @Override
+    public synchronized void logThrowable(String message, Throwable t) {
+        failed = true;
+        synchronized (err) {
+            print(err, "Error: " + message);
+            t.printStackTrace(err);
+        }
+    }
+
+    @Override
+    public void logMessage(Level level, String message) {
+        print(err, level.getName() + ": " + message);
+    }
+
+    @Override
+    public String[] getCurrentlyDisplayedFiles() {
+        return new String[0];
+    }
+
+    @Override
+    public void runPlugin(String pluginName, String[] args) {
+        runPlugin(pluginName, args, false, false);
+    }
+
+    @Override
+    public void runPlugin(String pluginName, String[] args, boolean runOnDedicatedThread) {
+        runPlugin(pluginName, args, runOnDedicatedThread, false);
+    }
+
+    /**
+     * Runs another plugin, e.g. one called from a script, to completion on
+     * the calling thread. The plugin reports through a separate host that
+     * shares this host's streams, and its failure fails this host's job.
+     */
+    @Override
+    public void runPlugin(String pluginName, String[] args, boolean runOnDedicatedThread,
+            boolean suppressReturnedData) {
+        HeadlessPluginHost host = new HeadlessPluginHost(registry, resourcesDirectory,
+                jobId + "/" + pluginName, out, err);
+        host.setWorkingDirectory(workingDirectory);
+        host.setProgressStep(progressStep);
+        host.setSuppressReturnedData(suppressReturnedData);
+        if (cancelRequested) {
+            host.requestCancel();
+        }
+        if (!host.run(pluginName, args)) {
+            failed = true;
+        }
+    }
+
+    @Override
+    public void editVector() {
+    }
+
+    @Override
+    public String getLanguageCountryCode() {
+        return languageCountryCode;
+    }
+
+    @Override
+    public void setLanguageCountryCode(String code) {
+        this.languageCountryCode = code;
+    }
+
+    @Override
+    public List returnPluginList() {
+        List<String> ret = new ArrayList<>();
+        for (PluginRegistry.Entry entry : registry.getEntries()) {
+            ret.add(entry.getName());
+        }
+        Collections.sort(ret);
+        return ret;
+    }
+
+    @Override
+    public void cancelOperation() {
+        requestCancel();
+    }
+
+    /**
+     * Dialogs cannot be shown without a user interface, so the request is
+     * reported and the job is marked as failed.
+     */
+    @Override
+    public void launchDialog(String pluginName) {
+        showFeedback("The dialog of the " + pluginName
+                + " tool cannot be shown without a user interface.");
+        failed = true;
+    }
+
+    @Override
+    public synchronized void returnData(Object ret) {
+        returnedData.add(ret);
+        if (!suppressReturnedData && ret instanceof String) {
+            print(out, "Output: " + ret);
+        }
+    }
+
+    @Override
+    public synchronized void pluginComplete() {
+        complete = true;
+    }
+
+    @Override
+    public void updateProgress(String progressLabel, int progress) {
+        if (progressStep > 100 || progress <= 0) {
+            // plugins reset their progress to zero when they finish
+            return;
+        }
+        String label = progressLabel == null ? "" : progressLabel.trim();
+        if (label.endsWith(":")) {
+            label = label.substring(0, label.length() - 1);
+        }
+        synchronized (this) {
+            if (label.equals(lastProgressLabel) && progress != 100
+                    && Math.abs(progress - lastProgress) < Math.max(1, progressStep)) {
+                return;
+            }
+            lastProgressLabel = label;
+            lastProgress = progress;
+        }
+        if (label.isEmpty() || label.equals("Progress")) {
+            print(out, progress + "%");
+        } else {
+            print(out, label + ": " + progress + "%");
+        }
+    }
+
+    @Override
+    public void updateProgress(int progress) {
+        updateProgress(lastProgressLabel, progress);
+    }
+
+    @Override
+    public void refreshMap(boolean updateLayersTab) {
+    }
+
+    @Override
+    public void deleteFeature() {
+    }
+
+    @Override
+    public void deleteLastNodeInFeature() {
+    }
+
+    /**
+     * @return the plain 11 point SanSerif font. Creating a font does not
+     * require a display.
+     */
+    @Override
+    public Font getDefaultFont() {
+        return new Font("SanSerif", Font.PLAIN, 11);
+    }
+
+    @Override
+    public boolean isRequestForOperationCancelSet() {
+        return cancelRequested;
+    }
+
+    @Override
+    public void resetRequestForOperationCancel() {
+        cancelRequested = false;
+    }
+
+    @Override
+    public void showHelp() {
+    }
+
+    @Override
+    public void showHelp(String helpFile) {
+    }
+
+    @Override
+    public void setSelectFeature() {
+    }
+
+    @Override
+    public void deselectAllFeaturesInActiveLayer() {
+    }
+
+    @Override
+    public void saveSelection() {
+    }
+
+    @Override
+    public MapLayer getActiveMapLayer() {
+        return null;
+    }
+
+    @Override
+    public void setActiveMapLayer(int layerNumber) {
+    }
+
+    @Override
+    public ArrayList<MapLayer> getAllMapLayers() {
+        return new ArrayList<>();
+    }
+
+    @Override
+    public void zoomToFullExtent() {
+    }
+
+    @Override
+    public void zoomIn() {
+    }
+
+    @Override
+    public void zoomOut() {
+    }
+
+    @Override
+    public void zoomToLayer() {
+    }
+
+    @Override
+    public void zoomToPage() {
+    }
+
+    @Override
+    public void zoomToSelection() {
+    }
+}
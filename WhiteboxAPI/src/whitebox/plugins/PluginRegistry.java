@@ -0,0 +1,405 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.plugins;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Properties;
+import whitebox.interfaces.InteropPlugin;
+import whitebox.interfaces.InteropPlugin.InteropPluginType;
+import whitebox.interfaces.WhiteboxPlugin;
+
+/**
+ * An index of the available plugins, which allows a plugin to be created by
+ * name without instantiating every plugin on the classpath, as a
+ * ServiceLoader search does. The plugin class names are read from the
+ * META-INF/services files of the plugin jars. The first time that a set of
+ * jars is seen, each plugin is instantiated once to record its names,
+ * description, toolboxes and any import/export details. The index is then
+ * saved to a file along with the modification time and size of each jar, and
+ * is reused until one of the jars changes, is added or is removed.
+ *
+ * @author johnlindsay
+ */
+public class PluginRegistry {
+
+    private static final String SERVICES_FILE = "META-INF/services/" + WhiteboxPlugin.class.getName();
+    private final ClassLoader classLoader;
+    private final File indexFile;
+    private List<Entry> entries = new ArrayList<>();
+    private HashMap<String, Entry> byName = new HashMap<>();
+    private HashMap<String, Entry> byDescriptiveName = new HashMap<>();
+
+    /**
+     * The recorded details of a single plugin.
+     */
+    public static class Entry {
+
+        private String className;
+        private String name;
+        private String descriptiveName;
+        private String toolDescription;
+        private String[] toolboxes;
+        private boolean interop;
+        private String fileTypeName;
+        private String[] extensions;
+        private boolean rasterFormat;
+        private InteropPluginType interopPluginType;
+
+        public String getClassName() {
+            return className;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getDescriptiveName() {
+            return descriptiveName;
+        }
+
+        public String getToolDescription() {
+            return toolDescription;
+        }
+
+        public String[] getToolbox() {
+            return toolboxes.clone();
+        }
+
+        /**
+         * @return true if the plugin implements InteropPlugin.
+         */
+        public boolean isInteropPlugin() {
+            return interop;
+        }
+
+        public String getFileTypeName() {
+            return fileTypeName;
+        }
+
+        public String[] getExtensions() {
+            return extensions == null ? null : extensions.clone();
+        }
+
+        public boolean isRasterFormat() {
+            return rasterFormat;
+        }
+
+        public InteropPluginType getInteropPluginType() {
+            return interopPluginType;
+        }
+    }
+
+    /**
+     * @param classLoader The class loader used to find and load plugins.
+     * @param indexFile The file in which the index is saved, or null if the
+     * index should not be saved.
+     */
+    public PluginRegistry(ClassLoader classLoader, File indexFile) {
+        this.classLoader = classLoader;
+        this.indexFile = indexFile;
+        load();
+    }
+
+    /**
+     * Reads the saved index if it is up to date, or otherwise rebuilds it.
+     */
+    public final synchronized void load() {
+        String signature;
+        List<String> classNames;
+        try {
+            List<URL> resources = Collections.list(classLoader.getResources(SERVICES_FILE));
+            signature = getSignature(resources);
+            if (indexFile != null && indexFile.exists()) {
+                List<Entry> saved = readIndex(signature);
+                if (saved != null) {
+                    setEntries(saved);
+                    return;
+                }
+            }
+            classNames = readClassNames(resources);
+        } catch (IOException e) {
+            System.err.println("Error reading the plugin index: " + e.getMessage());
+            return;
+        }
+        setEntries(scan(classNames));
+        if (indexFile != null) {
+            try {
+                writeIndex(signature);
+            } catch (IOException e) {
+                // the index is only a cache, e.g. the directory may be read-only
+            }
+        }
+    }
+
+    private void setEntries(List<Entry> list) {
+        entries = list;
+        byName = new HashMap<>();
+        byDescriptiveName = new HashMap<>();
+        for (Entry e : list) {
+            if (!byName.containsKey(e.name)) {
+                byName.put(e.name, e);
+            }
+            if (!byDescriptiveName.containsKey(e.descriptiveName)) {
+                byDescriptiveName.put(e.descriptiveName, e);
+            }
+        }
+    }
+
+    /*
+     * Describes the jars (or directories) that provide plugins, so that a
+     * saved index can be checked against them.
+     */
+    private static String getSignature(List<URL> resources) {
+        StringBuilder sb = new StringBuilder();
+        for (URL url : resources) {
+            File f = getSourceFile(url);
+            sb.append(url.toExternalForm());
+            if (f != null) {
+                sb.append('|').append(f.lastModified()).append('|').append(f.length());
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static File getSourceFile(URL url) {
+        try {
+            String spec = url.toExternalForm();
+            if (spec.startsWith("jar:")) {
+                int i = spec.indexOf("!/");
+                return new File(new URL(spec.substring(4, i)).toURI());
+            } else if (spec.startsWith("file:")) {
+                return new File(url.toURI());
+            }
+        } catch (Exception e) {
+            // unrecognized location; only its URL is part of the signature
+        }
+        return null;
+    }
+
+    private static List<String> readClassNames(List<URL> resources) throws IOException {
+        LinkedHashSet<String> names = new LinkedHashSet<>();
+        for (URL url : resources) {
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(url.openStream(), "UTF-8"))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    int i = line.indexOf('#');
+                    if (i >= 0) {
+                        line = line.substring(0, i);
+                    }
+                    line = line.trim();
+                    if (!line.isEmpty()) {
+                        names.add(line);
+                    }
+                }
+            }
+        }
+        return new ArrayList<>(names);
+    }
+
+    private List<Entry> scan(List<String> classNames) {
+        List<Entry> list = new ArrayList<>();
+        for (String className : classNames) {
+            try {
+                WhiteboxPlugin plugin = instantiate(className);
+                Entry e = new Entry();
+                e.className = className;
+                e.name = plugin.getName();
+                e.descriptiveName = plugin.getDescriptiveName();
+                e.toolDescription = plugin.getToolDescription();
+                e.toolboxes = plugin.getToolbox();
+                if (e.toolboxes == null) {
+                    e.toolboxes = new String[0];
+                }
+                if (plugin instanceof InteropPlugin) {
+                    InteropPlugin ip = (InteropPlugin) plugin;
+                    e.interop = true;
+                    e.fileTypeName = ip.getFileTypeName();
+                    e.extensions = ip.getExtensions();
+                    e.rasterFormat = ip.isRasterFormat();
+                    e.interopPluginType = ip.getInteropPluginType();
+                }
+                list.add(e);
+            } catch (Throwable t) {
+                System.err.println("The plugin " + className + " could not be loaded: " + t.getMessage());
+            }
+        }
+        return list;
+    }
+
+    private WhiteboxPlugin instantiate(String className) throws Exception {
+        Class<?> c = Class.forName(className, true, classLoader);
+        return c.asSubclass(WhiteboxPlugin.class).getDeclaredConstructor().newInstance();
+    }
+
+    private List<Entry> readIndex(String signature) {
+        Properties p = new Properties();
+        try (InputStream in = new FileInputStream(indexFile)) {
+            p.load(in);
+        } catch (IOException e) {
+            return null;
+        }
+        if (!signature.equals(p.getProperty("signature"))) {
+            return null;
+        }
+        try {
+            int n = Integer.parseInt(p.getProperty("count"));
+            List<Entry> list = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                String key = "plugin." + i + ".";
+                Entry e = new Entry();
+                e.className = p.getProperty(key + "class");
+                e.name = p.getProperty(key + "name");
+                e.descriptiveName = p.getProperty(key + "descriptiveName");
+                e.toolDescription = p.getProperty(key + "description");
+                e.toolboxes = split(p.getProperty(key + "toolboxes"));
+                e.interop = Boolean.parseBoolean(p.getProperty(key + "interop"));
+                if (e.interop) {
+                    e.fileTypeName = p.getProperty(key + "fileTypeName");
+                    e.extensions = split(p.getProperty(key + "extensions"));
+                    e.rasterFormat = Boolean.parseBoolean(p.getProperty(key + "rasterFormat"));
+                    e.interopPluginType = InteropPluginType.valueOf(p.getProperty(key + "interopType"));
+                }
+                if (e.className == null || e.name == null) {
+                    return null;
+                }
+                list.add(e);
+            }
+            return list;
+        } catch (RuntimeException e) {
+            // a damaged index is rebuilt
+            return null;
+        }
+    }
+
+    private void writeIndex(String signature) throws IOException {
+        Properties p = new Properties();
+        p.setProperty("signature", signature);
+        p.setProperty("count", String.valueOf(entries.size()));
+        for (int i = 0; i < entries.size(); i++) {
+            Entry e = entries.get(i);
+            String key = "plugin." + i + ".";
+            p.setProperty(key + "class", e.className);
+            p.setProperty(key + "name", e.name);
+            p.setProperty(key + "descriptiveName", String.valueOf(e.descriptiveName));
+            p.setProperty(key + "description", String.valueOf(e.toolDescription));
+            p.setProperty(key + "toolboxes", join(e.toolboxes));
+            p.setProperty(key + "interop", String.valueOf(e.interop));
+            if (e.interop) {
+                p.setProperty(key + "fileTypeName", String.valueOf(e.fileTypeName));
+                p.setProperty(key + "extensions", join(e.extensions));
+                p.setProperty(key + "rasterFormat", String.valueOf(e.rasterFormat));
+                p.setProperty(key + "interopType", e.interopPluginType.name());
+            }
+        }
+        // write to a temporary file first so that a partial index is never read
+        File tmp = new File(indexFile.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            p.store(out, "Whitebox plugin index");
+        }
+        if (!tmp.renameTo(indexFile)) {
+            indexFile.delete();
+            if (!tmp.renameTo(indexFile)) {
+                tmp.delete();
+            }
+        }
+    }
+
+    private static String join(String[] vals) {
+        if (vals == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < vals.length; i++) {
+            if (i > 0) {
+                sb.append('\n');
+            }
+            sb.append(vals[i]);
+        }
+        return sb.toString();
+    }
+
+    private static String[] split(String val) {
+        if (val == null || val.isEmpty()) {
+            return new String[0];
+        }
+        return val.split("\n", -1);
+    }
+
+    public synchronized List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized Entry getEntry(String name) {
+        return byName.get(name);
+    }
+
+    public synchronized Entry getEntryByDescriptiveName(String descriptiveName) {
+        return byDescriptiveName.get(descriptiveName);
+    }
+
+    /**
+     * Creates a new instance of a plugin. If its class can no longer be
+     * loaded, the index is rebuilt and the plugin is looked up again.
+     *
+     * @param name The plugin's name, i.e. the value returned by getName().
+     * @return a new plugin instance, or null if there is no such plugin.
+     */
+    public WhiteboxPlugin createPlugin(String name) {
+        Entry e = getEntry(name);
+        if (e == null) {
+            return null;
+        }
+        try {
+            return instantiate(e.className);
+        } catch (Exception | LinkageError ex) {
+            // the index is out of date
+        }
+        synchronized (this) {
+            if (indexFile != null) {
+                indexFile.delete();
+            }
+            load();
+        }
+        e = getEntry(name);
+        if (e != null) {
+            try {
+                return instantiate(e.className);
+            } catch (Exception | LinkageError ex) {
+                return null;
+            }
+        }
+        return null;
+    }
+}
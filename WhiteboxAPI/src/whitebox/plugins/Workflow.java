@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.plugins;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A sequence of plugin calls that is run by a WorkflowExecutor. Each step
+ * names a tool and its parameters. A parameter of the form "@name" refers to
+ * an intermediate raster, which the executor creates in a temporary
+ * directory, holds in memory where possible, and deletes once the last step
+ * using it has finished. A parameter of the form "@name.ext", e.g.
+ * "@streams.shp", refers to an intermediate file of another type, which is
+ * kept on disk but is also deleted automatically. Multiple files within a
+ * parameter are separated by semicolons, as in the plugin dialogs.
+ * <p>
+ * A step writes the files given for the output ("Save File") parameters of
+ * its tool's dialog and reads the others. For a tool without a dialog file,
+ * e.g. a script, a file is taken to be written by the first step that names
+ * it. A step that reads a file runs after the last earlier step that wrote
+ * it, and a step that writes a file runs after the earlier steps that read or
+ * wrote it, whether or not the file already exists, so a workflow can be
+ * re-run over its previous outputs. A step also runs after the steps named in
+ * its "after" list. Otherwise steps are independent and may run at the same
+ * time. A workflow can be built in a script, e.g. in Groovy:
+ * <pre>
+ * def wf = new Workflow()
+ * wf.addStep("fill", "FillDepressions", wd + "dem.dep", "@filled", "0.001")
+ * wf.addStep("pntr", "FlowPointerD8", "@filled", "@pntr")
+ * wf.addStep("acc", "FlowAccumD8", "@pntr", wd + "acc.dep", "number of upslope grid cells", "false")
+ * new WorkflowExecutor(pluginHost).run(wf)
+ * </pre>
+ * or read from a JSON description with the same structure:
+ * <pre>
+ * { "threads": 2, "memoryBudget": 2048,
+ *   "steps": [ { "id": "fill", "tool": "FillDepressions",
+ *                "args": ["dem.dep", "@filled", "0.001"] }, ... ] }
+ * </pre>
+ *
+ * @author johnlindsay
+ */
+public class Workflow {
+
+    private Integer threads;
+    private Double memoryBudget;
+    private String tempDirectory;
+    private List<Step> steps = new ArrayList<>();
+
+    /**
+     * A single plugin call.
+     */
+    public static class Step {
+
+        private String id;
+        private String tool;
+        private String[] args;
+        private String[] after;
+
+        public Step() {
+        }
+
+        public Step(String id, String tool, String[] args) {
+            this.id = id;
+            this.tool = tool;
+            this.args = args;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getTool() {
+            return tool;
+        }
+
+        public String[] getArgs() {
+            return args == null ? new String[0] : args.clone();
+        }
+
+        /**
+         * @return the ids of the steps that this step must follow, in
+         * addition to those ordered by the files that it reads and writes.
+         */
+        public String[] getAfter() {
+            return after == null ? new String[0] : after.clone();
+        }
+
+        public void setAfter(String... after) {
+            this.after = after;
+        }
+    }
+
+    /**
+     * Adds a step.
+     *
+     * @param id A unique identifier for the step.
+     * @param tool The name of the plugin.
+     * @param args The plugin's parameters.
+     * @return the new step.
+     */
+    public Step addStep(String id, String tool, String... args) {
+        Step step = new Step(id, tool, args);
+        steps.add(step);
+        return step;
+    }
+
+    public List<Step> getSteps() {
+        return Collections.unmodifiableList(steps);
+    }
+
+    /**
+     * @return the maximum number of steps run at once, or 0 for the default.
+     */
+    public int getNumberOfThreads() {
+        return threads == null ? 0 : threads;
+    }
+
+    public void setNumberOfThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * @return the memory available for intermediate rasters in megabytes, or
+     * 0 for the default.
+     */
+    public double getMemoryBudget() {
+        return memoryBudget == null ? 0 : memoryBudget;
+    }
+
+    public void setMemoryBudget(double megabytes) {
+        this.memoryBudget = megabytes;
+    }
+
+    /**
+     * @return the directory in which the temporary directory for intermediate
+     * files is created, or null for the system default.
+     */
+    public String getTempDirectory() {
+        return tempDirectory;
+    }
+
+    public void setTempDirectory(String tempDirectory) {
+        this.tempDirectory = tempDirectory;
+    }
+
+    /**
+     * Reads a workflow from a JSON description.
+     *
+     * @param reader The source of the description.
+     * @return the workflow.
+     * @throws JsonParseException if the description is not valid.
+     */
+    public static Workflow fromJson(Reader reader) {
+        Workflow wf = new Gson().fromJson(reader, Workflow.class);
+        if (wf == null) {
+            throw new JsonParseException("The workflow description is empty.");
+        }
+        if (wf.steps == null) {
+            wf.steps = new ArrayList<>();
+        }
+        return wf;
+    }
+}
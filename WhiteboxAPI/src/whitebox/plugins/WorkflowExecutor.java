@@ -0,0 +1,790 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.plugins;
+
+import java.awt.Font;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+import whitebox.geospatialfiles.RasterMemoryStore;
+import whitebox.interfaces.MapLayer;
+import whitebox.interfaces.WhiteboxPlugin;
+import whitebox.interfaces.WhiteboxPluginHost;
+import whitebox.parallel.Parallel;
+
+/**
+ * Runs the steps of a Workflow as a directed acyclic graph. A step starts as
+ * soon as the steps that it depends on have succeeded, so independent
+ * branches of the workflow run concurrently. Intermediate rasters are
+ * registered with the RasterMemoryStore, so that they are passed from one
+ * plugin to the next in memory and only reach the disk if the memory budget
+ * is exceeded. Each intermediate file is deleted as soon as the last step
+ * that uses it has finished, and the temporary directory is removed when the
+ * workflow ends. If a step fails, the steps that depend on it are skipped but
+ * independent branches run to completion.
+ * <p>
+ * The plugins report to the host that is supplied, e.g. the Whitebox GAT
+ * user interface when the executor is used from a script, or a
+ * HeadlessPluginHost. Progress is labelled with the step id. Data returned by
+ * a plugin are passed on to the host unless they refer to an intermediate
+ * file.
+ *
+ * @author johnlindsay
+ */
+public class WorkflowExecutor {
+
+    private final WhiteboxPluginHost host;
+    private final PluginRegistry registry;
+    private int numThreads = Parallel.getPluginProcessors();
+    private volatile boolean cancelled = false;
+
+    /**
+     * @param host The host to which the plugins report.
+     */
+    public WorkflowExecutor(WhiteboxPluginHost host) {
+        this(host, new PluginRegistry(Thread.currentThread().getContextClassLoader(),
+                new File(host.getResourcesDirectory() + "plugins", StandardPluginService.INDEX_FILE_NAME)));
+    }
+
+    /**
+     * @param host The host to which the plugins report.
+     * @param registry The registry used to create the plugins.
+     */
+    public WorkflowExecutor(WhiteboxPluginHost host, PluginRegistry registry) {
+        this.host = host;
+        this.registry = registry;
+    }
+
+    /**
+     * Sets the maximum number of steps that run at once. This is overridden
+     * by a workflow that specifies its own number of threads.
+     *
+     * @param numThreads The number of threads.
+     */
+    public void setNumberOfThreads(int numThreads) {
+        this.numThreads = Math.max(1, numThreads);
+    }
+
+    /**
+     * Stops the workflow. Running steps are asked to cancel and no further
+     * steps are started.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /*
+     * The state of a step during a run.
+     */
+    private static class Node {
+
+        String id;
+        Workflow.Step step;
+        String[] args;
+        Set<String> files = new LinkedHashSet<>();
+        List<Node> dependents = new ArrayList<>();
+        int numWaiting = 0;
+        boolean failed = false;
+    }
+
+    /**
+     * Runs a workflow.
+     *
+     * @param workflow The workflow.
+     * @return true if every step succeeded.
+     * @throws IOException if the temporary directory cannot be created.
+     * @throws IllegalArgumentException if the workflow is not valid, e.g. two
+     * steps share an id or a step follows an unknown step.
+     */
+    public boolean run(Workflow workflow) throws IOException, InterruptedException {
+        cancelled = false;
+        int threads = workflow.getNumberOfThreads() > 0 ? workflow.getNumberOfThreads() : numThreads;
+        long oldBudget = RasterMemoryStore.getBudget();
+        if (workflow.getMemoryBudget() > 0) {
+            RasterMemoryStore.setBudget((long) (workflow.getMemoryBudget() * 1048576));
+        }
+        File tempDir;
+        if (workflow.getTempDirectory() != null) {
+            tempDir = Files.createTempDirectory(new File(workflow.getTempDirectory()).toPath(), "workflow").toFile();
+        } else {
+            tempDir = Files.createTempDirectory("workflow").toFile();
+        }
+
+        // the number of steps that use each intermediate file
+        HashMap<String, Integer> intermediates = new HashMap<>();
+        try {
+            List<Node> nodes = buildGraph(workflow, tempDir, intermediates);
+            for (String fileName : intermediates.keySet()) {
+                if (fileName.endsWith(".dep")) {
+                    RasterMemoryStore.register(fileName);
+                }
+            }
+            return execute(nodes, Math.max(1, threads), intermediates, tempDir.getPath());
+        } finally {
+            for (String fileName : intermediates.keySet()) {
+                deleteIntermediate(fileName);
+            }
+            deleteDirectory(tempDir);
+            if (workflow.getMemoryBudget() > 0) {
+                RasterMemoryStore.setBudget(oldBudget);
+            }
+        }
+    }
+
+    private List<Node> buildGraph(Workflow workflow, File tempDir, HashMap<String, Integer> intermediates) {
+        LinkedHashMap<String, Node> byId = new LinkedHashMap<>();
+        // the step that last wrote each file, and the steps that have read it since
+        HashMap<String, Node> writer = new HashMap<>();
+        HashMap<String, List<Node>> readers = new HashMap<>();
+        HashMap<String, Set<Integer>> outputsByTool = new HashMap<>();
+        List<Node> nodes = new ArrayList<>();
+        int n = 0;
+        for (Workflow.Step step : workflow.getSteps()) {
+            n++;
+            Node node = new Node();
+            node.step = step;
+            String id = step.getId() != null ? step.getId() : String.valueOf(n);
+            if (byId.containsKey(id)) {
+                throw new IllegalArgumentException("The workflow contains more than one step with the id " + id + ".");
+            }
+            if (step.getTool() == null) {
+                throw new IllegalArgumentException("The step " + id + " does not name a tool.");
+            }
+            node.id = id;
+            byId.put(id, node);
+
+            if (!outputsByTool.containsKey(step.getTool())) {
+                outputsByTool.put(step.getTool(), getOutputParameters(step.getTool()));
+            }
+            Set<Integer> outputs = outputsByTool.get(step.getTool());
+            Set<String> written = new LinkedHashSet<>();
+            String[] args = step.getArgs();
+            for (int i = 0; i < args.length; i++) {
+                if (args[i] == null) {
+                    continue;
+                }
+                String[] files = args[i].split(";", -1);
+                for (int j = 0; j < files.length; j++) {
+                    String s = files[j].trim();
+                    String file = null;
+                    if (s.startsWith("@") && s.length() > 1) {
+                        String name = s.substring(1);
+                        if (!name.contains(".")) {
+                            name += ".dep";
+                        }
+                        files[j] = new File(tempDir, name).getPath();
+                        file = files[j];
+                        if (!node.files.contains(file)) {
+                            Integer count = intermediates.get(file);
+                            intermediates.put(file, count == null ? 1 : count + 1);
+                        }
+                    } else if (isFileName(s)) {
+                        file = new File(s).getAbsolutePath();
+                    }
+                    if (file != null) {
+                        node.files.add(file);
+                        // without a declaration, the first step to name a file writes it
+                        if (outputs != null ? outputs.contains(i)
+                                : !writer.containsKey(file) && !readers.containsKey(file)) {
+                            written.add(file);
+                        }
+                    }
+                }
+                StringBuilder sb = new StringBuilder(files[0]);
+                for (int j = 1; j < files.length; j++) {
+                    sb.append(";").append(files[j]);
+                }
+                args[i] = sb.toString();
+            }
+            node.args = args;
+
+            LinkedHashSet<Node> dependsOn = new LinkedHashSet<>();
+            for (String file : node.files) {
+                Node prev = writer.get(file);
+                if (prev != null) {
+                    dependsOn.add(prev);
+                }
+                List<Node> list = readers.get(file);
+                if (written.contains(file)) {
+                    // a file is only overwritten once the steps reading it have finished
+                    if (list != null) {
+                        dependsOn.addAll(list);
+                        readers.remove(file);
+                    }
+                    writer.put(file, node);
+                } else {
+                    if (list == null) {
+                        list = new ArrayList<>();
+                        readers.put(file, list);
+                    }
+                    list.add(node);
+                }
+            }
+            dependsOn.remove(node);
+            for (String after : step.getAfter()) {
+                Node prev = byId.get(after);
+                if (prev == null || prev == node) {
+                    throw new IllegalArgumentException("The step " + id + " follows an unknown step " + after + ".");
+                }
+                dependsOn.add(prev);
+            }
+            for (Node prev : dependsOn) {
+                prev.dependents.add(node);
+                node.numWaiting++;
+            }
+            nodes.add(node);
+        }
+        return nodes;
+    }
+
+    /*
+     * Finds the parameters that a tool writes, i.e. the "Save File"
+     * parameters of its dialog. Returns null if the tool has no dialog file
+     * from which they can be determined, e.g. a script.
+     */
+    private Set<Integer> getOutputParameters(String tool) {
+        PluginRegistry.Entry entry = registry.getEntry(tool);
+        if (entry == null) {
+            entry = registry.getEntryByDescriptiveName(tool);
+        }
+        String name = entry != null ? entry.getName() : tool;
+        File file = new File(host.getResourcesDirectory() + "plugins" + File.separator
+                + "Dialogs" + File.separator + name + ".xml");
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            DocumentBuilder db = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+            Document doc = db.parse(file);
+            NodeList nl = doc.getDocumentElement().getElementsByTagName("DialogComponent");
+            Set<Integer> outputs = new HashSet<>();
+            int parameter = 0;
+            for (int i = 0; i < nl.getLength(); i++) {
+                Element el = (Element) nl.item(i);
+                String type = el.getAttribute("type");
+                if (type.equals("Label")) {
+                    continue;
+                } else if (type.equals("CustomDialogProvidedByPlugin")) {
+                    return null;
+                }
+                if (type.equals("DialogFile")) {
+                    NodeList mode = el.getElementsByTagName("DialogMode");
+                    if (mode.getLength() > 0
+                            && mode.item(0).getTextContent().trim().toLowerCase().contains("save")) {
+                        outputs.add(parameter);
+                    }
+                }
+                parameter++;
+            }
+            return outputs;
+        } catch (ParserConfigurationException | SAXException | IOException e) {
+            return null;
+        }
+    }
+
+    /*
+     * Parameters that are files are recognized by a path separator or a file
+     * extension. Numbers, such as 0.001, are not files.
+     */
+    private static boolean isFileName(String s) {
+        if (s.isEmpty()) {
+            return false;
+        }
+        if (s.contains(File.separator) || s.contains("/")) {
+            return true;
+        }
+        int i = s.lastIndexOf('.');
+        if (i <= 0 || i == s.length() - 1) {
+            return false;
+        }
+        try {
+            Double.parseDouble(s);
+            return false;
+        } catch (NumberFormatException e) {
+            return Character.isLetter(s.charAt(i + 1));
+        }
+    }
+
+    private boolean execute(List<Node> nodes, int threads, HashMap<String, Integer> intermediates,
+            String tempDir) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, nodes.size())));
+        CompletionService<Node> completion = new ExecutorCompletionService<>(executor);
+        final List<StepHost> running = new ArrayList<>();
+        boolean success = true;
+        try {
+            List<Node> ready = new ArrayList<>();
+            for (Node node : nodes) {
+                if (node.numWaiting == 0) {
+                    ready.add(node);
+                }
+            }
+            int numDone = 0;
+            while (numDone < nodes.size()) {
+                for (final Node node : ready) {
+                    if (cancelled || host.isRequestForOperationCancelSet()) {
+                        node.failed = true;
+                        completion.submit(new Callable<Node>() {
+                            @Override
+                            public Node call() {
+                                return node;
+                            }
+                        });
+                    } else {
+                        final StepHost stepHost = new StepHost(node.id, tempDir);
+                        synchronized (running) {
+                            running.add(stepHost);
+                        }
+                        completion.submit(new Callable<Node>() {
+                            @Override
+                            public Node call() {
+                                try {
+                                    node.failed = !stepHost.run(node.step.getTool(), node.args);
+                                } finally {
+                                    synchronized (running) {
+                                        running.remove(stepHost);
+                                    }
+                                }
+                                return node;
+                            }
+                        });
+                    }
+                }
+                ready.clear();
+
+                Node node;
+                try {
+                    node = completion.take().get();
+                } catch (ExecutionException e) {
+                    // the steps catch everything that the plugins throw
+                    throw new IllegalStateException(e.getCause());
+                }
+                if (node.failed) {
+                    success = false;
+                }
+                if (cancelled || host.isRequestForOperationCancelSet()) {
+                    synchronized (running) {
+                        for (StepHost h : running) {
+                            h.requestCancel();
+                        }
+                    }
+                }
+                numDone += 1 + finish(node, ready, intermediates);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return success;
+    }
+
+    /*
+     * Releases the files of a finished step and passes on to its dependents.
+     * Those that are no longer waiting are added to the ready list, or are
+     * skipped if a step that they depend on failed. Returns the number of
+     * steps skipped.
+     */
+    private int finish(Node node, List<Node> ready, HashMap<String, Integer> intermediates) {
+        release(node, intermediates);
+        int numSkipped = 0;
+        for (Node next : node.dependents) {
+            if (node.failed) {
+                next.failed = true;
+            }
+            next.numWaiting--;
+            if (next.numWaiting == 0) {
+                if (next.failed) {
+                    host.showFeedback("The workflow step " + next.id
+                            + " was skipped because an earlier step failed.");
+                    numSkipped += 1 + finish(next, ready, intermediates);
+                } else {
+                    ready.add(next);
+                }
+            }
+        }
+        return numSkipped;
+    }
+
+    /*
+     * Deletes the intermediate files that no remaining step uses.
+     */
+    private void release(Node node, HashMap<String, Integer> intermediates) {
+        for (String file : node.files) {
+            Integer count = intermediates.get(file);
+            if (count != null) {
+                if (count <= 1) {
+                    intermediates.remove(file);
+                    deleteIntermediate(file);
+                } else {
+                    intermediates.put(file, count - 1);
+                }
+            }
+        }
+    }
+
+    private static void deleteIntermediate(String fileName) {
+        if (fileName.endsWith(".dep")) {
+            RasterMemoryStore.delete(fileName);
+            return;
+        }
+        // remove the companion files too, e.g. the .shx and .dbf of a shapefile
+        File file = new File(fileName);
+        String name = file.getName();
+        int i = name.lastIndexOf('.');
+        final String base = i > 0 ? name.substring(0, i + 1) : name;
+        File[] files = file.getParentFile().listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.getName().startsWith(base)) {
+                    f.delete();
+                }
+            }
+        }
+    }
+
+    private static void deleteDirectory(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.isDirectory()) {
+                    deleteDirectory(f);
+                } else {
+                    f.delete();
+                }
+            }
+        }
+        dir.delete();
+    }
+
+    /*
+     * The host seen by the plugin of a single step. Everything is passed on
+     * to the workflow's host, except that the end of the plugin is recorded
+     * here, progress is labelled with the step id, and intermediate files are
+     * not returned.
+     */
+    private class StepHost implements WhiteboxPluginHost {
+
+        private final String stepId;
+        private final String tempDir;
+        private volatile WhiteboxPlugin plugin;
+        private volatile boolean cancelRequested = false;
+        private volatile boolean failed = false;
+
+        StepHost(String stepId, String tempDir) {
+            this.stepId = stepId;
+            this.tempDir = tempDir;
+        }
+
+        boolean run(String tool, String[] args) {
+            WhiteboxPlugin p = registry.createPlugin(tool);
+            if (p == null) {
+                PluginRegistry.Entry entry = registry.getEntryByDescriptiveName(tool);
+                if (entry != null) {
+                    p = registry.createPlugin(entry.getName());
+                }
+            }
+            if (p == null) {
+                host.showFeedback("Workflow step " + stepId + ": unrecognized plugin " + tool);
+                return false;
+            }
+            p.setPluginHost(this);
+            p.setArgs(args);
+            plugin = p;
+            try {
+                p.run();
+            } catch (Exception | Error e) {
+                logThrowable("Workflow step " + stepId, e);
+            } finally {
+                plugin = null;
+            }
+            return !failed && !cancelRequested;
+        }
+
+        void requestCancel() {
+            cancelRequested = true;
+            WhiteboxPlugin p = plugin;
+            if (p != null) {
+                p.setCancelOp(true);
+            }
+        }
+
+        @Override
+        public void returnData(Object ret) {
+            if (!(ret instanceof String && ((String) ret).contains(tempDir))) {
+                host.returnData(ret);
+            }
+        }
+
+        @Override
+        public void pluginComplete() {
+        }
+
+        @Override
+        public void updateProgress(String progressLabel, int progress) {
+            String label = progressLabel == null ? "" : progressLabel.trim();
+            host.updateProgress(stepId + " " + label, progress);
+        }
+
+        @Override
+        public void updateProgress(int progress) {
+            host.updateProgress(stepId, progress);
+        }
+
+        @Override
+        public int showFeedback(String message) {
+            return host.showFeedback(message);
+        }
+
+        @Override
+        public int showFeedback(String message, int optionType, int messageType) {
+            return host.showFeedback(message, optionType, messageType);
+        }
+
+        @Override
+        public void logException(String message, Exception e) {
+            failed = true;
+            host.logException(message, e);
+        }
+
+        @Override
+        public void logThrowable(String message, Throwable t) {
+            failed = true;
+            host.logThrowable(message, t);
+        }
+
+        @Override
+        public void logMessage(Level level, String message) {
+            host.logMessage(level, message);
+        }
+
+        @Override
+        public void cancelOperation() {
+            requestCancel();
+        }
+
+        @Override
+        public boolean isRequestForOperationCancelSet() {
+            return cancelRequested || host.isRequestForOperationCancelSet();
+        }
+
+        @Override
+        public void resetRequestForOperationCancel() {
+            cancelRequested = false;
+        }
+
+        @Override
+        public String getWorkingDirectory() {
+            return host.getWorkingDirectory();
+        }
+
+        @Override
+        public void setWorkingDirectory(String workingDirectory) {
+            host.setWorkingDirectory(workingDirectory);
+        }
+
+        @Override
+        public String getApplicationDirectory() {
+            return host.getApplicationDirectory();
+        }
+
+        @Override
+        public void setApplicationDirectory(String applicationDirectory) {
+            host.setApplicationDirectory(applicationDirectory);
+        }
+
+        @Override
+        public String getResourcesDirectory() {
+            return host.getResourcesDirectory();
+        }
+
+        @Override
+        public String getLogDirectory() {
+            return host.getLogDirectory();
+        }
+
+        @Override
+        public String getHelpDirectory() {
+            return host.getHelpDirectory();
+        }
+
+        @Override
+        public ResourceBundle getGuiLabelsBundle() {
+            return host.getGuiLabelsBundle();
+        }
+
+        @Override
+        public ResourceBundle getMessageBundle() {
+            return host.getMessageBundle();
+        }
+
+        @Override
+        public String[] getCurrentlyDisplayedFiles() {
+            return host.getCurrentlyDisplayedFiles();
+        }
+
+        @Override
+        public void runPlugin(String pluginName, String[] args) {
+            host.runPlugin(pluginName, args);
+        }
+
+        @Override
+        public void runPlugin(String pluginName, String[] args, boolean runOnDedicatedThread) {
+            host.runPlugin(pluginName, args, runOnDedicatedThread);
+        }
+
+        @Override
+        public void runPlugin(String pluginName, String[] args, boolean runOnDedicatedThread,
+                boolean suppressReturnedData) {
+            host.runPlugin(pluginName, args, runOnDedicatedThread, suppressReturnedData);
+        }
+
+        @Override
+        public void editVector() {
+            host.editVector();
+        }
+
+        @Override
+        public String getLanguageCountryCode() {
+            return host.getLanguageCountryCode();
+        }
+
+        @Override
+        public void setLanguageCountryCode(String code) {
+            host.setLanguageCountryCode(code);
+        }
+
+        @Override
+        public List returnPluginList() {
+            return host.returnPluginList();
+        }
+
+        @Override
+        public void launchDialog(String pluginName) {
+            host.launchDialog(pluginName);
+        }
+
+        @Override
+        public void refreshMap(boolean updateLayersTab) {
+            host.refreshMap(updateLayersTab);
+        }
+
+        @Override
+        public void deleteFeature() {
+            host.deleteFeature();
+        }
+
+        @Override
+        public void deleteLastNodeInFeature() {
+            host.deleteLastNodeInFeature();
+        }
+
+        @Override
+        public Font getDefaultFont() {
+            return host.getDefaultFont();
+        }
+
+        @Override
+        public void showHelp() {
+            host.showHelp();
+        }
+
+        @Override
+        public void showHelp(String helpFile) {
+            host.showHelp(helpFile);
+        }
+
+        @Override
+        public void setSelectFeature() {
+            host.setSelectFeature();
+        }
+
+        @Override
+        public void deselectAllFeaturesInActiveLayer() {
+            host.deselectAllFeaturesInActiveLayer();
+        }
+
+        @Override
+        public void saveSelection() {
+            host.saveSelection();
+        }
+
+        @Override
+        public MapLayer getActiveMapLayer() {
+            return host.getActiveMapLayer();
+        }
+
+        @Override
+        public void setActiveMapLayer(int layerNumber) {
+            host.setActiveMapLayer(layerNumber);
+        }
+
+        @Override
+        public ArrayList<MapLayer> getAllMapLayers() {
+            return host.getAllMapLayers();
+        }
+
+        @Override
+        public void zoomToFullExtent() {
+            host.zoomToFullExtent();
+        }
+
+        @Override
+        public void zoomIn() {
+            host.zoomIn();
+        }
+
+        @Override
+        public void zoomOut() {
+            host.zoomOut();
+        }
+
+        @Override
+        public void zoomToLayer() {
+            host.zoomToLayer();
+        }
+
+        @Override
+        public void zoomToPage() {
+            host.zoomToPage();
+        }
+
+        @Override
+        public void zoomToSelection() {
+            host.zoomToSelection();
+        }
+    }
+}
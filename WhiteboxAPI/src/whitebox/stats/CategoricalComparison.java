@@ -0,0 +1,546 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.stats;
+
+import java.util.Arrays;
+import whitebox.geospatialfiles.WhiteboxRasterBase;
+import whitebox.parallel.RowBands;
+
+/**
+ * Compares two or more categorical rasters, e.g. classified images or land
+ * cover maps, in a single pass. The contingency table (cross-tabulation) of
+ * every pair of rasters is accumulated at once, so comparing N maps reads
+ * each of them only once rather than N - 1 times. If only some of the pairs
+ * are of interest, e.g. each of several classifications against a single
+ * reference, the tables can be limited to those pairs with setPairs or
+ * setReference.
+ *
+ * The class values must be integers but need not be small or contiguous.
+ * Each distinct value found in any of the rasters is given a dense class
+ * index, so a table only has as many rows and columns as there are classes.
+ * The rows are processed in bands on separate threads; each band counts into
+ * its own primitive long tables, which are merged in row order on the calling
+ * thread. Once the pass is complete the classes are sorted, so that class
+ * index k is the k-th smallest class value.
+ *
+ * A cell is counted in the table of a pair of rasters only if it is not NoData
+ * in either of them. The memory needed is about 8 * P * K * K bytes for each
+ * band in progress, where P is the number of pairs, N * (N - 1) / 2 by
+ * default, and K is the number of classes.
+ *
+ * @author johnlindsay
+ */
+public class CategoricalComparison {
+
+    /*
+     * Receives the progress of the calculation on the calling thread.
+     * Returning false stops the calculation.
+     */
+    public interface Progress {
+
+        boolean rowsCompleted(int completed, int total) throws Exception;
+    }
+
+    private final WhiteboxRasterBase[] rasters;
+    private final int numRasters;
+    // the pairs of rasters whose tables are accumulated, with image1 < image2
+    private int numPairs;
+    private int[] pairImage1;
+    private int[] pairImage2;
+    private int[][] pairIndices;
+    // the results, with the classes in ascending order
+    private int numClasses = 0;
+    private int[] classes;
+    private long[][] classCounts;
+    private long[][] tables;
+
+    /**
+     * @param rasters The categorical rasters to compare. They must all have the
+     * same number of rows and columns.
+     */
+    public CategoricalComparison(WhiteboxRasterBase... rasters) {
+        if (rasters.length < 2) {
+            throw new IllegalArgumentException("At least two input images are needed.");
+        }
+        for (WhiteboxRasterBase r : rasters) {
+            if (r.getNumberRows() != rasters[0].getNumberRows()
+                    || r.getNumberColumns() != rasters[0].getNumberColumns()) {
+                throw new IllegalArgumentException("Input images must have the same dimensions (i.e. rows and columns).");
+            }
+        }
+        this.rasters = rasters.clone();
+        this.numRasters = rasters.length;
+        int[][] pairs = new int[numRasters * (numRasters - 1) / 2][];
+        int p = 0;
+        for (int i = 0; i < numRasters - 1; i++) {
+            for (int j = i + 1; j < numRasters; j++) {
+                pairs[p++] = new int[]{i, j};
+            }
+        }
+        setPairs(pairs);
+    }
+
+    /**
+     * Limits the contingency tables to some of the pairs of rasters. By
+     * default the table of every pair is accumulated. Must be called before
+     * calculate.
+     *
+     * @param pairs The indices of the two rasters of each pair, in either
+     * order.
+     */
+    public final void setPairs(int[][] pairs) {
+        if (pairs.length == 0) {
+            throw new IllegalArgumentException("At least one pair of images is needed.");
+        }
+        int[][] indices = new int[numRasters][numRasters];
+        for (int[] row : indices) {
+            Arrays.fill(row, -1);
+        }
+        int[] image1 = new int[pairs.length];
+        int[] image2 = new int[pairs.length];
+        int n = 0;
+        for (int[] pair : pairs) {
+            int i = Math.min(pair[0], pair[1]);
+            int j = Math.max(pair[0], pair[1]);
+            if (i == j || i < 0 || j >= numRasters) {
+                throw new IllegalArgumentException("A pair of different images is needed.");
+            }
+            if (indices[i][j] < 0) {
+                indices[i][j] = n;
+                image1[n] = i;
+                image2[n] = j;
+                n++;
+            }
+        }
+        numPairs = n;
+        pairImage1 = Arrays.copyOf(image1, n);
+        pairImage2 = Arrays.copyOf(image2, n);
+        pairIndices = indices;
+        tables = null;
+    }
+
+    /**
+     * Limits the contingency tables to those of one raster, e.g. a reference
+     * map, with each of the others.
+     *
+     * @param reference The index of the reference raster.
+     */
+    public void setReference(int reference) {
+        int[][] pairs = new int[numRasters - 1][];
+        int p = 0;
+        for (int i = 0; i < numRasters; i++) {
+            if (i != reference) {
+                pairs[p++] = new int[]{i, reference};
+            }
+        }
+        setPairs(pairs);
+    }
+
+    /**
+     * Makes the single pass over the rasters.
+     *
+     * @param progress Receives the number of rows completed, or null.
+     * @return false if the progress stopped the calculation.
+     * @throws Exception IllegalArgumentException if a raster contains
+     * non-integer values, or any exception thrown while reading the rasters.
+     */
+    public boolean calculate(final Progress progress) throws Exception {
+        final int rows = rasters[0].getNumberRows();
+        final int cols = rasters[0].getNumberColumns();
+        final double[] noData = new double[numRasters];
+        for (int i = 0; i < numRasters; i++) {
+            noData[i] = rasters[i].getNoDataValue();
+        }
+
+        final Accumulator merged = new Accumulator();
+        boolean completed = RowBands.process(rows, new RowBands.Task<Accumulator>() {
+            @Override
+            public Accumulator process(int startRow, int endRow) throws Exception {
+                Accumulator acc = new Accumulator();
+                int[][] index = new int[numRasters][cols];
+                for (int row = startRow; row < endRow; row++) {
+                    // map each cell to its class index, or -1 for NoData
+                    for (int i = 0; i < numRasters; i++) {
+                        double[] data = rasters[i].getRowValues(row);
+                        int[] idx = index[i];
+                        long[] counts = acc.classCounts[i];
+                        int lastValue = 0;
+                        int k = -1;
+                        for (int col = 0; col < cols; col++) {
+                            double z = data[col];
+                            if (z == noData[i]) {
+                                idx[col] = -1;
+                                continue;
+                            }
+                            int value = (int) z;
+                            if (value != z) {
+                                throw new IllegalArgumentException("The input images should contain integer class values only.");
+                            }
+                            // neighbouring cells usually belong to the same class
+                            if (k < 0 || value != lastValue) {
+                                k = acc.classIndex(value);
+                                lastValue = value;
+                                counts = acc.classCounts[i];
+                            }
+                            idx[col] = k;
+                            counts[k]++;
+                        }
+                    }
+                    int capacity = acc.capacity;
+                    for (int p = 0; p < numPairs; p++) {
+                        int[] idx1 = index[pairImage1[p]];
+                        int[] idx2 = index[pairImage2[p]];
+                        long[] table = acc.tables[p];
+                        for (int col = 0; col < cols; col++) {
+                            int a = idx1[col];
+                            int b = idx2[col];
+                            if (a >= 0 && b >= 0) {
+                                table[a * capacity + b]++;
+                            }
+                        }
+                    }
+                }
+                return acc;
+            }
+        }, new RowBands.Consumer<Accumulator>() {
+            @Override
+            public boolean consume(int startRow, int endRow, Accumulator acc) throws Exception {
+                merged.merge(acc);
+                return progress == null || progress.rowsCompleted(endRow, rows);
+            }
+        });
+        if (!completed) {
+            return false;
+        }
+
+        // sort the classes and lay the tables out densely in that order
+        numClasses = merged.numClasses;
+        classes = Arrays.copyOf(merged.classes, numClasses);
+        Arrays.sort(classes);
+        int[] order = new int[numClasses];
+        for (int k = 0; k < numClasses; k++) {
+            order[k] = Arrays.binarySearch(classes, merged.classes[k]);
+        }
+        classCounts = new long[numRasters][numClasses];
+        for (int i = 0; i < numRasters; i++) {
+            for (int k = 0; k < numClasses; k++) {
+                classCounts[i][order[k]] = merged.classCounts[i][k];
+            }
+        }
+        tables = new long[numPairs][];
+        for (int p = 0; p < numPairs; p++) {
+            long[] table = new long[numClasses * numClasses];
+            long[] source = merged.tables[p];
+            for (int a = 0; a < numClasses; a++) {
+                for (int b = 0; b < numClasses; b++) {
+                    table[order[a] * numClasses + order[b]] = source[a * merged.capacity + b];
+                }
+            }
+            tables[p] = table;
+            merged.tables[p] = null;
+        }
+        return true;
+    }
+
+    /*
+     * The counts found in part of the rasters. Classes are given dense
+     * indices in the order they are first met, through an open-addressing
+     * hash table of class values. The tables are square, with room for
+     * capacity classes.
+     */
+    private class Accumulator {
+
+        int numClasses = 0;
+        int capacity = 16;
+        int[] classes = new int[capacity];
+        long[][] classCounts = new long[numRasters][capacity];
+        long[][] tables = new long[numPairs][capacity * capacity];
+        // hash table of class index + 1, with 0 marking an empty slot
+        int[] table = new int[32];
+
+        int classIndex(int value) {
+            int mask = table.length - 1;
+            int slot = hash(value) & mask;
+            while (table[slot] != 0) {
+                int k = table[slot] - 1;
+                if (classes[k] == value) {
+                    return k;
+                }
+                slot = (slot + 1) & mask;
+            }
+            int k = numClasses++;
+            if (k == capacity) {
+                grow();
+            }
+            classes[k] = value;
+            table[slot] = k + 1;
+            if (2 * numClasses > table.length) {
+                rehash();
+            }
+            return k;
+        }
+
+        private int hash(int value) {
+            int h = value * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+
+        private void grow() {
+            int newCapacity = capacity * 2;
+            classes = Arrays.copyOf(classes, newCapacity);
+            for (int i = 0; i < numRasters; i++) {
+                classCounts[i] = Arrays.copyOf(classCounts[i], newCapacity);
+            }
+            for (int p = 0; p < numPairs; p++) {
+                long[] newTable = new long[newCapacity * newCapacity];
+                for (int a = 0; a < capacity; a++) {
+                    System.arraycopy(tables[p], a * capacity, newTable, a * newCapacity, capacity);
+                }
+                tables[p] = newTable;
+            }
+            capacity = newCapacity;
+        }
+
+        private void rehash() {
+            table = new int[table.length * 2];
+            int mask = table.length - 1;
+            for (int k = 0; k < numClasses; k++) {
+                int slot = hash(classes[k]) & mask;
+                while (table[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = k + 1;
+            }
+        }
+
+        void merge(Accumulator other) {
+            int[] map = new int[other.numClasses];
+            for (int k = 0; k < other.numClasses; k++) {
+                map[k] = classIndex(other.classes[k]);
+            }
+            for (int i = 0; i < numRasters; i++) {
+                for (int k = 0; k < other.numClasses; k++) {
+                    classCounts[i][map[k]] += other.classCounts[i][k];
+                }
+            }
+            for (int p = 0; p < numPairs; p++) {
+                long[] source = other.tables[p];
+                long[] target = tables[p];
+                for (int a = 0; a < other.numClasses; a++) {
+                    int offset = a * other.capacity;
+                    int targetOffset = map[a] * capacity;
+                    for (int b = 0; b < other.numClasses; b++) {
+                        long n = source[offset + b];
+                        if (n != 0) {
+                            target[targetOffset + map[b]] += n;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * The index of the table of rasters i and j, for i < j.
+     */
+    private int pairIndex(int i, int j) {
+        if (i == j || i < 0 || j < 0 || i >= numRasters || j >= numRasters) {
+            throw new IllegalArgumentException("A pair of different images is needed.");
+        }
+        int p = pairIndices[i][j];
+        if (p < 0) {
+            throw new IllegalArgumentException("The images " + i + " and " + j + " were not compared.");
+        }
+        return p;
+    }
+
+    public int getNumberOfImages() {
+        return numRasters;
+    }
+
+    /**
+     * @return The number of distinct classes found in all of the rasters.
+     */
+    public int getNumberOfClasses() {
+        return numClasses;
+    }
+
+    /**
+     * @param k A class index.
+     * @return The class value.
+     */
+    public int getClassValue(int k) {
+        return classes[k];
+    }
+
+    /**
+     * @param value A class value.
+     * @return The class index, or -1 if no raster contains the value.
+     */
+    public int getClassIndex(int value) {
+        int k = Arrays.binarySearch(classes, value);
+        return k >= 0 ? k : -1;
+    }
+
+    /**
+     * @param image The index of a raster.
+     * @param k A class index.
+     * @return The number of cells of the raster that belong to the class.
+     */
+    public long getClassCount(int image, int k) {
+        return classCounts[image][k];
+    }
+
+    /**
+     * Reads an entry of the contingency table of two rasters.
+     *
+     * @param image1 The index of the first raster.
+     * @param image2 The index of the second raster.
+     * @param a A class index in the first raster.
+     * @param b A class index in the second raster.
+     * @return The number of cells that are class a in the first raster and
+     * class b in the second.
+     */
+    public long getCount(int image1, int image2, int a, int b) {
+        if (image1 < image2) {
+            return tables[pairIndex(image1, image2)][a * numClasses + b];
+        }
+        return tables[pairIndex(image2, image1)][b * numClasses + a];
+    }
+
+    /**
+     * @param image1 The index of the first raster.
+     * @param image2 The index of the second raster.
+     * @return The contingency table, indexed [class in the first
+     * raster][class in the second raster].
+     */
+    public long[][] getContingencyTable(int image1, int image2) {
+        long[][] ret = new long[numClasses][numClasses];
+        for (int a = 0; a < numClasses; a++) {
+            for (int b = 0; b < numClasses; b++) {
+                ret[a][b] = getCount(image1, image2, a, b);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @param image1 The index of the first raster.
+     * @param image2 The index of the second raster.
+     * @return The number of cells that are not NoData in either raster.
+     */
+    public long getTotal(int image1, int image2) {
+        long[] table = tables[image1 < image2 ? pairIndex(image1, image2) : pairIndex(image2, image1)];
+        long n = 0;
+        for (long count : table) {
+            n += count;
+        }
+        return n;
+    }
+
+    /**
+     * The marginal total of a class in the contingency table of two rasters,
+     * i.e. the number of cells of the class in the first raster that are not
+     * NoData in the second. Swap the rasters for the other margin.
+     *
+     * @param image1 The index of the first raster.
+     * @param image2 The index of the second raster.
+     * @param k A class index.
+     * @return The marginal total.
+     */
+    public long getClassTotal(int image1, int image2, int k) {
+        long n = 0;
+        for (int b = 0; b < numClasses; b++) {
+            n += getCount(image1, image2, k, b);
+        }
+        return n;
+    }
+
+    /**
+     * @param image1 The index of the first raster.
+     * @param image2 The index of the second raster.
+     * @return The number of cells with the same class in both rasters.
+     */
+    public long getAgreement(int image1, int image2) {
+        long n = 0;
+        for (int k = 0; k < numClasses; k++) {
+            n += getCount(image1, image2, k, k);
+        }
+        return n;
+    }
+
+    /**
+     * @param image1 The index of the first raster.
+     * @param image2 The index of the second raster.
+     * @return The proportion of cells with the same class in both rasters.
+     */
+    public double getOverallAccuracy(int image1, int image2) {
+        return (double) getAgreement(image1, image2) / getTotal(image1, image2);
+    }
+
+    /**
+     * Calculates Cohen's kappa index of agreement between two rasters, i.e.
+     * the agreement in excess of that expected by chance, given the class
+     * proportions of each raster.
+     *
+     * @param image1 The index of the first raster.
+     * @param image2 The index of the second raster.
+     * @return The kappa index.
+     */
+    public double getKappa(int image1, int image2) {
+        double n = getTotal(image1, image2);
+        double agreements = getAgreement(image1, image2);
+        double expectedFrequency = 0;
+        for (int k = 0; k < numClasses; k++) {
+            expectedFrequency += (double) getClassTotal(image1, image2, k)
+                    * getClassTotal(image2, image1, k) / n;
+        }
+        return (agreements - expectedFrequency) / (n - expectedFrequency);
+    }
+
+    /**
+     * The user's accuracy of a class, i.e. the proportion of the cells
+     * assigned to the class in a classification that belong to it in a
+     * reference.
+     *
+     * @param classification The index of the classified raster.
+     * @param reference The index of the reference raster.
+     * @param k A class index.
+     * @return The user's accuracy, or NaN if the classification has no cells
+     * of the class.
+     */
+    public double getUsersAccuracy(int classification, int reference, int k) {
+        return (double) getCount(classification, reference, k, k)
+                / getClassTotal(classification, reference, k);
+    }
+
+    /**
+     * The producer's accuracy of a class, i.e. the proportion of the cells
+     * that belong to the class in a reference that are assigned to it in a
+     * classification.
+     *
+     * @param classification The index of the classified raster.
+     * @param reference The index of the reference raster.
+     * @param k A class index.
+     * @return The producer's accuracy, or NaN if the reference has no cells
+     * of the class.
+     */
+    public double getProducersAccuracy(int classification, int reference, int k) {
+        return (double) getCount(classification, reference, k, k)
+                / getClassTotal(reference, classification, k);
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.stats;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import whitebox.algorithms.FFT;
+import whitebox.parallel.MonteCarlo;
+
+/**
+ * Generates stationary Gaussian random fields with a zero mean and a given
+ * covariance model on a regular grid, using the spectral method of circulant
+ * embedding (Dietrich and Newsam, 1997). The covariance of the grid is
+ * embedded in a larger periodic grid whose covariance matrix is block
+ * circulant, so that it is diagonalised by the two-dimensional Fourier
+ * transform. The eigenvalues are found once with an FFT of the covariance
+ * function; each field then costs one FFT of complex white noise weighted by
+ * the square roots of the eigenvalues. The real and imaginary parts of the
+ * result are two independent fields, so fields are generated in pairs.
+ *
+ * The covariance models are those of the semivariograms used by Kriging, with
+ * covariance C(h) = sill - semivariance(h) and the nugget adding independent
+ * noise to each cell. The periodic grid is only as much larger than the
+ * output grid as the effective range of the model requires. Should some
+ * eigenvalues nevertheless be negative, which can happen for the Gaussian
+ * model, they are set to zero and the covariance of the fields is then a
+ * close approximation.
+ *
+ * @author johnlindsay
+ */
+public class GaussianRandomField {
+
+    private final int rows, cols;
+    private final int embeddingRows, embeddingCols;
+    private final double nugget;
+    private final double[][] sqrtEigenvalues;
+    private int numNegativeEigenvalues = 0;
+    private double[][] pendingField = null;
+
+    /**
+     * Calculates the spectrum of the covariance model.
+     *
+     * @param rows The number of rows of the fields.
+     * @param cols The number of columns of the fields.
+     * @param cellSizeX The cell width, in the units of the range.
+     * @param cellSizeY The cell height.
+     * @param model The covariance model.
+     * @param range The range of the model.
+     * @param sill The sill, i.e. the variance of the correlated part of the
+     * fields.
+     * @param nugget The variance of the independent noise added to each cell.
+     * @throws Exception If the FFT fails.
+     */
+    public GaussianRandomField(int rows, int cols, double cellSizeX, double cellSizeY,
+            Kriging.SemivariogramType model, double range, double sill, double nugget) throws Exception {
+        if (range <= 0) {
+            throw new IllegalArgumentException("The range must be greater than zero.");
+        }
+        this.rows = rows;
+        this.cols = cols;
+        this.nugget = nugget;
+
+        // the lag beyond which the covariance is negligible
+        double effectiveRange;
+        switch (model) {
+            case EXPONENTIAL:
+                effectiveRange = range * Math.log(1000);
+                break;
+            case GAUSSIAN:
+                effectiveRange = range * Math.sqrt(Math.log(1000) / 3);
+                break;
+            default:
+                effectiveRange = range;
+                break;
+        }
+        embeddingRows = embeddingSize(rows, effectiveRange / cellSizeY);
+        embeddingCols = embeddingSize(cols, effectiveRange / cellSizeX);
+
+        // the covariance of each cell of the periodic grid with cell (0, 0)
+        double[][] re = new double[embeddingRows][embeddingCols];
+        double[][] im = new double[embeddingRows][embeddingCols];
+        for (int r = 0; r < embeddingRows; r++) {
+            double dy = Math.min(r, embeddingRows - r) * cellSizeY;
+            for (int c = 0; c < embeddingCols; c++) {
+                double dx = Math.min(c, embeddingCols - c) * cellSizeX;
+                re[r][c] = covariance(model, Math.sqrt(dx * dx + dy * dy), range, sill);
+            }
+        }
+        FFT.transform2D(re, im, false);
+
+        // the covariance is real and even, so its spectrum is real
+        double scale = 1.0 / ((double) embeddingRows * embeddingCols);
+        sqrtEigenvalues = re;
+        for (int r = 0; r < embeddingRows; r++) {
+            for (int c = 0; c < embeddingCols; c++) {
+                double eigenvalue = re[r][c];
+                if (eigenvalue < 0) {
+                    if (eigenvalue < -1e-9 * sill * embeddingRows * embeddingCols) {
+                        numNegativeEigenvalues++;
+                    }
+                    eigenvalue = 0;
+                }
+                sqrtEigenvalues[r][c] = Math.sqrt(eigenvalue * scale);
+            }
+        }
+    }
+
+    /*
+     * The smallest power of two that contains the grid and at least one
+     * effective range beyond it, or twice the grid if that is smaller.
+     * Because the covariance is negligible beyond the effective range, the
+     * wrapped lags of the periodic grid then reproduce the covariance of all
+     * pairs of cells in the output grid.
+     */
+    private static int embeddingSize(int n, double effectiveRangeCells) {
+        long needed = Math.min(2L * n, n + (long) Math.ceil(effectiveRangeCells));
+        return FFT.nextPowerOfTwo((int) Math.max(2, needed));
+    }
+
+    /**
+     * The covariance of a model at a lag.
+     *
+     * @param model The covariance model.
+     * @param h The lag.
+     * @param range The range.
+     * @param sill The sill.
+     * @return The covariance.
+     */
+    public static double covariance(Kriging.SemivariogramType model, double h,
+            double range, double sill) {
+        switch (model) {
+            case EXPONENTIAL:
+                return sill * Math.exp(-h / range);
+            case GAUSSIAN:
+                return sill * Math.exp(-3 * h * h / (range * range));
+            default:
+                if (h >= range) {
+                    return 0;
+                }
+                double x = h / range;
+                return sill * (1 - 1.5 * x + 0.5 * x * x * x);
+        }
+    }
+
+    /**
+     * Generates a field. Every second call returns the field paired with the
+     * one generated by the previous call, so it costs no more random numbers
+     * or FFTs.
+     *
+     * @param random The random number stream.
+     * @return The field, indexed [row][column].
+     * @throws Exception If the FFT fails.
+     */
+    public double[][] next(SplittableRandom random) throws Exception {
+        if (pendingField != null) {
+            double[][] ret = pendingField;
+            pendingField = null;
+            return ret;
+        }
+        double[][] re = new double[embeddingRows][embeddingCols];
+        double[][] im = new double[embeddingRows][embeddingCols];
+        for (int r = 0; r < embeddingRows; r++) {
+            for (int c = 0; c < embeddingCols; c++) {
+                double s = sqrtEigenvalues[r][c];
+                re[r][c] = s * MonteCarlo.nextGaussian(random);
+                im[r][c] = s * MonteCarlo.nextGaussian(random);
+            }
+        }
+        FFT.transform2D(re, im, false);
+
+        double[][] field1 = new double[rows][];
+        double[][] field2 = new double[rows][];
+        double nuggetSD = Math.sqrt(Math.max(0, nugget));
+        for (int r = 0; r < rows; r++) {
+            field1[r] = Arrays.copyOf(re[r], cols);
+            field2[r] = Arrays.copyOf(im[r], cols);
+            re[r] = null;
+            im[r] = null;
+            if (nuggetSD > 0) {
+                for (int c = 0; c < cols; c++) {
+                    field1[r][c] += nuggetSD * MonteCarlo.nextGaussian(random);
+                    field2[r][c] += nuggetSD * MonteCarlo.nextGaussian(random);
+                }
+            }
+        }
+        pendingField = field2;
+        return field1;
+    }
+
+    public int getEmbeddingRows() {
+        return embeddingRows;
+    }
+
+    public int getEmbeddingColumns() {
+        return embeddingCols;
+    }
+
+    /**
+     * @return The number of significantly negative eigenvalues that were set
+     * to zero, i.e. zero if the fields have exactly the specified covariance.
+     */
+    public int getNumberOfNegativeEigenvalues() {
+        return numNegativeEigenvalues;
+    }
+}
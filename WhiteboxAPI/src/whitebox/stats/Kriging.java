@@ -20,12 +20,14 @@ import Jama.*;
 import java.awt.Color;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -66,10 +68,12 @@ import whitebox.geospatialfiles.shapefile.attributes.AttributeTable;
 import whitebox.geospatialfiles.shapefile.attributes.DBFException;
 import whitebox.geospatialfiles.shapefile.attributes.DBFField;
 import whitebox.structures.KdTree;
+import whitebox.structures.StaticKdTree;
 import java.util.Random;
 import jmetal.util.JMException;
 import whitebox.geospatialfiles.shapefile.attributes.DBFWriter;
 import whitebox.interfaces.WhiteboxPluginHost;
+import whitebox.parallel.RowBands;
 
 /**
  *
@@ -109,7 +113,7 @@ public class Kriging {
     public int NumberOfLags;
     public double LagSize;
     //public double 
-    public KdTree<Double> pointsTree;      //This is the point tree which will be filled in the calcPair method
+    public KdTree<Double> pointsTree;      //This is the point tree which will be filled in the scanPoints method
     public Matrix DistanceMatrix;   //The matrix that contains the distance of each known point to all other known points
     public int nKown;               //Number of known points
     //public double[][] Points;       //Array of points location x=0, y = 1, z = 2
@@ -130,17 +134,6 @@ public class Kriging {
 //    }
     public List<KrigingPoint> points = new ArrayList();
 
-    public class pair {
-
-        int FirstP;
-        int SecondP;
-        double Distance;
-        double Direction;
-        double MomentI;             //Moment of Inertia
-        double VerDistance;         //Vertical Distance (Y Axes)
-        double HorDistance;         //Horizontal Distance (X Axes)
-    }
-
     //List<bin> bins = new ArrayList();
     public bin[][] bins; // = new bin[]      
 
@@ -155,9 +148,6 @@ public class Kriging {
         double Weight;
         int Size;
     }
-    public List<pair> Pairs = new ArrayList();
-
-    private KdTree<Double> PairsTree;
 
     public SemivariogramType SemiVariogramModel;
 
@@ -239,35 +229,8 @@ public class Kriging {
      * @param Range
      */
     void calcBins4Sec(double Range) {
-        int ad = 0;
-        if (Range % this.LagSize == 0) {
-            ad = 0;
-        }
-
         if (!this.Anisotropic) {
-            bins = new bin[(int) Math.ceil(Range / this.LagSize) + ad][1];
-            int r = 0;
-            for (int i = 0; i < Pairs.size(); i++) {
-                if (Pairs.get(i).Distance < Range && Pairs.get(i).HorDistance >= 0) {
-                    r = (int) Math.floor(Pairs.get(i).Distance / LagSize);
-                    if (bins[r][0] == null) {
-                        bin bb = new bin();
-                        bins[r][0] = bb;
-                    }
-
-                    bins[r][0].Distance += Pairs.get(i).Distance;
-                    bins[r][0].Value += Pairs.get(i).MomentI;
-                    bins[r][0].Size++;
-                }
-            }
-            for (int i = 0; i < bins.length; i++) {
-                if (bins[i][0] == null) {
-                    bin bb = new bin();
-                    bins[i][0] = bb;
-                }
-                bins[i][0].Distance = bins[i][0].Distance / bins[i][0].Size;
-                bins[i][0].Value = bins[i][0].Value / bins[i][0].Size;
-            }
+            calcSectorBins(Range, false, 0, 0, 0);
         }
     }
 
@@ -281,43 +244,110 @@ public class Kriging {
      * @param BandWidth
      */
     void calcBins4Sec(double Range, double Angle, double Tolerance, double BandWidth) {
-        int ad = 0;
-        if (Range % this.LagSize == 0) {
-            ad = 0;
-        }
-        double width = 0;
-
         if (this.Anisotropic) {
+            calcSectorBins(Range, true, Angle, Tolerance, BandWidth);
+        }
+    }
 
-            bins = new bin[(int) Math.ceil(Range / this.LagSize) + ad][1];
-            int r = 0;
-            for (int i = 0; i < Pairs.size(); i++) {
-                boolean tt = Between(Angle, Tolerance, Pairs.get(i).Direction);
-                width = Pairs.get(i).Distance * Math.cos((Math.PI / 2) - Angle + Pairs.get(i).Direction);
-                if (tt && Pairs.get(i).Distance < Range && Math.abs(width) <= BandWidth) {
-
-                    r = (int) Math.floor(Pairs.get(i).Distance / LagSize);
-                    if (bins[r][0] == null) {
-                        bin bb = new bin();
-                        bins[r][0] = bb;
+    /**
+     * Streams the pairs of points that are less than Range apart into the lag
+     * bins. The partners of each point are found with a range search of the
+     * point tree, so pairs beyond the largest lag are never visited and no
+     * pair is stored. Each ordering of a pair is tested separately: in the
+     * isotropic case a pair is counted when its x offset is not negative, and
+     * in the anisotropic case when its direction lies in the sector and it is
+     * within the band width.
+     *
+     * @param range the maximum lag distance
+     */
+    private void calcSectorBins(final double range, final boolean anisotropic,
+            final double angle, final double tolerance, final double bandWidth) {
+        preparePoints();
+        final int numBins = (int) Math.ceil(range / this.LagSize);
+        final double lagSize = this.LagSize;
+        final double[] px = pointX;
+        final double[] py = pointY;
+        final double[] pz = pointZ;
+        final double[][] sums = new double[3][numBins]; // distance, moment of inertia, count
+
+        processInBands(px.length, RowBands.defaultBandHeight(px.length), new RowBands.Task<double[][]>() {
+            @Override
+            public double[][] process(int start, int end) {
+                StaticKdTree.Neighbours results = new StaticKdTree.Neighbours();
+                double[] query = new double[2];
+                double[][] bandSums = new double[3][numBins];
+                for (int i = start; i < end; i++) {
+                    query[0] = px[i];
+                    query[1] = py[i];
+                    pointIndex.neighboursWithinRange(query, range, results);
+                    for (int m = 0; m < results.size(); m++) {
+                        int j = results.getIndex(m);
+                        if (j == i) {
+                            continue;
+                        }
+                        double dx = px[j] - px[i];
+                        double dy = py[j] - py[i];
+                        double dist = Math.sqrt(dx * dx + dy * dy);
+                        if (dist >= range) {
+                            continue;
+                        }
+                        if (anisotropic) {
+                            double direction = getDirection(dx, dy);
+                            double width = dist * Math.cos((Math.PI / 2) - angle + direction);
+                            if (!Between(angle, tolerance, direction) || Math.abs(width) > bandWidth) {
+                                continue;
+                            }
+                        } else if (dx < 0) {
+                            continue;
+                        }
+                        int r = Math.min(numBins - 1, (int) Math.floor(dist / lagSize));
+                        bandSums[0][r] += dist;
+                        bandSums[1][r] += (pz[i] - pz[j]) * (pz[i] - pz[j]) / 2;
+                        bandSums[2][r]++;
                     }
-
-                    bins[r][0].Distance += Pairs.get(i).Distance;
-                    bins[r][0].Value += Pairs.get(i).MomentI;
-                    bins[r][0].Size++;
                 }
+                return bandSums;
             }
-            for (int i = 0; i < bins.length; i++) {
-                if (bins[i][0] == null) {
-                    bin bb = new bin();
-                    bins[i][0] = bb;
+        }, new RowBands.Consumer<double[][]>() {
+            @Override
+            public boolean consume(int start, int end, double[][] bandSums) {
+                for (int k = 0; k < 3; k++) {
+                    for (int r = 0; r < numBins; r++) {
+                        sums[k][r] += bandSums[k][r];
+                    }
                 }
-                bins[i][0].Distance = bins[i][0].Distance / bins[i][0].Size;
-                bins[i][0].Value = bins[i][0].Value / bins[i][0].Size;
+                return true;
             }
+        });
+
+        bins = new bin[numBins][1];
+        for (int r = 0; r < numBins; r++) {
+            bin bb = new bin();
+            bb.Size = (int) sums[2][r];
+            bb.Distance = sums[0][r] / bb.Size;
+            bb.Value = sums[1][r] / bb.Size;
+            bins[r][0] = bb;
         }
-        //==========================
+    }
 
+    /**
+     * Returns the direction of an offset, in radians counter-clockwise from
+     * the x axis, in the range 0 to 2 pi.
+     */
+    private static double getDirection(double dx, double dy) {
+        if (dx != 0) {
+            if (dx > 0 && dy >= 0) {
+                return Math.atan(dy / dx);
+            }
+            if (dx > 0) {
+                return Math.atan(dy / dx) + 2 * Math.PI;
+            }
+            return Math.atan(dy / dx) + Math.PI;
+        } else if (dy >= 0) {
+            return Math.PI / 2;
+        } else {
+            return 3 * Math.PI / 2;
+        }
     }
 
     /**
@@ -359,201 +389,123 @@ public class Kriging {
     }
 
     /**
-     * Calculates the Bin list for SV Map
+     * Calculates the Bin list for SV Map. Each pair of points, taken with the
+     * first point to the left of the second, contributes to the bins whose
+     * centres are within one lag of the pair's offset in both x and y,
+     * weighted by its distance from each centre. The pairs are streamed from
+     * range searches of the point tree rather than stored.
      *
      * @param Range
      */
     void CalcBins4Map(double Range) {
-
-        //bins = new bin[this.NumberOfLags][this.NumberOfLags];
-        //bins Category on the axies 
-        //2 . 1
-        //3   4         //Only 1 and 4 are calculated the rest are mirror
-        int ad = 0;
-        if (Range % this.LagSize == 0) {
-            ad = 0;
-        }
-        bin[][] bins1 = new bin[(int) Math.ceil(Range / this.LagSize) + ad][(int) Math.ceil(Range / this.LagSize + ad)];
-        bin[][] bins4 = new bin[(int) Math.ceil(Range / this.LagSize) + ad][(int) Math.ceil(Range / this.LagSize + ad)];
-
-        bin[][] bins1c = new bin[(int) Math.ceil(Range / this.LagSize) + ad][(int) Math.ceil(Range / this.LagSize + ad)];
-        bin[][] bins4c = new bin[(int) Math.ceil(Range / this.LagSize) + ad][(int) Math.ceil(Range / this.LagSize + ad)];
-
-        BinSurface = new bin[2 * ((int) Math.ceil(Range / this.LagSize) + ad)][2 * ((int) Math.ceil(Range / this.LagSize + ad))];
-        //double radious =Math.sqrt(2*this.LagSize*this.LagSize);
-        double radious = this.LagSize * 2 / Math.sqrt(2);
-        double halfLagSize = this.LagSize;
-        List<pair> prs = new ArrayList();
-        double w = 0;
-        for (int r = 0; r < bins1.length; r++) {
-            for (int c = 0; c < bins1[r].length; c++) {
-
-                if (bins1[r][c] == null) {
-                    bin bb = new bin();
-                    bin bbc = new bin();
-
-                    bins1[r][c] = bb;
-                    bins1c[r][c] = bbc;
-                }
-
-                bins1[r][c].GridHorDistance = 0.5 * this.LagSize + c * this.LagSize;
-                bins1[r][c].GridVerDistance = 0.5 * this.LagSize + r * this.LagSize;
-
-                bins1c[r][c].GridHorDistance = -0.5 * this.LagSize - c * this.LagSize;
-                bins1c[r][c].GridVerDistance = -0.5 * this.LagSize - r * this.LagSize;
-
-                double[] center = new double[]{bins1[r][c].GridVerDistance, bins1[r][c].GridHorDistance};
-                prs = getBinNNPairs4Map(PairsTree, center, halfLagSize, radious);
-
-                for (int n = 0; n < prs.size(); n++) {
-                    bins1[r][c].HorDistance += prs.get(n).HorDistance;
-                    bins1[r][c].VerDistance += prs.get(n).VerDistance;
-                    w = (1 - (Math.abs(bins1[r][c].GridHorDistance - prs.get(n).HorDistance) / this.LagSize))
-                            * (1 - (Math.abs(bins1[r][c].GridVerDistance - prs.get(n).VerDistance) / this.LagSize));
-
-                    bins1[r][c].Weight += w;
-                    bins1[r][c].Value += prs.get(n).MomentI * w;
-                    bins1[r][c].Size += 1;
-
-                    bins1c[r][c].HorDistance += prs.get(n).HorDistance;
-                    bins1c[r][c].VerDistance += prs.get(n).VerDistance;
-                    bins1c[r][c].Weight += w;
-
-                    bins1c[r][c].Value += prs.get(n).MomentI * w;
-                    bins1c[r][c].Size += 1;
-
-                }
-            }
-        }
-
-        for (int i = 0; i < bins1.length; i++) {
-            for (int j = 0; j < bins1[i].length; j++) {
-                if (bins1[i][j] == null) {
-                    bin bb = new bin();
-                    bins1[i][j] = bb;
-                    bins1[i][j].HorDistance = i * this.LagSize;
-                    bins1[i][j].VerDistance = j * this.LagSize;
-                    bins1[i][j].Value = -1;
-
-                    bin bbc = new bin();
-                    bins1c[i][j] = bbc;
-                    bins1c[i][j].HorDistance = -i * this.LagSize;
-                    bins1c[i][j].VerDistance = -j * this.LagSize;
-                    bins1c[i][j].Value = -1;
-                } else {
-                    bins1[i][j].HorDistance = bins1[i][j].HorDistance / bins1[i][j].Size;
-                    bins1[i][j].VerDistance = bins1[i][j].VerDistance / bins1[i][j].Size;
-                    bins1[i][j].Value = bins1[i][j].Value / bins1[i][j].Weight;
-
-                    bins1c[i][j].HorDistance = bins1c[i][j].HorDistance / bins1c[i][j].Size;
-                    bins1c[i][j].VerDistance = bins1c[i][j].VerDistance / bins1c[i][j].Size;
-                    bins1c[i][j].Value = bins1c[i][j].Value / bins1c[i][j].Weight;
+        preparePoints();
+        final int numBins = (int) Math.ceil(Range / this.LagSize);
+        final double lagSize = this.LagSize;
+        final double searchRadius = Math.sqrt(2) * (numBins + 0.5) * lagSize;
+        final double[] px = pointX;
+        final double[] py = pointY;
+        final double[] pz = pointZ;
+        // sums[q][k][r * numBins + c] for the quadrant above (q = 0) and below
+        // (q = 1) the x axis; k = x offset, y offset, weight, value, count
+        final double[][][] sums = new double[2][5][numBins * numBins];
+
+        processInBands(px.length, RowBands.defaultBandHeight(px.length), new RowBands.Task<double[][][]>() {
+            @Override
+            public double[][][] process(int start, int end) {
+                StaticKdTree.Neighbours results = new StaticKdTree.Neighbours();
+                double[] query = new double[2];
+                double[][][] bandSums = new double[2][5][numBins * numBins];
+                for (int i = start; i < end; i++) {
+                    query[0] = px[i];
+                    query[1] = py[i];
+                    pointIndex.neighboursWithinRange(query, searchRadius, results);
+                    for (int m = 0; m < results.size(); m++) {
+                        int j = results.getIndex(m);
+                        if (j == i || px[i] > px[j]) {
+                            continue;
+                        }
+                        double h = px[j] - px[i];
+                        double v = py[j] - py[i];
+                        double moment = (pz[i] - pz[j]) * (pz[i] - pz[j]) / 2;
+                        int c0 = Math.max(0, (int) Math.floor(h / lagSize - 1.5));
+                        int c1 = Math.min(numBins - 1, (int) Math.ceil(h / lagSize + 0.5));
+                        for (int q = 0; q < 2; q++) {
+                            double vq = (q == 0) ? v : -v;
+                            int r0 = Math.max(0, (int) Math.floor(vq / lagSize - 1.5));
+                            int r1 = Math.min(numBins - 1, (int) Math.ceil(vq / lagSize + 0.5));
+                            for (int r = r0; r <= r1; r++) {
+                                double yd = Math.abs(0.5 * lagSize + r * lagSize - vq);
+                                if (yd > lagSize) {
+                                    continue;
+                                }
+                                for (int c = c0; c <= c1; c++) {
+                                    double xd = Math.abs(0.5 * lagSize + c * lagSize - h);
+                                    if (xd > lagSize) {
+                                        continue;
+                                    }
+                                    double w = (1 - xd / lagSize) * (1 - yd / lagSize);
+                                    int k = r * numBins + c;
+                                    bandSums[q][0][k] += h;
+                                    bandSums[q][1][k] += v;
+                                    bandSums[q][2][k] += w;
+                                    bandSums[q][3][k] += moment * w;
+                                    bandSums[q][4][k]++;
+                                }
+                            }
+                        }
+                    }
                 }
-
-                //System.out.println( (0.5*this.LagSize + j*this.LagSize) + " , " + (0.5*this.LagSize+i*this.LagSize) + " , " +
-                //        Bins1[i][j].HorDistance + " , " + Bins1[i][j].VerDistance + " , " + Bins1[i][j].Value);
+                return bandSums;
             }
-        }
-        //==========================
-
-        for (int r = 0; r < bins4.length; r++) {
-            for (int c = 0; c < bins4[r].length; c++) {
-
-                if (bins4[r][c] == null) {
-                    bin bb = new bin();
-                    bin bbc = new bin();
-
-                    bins4[r][c] = bb;
-                    bins4c[r][c] = bbc;
-                }
-
-                bins4[r][c].GridHorDistance = 0.5 * this.LagSize + c * this.LagSize;
-                bins4[r][c].GridVerDistance = -0.5 * this.LagSize - r * this.LagSize;
-
-                bins4c[r][c].GridHorDistance = -0.5 * this.LagSize - c * this.LagSize;
-                bins4c[r][c].GridVerDistance = 0.5 * this.LagSize + r * this.LagSize;
-
-                double[] center = new double[]{bins4[r][c].GridVerDistance, bins4[r][c].GridHorDistance};
-                prs = getBinNNPairs4Map(PairsTree, center, halfLagSize, radious);
-
-                for (int n = 0; n < prs.size(); n++) {
-                    bins4[r][c].HorDistance += prs.get(n).HorDistance;
-                    bins4[r][c].VerDistance += prs.get(n).VerDistance;
-                    w = (1 - (Math.abs(bins4[r][c].GridHorDistance - prs.get(n).HorDistance) / this.LagSize))
-                            * (1 - (Math.abs(bins4[r][c].GridVerDistance - prs.get(n).VerDistance) / this.LagSize));
-
-                    bins4[r][c].Weight += w;
-                    bins4[r][c].Value += prs.get(n).MomentI * w;
-                    bins4[r][c].Size += 1;
-
-                    bins4c[r][c].HorDistance += prs.get(n).HorDistance;
-                    bins4c[r][c].VerDistance += prs.get(n).VerDistance;
-                    bins4c[r][c].Weight += w;
-
-                    bins4c[r][c].Value += prs.get(n).MomentI * w;
-                    bins4c[r][c].Size += 1;
-
+        }, new RowBands.Consumer<double[][][]>() {
+            @Override
+            public boolean consume(int start, int end, double[][][] bandSums) {
+                for (int q = 0; q < 2; q++) {
+                    for (int k = 0; k < 5; k++) {
+                        for (int n = 0; n < numBins * numBins; n++) {
+                            sums[q][k][n] += bandSums[q][k][n];
+                        }
+                    }
                 }
+                return true;
             }
-        }
+        });
 
-        for (int i = 0; i < bins4.length; i++) {
-            for (int j = 0; j < bins4[i].length; j++) {
-                if (bins4[i][j] == null) {
+        //bins Category on the axies
+        //2 . 1
+        //3   4         //Only 1 and 4 are calculated the rest are mirror
+        BinSurface = new bin[2 * numBins][2 * numBins];
+        int stI = BinSurface.length / 2;
+        int stJ = BinSurface[0].length / 2;
+        for (int q = 0; q < 2; q++) {
+            for (int r = 0; r < numBins; r++) {
+                for (int c = 0; c < numBins; c++) {
+                    int k = r * numBins + c;
+                    double gridHor = 0.5 * lagSize + c * lagSize;
+                    double gridVer = (q == 0) ? 0.5 * lagSize + r * lagSize : -0.5 * lagSize - r * lagSize;
                     bin bb = new bin();
-                    bins4[i][j] = bb;
-                    bins4[i][j].HorDistance = i * this.LagSize;
-                    bins4[i][j].VerDistance = j * this.LagSize;
-                    bins4[i][j].Value = -1;
-
                     bin bbc = new bin();
-                    bins4c[i][j] = bbc;
-                    bins4c[i][j].HorDistance = -i * this.LagSize;
-                    bins4c[i][j].VerDistance = -j * this.LagSize;
-                    bins4c[i][j].Value = -1;
-                } else {
-                    bins4[i][j].HorDistance = bins4[i][j].HorDistance / bins4[i][j].Size;
-                    bins4[i][j].VerDistance = bins4[i][j].VerDistance / bins4[i][j].Size;
-                    bins4[i][j].Value = bins4[i][j].Value / bins4[i][j].Weight;
-
-                    bins4c[i][j].HorDistance = bins4c[i][j].HorDistance / bins4c[i][j].Size;
-                    bins4c[i][j].VerDistance = bins4c[i][j].VerDistance / bins4c[i][j].Size;
-                    bins4c[i][j].Value = bins4c[i][j].Value / bins4c[i][j].Weight;
+                    bb.GridHorDistance = gridHor;
+                    bb.GridVerDistance = gridVer;
+                    bbc.GridHorDistance = -gridHor;
+                    bbc.GridVerDistance = -gridVer;
+                    for (bin b : new bin[]{bb, bbc}) {
+                        b.Size = (int) sums[q][4][k];
+                        b.Weight = sums[q][2][k];
+                        b.HorDistance = sums[q][0][k] / b.Size;
+                        b.VerDistance = sums[q][1][k] / b.Size;
+                        b.Value = sums[q][3][k] / b.Weight;
+                    }
+                    if (q == 0) {
+                        BinSurface[stI + r][stJ + c] = bb;
+                        BinSurface[stI - 1 - r][stJ - 1 - c] = bbc;
+                    } else {
+                        BinSurface[stI - 1 - r][stJ + c] = bb;
+                        BinSurface[stI + r][stJ - 1 - c] = bbc;
+                    }
                 }
-
-                //System.out.println( (0.5*this.LagSize + j*this.LagSize) + " , " + (0.5*this.LagSize+i*this.LagSize) + " , " +
-                //        bins1[i][j].HorDistance + " , " + bins1[i][j].VerDistance + " , " + bins1[i][j].Value);
             }
         }
-
-        int stI = BinSurface.length / 2;
-        int stJ = BinSurface[0].length / 2;
-
-        //bins1c = bins1.clone();
-        for (int i = 0; i < bins1.length; i++) {
-            for (int j = 0; j < bins1[i].length; j++) {
-                BinSurface[stI + i][stJ + j] = bins1[i][j];
-                BinSurface[stI - 1 - i][stJ - 1 - j] = bins1c[i][j];
-            }
-        }
-
-        stI = BinSurface.length / 2;
-        stJ = BinSurface[0].length / 2;
-        for (int i = 0; i < bins4.length; i++) {
-            for (int j = 0; j < bins4[i].length; j++) {
-                BinSurface[stI - 1 - i][stJ + j] = bins4[i][j];
-                BinSurface[stI + i][stJ - 1 - j] = bins4c[i][j];
-            }
-        }
-
-//        for (int i = 0; i < BinSurface.length; i++) {
-//            for (int j = 0; j < BinSurface[i].length; j++) {
-//                System.out.println(BinSurface[i][j].GridHorDistance + " , " + BinSurface[i][j].GridVerDistance
-//                        + " , " + BinSurface[i][j].HorDistance+ " , " + BinSurface[i][j].VerDistance
-//                        + " , " + BinSurface[i][j].Value);
-//            }
-//        }
-        int resd = 0;
     }
 
     /**
@@ -1305,263 +1257,123 @@ public class Kriging {
      * Gets the variogram and unknown point list and returns the interpolated
      * values for the known points This is to calculate the predicted value for
      * each known point, the result would be used for cross validation.
+     * <p>
+     * Each point is predicted from its NumberOfNearestPoints nearest
+     * neighbours, leaving the point itself out. Rather than factorising a
+     * separate system with the point removed, the system of the point and its
+     * neighbours is factorised, and the leave-one-out prediction and its
+     * Kriging variance are found from the point's column of the inverse. This
+     * is the same system that is used for prediction, so a neighbourhood that
+     * is shared by several points is factorised only once. The Kriging
+     * variance is returned in KrigingPoint.v.
      *
      * @param variogram
      * @param pnts
+     * @param NumberOfNearestPoints
      * @return
      */
-    public List<KrigingPoint> CrossValidationPoints(Variogram variogram, List<KrigingPoint> pnts, int NumberOfNearestPoints) {
-
-        double[] res = new double[NumberOfNearestPoints];
-        double[][] D = new double[NumberOfNearestPoints + 1][1];
-
-        List<KrigingPoint> NNPoitns = new ArrayList();
-        List<KrigingPoint> outPnts = new ArrayList();
-        for (int n = 0; n < pnts.size(); n++) {
-            NNPoitns = getNNpoints(this.pointsTree, pnts.get(n), NumberOfNearestPoints + 1);
-            for (int ni = 0; ni < NumberOfNearestPoints + 1; ni++) {
-                if (pnts.get(n).x == NNPoitns.get(ni).x
-                        && pnts.get(n).y == NNPoitns.get(ni).y
-                        && pnts.get(n).z == NNPoitns.get(ni).z) {
-                    NNPoitns.remove(ni);
-                    break;
-                }
-            }
-
-            double[][] C = CalcConstantCoef(variogram, NNPoitns);
-            double[] tm = CalcVariableCoef(variogram, pnts.get(n), NNPoitns); ///------------
-            for (int i = 0; i < tm.length; i++) {
-                D[i][0] = tm[i];
-            }
-            //double[][] d = {{1,2,3},{4,5,6,},{7,8,10}};
-            Matrix tmp = Matrix.constructWithCopy(C);
-            Matrix VariableCoef = Matrix.constructWithCopy(D);
-            Matrix w = null;
-            boolean flag = false;
-            try {
-                w = tmp.solve(VariableCoef);
-                double[][] Wi = w.getArray();
-                double s = 0;
-                for (int i = 0; i < Wi.length - 1; i++) {
-                    s = s + Wi[i][0] * NNPoitns.get(i).z;
-                }
-                KrigingPoint pnt = new KrigingPoint(pnts.get(n).x, pnts.get(n).y, s);
-                outPnts.add(pnt);
-                //pnts.get(n).z = s;
-                //res[n]=s;
-                s = 0;
-
-            } catch (Exception ex) {
-                SingularValueDecomposition svd = tmp.svd();
-                Matrix u = svd.getU();
-                Matrix s = svd.getS();
-                Matrix v = svd.getV();
-                //u.print(u.getRowDimension(), u.getColumnDimension());
-                //s.print(s.getRowDimension(), s.getColumnDimension());
-                //v.print(v.getRowDimension(), v.getColumnDimension());
-
-                int rrr = svd.rank();
-                double[][] stemp = s.getArray();
-                for (int nn = 0; nn < stemp.length; nn++) {
-                    if (stemp[nn][nn] > 0.03) {
-                        stemp[nn][nn] = 1 / stemp[nn][nn];
-                    } else {
-                        stemp[nn][nn] = 0;
-                    }
-                }
-                Matrix sp = new Matrix(stemp);
-                w = v.times(sp).times(u.transpose()).times(VariableCoef);
-                //Matrix test = tmp.times(w).minus(VariableCoef);
-                double[][] Wi = w.getArray();
-                double ss = 0;
-                for (int i = 0; i < Wi.length - 1; i++) {
-                    ss = ss + Wi[i][0] * NNPoitns.get(i).z;
+    public List<KrigingPoint> CrossValidationPoints(final Variogram variogram, final List<KrigingPoint> pnts,
+            final int NumberOfNearestPoints) {
+        preparePoints();
+        final int numPoints = pnts.size();
+        final List<KrigingPoint> outPnts = new ArrayList<>(numPoints);
+        processInBands(numPoints, POINT_BAND_SIZE, new RowBands.Task<KrigingPoint[]>() {
+            @Override
+            public KrigingPoint[] process(int start, int end) {
+                LocalKriging kriging = new LocalKriging(variogram, 0.03);
+                KrigingPoint[] ret = new KrigingPoint[end - start];
+                for (int n = start; n < end; n++) {
+                    KrigingPoint p = pnts.get(n);
+                    kriging.crossValidate(p, NumberOfNearestPoints);
+                    ret[n - start] = new KrigingPoint(p.x, p.y, kriging.estimate);
+                    ret[n - start].v = kriging.variance;
                 }
-                KrigingPoint pnt = new KrigingPoint(pnts.get(n).x + 1, pnts.get(n).y, ss);
-                outPnts.add(pnt);
-
-                //pnts.get(n).z = ss;
-                ss = 0;
+                return ret;
             }
-        }
+        }, new PointConsumer(outPnts, numPoints, "Cross-Validating:"));
 
         return outPnts;
     }
 
     public void interpolateRaster(Variogram variogram, int numberOfNearestPoints, WhiteboxRaster raster, boolean mapError) {
-        int row, col;
-        int rows = raster.getNumberRows();
-        int cols = raster.getNumberColumns();
-        double easting, northing;
-        double e;
-
-        double[][] D = new double[numberOfNearestPoints + 1][1];
-
-        List<KrigingPoint> nnPoints = new ArrayList();
-        int progress;
-        int oldProgress = -1;
-        for (row = 0; row < rows; row++) {
-            for (col = 0; col < cols; col++) {
-                easting = raster.getXCoordinateFromColumn(col);
-                northing = raster.getYCoordinateFromRow(row);
-                KrigingPoint pnt = new KrigingPoint(easting, northing, 0.0d);
-
-                nnPoints = getNNpoints(this.pointsTree, pnt, numberOfNearestPoints);
-
-                double[][] C = CalcConstantCoef(variogram, nnPoints);
-                double[] tm = CalcVariableCoef(variogram, pnt, nnPoints);
-                for (int i = 0; i < tm.length; i++) {
-                    D[i][0] = tm[i];
-                }
-                Matrix tmp = Matrix.constructWithCopy(C);
-                Matrix VariableCoef = Matrix.constructWithCopy(D);
-                Matrix w = null;
-                //boolean flag = false;
-                try {
-                    double vs = 0;
-                    w = tmp.solve(VariableCoef);
-                    double[][] Wi = w.getArray();
-                    double s = 0;
-                    for (int i = 0; i < Wi.length - 1; i++) {
-                        s = s + Wi[i][0] * nnPoints.get(i).z;
-                        vs = vs + Wi[i][0] * D[i][0];
-                    }
-                    e = vs + Wi[Wi.length - 1][0];
-                    if (!mapError) {
-                        raster.setValue(row, col, s);
-                    } else {
-                        raster.setValue(row, col, e);
-                    }
-
-                } catch (Exception ex) {
-                    SingularValueDecomposition svd = tmp.svd();
-                    Matrix u = svd.getU();
-                    Matrix s = svd.getS();
-                    Matrix v = svd.getV();
-
-                    int rrr = svd.rank();
-                    double[][] stemp = s.getArray();
-                    for (int nn = 0; nn < stemp.length; nn++) {
-                        if (stemp[nn][nn] > 0.003) {
-                            stemp[nn][nn] = 1 / stemp[nn][nn];
-                        } else {
-                            stemp[nn][nn] = 0;
-                        }
-                    }
-                    Matrix sp = new Matrix(stemp);
-                    w = v.times(sp).times(u.transpose()).times(VariableCoef);
-                    //Matrix test = tmp.times(w).minus(VariableCoef);
-                    double[][] Wi = w.getArray();
-                    double ss = 0;
-                    double vs = 0;
-                    for (int i = 0; i < Wi.length - 1; i++) {
-                        ss = ss + Wi[i][0] * nnPoints.get(i).z;
-                        vs = vs + Wi[i][0] * D[i][0];
-                    }
-                    e = vs + Wi[Wi.length - 1][0];
-                    if (!mapError) {
-                        raster.setValue(row, col, ss);
-                    } else {
-                        raster.setValue(row, col, e);
-                    }
-                }
-            }
-
-            progress = (int) (100f * row / (rows - 1.0));
-            if (progress > oldProgress) {
-                changes.firePropertyChange("progress", oldProgress, progress);
-                if (host != null) {
-                    host.updateProgress("Interpolating Data:", progress);
-                }
-                oldProgress = progress;
-            }
+        if (!mapError) {
+            interpolateRaster(variogram, numberOfNearestPoints, raster, raster, null);
+        } else {
+            interpolateRaster(variogram, numberOfNearestPoints, raster, null, raster);
         }
     }
-    
+
     public void interpolateRaster(Variogram variogram, int numberOfNearestPoints, WhiteboxRaster raster, WhiteboxRaster errorRaster) {
-        int row, col;
-        int rows = raster.getNumberRows();
-        int cols = raster.getNumberColumns();
-        double easting, northing;
-        double e;
+        interpolateRaster(variogram, numberOfNearestPoints, raster, raster, errorRaster);
+    }
 
-        double[][] D = new double[numberOfNearestPoints + 1][1];
+    /**
+     * Interpolates the cells of a raster. The raster is divided into square
+     * tiles, which are interpolated in parallel. Within a tile, cells that
+     * share the same nearest points share one factorised Kriging system. The
+     * predicted values and Kriging variances are written on the calling
+     * thread.
+     *
+     * @param raster the raster that defines the grid
+     * @param valueRaster receives the predicted values, or null
+     * @param errorRaster receives the Kriging variances, or null
+     */
+    private void interpolateRaster(final Variogram variogram, final int numberOfNearestPoints,
+            WhiteboxRaster raster, final WhiteboxRaster valueRaster, final WhiteboxRaster errorRaster) {
+        preparePoints();
+        final int rows = raster.getNumberRows();
+        final int cols = raster.getNumberColumns();
+        // the raster calculates its coordinates when they're first asked for,
+        // so they are looked up here rather than on the worker threads
+        final double[] eastings = new double[cols];
+        final double[] northings = new double[rows];
+        for (int col = 0; col < cols; col++) {
+            eastings[col] = raster.getXCoordinateFromColumn(col);
+        }
+        for (int row = 0; row < rows; row++) {
+            northings[row] = raster.getYCoordinateFromRow(row);
+        }
 
-        List<KrigingPoint> nnPoints = new ArrayList();
-        int progress;
-        int oldProgress = -1;
-        for (row = 0; row < rows; row++) {
-            for (col = 0; col < cols; col++) {
-                easting = raster.getXCoordinateFromColumn(col);
-                northing = raster.getYCoordinateFromRow(row);
-                KrigingPoint pnt = new KrigingPoint(easting, northing, 0.0d);
-
-                nnPoints = getNNpoints(this.pointsTree, pnt, numberOfNearestPoints);
-
-                double[][] C = CalcConstantCoef(variogram, nnPoints);
-                double[] tm = CalcVariableCoef(variogram, pnt, nnPoints);
-                for (int i = 0; i < tm.length; i++) {
-                    D[i][0] = tm[i];
-                }
-                Matrix tmp = Matrix.constructWithCopy(C);
-                Matrix VariableCoef = Matrix.constructWithCopy(D);
-                Matrix w = null;
-                //boolean flag = false;
-                try {
-                    double vs = 0;
-                    w = tmp.solve(VariableCoef);
-                    double[][] Wi = w.getArray();
-                    double s = 0;
-                    for (int i = 0; i < Wi.length - 1; i++) {
-                        s = s + Wi[i][0] * nnPoints.get(i).z;
-                        vs = vs + Wi[i][0] * D[i][0];
-                    }
-                    e = vs + Wi[Wi.length - 1][0];
-                    raster.setValue(row, col, s);
-                    errorRaster.setValue(row, col, e);
-
-                } catch (Exception ex) {
-                    SingularValueDecomposition svd = tmp.svd();
-                    Matrix u = svd.getU();
-                    Matrix s = svd.getS();
-                    Matrix v = svd.getV();
-
-                    int rrr = svd.rank();
-                    double[][] stemp = s.getArray();
-                    for (int nn = 0; nn < stemp.length; nn++) {
-                        if (stemp[nn][nn] > 0.003) {
-                            stemp[nn][nn] = 1 / stemp[nn][nn];
-                        } else {
-                            stemp[nn][nn] = 0;
+        processInBands(rows, TILE_SIZE, new RowBands.Task<double[][][]>() {
+            @Override
+            public double[][][] process(int startRow, int endRow) {
+                LocalKriging kriging = new LocalKriging(variogram, 0.003);
+                double[][][] ret = new double[2][endRow - startRow][cols];
+                for (int startCol = 0; startCol < cols; startCol += TILE_SIZE) {
+                    int endCol = Math.min(cols, startCol + TILE_SIZE);
+                    for (int row = startRow; row < endRow; row++) {
+                        for (int col = startCol; col < endCol; col++) {
+                            kriging.predict(eastings[col], northings[row], numberOfNearestPoints);
+                            ret[0][row - startRow][col] = kriging.estimate;
+                            ret[1][row - startRow][col] = kriging.variance;
                         }
                     }
-                    Matrix sp = new Matrix(stemp);
-                    w = v.times(sp).times(u.transpose()).times(VariableCoef);
-                    //Matrix test = tmp.times(w).minus(VariableCoef);
-                    double[][] Wi = w.getArray();
-                    double ss = 0;
-                    double vs = 0;
-                    for (int i = 0; i < Wi.length - 1; i++) {
-                        ss = ss + Wi[i][0] * nnPoints.get(i).z;
-                        vs = vs + Wi[i][0] * D[i][0];
-                    }
-                    e = vs + Wi[Wi.length - 1][0];
-                    raster.setValue(row, col, ss);
-                    errorRaster.setValue(row, col, e);
+                    // neighbourhoods are only shared by nearby cells
+                    kriging.clearCache();
                 }
+                return ret;
             }
+        }, new RowBands.Consumer<double[][][]>() {
+            int oldProgress = -1;
 
-            progress = (int) (100f * row / (rows - 1.0));
-            if (progress > oldProgress) {
-                changes.firePropertyChange("progress", oldProgress, progress);
-                if (host != null) {
-                    host.updateProgress("Interpolating Data:", progress);
+            @Override
+            public boolean consume(int startRow, int endRow, double[][][] result) {
+                for (int row = startRow; row < endRow; row++) {
+                    for (int col = 0; col < cols; col++) {
+                        if (valueRaster != null) {
+                            valueRaster.setValue(row, col, result[0][row - startRow][col]);
+                        }
+                        if (errorRaster != null) {
+                            errorRaster.setValue(row, col, result[1][row - startRow][col]);
+                        }
+                    }
                 }
-                oldProgress = progress;
+                oldProgress = updateProgress("Interpolating Data:", endRow, rows, oldProgress);
+                return true;
             }
-        }
+        });
     }
-    
+
     /**
      * Gets the variogram and unknown point list and returns the interpolated
      * values for the unknown points It also calculates the Kriging Variance and
@@ -1572,191 +1384,299 @@ public class Kriging {
      * @param numberOfNearestPoints
      * @return
      */
-    public List<KrigingPoint> interpolatePoints(Variogram variogram, List<KrigingPoint> pnts, int numberOfNearestPoints) {
+    public List<KrigingPoint> interpolatePoints(final Variogram variogram, final List<KrigingPoint> pnts,
+            final int numberOfNearestPoints) {
+        preparePoints();
+        final int numPoints = pnts.size();
+        final List<KrigingPoint> outPnts = new ArrayList<>(numPoints);
+        processInBands(numPoints, POINT_BAND_SIZE, new RowBands.Task<KrigingPoint[]>() {
+            @Override
+            public KrigingPoint[] process(int start, int end) {
+                LocalKriging kriging = new LocalKriging(variogram, 0.003);
+                KrigingPoint[] ret = new KrigingPoint[end - start];
+                for (int n = start; n < end; n++) {
+                    KrigingPoint p = pnts.get(n);
+                    kriging.predict(p.x, p.y, numberOfNearestPoints);
+                    ret[n - start] = new KrigingPoint(p.x, p.y, kriging.estimate);
+                    ret[n - start].v = kriging.variance;
+                }
+                return ret;
+            }
+        }, new PointConsumer(outPnts, numPoints, "Interpolating Data:"));
 
-        //double[] res = new double[numberOfNearestPoints];
-        double[][] D = new double[numberOfNearestPoints + 1][1];
+        return outPnts;
+    }
 
-        List<KrigingPoint> nnPoints = new ArrayList();
-        List<KrigingPoint> outPnts = new ArrayList();
-        int progress;
-        int oldProgress = -1;
-        int numPoints = pnts.size();
+    // the size of the tiles into which a raster is divided for interpolation
+    private static final int TILE_SIZE = 32;
+    // the number of points in each band of a point list
+    private static final int POINT_BAND_SIZE = TILE_SIZE * TILE_SIZE;
+
+    private List<KrigingPoint> treePoints = null; // the list that the point arrays and trees were built from
+    private double[] pointX;
+    private double[] pointY;
+    private double[] pointZ;
+    // shared by the worker threads, each of which uses its own result buffers
+    private StaticKdTree pointIndex;
 
-        for (int n = 0; n < numPoints; n++) {
-            nnPoints = getNNpoints(this.pointsTree, pnts.get(n), numberOfNearestPoints);
+    /**
+     * Runs a task on bands of rows, or of points, on the worker threads and
+     * passes the results to the consumer, in order, on the calling thread.
+     */
+    private <T> void processInBands(int n, int bandSize, RowBands.Task<T> task, RowBands.Consumer<T> consumer) {
+        try {
+            RowBands.process(n, bandSize, task, consumer);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
 
-            double[][] C = CalcConstantCoef(variogram, nnPoints);
-            double[] tm = CalcVariableCoef(variogram, pnts.get(n), nnPoints);
-            for (int i = 0; i < tm.length; i++) {
-                D[i][0] = tm[i];
+    /**
+     * Reports progress, if it has increased, and returns the new progress.
+     */
+    private int updateProgress(String label, int done, int total, int oldProgress) {
+        int progress = (int) (100f * done / total);
+        if (progress > oldProgress) {
+            changes.firePropertyChange("progress", oldProgress, progress);
+            if (host != null) {
+                host.updateProgress(label, progress);
             }
-            Matrix tmp = Matrix.constructWithCopy(C);
-            Matrix VariableCoef = Matrix.constructWithCopy(D);
-            Matrix w = null;
-            //boolean flag = false;
-            try {
-                double vs = 0;
-                w = tmp.solve(VariableCoef);
-                double[][] Wi = w.getArray();
-                double s = 0;
-                for (int i = 0; i < Wi.length - 1; i++) {
-                    s = s + Wi[i][0] * nnPoints.get(i).z;
-                    vs = vs + Wi[i][0] * D[i][0];
-                }
-                KrigingPoint pnt = new KrigingPoint(pnts.get(n).x, pnts.get(n).y, s);
-                pnt.v = vs + Wi[Wi.length - 1][0];
-//                if (pnt.v <= 0) {
-//                    pnt.v = pnt.v;
-//                }
-                outPnts.add(pnt);
-                //pnts.get(n).z = s;
-                //res[n]=s;
-                s = 0;
-
-            } catch (Exception ex) {
-                SingularValueDecomposition svd = tmp.svd();
-                Matrix u = svd.getU();
-                Matrix s = svd.getS();
-                Matrix v = svd.getV();
-
-                int rrr = svd.rank();
-                double[][] stemp = s.getArray();
-                for (int nn = 0; nn < stemp.length; nn++) {
-                    if (stemp[nn][nn] > 0.003) {
-                        stemp[nn][nn] = 1 / stemp[nn][nn];
-                    } else {
-                        stemp[nn][nn] = 0;
-                    }
-                }
-                Matrix sp = new Matrix(stemp);
-                w = v.times(sp).times(u.transpose()).times(VariableCoef);
-                //Matrix test = tmp.times(w).minus(VariableCoef);
-                double[][] Wi = w.getArray();
-                double ss = 0;
-                double vs = 0;
-                for (int i = 0; i < Wi.length - 1; i++) {
-                    ss = ss + Wi[i][0] * nnPoints.get(i).z;
-                    vs = vs + Wi[i][0] * D[i][0];
-                }
-                KrigingPoint pnt = new KrigingPoint(pnts.get(n).x, pnts.get(n).y, ss);
-                pnt.v = vs + Wi[Wi.length - 1][0];
-                if (pnt.v <= 0) {
-                    pnt.v = pnt.v;
-                    for (int i = 0; i < nnPoints.size(); i++) {
-                        System.out.println(nnPoints.get(i).x + " "
-                                + nnPoints.get(i).y + " "
-                                + nnPoints.get(i).z);
+            return progress;
+        }
+        return oldProgress;
+    }
 
-                    }
+    /**
+     * Collects the bands of predicted points in order.
+     */
+    private class PointConsumer implements RowBands.Consumer<KrigingPoint[]> {
 
-                }
+        private final List<KrigingPoint> outPnts;
+        private final int numPoints;
+        private final String label;
+        private int oldProgress = -1;
+
+        PointConsumer(List<KrigingPoint> outPnts, int numPoints, String label) {
+            this.outPnts = outPnts;
+            this.numPoints = numPoints;
+            this.label = label;
+        }
 
-                outPnts.add(pnt);
+        @Override
+        public boolean consume(int start, int end, KrigingPoint[] result) {
+            outPnts.addAll(Arrays.asList(result));
+            oldProgress = updateProgress(label, end, numPoints, oldProgress);
+            return true;
+        }
+    }
+
+    /**
+     * Predicts values from the nearest sample points on one worker thread.
+     * The factorised Kriging system of each neighbourhood is cached, so that
+     * the cells or points that share a neighbourhood, as adjacent cells often
+     * do, solve the same system without factorising it again. The caller
+     * clears the cache at the end of each tile to bound its size.
+     */
+    private class LocalKriging {
+
+        private final Variogram variogram;
+        private final double singularValueThreshold;
+        private final StaticKdTree.Neighbours results = new StaticKdTree.Neighbours();
+        private final double[] query = new double[2];
+        private final HashMap<NeighbourSet, NeighbourhoodSystem> cache = new HashMap<>();
+        double estimate;
+        double variance;
+
+        LocalKriging(Variogram variogram, double singularValueThreshold) {
+            this.variogram = variogram;
+            this.singularValueThreshold = singularValueThreshold;
+        }
 
-                //pnts.get(n).z = ss;
-                ss = 0;
+        void clearCache() {
+            cache.clear();
+        }
+
+        /**
+         * Returns the indices of the nearest sample points, in ascending
+         * order, so that a neighbourhood has the same system however it was
+         * found.
+         */
+        int[] findNeighbours(double x, double y, int count) {
+            query[0] = x;
+            query[1] = y;
+            pointIndex.nearestNeighbours(query, count, results);
+            int[] ret = new int[results.size()];
+            for (int i = 0; i < ret.length; i++) {
+                ret[i] = results.getIndex(i);
             }
+            Arrays.sort(ret);
+            return ret;
+        }
 
-            progress = (int) (100f * n / (numPoints - 1.0));
-            if (progress > oldProgress) {
-                changes.firePropertyChange("progress", oldProgress, progress);
-                if (host != null) {
-                    host.updateProgress("Interpolating Data:", progress);
-                }
-                oldProgress = progress;
+        NeighbourhoodSystem getSystem(int[] neighbours) {
+            NeighbourSet key = new NeighbourSet(neighbours);
+            NeighbourhoodSystem system = cache.get(key);
+            if (system == null) {
+                system = new NeighbourhoodSystem(CalcConstantCoef(variogram, neighbours), singularValueThreshold);
+                cache.put(key, system);
             }
+            return system;
         }
 
-        return outPnts;
-    }
+        /**
+         * Sets the estimate and variance at a location from its nearest
+         * points.
+         */
+        void predict(double x, double y, int numberOfNearestPoints) {
+            predict(x, y, findNeighbours(x, y, numberOfNearestPoints));
+        }
 
-    /**
-     * Returns the list of Pairs which are in the Nearest Neighborhood of the
-     * bin center point
-     *
-     * @param Tree
-     * @param entry (y,x)
-     * @param HalfBinSize
-     * @param Range is the search radius
-     * @return
-     */
-    private List<pair> getBinNNPairs4Map(KdTree<Double> Tree, double[] entry, double BinSize, double Range) {
-
-        List<KdTree.Entry<Double>> results;
-        results = Tree.neighborsWithinRange(entry, Range);
-        List<pair> res = new ArrayList();
-        double xd = 0;
-        double yd = 0;
-        for (int i = 0; i < results.size(); i++) {
-            xd = Math.sqrt(Math.pow((Pairs.get(results.get(i).value.intValue()).HorDistance - entry[1]), 2));
-            yd = Math.sqrt(Math.pow((Pairs.get(results.get(i).value.intValue()).VerDistance - entry[0]), 2));
-            if (xd <= BinSize && yd <= BinSize) {
-                res.add(Pairs.get(results.get(i).value.intValue()));
+        void predict(double x, double y, int[] neighbours) {
+            int n = neighbours.length;
+            double[] d = new double[n + 1];
+            for (int i = 0; i < n; i++) {
+                double dx = pointX[neighbours[i]] - x;
+                double dy = pointY[neighbours[i]] - y;
+                d[i] = getTheoreticalSVValue(Math.sqrt(dx * dx + dy * dy), variogram);
+            }
+            d[n] = 1;
+            double[] w = getSystem(neighbours).solve(d);
+            double s = 0;
+            double vs = 0;
+            for (int i = 0; i < n; i++) {
+                s += w[i] * pointZ[neighbours[i]];
+                vs += w[i] * d[i];
+            }
+            estimate = s;
+            variance = vs + w[n];
+        }
+
+        /**
+         * Sets the estimate and variance at a sample point from its nearest
+         * neighbours, leaving the point itself out. If B is the inverse of the
+         * system of the point i and its neighbours, the weights of the
+         * neighbours j in the system without i are -B[j][i] / B[i][i], which
+         * gives the estimate below, and the Kriging variance is -1 / B[i][i].
+         */
+        void crossValidate(KrigingPoint p, int numberOfNearestPoints) {
+            int[] neighbours = findNeighbours(p.x, p.y, numberOfNearestPoints + 1);
+            int n = neighbours.length;
+            int m = -1;
+            for (int i = 0; i < n; i++) {
+                int j = neighbours[i];
+                if (pointX[j] == p.x && pointY[j] == p.y && pointZ[j] == p.z) {
+                    m = i;
+                    break;
+                }
+            }
+            if (m < 0) {
+                // not a sample point, so there is nothing to leave out
+                predict(p.x, p.y, numberOfNearestPoints);
+                return;
+            }
+            double[] e = new double[n + 1];
+            e[m] = 1;
+            double[] b = getSystem(neighbours).solve(e);
+            if (b[m] != 0) {
+                double s = 0;
+                for (int i = 0; i < n; i++) {
+                    if (i != m) {
+                        s += b[i] * pointZ[neighbours[i]];
+                    }
+                }
+                estimate = -s / b[m];
+                variance = -1 / b[m];
+            } else {
+                int[] others = new int[n - 1];
+                for (int i = 0, k = 0; i < n; i++) {
+                    if (i != m) {
+                        others[k++] = neighbours[i];
+                    }
+                }
+                predict(p.x, p.y, others);
             }
         }
-        return res;
     }
 
     /**
-     * Returns the list of nearest neighbor points
-     *
-     * @param Tree
-     * @param pnt
-     * @param numPointsToUse
-     * @return
+     * The ordinary Kriging system of one neighbourhood. It is factorised when
+     * it is created and can then be solved for any number of right-hand
+     * sides. A singular system is solved with its pseudo-inverse, ignoring
+     * singular values below the threshold.
      */
-    private List<KrigingPoint> getNNpoints(KdTree<Double> Tree, KrigingPoint pnt, int numPointsToUse) {
-        double[] entry;
-        //double[] outentry;
-        entry = new double[]{pnt.y, pnt.x};
-        List<KdTree.Entry<Double>> results;
-        results = Tree.nearestNeighbor(entry, numPointsToUse, false);
-        List<KrigingPoint> pnts = new ArrayList();
-        List<KrigingPoint> res = new ArrayList();
-        for (int i = 0; i < results.size(); i++) {
-            //KrigingPoint tmp = new KrigingPoint();
-            //int id = results.get(i).value.intValue();
-            res.add(points.get(results.get(i).value.intValue()));
+    private static class NeighbourhoodSystem {
+
+        private LUDecomposition lu = null;
+        private Matrix pseudoInverse = null;
+
+        NeighbourhoodSystem(double[][] coefficients, double singularValueThreshold) {
+            Matrix a = new Matrix(coefficients);
+            LUDecomposition decomposition = new LUDecomposition(a);
+            if (decomposition.isNonsingular()) {
+                lu = decomposition;
+            } else {
+                SingularValueDecomposition svd = a.svd();
+                double[][] stemp = svd.getS().getArray();
+                for (int nn = 0; nn < stemp.length; nn++) {
+                    if (stemp[nn][nn] > singularValueThreshold) {
+                        stemp[nn][nn] = 1 / stemp[nn][nn];
+                    } else {
+                        stemp[nn][nn] = 0;
+                    }
+                }
+                pseudoInverse = svd.getV().times(new Matrix(stemp)).times(svd.getU().transpose());
+            }
+        }
+
+        double[] solve(double[] rhs) {
+            Matrix b = new Matrix(rhs, rhs.length);
+            Matrix w = (lu != null) ? lu.solve(b) : pseudoInverse.times(b);
+            return w.getColumnPackedCopy();
         }
-        return res;
     }
 
     /**
-     * calculates the D matrix for Kriging system
-     *
-     * @param variogram
-     * @param p is the unknown point
-     * @param NNPoints is the list of nearest neighbor points
-     * @return
+     * A set of point indices, in ascending order, used as a cache key.
      */
-    private double[] CalcVariableCoef(Variogram variogram, KrigingPoint p, List<KrigingPoint> NNPoints) {
-        int n = NNPoints.size();
-        double[] mat = new double[n + 1];
-        double dist = 0.0;
-        for (int i = 0; i < n; i++) {
-            dist = Math.sqrt(Math.abs(Math.pow(NNPoints.get(i).x - p.x, 2))
-                    + Math.abs(Math.pow(NNPoints.get(i).y - p.y, 2)));
-            mat[i] = getTheoreticalSVValue(dist, variogram);
+    private static class NeighbourSet {
+
+        private final int[] indices;
+        private final int hash;
+
+        NeighbourSet(int[] indices) {
+            this.indices = indices;
+            this.hash = Arrays.hashCode(indices);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof NeighbourSet && Arrays.equals(indices, ((NeighbourSet) obj).indices);
         }
-        mat[n] = 1;
-        return mat;
     }
 
     /**
      * This prepares the known points matrix for ordinary Kriging
      *
      * @param variogarm
+     * @param neighbours the indices of the points
      * @return
      */
-    private double[][] CalcConstantCoef(Variogram variogarm, List<KrigingPoint> NNPoints) {
-        int n = NNPoints.size();
+    private double[][] CalcConstantCoef(Variogram variogarm, int[] neighbours) {
+        int n = neighbours.length;
         double[][] mat = new double[n + 1][n + 1];
         double dist = 0.0;
         for (int i = 0; i < n; i++) {
             for (int j = i; j < n; j++) {
-                dist = Math.sqrt(Math.abs(Math.pow(NNPoints.get(i).x - NNPoints.get(j).x, 2))
-                        + Math.abs(Math.pow(NNPoints.get(i).y - NNPoints.get(j).y, 2)));
+                double dx = pointX[neighbours[i]] - pointX[neighbours[j]];
+                double dy = pointY[neighbours[i]] - pointY[neighbours[j]];
+                dist = Math.sqrt(dx * dx + dy * dy);
                 mat[i][j] = getTheoreticalSVValue(dist, variogarm);
                 mat[j][i] = mat[i][j];
             }
@@ -1765,25 +1685,17 @@ public class Kriging {
             mat[i][n] = 1;
             mat[n][i] = 1;
         }
-
-//        
-//        String s= new String();
-//        try {
-//            PrintWriter pr = new PrintWriter("G:\\test.txt");
-//            for (int i = 0; i < mat.length; i++) {
-//                for (int j = 0; j < mat.length; j++) {
-//                    s = s + "," + mat[i][j];
-//                }
-//                pr.println(s);
-//                s = "";
-//            }
-//            pr.close();
-//        } catch (FileNotFoundException ex) {
-//            Logger.getLogger(Kriging.class.getName()).log(Level.SEVERE, null, ex);
-//        }
-//        
         return mat;
+    }
 
+    /**
+     * Copies the point coordinates into arrays and builds the point trees,
+     * unless this has already been done for the current point list.
+     */
+    private void preparePoints() {
+        if (pointsTree == null || treePoints != points) {
+            BuildPointTree();
+        }
     }
 
     /**
@@ -1791,106 +1703,41 @@ public class Kriging {
      * (Kriging Optimizer)
      */
     void BuildPointTree() {
-        pointsTree = new KdTree.SqrEuclid<Double>(2, new Integer(this.points.size()));
-        double[] entry;
-        for (int i = 0; i < this.points.size(); i++) {
-            entry = new double[]{this.points.get(i).y, this.points.get(i).x};
-            pointsTree.addPoint(entry, (double) i);
+        int n = this.points.size();
+        pointX = new double[n];
+        pointY = new double[n];
+        pointZ = new double[n];
+        for (int i = 0; i < n; i++) {
+            pointX[i] = this.points.get(i).x;
+            pointY[i] = this.points.get(i).y;
+            pointZ[i] = this.points.get(i).z;
         }
-
+        pointsTree = new KdTree.SqrEuclid<>(2, null);
+        for (int i = 0; i < n; i++) {
+            pointsTree.addPoint(new double[]{pointY[i], pointX[i]}, (double) i);
+        }
+        pointIndex = new StaticKdTree(pointX, pointY);
+        treePoints = this.points;
     }
 
     /**
-     * Creates the pairs list based on sector classification. calcs the distance
-     * and moment of inertia for each pair It also calculates the min and max
-     * points and boundary It also build the KDTree object to be used with the
-     * Kriging
+     * Finds the min and max points and boundary and the maximum distance
+     * between points, and builds the KDTree objects used to find the pairs
+     * and the neighbours for the Kriging.
      */
-    void calPairs4Sec() throws FileNotFoundException {
-        MaximumDistance = 0;
+    void scanPoints() {
+        BuildPointTree();
         MinX = Double.POSITIVE_INFINITY;
         MinY = Double.POSITIVE_INFINITY;
         MaxX = Double.NEGATIVE_INFINITY;
         MaxY = Double.NEGATIVE_INFINITY;
-        pointsTree = new KdTree.SqrEuclid<>(2, new Integer(this.points.size()));
-        //PairsTree = new KdTree.SqrEuclid<Double>(2, new Integer(this.Points.size()*(this.Points.size()-1)/2));
-        PairsTree = new KdTree.SqrEuclid<>(2, new Integer(this.points.size() * (this.points.size())));
-        double[] entry;
-        double[] pairentry;
-
-//        String s = new String();
-        double dx = 0;
-        double dy = 0;
-        for (int i = 0; i < this.points.size(); i++) {
-
-            if (this.points.get(i).x < MinX) {
-                MinX = this.points.get(i).x;
-            }
-            if (this.points.get(i).y < MinY) {
-                MinY = this.points.get(i).y;
-            }
-            if (this.points.get(i).x > MaxX) {
-                MaxX = this.points.get(i).x;
-            }
-            if (this.points.get(i).y > MaxY) {
-                MaxY = this.points.get(i).y;
-            }
-
-            entry = new double[]{this.points.get(i).y, this.points.get(i).x};
-            pointsTree.addPoint(entry, (double) i);
-
-            for (int j = 0; j < this.points.size(); j++) {
-                pair pr = new pair();
-
-                if (i != j) {
-
-                    pr.FirstP = i;
-                    pr.SecondP = j;
-                    pr.Distance = Math.sqrt(Math.pow((points.get(i).x - points.get(j).x), 2)
-                            + Math.pow((points.get(i).y - points.get(j).y), 2));
-
-                    pr.HorDistance = (points.get(j).x - points.get(i).x);
-                    pr.VerDistance = (points.get(j).y - points.get(i).y);
-
-                    if (MaximumDistance < pr.Distance) {
-                        MaximumDistance = pr.Distance;
-                    }
-
-                    dx = points.get(j).x - points.get(i).x;
-                    dy = points.get(j).y - points.get(i).y;
-
-                    if (dx != 0) {
-                        if ((dx > 0 && dy >= 0)) {
-                            pr.Direction = Math.atan(dy / dx);
-                        }
-                        if (dx < 0 && dy >= 0) {
-                            pr.Direction = Math.atan(dy / dx) + Math.PI;
-                        }
-                        if (dx > 0 && dy < 0) {
-                            pr.Direction = Math.atan(dy / dx) + 2 * Math.PI;
-                        }
-                        if (dx < 0 && dy < 0) {
-                            pr.Direction = Math.atan(dy / dx) + Math.PI;;
-                        }
-                    } else {
-                        if (dy >= 0) {
-                            pr.Direction = Math.PI / 2;
-                        } else {
-                            pr.Direction = 3 * Math.PI / 2;
-                        }
-                    }
-                    pr.MomentI = Math.pow((points.get(i).z - points.get(j).z), 2) / 2;
-                    Pairs.add(pr);
-
-                    pairentry = new double[]{pr.VerDistance, pr.HorDistance};
-                    PairsTree.addPoint(pairentry, (double) Pairs.size() - 1.0);
-
-                }
-            }
+        for (int i = 0; i < pointX.length; i++) {
+            MinX = Math.min(MinX, pointX[i]);
+            MinY = Math.min(MinY, pointY[i]);
+            MaxX = Math.max(MaxX, pointX[i]);
+            MaxY = Math.max(MaxY, pointY[i]);
         }
-
-//        pw.close();
-        //LagSize  = MaximumDistance/NumberOfLags;
+        MaximumDistance = calcMaximumDistance();
         bMaxX = MaxX;
         bMaxY = MaxY;
         bMinX = MinX;
@@ -1898,110 +1745,50 @@ public class Kriging {
     }
 
     /**
-     * Creates the pairs list based for Map classification
-     *
-     * @throws FileNotFoundException
+     * Returns the greatest distance between any two points. The two points
+     * are vertices of the convex hull, which is found with the monotone chain
+     * algorithm, so only the hull vertices need to be compared.
      */
-    void CalPairs4Map() throws FileNotFoundException {
-        MaximumDistance = 0;
-        MinX = Double.POSITIVE_INFINITY;
-        MinY = Double.POSITIVE_INFINITY;
-        MaxX = Double.NEGATIVE_INFINITY;
-        MaxY = Double.NEGATIVE_INFINITY;
-        pointsTree = new KdTree.SqrEuclid<Double>(2, new Integer(this.points.size()));
-        PairsTree = new KdTree.SqrEuclid<Double>(2, new Integer(this.points.size() * (this.points.size() - 1) / 2));
-        double[] entry;
-        double[] pairentry;
-
-//        String s= new String();
-//        PrintWriter pw ;
-//        pw = new PrintWriter("G:\\test.txt");
-        double dx = 0;
-        double dy = 0;
-        for (int i = 0; i < this.points.size(); i++) {
-
-            if (this.points.get(i).x < MinX) {
-                MinX = this.points.get(i).x;
-            }
-            if (this.points.get(i).y < MinY) {
-                MinY = this.points.get(i).y;
+    private double calcMaximumDistance() {
+        int n = pointX.length;
+        double[][] xy = new double[n][];
+        for (int i = 0; i < n; i++) {
+            xy[i] = new double[]{pointX[i], pointY[i]};
+        }
+        Arrays.sort(xy, new Comparator<double[]>() {
+            @Override
+            public int compare(double[] a, double[] b) {
+                int ret = Double.compare(a[0], b[0]);
+                return (ret != 0) ? ret : Double.compare(a[1], b[1]);
             }
-            if (this.points.get(i).x > MaxX) {
-                MaxX = this.points.get(i).x;
+        });
+        double[][] hull = new double[2 * n][];
+        int k = 0;
+        for (int i = 0; i < n; i++) {
+            while (k >= 2 && cross(hull[k - 2], hull[k - 1], xy[i]) <= 0) {
+                k--;
             }
-            if (this.points.get(i).y > MaxY) {
-                MaxY = this.points.get(i).y;
+            hull[k++] = xy[i];
+        }
+        for (int i = n - 2, lower = k + 1; i >= 0; i--) {
+            while (k >= lower && cross(hull[k - 2], hull[k - 1], xy[i]) <= 0) {
+                k--;
             }
-
-            entry = new double[]{this.points.get(i).y, this.points.get(i).x};
-            pointsTree.addPoint(entry, (double) i);
-
-            for (int j = 0; j < this.points.size(); j++) {
-                pair pr = new pair();
-
-                if (points.get(i).x <= points.get(j).x && i != j) {
-
-                    pr.FirstP = i;
-                    pr.SecondP = j;
-                    pr.Distance = Math.sqrt(Math.pow((points.get(i).x - points.get(j).x), 2)
-                            + Math.pow((points.get(i).y - points.get(j).y), 2));
-
-                    pr.HorDistance = (points.get(j).x - points.get(i).x);
-                    pr.VerDistance = (points.get(j).y - points.get(i).y);
-
-                    if (MaximumDistance < pr.Distance) {
-                        MaximumDistance = pr.Distance;
-                    }
-                    dx = points.get(j).x - points.get(i).x;
-                    dy = points.get(j).y - points.get(i).y;
-
-                    if (dx != 0) {
-                        if ((dx > 0 && dy >= 0)) {
-                            pr.Direction = Math.atan(dy / dx);
-                        }
-                        if (dx < 0 && dy >= 0) {
-                            pr.Direction = Math.atan(dy / dx) + Math.PI;
-                        }
-                        if (dx > 0 && dy < 0) {
-                            pr.Direction = Math.atan(dy / dx) + 2 * Math.PI;
-                        }
-                        if (dx < 0 && dy < 0) {
-                            pr.Direction = Math.atan(dy / dx) + Math.PI;;
-                        }
-                    } else {
-                        if (dy >= 0) {
-                            pr.Direction = Math.PI / 2;
-                        } else {
-                            pr.Direction = 3 * Math.PI / 2;
-                        }
-                    }
-
-                    pr.MomentI = Math.pow((points.get(i).z - points.get(j).z), 2) / 2;
-                    Pairs.add(pr);
-
-                    pairentry = new double[]{pr.VerDistance, pr.HorDistance};
-                    PairsTree.addPoint(pairentry, (double) Pairs.size() - 1.0);
-
-//                    s =  Double.toString(pr.Distance) + "," + Double.toString(pr.Direction)+
-//                            "," + Double.toString(pr.MomentI)+
-//                            "," + Double.toString(pr.HorDistance)+
-//                            ","+Double.toString(pr.VerDistance)+
-//                            "," + Integer.toString(pr.FirstP)+
-//                            "," + Integer.toString(pr.SecondP);
-//
-//                    pw.println(s);
-                }
-
+            hull[k++] = xy[i];
+        }
+        double max = 0;
+        for (int i = 0; i < k; i++) {
+            for (int j = i + 1; j < k; j++) {
+                double dx = hull[j][0] - hull[i][0];
+                double dy = hull[j][1] - hull[i][1];
+                max = Math.max(max, dx * dx + dy * dy);
             }
         }
+        return Math.sqrt(max);
+    }
 
-//        pw.close();
-        //LagSize  = MaximumDistance/NumberOfLags;
-        bMaxX = MaxX;
-        bMaxY = MaxY;
-        bMinX = MinX;
-        bMinY = MinY;
-
+    private static double cross(double[] o, double[] a, double[] b) {
+        return (a[0] - o[0]) * (b[1] - o[1]) - (a[1] - o[1]) * (b[0] - o[0]);
     }
 
     /**
@@ -2081,11 +1868,7 @@ public class Kriging {
     public void calcBinSurface(SemivariogramType Type, double DistanseRatio, int NumberOfLags,
             boolean Anisotropic) {
         this.NumberOfLags = NumberOfLags;
-        try {
-            CalPairs4Map();
-        } catch (FileNotFoundException ex) {
-            Logger.getLogger(Kriging.class.getName()).log(Level.SEVERE, null, ex);
-        }
+        scanPoints();
         if (this.LagSize == 0) {
             this.LagSize = (this.MaximumDistance * DistanseRatio) / this.NumberOfLags;
         }
@@ -2110,11 +1893,7 @@ public class Kriging {
     public Variogram getSemivariogram(SemivariogramType type, double distanceRatio, int numberOfLags,
             boolean anisotropic, boolean useNSGA) {
         this.NumberOfLags = numberOfLags;
-        try {
-            calPairs4Sec();
-        } catch (FileNotFoundException ex) {
-            Logger.getLogger(Kriging.class.getName()).log(Level.SEVERE, null, ex);
-        }
+        scanPoints();
         if (this.LagSize == 0) {
             this.LagSize = (this.MaximumDistance * distanceRatio) / this.NumberOfLags;
         }
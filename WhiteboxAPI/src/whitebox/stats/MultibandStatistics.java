@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.stats;
+
+import whitebox.geospatialfiles.WhiteboxRasterBase;
+
+/**
+ * Accumulates the means, variances and covariances of a group of variables
+ * (e.g. the bands of a multi-spectral image) in a single pass through the
+ * data. Each pair of variables is updated using Welford's algorithm, so only
+ * observations where both variables are valid contribute to their covariance
+ * (pairwise deletion of NoData). Two accumulators can be merged using the
+ * pairwise update of Chan et al. (1979), which allows partial statistics to be
+ * calculated for separate blocks of rows on separate threads and then
+ * combined.
+ *
+ * @author johnlindsay
+ */
+public class MultibandStatistics {
+
+    int numVariables;
+    // pair statistics, stored for i <= j at index i * numVariables + j
+    long[] n;
+    double[] meanI;
+    double[] meanJ;
+    double[] m2I;
+    double[] m2J;
+    double[] coMoment;
+
+    public MultibandStatistics(int numVariables) {
+        this.numVariables = numVariables;
+        int size = numVariables * numVariables;
+        n = new long[size];
+        meanI = new double[size];
+        meanJ = new double[size];
+        m2I = new double[size];
+        m2J = new double[size];
+        coMoment = new double[size];
+    }
+
+    public int getNumVariables() {
+        return numVariables;
+    }
+
+    /**
+     * Adds an observation in which every variable is valid.
+     *
+     * @param x The observation vector.
+     */
+    public void add(double[] x) {
+        add(x, null);
+    }
+
+    /**
+     * Adds an observation.
+     *
+     * @param x The observation vector.
+     * @param valid Indicates which of the variables are valid; null if all are.
+     */
+    public void add(double[] x, boolean[] valid) {
+        for (int i = 0; i < numVariables; i++) {
+            if (valid != null && !valid[i]) {
+                continue;
+            }
+            for (int j = i; j < numVariables; j++) {
+                if (valid != null && !valid[j]) {
+                    continue;
+                }
+                int k = i * numVariables + j;
+                long count = ++n[k];
+                double dx = x[i] - meanI[k];
+                double dy = x[j] - meanJ[k];
+                meanI[k] += dx / count;
+                meanJ[k] += dy / count;
+                double ex = x[i] - meanI[k];
+                double ey = x[j] - meanJ[k];
+                m2I[k] += dx * ex;
+                m2J[k] += dy * ey;
+                coMoment[k] += dx * ey;
+            }
+        }
+    }
+
+    /**
+     * Combines the statistics of another accumulator with this one.
+     *
+     * @param other The accumulator to merge into this one.
+     */
+    public void merge(MultibandStatistics other) {
+        if (other.numVariables != numVariables) {
+            throw new IllegalArgumentException("The number of variables must be the same.");
+        }
+        for (int k = 0; k < n.length; k++) {
+            long nb = other.n[k];
+            if (nb == 0) {
+                continue;
+            }
+            long na = n[k];
+            if (na == 0) {
+                n[k] = nb;
+                meanI[k] = other.meanI[k];
+                meanJ[k] = other.meanJ[k];
+                m2I[k] = other.m2I[k];
+                m2J[k] = other.m2J[k];
+                coMoment[k] = other.coMoment[k];
+                continue;
+            }
+            long count = na + nb;
+            double dx = other.meanI[k] - meanI[k];
+            double dy = other.meanJ[k] - meanJ[k];
+            double f = (double) na * nb / count;
+            meanI[k] += dx * nb / count;
+            meanJ[k] += dy * nb / count;
+            m2I[k] += other.m2I[k] + dx * dx * f;
+            m2J[k] += other.m2J[k] + dy * dy * f;
+            coMoment[k] += other.coMoment[k] + dx * dy * f;
+            n[k] = count;
+        }
+    }
+
+    /**
+     * Calculates the partial statistics of a block of rows from a group of
+     * co-registered images. Pixels equal to an image's NoData value are
+     * excluded. This method is safe to call from several threads at once.
+     *
+     * @param images The input images, which must share the same dimensions.
+     * @param startRow The first row (inclusive).
+     * @param endRow The last row (exclusive).
+     * @return The statistics of the block.
+     */
+    public static MultibandStatistics accumulateRows(WhiteboxRasterBase[] images, int startRow, int endRow) {
+        int numImages = images.length;
+        int cols = images[0].getNumberColumns();
+        double[] noData = new double[numImages];
+        for (int i = 0; i < numImages; i++) {
+            noData[i] = images[i].getNoDataValue();
+        }
+        MultibandStatistics stats = new MultibandStatistics(numImages);
+        double[][] data = new double[numImages][];
+        double[] x = new double[numImages];
+        boolean[] valid = new boolean[numImages];
+        for (int row = startRow; row < endRow; row++) {
+            for (int i = 0; i < numImages; i++) {
+                data[i] = images[i].getRowValues(row);
+            }
+            for (int col = 0; col < cols; col++) {
+                boolean allValid = true;
+                boolean anyValid = false;
+                for (int i = 0; i < numImages; i++) {
+                    x[i] = data[i][col];
+                    valid[i] = x[i] != noData[i];
+                    allValid &= valid[i];
+                    anyValid |= valid[i];
+                }
+                if (allValid) {
+                    stats.add(x, null);
+                } else if (anyValid) {
+                    stats.add(x, valid);
+                }
+            }
+        }
+        return stats;
+    }
+
+    private int index(int i, int j) {
+        return i <= j ? i * numVariables + j : j * numVariables + i;
+    }
+
+    public long getCount(int i) {
+        return n[index(i, i)];
+    }
+
+    public double getMean(int i) {
+        return meanI[index(i, i)];
+    }
+
+    public double[] getMeans() {
+        double[] ret = new double[numVariables];
+        for (int i = 0; i < numVariables; i++) {
+            ret[i] = getMean(i);
+        }
+        return ret;
+    }
+
+    /**
+     * The sum of squared deviations of variable i from its mean.
+     *
+     * @param i The variable number.
+     * @return Total squared deviation.
+     */
+    public double getTotalDeviation(int i) {
+        return m2I[index(i, i)];
+    }
+
+    public double getVariance(int i) {
+        return getTotalDeviation(i) / (getCount(i) - 1);
+    }
+
+    public double getStandardDeviation(int i) {
+        return Math.sqrt(getVariance(i));
+    }
+
+    /**
+     * The sample covariance of variables i and j, calculated from the
+     * observations in which both are valid.
+     */
+    public double getCovariance(int i, int j) {
+        int k = index(i, j);
+        return coMoment[k] / (n[k] - 1);
+    }
+
+    /**
+     * The Pearson correlation coefficient of variables i and j, calculated
+     * from the observations in which both are valid.
+     */
+    public double getCorrelation(int i, int j) {
+        int k = index(i, j);
+        return coMoment[k] / Math.sqrt(m2I[k] * m2J[k]);
+    }
+
+    public double[][] getCovarianceMatrix() {
+        double[][] ret = new double[numVariables][numVariables];
+        for (int i = 0; i < numVariables; i++) {
+            for (int j = 0; j < numVariables; j++) {
+                ret[i][j] = getCovariance(i, j);
+            }
+        }
+        return ret;
+    }
+
+    public double[][] getCorrelationMatrix() {
+        double[][] ret = new double[numVariables][numVariables];
+        for (int i = 0; i < numVariables; i++) {
+            for (int j = 0; j < numVariables; j++) {
+                ret[i][j] = getCorrelation(i, j);
+            }
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.stats;
+
+/**
+ * Accumulates the count, mean, variance, minimum and maximum of a stream of
+ * values in a single pass, optionally together with a histogram over a fixed
+ * range. The moments are updated using Welford's algorithm and two
+ * accumulators can be merged using the pairwise update of Chan et al. (1979),
+ * so partial statistics can be calculated for separate blocks of rows on
+ * separate threads and then combined. Because the histogram bins are fixed in
+ * advance, merged histograms are identical to the histogram of the whole data
+ * set, which makes the histogram a mergeable summary from which percentiles
+ * can be read.
+ *
+ * @author johnlindsay
+ */
+public class StreamingStatistics {
+
+    private long n = 0;
+    private double mean = 0;
+    private double m2 = 0;
+    private double min = Double.MAX_VALUE;
+    private double max = -Double.MAX_VALUE;
+    private final double histoMin;
+    private final double binWidth;
+    private final long[] histo;
+
+    /**
+     * Creates an accumulator without a histogram.
+     */
+    public StreamingStatistics() {
+        this.histoMin = 0;
+        this.binWidth = 0;
+        this.histo = null;
+    }
+
+    /**
+     * Creates an accumulator with a histogram. A value z falls in bin
+     * floor((z - histoMin) / binWidth); values falling outside of the
+     * histogram are counted in the first or last bin.
+     *
+     * @param histoMin The lower edge of the first bin.
+     * @param binWidth The width of each bin.
+     * @param numBins The number of bins.
+     */
+    public StreamingStatistics(double histoMin, double binWidth, int numBins) {
+        this.histoMin = histoMin;
+        this.binWidth = binWidth;
+        this.histo = new long[numBins];
+    }
+
+    /**
+     * Adds a single value.
+     *
+     * @param z The value.
+     */
+    public void add(double z) {
+        n++;
+        double delta = z - mean;
+        mean += delta / n;
+        m2 += delta * (z - mean);
+        if (z < min) {
+            min = z;
+        }
+        if (z > max) {
+            max = z;
+        }
+        if (histo != null) {
+            histo[bin(z)]++;
+        }
+    }
+
+    /**
+     * Adds each of an array of values that is not equal to the NoData value.
+     * The block is summarised on its own and then merged, which is both
+     * faster and more accurate than adding the values one at a time.
+     *
+     * @param values The values.
+     * @param noDataValue The NoData value.
+     */
+    public void add(double[] values, double noDataValue) {
+        long blockN = 0;
+        double sum = 0;
+        double blockMin = Double.MAX_VALUE;
+        double blockMax = -Double.MAX_VALUE;
+        for (double z : values) {
+            if (z != noDataValue) {
+                blockN++;
+                sum += z;
+                if (z < blockMin) {
+                    blockMin = z;
+                }
+                if (z > blockMax) {
+                    blockMax = z;
+                }
+                if (histo != null) {
+                    histo[bin(z)]++;
+                }
+            }
+        }
+        if (blockN == 0) {
+            return;
+        }
+        double blockMean = sum / blockN;
+        double blockM2 = 0;
+        for (double z : values) {
+            if (z != noDataValue) {
+                blockM2 += (z - blockMean) * (z - blockMean);
+            }
+        }
+        combine(blockN, blockMean, blockM2, blockMin, blockMax);
+    }
+
+    /**
+     * Merges the statistics of another accumulator into this one. If the
+     * accumulators have histograms they must have the same bins.
+     *
+     * @param other The accumulator to merge.
+     */
+    public void merge(StreamingStatistics other) {
+        if (histo != null) {
+            if (other.histo == null || other.histo.length != histo.length
+                    || other.histoMin != histoMin || other.binWidth != binWidth) {
+                throw new IllegalArgumentException("The histograms do not have the same bins.");
+            }
+            for (int i = 0; i < histo.length; i++) {
+                histo[i] += other.histo[i];
+            }
+        }
+        if (other.n > 0) {
+            combine(other.n, other.mean, other.m2, other.min, other.max);
+        }
+    }
+
+    private void combine(long otherN, double otherMean, double otherM2,
+            double otherMin, double otherMax) {
+        long total = n + otherN;
+        double delta = otherMean - mean;
+        mean += delta * otherN / total;
+        m2 += otherM2 + delta * delta * ((double) n * otherN / total);
+        n = total;
+        if (otherMin < min) {
+            min = otherMin;
+        }
+        if (otherMax > max) {
+            max = otherMax;
+        }
+    }
+
+    /**
+     * Returns a copy of the accumulator with its histogram limited to a run
+     * of consecutive bins, e.g. those spanning the minimum to the maximum
+     * value. The counts of the bins that are dropped are added to the nearest
+     * of the remaining bins.
+     *
+     * @param firstBin The first bin kept.
+     * @param numBins The number of bins kept.
+     * @return The new accumulator.
+     */
+    public StreamingStatistics trimHistogram(int firstBin, int numBins) {
+        if (histo == null || firstBin < 0 || numBins < 1 || firstBin + numBins > histo.length) {
+            throw new IllegalArgumentException("The bins are not within the histogram.");
+        }
+        StreamingStatistics ret = new StreamingStatistics(histoMin + firstBin * binWidth, binWidth, numBins);
+        for (int i = 0; i < histo.length; i++) {
+            int b = Math.min(Math.max(i - firstBin, 0), numBins - 1);
+            ret.histo[b] += histo[i];
+        }
+        ret.n = n;
+        ret.mean = mean;
+        ret.m2 = m2;
+        ret.min = min;
+        ret.max = max;
+        return ret;
+    }
+
+    private int bin(double z) {
+        int b = (int) (Math.floor((z - histoMin) / binWidth));
+        if (b < 0) {
+            return 0;
+        }
+        if (b >= histo.length) {
+            return histo.length - 1;
+        }
+        return b;
+    }
+
+    public long getCount() {
+        return n;
+    }
+
+    public double getMean() {
+        return n > 0 ? mean : Double.NaN;
+    }
+
+    /**
+     * Returns the sample variance, i.e. the sum of squared deviations divided
+     * by n - 1.
+     *
+     * @return The sample variance.
+     */
+    public double getVariance() {
+        return n > 1 ? m2 / (n - 1) : Double.NaN;
+    }
+
+    public double getStandardDeviation() {
+        return Math.sqrt(getVariance());
+    }
+
+    /**
+     * @return The minimum value, or Double.MAX_VALUE if no values have been
+     * added.
+     */
+    public double getMinimum() {
+        return min;
+    }
+
+    /**
+     * @return The maximum value, or -Double.MAX_VALUE if no values have been
+     * added.
+     */
+    public double getMaximum() {
+        return max;
+    }
+
+    /**
+     * @return The histogram counts, or null if the accumulator has no
+     * histogram.
+     */
+    public long[] getHistogram() {
+        return histo;
+    }
+
+    public double getBinWidth() {
+        return binWidth;
+    }
+}
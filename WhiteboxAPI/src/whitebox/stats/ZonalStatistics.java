@@ -0,0 +1,529 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.stats;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import whitebox.geospatialfiles.WhiteboxRasterBase;
+import whitebox.parallel.RowBands;
+
+/**
+ * Calculates descriptive statistics of one or more value rasters within the
+ * zones of a zone raster, in a single pass over the rasters. The zone raster
+ * must contain integer zone IDs. The rows are processed in bands on separate
+ * threads; each band accumulates the count, sum, minimum, maximum, mean and
+ * sum of squared deviations (M2) of each zone in primitive arrays, indexed by
+ * a dense zone index rather than by the zone ID itself, so sparse or very large
+ * IDs cost nothing extra. The band accumulators are then merged using the
+ * pairwise update of Chan et al. (1979), in the same way as
+ * StreamingStatistics.
+ *
+ * Optionally, each zone also keeps a histogram of each value raster over the
+ * range of values in the raster's header. The histograms are mergeable and
+ * allow approximate quantiles, e.g. the median, to be read for each zone; the
+ * error is at most the width of one bin.
+ *
+ * NoData cells in the zone raster are ignored, as are NoData cells in each
+ * value raster for the statistics of that raster.
+ *
+ * @author johnlindsay
+ */
+public class ZonalStatistics {
+
+    /*
+     * Receives the progress of the calculation on the calling thread.
+     * Returning false stops the calculation.
+     */
+    public interface Progress {
+
+        boolean rowsCompleted(int completed, int total) throws Exception;
+    }
+
+    private final WhiteboxRasterBase zoneRaster;
+    private final WhiteboxRasterBase[] valueRasters;
+    private final int numValues;
+    private int numBins = 0;
+    private double[] histoMin;
+    private double[] binWidth;
+    // the merged accumulators; the statistics of value raster v in zone z are
+    // held at index z * numValues + v, and the zones are in ascending ID order
+    private Accumulator result = null;
+
+    /**
+     * @param zoneRaster The raster of integer zone IDs.
+     * @param valueRasters The rasters to summarise. They must have the same
+     * number of rows and columns as the zone raster.
+     */
+    public ZonalStatistics(WhiteboxRasterBase zoneRaster, WhiteboxRasterBase... valueRasters) {
+        for (WhiteboxRasterBase r : valueRasters) {
+            if (r.getNumberRows() != zoneRaster.getNumberRows()
+                    || r.getNumberColumns() != zoneRaster.getNumberColumns()) {
+                throw new IllegalArgumentException("Input images must have the same dimensions (i.e. rows and columns).");
+            }
+        }
+        this.zoneRaster = zoneRaster;
+        this.valueRasters = valueRasters.clone();
+        this.numValues = valueRasters.length;
+    }
+
+    /**
+     * Sets the number of histogram bins kept for each zone and value raster.
+     * The histograms are needed for getQuantile and are off (0 bins) by
+     * default, since they take numZones * numValueRasters * numBins counts.
+     *
+     * @param numBins The number of bins, or 0 for no histograms.
+     */
+    public void setQuantileBins(int numBins) {
+        this.numBins = Math.max(0, numBins);
+    }
+
+    /**
+     * Makes the single pass over the rasters.
+     *
+     * @param progress Receives the number of rows completed, or null.
+     * @return false if the progress stopped the calculation.
+     * @throws Exception IllegalArgumentException if the zone raster contains
+     * non-integer values, or any exception thrown while reading the rasters.
+     */
+    public boolean calculate(final Progress progress) throws Exception {
+        final int rows = zoneRaster.getNumberRows();
+        final int cols = zoneRaster.getNumberColumns();
+        final double zoneNoData = zoneRaster.getNoDataValue();
+        final double[] noData = new double[numValues];
+        histoMin = new double[numValues];
+        binWidth = new double[numValues];
+        for (int v = 0; v < numValues; v++) {
+            noData[v] = valueRasters[v].getNoDataValue();
+            if (numBins > 0) {
+                histoMin[v] = valueRasters[v].getMinimumValue();
+                double range = valueRasters[v].getMaximumValue() - histoMin[v];
+                binWidth[v] = range > 0 ? range / numBins : 1;
+            }
+        }
+
+        final Accumulator merged = new Accumulator();
+        boolean completed = RowBands.process(rows, new RowBands.Task<Accumulator>() {
+            @Override
+            public Accumulator process(int startRow, int endRow) throws Exception {
+                Accumulator acc = new Accumulator();
+                double[][] data = new double[numValues][];
+                for (int row = startRow; row < endRow; row++) {
+                    double[] zones = zoneRaster.getRowValues(row);
+                    for (int v = 0; v < numValues; v++) {
+                        data[v] = valueRasters[v].getRowValues(row);
+                    }
+                    int lastID = 0;
+                    int z = -1;
+                    for (int col = 0; col < cols; col++) {
+                        double zoneValue = zones[col];
+                        if (zoneValue == zoneNoData) {
+                            continue;
+                        }
+                        int id = (int) zoneValue;
+                        if (id != zoneValue) {
+                            throw new IllegalArgumentException("The zone image should contain integer values only.");
+                        }
+                        // neighbouring cells usually belong to the same zone
+                        if (z < 0 || id != lastID) {
+                            z = acc.zoneIndex(id);
+                            lastID = id;
+                        }
+                        acc.cells[z]++;
+                        int k = z * numValues;
+                        for (int v = 0; v < numValues; v++, k++) {
+                            double x = data[v][col];
+                            if (x != noData[v]) {
+                                acc.add(k, x, v);
+                            }
+                        }
+                    }
+                }
+                return acc;
+            }
+        }, new RowBands.Consumer<Accumulator>() {
+            @Override
+            public boolean consume(int startRow, int endRow, Accumulator acc) throws Exception {
+                merged.merge(acc);
+                return progress == null || progress.rowsCompleted(endRow, rows);
+            }
+        });
+        if (!completed) {
+            return false;
+        }
+        result = merged.sortedByID();
+        return true;
+    }
+
+    /*
+     * The statistics of each zone found in part of the rasters. Zones are
+     * given dense indices in the order they are first met, through an
+     * open-addressing hash table of zone IDs.
+     */
+    private class Accumulator {
+
+        int numZones = 0;
+        int[] ids = new int[16];
+        long[] cells = new long[16];
+        long[] n = new long[16 * numValues];
+        double[] sum = new double[16 * numValues];
+        double[] min = new double[16 * numValues];
+        double[] max = new double[16 * numValues];
+        double[] mean = new double[16 * numValues];
+        double[] m2 = new double[16 * numValues];
+        long[] histo = numBins > 0 ? new long[16 * numValues * numBins] : null;
+        // hash table of zone index + 1, with 0 marking an empty slot
+        int[] table = new int[32];
+
+        int zoneIndex(int id) {
+            int mask = table.length - 1;
+            int slot = hash(id) & mask;
+            while (table[slot] != 0) {
+                int z = table[slot] - 1;
+                if (ids[z] == id) {
+                    return z;
+                }
+                slot = (slot + 1) & mask;
+            }
+            int z = numZones++;
+            if (z == ids.length) {
+                grow();
+            }
+            ids[z] = id;
+            Arrays.fill(min, z * numValues, (z + 1) * numValues, Double.MAX_VALUE);
+            Arrays.fill(max, z * numValues, (z + 1) * numValues, -Double.MAX_VALUE);
+            table[slot] = z + 1;
+            if (2 * numZones > table.length) {
+                rehash();
+            }
+            return z;
+        }
+
+        private int hash(int id) {
+            int h = id * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+
+        private void grow() {
+            int capacity = ids.length * 2;
+            ids = Arrays.copyOf(ids, capacity);
+            cells = Arrays.copyOf(cells, capacity);
+            n = Arrays.copyOf(n, capacity * numValues);
+            sum = Arrays.copyOf(sum, capacity * numValues);
+            min = Arrays.copyOf(min, capacity * numValues);
+            max = Arrays.copyOf(max, capacity * numValues);
+            mean = Arrays.copyOf(mean, capacity * numValues);
+            m2 = Arrays.copyOf(m2, capacity * numValues);
+            if (histo != null) {
+                histo = Arrays.copyOf(histo, capacity * numValues * numBins);
+            }
+        }
+
+        private void rehash() {
+            table = new int[table.length * 2];
+            int mask = table.length - 1;
+            for (int z = 0; z < numZones; z++) {
+                int slot = hash(ids[z]) & mask;
+                while (table[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = z + 1;
+            }
+        }
+
+        // Welford's update of the statistics at index k with value x of
+        // value raster v
+        void add(int k, double x, int v) {
+            long count = ++n[k];
+            sum[k] += x;
+            double delta = x - mean[k];
+            mean[k] += delta / count;
+            m2[k] += delta * (x - mean[k]);
+            if (x < min[k]) {
+                min[k] = x;
+            }
+            if (x > max[k]) {
+                max[k] = x;
+            }
+            if (histo != null) {
+                int b = (int) Math.floor((x - histoMin[v]) / binWidth[v]);
+                if (b < 0) {
+                    b = 0;
+                } else if (b >= numBins) {
+                    b = numBins - 1;
+                }
+                histo[k * numBins + b]++;
+            }
+        }
+
+        void merge(Accumulator other) {
+            for (int oz = 0; oz < other.numZones; oz++) {
+                int z = zoneIndex(other.ids[oz]);
+                cells[z] += other.cells[oz];
+                for (int v = 0; v < numValues; v++) {
+                    int k = z * numValues + v;
+                    int ok = oz * numValues + v;
+                    long otherN = other.n[ok];
+                    if (otherN == 0) {
+                        continue;
+                    }
+                    long total = n[k] + otherN;
+                    double delta = other.mean[ok] - mean[k];
+                    mean[k] += delta * otherN / total;
+                    m2[k] += other.m2[ok] + delta * delta * ((double) n[k] * otherN / total);
+                    n[k] = total;
+                    sum[k] += other.sum[ok];
+                    if (other.min[ok] < min[k]) {
+                        min[k] = other.min[ok];
+                    }
+                    if (other.max[ok] > max[k]) {
+                        max[k] = other.max[ok];
+                    }
+                    if (histo != null) {
+                        for (int b = 0; b < numBins; b++) {
+                            histo[k * numBins + b] += other.histo[ok * numBins + b];
+                        }
+                    }
+                }
+            }
+        }
+
+        // a copy with the zones in ascending ID order
+        Accumulator sortedByID() {
+            long[] order = new long[numZones];
+            for (int z = 0; z < numZones; z++) {
+                // sort on the ID, carrying the index in the low 32 bits
+                order[z] = ((long) ids[z] << 32) | z;
+            }
+            Arrays.sort(order);
+            Accumulator sorted = new Accumulator();
+            for (long o : order) {
+                sorted.zoneIndex((int) (o >> 32));
+            }
+            for (int s = 0; s < numZones; s++) {
+                int z = (int) order[s];
+                sorted.cells[s] = cells[z];
+                System.arraycopy(n, z * numValues, sorted.n, s * numValues, numValues);
+                System.arraycopy(sum, z * numValues, sorted.sum, s * numValues, numValues);
+                System.arraycopy(min, z * numValues, sorted.min, s * numValues, numValues);
+                System.arraycopy(max, z * numValues, sorted.max, s * numValues, numValues);
+                System.arraycopy(mean, z * numValues, sorted.mean, s * numValues, numValues);
+                System.arraycopy(m2, z * numValues, sorted.m2, s * numValues, numValues);
+                if (histo != null) {
+                    System.arraycopy(histo, z * numValues * numBins, sorted.histo,
+                            s * numValues * numBins, numValues * numBins);
+                }
+            }
+            return sorted;
+        }
+    }
+
+    private void checkCalculated() {
+        if (result == null) {
+            throw new IllegalStateException("The statistics have not been calculated.");
+        }
+    }
+
+    /**
+     * @return The number of zones, i.e. distinct zone IDs, in the zone raster.
+     */
+    public int getNumberOfZones() {
+        checkCalculated();
+        return result.numZones;
+    }
+
+    /**
+     * @param zone The zone index, from 0 to getNumberOfZones() - 1. Zone
+     * indices are in ascending order of ID.
+     * @return The zone ID.
+     */
+    public int getZoneID(int zone) {
+        checkCalculated();
+        return result.ids[zone];
+    }
+
+    /**
+     * @param id A zone ID.
+     * @return The index of the zone, or -1 if the ID does not occur in the
+     * zone raster.
+     */
+    public int getZoneIndex(int id) {
+        checkCalculated();
+        int z = Arrays.binarySearch(result.ids, 0, result.numZones, id);
+        return z >= 0 ? z : -1;
+    }
+
+    /**
+     * @param zone The zone index.
+     * @return The number of cells in the zone, including those that are
+     * NoData in the value rasters.
+     */
+    public long getNumberOfCells(int zone) {
+        checkCalculated();
+        return result.cells[zone];
+    }
+
+    /**
+     * @param zone The zone index.
+     * @param valueRaster The index of the value raster.
+     * @return The number of cells of the zone with valid data.
+     */
+    public long getCount(int zone, int valueRaster) {
+        checkCalculated();
+        return result.n[zone * numValues + valueRaster];
+    }
+
+    public double getSum(int zone, int valueRaster) {
+        checkCalculated();
+        return result.sum[zone * numValues + valueRaster];
+    }
+
+    /**
+     * @return The mean, or NaN if the zone has no valid data.
+     */
+    public double getMean(int zone, int valueRaster) {
+        int k = zone * numValues + valueRaster;
+        return getCount(zone, valueRaster) > 0 ? result.mean[k] : Double.NaN;
+    }
+
+    /**
+     * @return The minimum, or NaN if the zone has no valid data.
+     */
+    public double getMinimum(int zone, int valueRaster) {
+        int k = zone * numValues + valueRaster;
+        return getCount(zone, valueRaster) > 0 ? result.min[k] : Double.NaN;
+    }
+
+    /**
+     * @return The maximum, or NaN if the zone has no valid data.
+     */
+    public double getMaximum(int zone, int valueRaster) {
+        int k = zone * numValues + valueRaster;
+        return getCount(zone, valueRaster) > 0 ? result.max[k] : Double.NaN;
+    }
+
+    public double getRange(int zone, int valueRaster) {
+        return getMaximum(zone, valueRaster) - getMinimum(zone, valueRaster);
+    }
+
+    /**
+     * Returns the sample variance, i.e. the sum of squared deviations divided
+     * by n - 1.
+     *
+     * @return The sample variance, or NaN if the zone has fewer than two
+     * cells with valid data.
+     */
+    public double getVariance(int zone, int valueRaster) {
+        long count = getCount(zone, valueRaster);
+        return count > 1 ? result.m2[zone * numValues + valueRaster] / (count - 1) : Double.NaN;
+    }
+
+    public double getStandardDeviation(int zone, int valueRaster) {
+        return Math.sqrt(getVariance(zone, valueRaster));
+    }
+
+    /**
+     * Estimates a quantile from the zone's histogram, interpolating linearly
+     * within the bin that contains it. Requires setQuantileBins to have been
+     * called before calculate.
+     *
+     * @param zone The zone index.
+     * @param valueRaster The index of the value raster.
+     * @param p The probability, from 0 to 1, e.g. 0.5 for the median.
+     * @return The quantile, or NaN if the zone has no valid data.
+     */
+    public double getQuantile(int zone, int valueRaster, double p) {
+        checkCalculated();
+        if (result.histo == null) {
+            throw new IllegalStateException("No quantile histograms were kept.");
+        }
+        long count = getCount(zone, valueRaster);
+        if (count == 0) {
+            return Double.NaN;
+        }
+        int offset = (zone * numValues + valueRaster) * numBins;
+        double target = Math.max(0, Math.min(1, p)) * count;
+        long cumulative = 0;
+        double q = getMaximum(zone, valueRaster);
+        for (int b = 0; b < numBins; b++) {
+            long binCount = result.histo[offset + b];
+            if (binCount > 0 && cumulative + binCount >= target) {
+                q = histoMin[valueRaster] + binWidth[valueRaster] * (b + (target - cumulative) / binCount);
+                break;
+            }
+            cumulative += binCount;
+        }
+        // the first and last bins also hold any values outside of the header's range
+        return Math.max(getMinimum(zone, valueRaster), Math.min(getMaximum(zone, valueRaster), q));
+    }
+
+    /**
+     * Writes all of the statistics of every zone to a comma-separated values
+     * file, one zone per line. For each value raster there are columns for the
+     * count, mean, minimum, maximum, range, standard deviation and total, and
+     * the median if quantile histograms were kept. Zones without valid data
+     * have empty cells.
+     *
+     * @param fileName The name of the CSV file.
+     * @param valueNames The column name prefix of each value raster.
+     * @throws IOException If the file can't be written.
+     */
+    public void writeCSV(String fileName, String[] valueNames) throws IOException {
+        checkCalculated();
+        boolean median = result.histo != null;
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(fileName))) {
+            StringBuilder sb = new StringBuilder("ID,CELLS");
+            for (int v = 0; v < numValues; v++) {
+                String name = valueNames[v];
+                sb.append(",").append(name).append("_N,").append(name).append("_MEAN,")
+                        .append(name).append("_MIN,").append(name).append("_MAX,")
+                        .append(name).append("_RANGE,").append(name).append("_STDEV,")
+                        .append(name).append("_TOTAL");
+                if (median) {
+                    sb.append(",").append(name).append("_MEDIAN");
+                }
+            }
+            out.write(sb.toString());
+            out.newLine();
+            for (int z = 0; z < result.numZones; z++) {
+                sb.setLength(0);
+                sb.append(result.ids[z]).append(",").append(result.cells[z]);
+                for (int v = 0; v < numValues; v++) {
+                    long count = getCount(z, v);
+                    sb.append(",").append(count);
+                    if (count > 0) {
+                        sb.append(",").append(getMean(z, v)).append(",").append(getMinimum(z, v))
+                                .append(",").append(getMaximum(z, v)).append(",").append(getRange(z, v))
+                                .append(",");
+                        if (count > 1) {
+                            sb.append(getStandardDeviation(z, v));
+                        }
+                        sb.append(",").append(getSum(z, v));
+                        if (median) {
+                            sb.append(",").append(getQuantile(z, v, 0.5));
+                        }
+                    } else {
+                        sb.append(median ? ",,,,,,," : ",,,,,,");
+                    }
+                }
+                out.write(sb.toString());
+                out.newLine();
+            }
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.structures;
+
+/**
+ * A spatial index for finding all of the points within a fixed search radius
+ * of a location. The points are bucketed into a uniform grid of square cells
+ * no smaller than the search radius, and stored sorted by cell in primitive
+ * arrays with a prefix-sum offset for each cell, so that a query only examines
+ * the 3 x 3 block of cells around the query location. This is much cheaper
+ * than a KdTree for points of roughly uniform density, such as LiDAR data,
+ * and queries allocate nothing. Once built the index is immutable and may be
+ * queried from several threads at once.
+ *
+ * @author johnlindsay
+ */
+public class FixedRadiusIndex {
+
+    private final double radius;
+    private final double sqrRadius;
+    private final double cellSize;
+    private final double minX;
+    private final double minY;
+    private final int cellRows;
+    private final int cellColumns;
+    private final int[] cellStart; // cellRows * cellColumns + 1 offsets
+    private final int[] sortedIndex;
+    private final double[] sortedX;
+    private final double[] sortedY;
+    private final int[] cellRowOfPoint;
+
+    /*
+     * Receives each point found by a query. The index is the position of the
+     * point in the arrays the index was built from.
+     */
+    public interface Visitor {
+
+        void visit(int index, double sqrDist);
+    }
+
+    /**
+     * Builds the index.
+     *
+     * @param x The x coordinates of the points.
+     * @param y The y coordinates of the points.
+     * @param radius The search radius.
+     */
+    public FixedRadiusIndex(double[] x, double[] y, double radius) {
+        this(x, y, x.length, radius);
+    }
+
+    /**
+     * Builds the index from the first numPoints entries of the coordinate
+     * arrays.
+     *
+     * @param x The x coordinates of the points.
+     * @param y The y coordinates of the points.
+     * @param numPoints The number of points to index.
+     * @param radius The search radius.
+     */
+    public FixedRadiusIndex(double[] x, double[] y, int numPoints, double radius) {
+        if (!(radius > 0) || Double.isInfinite(radius)) {
+            throw new IllegalArgumentException("The search radius must be a positive finite value.");
+        }
+        this.radius = radius;
+        this.sqrRadius = radius * radius;
+
+        double xMin = Double.POSITIVE_INFINITY;
+        double yMin = Double.POSITIVE_INFINITY;
+        double xMax = Double.NEGATIVE_INFINITY;
+        double yMax = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < numPoints; i++) {
+            if (x[i] < xMin) {
+                xMin = x[i];
+            }
+            if (x[i] > xMax) {
+                xMax = x[i];
+            }
+            if (y[i] < yMin) {
+                yMin = y[i];
+            }
+            if (y[i] > yMax) {
+                yMax = y[i];
+            }
+        }
+        if (numPoints == 0) {
+            xMin = yMin = xMax = yMax = 0;
+        }
+        minX = xMin;
+        minY = yMin;
+
+        // the cells can't be smaller than the radius, and very sparse data
+        // would otherwise create far more cells than points
+        double size = radius;
+        long maxCells = Math.max(1024L, 2L * numPoints);
+        while (((long) ((xMax - xMin) / size) + 1) * ((long) ((yMax - yMin) / size) + 1) > maxCells) {
+            size *= 2;
+        }
+        cellSize = size;
+        cellColumns = (int) ((xMax - xMin) / cellSize) + 1;
+        cellRows = (int) ((yMax - yMin) / cellSize) + 1;
+
+        // a counting sort of the points by cell
+        int numCells = cellRows * cellColumns;
+        int[] cellOfPoint = new int[numPoints];
+        cellRowOfPoint = new int[numPoints];
+        cellStart = new int[numCells + 1];
+        for (int i = 0; i < numPoints; i++) {
+            int row = (int) ((y[i] - minY) / cellSize);
+            int col = (int) ((x[i] - minX) / cellSize);
+            cellRowOfPoint[i] = row;
+            cellOfPoint[i] = row * cellColumns + col;
+            cellStart[cellOfPoint[i] + 1]++;
+        }
+        for (int c = 0; c < numCells; c++) {
+            cellStart[c + 1] += cellStart[c];
+        }
+        int[] next = new int[numCells];
+        System.arraycopy(cellStart, 0, next, 0, numCells);
+        sortedIndex = new int[numPoints];
+        sortedX = new double[numPoints];
+        sortedY = new double[numPoints];
+        for (int i = 0; i < numPoints; i++) {
+            int k = next[cellOfPoint[i]]++;
+            sortedIndex[k] = i;
+            sortedX[k] = x[i];
+            sortedY[k] = y[i];
+        }
+    }
+
+    public double getRadius() {
+        return radius;
+    }
+
+    public int getNumberOfPoints() {
+        return sortedIndex.length;
+    }
+
+    /**
+     * The cells are arranged in rows running from the minimum y coordinate
+     * upwards. Every neighbour of a point lies in the same cell row as the
+     * point or in one of the two adjacent rows, so bands of cell rows can be
+     * treated as independent tiles.
+     *
+     * @return The number of rows of cells.
+     */
+    public int getNumberOfCellRows() {
+        return cellRows;
+    }
+
+    /**
+     * Returns the cell row containing a point.
+     *
+     * @param index The position of the point in the arrays the index was
+     * built from.
+     * @return The cell row.
+     */
+    public int getCellRow(int index) {
+        return cellRowOfPoint[index];
+    }
+
+    /**
+     * Returns the position in the sorted order of the first point in a cell
+     * row. The points in cell rows startRow to endRow (exclusive) are those
+     * in the sorted order from getRowStart(startRow) to getRowStart(endRow).
+     *
+     * @param cellRow The cell row, between 0 and getNumberOfCellRows().
+     * @return The position of the first point in the sorted order.
+     */
+    public int getRowStart(int cellRow) {
+        return cellStart[cellRow * cellColumns];
+    }
+
+    /**
+     * Returns the point at a position in the sorted order.
+     *
+     * @param sortedPosition The position in the sorted order.
+     * @return The position of the point in the arrays the index was built
+     * from.
+     */
+    public int getSortedIndex(int sortedPosition) {
+        return sortedIndex[sortedPosition];
+    }
+
+    /**
+     * Visits every point within the search radius of a location, including
+     * any point at the location itself.
+     *
+     * @param x The x coordinate of the location.
+     * @param y The y coordinate of the location.
+     * @param visitor Receives each point that is found.
+     */
+    public void neighboursWithinRange(double x, double y, Visitor visitor) {
+        int row = (int) Math.floor((y - minY) / cellSize);
+        int col = (int) Math.floor((x - minX) / cellSize);
+        int startRow = Math.max(0, row - 1);
+        int endRow = Math.min(cellRows - 1, row + 1);
+        int startCol = Math.max(0, col - 1);
+        int endCol = Math.min(cellColumns - 1, col + 1);
+        if (startCol > endCol) {
+            return;
+        }
+        for (int r = startRow; r <= endRow; r++) {
+            // the cells of a row are contiguous in the sorted order
+            int start = cellStart[r * cellColumns + startCol];
+            int end = cellStart[r * cellColumns + endCol + 1];
+            for (int k = start; k < end; k++) {
+                double dx = sortedX[k] - x;
+                double dy = sortedY[k] - y;
+                double sqrDist = dx * dx + dy * dy;
+                if (sqrDist <= sqrRadius) {
+                    visitor.visit(sortedIndex[k], sqrDist);
+                }
+            }
+        }
+    }
+}
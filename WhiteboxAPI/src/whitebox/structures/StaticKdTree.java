@@ -0,0 +1,461 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.structures;
+
+import java.util.Arrays;
+
+/**
+ * A k-d tree of points that is built once from a complete set of points and
+ * is not modified afterwards. Unlike KdTree, which adds points one at a time
+ * and stores an object with each point, the tree is built by recursively
+ * partitioning the points about the median of the dimension with the
+ * greatest spread, so that it is balanced whatever the order of the points,
+ * and the coordinates and point indices are held in flat primitive arrays.
+ * The value associated with each point is its index in the coordinate arrays
+ * that the tree was built from.
+ * <p>
+ * Queries write their results into a caller-supplied Neighbours buffer,
+ * which can be reused from one query to the next, and keep no state in the
+ * tree. A tree may therefore be searched by any number of threads at once,
+ * provided that each thread uses its own buffer.
+ *
+ * @author johnlindsay
+ */
+public class StaticKdTree {
+
+    // ranges of this many points or fewer are searched exhaustively
+    private static final int BUCKET_SIZE = 8;
+
+    private final int dimensions;
+    private final int numPoints;
+    private final double[] coordinates; // numPoints * dimensions, in tree order
+    private final int[] indices;
+    private final byte[] splitDimensions; // set at the median of each split range
+    // the bounding box of each split range, at its median
+    private final double[] boxMin;
+    private final double[] boxMax;
+
+    /**
+     * Builds the tree. Each array holds one coordinate of the points, e.g.
+     * new StaticKdTree(x, y) for two-dimensional points.
+     *
+     * @param coordinates The coordinate arrays, which must all be the same
+     * length.
+     */
+    public StaticKdTree(double[]... coordinates) {
+        this(coordinates[0].length, coordinates);
+    }
+
+    /**
+     * Builds the tree from the first numPoints entries of the coordinate
+     * arrays.
+     *
+     * @param numPoints The number of points.
+     * @param coordinates The coordinate arrays.
+     */
+    public StaticKdTree(int numPoints, double[]... coordinates) {
+        if (coordinates.length < 1 || coordinates.length > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("Unsupported number of dimensions.");
+        }
+        this.dimensions = coordinates.length;
+        this.numPoints = numPoints;
+        int[] order = new int[numPoints];
+        for (int i = 0; i < numPoints; i++) {
+            order[i] = i;
+        }
+        splitDimensions = new byte[numPoints];
+        boxMin = new double[numPoints * dimensions];
+        boxMax = new double[numPoints * dimensions];
+        build(coordinates, order, 0, numPoints);
+
+        this.coordinates = new double[numPoints * dimensions];
+        indices = order;
+        for (int k = 0; k < numPoints; k++) {
+            for (int d = 0; d < dimensions; d++) {
+                this.coordinates[k * dimensions + d] = coordinates[d][order[k]];
+            }
+        }
+    }
+
+    public int getDimensions() {
+        return dimensions;
+    }
+
+    public int getNumberOfPoints() {
+        return numPoints;
+    }
+
+    /*
+     * Splits the range about its median in the dimension of greatest spread
+     * and then splits each half. The recursion depth is log2 of the number of
+     * points.
+     */
+    private void build(double[][] src, int[] order, int lo, int hi) {
+        if (hi - lo <= BUCKET_SIZE) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        int splitDim = 0;
+        double maxSpread = -1;
+        for (int d = 0; d < dimensions; d++) {
+            double[] c = src[d];
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int k = lo; k < hi; k++) {
+                double v = c[order[k]];
+                if (v < min) {
+                    min = v;
+                }
+                if (v > max) {
+                    max = v;
+                }
+            }
+            boxMin[mid * dimensions + d] = min;
+            boxMax[mid * dimensions + d] = max;
+            if (max - min > maxSpread) {
+                maxSpread = max - min;
+                splitDim = d;
+            }
+        }
+        select(src[splitDim], order, lo, hi, mid);
+        splitDimensions[mid] = (byte) splitDim;
+        build(src, order, lo, mid);
+        build(src, order, mid + 1, hi);
+    }
+
+    /*
+     * Rearranges order[lo..hi) so that the point at position k has the value
+     * it would have if the range were sorted, with no greater values before
+     * it and no smaller values after it. This is a quickselect with a three-way
+     * partition, so that runs of equal values do not degrade it.
+     */
+    private static void select(double[] c, int[] order, int lo, int hi, int k) {
+        hi--;
+        while (hi > lo) {
+            double pivot = median(c[order[lo]], c[order[(lo + hi) >>> 1]], c[order[hi]]);
+            int lt = lo;
+            int gt = hi;
+            int i = lo;
+            while (i <= gt) {
+                double v = c[order[i]];
+                if (v < pivot) {
+                    swap(order, lt++, i++);
+                } else if (v > pivot) {
+                    swap(order, i, gt--);
+                } else {
+                    i++;
+                }
+            }
+            if (k < lt) {
+                hi = lt - 1;
+            } else if (k > gt) {
+                lo = gt + 1;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private static double median(double a, double b, double c) {
+        if (a < b) {
+            return b < c ? b : (a < c ? c : a);
+        }
+        return a < c ? a : (b < c ? c : b);
+    }
+
+    private static void swap(int[] a, int i, int j) {
+        int t = a[i];
+        a[i] = a[j];
+        a[j] = t;
+    }
+
+    private double sqrDistance(double[] query, int k) {
+        double sum = 0;
+        int offset = k * dimensions;
+        for (int d = 0; d < dimensions; d++) {
+            double diff = coordinates[offset + d] - query[d];
+            sum += diff * diff;
+        }
+        return sum;
+    }
+
+    /*
+     * The squared distance from a location to the bounding box of the split
+     * range with the median k. This is a lower bound on the distance to any
+     * of its points and, unlike the distance to the splitting plane, still
+     * prunes the search when the query is far from a tight cluster of points.
+     */
+    private double boxSqrDistance(double[] query, int k) {
+        double sum = 0;
+        int offset = k * dimensions;
+        for (int d = 0; d < dimensions; d++) {
+            double q = query[d];
+            double diff = boxMin[offset + d] - q;
+            if (diff <= 0) {
+                diff = q - boxMax[offset + d];
+                if (diff <= 0) {
+                    continue;
+                }
+            }
+            sum += diff * diff;
+        }
+        return sum;
+    }
+
+    /**
+     * Finds the nearest point to a location.
+     *
+     * @param query The location.
+     * @param result Receives the nearest point, or nothing if the tree is
+     * empty.
+     */
+    public void nearestNeighbour(double[] query, Neighbours result) {
+        nearestNeighbours(query, 1, result);
+    }
+
+    /**
+     * Finds the nearest points to a location.
+     *
+     * @param query The location.
+     * @param count The number of points to find.
+     * @param result Receives the points, in order of increasing distance.
+     * Of several equally distant points, those with the lower indices are
+     * found first.
+     */
+    public void nearestNeighbours(double[] query, int count, Neighbours result) {
+        result.size = 0;
+        count = Math.min(count, numPoints);
+        if (count <= 0) {
+            return;
+        }
+        result.ensureCapacity(count);
+        nearest(query, count, result, 0, numPoints);
+        result.sortHeap();
+    }
+
+    private void nearest(double[] query, int count, Neighbours result, int lo, int hi) {
+        if (hi - lo <= BUCKET_SIZE) {
+            for (int k = lo; k < hi; k++) {
+                result.offer(indices[k], sqrDistance(query, k), count);
+            }
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        int d = splitDimensions[mid];
+        double diff = query[d] - coordinates[mid * dimensions + d];
+        result.offer(indices[mid], sqrDistance(query, mid), count);
+        if (diff <= 0) {
+            nearest(query, count, result, lo, mid);
+            if (isWorthSearching(query, count, result, diff, mid + 1, hi)) {
+                nearest(query, count, result, mid + 1, hi);
+            }
+        } else {
+            nearest(query, count, result, mid + 1, hi);
+            if (isWorthSearching(query, count, result, diff, lo, mid)) {
+                nearest(query, count, result, lo, mid);
+            }
+        }
+    }
+
+    /*
+     * Whether the far side of a split may hold a point nearer than the
+     * furthest point found so far, or one as near with a lower index. The
+     * splitting plane is tested first, as it is cheaper, and then the
+     * bounding box of the far side.
+     */
+    private boolean isWorthSearching(double[] query, int count, Neighbours result,
+            double diff, int lo, int hi) {
+        if (result.size < count) {
+            return true;
+        }
+        double worst = result.sqrDists[0];
+        if (diff * diff > worst) {
+            return false;
+        }
+        return hi - lo <= BUCKET_SIZE || boxSqrDistance(query, (lo + hi) >>> 1) <= worst;
+    }
+
+    /**
+     * Finds every point within a distance of a location, including any point
+     * at the location itself.
+     *
+     * @param query The location.
+     * @param radius The search distance.
+     * @param result Receives the points, in no particular order.
+     */
+    public void neighboursWithinRange(double[] query, double radius, Neighbours result) {
+        result.size = 0;
+        if (numPoints > 0) {
+            within(query, radius * radius, result, 0, numPoints);
+        }
+    }
+
+    private void within(double[] query, double sqrRadius, Neighbours result, int lo, int hi) {
+        if (hi - lo <= BUCKET_SIZE) {
+            for (int k = lo; k < hi; k++) {
+                double dist = sqrDistance(query, k);
+                if (dist <= sqrRadius) {
+                    result.add(indices[k], dist);
+                }
+            }
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        int d = splitDimensions[mid];
+        double diff = query[d] - coordinates[mid * dimensions + d];
+        double dist = sqrDistance(query, mid);
+        if (dist <= sqrRadius) {
+            result.add(indices[mid], dist);
+        }
+        if (diff <= 0 || diff * diff <= sqrRadius) {
+            within(query, sqrRadius, result, lo, mid);
+        }
+        if (diff >= 0 || diff * diff <= sqrRadius) {
+            within(query, sqrRadius, result, mid + 1, hi);
+        }
+    }
+
+    /**
+     * Holds the points found by a query as parallel arrays of point indices
+     * and squared distances. The arrays grow as needed and are reused by
+     * later queries, so a thread that reuses one buffer for all of its
+     * queries does not allocate once the buffer has reached its working size.
+     */
+    public static class Neighbours {
+
+        private int[] indices;
+        private double[] sqrDists;
+        private int size = 0;
+
+        public Neighbours() {
+            this(16);
+        }
+
+        public Neighbours(int initialCapacity) {
+            indices = new int[Math.max(1, initialCapacity)];
+            sqrDists = new double[indices.length];
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Returns the index of a point in the coordinate arrays the tree was
+         * built from.
+         *
+         * @param i The position of the point in the result.
+         * @return The index of the point.
+         */
+        public int getIndex(int i) {
+            return indices[i];
+        }
+
+        public double getSqrDistance(int i) {
+            return sqrDists[i];
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > indices.length) {
+                int newCapacity = Math.max(capacity, 2 * indices.length);
+                indices = Arrays.copyOf(indices, newCapacity);
+                sqrDists = Arrays.copyOf(sqrDists, newCapacity);
+            }
+        }
+
+        private void add(int index, double sqrDist) {
+            if (size == indices.length) {
+                ensureCapacity(size + 1);
+            }
+            indices[size] = index;
+            sqrDists[size] = sqrDist;
+            size++;
+        }
+
+        /*
+         * Whether the entry at position i comes after the given point.
+         * Points are ordered by squared distance and then by index, so that
+         * the points chosen from among several equally distant points do not
+         * depend on the shape of the tree.
+         */
+        private boolean isAfter(int i, int index, double sqrDist) {
+            return sqrDists[i] > sqrDist || (sqrDists[i] == sqrDist && indices[i] > index);
+        }
+
+        /*
+         * Adds a point to a max-heap of at most count points.
+         */
+        private void offer(int index, double sqrDist, int count) {
+            int i;
+            if (size < count) {
+                i = size++;
+                while (i > 0) {
+                    int parent = (i - 1) >>> 1;
+                    if (isAfter(parent, index, sqrDist)) {
+                        break;
+                    }
+                    indices[i] = indices[parent];
+                    sqrDists[i] = sqrDists[parent];
+                    i = parent;
+                }
+            } else if (isAfter(0, index, sqrDist)) {
+                i = siftDown(0, index, sqrDist, size);
+            } else {
+                return;
+            }
+            indices[i] = index;
+            sqrDists[i] = sqrDist;
+        }
+
+        /*
+         * Moves the hole at position i down the heap of length n until the
+         * point fits, and returns the final position of the hole.
+         */
+        private int siftDown(int i, int index, double sqrDist, int n) {
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= n) {
+                    return i;
+                }
+                if (child + 1 < n && isAfter(child + 1, indices[child], sqrDists[child])) {
+                    child++;
+                }
+                if (!isAfter(child, index, sqrDist)) {
+                    return i;
+                }
+                indices[i] = indices[child];
+                sqrDists[i] = sqrDists[child];
+                i = child;
+            }
+        }
+
+        /*
+         * Sorts the heap into increasing order.
+         */
+        private void sortHeap() {
+            for (int n = size - 1; n > 0; n--) {
+                int index = indices[n];
+                double sqrDist = sqrDists[n];
+                indices[n] = indices[0];
+                sqrDists[n] = sqrDists[0];
+                int i = siftDown(0, index, sqrDist, n);
+                indices[i] = index;
+                sqrDists[i] = sqrDist;
+            }
+        }
+    }
+}
@@ -20,6 +20,7 @@ import java.awt.event.ActionEvent
 import java.io.File
 import java.util.Date
 import java.util.ArrayList
+import java.util.Arrays
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import whitebox.interfaces.WhiteboxPluginHost
@@ -27,12 +28,10 @@ import whitebox.geospatialfiles.ShapeFile
 import whitebox.geospatialfiles.shapefile.*
 import whitebox.ui.plugin_dialog.*
 import whitebox.utilities.FileUtilities;
-import com.vividsolutions.jts.geom.*
-import com.vividsolutions.jts.triangulate.DelaunayTriangulationBuilder
+import whitebox.algorithms.DelaunayTriangulation
 import whitebox.geospatialfiles.VectorLayerInfo
 import whitebox.geospatialfiles.shapefile.attributes.*
 import whitebox.geospatialfiles.shapefile.ShapeFileRecord
-import whitebox.utilities.Topology
 import org.apache.commons.math3.geometry.euclidean.threed.Vector3D
 import org.apache.commons.math3.geometry.euclidean.threed.Plane
 import org.apache.commons.math3.geometry.euclidean.twod.Vector2D
@@ -50,6 +49,17 @@ public class ConstructTIN implements ActionListener {
     private WhiteboxPluginHost pluginHost
     private ScriptDialog sd;
     private String descriptiveName
+    private double[] xs = new double[16]
+    private double[] ys = new double[16]
+    private double[] zs = new double[16]
+    private int numPoints = 0
+    private ShapeFile output
+    private long[] histo = new long[256]
+    private int FID = 1
+    private double tanSlope, aspect
+    private final double azimuth = Math.toRadians(315.0 - 90)
+    private final double sinTheta = Math.sin(Math.toRadians(30.0))
+    private final double cosTheta = Math.cos(Math.toRadians(30.0))
 	
     public ConstructTIN(WhiteboxPluginHost pluginHost, 
         String[] args, def descriptiveName) {
@@ -81,6 +91,7 @@ public class ConstructTIN implements ActionListener {
             DialogCheckBox dcb = sd.addDialogCheckBox("Use z-values", "Use z-values", false)
             dcb.setVisible(false)
             sd.addDialogFile("Output file", "Output Vector File:", "saveAs", "Vector Files (*.shp), SHP", true, false)
+            sd.addDialogDataInput("Maximum triangle edge length. Leave blank for none.", "Max. Triangle Edge Length (optional):", "", true, true)
             
             def listener = { evt -> if (evt.getPropertyName().equals("value")) { 
             		String value = dfs.getValue()
@@ -119,13 +130,8 @@ public class ConstructTIN implements ActionListener {
     private void execute(String[] args) {
         try {
         	int progress, oldProgress
-            double fx, fy, tanSlope, aspect, hillshade, z, x, y, d
-			double term1, term2, term3
-			double azimuth = Math.toRadians(315.0 - 90)
-			double altitude = Math.toRadians(30.0)
-			double sinTheta = Math.sin(altitude)
-			double cosTheta = Math.cos(altitude)
-            if (args.length != 3) {
+            double hillshade, z, x, y
+            if (args.length < 3 || args.length > 4) {
                 pluginHost.showFeedback("Incorrect number of arguments given to tool.")
                 return
             }
@@ -133,6 +139,10 @@ public class ConstructTIN implements ActionListener {
             String[] inputData = args[0].split(";")
             boolean useZValues = Boolean.parseBoolean(args[1])
             String outputFile = args[2]
+            double maxEdgeLength = Double.POSITIVE_INFINITY
+            if (args.length == 4 && !(args[3].trim()).isEmpty() && !(args[3].toLowerCase().equals("not specified"))) {
+            	maxEdgeLength = Double.parseDouble(args[3])
+            }
 			String inputFile = inputData[0]
             
             ShapeFile input = new ShapeFile(inputFile)
@@ -156,12 +166,8 @@ public class ConstructTIN implements ActionListener {
             	return
             }
 			
-			ArrayList<com.vividsolutions.jts.geom.Geometry> pointList = new ArrayList<>()
-			
 			double[][] point
 			Object[] recData
-			Coordinate c
-			GeometryFactory geomFactory = new GeometryFactory()
 			int i = 0
 			int numFeatures = input.getNumberOfRecords()
 			oldProgress = -1
@@ -173,8 +179,7 @@ public class ConstructTIN implements ActionListener {
 					for (int p = 0; p < point.length; p++) {
 						x = point[p][0]
 						y = point[p][1]
-						c = new Coordinate(x, y, z)
-						pointList.add(geomFactory.createPoint(c))
+						addPoint(x, y, z)
 					}
 					i++
 	                progress = (int)(100f * i / numFeatures)
@@ -195,8 +200,7 @@ public class ConstructTIN implements ActionListener {
                 		z = ptz.getZ()
                 		x = ptz.getX()
 						y = ptz.getY()
-						c = new Coordinate(x, y, z)
-						pointList.add(geomFactory.createPoint(c))
+						addPoint(x, y, z)
 					} else if (shapeType.getBaseType() == ShapeType.MULTIPOINT) {
 						MultiPointZ plz = (MultiPointZ)(record.getGeometry())
 						point = record.getGeometry().getPoints()
@@ -205,8 +209,7 @@ public class ConstructTIN implements ActionListener {
 							x = point[p][0]
 							y = point[p][1]
 							z = zArray[p]
-							c = new Coordinate(x, y, z)
-							pointList.add(geomFactory.createPoint(c))
+							addPoint(x, y, z)
 						}
 					} else if (shapeType.getBaseType() == ShapeType.POLYLINE) {
 						PolyLineZ plz = (PolyLineZ)(record.getGeometry())
@@ -216,8 +219,7 @@ public class ConstructTIN implements ActionListener {
 							x = point[p][0]
 							y = point[p][1]
 							z = zArray[p]
-							c = new Coordinate(x, y, z)
-							pointList.add(geomFactory.createPoint(c))
+							addPoint(x, y, z)
 						}
 					} else if (shapeType.getBaseType() == ShapeType.POLYGON) {
 						PolygonZ pz = (PolygonZ)(record.getGeometry())
@@ -227,8 +229,7 @@ public class ConstructTIN implements ActionListener {
 							x = point[p][0]
 							y = point[p][1]
 							z = zArray[p]
-							c = new Coordinate(x, y, z)
-							pointList.add(geomFactory.createPoint(c))
+							addPoint(x, y, z)
 						}
 					}
 					
@@ -246,12 +247,6 @@ public class ConstructTIN implements ActionListener {
 				}
 			}
 			
-			com.vividsolutions.jts.geom.Geometry geom = geomFactory.buildGeometry(pointList)
-			
-			DelaunayTriangulationBuilder dtb = new DelaunayTriangulationBuilder()
-			dtb.setSites(geom)
-			com.vividsolutions.jts.geom.Geometry polys = dtb.getTriangles(geomFactory)
-
 			// set up the output files of the shapefile and the dbf
 			DBFField[] fields = new DBFField[9];
 			fields[0] = new DBFField();
@@ -308,128 +303,35 @@ public class ConstructTIN implements ActionListener {
 			fields[8].setFieldLength(10);
 			fields[8].setDecimalCount(3);
 			
-			ShapeFile output = new ShapeFile(outputFile, ShapeType.POLYGONZ, fields);
+			output = new ShapeFile(outputFile, ShapeType.POLYGONZ, fields);
 			
-			long[] histo = new long[256];
-			int FID = 1
-			numFeatures = polys.getNumGeometries()
-			oldProgress = -1
-			for (int a = 0; a < polys.getNumGeometries(); a++) {
-			    com.vividsolutions.jts.geom.Geometry g = polys.getGeometryN(a);
-			    if (g instanceof com.vividsolutions.jts.geom.Polygon) {
-			        com.vividsolutions.jts.geom.Polygon p = (com.vividsolutions.jts.geom.Polygon) g;
-			        ArrayList<ShapefilePoint> pnts = new ArrayList<>();
-			        int[] parts = new int[p.getNumInteriorRing() + 1];
-			        
-			        Coordinate[] buffCoords = p.getExteriorRing().getCoordinates();
-			        if (!Topology.isLineClosed(buffCoords)) {
-			            pluginHost.showFeedback("Exterior ring not closed.");
-			        }
-			        if (Topology.isClockwisePolygon(buffCoords)) {
-			            for (i = 0; i < buffCoords.length; i++) {
-			                pnts.add(new ShapefilePoint(buffCoords[i].x, buffCoords[i].y, buffCoords[i].z, 0.0));
-			            }
-			        } else {
-			            for (i = buffCoords.length - 1; i >= 0; i--) {
-			                pnts.add(new ShapefilePoint(buffCoords[i].x, buffCoords[i].y, buffCoords[i].z, 0.0));
-			            }
-			        }
-			
-			        for (int b = 0; b < p.getNumInteriorRing(); b++) {
-			            parts[b + 1] = pnts.size();
-			            buffCoords = p.getInteriorRingN(b).getCoordinates();
-			            if (!Topology.isLineClosed(buffCoords)) {
-			                pluginHost.showFeedback("Interior ring not closed.");
-			            }
-			            if (Topology.isClockwisePolygon(buffCoords)) {
-			                for (i = buffCoords.length - 1; i >= 0; i--) {
-			                    pnts.add(new ShapefilePoint(buffCoords[i].x, buffCoords[i].y, buffCoords[i].z, 0.0));
-			                }
-			            } else {
-			                for (i = 0; i < buffCoords.length; i++) {
-			                    pnts.add(new ShapefilePoint(buffCoords[i].x, buffCoords[i].y, buffCoords[i].z, 0.0));
-			                }
-			            }
-			        }
-			
-			        PointsList pl = new PointsList(pnts);
-					PolygonZ wbPoly = new PolygonZ(parts, pl.getPointsArray(), pl.getZArray());
-			
-					double centroidX = 0
-					double centroidY = 0
-					ShapefilePoint sfp = pl.getPoint(0)
-					Vector3D pt1 = new Vector3D(sfp.x, sfp.y, sfp.z)
-					centroidX += sfp.x
-					centroidY += sfp.y
-					sfp = pl.getPoint(1)
-					Vector3D pt2 = new Vector3D(sfp.x, sfp.y, sfp.z)
-					centroidX += sfp.x
-					centroidY += sfp.y
-					sfp = pl.getPoint(2)
-					Vector3D pt3 = new Vector3D(sfp.x, sfp.y, sfp.z)
-					centroidX += sfp.x
-					centroidY += sfp.y
-					Plane plane = new Plane(pt1, pt2, pt3)
-					
-					centroidX = centroidX / 3.0
-					centroidY = centroidY / 3.0
-			
-					Vector3D normal = plane.getNormal()
-			
-					def A = normal.getX()
-					def B = normal.getY()
-					def C = normal.getZ()
-					def D = -(A * pt1.getX() + B * pt1.getY() + C * pt1.getZ())
-					
-					if (C != 0) {
-						fx = -A / C
-						fy = -B / C
-						if (fx != 0) {
-				            tanSlope = Math.sqrt(fx * fx + fy * fy);
-				            aspect = Math.toRadians(180 - Math.toDegrees(Math.atan(fy / fx)) + 90 * (fx / Math.abs(fx)))
-				            term1 = tanSlope / Math.sqrt(1 + tanSlope * tanSlope);
-				            term2 = sinTheta / tanSlope;
-				            term3 = cosTheta * Math.sin(azimuth - aspect);
-				            hillshade = term1 * (term2 - term3);
-				        } else {
-				            hillshade = 0.5;
-				        }
-				        hillshade = (int)(hillshade * 255);
-				        if (hillshade < 0) {
-				            hillshade = 0;
-				        }
-					} else {
-						hillshade = 0.0
+			// the triangles are written as they are found, rather than
+			// after the whole network has been held in memory
+			pluginHost.updateProgress("Triangulating Points:", 0)
+			final double estimatedTriangles = 2.0 * numPoints
+			DelaunayTriangulation.TriangleConsumer consumer = new DelaunayTriangulation.TriangleConsumer() {
+				int oldTriProgress = -1
+				
+				@Override
+				public boolean triangle(int a, int b, int c) throws Exception {
+					addTriangle(a, b, c)
+					int triProgress = (int)Math.min(100d, 100d * FID / estimatedTriangles)
+					if (triProgress != oldTriProgress) {
+						pluginHost.updateProgress("Triangulating Points:", triProgress)
+						oldTriProgress = triProgress
 					}
-					histo[(int)hillshade]++;
-			
-					z = -(A * centroidX + B * centroidY + D) / C
-					
-			        Object[] rowData = new Object[9]
-			        rowData[0] = new Double(FID)
-			        rowData[1] = new Double(A)
-			        rowData[2] = new Double(B)
-			        rowData[3] = new Double(C)
-			        rowData[4] = new Double(D)
-			        rowData[5] = new Double(Math.toDegrees(Math.atan(tanSlope)))
-			        rowData[6] = new Double(Math.toDegrees(aspect))
-			        rowData[7] = new Double(hillshade)
-			        rowData[8] = new Double(z)
-			        
-			        output.addRecord(wbPoly, rowData);
-			        FID++
-			    }
-			    progress = (int)(100f * a / (numFeatures - 1))
-            	if (progress != oldProgress) {
-					pluginHost.updateProgress("Saving Data:", progress)
-            		oldProgress = progress
-            	}
-            	// check to see if the user has requested a cancellation
-				if (pluginHost.isRequestForOperationCancelSet()) {
-					pluginHost.showFeedback("Operation cancelled")
-					return
+					return !pluginHost.isRequestForOperationCancelSet()
 				}
 			}
+			if (!DelaunayTriangulation.stream(Arrays.copyOf(xs, numPoints), 
+				Arrays.copyOf(ys, numPoints), maxEdgeLength, consumer)) {
+				pluginHost.showFeedback("Operation cancelled")
+				return
+			}
+			if (FID == 1) {
+				pluginHost.showFeedback("No triangles were created. The maximum triangle edge length may be too small.")
+				return
+			}
 			
 			// trim the display min and max values by 2%
 			int newMin = 0;
@@ -477,7 +379,7 @@ public class ConstructTIN implements ActionListener {
 //			vli.setMinimumValue(newMin)
 //			vli.setMaximumValue(newMax)
 			vli.setRecordsColourData()
-			if (numFeatures > 5000) {
+			if (FID - 1 > 5000) {
 				vli.setOutlined(false)
 			}
 			
@@ -494,6 +396,99 @@ public class ConstructTIN implements ActionListener {
         }
     }
 
+    @CompileStatic
+    private void addPoint(double x, double y, double z) {
+    	if (numPoints == xs.length) {
+    		xs = Arrays.copyOf(xs, 2 * numPoints)
+    		ys = Arrays.copyOf(ys, 2 * numPoints)
+    		zs = Arrays.copyOf(zs, 2 * numPoints)
+    	}
+    	xs[numPoints] = x
+    	ys[numPoints] = y
+    	zs[numPoints] = z
+    	numPoints++
+    }
+
+    @CompileStatic
+    private void addTriangle(int a, int b, int c) {
+    	double fx, fy, hillshade, z, term1, term2, term3
+	    // the triangles are anticlockwise, so the ring is reversed
+	    // to make it clockwise and closed
+	    int[] ring = [a, c, b, a] as int[]
+	    ArrayList<ShapefilePoint> pnts = new ArrayList<>();
+	    int[] parts = new int[1];
+	    for (int v : ring) {
+	        pnts.add(new ShapefilePoint(xs[v], ys[v], zs[v], 0.0));
+	    }
+
+	    PointsList pl = new PointsList(pnts);
+		PolygonZ wbPoly = new PolygonZ(parts, pl.getPointsArray(), pl.getZArray());
+
+		double centroidX = 0
+		double centroidY = 0
+		ShapefilePoint sfp = pl.getPoint(0)
+		Vector3D pt1 = new Vector3D(sfp.x, sfp.y, sfp.z)
+		centroidX += sfp.x
+		centroidY += sfp.y
+		sfp = pl.getPoint(1)
+		Vector3D pt2 = new Vector3D(sfp.x, sfp.y, sfp.z)
+		centroidX += sfp.x
+		centroidY += sfp.y
+		sfp = pl.getPoint(2)
+		Vector3D pt3 = new Vector3D(sfp.x, sfp.y, sfp.z)
+		centroidX += sfp.x
+		centroidY += sfp.y
+		Plane plane = new Plane(pt1, pt2, pt3)
+
+		centroidX = centroidX / 3.0
+		centroidY = centroidY / 3.0
+
+		Vector3D normal = plane.getNormal()
+
+		double A = normal.getX()
+		double B = normal.getY()
+		double C = normal.getZ()
+		double D = -(A * pt1.getX() + B * pt1.getY() + C * pt1.getZ())
+
+		if (C != 0) {
+			fx = -A / C
+			fy = -B / C
+			if (fx != 0) {
+		            tanSlope = Math.sqrt(fx * fx + fy * fy);
+		            aspect = Math.toRadians(180 - Math.toDegrees(Math.atan(fy / fx)) + 90 * (fx / Math.abs(fx)))
+		            term1 = tanSlope / Math.sqrt(1 + tanSlope * tanSlope);
+		            term2 = sinTheta / tanSlope;
+		            term3 = cosTheta * Math.sin(azimuth - aspect);
+		            hillshade = term1 * (term2 - term3);
+		        } else {
+		            hillshade = 0.5;
+		        }
+		        hillshade = (int)(hillshade * 255);
+		        if (hillshade < 0) {
+		            hillshade = 0;
+		        }
+		} else {
+			hillshade = 0.0
+		}
+		histo[(int)hillshade]++;
+
+		z = -(A * centroidX + B * centroidY + D) / C
+
+	    Object[] rowData = new Object[9]
+	    rowData[0] = new Double(FID)
+	    rowData[1] = new Double(A)
+	    rowData[2] = new Double(B)
+	    rowData[3] = new Double(C)
+	    rowData[4] = new Double(D)
+	    rowData[5] = new Double(Math.toDegrees(Math.atan(tanSlope)))
+	    rowData[6] = new Double(Math.toDegrees(aspect))
+	    rowData[7] = new Double(hillshade)
+	    rowData[8] = new Double(z)
+
+	    output.addRecord(wbPoly, rowData);
+	    FID++
+    }
+
     @Override
     public void actionPerformed(ActionEvent event) {
     	if (event.getActionCommand().equals("ok")) {
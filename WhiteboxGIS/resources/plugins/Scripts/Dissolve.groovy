@@ -37,6 +37,7 @@ import whitebox.utilities.FileUtilities
 import whitebox.geospatialfiles.shapefile.attributes.AttributeTable
 import whitebox.geospatialfiles.shapefile.attributes.DBFField
 import whitebox.utilities.Topology
+import whitebox.algorithms.CascadedUnion
 import groovy.transform.CompileStatic
 
 
@@ -159,160 +160,109 @@ public class Dissolve implements ActionListener {
 	            ShapeFile output = new ShapeFile(outputFile, shapeType, fields);
             	output.setProjectionStringFromOtherShapefile(input)
 	            
-				HashSet hs = new HashSet();
+				// group the features by the value of the dissolve field
+				LinkedHashMap<String, ArrayList<com.vividsolutions.jts.geom.Geometry>> groups = new LinkedHashMap<>()
+				HashMap<String, Object> groupValues = new HashMap<>()
 				progress = 0
 		     	oldProgress = -1
 		     	Object[] rec;
+		     	com.vividsolutions.jts.geom.Geometry[] recJTS = null;
             	for (i = 0; i < numFeatures; i++) {
                 	rec = table.getRecord(i);
-                	hs.add(rec[keyFieldNum])
+                	String valString = rec[keyFieldNum].toString()
+                	ArrayList<com.vividsolutions.jts.geom.Geometry> geoms = groups.get(valString)
+                	if (geoms == null) {
+                		geoms = new ArrayList<>()
+                		groups.put(valString, geoms)
+                		groupValues.put(valString, rec[keyFieldNum])
+                	}
+                	// retrieve its JTS geometries
+                	recJTS = input.getRecord(i).getGeometry().getJTSGeometries()
+                	for (int a = 0; a < recJTS.length; a++) {
+                		geoms.add(recJTS[a]);
+                	}
+                	progress = (int)(100f * i / (numFeatures - 1))
+        			if (progress != oldProgress) {
+						pluginHost.updateProgress("Reading data:", progress)
+            			oldProgress = progress
+            		}
             	}
+
+				// each group is dissolved as a separate task
+				Map<String, com.vividsolutions.jts.geom.Geometry> dissolved = CascadedUnion.dissolve(groups, new CascadedUnion.Progress() {
+					int previousProgress = -1
+					
+					@Override
+					public boolean unionsCompleted(int completed, int total) {
+						int p = total > 0 ? (int)(100L * completed / total) : 100
+						if (p != previousProgress) {
+							pluginHost.updateProgress("Dissolving features:", p)
+							previousProgress = p
+						}
+						return !pluginHost.isRequestForOperationCancelSet()
+					}
+				})
+				if (dissolved == null) {
+					pluginHost.showFeedback("Operation cancelled")
+					return
+				}
+				groups.clear()
             	
             	int FID = 0;
-        		progress = 0
-	     		oldProgress = -1
-	     		int p = 0
-            	for (Object val : hs) {
-            		String valString = val.toString()
-					GeometryFactory factory = new GeometryFactory();
-        			com.vividsolutions.jts.geom.Geometry geometriesToBuffer = null;
-					ArrayList<com.vividsolutions.jts.geom.Geometry> geoms = new ArrayList<>();
-                	com.vividsolutions.jts.geom.Geometry[] recJTS = null;
-					for (i = 0; i < numFeatures; i++) {
-                		rec = table.getRecord(i);
-                		if (rec[keyFieldNum].toString().equals(valString)) {
-                			// retrieve its JTS geometries
-                			recJTS = input.getRecord(i).getGeometry().getJTSGeometries()
-                			for (int a = 0; a < recJTS.length; a++) {
-                        		geoms.add(recJTS[a]);
-                    		}
-                    		p++
-                		}
-            		}
-
-            		// create an array of polygons
-	                com.vividsolutions.jts.geom.Polygon[] polygonArray = new com.vividsolutions.jts.geom.Polygon[geoms.size()];
-	                for (i = 0; i < geoms.size(); i++) {
-	                    polygonArray[i] = (com.vividsolutions.jts.geom.Polygon)geoms.get(i);
-	                }
-	                geoms.clear();
+            	for (String valString : dissolved.keySet()) {
+            		Object val = groupValues.get(valString)
+            		com.vividsolutions.jts.geom.Geometry buffer = dissolved.get(valString)
+	                for (int a = 0; a < buffer.getNumGeometries(); a++) {
+	                    com.vividsolutions.jts.geom.Geometry g = buffer.getGeometryN(a);
+	                    if (g instanceof com.vividsolutions.jts.geom.Polygon) {
+	                        com.vividsolutions.jts.geom.Polygon bufferPoly = (com.vividsolutions.jts.geom.Polygon) g;
+	                        ArrayList<ShapefilePoint> pnts = new ArrayList<>();
+	                        int[] parts = new int[bufferPoly.getNumInteriorRing() + 1];
 	
-	                geometriesToBuffer = factory.createMultiPolygon(polygonArray);
-
-            		com.vividsolutions.jts.geom.Geometry buffer = geometriesToBuffer.buffer(0.0);
-
-		            if (buffer instanceof com.vividsolutions.jts.geom.MultiPolygon) {
-		                MultiPolygon mpBuffer = (MultiPolygon) buffer;
-		                
-		                int n = 0;
-		                for (int a = 0; a < mpBuffer.getNumGeometries(); a++) {
-		                    com.vividsolutions.jts.geom.Geometry g = mpBuffer.getGeometryN(a);
-		                    if (g instanceof com.vividsolutions.jts.geom.Polygon) {
-		                        com.vividsolutions.jts.geom.Polygon bufferPoly = (com.vividsolutions.jts.geom.Polygon) g;
-		                        ArrayList<ShapefilePoint> pnts = new ArrayList<>();
-		                        int[] parts = new int[bufferPoly.getNumInteriorRing() + 1];
-		
-		                        Coordinate[] buffCoords = bufferPoly.getExteriorRing().getCoordinates();
-		                        if (!Topology.isLineClosed(buffCoords)) {
-		                            System.out.println("Exterior ring not closed.");
-		                        }
-		                        if (Topology.isClockwisePolygon(buffCoords)) {
-		                            for (i = 0; i < buffCoords.length; i++) {
-		                                pnts.add(new ShapefilePoint(buffCoords[i].x, buffCoords[i].y));
-		                            }
-		                        } else {
-		                            for (i = buffCoords.length - 1; i >= 0; i--) {
-		                                pnts.add(new ShapefilePoint(buffCoords[i].x, buffCoords[i].y));
-		                            }
-		                        }
-		
-		                        for (int b = 0; b < bufferPoly.getNumInteriorRing(); b++) {
-		                            parts[b + 1] = pnts.size();
-		                            buffCoords = bufferPoly.getInteriorRingN(b).getCoordinates();
-		                            if (!Topology.isLineClosed(buffCoords)) {
-		                                System.out.println("Interior ring not closed.");
-		                            }
-		                            if (Topology.isClockwisePolygon(buffCoords)) {
-		                                for (i = buffCoords.length - 1; i >= 0; i--) {
-		                                    pnts.add(new ShapefilePoint(buffCoords[i].x, buffCoords[i].y));
-		                                }
-		                            } else {
-		                                for (i = 0; i < buffCoords.length; i++) {
-		                                    pnts.add(new ShapefilePoint(buffCoords[i].x, buffCoords[i].y));
-		                                }
-		                            }
-		                        }
-		
-		                        PointsList pl = new PointsList(pnts);
-		
-		                        whitebox.geospatialfiles.shapefile.Geometry wbGeometry = new whitebox.geospatialfiles.shapefile.Polygon(parts, pl.getPointsArray());
-		                        FID++;
-		                        Object[] rowData = new Object[2];
-		                        rowData[0] = new Double(FID);
-		                        rowData[1] = val;
-		                        output.addRecord(wbGeometry, rowData);
-		
-		                    } else {
-		                        // I'm really hoping this is never hit.
-		                    }
-		                }
-		            } else if (buffer instanceof com.vividsolutions.jts.geom.Polygon) {
-		                com.vividsolutions.jts.geom.Polygon pBuffer = (com.vividsolutions.jts.geom.Polygon) buffer;
-		                com.vividsolutions.jts.geom.Geometry g = pBuffer.getGeometryN(0);
-		                if (g instanceof com.vividsolutions.jts.geom.Polygon) {
-		                    ArrayList<ShapefilePoint> pnts = new ArrayList<>();
-		
-		                    int[] parts = new int[pBuffer.getNumInteriorRing() + 1];
-		
-		                    Coordinate[] buffCoords = pBuffer.getExteriorRing().getCoordinates();
-		                    if (Topology.isClockwisePolygon(buffCoords)) {
-		                        for (i = 0; i < buffCoords.length; i++) {
-		                            pnts.add(new ShapefilePoint(buffCoords[i].x, buffCoords[i].y));
-		                        }
-		                    } else {
-		                        for (i = buffCoords.length - 1; i >= 0; i--) {
-		                            pnts.add(new ShapefilePoint(buffCoords[i].x, buffCoords[i].y));
-		                        }
-		                    }
-		
-		                    for (int b = 0; b < pBuffer.getNumInteriorRing(); b++) {
-		                        parts[b + 1] = pnts.size();
-		                        buffCoords = pBuffer.getInteriorRingN(b).getCoordinates();
-		                        if (Topology.isClockwisePolygon(buffCoords)) {
-		                            for (i = buffCoords.length - 1; i >= 0; i--) {
-		                                pnts.add(new ShapefilePoint(buffCoords[i].x, buffCoords[i].y));
-		                            }
-		                        } else {
-		                            for (i = 0; i < buffCoords.length; i++) {
-		                                pnts.add(new ShapefilePoint(buffCoords[i].x, buffCoords[i].y));
-		                            }
-		                        }
-		                    }
-		
-		                    PointsList pl = new PointsList(pnts);
-		                    whitebox.geospatialfiles.shapefile.Geometry wbGeometry = new whitebox.geospatialfiles.shapefile.Polygon(parts, pl.getPointsArray());
-		                    FID++;
+	                        Coordinate[] buffCoords = bufferPoly.getExteriorRing().getCoordinates();
+	                        if (!Topology.isLineClosed(buffCoords)) {
+	                            System.out.println("Exterior ring not closed.");
+	                        }
+	                        if (Topology.isClockwisePolygon(buffCoords)) {
+	                            for (i = 0; i < buffCoords.length; i++) {
+	                                pnts.add(new ShapefilePoint(buffCoords[i].x, buffCoords[i].y));
+	                            }
+	                        } else {
+	                            for (i = buffCoords.length - 1; i >= 0; i--) {
+	                                pnts.add(new ShapefilePoint(buffCoords[i].x, buffCoords[i].y));
+	                            }
+	                        }
+	
+	                        for (int b = 0; b < bufferPoly.getNumInteriorRing(); b++) {
+	                            parts[b + 1] = pnts.size();
+	                            buffCoords = bufferPoly.getInteriorRingN(b).getCoordinates();
+	                            if (!Topology.isLineClosed(buffCoords)) {
+	                                System.out.println("Interior ring not closed.");
+	                            }
+	                            if (Topology.isClockwisePolygon(buffCoords)) {
+	                                for (i = buffCoords.length - 1; i >= 0; i--) {
+	                                    pnts.add(new ShapefilePoint(buffCoords[i].x, buffCoords[i].y));
+	                                }
+	                            } else {
+	                                for (i = 0; i < buffCoords.length; i++) {
+	                                    pnts.add(new ShapefilePoint(buffCoords[i].x, buffCoords[i].y));
+	                                }
+	                            }
+	                        }
+	
+	                        PointsList pl = new PointsList(pnts);
+	
+	                        whitebox.geospatialfiles.shapefile.Geometry wbGeometry = new whitebox.geospatialfiles.shapefile.Polygon(parts, pl.getPointsArray());
+	                        FID++;
 	                        Object[] rowData = new Object[2];
 	                        rowData[0] = new Double(FID);
 	                        rowData[1] = val;
 	                        output.addRecord(wbGeometry, rowData);
-		          
-		                } else {
-		                        // I'm really hoping this is never hit.
-		                }
-		
-		            }
-
-		            progress = (int)(100f * p / (numFeatures - 1))
-        			if (progress != oldProgress) {
-						pluginHost.updateProgress(progress)
-            			oldProgress = progress
-            		}
-            		// check to see if the user has requested a cancellation
-					if (pluginHost.isRequestForOperationCancelSet()) {
-						pluginHost.showFeedback("Operation cancelled")
-						return
-					}
+	
+	                    } else {
+	                        // I'm really hoping this is never hit.
+	                    }
+	                }
 				}
 
             	output.write();
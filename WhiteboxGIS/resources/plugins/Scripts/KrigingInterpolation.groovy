@@ -118,6 +118,7 @@ public class KrigingInterpolation implements ActionListener {
 			
 			DialogCheckBox chxCurve = sd.addDialogCheckBox("Show variogram curve", "Show Variogram:", true)															//13
 			DialogCheckBox chxMap = sd.addDialogCheckBox("Show variogram map", "Show Variogram Map:", true)																//14
+			sd.addDialogCheckBox("Report the leave-one-out cross-validation error of the sample points", "Cross-Validate:", false)										//16
 
 			btn.addActionListener(new ActionListener() {
  	            public void actionPerformed(ActionEvent e) {
@@ -301,6 +302,10 @@ public class KrigingInterpolation implements ActionListener {
 			}
 			boolean showSemivariogram = Boolean.parseBoolean(args[14])
 			boolean showSemivariogramMap = Boolean.parseBoolean(args[15])
+			boolean crossValidate = false
+			if (args.length > 16) {
+				crossValidate = Boolean.parseBoolean(args[16])
+			}
 
 			if (k == null || v == null) {
 				pluginHost.updateProgress("Calculating Semivariogram...", 0)
@@ -414,6 +419,25 @@ public class KrigingInterpolation implements ActionListener {
 				k.interpolateRaster(v, numNeighbours, output, false)
 			}
 			
+			// leave-one-out cross-validation; each sample point is
+			// predicted from its neighbours without the point itself
+			double cvMeanError = 0.0
+			double cvRMSE = 0.0
+			if (crossValidate) {
+				List<KrigingPoint> samples = k.getPoints()
+				List<KrigingPoint> predicted = k.CrossValidationPoints(v, samples, numNeighbours)
+				int numSamples = samples.size()
+				for (int i = 0; i < numSamples; i++) {
+					double error = predicted.get(i).z - samples.get(i).z
+					cvMeanError += error
+					cvRMSE += error * error
+				}
+				if (numSamples > 0) {
+					cvMeanError = cvMeanError / numSamples
+					cvRMSE = Math.sqrt(cvRMSE / numSamples)
+				}
+			}
+			
 			if (showSemivariogram) {
 	        	k.DrawSemivariogram(k.bins, v)
 			}
@@ -497,6 +521,14 @@ public class KrigingInterpolation implements ActionListener {
 			ret.append("<tr><td>RMSE</td><td class=\"numberCell\">")
 			ret.append(df.format(Math.sqrt(v.mse))).append("</td></tr>").append("\n")
 
+			if (crossValidate) {
+				ret.append("<tr><td>Cross-Validation Mean Error</td><td class=\"numberCell\">")
+				ret.append(df.format(cvMeanError)).append("</td></tr>").append("\n")
+	
+				ret.append("<tr><td>Cross-Validation RMSE</td><td class=\"numberCell\">")
+				ret.append(df.format(cvRMSE)).append("</td></tr>").append("\n")
+			}
+
 			ret.append("</table>")
 
 			ret.append("</body></html>")
@@ -21,6 +21,7 @@ import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.geospatialfiles.WhiteboxRasterBase;
 import whitebox.interfaces.WhiteboxPluginHost;
 import whitebox.interfaces.WhiteboxPlugin;
+import whitebox.parallel.RowBands;
 
 /**
  * WhiteboxPlugin is used to define a plugin tool for Whitebox GIS.
@@ -189,8 +190,6 @@ public class DirectDecorrelationStretch implements WhiteboxPlugin {
         String inputHeader = null;
         String outputHeader = null;
         double k = 0.5;
-        double z;
-        int rIn, gIn, bIn, rOut, gOut, bOut;
         if (args.length <= 0) {
             showFeedback("Plugin parameters have not been set.");
             return;
@@ -213,9 +212,6 @@ public class DirectDecorrelationStretch implements WhiteboxPlugin {
         }
 
         try {
-            int row, col;
-            int progress = 0;
-
             WhiteboxRaster input = new WhiteboxRaster(inputHeader, "r");
             
             if (input.getDataScale() != WhiteboxRasterBase.DataScale.RGB) {
@@ -224,121 +220,117 @@ public class DirectDecorrelationStretch implements WhiteboxPlugin {
             }
 
             int rows = input.getNumberRows();
-            int cols = input.getNumberColumns();
 
             double noData = input.getNoDataValue();
 
             WhiteboxRaster output = new WhiteboxRaster(outputHeader, "rw", inputHeader, WhiteboxRaster.DataType.FLOAT, noData);
             output.setDataScale(WhiteboxRasterBase.DataScale.RGB);
 
-            double[] data;
-            int minVal;
-            double rMax = 0, gMax = 0, bMax = 0;
-            for (row = 0; row < rows; row++) {
-                data = input.getRowValues(row);
-                for (col = 0; col < cols; col++) {
-                    z = data[col];
-                    if (z != noData) {
-                        rIn = ((int) z & 0xFF);
-                        gIn = (((int) z >> 8) & 0xFF);
-                        bIn = (((int) z >> 16) & 0xFF);
-
-                        minVal = rIn;
-                        if (gIn < minVal) {
-                            minVal = gIn;
-                        }
-                        if (bIn < minVal) {
-                            minVal = bIn;
-                        }
-
-                        rOut = (int) (rIn - k * minVal);
-                        gOut = (int) (gIn - k * minVal);
-                        bOut = (int) (bIn - k * minVal);
-                        
-                        if (rOut > 255) {
-                            rOut = 255;
-                        }
-                        if (gOut > 255) {
-                            gOut = 255;
-                        }
-                        if (bOut > 255) {
-                            bOut = 255;
+            // find the maximum of each stretched channel; blocks of rows are
+            // handled on separate threads
+            final WhiteboxRaster image = input;
+            final double stretch = k;
+            final int numRows = rows;
+            final double[] maxVals = new double[3];
+            boolean completed = RowBands.process(rows, new RowBands.Task<double[]>() {
+                @Override
+                public double[] process(int startRow, int endRow) {
+                    double[] ret = new double[3];
+                    int cols = image.getNumberColumns();
+                    double noData = image.getNoDataValue();
+                    for (int row = startRow; row < endRow; row++) {
+                        double[] data = image.getRowValues(row);
+                        for (int col = 0; col < cols; col++) {
+                            double z = data[col];
+                            if (z != noData) {
+                                int rIn = ((int) z & 0xFF);
+                                int gIn = (((int) z >> 8) & 0xFF);
+                                int bIn = (((int) z >> 16) & 0xFF);
+
+                                int minVal = rIn;
+                                if (gIn < minVal) {
+                                    minVal = gIn;
+                                }
+                                if (bIn < minVal) {
+                                    minVal = bIn;
+                                }
+
+                                int rOut = clamp((int) (rIn - stretch * minVal));
+                                int gOut = clamp((int) (gIn - stretch * minVal));
+                                int bOut = clamp((int) (bIn - stretch * minVal));
+
+                                if (rOut > ret[0]) { ret[0] = rOut; }
+                                if (gOut > ret[1]) { ret[1] = gOut; }
+                                if (bOut > ret[2]) { ret[2] = bOut; }
+                            }
                         }
-                        
-                        if (rOut < 0) {
-                            rOut = 0;
-                        }
-                        if (gOut < 0) {
-                            gOut = 0;
-                        }
-                        if (bOut < 0) {
-                            bOut = 0;
-                        }
-                        
-                        if (rOut > rMax) { rMax = rOut; }
-                        if (gOut > gMax) { gMax = gOut; }
-                        if (bOut > bMax) { bMax = bOut; }
-                        
-                        
-                        z = (double) ((255 << 24) | (bOut << 16) | (gOut << 8) | rOut);
-                        output.setValue(row, col, z);
-                    } else {
-                        output.setValue(row, col, noData);
                     }
+                    return ret;
                 }
-                if (cancelOp) {
-                    cancelOperation();
-                    return;
+            }, new RowBands.Consumer<double[]>() {
+                @Override
+                public boolean consume(int startRow, int endRow, double[] result) {
+                    for (int i = 0; i < 3; i++) {
+                        if (result[i] > maxVals[i]) {
+                            maxVals[i] = result[i];
+                        }
+                    }
+                    updateProgress((int) (50f * endRow / numRows));
+                    return !cancelOp;
                 }
-                progress = (int) (100f * row / (rows - 1));
-                updateProgress(progress);
+            });
+            if (!completed) {
+                cancelOperation();
+                return;
             }
 
-            for (row = 0; row < rows; row++) {
-                data = input.getRowValues(row);
-                for (col = 0; col < cols; col++) {
-                    z = data[col];
-                    if (z != noData) {
-                        rIn = ((int) z & 0xFF);
-                        gIn = (((int) z >> 8) & 0xFF);
-                        bIn = (((int) z >> 16) & 0xFF);
-
-                        rOut = (int) (rIn / rMax * 255);
-                        gOut = (int) (gIn / gMax * 255);
-                        bOut = (int) (bIn / bMax * 255);
-                        
-                        if (rOut > 255) {
-                            rOut = 255;
+            // rescale each channel by its maximum and write the output
+            final WhiteboxRaster outImage = output;
+            completed = RowBands.process(rows, new RowBands.Task<double[][]>() {
+                @Override
+                public double[][] process(int startRow, int endRow) {
+                    int cols = image.getNumberColumns();
+                    double noData = image.getNoDataValue();
+                    double[][] ret = new double[endRow - startRow][cols];
+                    for (int row = startRow; row < endRow; row++) {
+                        double[] data = image.getRowValues(row);
+                        double[] out = ret[row - startRow];
+                        for (int col = 0; col < cols; col++) {
+                            double z = data[col];
+                            if (z != noData) {
+                                int rIn = ((int) z & 0xFF);
+                                int gIn = (((int) z >> 8) & 0xFF);
+                                int bIn = (((int) z >> 16) & 0xFF);
+
+                                int rOut = clamp((int) (rIn / maxVals[0] * 255));
+                                int gOut = clamp((int) (gIn / maxVals[1] * 255));
+                                int bOut = clamp((int) (bIn / maxVals[2] * 255));
+
+                                out[col] = (double) ((255 << 24) | (bOut << 16) | (gOut << 8) | rOut);
+                            } else {
+                                out[col] = noData;
+                            }
                         }
-                        if (gOut > 255) {
-                            gOut = 255;
-                        }
-                        if (bOut > 255) {
-                            bOut = 255;
-                        }
-                        
-                        if (rOut < 0) {
-                            rOut = 0;
-                        }
-                        if (gOut < 0) {
-                            gOut = 0;
-                        }
-                        if (bOut < 0) {
-                            bOut = 0;
-                        }
-                        
-                        z = (double) ((255 << 24) | (bOut << 16) | (gOut << 8) | rOut);
-                        output.setValue(row, col, z);
-                    } else {
-                        output.setValue(row, col, noData);
                     }
+                    return ret;
                 }
-                if (cancelOp) {
-                    cancelOperation();
-                    return;
+            }, new RowBands.Consumer<double[][]>() {
+                @Override
+                public boolean consume(int startRow, int endRow, double[][] result) {
+                    int cols = outImage.getNumberColumns();
+                    for (int row = startRow; row < endRow; row++) {
+                        double[] out = result[row - startRow];
+                        for (int col = 0; col < cols; col++) {
+                            outImage.setValue(row, col, out[col]);
+                        }
+                    }
+                    updateProgress(50 + (int) (50f * endRow / numRows));
+                    return !cancelOp;
                 }
-                progress = (int) (100f * row / (rows - 1));
-                updateProgress(progress);
+            });
+            if (!completed) {
+                cancelOperation();
+                return;
             }
             
             output.addMetadataEntry("Created by the "
@@ -363,4 +355,14 @@ public class DirectDecorrelationStretch implements WhiteboxPlugin {
             myHost.pluginComplete();
         }
     }
+
+    private static int clamp(int value) {
+        if (value > 255) {
+            return 255;
+        }
+        if (value < 0) {
+            return 0;
+        }
+        return value;
+    }
 }
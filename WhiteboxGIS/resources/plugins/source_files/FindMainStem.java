@@ -17,6 +17,7 @@
 package plugins;
 
 import java.util.Date;
+import whitebox.algorithms.StreamNetwork;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
@@ -30,9 +31,6 @@ public class FindMainStem implements WhiteboxPlugin {
     
     private WhiteboxPluginHost myHost = null;
     private String[] args;
-    
-    // Constants
-    private static final double LnOf2 = 0.693147180559945;
 
     /**
      * Used to retrieve the plugin tool's name. This is a short, unique name
@@ -195,16 +193,9 @@ public class FindMainStem implements WhiteboxPlugin {
         String pointerHeader = null;
         String accumHeader = null;
         String outputHeader = null;
-        int row, col, x, y, x2, y2, nx, ny;
+        int row, col, link;
         int progress = 0;
-        int i, c;
-        int[] dX = new int[]{1, 1, 1, 0, -1, -1, -1, 0};
-        int[] dY = new int[]{-1, 0, 1, 1, 1, 0, -1, -1};
-        double[] inflowingVals = new double[]{16, 32, 64, 128, 1, 2, 4, 8};
-        boolean flag = false;
-        double flowDir = 0;
-        double nFlowDir = 0;
-        boolean isOutlet = false;
+        int i;
         double maxFlowAccum = 0;
                 
         if (args.length <= 0) {
@@ -252,74 +243,84 @@ public class FindMainStem implements WhiteboxPlugin {
             }
             //double accumNoData = accum.getNoDataValue();
             
+            // read the stream network once and trace its links
+            StreamNetwork network = new StreamNetwork(rows, cols, 
+                    streams.getCellSizeX(), streams.getCellSizeY(), false);
+            updateProgress("Finding network links:", 0);
+            for (row = 0; row < rows; row++) {
+                network.addRow(row, streams.getRowValues(row), pntr.getRowValues(row));
+                if (cancelOp) {
+                    cancelOperation();
+                    return;
+                }
+                progress = (int) (100f * row / (rows - 1));
+                updateProgress("Finding network links:", progress);
+            }
+            network.build();
+            int numLinks = network.getNumberOfLinks();
+            
+            // the flow accumulation at the downstream end of each link
+            double[] linkAccum = new double[numLinks];
+            updateProgress("Reading flow accumulation:", 0);
+            for (row = 0; row < rows; row++) {
+                double[] values = accum.getRowValues(row);
+                for (int cell : network.getCellsInRow(row)) {
+                    link = network.getCellLink(cell);
+                    if (network.getLastCell(link) == cell) {
+                        linkAccum[link] = values[network.getCellColumn(cell)];
+                    }
+                }
+                if (cancelOp) {
+                    cancelOperation();
+                    return;
+                }
+                progress = (int) (100f * row / (rows - 1));
+                updateProgress("Reading flow accumulation:", progress);
+            }
+            
+            // from each outlet, follow the upstream link with the highest 
+            // flow accumulation at each junction
+            double[] isMainStem = new double[numLinks];
+            for (int outlet = 0; outlet < numLinks; outlet++) {
+                if (network.getDownstreamLink(outlet) >= 0) {
+                    continue;
+                }
+                link = outlet;
+                while (link >= 0) {
+                    isMainStem[link] = 1.0;
+                    maxFlowAccum = 0;
+                    int next = -1;
+                    for (int upstream : network.getUpstreamLinks(link)) {
+                        if (linkAccum[upstream] > maxFlowAccum) {
+                            maxFlowAccum = linkAccum[upstream];
+                            next = upstream;
+                        }
+                    }
+                    link = next;
+                }
+            }
+            
             WhiteboxRaster output = new WhiteboxRaster(outputHeader, "rw", 
                     streamsHeader, WhiteboxRaster.DataType.INTEGER, 0);
             output.setPreferredPalette("qual.pal");
             output.setDataScale(WhiteboxRaster.DataScale.CATEGORICAL);
             
-            
-            updateProgress("Finding network links:", 0);
+            updateProgress("Writing output:", 0);
             for (row = 0; row < rows; row++) {
+                double[] values = streams.getRowValues(row);
+                double[] data = network.getRowValues(row, isMainStem, 0, 0);
                 for (col = 0; col < cols; col++) {
-                    if (streams.getValue(row, col) != 0 &&
-                            streams.getValue(row, col) != streamsNoData) {
-                        isOutlet = false;
-                        flowDir = pntr.getValue(row, col);
-                        if (flowDir == 0) { 
-                            isOutlet = true; 
-                        } else {
-                            c = (int)(Math.log(flowDir) / LnOf2);
-                            if (streams.getValue(row + dY[c], col + dX[c]) == 0 
-                                    || streams.getValue(row + dY[c], col + dX[c]) == streamsNoData) {
-                                isOutlet = true;
-                            }
-                        }
-                        
-                        if (isOutlet) {
-                            x = col;
-                            y = row;
-                            flag = true;
-                            do {
-                                output.setValue(y, x, 1.0);
-                                
-                                // find the upslope neighbouring stream cell
-                                // with the highest flow accumulation value
-                                maxFlowAccum = 0;
-                                nx = 0;
-                                ny = 0;
-                                for (c = 0; c < 8; c++) {
-                                    x2 = x + dX[c];
-                                    y2 = y + dY[c];
-                                    nFlowDir = pntr.getValue(y2, x2);
-                                    if (streams.getValue(y2, x2) > 0 
-                                            && nFlowDir == inflowingVals[c]) {
-                                        if (accum.getValue(y2, x2) > maxFlowAccum) {
-                                            nx = x2;
-                                            ny = y2;
-                                            maxFlowAccum = accum.getValue(y2, x2);
-                                        }
-                                        
-                                    }
-                                }
-                                
-                                if (maxFlowAccum > 0) {
-                                    x = nx;
-                                    y = ny;
-                                } else {
-                                    flag = false;
-                                }
-                            } while (flag);
-                        }
-                    } else if (streams.getValue(row, col) == streamsNoData) {
-                        output.setValue(row, col, streamsNoData);
+                    if (values[col] == streamsNoData) {
+                        data[col] = streamsNoData;
                     }
                 }
+                output.setRowValues(row, data);
                 if (cancelOp) {
                     cancelOperation();
                     return;
                 }
                 progress = (int) (100f * row / (rows - 1));
-                updateProgress(progress);
+                updateProgress("Writing output:", progress);
             }
                  
             output.addMetadataEntry("Created by the "
@@ -328,6 +329,7 @@ public class FindMainStem implements WhiteboxPlugin {
             
             pntr.close();
             streams.close();
+            accum.close();
             output.close();
 
             // returning a header file string displays the image.
@@ -335,6 +337,9 @@ public class FindMainStem implements WhiteboxPlugin {
 
         } catch (OutOfMemoryError oe) {
             myHost.showFeedback("An out-of-memory error has occurred during operation.");
+        } catch (IllegalArgumentException e) {
+            // an invalid flow pointer value
+            myHost.showFeedback(e.getMessage());
         } catch (Exception e) {
             myHost.showFeedback("An error has occurred during operation. See log file for details.");
             myHost.logException("Error in " + getDescriptiveName(), e);
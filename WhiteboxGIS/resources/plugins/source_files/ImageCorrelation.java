@@ -18,9 +18,11 @@ package plugins;
 
 import java.io.File;
 import java.text.DecimalFormat;
-import whitebox.geospatialfiles.WhiteboxRaster;
+import whitebox.geospatialfiles.WhiteboxRasterInfo;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
+import whitebox.parallel.RowBands;
+import whitebox.stats.MultibandStatistics;
 
 /**
  * WhiteboxPlugin is used to define a plugin tool for Whitebox GIS.
@@ -189,26 +191,13 @@ public class ImageCorrelation implements WhiteboxPlugin {
     public void run() {
         amIActive = true;
         
-        WhiteboxRaster image;
-        WhiteboxRaster image2;
         int cols = 0;
         int rows = 0;
-        double noData = -32768;
-        double noDataImage2 = -32768;
         int numImages;
-        double z;
-        float progress = 0;
-        int col, row;
-        int a, b, i;
+        int a, b;
         String inputFilesString = null;
         String[] imageFiles;
-        Object[] images;
-        double[] imageTotals;
-        long[] imageNs;
-        double[] imageAverages;
-        double image1TotalDeviation = 0;
-        double image2TotalDeviation = 0;
-        double totalProductDeviations = 0;
+        WhiteboxRasterInfo[] images;
         double[][] correlationMatrix;
                 
         if (args.length <= 0) {
@@ -230,10 +219,6 @@ public class ImageCorrelation implements WhiteboxPlugin {
 
         try {
             
-            //initialize the image data arrays
-            imageTotals = new double[numImages];
-            imageNs = new long[numImages];
-            imageAverages = new double[numImages];
             correlationMatrix = new double[numImages][numImages];
             // initialize the matrix with -99's
             for (a = 0; a < numImages; a++) {
@@ -242,79 +227,57 @@ public class ImageCorrelation implements WhiteboxPlugin {
                 }
             }
 
-            double[] data;
-            double[] data2;
             // check that each of the input images has the same number of rows and columns
-            // and calculate the image averages.
-            updateProgress("Calculating image averages:", 0);
+            images = new WhiteboxRasterInfo[numImages];
             for (a = 0; a < numImages; a++) {
-                image = new WhiteboxRaster(imageFiles[a], "r");
-                noData = image.getNoDataValue();
+                images[a] = new WhiteboxRasterInfo(imageFiles[a]);
                 if (a == 0) {
-                    rows = image.getNumberRows();
-                    cols = image.getNumberColumns();
+                    rows = images[a].getNumberRows();
+                    cols = images[a].getNumberColumns();
                 } else {
-                    if (image.getNumberColumns() != cols || 
-                            image.getNumberRows() != rows) {
+                    if (images[a].getNumberColumns() != cols || 
+                            images[a].getNumberRows() != rows) {
                         showFeedback("All input images must have the same dimensions (rows and columns).");
                         return;
                     }
                 }
-                for (row = 0; row < rows; row++) {
-                    data = image.getRowValues(row);
-                    for (col = 0; col < cols; col++) {
-                        if (data[col] != noData) {
-                            imageTotals[a] += data[col];
-                            imageNs[a]++;
-                        }
-                    }
-                    if (cancelOp) { cancelOperation(); return; }
-                }
-                image.close();
-                imageAverages[a] = imageTotals[a] / imageNs[a];
-                progress = a / (numImages - 1) * 100;
-                updateProgress("Calculating image average:", (int)progress);
             }
 
+            // calculate the statistics of all the images in a single pass,
+            // with each block of rows handled on a separate thread
             updateProgress("Calculating the correlation matrix:", 0);
-            i = 0;
+            final WhiteboxRasterInfo[] inputImages = images;
+            final MultibandStatistics stats = new MultibandStatistics(numImages);
+            final int numRows = rows;
+            boolean completed = RowBands.process(rows, new RowBands.Task<MultibandStatistics>() {
+                @Override
+                public MultibandStatistics process(int startRow, int endRow) {
+                    return MultibandStatistics.accumulateRows(inputImages, startRow, endRow);
+                }
+            }, new RowBands.Consumer<MultibandStatistics>() {
+                @Override
+                public boolean consume(int startRow, int endRow, MultibandStatistics result) {
+                    stats.merge(result);
+                    updateProgress("Calculating the correlation matrix:", (int) (100f * endRow / numRows));
+                    return !cancelOp;
+                }
+            });
+            for (a = 0; a < numImages; a++) {
+                images[a].close();
+            }
+            if (!completed) {
+                cancelOperation();
+                return;
+            }
+            
             for (a = 0; a < numImages; a++) {
-                image = new WhiteboxRaster(imageFiles[a], "r");
-                noData = image.getNoDataValue();
-                for (b = 0; b <= i; b++) {
+                for (b = 0; b <= a; b++) {
                     if (a == b) {
                         correlationMatrix[a][b] = 1.0;
                     } else {
-                        image1TotalDeviation = 0;
-                        image2TotalDeviation = 0;
-                        totalProductDeviations = 0;
-                        image2 = new WhiteboxRaster(imageFiles[b], "r");
-                        noDataImage2 = image2.getNoDataValue();
-                        for (row = 0; row < rows; row++) {
-                            data = image.getRowValues(row);
-                            data2 = image2.getRowValues(row);
-                            for (col = 0; col < cols; col++) {
-                                if (data[col] != noData && data2[col] != noDataImage2) {
-                                    image1TotalDeviation += (data[col] - imageAverages[a]) * (data[col] - imageAverages[a]);
-                                    image2TotalDeviation += (data2[col] - imageAverages[b]) * (data2[col] - imageAverages[b]);
-                                    totalProductDeviations += (data[col] - imageAverages[a]) * (data2[col] - imageAverages[b]);
-                                }
-                            }
-                            if (cancelOp) {
-                                cancelOperation();
-                                return;
-                            }
-                        }
-
-                        image2.close();
-                        correlationMatrix[a][b] = totalProductDeviations / (Math.sqrt(image1TotalDeviation * image2TotalDeviation));
+                        correlationMatrix[a][b] = stats.getCorrelation(a, b);
                     }
                 }
-                i++;
-                image.close();
-                
-                progress = a / (numImages - 1) * 100;
-                updateProgress("Calculating the correlation matrix:", (int)progress);
             }
             
             
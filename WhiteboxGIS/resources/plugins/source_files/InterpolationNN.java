@@ -16,12 +16,14 @@
  */
 package plugins;
 
+import java.util.Arrays;
 import java.util.Date;
-import java.util.List;
+import whitebox.algorithms.TinGridder;
+import whitebox.algorithms.VoronoiGridder;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPluginHost;
 import whitebox.interfaces.WhiteboxPlugin;
-import whitebox.structures.KdTree;
+import whitebox.parallel.RowBands;
 import java.io.*;
 
 /**
@@ -192,7 +194,6 @@ public class InterpolationNN implements WhiteboxPlugin {
         String inputFilesString = null;
         String[] pointFiles;
         String outputHeader = null;
-        int row, col;
         int nrows, ncols;
         double x, y, z;
         int i;
@@ -213,9 +214,8 @@ public class InterpolationNN implements WhiteboxPlugin {
         FileWriter fw = null;
         BufferedWriter bw = null;
         PrintWriter out = null;
-        List<KdTree.Entry<Double>> results;
-        double noData = -32768;
-        double northing, easting;
+        final double noData = -32768;
+        VoronoiGridder.Method method = VoronoiGridder.Method.NEAREST_NEIGHBOUR;
             
         // get the arguments
         if (args.length <= 0) {
@@ -229,6 +229,13 @@ public class InterpolationNN implements WhiteboxPlugin {
         if (!args[4].equalsIgnoreCase("not specified")) {
             maxDist = Double.parseDouble(args[4]);
         }
+        if (args.length > 5 && args[5].toLowerCase().contains("natural")) {
+            method = VoronoiGridder.Method.NATURAL_NEIGHBOUR;
+        }
+        // the TIN methods interpolate within the triangles of the Delaunay
+        // triangulation of the points, and the maximum distance becomes the
+        // length of the longest triangle edge.
+        boolean useTin = args.length > 5 && args[5].toLowerCase().contains("tin");
         
         // check to see that the inputHeader and outputHeader are not null.
         if ((inputFilesString.length() <= 0) || (outputHeader == null)) {
@@ -240,10 +247,6 @@ public class InterpolationNN implements WhiteboxPlugin {
             pointFiles = inputFilesString.split(";");
             int numPointFiles = pointFiles.length;
             
-            if (maxDist < Double.POSITIVE_INFINITY) {
-                maxDist = maxDist * maxDist;
-            }
-            
             updateProgress("Counting the number of points:", 0);
             numPoints = 0;
             for (i = 0; i < numPointFiles; i++) {
@@ -255,7 +258,10 @@ public class InterpolationNN implements WhiteboxPlugin {
                 }
             }
             
-            KdTree<Double> pointsTree = new KdTree.SqrEuclid<Double>(2, new Integer(numPoints));
+            double[] xs = new double[numPoints];
+            double[] ys = new double[numPoints];
+            double[] zs = new double[numPoints];
+            int n = 0;
             
             nlines = 0;
             for (i = 0; i < numPointFiles; i++) {
@@ -291,8 +297,15 @@ public class InterpolationNN implements WhiteboxPlugin {
                             x = Double.parseDouble(str[0]);
                             y = Double.parseDouble(str[1]);
                             z = Double.parseDouble(str[2]);
-                            double[] entry = {y, x};
-                            pointsTree.addPoint(entry, z);
+                            if (n == xs.length) {
+                                xs = Arrays.copyOf(xs, 2 * n + 1);
+                                ys = Arrays.copyOf(ys, 2 * n + 1);
+                                zs = Arrays.copyOf(zs, 2 * n + 1);
+                            }
+                            xs[n] = x;
+                            ys[n] = y;
+                            zs[n] = z;
+                            n++;
                             if (x < minX) {
                                 minX = x;
                             }
@@ -384,27 +397,48 @@ public class InterpolationNN implements WhiteboxPlugin {
             out.close();
             
             // Create the whitebox raster object.
-            WhiteboxRaster image = new WhiteboxRaster(outputHeader, "rw");
+            final WhiteboxRaster image = new WhiteboxRaster(outputHeader, "rw");
 
-            double halfResolution = resolution / 2;
-            for (row = 0; row < nrows; row++) {
-                for (col = 0; col < ncols; col++) {
-                    easting = (col * resolution) + (west + halfResolution);
-                    northing = (north - halfResolution) - (row * resolution);
-                    double[] entry = {northing, easting};
-                    results = pointsTree.nearestNeighbor(entry, 1, true);
-                    if (results.get(0).distance < maxDist) {
-                        image.setValue(row, col, results.get(0).value);
-                    } else {
-                        image.setValue(row, col, noData);
+            final int numRows = nrows;
+            RowBands.Consumer<double[][]> writer = new RowBands.Consumer<double[][]>() {
+                @Override
+                public boolean consume(int startRow, int endRow, double[][] band) {
+                    for (int row = startRow; row < endRow; row++) {
+                        double[] data = band[row - startRow];
+                        for (int col = 0; col < data.length; col++) {
+                            image.setValue(row, col, data[col]);
+                        }
                     }
+                    if (cancelOp) {
+                        return false;
+                    }
+                    updateProgress("Interpolating point data:",
+                            (int) (100f * (endRow - 1) / Math.max(1, numRows - 1)));
+                    return true;
                 }
-                if (cancelOp) {
-                    cancelOperation();
-                    return;
-                }
-                progress = (int) (100f * row / (nrows - 1));
-                updateProgress("Interpolating point data:", progress);
+            };
+            boolean completed;
+            if (useTin) {
+                TinGridder gridder = new TinGridder(Arrays.copyOf(xs, n),
+                        Arrays.copyOf(ys, n), west, north, resolution, nrows, ncols);
+                gridder.setMaximumEdgeLength(maxDist);
+                completed = gridder.interpolate(Arrays.copyOf(zs, n),
+                        method == VoronoiGridder.Method.NATURAL_NEIGHBOUR
+                        ? TinGridder.Method.NATURAL_NEIGHBOUR : TinGridder.Method.LINEAR,
+                        noData, writer);
+            } else {
+                // each grid cell takes the value of the nearest point, found
+                // from a raster of the Voronoi diagram of the points.
+                VoronoiGridder gridder = new VoronoiGridder(Arrays.copyOf(xs, n),
+                        Arrays.copyOf(ys, n), west, north, resolution, nrows, ncols);
+                gridder.setMaximumDistance(maxDist);
+                completed = gridder.interpolate(Arrays.copyOf(zs, n), method,
+                        noData, writer);
+            }
+            if (!completed) {
+                image.close();
+                cancelOperation();
+                return;
             }
 
             image.addMetadataEntry("Created by the "
@@ -24,6 +24,7 @@ import java.text.DecimalFormat;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
+import whitebox.stats.CategoricalComparison;
 
 /**
  * WhiteboxPlugin is used to define a plugin tool for Whitebox GIS.
@@ -189,104 +190,78 @@ public class KappaIndex implements WhiteboxPlugin {
     public void run() {
         amIActive = true;
 
-        String inputHeader1 = null;
-        String inputHeader2 = null;
+        String classificationFiles = null;
+        String referenceFile = null;
         String outputFile = null;
-        int minClass;
-        int maxClass;
-        int numClasses;
-        int i1, i2;
-        int[][] contingency;
-        double[] data1, data2;
-        double z1, z2;
-        
+
         if (args.length <= 0) {
             showFeedback("Plugin parameters have not been set.");
             return;
         }
 
-        inputHeader1 = args[0];
-        inputHeader2 = args[1];
+        classificationFiles = args[0];
+        referenceFile = args[1];
         outputFile = args[2];
-        
-        // check to see that the inputHeader1 and outputFile are not null.
-        if (inputHeader1 == null || inputHeader2 == null) {
+
+        // check to see that the inputs and outputFile are not null.
+        if (classificationFiles == null || referenceFile == null || outputFile == null) {
             showFeedback("One or more of the input parameters have not been set properly.");
             return;
         }
 
         try {
-            int row, col;
-            float progress = 0;
-
-            WhiteboxRaster image1 = new WhiteboxRaster(inputHeader1, "r");
-            int rows = image1.getNumberRows();
-            int cols = image1.getNumberColumns();
-            double noData1 = image1.getNoDataValue();
+            // several classifications may be assessed against the reference
+            // in a single pass; the reference is the last image
+            String[] classFiles = classificationFiles.split(";");
+            int numClassifications = classFiles.length;
+            int ref = numClassifications;
+            WhiteboxRaster[] images = new WhiteboxRaster[numClassifications + 1];
+            for (int i = 0; i < numClassifications; i++) {
+                images[i] = new WhiteboxRaster(classFiles[i], "r");
+            }
+            images[ref] = new WhiteboxRaster(referenceFile, "r");
 
-            WhiteboxRaster image2 = new WhiteboxRaster(inputHeader2, "r");
-            if (rows != image2.getNumberRows() || cols != image2.getNumberColumns()) {
+            CategoricalComparison comparison;
+            try {
+                comparison = new CategoricalComparison(images);
+                // only the table of each classification with the reference is needed
+                comparison.setReference(ref);
+            } catch (IllegalArgumentException e) {
                 showFeedback("The input images must have the same dimensions (rows and columns).");
                 return;
             }
-            double noData2 = image2.getNoDataValue();
-
-            minClass = (int)(Math.min(image1.getMinimumValue(), image2.getMinimumValue()));
-            maxClass = (int)(Math.max(image1.getMaximumValue(), image2.getMaximumValue()));
-            numClasses = maxClass - minClass + 1;
-
-            contingency = new int[numClasses][numClasses];
-
-            for (row = 0; row < rows; row++) {
-                data1 = image1.getRowValues(row);
-                data2 = image2.getRowValues(row);
-                for (col = 0; col < cols; col++) {
-                    z1 = data1[col];
-                    z2 = data2[col];
-                    if (z1 != noData1 && z2 != noData2) {
-                        i1 = (int)(z1 - minClass);
-                        i2 = (int)(z2 - minClass);
-                        contingency[i1][i2]++;
+
+            try {
+                boolean completed = comparison.calculate(new CategoricalComparison.Progress() {
+                    int oldProgress = -1;
+
+                    @Override
+                    public boolean rowsCompleted(int completed, int total) {
+                        if (cancelOp) {
+                            return false;
+                        }
+                        int progress = (int) (100f * completed / total);
+                        if (progress != oldProgress) {
+                            updateProgress(progress);
+                            oldProgress = progress;
+                        }
+                        return true;
                     }
-                }
-                if (cancelOp) {
+                });
+                if (!completed) {
                     cancelOperation();
                     return;
                 }
-                progress = (float) (100f * row / (rows - 1));
-                updateProgress((int) progress);
-            }
-            
-            image1.close();
-            image2.close();
-
-            double agreements = 0;
-            double expectedFrequency = 0;
-            double N = 0;
-            double rowTotal = 0;
-            double colTotal = 0;
-            double kappa = 0;
-            double overallAccuracy = 0;
-
-            for (int a = 0; a <= numClasses - 1; a++) {
-                agreements += contingency[a][a];
-                for (int b = 0; b <= numClasses - 1; b++) {
-                    N += contingency[a][b];
-                }
+            } catch (IllegalArgumentException e) {
+                showFeedback(e.getMessage());
+                return;
             }
 
-            for (int a = 0; a <= numClasses - 1; a++) {
-                rowTotal = 0;
-                colTotal = 0;
-                for (int b = 0; b <= numClasses - 1; b++) {
-                    colTotal += contingency[a][b];
-                    rowTotal += contingency[b][a];
-                    }
-                    expectedFrequency += (colTotal * rowTotal) / N;
+            for (WhiteboxRaster image : images) {
+                image.close();
             }
 
-            kappa = (agreements - expectedFrequency) / (N - expectedFrequency);
-            overallAccuracy = agreements / N;
+            int numClasses = comparison.getNumberOfClasses();
 
             File file = new File(outputFile);
             FileWriter fw = null;
@@ -309,100 +284,115 @@ public class KappaIndex implements WhiteboxPlugin {
                 out.println(str);
                 str = "<body><h1>Kappa Index of Agreement</h1>";
                 out.println(str);
-                str = "<b>Input Images:</b> <br><br><b>Classification Image:</b> " + inputHeader1 + "<br><b>Reference Image:</b> " + inputHeader2 + "<br>";
-                out.println(str);
-                str = "<br><b>Contingency Table:</b><br>";
-                out.println(str);
-                str = "<br><table border=\"1\" cellspacing=\"0\" cellpadding=\"3\">";
-                out.println(str);
-                str = "<tr>";
-                out.println(str);
-                str = "<th colspan=\"2\" rowspan=\"2\"></th><th colspan=\"" + numClasses + "\">Class Image</th><th rowspan=\"2\">Row<br>Totals</th>";
-                out.println(str);
-                str = "</tr>";
-                out.println(str);
-                str = "<tr>";
-                out.println(str);
-                for (int a = 0; a <= numClasses - 1; a++) {
-                    str = "<th>" + (minClass + a) + "</th>";
-                    out.println(str);
                 
-                }
-                str = "</tr>";
-                out.println(str);
-                for (int a = 0; a <= numClasses - 1; a++) {
-                    if (a == 0) {
-                        str = "<tr><th rowspan=\"" + numClasses + "\">Ref<br>Image</th> <th>" + (minClass + a) + "</th>";
-                        out.println(str);
+                DecimalFormat df = new DecimalFormat("0.00%");
+                DecimalFormat df2 = new DecimalFormat("0.000");
                 
-                    } else {
-                        str = "<tr><th>" + (minClass + a) + "</th>";
+                if (numClassifications > 1) {
+                    str = "<b>Reference Image:</b> " + referenceFile + "<br>";
+                    out.println(str);
+                    str = "<br><b>Summary:</b><br><br>";
+                    out.println(str);
+                    str = "<table border=\"1\" cellspacing=\"0\" cellpadding=\"3\">";
+                    out.println(str);
+                    str = "<tr><td><b>Classification Image</b></td><td><b>Overall<br>Accuracy</b></td><td><b>Kappa</b></td></tr>";
+                    out.println(str);
+                    for (int i = 0; i < numClassifications; i++) {
+                        str = "<tr><td>" + classFiles[i] + "</td><td>" + df.format(comparison.getOverallAccuracy(i, ref))
+                                + "</td><td>" + df2.format(comparison.getKappa(i, ref)) + "</td></tr>";
                         out.println(str);
-                
                     }
-                    rowTotal = 0;
-                    for (int b = 0; b <= numClasses - 1; b++) {
-                        rowTotal += contingency[a][b];
-                        str = "<td>" + contingency[a][b] + "</td>";
-                        out.println(str);
-                
+                    str = "</table><br><hr>";
+                    out.println(str);
+                }
+
+                for (int i = 0; i < numClassifications; i++) {
+                    // the classes that occur in either image
+                    int[] classes = new int[numClasses];
+                    int n = 0;
+                    for (int k = 0; k < numClasses; k++) {
+                        if (comparison.getClassCount(i, k) > 0 || comparison.getClassCount(ref, k) > 0) {
+                            classes[n] = k;
+                            n++;
+                        }
                     }
-                    str = "<td>" + rowTotal + "</td>";
+
+                    str = "<br><b>Input Images:</b> <br><br><b>Classification Image:</b> " + classFiles[i] + "<br><b>Reference Image:</b> " + referenceFile + "<br>";
+                    out.println(str);
+                    str = "<br><b>Contingency Table:</b><br>";
+                    out.println(str);
+                    str = "<br><table border=\"1\" cellspacing=\"0\" cellpadding=\"3\">";
+                    out.println(str);
+                    str = "<tr>";
+                    out.println(str);
+                    str = "<th colspan=\"2\" rowspan=\"2\"></th><th colspan=\"" + n + "\">Ref Image</th><th rowspan=\"2\">Row<br>Totals</th>";
                     out.println(str);
-                
                     str = "</tr>";
                     out.println(str);
-                
-                }
-                str = "<tr>";
-                out.println(str);
-                str = "<th colspan=\"2\">Col<br>Totals</th>";
-                out.println(str);
-                for (int a = 0; a <= numClasses - 1; a++) {
-                    colTotal = 0;
-                    for (int b = 0; b <= numClasses - 1; b++) {
-                        colTotal += contingency[b][a];
+                    str = "<tr>";
+                    out.println(str);
+                    for (int b = 0; b < n; b++) {
+                        str = "<th>" + comparison.getClassValue(classes[b]) + "</th>";
+                        out.println(str);
                     }
-                    str = "<td>" + colTotal + "</td>";
+                    str = "</tr>";
                     out.println(str);
-                
-                }
+                    for (int a = 0; a < n; a++) {
+                        if (a == 0) {
+                            str = "<tr><th rowspan=\"" + n + "\">Class<br>Image</th> <th>" + comparison.getClassValue(classes[a]) + "</th>";
+                            out.println(str);
+                        } else {
+                            str = "<tr><th>" + comparison.getClassValue(classes[a]) + "</th>";
+                            out.println(str);
+                        }
+                        for (int b = 0; b < n; b++) {
+                            str = "<td>" + comparison.getCount(i, ref, classes[a], classes[b]) + "</td>";
+                            out.println(str);
+                        }
+                        str = "<td>" + comparison.getClassTotal(i, ref, classes[a]) + "</td>";
+                        out.println(str);
+                        str = "</tr>";
+                        out.println(str);
+                    }
+                    str = "<tr>";
+                    out.println(str);
+                    str = "<th colspan=\"2\">Col<br>Totals</th>";
+                    out.println(str);
+                    for (int b = 0; b < n; b++) {
+                        str = "<td>" + comparison.getClassTotal(ref, i, classes[b]) + "</td>";
+                        out.println(str);
+                    }
 
-                str = "<td><b>N</b>=" + N + "</td></tr>";
-                out.println(str);
-                str = "</table>";
-                out.println(str);
-                str = "<br><b>Class Accuracy Statistics:</b><br><br>";
-                out.println(str);
-                str = "<table border=\"1\" cellspacing=\"0\" cellpadding=\"3\">";
-                out.println(str);
-                str = "<tr><td><b>Class</b></td><td><b>User's<br>Accuracy</b></td><td><b>Producer's<br>Accuracy</b></td></tr>";
-                out.println(str);
-                
-                DecimalFormat df = new DecimalFormat("0.00%");
-                DecimalFormat df2 = new DecimalFormat("0.000");
-                for (int a = 0; a <= numClasses - 1; a++) {
-                    rowTotal = 0;
-                    colTotal = 0;
-                    for (int b = 0; b <= numClasses - 1; b++) {
-                        colTotal += contingency[a][b];
-                        rowTotal += contingency[b][a];
+                    str = "<td><b>N</b>=" + comparison.getTotal(i, ref) + "</td></tr>";
+                    out.println(str);
+                    str = "</table>";
+                    out.println(str);
+                    str = "<br><b>Class Accuracy Statistics:</b><br><br>";
+                    out.println(str);
+                    str = "<table border=\"1\" cellspacing=\"0\" cellpadding=\"3\">";
+                    out.println(str);
+                    str = "<tr><td><b>Class</b></td><td><b>User's<br>Accuracy</b></td><td><b>Producer's<br>Accuracy</b></td></tr>";
+                    out.println(str);
+                    for (int a = 0; a < n; a++) {
+                        str = "<tr><td>" + comparison.getClassValue(classes[a]) + "</td><td>" + df.format(comparison.getUsersAccuracy(i, ref, classes[a]))
+                                + "</td><td>" + df.format(comparison.getProducersAccuracy(i, ref, classes[a])) + "</td></tr>";
+                        out.println(str);
                     }
-                    str = "<tr><td>" + a + "</td><td>" + df.format(contingency[a][a] / colTotal)
-                            + "</td><td>" + df.format(contingency[a][a] / rowTotal) + "</td></tr>";
+
+                    str = "</table>";
                     out.println(str);
-                
+                    str = "<br>Note: User's accuracy refers to the proportion of cells correctly assigned to a class (i.e. the number of cells correctly classified for a category divided by the row total in the contingency table). "
+                            + "Producer's accuracy is a measure of how much of the land in each category was classified correctly (i.e. the number of cells correctly classified for a category divided by the column total in the contingency table).<br>";
+                    out.println(str);
+                    str = "<br><b>Overall Accuracy</b> = " + df.format(comparison.getOverallAccuracy(i, ref));
+                    out.println(str);
+                    str = "<br><br><b>Kappa</b> = " + df2.format(comparison.getKappa(i, ref));
+                    out.println(str);
+                    if (i < numClassifications - 1) {
+                        str = "<br><br><hr>";
+                        out.println(str);
+                    }
                 }
-
-                str = "</table>";
-                out.println(str);
-                str = "<br>Note: User's accuracy refers to the proportion of cells correctly assigned to a class (i.e. the number of cells correctly classified for a category divided by the row total in the contingency table). "
-                        + "Producer's accuracy is a measure of how much of the land in each category was classified correctly (i.e. the number of cells correctly classified for a category divided by the column total in the contingency table).<br>";
-                out.println(str);
-                str = "<br><b>Overall Accuracy</b> = " + df.format(overallAccuracy);
-                out.println(str);
-                str = "<br><br><b>Kappa</b> = " + df2.format(kappa);
-                out.println(str);
                 str = "</body>";
                 out.println(str);
                 
@@ -21,14 +21,13 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.PrintWriter;
 import java.util.Date;
-import java.util.List;
+import whitebox.algorithms.LasTileGridder;
 import whitebox.geospatialfiles.LASReader;
 import whitebox.geospatialfiles.LASReader.PointRecColours;
 import whitebox.geospatialfiles.LASReader.PointRecord;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
-import whitebox.structures.KdTree;
 
 /**
  * WhiteboxPlugin is used to define a plugin tool for Whitebox GIS.
@@ -197,28 +196,8 @@ public class LiDAR_Min_interpolation implements WhiteboxPlugin {
 
         String inputFilesString = null;
         String[] pointFiles;
-        String outputHeader = null;
-        int row, col;
-        int nrows, ncols;
-        double x, y;
-        double z = 0;
-        int a, i;
-        int progress = 0;
-        int numPoints = 0;
-        double minValue;
-        double minX = Double.POSITIVE_INFINITY;
-        double maxX = Double.NEGATIVE_INFINITY;
-        double minY = Double.POSITIVE_INFINITY;
-        double maxY = Double.NEGATIVE_INFINITY;
-        double north, south, east, west;
         double resolution = 1;
-        String str1 = null;
-        FileWriter fw = null;
-        BufferedWriter bw = null;
-        PrintWriter out = null;
-        List<KdTree.Entry<Double>> results;
-        double noData = -32768;
-        double northing, easting;
+        final double noData = -32768;
         String whatToInterpolate = "";
         String returnNumberToInterpolate = "all points";
         String suffix = "";
@@ -267,7 +246,7 @@ public class LiDAR_Min_interpolation implements WhiteboxPlugin {
 
         try {
             
-            boolean[] classValuesToExclude = new boolean[32]; // there can be up to 32 different classes in future versions
+            final boolean[] classValuesToExclude = new boolean[32]; // there can be up to 32 different classes in future versions
             
             if (excludeNeverClassified) { classValuesToExclude[0] = true; }
             if (excludeUnclassified) { classValuesToExclude[1] = true; }
@@ -281,293 +260,62 @@ public class LiDAR_Min_interpolation implements WhiteboxPlugin {
             if (excludeWater) { classValuesToExclude[9] = true; }
             
             pointFiles = inputFilesString.split(";");
-            int numPointFiles = pointFiles.length;
-            long numPointsInFile = 0;
-                
-            PointRecord point;
-            PointRecColours pointColours;
-            double[] entry;
-            for (int j = 0; j < numPointFiles; j++) {
-                
-                LASReader las = new LASReader(pointFiles[j]);
-                
-                progress = (int)((j + 1) * 100d / numPointFiles);
-                updateProgress("Loop " + (j + 1) + " of " + numPointFiles + " Reading point data:", progress);
-                
-                numPointsInFile = las.getNumPointRecords();
-                // first count how many valid points there are.
-                numPoints = 0;
-                for (a = 0; a < numPointsInFile; a++) {
-                    point = las.getPointRecord(a);
-                    if (returnNumberToInterpolate.equals("all points")) {
-                        if (!point.isPointWithheld() && 
-                                !(classValuesToExclude[point.getClassification()])) {
-                            numPoints++;
-                        }
-                    } else if (returnNumberToInterpolate.equals("first return")) {
-                        if (!point.isPointWithheld() && 
-                                !(classValuesToExclude[point.getClassification()]) &&
-                                point.getReturnNumber() == 1) {
-                            numPoints++;
-                        }
-                    } else { // if (returnNumberToInterpolate.equals("last return")) {
-                        if (!point.isPointWithheld() && 
-                                !(classValuesToExclude[point.getClassification()]) &&
-                                point.getReturnNumber() == point.getNumberOfReturns()) {
-                            numPoints++;
-                        }
-                    }
-                }
-                
-                // now read the valid points into the k-dimensional tree.
-                
-                minX = Double.POSITIVE_INFINITY;
-                maxX = Double.NEGATIVE_INFINITY;
-                minY = Double.POSITIVE_INFINITY;
-                maxY = Double.NEGATIVE_INFINITY;
-        
-                KdTree<Double> pointsTree = new KdTree.SqrEuclid<Double>(2, new Integer(numPoints));
+            final int numPointFiles = pointFiles.length;
             
-                
-                // read the points in
-                if (returnNumberToInterpolate.equals("all points")) {
-                    for (a = 0; a < numPointsInFile; a++) {
-                        point = las.getPointRecord(a);
-                        if (!point.isPointWithheld()
-                                && !(classValuesToExclude[point.getClassification()])) {
-                            x = point.getX();
-                            y = point.getY();
-                            if (whatToInterpolate.equals("z (elevation)")) {
-                                z = point.getZ();
-                            } else if (whatToInterpolate.equals("intensity")) {
-                                z = point.getIntensity();
-                            } else if (whatToInterpolate.equals("classification")) {
-                                z = point.getClassification();
-                            } else if (whatToInterpolate.equals("scan angle")) {
-                                z = point.getScanAngle();
-                            } else if (whatToInterpolate.equals("rgb data")) {
-                                pointColours = las.getPointRecordColours(a);
-                                z = (double)((255 << 24) | (pointColours.getBlue() 
-                                        << 16) | (pointColours.getGreen() << 8) | 
-                                        pointColours.getRed());
-                            }
-                            
-                            entry = new double[]{y, x};
-                            pointsTree.addPoint(entry, z);
-
-                            if (x < minX) {
-                                minX = x;
-                            }
-                            if (x > maxX) {
-                                maxX = x;
-                            }
-                            if (y < minY) {
-                                minY = y;
-                            }
-                            if (y > maxY) {
-                                maxY = y;
-                            }
-                        }
-                        progress = (int) (100d * (a + 1) / numPointsInFile);
-                        if ((progress % 2) == 0) {
-                            updateProgress("Reading point data:", progress);
-                        }
-                    }
-                } else if (returnNumberToInterpolate.equals("first return")) {
-                    for (a = 0; a < numPointsInFile; a++) {
-                        point = las.getPointRecord(a);
-                        if (!point.isPointWithheld()
-                                && !(classValuesToExclude[point.getClassification()]) &&
-                                point.getReturnNumber() == 1) {
-                            x = point.getX();
-                            y = point.getY();
-                            if (whatToInterpolate.equals("z (elevation)")) {
-                                z = point.getZ();
-                            } else if (whatToInterpolate.equals("intensity")) {
-                                z = point.getIntensity();
-                            } else if (whatToInterpolate.equals("classification")) {
-                                z = point.getClassification();
-                            } else if (whatToInterpolate.equals("scan angle")) {
-                                z = point.getScanAngle();
-                            } else if (whatToInterpolate.equals("rgb data")) {
-                                pointColours = las.getPointRecordColours(a);
-                                z = (double)((255 << 24) | (pointColours.getBlue() 
-                                        << 16) | (pointColours.getGreen() << 8) | 
-                                        pointColours.getRed());
-                            }
-                            
-                            entry = new double[]{y, x};
-                            pointsTree.addPoint(entry, z);
-
-                            if (x < minX) {
-                                minX = x;
-                            }
-                            if (x > maxX) {
-                                maxX = x;
-                            }
-                            if (y < minY) {
-                                minY = y;
-                            }
-                            if (y > maxY) {
-                                maxY = y;
-                            }
-                        }
-                        progress = (int) (100d * (a + 1) / numPointsInFile);
-                        if ((progress % 2) == 0) {
-                            updateProgress("Reading point data:", progress);
-                        }
+            // The points of all of the files are binned into one tile per 
+            // file, with a halo around each tile so that the cells along the 
+            // edges of a tile also see the points of the neighbouring files.
+            LasTileGridder gridder = new LasTileGridder(pointFiles, resolution,
+                    circleCircumscrbingGridCell, new LasPointSelector(whatToInterpolate, 
+                            returnNumberToInterpolate, classValuesToExclude));
+            
+            final String interpolatedValue = whatToInterpolate;
+            final String outputSuffix = suffix;
+            final int[] tilesCompleted = new int[1];
+            boolean completed = gridder.run(new LasTileGridder.CellEstimator() {
+                @Override
+                public double estimate(LasTileGridder.Neighbourhood neighbourhood) {
+                    if (neighbourhood.isEmpty()) {
+                        return noData;
                     }
-                } else { // if (returnNumberToInterpolate.equals("last return")) {
-                    for (a = 0; a < numPointsInFile; a++) {
-                        point = las.getPointRecord(a);
-                        if (!point.isPointWithheld()
-                                && !(classValuesToExclude[point.getClassification()]) &&
-                                point.getReturnNumber() == point.getNumberOfReturns()) {
-                            x = point.getX();
-                            y = point.getY();
-                            if (whatToInterpolate.equals("z (elevation)")) {
-                                z = point.getZ();
-                            } else if (whatToInterpolate.equals("intensity")) {
-                                z = point.getIntensity();
-                            } else if (whatToInterpolate.equals("classification")) {
-                                z = point.getClassification();
-                            } else if (whatToInterpolate.equals("scan angle")) {
-                                z = point.getScanAngle();
-                            } else if (whatToInterpolate.equals("rgb data")) {
-                                pointColours = las.getPointRecordColours(a);
-                                z = (double)((255 << 24) | (pointColours.getBlue() 
-                                        << 16) | (pointColours.getGreen() << 8) | 
-                                        pointColours.getRed());
-                            }
-                            
-                            entry = new double[]{y, x};
-                            pointsTree.addPoint(entry, z);
-
-                            if (x < minX) {
-                                minX = x;
-                            }
-                            if (x > maxX) {
-                                maxX = x;
-                            }
-                            if (y < minY) {
-                                minY = y;
-                            }
-                            if (y > maxY) {
-                                maxY = y;
-                            }
-                        }
-                        progress = (int) (100d * (a + 1) / numPointsInFile);
-                        if ((progress % 2) == 0) {
-                            updateProgress("Reading point data:", progress);
-                        }
+                    double minValue = Float.POSITIVE_INFINITY;
+                    for (int i = 0; i < neighbourhood.size(); i++) {
+                        double z = neighbourhood.getValue(i);
+                        if (z < minValue) { minValue = z; };
                     }
+                    return minValue;
                 }
-                
-                outputHeader = pointFiles[j].replace(".las", suffix + ".dep");
-                
-                // see if the output files already exist, and if so, delete them.
-                if ((new File(outputHeader)).exists()) {
-                    (new File(outputHeader)).delete();
-                    (new File(outputHeader.replace(".dep", ".tas"))).delete();
+            }, new LasTileGridder.TileOutput() {
+                @Override
+                public WhiteboxRaster createRaster(LasTileGridder.Tile tile) throws Exception {
+                    String outputHeader = tile.getFileName().replace(".las", outputSuffix + ".dep");
+                    return createOutputRaster(outputHeader, tile, interpolatedValue, noData);
                 }
-            
-                // What are north, south, east, and west and how many rows and 
-                // columns should there be?
-                west = minX - 0.5 * resolution;
-                north = maxY + 0.5 * resolution;
-                nrows = (int)(Math.ceil((north - minY) / resolution));
-                ncols = (int)(Math.ceil((maxX - west) / resolution));
-                south = north - nrows * resolution;
-                east = west + ncols * resolution;
-            
-                // create the whitebox header file.
-                fw = new FileWriter(outputHeader, false);
-                bw = new BufferedWriter(fw);
-                out = new PrintWriter(bw, true);
 
-                str1 = "Min:\t" + Double.toString(Integer.MAX_VALUE);
-                out.println(str1);
-                str1 = "Max:\t" + Double.toString(Integer.MIN_VALUE);
-                out.println(str1);
-                str1 = "North:\t" + Double.toString(north);
-                out.println(str1);
-                str1 = "South:\t" + Double.toString(south);
-                out.println(str1);
-                str1 = "East:\t" + Double.toString(east);
-                out.println(str1);
-                str1 = "West:\t" + Double.toString(west);
-                out.println(str1);
-                str1 = "Cols:\t" + Integer.toString(ncols);
-                out.println(str1);
-                str1 = "Rows:\t" + Integer.toString(nrows);
-                out.println(str1);
-                str1 = "Data Type:\t" + "float";
-                out.println(str1);
-                str1 = "Z Units:\t" + "not specified";
-                out.println(str1);
-                str1 = "XY Units:\t" + "not specified";
-                out.println(str1);
-                str1 = "Projection:\t" + "not specified";
-                out.println(str1);
-                if (!whatToInterpolate.equals("rgb data")) {
-                   str1 = "Data Scale:\tcontinuous"; 
-                } else {
-                   str1 = "Data Scale:\trgb"; 
-                }
-                out.println(str1);
-                if (whatToInterpolate.equals("rgb data")) {
-                    str1 = "Preferred Palette:\t" + "rgb.pal";
-                } else if (whatToInterpolate.equals("intensity")) {
-                    str1 = "Preferred Palette:\t" + "grey.pal";
-                } else {
-                    str1 = "Preferred Palette:\t" + "spectrum.pal";
-                }
-                out.println(str1);
-                str1 = "NoData:\t" + noData;
-                out.println(str1);
-                if (java.nio.ByteOrder.nativeOrder() == java.nio.ByteOrder.LITTLE_ENDIAN) {
-                    str1 = "Byte Order:\t" + "LITTLE_ENDIAN";
-                } else {
-                    str1 = "Byte Order:\t" + "BIG_ENDIAN";
-                }
-                out.println(str1);
-
-                out.close();
-
-                // Create the whitebox raster object.
-                WhiteboxRaster image = new WhiteboxRaster(outputHeader, "rw");
-
-                double halfResolution = resolution / 2;
-                for (row = 0; row < nrows; row++) {
-                    for (col = 0; col < ncols; col++) {
-                        easting = (col * resolution) + (west + halfResolution);
-                        northing = (north - halfResolution) - (row * resolution);
-                        entry = new double[]{northing, easting};
-                        results = pointsTree.neighborsWithinRange(entry, circleCircumscrbingGridCell);
-                        if (!results.isEmpty()) {
-                            minValue = Float.POSITIVE_INFINITY;
-                            for (i = 0; i < results.size(); i++) {
-                                z = results.get(i).value;
-                                if (z < minValue) { minValue = z; };
-                            }
-                            image.setValue(row, col, minValue);
-                        } else {
-                            image.setValue(row, col, noData);
-                        }
-                    }
+                @Override
+                public boolean bandCompleted(LasTileGridder.Tile tile, int rowsCompleted) {
                     if (cancelOp) {
-                        cancelOperation();
-                        return;
+                        return false;
                     }
-                    progress = (int) (100f * row / (nrows - 1));
-                    updateProgress("Interpolating point data:", progress);
+                    int progress = (int) (100f * rowsCompleted / tile.getRows());
+                    updateProgress("Loop " + (tilesCompleted[0] + 1) + " of " + numPointFiles + " Interpolating point data:", progress);
+                    return true;
                 }
 
-                image.addMetadataEntry("Created by the "
-                        + getDescriptiveName() + " tool.");
-                image.addMetadataEntry("Created on " + new Date());
+                @Override
+                public boolean tileCompleted(LasTileGridder.Tile tile, WhiteboxRaster image) {
+                    image.addMetadataEntry("Created by the "
+                            + getDescriptiveName() + " tool.");
+                    image.addMetadataEntry("Created on " + new Date());
 
-                image.close();
+                    image.close();
+                    tilesCompleted[0]++;
+                    return !cancelOp;
+                }
+            });
+            if (!completed) {
+                cancelOperation();
+                return;
             }
             
             returnData(pointFiles[0].replace(".las", suffix + ".dep"));
@@ -584,6 +332,126 @@ public class LiDAR_Min_interpolation implements WhiteboxPlugin {
             myHost.pluginComplete();
         }
     }
+    
+    private WhiteboxRaster createOutputRaster(String outputHeader, LasTileGridder.Tile tile,
+            String whatToInterpolate, double noData) throws Exception {
+        String str1;
+        
+        // see if the output files already exist, and if so, delete them.
+        if ((new File(outputHeader)).exists()) {
+            (new File(outputHeader)).delete();
+            (new File(outputHeader.replace(".dep", ".tas"))).delete();
+        }
+
+        // create the whitebox header file.
+        FileWriter fw = new FileWriter(outputHeader, false);
+        BufferedWriter bw = new BufferedWriter(fw);
+        PrintWriter out = new PrintWriter(bw, true);
+
+        str1 = "Min:\t" + Double.toString(Integer.MAX_VALUE);
+        out.println(str1);
+        str1 = "Max:\t" + Double.toString(Integer.MIN_VALUE);
+        out.println(str1);
+        str1 = "North:\t" + Double.toString(tile.getNorth());
+        out.println(str1);
+        str1 = "South:\t" + Double.toString(tile.getSouth());
+        out.println(str1);
+        str1 = "East:\t" + Double.toString(tile.getEast());
+        out.println(str1);
+        str1 = "West:\t" + Double.toString(tile.getWest());
+        out.println(str1);
+        str1 = "Cols:\t" + Integer.toString(tile.getColumns());
+        out.println(str1);
+        str1 = "Rows:\t" + Integer.toString(tile.getRows());
+        out.println(str1);
+        str1 = "Data Type:\t" + "float";
+        out.println(str1);
+        str1 = "Z Units:\t" + "not specified";
+        out.println(str1);
+        str1 = "XY Units:\t" + "not specified";
+        out.println(str1);
+        str1 = "Projection:\t" + "not specified";
+        out.println(str1);
+        if (!whatToInterpolate.equals("rgb data")) {
+           str1 = "Data Scale:\tcontinuous"; 
+        } else {
+           str1 = "Data Scale:\trgb"; 
+        }
+        out.println(str1);
+        if (whatToInterpolate.equals("rgb data")) {
+            str1 = "Preferred Palette:\t" + "rgb.pal";
+        } else if (whatToInterpolate.equals("intensity")) {
+            str1 = "Preferred Palette:\t" + "grey.pal";
+        } else {
+            str1 = "Preferred Palette:\t" + "spectrum.pal";
+        }
+        out.println(str1);
+        str1 = "NoData:\t" + noData;
+        out.println(str1);
+        if (java.nio.ByteOrder.nativeOrder() == java.nio.ByteOrder.LITTLE_ENDIAN) {
+            str1 = "Byte Order:\t" + "LITTLE_ENDIAN";
+        } else {
+            str1 = "Byte Order:\t" + "BIG_ENDIAN";
+        }
+        out.println(str1);
+
+        out.close();
+
+        // Create the whitebox raster object.
+        return new WhiteboxRaster(outputHeader, "rw");
+    }
+    
+    /**
+     * Selects the points that are interpolated by the tool and reads the 
+     * value being interpolated.
+     */
+    private static class LasPointSelector implements LasTileGridder.PointSelector {
+        
+        private final String whatToInterpolate;
+        private final String returnNumberToInterpolate;
+        private final boolean[] classValuesToExclude;
+        
+        LasPointSelector(String whatToInterpolate, String returnNumberToInterpolate,
+                boolean[] classValuesToExclude) {
+            this.whatToInterpolate = whatToInterpolate;
+            this.returnNumberToInterpolate = returnNumberToInterpolate;
+            this.classValuesToExclude = classValuesToExclude;
+        }
+        
+        @Override
+        public boolean isSelected(PointRecord point) {
+            if (point.isPointWithheld() || classValuesToExclude[point.getClassification()]) {
+                return false;
+            }
+            if (returnNumberToInterpolate.equals("all points")) {
+                return true;
+            } else if (returnNumberToInterpolate.equals("first return")) {
+                return point.getReturnNumber() == 1;
+            } else { // if (returnNumberToInterpolate.equals("last return")) {
+                return point.getReturnNumber() == point.getNumberOfReturns();
+            }
+        }
+        
+        @Override
+        public double getValue(LASReader las, int index, PointRecord point) {
+            double z = 0;
+            if (whatToInterpolate.equals("z (elevation)")) {
+                z = point.getZ();
+            } else if (whatToInterpolate.equals("intensity")) {
+                z = point.getIntensity();
+            } else if (whatToInterpolate.equals("classification")) {
+                z = point.getClassification();
+            } else if (whatToInterpolate.equals("scan angle")) {
+                z = point.getScanAngle();
+            } else if (whatToInterpolate.equals("rgb data")) {
+                PointRecColours pointColours = las.getPointRecordColours(index);
+                z = (double)((255 << 24) | (pointColours.getBlue() 
+                        << 16) | (pointColours.getGreen() << 8) | 
+                        pointColours.getRed());
+            }
+            return z;
+        }
+    }
 //      
 //    //this is only used for debugging the tool
 //    public static void main(String[] args) {
@@ -20,15 +20,17 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.PrintWriter;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.List;
+import whitebox.algorithms.TinGridder;
+import whitebox.algorithms.VoronoiGridder;
 import whitebox.geospatialfiles.LASReader;
 import whitebox.geospatialfiles.LASReader.PointRecColours;
 import whitebox.geospatialfiles.LASReader.PointRecord;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
-import whitebox.structures.KdTree;
+import whitebox.parallel.RowBands;
 import whitebox.utilities.Parallel;
 
 /**
@@ -201,6 +203,8 @@ public class LiDAR_NN_interpolation implements WhiteboxPlugin {
     double maxDist = Double.POSITIVE_INFINITY;
     int numCompletedFiles = 0;
     double maxAbsScanAngle = 999.0;
+    VoronoiGridder.Method method = VoronoiGridder.Method.NEAREST_NEIGHBOUR;
+    boolean useTin = false;
 
     @Override
     public void run() {
@@ -273,6 +277,13 @@ public class LiDAR_NN_interpolation implements WhiteboxPlugin {
             //excludeHighPoint = Boolean.parseBoolean(args[14]);
             excludeModelKeyPoint = Boolean.parseBoolean(args[15]);
             excludeWater = Boolean.parseBoolean(args[16]);
+            if (args.length > 17 && args[17].toLowerCase().contains("natural")) {
+                method = VoronoiGridder.Method.NATURAL_NEIGHBOUR;
+            }
+            // the TIN methods interpolate within the triangles of the Delaunay
+            // triangulation of the points, and the maximum distance becomes
+            // the length of the longest triangle edge.
+            useTin = args.length > 17 && args[17].toLowerCase().contains("tin");
 
             // check to see that the inputHeader and outputHeader are not null.
             if ((inputFilesString.length() <= 0)) {
@@ -317,10 +328,6 @@ public class LiDAR_NN_interpolation implements WhiteboxPlugin {
             //int numPointFiles = pointFiles.length;
             //long numPointsInFile = 0;
 
-            if (maxDist < Double.POSITIVE_INFINITY) {
-                maxDist = maxDist * maxDist;
-            }
-
             //PointRecord point;
             //PointRecColours pointColours;
             //double[] entry;
@@ -329,7 +336,6 @@ public class LiDAR_NN_interpolation implements WhiteboxPlugin {
 
                 @Override
                 public void run(Integer j) {
-                    int row, col;
                     int nrows, ncols;
                     double x, y;
                     double z = 0;
@@ -341,13 +347,10 @@ public class LiDAR_NN_interpolation implements WhiteboxPlugin {
                     String str1;
                     PointRecord point;
                     PointRecColours pointColours;
-                    double[] entry;
-                    double northing, easting;
-                    double noData = -32768;
+                    final double noData = -32768;
                     FileWriter fw = null;
                     BufferedWriter bw = null;
                     PrintWriter out = null;
-                    List<KdTree.Entry<Double>> results;
 
                     LASReader las = new LASReader(pointFiles[j]);
 
@@ -385,7 +388,10 @@ public class LiDAR_NN_interpolation implements WhiteboxPlugin {
                     double minY = Double.POSITIVE_INFINITY;
                     double maxY = Double.NEGATIVE_INFINITY;
 
-                    KdTree<Double> pointsTree = new KdTree.SqrEuclid<>(2, new Integer(numPoints));
+                    double[] xs = new double[numPoints];
+                    double[] ys = new double[numPoints];
+                    double[] zs = new double[numPoints];
+                    int n = 0;
 
                     // read the points in
                     if (returnNumberToInterpolate.equals("all points")) {
@@ -411,8 +417,15 @@ public class LiDAR_NN_interpolation implements WhiteboxPlugin {
                                             | pointColours.getRed());
                                 }
 
-                                entry = new double[]{y, x};
-                                pointsTree.addPoint(entry, z);
+                                if (n == xs.length) {
+                                    xs = Arrays.copyOf(xs, 2 * n + 1);
+                                    ys = Arrays.copyOf(ys, 2 * n + 1);
+                                    zs = Arrays.copyOf(zs, 2 * n + 1);
+                                }
+                                xs[n] = x;
+                                ys[n] = y;
+                                zs[n] = z;
+                                n++;
 
                                 if (x < minX) {
                                     minX = x;
@@ -456,8 +469,15 @@ public class LiDAR_NN_interpolation implements WhiteboxPlugin {
                                             | pointColours.getRed());
                                 }
 
-                                entry = new double[]{y, x};
-                                pointsTree.addPoint(entry, z);
+                                if (n == xs.length) {
+                                    xs = Arrays.copyOf(xs, 2 * n + 1);
+                                    ys = Arrays.copyOf(ys, 2 * n + 1);
+                                    zs = Arrays.copyOf(zs, 2 * n + 1);
+                                }
+                                xs[n] = x;
+                                ys[n] = y;
+                                zs[n] = z;
+                                n++;
 
                                 if (x < minX) {
                                     minX = x;
@@ -501,8 +521,15 @@ public class LiDAR_NN_interpolation implements WhiteboxPlugin {
                                             | pointColours.getRed());
                                 }
 
-                                entry = new double[]{y, x};
-                                pointsTree.addPoint(entry, z);
+                                if (n == xs.length) {
+                                    xs = Arrays.copyOf(xs, 2 * n + 1);
+                                    ys = Arrays.copyOf(ys, 2 * n + 1);
+                                    zs = Arrays.copyOf(zs, 2 * n + 1);
+                                }
+                                xs[n] = x;
+                                ys[n] = y;
+                                zs[n] = z;
+                                n++;
 
                                 if (x < minX) {
                                     minX = x;
@@ -597,26 +624,46 @@ public class LiDAR_NN_interpolation implements WhiteboxPlugin {
                     }
 
                     // Create the whitebox raster object.
-                    WhiteboxRaster image = new WhiteboxRaster(outputHeader, "rw");
-
-                    double halfResolution = resolution / 2;
-                    for (row = 0; row < nrows; row++) {
-                        for (col = 0; col < ncols; col++) {
-                            easting = (col * resolution) + (west + halfResolution);
-                            northing = (north - halfResolution) - (row * resolution);
-                            entry = new double[]{northing, easting};
-                            results = pointsTree.nearestNeighbor(entry, 1, true);
-                            if (results.get(0).distance < maxDist) {
-                                z = results.get(0).value;
-                                image.setValue(row, col, z);
-                            } else {
-                                image.setValue(row, col, noData);
+                    final WhiteboxRaster image = new WhiteboxRaster(outputHeader, "rw");
+
+                    RowBands.Consumer<double[][]> writer = new RowBands.Consumer<double[][]>() {
+                        @Override
+                        public boolean consume(int startRow, int endRow, double[][] band) {
+                            for (int row = startRow; row < endRow; row++) {
+                                double[] data = band[row - startRow];
+                                for (int col = 0; col < data.length; col++) {
+                                    image.setValue(row, col, data[col]);
+                                }
                             }
+                            return !cancelOp;
                         }
-                        if (cancelOp) {
-                            cancelOperation();
-                            return;
+                    };
+                    boolean completed;
+                    try {
+                        if (useTin) {
+                            TinGridder gridder = new TinGridder(Arrays.copyOf(xs, n),
+                                    Arrays.copyOf(ys, n), west, north, resolution, nrows, ncols);
+                            gridder.setMaximumEdgeLength(maxDist);
+                            completed = gridder.interpolate(Arrays.copyOf(zs, n),
+                                    method == VoronoiGridder.Method.NATURAL_NEIGHBOUR
+                                    ? TinGridder.Method.NATURAL_NEIGHBOUR : TinGridder.Method.LINEAR,
+                                    noData, writer);
+                        } else {
+                            // each grid cell takes the value of the nearest point, found
+                            // from a raster of the Voronoi diagram of the points.
+                            VoronoiGridder gridder = new VoronoiGridder(Arrays.copyOf(xs, n),
+                                    Arrays.copyOf(ys, n), west, north, resolution, nrows, ncols);
+                            gridder.setMaximumDistance(maxDist);
+                            completed = gridder.interpolate(Arrays.copyOf(zs, n), method,
+                                    noData, writer);
                         }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                    if (!completed) {
+                        image.close();
+                        cancelOperation();
+                        return;
                     }
 
                     image.addMetadataEntry("Created by the "
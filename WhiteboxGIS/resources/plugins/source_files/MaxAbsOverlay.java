@@ -16,10 +16,12 @@
  */
 package plugins;
 
+import java.util.Arrays;
 import java.util.Date;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
+import whitebox.parallel.LocalCombination;
 
 /**
  * WhiteboxPlugin is used to define a plugin tool for Whitebox GIS.
@@ -158,17 +160,9 @@ public class MaxAbsOverlay implements WhiteboxPlugin {
         amIActive = true;
         
         String outputHeader = null;
-        WhiteboxRaster image = null;
         WhiteboxRaster output = null;
-        int cols = 0;
-        int rows = 0;
-        double imageNoData = -32768;
-        double outputNoData = -32768;
         int numImages;
-        double z;
-        float progress = 0;
-        int col, row;
-        int a, i;
+        int i;
         String inputFilesString = null;
         String[] imageFiles;
                 
@@ -196,53 +190,70 @@ public class MaxAbsOverlay implements WhiteboxPlugin {
         }
 
         try {
-            double[] data;
-            // check that each of the input images has the same number of rows and columns
-            // and calculate the image averages.
-            updateProgress("Calculating min values:", 0);
-            for (a = 0; a < numImages; a++) {
-                image = new WhiteboxRaster(imageFiles[a], "r");
-                imageNoData = image.getNoDataValue();
-                String label = "Loop " + String.valueOf(a + 1) + " of " + String.valueOf(numImages) + ":";
-                    
-                if (a == 0) {
-                    rows = image.getNumberRows();
-                    cols = image.getNumberColumns();
-                    outputNoData = imageNoData;
-                    output = new WhiteboxRaster(outputHeader, "rw", imageFiles[0], 
-                            WhiteboxRaster.DataType.FLOAT, outputNoData);
-                    output.setPreferredPalette(image.getPreferredPalette());
-                } else {
-                    if (image.getNumberColumns() != cols || 
-                            image.getNumberRows() != rows) {
-                        showFeedback("All input images must have the same dimensions (rows and columns).");
-                        return;
-                    }
-                }
-                for (row = 0; row < rows; row++) {
-                    data = image.getRowValues(row);
-                    for (col = 0; col < cols; col++) {
-                        if (data[col] != imageNoData) {
-                            z = output.getValue(row, col);
-                            if (z != outputNoData) {
-                                if ((data[col] * data[col]) > (z * z)) {
-                                    output.setValue(row, col, data[col]);
-                                }
-                            } else {
-                                output.setValue(row, col, data[col]);
+            final int n = numImages;
+            final double[] noData = new double[n];
+            WhiteboxRaster[] images = new WhiteboxRaster[n];
+            for (i = 0; i < n; i++) {
+                images[i] = new WhiteboxRaster(imageFiles[i], "r");
+                noData[i] = images[i].getNoDataValue();
+            }
+            final double outputNoData = noData[0];
+            
+            LocalCombination overlay;
+            try {
+                overlay = new LocalCombination(images);
+            } catch (IllegalArgumentException e) {
+                showFeedback(e.getMessage());
+                return;
+            }
+            
+            output = new WhiteboxRaster(outputHeader, "rw", imageFiles[0], 
+                    WhiteboxRaster.DataType.FLOAT, outputNoData);
+            output.setPreferredPalette(images[0].getPreferredPalette());
+            
+            // all of the images are read and compared in a single pass
+            updateProgress("Calculating max absolute values:", 0);
+            boolean completed = overlay.run(output, new LocalCombination.Combiner() {
+                @Override
+                public void combine(int row, double[][] data, double[] outputRow) {
+                    int cols = outputRow.length;
+                    Arrays.fill(outputRow, outputNoData);
+                    for (int i = 0; i < n; i++) {
+                        double[] d = data[i];
+                        for (int col = 0; col < cols; col++) {
+                            double z = d[col];
+                            if (z != noData[i] && (outputRow[col] == outputNoData 
+                                    || z * z > outputRow[col] * outputRow[col])) {
+                                outputRow[col] = z;
                             }
                         }
                     }
+                }
+            }, new LocalCombination.Progress() {
+                int oldProgress = -1;
+                
+                @Override
+                public boolean rowsCompleted(int completed, int total) {
                     if (cancelOp) {
-                        cancelOperation();
-                        return;
+                        return false;
                     }
-                    progress = (float) (100f * row / (rows - 1));
-                    updateProgress(label, (int) progress);
+                    int progress = (int) (100f * completed / total);
+                    if (progress != oldProgress) {
+                        updateProgress("Calculating max absolute values:", progress);
+                        oldProgress = progress;
+                    }
+                    return true;
                 }
-                image.close();
-                progress = a / (numImages - 1) * 100;
-                updateProgress("Calculating image average:", (int)progress);
+            });
+            
+            for (i = 0; i < n; i++) {
+                images[i].close();
+            }
+            
+            if (!completed) {
+                output.close();
+                cancelOperation();
+                return;
             }
 
             output.addMetadataEntry("Created by the "
@@ -252,6 +263,7 @@ public class MaxAbsOverlay implements WhiteboxPlugin {
 
             // returning a header file string displays the image.
             returnData(outputHeader);
+            
         } catch (OutOfMemoryError oe) {
             myHost.showFeedback("An out-of-memory error has occurred during operation.");
         } catch (Exception e) {
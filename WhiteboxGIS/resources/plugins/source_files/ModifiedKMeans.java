@@ -20,6 +20,7 @@ import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.Random;
+import whitebox.algorithms.KMeansClusterer;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.geospatialfiles.WhiteboxRasterBase.DataScale;
 import whitebox.geospatialfiles.WhiteboxRasterInfo;
@@ -161,16 +162,14 @@ public class ModifiedKMeans implements WhiteboxPlugin {
         String[] imageFiles = null;
         String outputHeader = null;
         WhiteboxRasterInfo[] images = null;
-        WhiteboxRaster ouptut = null;
+        KMeansClusterer clusterer = null;
         int nCols = 0;
         int nRows = 0;
-        double z;
         int numClasses = 0;
         int numImages;
         int progress = 0;
         int col, row;
         int a, i, j;
-        double[][] data;
         double noData = -32768;
         double[][] classCentres = null;
         double[] classCentre;
@@ -178,21 +177,17 @@ public class ModifiedKMeans implements WhiteboxPlugin {
         double[][] imageMetaData;
         long[] numPixelsInEachClass;
         int maxIterations = 100;
-        double dist, minDist;
-        int whichClass;
+        double dist;
         //double minAdjustment = 10;
         byte initializationMode = 0; // maximum dispersion along diagonal
         long numPixelsChanged = 0;
         long totalNumCells = 0;
-        boolean totalNumCellsCounted = false;
         double percentChanged = 0;
         double percentChangedThreshold = 1.0;
         double centroidMergeDist = 30;
         int minimumAllowableClassSize = 1;
         int initialNumClasses = 10000;
         double maxDist = Double.POSITIVE_INFINITY;
-        int unassignedClass = -1;
-        boolean isNoDataPixel;
 
         if (args.length <= 0) {
             showFeedback("Plugin parameters have not been set.");
@@ -247,7 +242,6 @@ public class ModifiedKMeans implements WhiteboxPlugin {
 
             numClasses = initialNumClasses;
             
-            data = new double[numImages][];
             numPixelsInEachClass = new long[numImages];
 
             // now set up the output image
@@ -281,10 +275,30 @@ public class ModifiedKMeans implements WhiteboxPlugin {
                 }
             }
 
+            // read the image stack into memory once, unless it is too large,
+            // in which case it is re-read from disk on each iteration
+            clusterer = new KMeansClusterer(images);
+            if (maxDist < Double.POSITIVE_INFINITY) {
+                clusterer.setMaximumDistance(Math.sqrt(maxDist));
+            }
+            if (clusterer.canLoadIntoMemory()) {
+                for (row = 0; row < nRows; row++) {
+                    clusterer.loadRow(row);
+                    if (cancelOp) {
+                        cancelOperation();
+                        return;
+                    }
+                    progress = (int) (100f * row / (nRows - 1));
+                    updateProgress("Reading data:", progress);
+                }
+            }
+            totalNumCells = clusterer.getNumValidPixels();
+
             j = 0;
-            whichClass = 0;
+            boolean centresModified = true;
             do {
                 if (j > 0) {
+                    centresModified = false;
                     numClasses = classCentres.length; //centres.size();
                     
                     centres.clear();
@@ -306,6 +320,7 @@ public class ModifiedKMeans implements WhiteboxPlugin {
                             centres.remove(a);
                             numPixels.remove(a);
                             flag = true;
+                            centresModified = true;
                             a = -1;
                         }
                         a++;
@@ -353,6 +368,7 @@ public class ModifiedKMeans implements WhiteboxPlugin {
                                         numPixels.add(totalPix);
                                         
                                         flag = true;
+                                        centresModified = true;
                                     }
                                     if (flag) {
                                         break; // once two have been merged, stop looking and start over.
@@ -371,6 +387,7 @@ public class ModifiedKMeans implements WhiteboxPlugin {
                             centres.remove(a);
                             numPixels.remove(a);
                             flag = true;
+                            centresModified = true;
                             a = -1;
                         }
                         a++;
@@ -382,128 +399,39 @@ public class ModifiedKMeans implements WhiteboxPlugin {
                 }
 
                 numClasses = centres.size();
-                classCentres = new double[numClasses][numImages];
-                for (a = 0; a < numClasses; a++) {
-                    classCentre = centres.get(a);
-                    classCentres[a] = classCentre.clone();                  
+                if (centresModified) {
+                    classCentres = new double[numClasses][numImages];
+                    for (a = 0; a < numClasses; a++) {
+                        classCentre = centres.get(a);
+                        classCentres[a] = classCentre.clone();                  
+                    }
+                    clusterer.setClassCentres(classCentres);
                 }
                 
                 j++;
-                // assign each pixel to a class
+                // assign each pixel to a class and update the class centroids
                 updateProgress("Loop " + j, 1);
-                double[][] classCentreData = new double[numClasses][numImages];
-                numPixelsInEachClass = new long[numClasses];
-
-                numPixelsChanged = 0;
-                
-                for (row = 0; row < nRows; row++) {
-                    for (i = 0; i < numImages; i++) {
-                        data[i] = images[i].getRowValues(row);
-                    }
-                    for (col = 0; col < nCols; col++) {
-                        // check to see if the cell is a nodata value in any of the input images
-                        isNoDataPixel = false;
-                        for (i = 0; i < numImages; i++) {
-                            if (data[i][col] == imageMetaData[i][0]) { 
-                                isNoDataPixel = true; 
-                                break;
-                            }
-                        }
-                        if (!isNoDataPixel) {
-                            if (!totalNumCellsCounted) {
-                                totalNumCells++;
-                            }
-                            // calculate the squared distance to each of the centroids
-                            // and assign the pixel the value of the nearest centroid.
-                            minDist = Double.POSITIVE_INFINITY;
-                            whichClass = unassignedClass;
-                            for (a = 0; a < numClasses; a++) {
-                                dist = 0;
-                                for (i = 0; i < numImages; i++) {
-                                    dist += (data[i][col] - classCentres[a][i]) * (data[i][col] - classCentres[a][i]);
-                                }
-                                if (dist < minDist && dist <= maxDist) {
-                                    minDist = dist;
-                                    whichClass = a;
-                                }
-                            }
-                            // See if the assigned class has changed and if it has add it to the total changed cells.
-                            // This is a criterion for stopping.
-                            z = output.getValue(row, col);
-                            if ((int)z != whichClass) {
-                                numPixelsChanged++;
-                                
-                                // Assign the output pixel the class value
-                                output.setValue(row, col, whichClass);
-                            }
-                            if (whichClass != unassignedClass) {
-                                numPixelsInEachClass[whichClass]++;
-
-                                for (i = 0; i < numImages; i++) {
-                                    classCentreData[whichClass][i] += (data[i][col] - imageMetaData[i][1]);
-                                }
-                            }
-                            
-                        } else {
-                            output.setValue(row, col, noData);
-                        }
-                    }
-                    if (cancelOp) {
-                        cancelOperation();
-                        return;
-                    }
-                    progress = (int) (100f * row / (nRows - 1));
-                    updateProgress("Loop " + j, progress);
-                }
-                totalNumCellsCounted = true;
-
-                // Update the class centroids
-                for (a = 0; a < numClasses; a++) {
-                    if (numPixelsInEachClass[a] > 0) {
-                        double[] newClassCentre = new double[numImages];
-                        for (i = 0; i < numImages; i++) {
-                            newClassCentre[i] = classCentreData[a][i] / numPixelsInEachClass[a] + imageMetaData[i][1];
-                        }
-                        for (i = 0; i < numImages; i++) {
-                            classCentres[a][i] = newClassCentre[i];
-                        }
-                    }
+                numPixelsChanged = clusterer.iterate();
+                totalNumCells = clusterer.getNumValidPixels();
+                classCentres = clusterer.getClassCentres();
+                numPixelsInEachClass = clusterer.getNumPixelsInEachClass();
+                if (cancelOp) {
+                    cancelOperation();
+                    return;
                 }
                 
                 percentChanged = (double)numPixelsChanged / totalNumCells * 100;
                 clusterHistory[j - 1] = numClasses;
                 changeHistory[j - 1] = percentChanged;
+                progress = (int) (100f * j / maxIterations);
+                updateProgress("Loop " + j, progress);
             } while ((percentChanged > percentChangedThreshold) && (j < maxIterations));
 
-            // prepare the report
-            double[] totalDeviations = new double[numClasses];
-            int numberOfUnassignedPixels = 0;
+            // output the classified image
             for (row = 0; row < nRows; row++) {
-                for (i = 0; i < numImages; i++) {
-                    data[i] = images[i].getRowValues(row);
-                }
+                double[] classes = clusterer.classifyRow(row, noData);
                 for (col = 0; col < nCols; col++) {
-                    isNoDataPixel = false;
-                    for (i = 0; i < numImages; i++) {
-                        if (data[i][col] == imageMetaData[i][0]) {
-                            isNoDataPixel = true;
-                            break;
-                        }
-                    }
-                    if (!isNoDataPixel) {
-                        whichClass = (int) (output.getValue(row, col));
-                        if (whichClass != unassignedClass) {
-                            dist = 0;
-                            for (i = 0; i < numImages; i++) {
-                                dist += (data[i][col] - classCentres[whichClass][i]) * (data[i][col] - classCentres[whichClass][i]);
-                            }
-                            totalDeviations[whichClass] += dist;
-                        } else {
-                            numberOfUnassignedPixels++;
-                        }
-                    } else {
-                        output.setValue(row, col, noData);
-                    }
+                    output.setValue(row, col, classes[col]);
                 }
                 if (cancelOp) {
                     cancelOperation();
@@ -512,6 +440,11 @@ public class ModifiedKMeans implements WhiteboxPlugin {
                 progress = (int) (100f * row / (nRows - 1));
                 updateProgress("Loop " + j, progress);
             }
+            double[] totalDeviations = clusterer.getClassDeviations();
+            int numberOfUnassignedPixels = (int) clusterer.getNumValidPixels();
+            for (a = 0; a < numClasses; a++) {
+                numberOfUnassignedPixels -= numPixelsInEachClass[a];
+            }
             
             double[] standardDeviations = new double[numClasses];
             for (a = 0; a < numClasses; a++) {
@@ -603,6 +536,9 @@ public class ModifiedKMeans implements WhiteboxPlugin {
             myHost.showFeedback("An error has occurred during operation. See log file for details.");
             myHost.logException("Error in " + getDescriptiveName(), e);
         } finally {
+            if (clusterer != null) {
+                clusterer.close();
+            }
             updateProgress("Progress: ", 0);
             // tells the main application that this process is completed.
             amIActive = false;
@@ -18,11 +18,13 @@ package plugins;
 
 import java.util.Date;
 import java.io.File;
+import whitebox.algorithms.Resampler;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.geospatialfiles.WhiteboxRasterBase;
 import whitebox.geospatialfiles.WhiteboxRasterInfo;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
+import whitebox.parallel.RowBands;
 import whitebox.utilities.StringUtilities;
 
 /**
@@ -188,11 +190,7 @@ public class MosaicWithFeathering implements WhiteboxPlugin {
     public void run() {
         amIActive = true;
 
-        int progress;
-        int row, col, i;
-        int baseCol, baseRow, appendCol, appendRow;
-        double x, y, z, zN, zBase, zAppend;
-        double w1, w2, dist1, dist2, sumDist;
+        int row, col;
         boolean performHistoMatching = true;
 
 
@@ -206,9 +204,8 @@ public class MosaicWithFeathering implements WhiteboxPlugin {
         String inputHeader = args[1];
         String outputHeader = args[2];
         String resampleMethod = args[3].toLowerCase().trim();
-        if (!resampleMethod.equals("nearest neighbour")
-                && !resampleMethod.equals("bilinear")
-                && !resampleMethod.contains("cubic")) {
+        final Resampler.Method method = Resampler.Method.fromString(resampleMethod);
+        if (method == null) {
             showFeedback("Resample method not recognized");
             return;
         }
@@ -233,12 +230,15 @@ public class MosaicWithFeathering implements WhiteboxPlugin {
             
             WhiteboxRaster baseRaster = new WhiteboxRaster(inputBaseHeader, "r");
             WhiteboxRaster appendRaster = new WhiteboxRaster(inputHeader, "r");
+            
+            boolean rgbMode = ((baseRaster.getDataScale() == WhiteboxRasterBase.DataScale.RGB) & 
+                    (appendRaster.getDataScale() == WhiteboxRasterBase.DataScale.RGB));
 
             double cellSizeX = baseRaster.getCellSizeX();
             double cellSizeY = baseRaster.getCellSizeY();
             double baseNoData = baseRaster.getNoDataValue();
             double appendNoData = appendRaster.getNoDataValue();
-            double outputNoData = baseNoData;
+            final double outputNoData = baseNoData;
             int baseCols = baseRaster.getNumberColumns();
             int baseRows = baseRaster.getNumberRows();
             int appendCols = appendRaster.getNumberColumns();
@@ -338,6 +338,7 @@ public class MosaicWithFeathering implements WhiteboxPlugin {
                     nRows, nCols, WhiteboxRasterBase.DataScale.CONTINUOUS,
                     WhiteboxRasterBase.DataType.FLOAT, outputNoData, outputNoData);
 
+            if (rgbMode) { destination.setDataScale(WhiteboxRasterBase.DataScale.RGB); }
 
             int nRowsLessOne = nRows - 1;
 
@@ -401,195 +402,104 @@ public class MosaicWithFeathering implements WhiteboxPlugin {
 
             calculateDistance(distToEdgeAppend);
             
-            if (resampleMethod.contains("nearest")) {
-                for (row = 0; row < nRows; row++) {
-                    for (col = 0; col < nCols; col++) {
-                        x = destination.getXCoordinateFromColumn(col);
-                        y = destination.getYCoordinateFromRow(row);
-
-                        baseCol = baseRaster.getColumnFromXCoordinate(x);
-                        baseRow = baseRaster.getRowFromYCoordinate(y);
-
-                        appendCol = appendRaster.getColumnFromXCoordinate(x);
-                        appendRow = appendRaster.getRowFromYCoordinate(y);
-
-                        zBase = baseRaster.getValue(baseRow, baseCol);
-                        zAppend = appendRaster.getValue(appendRow, appendCol);
-
-                        if (zBase != baseNoData && zAppend == appendNoData) {
-                            destination.setValue(row, col, zBase);
-                        } else if (zBase == baseNoData && zAppend != appendNoData) {
-                            destination.setValue(row, col, zAppend);
-                        } else if (zBase == baseNoData && zAppend == appendNoData) {
-                            destination.setValue(row, col, outputNoData);
-                        } else { // two valid values.
-
-                            // find the distance to the nearest edge in the base image
-                            dist1 = distToEdgeBase.getValue(baseRow, baseCol); //baseCol;
-                            dist2 = distToEdgeAppend.getValue(appendRow, appendCol); //appendCol;
-
-                            sumDist = Math.pow(dist1, power) + Math.pow(dist2, power);
-
-                            w1 = Math.pow(dist1, power) / sumDist;
-                            w2 = Math.pow(dist2, power) / sumDist;
-
-                            z = w1 * zBase + w2 * zAppend;
-
-                            destination.setValue(row, col, z);
-                        }
-                    }
-                    if (cancelOp) {
-                        cancelOperation();
-                        return;
-                    }
-                    progress = (int) (100f * row / nRowsLessOne);
-                    updateProgress("Resampling images: ", progress);
-                }
-            } else {
-                if (destination.getDataType() != WhiteboxRaster.DataType.DOUBLE
-                        && destination.getDataType() != WhiteboxRaster.DataType.FLOAT) {
-                    showFeedback("The destination image is not of an appropriate data"
-                            + " type (i.e. double or float) to perform this operation.");
-                    return;
-                }
-                double dX, dY;
-                double srcRow, srcCol;
-                double originRow, originCol;
-                double rowN, colN;
-                double sumOfDist;
-                double[] shiftX;
-                double[] shiftY;
-                int numNeighbours = 0;
-                double[][] neighbour;
-                if (resampleMethod.contains("cubic")) {
-                    shiftX = new double[]{-1, 0, 1, 2, -1, 0, 1, 2, -1, 0, 1, 2, -1, 0, 1, 2};
-                    shiftY = new double[]{-1, -1, -1, -1, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2};
-                    numNeighbours = 16;
-                    neighbour = new double[numNeighbours][2];
-                } else { // resampleMethod is "bilinear"
-                    shiftX = new double[]{0, 1, 0, 1};
-                    shiftY = new double[]{0, 0, 1, 1};
-                    numNeighbours = 4;
-                    neighbour = new double[numNeighbours][2];
-                }
-
-
-                for (row = 0; row < nRows; row++) {
-                    for (col = 0; col < nCols; col++) {
-                        x = destination.getXCoordinateFromColumn(col);
-                        y = destination.getYCoordinateFromRow(row);
-
-                        baseCol = baseRaster.getColumnFromXCoordinate(x);
-                        baseRow = baseRaster.getRowFromYCoordinate(y);
-
-                        // what are the exact col and row of the image?
-                        srcRow = (baseNorth - y) / baseNSRange * (baseRows - 0.5);
-                        srcCol = (x - baseWest) / baseEWRange * (baseCols - 0.5);
-
-                        originRow = Math.floor(srcRow);
-                        originCol = Math.floor(srcCol);
-
-                        sumOfDist = 0;
-                        for (i = 0; i < numNeighbours; i++) {
-                            rowN = originRow + shiftY[i];
-                            colN = originCol + shiftX[i];
-                            neighbour[i][0] = baseRaster.getValue((int) rowN, (int) colN);
-                            dY = rowN - srcRow;
-                            dX = colN - srcCol;
-
-                            if ((dX + dY) != 0 && neighbour[i][0] != baseNoData) {
-                                neighbour[i][1] = 1 / (dX * dX + dY * dY);
-                                sumOfDist += neighbour[i][1];
-                            } else if (neighbour[i][0] == baseNoData) {
-                                neighbour[i][1] = 0;
-                            } else { // dist is zero
-                                neighbour[i][1] = 99999999;
-                                sumOfDist += neighbour[i][1];
-                            }
-                        }
-
-                        if (sumOfDist > 0) {
-                            z = 0;
-                            for (i = 0; i < numNeighbours; i++) {
-                                z += neighbour[i][0] * neighbour[i][1] / sumOfDist;
-                            }
-                            zBase = z;
-                        } else {
-                            zBase = baseNoData;
-                        }
-
-
-                        appendCol = appendRaster.getColumnFromXCoordinate(x);
-                        appendRow = appendRaster.getRowFromYCoordinate(y);
-
-                        srcRow = (appendNorth - y) / appendNSRange * (appendRows - 0.5);
-                        srcCol = (x - appendWest) / appendEWRange * (appendCols - 0.5);
-
-                        originRow = Math.floor(srcRow);
-                        originCol = Math.floor(srcCol);
-
-                        sumOfDist = 0;
-                        for (i = 0; i < numNeighbours; i++) {
-                            rowN = originRow + shiftY[i];
-                            colN = originCol + shiftX[i];
-                            neighbour[i][0] = appendRaster.getValue((int) rowN, (int) colN);
-                            dY = rowN - srcRow;
-                            dX = colN - srcCol;
-
-                            if ((dX + dY) != 0 && neighbour[i][0] != appendNoData) {
-                                neighbour[i][1] = 1 / (dX * dX + dY * dY);
-                                sumOfDist += neighbour[i][1];
-                            } else if (neighbour[i][0] == appendNoData) {
-                                neighbour[i][1] = 0;
-                            } else { // dist is zero
-                                neighbour[i][1] = 99999999;
-                                sumOfDist += neighbour[i][1];
-                            }
-                        }
+            if (method != Resampler.Method.NEAREST_NEIGHBOUR
+                    && destination.getDataType() != WhiteboxRaster.DataType.DOUBLE
+                    && destination.getDataType() != WhiteboxRaster.DataType.FLOAT) {
+                showFeedback("The destination image is not of an appropriate data"
+                        + " type (i.e. double or float) to perform this operation.");
+                return;
+            }
+            
+            // the distance images are read by the worker threads
+            distToEdgeBase.flush();
+            distToEdgeAppend.flush();
+            
+            final Resampler baseResampler = new Resampler(baseRaster, method);
+            final Resampler appendResampler = new Resampler(appendRaster, method);
+            baseResampler.setRGBMode(rgbMode);
+            appendResampler.setRGBMode(rgbMode);
+            final Resampler baseDistResampler = new Resampler(distToEdgeBase,
+                    Resampler.Method.NEAREST_NEIGHBOUR);
+            final Resampler appendDistResampler = new Resampler(distToEdgeAppend,
+                    Resampler.Method.NEAREST_NEIGHBOUR);
+            final WhiteboxRaster dest = destination;
+            final boolean isRGB = rgbMode;
+            final double p = power;
+            final int cols = nCols;
+            final int rows = nRows;
+            boolean completed = RowBands.process(nRows, new RowBands.Task<double[][]>() {
+                @Override
+                public double[][] process(int startRow, int endRow) {
+                    double[][] zBase = baseResampler.resample(dest, startRow, endRow, 0, cols);
+                    double[][] zAppend = appendResampler.resample(dest, startRow, endRow, 0, cols);
+                    double[][] distBase = baseDistResampler.resample(dest, startRow, endRow, 0, cols);
+                    double[][] distAppend = appendDistResampler.resample(dest, startRow, endRow, 0, cols);
+                    double baseNoData = baseResampler.getNoDataValue();
+                    double appendNoData = appendResampler.getNoDataValue();
+                    double[][] ret = new double[endRow - startRow][cols];
+                    for (int r = 0; r < endRow - startRow; r++) {
+                        for (int c = 0; c < cols; c++) {
+                            double z1 = zBase[r][c];
+                            double z2 = zAppend[r][c];
+                            boolean valid1 = !Double.isNaN(z1) && z1 != baseNoData;
+                            boolean valid2 = !Double.isNaN(z2) && z2 != appendNoData;
+                            if (valid1 && !valid2) {
+                                ret[r][c] = z1;
+                            } else if (!valid1 && valid2) {
+                                ret[r][c] = z2;
+                            } else if (!valid1 && !valid2) {
+                                ret[r][c] = outputNoData;
+                            } else { // two valid values.
+                                // weight each by its distance to the nearest image edge
+                                double w1 = Math.pow(distBase[r][c], p);
+                                double w2 = Math.pow(distAppend[r][c], p);
+                                double sumDist = w1 + w2;
+                                if (sumDist > 0) {
+                                    w1 = w1 / sumDist;
+                                    w2 = w2 / sumDist;
+                                } else {
+                                    w1 = 0.5;
+                                    w2 = 0.5;
+                                }
 
-                        if (sumOfDist > 0) {
-                            z = 0;
-                            for (i = 0; i < numNeighbours; i++) {
-                                z += (neighbour[i][0] * neighbour[i][1]) / sumOfDist;
+                                if (!isRGB) {
+                                    ret[r][c] = w1 * z1 + w2 * z2;
+                                } else {
+                                    double r1 = (double) ((int) z1 & 0xFF);
+                                    double g1 = (double) (((int) z1 >> 8) & 0xFF);
+                                    double b1 = (double) (((int) z1 >> 16) & 0xFF);
+                                    double r2 = (double) ((int) z2 & 0xFF);
+                                    double g2 = (double) (((int) z2 >> 8) & 0xFF);
+                                    double b2 = (double) (((int) z2 >> 16) & 0xFF);
+
+                                    int red = (int) ((r1 * w1) + (r2 * w2));
+                                    int green = (int) ((g1 * w1) + (g2 * w2));
+                                    int blue = (int) ((b1 * w1) + (b2 * w2));
+                                    ret[r][c] = (double) ((255 << 24) | (blue << 16) | (green << 8) | red);
+                                }
                             }
-                            zAppend = z;
-                        } else {
-                            zAppend = appendNoData;
-                        }
-
-                        if (zBase != baseNoData && zAppend == appendNoData) {
-                            destination.setValue(row, col, zBase);
-                        } else if (zBase == baseNoData && zAppend != appendNoData) {
-                            destination.setValue(row, col, zAppend);
-                        } else if (zBase == baseNoData && zAppend == appendNoData) {
-                            destination.setValue(row, col, outputNoData);
-                        } else { // two valid values.
-
-                            // find the distance to the nearest edge in the base image
-                            dist1 = distToEdgeBase.getValue(baseRow, baseCol); //baseCol;
-                            dist2 = distToEdgeAppend.getValue(appendRow, appendCol); //appendCol;
-
-                            sumDist = dist1 + dist2;
-
-                            w1 = dist1 / sumDist;
-                            w2 = dist2 / sumDist;
-
-                            z = w1 * zBase + w2 * zAppend;
-
-                            destination.setValue(row, col, z);
                         }
                     }
-                    if (cancelOp) {
-                        cancelOperation();
-                        return;
+                    return ret;
+                }
+            }, new RowBands.Consumer<double[][]>() {
+                @Override
+                public boolean consume(int startRow, int endRow, double[][] result) {
+                    for (int r = startRow; r < endRow; r++) {
+                        double[] vals = result[r - startRow];
+                        for (int c = 0; c < cols; c++) {
+                            dest.setValue(r, c, vals[c]);
+                        }
                     }
-                    progress = (int) (100f * row / nRowsLessOne);
-                    updateProgress("Resampling images: ", progress);
+                    updateProgress("Resampling images: ", (int) (100f * endRow / rows));
+                    return !cancelOp;
                 }
-
+            });
+            if (!completed) {
+                cancelOperation();
+                return;
             }
             
-            
             destination.addMetadataEntry("Created by the "
                     + getDescriptiveName() + " tool.");
             destination.addMetadataEntry("Created on " + new Date());
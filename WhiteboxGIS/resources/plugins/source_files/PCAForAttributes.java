@@ -42,6 +42,7 @@ import whitebox.structures.ExtensionFileFilter;
 import java.util.ArrayList;
 import whitebox.geospatialfiles.shapefile.attributes.AttributeTable;
 import whitebox.geospatialfiles.shapefile.attributes.DBFField;
+import whitebox.stats.MultibandStatistics;
 
 
 /**
@@ -183,9 +184,7 @@ public class PCAForAttributes implements WhiteboxPlugin {
         int progress = 0;
         int lastProgress = 0;
         int row;
-        int a, i, j;
-        double[] fieldAverages;
-        double[] fieldTotals;
+        int i, j;
         boolean standardizedPCA = false;
         int numberOfComponentsOutput = 0;
         
@@ -233,13 +232,16 @@ public class PCAForAttributes implements WhiteboxPlugin {
                 return;
             }
          
+            // the means and covariances are accumulated as the records are read
             double[][] fieldArray = new double[numRecs][numFields];
+            MultibandStatistics stats = new MultibandStatistics(numFields);
             Object[] rec;
             for (i = 0; i < numRecs; i++) {
                 rec = table.getRecord(i);
                 for (j = 0; j < numFields; j++) {
                     fieldArray[i][j] = (Double)(rec[PCAFields.get(j)]);
                 }
+                stats.add(fieldArray[i]);
                 if (cancelOp) {
                     cancelOperation();
                     return;
@@ -249,55 +251,8 @@ public class PCAForAttributes implements WhiteboxPlugin {
                 lastProgress = progress;
             }
             
-            fieldAverages = new double[numFields];
-            fieldTotals = new double[numFields];
-            
-            // Calculate the means
-            for (row = 0; row < numRecs; row++) {
-                for (i = 0; i < numFields; i++) {
-                    fieldTotals[i] += fieldArray[row][i];
-                }
-            }
-            
-            for (i = 0; i < numFields; i++) {
-                fieldAverages[i] = fieldTotals[i] / numRecs;
-            }
-            
-            // Calculate the covariance matrix and total deviations
-            double[] fieldTotalDeviation = new double[numFields];
-            double[][] covariances = new double[numFields][numFields];
-            double[][] correlationMatrix = new double[numFields][numFields];
-            
-            for (row = 0; row < numRecs; row++) {
-                for (i = 0; i < numFields; i++) {
-                    fieldTotalDeviation[i] += (fieldArray[row][i] - fieldAverages[i])
-                            * (fieldArray[row][i] - fieldAverages[i]);
-                    for (a = 0; a < numFields; a++) {
-                        covariances[i][a] += (fieldArray[row][i] - fieldAverages[i])
-                            * (fieldArray[row][a] - fieldAverages[a]);
-
-                    }
-                }
-                if (cancelOp) {
-                    cancelOperation();
-                    return;
-                }
-                progress = (int) (100f * row / (numRecs - 1));
-                if (progress != lastProgress) { updateProgress("Calculating covariances:", progress);}
-                lastProgress = progress;
-            }
-          
-            for (i = 0; i < numFields; i++) {
-                for (a = 0; a < numFields; a++) {
-                    correlationMatrix[i][a] = covariances[i][a] / (Math.sqrt(fieldTotalDeviation[i] * fieldTotalDeviation[a]));
-                }
-            }
-            
-            for (i = 0; i < numFields; i++) {
-                for (a = 0; a < numFields; a++) {
-                    covariances[i][a] = covariances[i][a] / (numRecs- 1);
-                }
-            }
+            double[][] covariances = stats.getCovarianceMatrix();
+            double[][] correlationMatrix = stats.getCorrelationMatrix();
             
             // Calculate the eigenvalues and eigenvectors
             Matrix cov = null;
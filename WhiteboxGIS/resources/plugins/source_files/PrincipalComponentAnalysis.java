@@ -44,6 +44,9 @@ import java.awt.print.*;
 import javax.print.attribute.*;
 import whitebox.structures.ExtensionFileFilter;
 import java.util.ArrayList;
+import whitebox.algorithms.LinearBandCombination;
+import whitebox.parallel.RowBands;
+import whitebox.stats.MultibandStatistics;
 
 /**
  * WhiteboxPlugin is used to define a plugin tool for Whitebox GIS.
@@ -183,16 +186,9 @@ public class PrincipalComponentAnalysis implements WhiteboxPlugin {
         WhiteboxRasterInfo[] images = null;
         int nCols = 0;
         int nRows = 0;
-        double z;
         int numImages;
         int progress = 0;
-        int col, row;
         int a, i, j;
-        double[] imageAverages;
-        double[] imageTotals;
-        double[] imageNumPixels;
-        double[][] data;
-        double[] noDataValues;
         String pathSep = File.separator;
         boolean standardizedPCA = false;
         int numberOfComponentImagesToCreate = 0;
@@ -221,15 +217,8 @@ public class PrincipalComponentAnalysis implements WhiteboxPlugin {
             numImages = imageFiles.length;
             images = new WhiteboxRasterInfo[numImages];
             
-            imageAverages = new double[numImages];
-            imageTotals = new double[numImages];
-            imageNumPixels = new double[numImages];
-            noDataValues = new double[numImages];
-            data = new double[numImages][];
-            
             for (i = 0; i < numImages; i++) {
                 images[i] = new WhiteboxRasterInfo(imageFiles[i]);
-                noDataValues[i] = images[i].getNoDataValue();
                 if (i == 0) {
                     nCols = images[i].getNumberColumns();
                     nRows = images[i].getNumberRows();
@@ -244,74 +233,32 @@ public class PrincipalComponentAnalysis implements WhiteboxPlugin {
                 }
             }
 
-            // Calculate the means
-            for (row = 0; row < nRows; row++) {
-                for (i = 0; i < numImages; i++) {
-                    data[i] = images[i].getRowValues(row);
-                }
-                for (col = 0; col < nCols; col++) {
-                    for (i = 0; i < numImages; i++) {
-                        if (data[i][col] != noDataValues[i]) {
-                            imageTotals[i] += data[i][col];
-                            imageNumPixels[i]++;
-                        }
-
-                    }
-                }
-                if (cancelOp) {
-                    cancelOperation();
-                    return;
-                }
-                progress = (int) (100f * row / (nRows - 1));
-                updateProgress("Calculating image means:", progress);
-            }
-            
-            for (i = 0; i < numImages; i++) {
-                imageAverages[i] = imageTotals[i] / imageNumPixels[i];
-            }
-            
-            // Calculate the covariance matrix and total deviations
-            double[] imageTotalDeviation = new double[numImages];
-            double[][] covariances = new double[numImages][numImages];
-            double[][] correlationMatrix = new double[numImages][numImages];
-            for (row = 0; row < nRows; row++) {
-                for (i = 0; i < numImages; i++) {
-                    data[i] = images[i].getRowValues(row);
-                }
-                for (col = 0; col < nCols; col++) {
-                    for (i = 0; i < numImages; i++) {
-                        if (data[i][col] != noDataValues[i]) {
-                            imageTotalDeviation[i] += (data[i][col] - imageAverages[i])
-                                    * (data[i][col] - imageAverages[i]);
-                            for (a = 0; a < numImages; a++) {
-                                if (data[a][col] != noDataValues[a]) {
-                                    covariances[i][a] += (data[i][col] - imageAverages[i]) 
-                                            * (data[a][col] - imageAverages[a]);
-                                }
-                            }
-                        }
-
-                    }
+            // Calculate the means, covariances and correlations in a single
+            // pass, with each block of rows handled on a separate thread
+            final WhiteboxRasterInfo[] inputImages = images;
+            final MultibandStatistics stats = new MultibandStatistics(numImages);
+            final int rows = nRows;
+            boolean completed = RowBands.process(nRows, new RowBands.Task<MultibandStatistics>() {
+                @Override
+                public MultibandStatistics process(int startRow, int endRow) {
+                    return MultibandStatistics.accumulateRows(inputImages, startRow, endRow);
                 }
-                if (cancelOp) {
-                    cancelOperation();
-                    return;
+            }, new RowBands.Consumer<MultibandStatistics>() {
+                @Override
+                public boolean consume(int startRow, int endRow, MultibandStatistics result) {
+                    stats.merge(result);
+                    updateProgress("Calculating covariances:", (int) (100f * endRow / rows));
+                    return !cancelOp;
                 }
-                progress = (int) (100f * row / (nRows - 1));
-                updateProgress("Calculating covariances:", progress);
+            });
+            if (!completed) {
+                cancelOperation();
+                return;
             }
             
-            for (i = 0; i < numImages; i++) {
-                for (a = 0; a < numImages; a++) {
-                    correlationMatrix[i][a] = covariances[i][a] / (Math.sqrt(imageTotalDeviation[i] * imageTotalDeviation[a]));
-                }
-            }
+            double[][] covariances = stats.getCovarianceMatrix();
+            double[][] correlationMatrix = stats.getCorrelationMatrix();
             
-            for (i = 0; i < numImages; i++) {
-                for (a = 0; a < numImages; a++) {
-                    covariances[i][a] = covariances[i][a] / (imageNumPixels[i] - 1);
-                }
-            }
             // Calculate the eigenvalues and eigenvectors
             Matrix cov = null;
             if (!standardizedPCA) {
@@ -354,6 +301,36 @@ public class PrincipalComponentAnalysis implements WhiteboxPlugin {
                 j++;
             }
             
+            // create all of the component images in a single pass through the data
+            int numOutputs = Math.min(numComponents, numberOfComponentImagesToCreate);
+            final double[][] outputVectors = new double[numOutputs][];
+            final WhiteboxRaster[] outputs = new WhiteboxRaster[numOutputs];
+            j = 0;
+            for (PrincipalComponent pc : principalComponents) {
+                if (j < numOutputs) {
+                    outputVectors[j] = pc.eigenVector.clone();
+                    String outputHeader = workingDirectory + pathSep + outputName + "_comp" + (j + 1) + ".dep";
+                    outputs[j] = new WhiteboxRaster(outputHeader, "rw",
+                            imageFiles[0], WhiteboxRaster.DataType.FLOAT, 0);
+                    outputs[j].setDataScale(DataScale.CONTINUOUS);
+                }
+                j++;
+            }
+            if (numOutputs > 0) {
+                LinearBandCombination projection = new LinearBandCombination(inputImages, outputVectors);
+                completed = projection.writeOutputs(outputs, new RowBands.Consumer<Void>() {
+                    @Override
+                    public boolean consume(int startRow, int endRow, Void result) {
+                        updateProgress("Creating component images:", (int) (100f * endRow / rows));
+                        return !cancelOp;
+                    }
+                });
+                if (!completed) {
+                    cancelOperation();
+                    return;
+                }
+            }
+            
             DecimalFormat df1 = new DecimalFormat("0.00");
             DecimalFormat df2 = new DecimalFormat("0.0000");
             DecimalFormat df3 = new DecimalFormat("0.000000");
@@ -377,36 +354,8 @@ public class PrincipalComponentAnalysis implements WhiteboxPlugin {
                 eigenvec += "]";
                 ret += eigenvec + "\n";
                 
-                if (j < numberOfComponentImagesToCreate) {
-                    // now set up the output image
-                    String outputHeader = workingDirectory + pathSep + outputName + "_comp" + (j + 1) + ".dep";
-                    WhiteboxRaster output = new WhiteboxRaster(outputHeader, "rw",
-                            imageFiles[0], WhiteboxRaster.DataType.FLOAT, 0);
-                    output.setDataScale(DataScale.CONTINUOUS);
-
-                    for (row = 0; row < nRows; row++) {
-                        for (i = 0; i < numImages; i++) {
-                            data[i] = images[i].getRowValues(row);
-                        }
-                        for (col = 0; col < nCols; col++) {
-                            if (data[0][col] != noDataValues[0]) {
-                                z = 0;
-                                for (i = 0; i < numImages; i++) {
-                                    z += data[i][col] * eigenvector[i];
-                                }
-                                output.setValue(row, col, z);
-                            } else {
-                                output.setValue(row, col, noDataValues[0]);
-                            }
-                        }
-                        if (cancelOp) {
-                            cancelOperation();
-                            return;
-                        }
-                        progress = (int) (100f * row / (nRows - 1));
-                        updateProgress("Creating component images:", progress);
-                    }
-
+                if (j < numOutputs) {
+                    WhiteboxRaster output = outputs[j];
                     output.addMetadataEntry("Created by the "
                             + getDescriptiveName() + " tool.");
                     output.addMetadataEntry("Created on " + new Date());
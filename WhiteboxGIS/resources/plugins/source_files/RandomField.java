@@ -18,12 +18,12 @@
 package plugins;
 
 import java.util.Date;
-import java.util.Iterator;
-import java.util.PriorityQueue;
-import java.util.Random;
+import java.util.SplittableRandom;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
+import whitebox.parallel.MonteCarlo;
+import whitebox.parallel.RowBands;
 
 /**
  * WhiteboxPlugin is used to define a plugin tool for Whitebox GIS.
@@ -191,13 +191,8 @@ public class RandomField implements WhiteboxPlugin {
 
         String inputHeader = null;
         String outputHeader = null;
-
-        WhiteboxRaster image;
-        WhiteboxRaster output;
-        int cols, rows;
-        int progress = 0;
-        int col, row;
-        double z;
+        boolean normal = false;
+        long seed = System.nanoTime();
 
         if (args.length <= 0) {
             showFeedback("Plugin parameters have not been set.");
@@ -206,6 +201,13 @@ public class RandomField implements WhiteboxPlugin {
 
         inputHeader = args[0];
         outputHeader = args[1];
+        if (args.length > 2) {
+            normal = args[2].toLowerCase().contains("normal");
+        }
+        if (args.length > 3 && !args[3].toLowerCase().contains("not specified")
+                && !args[3].trim().isEmpty()) {
+            seed = Long.parseLong(args[3].trim());
+        }
 
         // check to see that the inputHeader and outputHeader are not null.
         if ((inputHeader.isEmpty()) || (outputHeader.isEmpty())) {
@@ -214,41 +216,71 @@ public class RandomField implements WhiteboxPlugin {
         }
 
         try {
-            image = new WhiteboxRaster(inputHeader, "r");
-            rows = image.getNumberRows();
-            cols = image.getNumberColumns();
-            double noData = image.getNoDataValue();
+            final WhiteboxRaster image = new WhiteboxRaster(inputHeader, "r");
+            final int rows = image.getNumberRows();
+            final int cols = image.getNumberColumns();
+            final double noData = image.getNoDataValue();
 
-            output = new WhiteboxRaster(outputHeader, "rw", inputHeader, WhiteboxRaster.DataType.FLOAT, noData);
+            final WhiteboxRaster output = new WhiteboxRaster(outputHeader, "rw", inputHeader, WhiteboxRaster.DataType.FLOAT, noData);
             output.setPreferredPalette("blue_white_red.pal");
             output.setDataScale(WhiteboxRaster.DataScale.CONTINUOUS);
 
-            image.close();
-
-            Random generator = new Random();
-
-            double[] data;
-            for (row = 0; row < rows; row++) {
-                data = image.getRowValues(row);
-                for (col = 0; col < cols; col++) {
-                    if (data[col] != noData) {
-                        z = generator.nextInt(101) / 100.0;
-                        output.setValue(row, col, z);
+            // each row has its own random number stream, so that the field 
+            // depends only on the seed and not on how the rows are divided 
+            // among the threads
+            SplittableRandom master = new SplittableRandom(seed);
+            final long[] rowSeeds = new long[rows];
+            for (int row = 0; row < rows; row++) {
+                rowSeeds[row] = master.nextLong();
+            }
+            
+            final boolean normalDistribution = normal;
+            boolean completed = RowBands.process(rows, new RowBands.Task<double[][]>() {
+                @Override
+                public double[][] process(int startRow, int endRow) {
+                    double[][] band = new double[endRow - startRow][];
+                    for (int row = startRow; row < endRow; row++) {
+                        SplittableRandom generator = new SplittableRandom(rowSeeds[row]);
+                        double[] data = image.getRowValues(row);
+                        for (int col = 0; col < cols; col++) {
+                            if (data[col] != noData) {
+                                if (normalDistribution) {
+                                    data[col] = MonteCarlo.nextGaussian(generator);
+                                } else {
+                                    data[col] = generator.nextInt(101) / 100.0;
+                                }
+                            }
+                        }
+                        band[row - startRow] = data;
                     }
+                    return band;
                 }
-                if (cancelOp) {
-                    cancelOperation();
-                    return;
+            }, new RowBands.Consumer<double[][]>() {
+                @Override
+                public boolean consume(int startRow, int endRow, double[][] band) {
+                    for (int row = startRow; row < endRow; row++) {
+                        output.setRowValues(row, band[row - startRow]);
+                    }
+                    if (cancelOp) {
+                        return false;
+                    }
+                    updateProgress((int) (endRow * 100.0 / rows));
+                    return true;
                 }
-                progress = (int)(row * 100.0 / rows);
-                updateProgress(progress);
-            }
+            });
 
             output.addMetadataEntry("Created by the "
                     + getDescriptiveName() + " tool.");
             output.addMetadataEntry("Created on " + new Date());
+            output.addMetadataEntry("Random seed: " + seed);
 
             output.close();
+            image.close();
+
+            if (!completed) {
+                cancelOperation();
+                return;
+            }
 
             // returning a header file string displays the image.
             returnData(outputHeader);
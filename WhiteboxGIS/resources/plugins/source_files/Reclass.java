@@ -18,6 +18,7 @@
 package plugins;
 
 import java.util.Date;
+import whitebox.algorithms.Reclassifier;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
@@ -157,12 +158,9 @@ public class Reclass implements WhiteboxPlugin {
         
         String inputHeader = null;
         String outputHeader = null;
-        int row, col;
         double noData;
-        int progress;
         int i;
         int numReclassRanges;
-        int numReclassRangesMinusOne;
         String[] reclassRangeStr = null;
         double[][] reclassRange;
         boolean blnAssignMode = false;
@@ -200,15 +198,11 @@ public class Reclass implements WhiteboxPlugin {
         try {
             
             WhiteboxRaster image = new WhiteboxRaster(inputHeader, "r");
-            int rows = image.getNumberRows();
-            int cols = image.getNumberColumns();
-            double[] data;
             noData = image.getNoDataValue();
             
             //How many rows should there be in the ReclassRange array?
             //There are three numbers in each range: New Value, From Value, To Just Less Than Value
             numReclassRanges = reclassRangeStr.length / 3;
-            numReclassRangesMinusOne = numReclassRanges - 1;
             reclassRange = new double[3][numReclassRanges];
             i = 0;
             for (int b = 0; b < reclassRangeStr.length; b++) {
@@ -235,55 +229,38 @@ public class Reclass implements WhiteboxPlugin {
             WhiteboxRaster output = new WhiteboxRaster(outputHeader, "rw", inputHeader, WhiteboxRaster.DataType.FLOAT, noData);
             output.setPreferredPalette(image.getPreferredPalette());
 
-
+            // the reclass ranges are compiled into a table that is searched
+            // rather than scanned; cells that are not in any of the ranges
+            // keep their input value, and a NoData cell can be reclassed too.
+            Reclassifier reclassifier;
             if (blnAssignMode) {
-                for (row = 0; row < rows; row++) {
-                    data = image.getRowValues(row);
-                    for (col = 0; col < cols; col++) {
-                        for (i = 0; i < numReclassRanges; i++) {
-                            if (data[col] == reclassRange[1][i]) {
-                                output.setValue(row, col, reclassRange[0][i]);
-                                break;
-                            }
-                            if (i == numReclassRangesMinusOne) { //z was not in the reclass ranges; output value equals input value
-                                output.setValue(row, col, data[col]);
-                            }
-                        }
-                    }
-                    if (cancelOp) {
-                        cancelOperation();
-                        return;
-                    }
-                    progress = (int) (100f * row / (rows - 1));
-                    updateProgress(progress);
-                }
-
+                reclassifier = Reclassifier.forValues(reclassRange[1], reclassRange[0], Double.NaN);
             } else {
-                for (row = 0; row < rows; row++) {
-                    data = image.getRowValues(row);
-                    for (col = 0; col < cols; col++) {
-                        for (i = 0; i < numReclassRanges; i++) {
-                            if (data[col] >= reclassRange[1][i] && data[col] < reclassRange[2][i]) {
-                                output.setValue(row, col, reclassRange[0][i]);
-                                break;
-                            }
-                            if (i == numReclassRangesMinusOne) { //z was not in the reclass ranges; output value equals input value
-                                output.setValue(row, col, data[col]);
-                            }
-                        }
+                reclassifier = Reclassifier.forRanges(reclassRange[1], reclassRange[2], reclassRange[0], Double.NaN);
+            }
+            boolean completed = reclassifier.reclassify(image, output, new Reclassifier.Progress() {
+                int oldProgress = -1;
 
-                    }
+                @Override
+                public boolean rowsCompleted(int completed, int total) {
                     if (cancelOp) {
-                        cancelOperation();
-                        return;
+                        return false;
+                    }
+                    int progress = (int) (100f * completed / total);
+                    if (progress != oldProgress) {
+                        updateProgress(progress);
+                        oldProgress = progress;
                     }
-                    progress = (int) (100f * row / (rows - 1));
-                    updateProgress(progress);
+                    return true;
                 }
-
+            });
+            if (!completed) {
+                image.close();
+                output.close();
+                cancelOperation();
+                return;
             }
 
-
             image.close();
 
             output.addMetadataEntry("Created by the "
@@ -0,0 +1,359 @@
+/*
+ * Copyright (C) 2014 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins;
+
+import java.util.Date;
+import java.util.SplittableRandom;
+import whitebox.geospatialfiles.WhiteboxRaster;
+import whitebox.interfaces.WhiteboxPlugin;
+import whitebox.interfaces.WhiteboxPluginHost;
+import whitebox.parallel.RowBands;
+import whitebox.stats.GaussianRandomField;
+import whitebox.stats.Kriging;
+
+/**
+ * Generates Gaussian random fields with a chosen covariance model using the
+ * spectral (FFT) method. Unlike the turning bands simulation, the fields
+ * reproduce the covariance model exactly, and each additional realisation only
+ * costs one FFT.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+public class SpectralRandomField implements WhiteboxPlugin {
+    
+    private WhiteboxPluginHost myHost = null;
+    private String[] args;
+
+    /**
+     * Used to retrieve the plugin tool's name. This is a short, unique name
+     * containing no spaces.
+     *
+     * @return String containing plugin name.
+     */
+    @Override
+    public String getName() {
+        return "SpectralRandomField";
+    }
+
+    /**
+     * Used to retrieve the plugin tool's descriptive name. This can be a longer
+     * name (containing spaces) and is used in the interface to list the tool.
+     *
+     * @return String containing the plugin descriptive name.
+     */
+    @Override
+    public String getDescriptiveName() {
+    	return "Spectral Random Field Simulation";
+    }
+
+    /**
+     * Used to retrieve a short description of what the plugin tool does.
+     *
+     * @return String containing the plugin's description.
+     */
+    @Override
+    public String getToolDescription() {
+    	return "Generates spatially autocorrelated Gaussian random fields using the spectral (FFT) method.";
+    }
+
+    /**
+     * Used to identify which toolboxes this plugin tool should be listed in.
+     *
+     * @return Array of Strings.
+     */
+    @Override
+    public String[] getToolbox() {
+    	String[] ret = { "StatisticalTools", "RasterCreation" };
+    	return ret;
+    }
+
+    /**
+     * Sets the WhiteboxPluginHost to which the plugin tool is tied. This is the
+     * class that the plugin will send all feedback messages, progress updates,
+     * and return objects.
+     *
+     * @param host The WhiteboxPluginHost that called the plugin tool.
+     */
+    @Override
+    public void setPluginHost(WhiteboxPluginHost host) {
+        myHost = host;
+    }
+
+    /**
+     * Used to communicate feedback pop-up messages between a plugin tool and
+     * the main Whitebox user-interface.
+     *
+     * @param feedback String containing the text to display.
+     */
+    private void showFeedback(String message) {
+        if (myHost != null) {
+            myHost.showFeedback(message);
+        } else {
+            System.out.println(message);
+        }
+    }
+
+    /**
+     * Used to communicate a return object from a plugin tool to the main
+     * Whitebox user-interface.
+     *
+     * @return Object, such as an output WhiteboxRaster.
+     */
+    private void returnData(Object ret) {
+        if (myHost != null) {
+            myHost.returnData(ret);
+        }
+    }
+
+    private int previousProgress = 0;
+    private String previousProgressLabel = "";
+    
+    /**
+     * Used to communicate a progress update between a plugin tool and the main
+     * Whitebox user interface.
+     *
+     * @param progressLabel A String to use for the progress label.
+     * @param progress Float containing the progress value (between 0 and 100).
+     */
+    private void updateProgress(String progressLabel, int progress) {
+        if (myHost != null && ((progress != previousProgress) || 
+                (!progressLabel.equals(previousProgressLabel)))) {
+            myHost.updateProgress(progressLabel, progress);
+        }
+        previousProgress = progress;
+        previousProgressLabel = progressLabel;
+    }
+
+    /**
+     * Used to communicate a progress update between a plugin tool and the main
+     * Whitebox user interface.
+     *
+     * @param progress Float containing the progress value (between 0 and 100).
+     */
+    private void updateProgress(int progress) {
+        if (myHost != null && progress != previousProgress) {
+            myHost.updateProgress(progress);
+        }
+        previousProgress = progress;
+    }
+    
+    /**
+     * Sets the arguments (parameters) used by the plugin.
+     *
+     * @param args
+     */
+    @Override
+    public void setArgs(String[] args) {
+        this.args = args.clone();
+    }
+    
+    private boolean cancelOp = false;
+ 
+    /**
+     * Used to communicate a cancel operation from the Whitebox GUI.
+     *
+     * @param cancel Set to true if the plugin should be canceled.
+     */
+    @Override
+    public void setCancelOp(boolean cancel) {
+        cancelOp = cancel;
+    }
+    
+    private void cancelOperation() {
+        showFeedback("Operation cancelled.");
+        updateProgress("Progress: ", 0);
+    }
+    
+    private boolean amIActive = false;
+    
+    /**
+     * Used by the Whitebox GUI to tell if this plugin is still running.
+     *
+     * @return a boolean describing whether or not the plugin is actively being
+     * used.
+     */
+    @Override
+    public boolean isActive() {
+        return amIActive;
+    }
+
+    @Override
+    public void run() {
+        amIActive = true;
+        
+        String inputHeader = null;
+        String outputHeader = null;
+        Kriging.SemivariogramType model = Kriging.SemivariogramType.EXPONENTIAL;
+        double range = 0;
+        double sill = 1;
+        double nugget = 0;
+        int numRealisations = 1;
+        long seed = System.nanoTime();
+            
+        if (args.length <= 0) {
+            showFeedback("Plugin parameters have not been set.");
+            return;
+        }
+        
+        for (int i = 0; i < args.length; i++) {
+            if (i == 0) {
+                inputHeader = args[i];
+            } else if (i == 1) {
+                outputHeader = args[i];
+            } else if (i == 2) {
+                String str = args[i].toLowerCase();
+                if (str.contains("gaussian")) {
+                    model = Kriging.SemivariogramType.GAUSSIAN;
+                } else if (str.contains("spherical")) {
+                    model = Kriging.SemivariogramType.SPHERICAL;
+                } else {
+                    model = Kriging.SemivariogramType.EXPONENTIAL;
+                }
+            } else if (i == 3) {
+                range = Double.parseDouble(args[i]);
+            } else if (i == 4) {
+                sill = Double.parseDouble(args[i]);
+            } else if (i == 5) {
+                nugget = Double.parseDouble(args[i]);
+            } else if (i == 6) {
+                numRealisations = Integer.parseInt(args[i]);
+            } else if (i == 7) {
+                if (!args[i].toLowerCase().contains("not specified") && !args[i].trim().isEmpty()) {
+                    seed = Long.parseLong(args[i].trim());
+                }
+            }
+        }
+
+        // check to see that the inputHeader and outputHeader are not null.
+        if ((inputHeader == null) || (outputHeader == null)) {
+            showFeedback("One or more of the input parameters have not been set properly.");
+            return;
+        }
+        
+        if (range <= 0) {
+            showFeedback("The range must be greater than zero.");
+            return;
+        }
+        
+        if (numRealisations < 1) {
+            numRealisations = 1;
+        }
+
+        try {
+            final WhiteboxRaster image = new WhiteboxRaster(inputHeader, "r");
+            final double noData = image.getNoDataValue();
+            int rows = image.getNumberRows();
+            final int cols = image.getNumberColumns();
+            
+            updateProgress("Calculating the spectrum:", 0);
+            GaussianRandomField generator = new GaussianRandomField(rows, cols, 
+                    image.getCellSizeX(), image.getCellSizeY(), model, range, 
+                    sill, nugget);
+            SplittableRandom random = new SplittableRandom(seed);
+            
+            for (int r = 0; r < numRealisations; r++) {
+                final String label = "Realisation " + (r + 1) + " of " + numRealisations + ":";
+                updateProgress(label, 0);
+                final double[][] field = generator.next(random);
+                if (cancelOp) {
+                    cancelOperation();
+                    return;
+                }
+                
+                // more than one realisation is written to a numbered series of files
+                String outputFile = outputHeader;
+                if (numRealisations > 1) {
+                    outputFile = outputHeader.replace(".dep", "_" + (r + 1) + ".dep");
+                }
+                final WhiteboxRaster output = new WhiteboxRaster(outputFile, "rw", 
+                        inputHeader, WhiteboxRaster.DataType.FLOAT, noData);
+                output.setPreferredPalette("blue_white_red.pal");
+                output.setDataScale(WhiteboxRaster.DataScale.CONTINUOUS);
+                
+                final int numRows = rows;
+                boolean completed = RowBands.process(rows, new RowBands.Task<double[][]>() {
+                    @Override
+                    public double[][] process(int startRow, int endRow) {
+                        double[][] band = new double[endRow - startRow][];
+                        for (int row = startRow; row < endRow; row++) {
+                            double[] data = image.getRowValues(row);
+                            double[] values = field[row];
+                            for (int col = 0; col < cols; col++) {
+                                if (data[col] == noData) {
+                                    values[col] = noData;
+                                }
+                            }
+                            band[row - startRow] = values;
+                        }
+                        return band;
+                    }
+                }, new RowBands.Consumer<double[][]>() {
+                    @Override
+                    public boolean consume(int startRow, int endRow, double[][] band) {
+                        for (int row = startRow; row < endRow; row++) {
+                            output.setRowValues(row, band[row - startRow]);
+                            // the field's memory can be released as it is written
+                            field[row] = null;
+                        }
+                        if (cancelOp) {
+                            return false;
+                        }
+                        updateProgress(label, (int) (100f * endRow / numRows));
+                        return true;
+                    }
+                });
+                
+                output.addMetadataEntry("Created by the "
+                        + getDescriptiveName() + " tool.");
+                output.addMetadataEntry("Created on " + new Date());
+                output.addMetadataEntry("Covariance model: " + model 
+                        + ", range: " + range + ", sill: " + sill + ", nugget: " + nugget);
+                output.addMetadataEntry("Random seed: " + seed + ", realisation: " + (r + 1));
+                output.close();
+                
+                if (!completed) {
+                    cancelOperation();
+                    return;
+                }
+                
+                // returning a header file string displays the image.
+                if (r == 0) {
+                    returnData(outputFile);
+                }
+            }
+            
+            image.close();
+            
+            if (generator.getNumberOfNegativeEigenvalues() > 0) {
+                showFeedback("The covariance model could not be reproduced exactly on this grid. "
+                        + "The covariance of the output is a close approximation.");
+            }
+
+        } catch (OutOfMemoryError oe) {
+            myHost.showFeedback("An out-of-memory error has occurred during operation.");
+        } catch (Exception e) {
+            myHost.showFeedback("An error has occurred during operation. See log file for details.");
+            myHost.logException("Error in " + getDescriptiveName(), e);
+        } finally {
+            updateProgress("Progress: ", 0);
+            // tells the main application that this process is completed.
+            amIActive = false;
+            myHost.pluginComplete();
+        }
+    }
+}
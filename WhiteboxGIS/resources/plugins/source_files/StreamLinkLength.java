@@ -17,6 +17,7 @@
 package plugins;
 
 import java.util.Date;
+import whitebox.algorithms.StreamNetwork;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
@@ -30,9 +31,6 @@ public class StreamLinkLength implements WhiteboxPlugin {
     
     private WhiteboxPluginHost myHost = null;
     private String[] args;
-    
-    // Constants
-    private static final double LnOf2 = 0.693147180559945;
 
     /**
      * Used to retrieve the plugin tool's name. This is a short, unique name
@@ -194,14 +192,9 @@ public class StreamLinkLength implements WhiteboxPlugin {
         String streamsLinkIDHeader = null;
         String pointerHeader = null;
         String outputHeader = null;
-        int row, col, x, y;
+        int row, link;
         float progress = 0;
-        int i, c;
-        int[] dX = new int[]{1, 1, 1, 0, -1, -1, -1, 0};
-        int[] dY = new int[]{-1, 0, 1, 1, 1, 0, -1, -1};
-        double[] inflowingVals = new double[]{16, 32, 64, 128, 1, 2, 4, 8};
-        boolean flag = false;
-        double flowDir = 0;
+        int i;
                 
         if (args.length <= 0) {
             showFeedback("Plugin parameters have not been set.");
@@ -229,13 +222,8 @@ public class StreamLinkLength implements WhiteboxPlugin {
             int rows = streamID.getNumberRows();
             int cols = streamID.getNumberColumns();
             double noData = streamID.getNoDataValue();
-            double gridResX = streamID.getCellSizeX();
-            double gridResY = streamID.getCellSizeY();
-            double diagGridRes = Math.sqrt(gridResX * gridResX + gridResY * gridResY);
-            double[] gridLengths = new double[]{diagGridRes, gridResX, diagGridRes, gridResY, diagGridRes, gridResX, diagGridRes, gridResY};
             
             double maxLinkID = streamID.getMaximumValue();
-            double[] linkLengths = new double[(int)maxLinkID + 1];
             
             WhiteboxRaster pntr = new WhiteboxRaster(pointerHeader, "r");
             
@@ -244,98 +232,51 @@ public class StreamLinkLength implements WhiteboxPlugin {
                 return;
             }
             
-            WhiteboxRaster output = new WhiteboxRaster(outputHeader, "rw", 
-                    streamsLinkIDHeader, WhiteboxRaster.DataType.FLOAT, 0);
-            output.setPreferredPalette("spectrum.pal");
-            output.setDataScale(WhiteboxRaster.DataScale.CONTINUOUS);
-            
-            byte numNeighbouringStreamCells = 0;
-            double currentID = 0;
-            double linkLength = 0;
-            
+            // read the stream network once and trace its links, which 
+            // begin wherever the link ID changes
+            StreamNetwork network = new StreamNetwork(rows, cols, 
+                    streamID.getCellSizeX(), streamID.getCellSizeY(), true);
+            updateProgress("Loop 1 of 2:", 0);
             for (row = 0; row < rows; row++) {
-                for (col = 0; col < cols; col++) {
-                    if (streamID.getValue(row, col) > 0) {
-                        // see if it is a headwater location
-                        numNeighbouringStreamCells = 0;
-                        for (c = 0; c < 8; c++) {
-                            x = col + dX[c];
-                            y = row + dY[c];
-                            if (streamID.getValue(y, x) > 0 && 
-                                    pntr.getValue(y, x) == inflowingVals[c]) { 
-                                numNeighbouringStreamCells++; 
-                            }
-                        }
-                        if (numNeighbouringStreamCells == 0) {
-                            //it's a headwater location so start a downstream flowpath
-                            x = col;
-                            y = row;
-                            linkLength = 0;
-                            currentID = streamID.getValue(y, x);
-                            flag = true;
-                            do {
-                                //find the downslope neighbour
-                                flowDir = pntr.getValue(y, x);
-                                if (flowDir > 0) {
-                                    c = (int)(Math.log(flowDir) / LnOf2);
-                                    if (c > 7) {
-                                        showFeedback("An unexpected value has "
-                                                + "been identified in the pointer "
-                                                + "image. This tool requires a "
-                                                + "pointer grid that has been "
-                                                + "created using either the D8 "
-                                                + "or Rho8 tools.");
-                                        return;
-                                    }
-                                    linkLength += gridLengths[c];
-                                    
-                                    x += dX[c];
-                                    y += dY[c];
-                                    
-                                    if (streamID.getValue(y, x) != currentID) {
-                                        linkLengths[(int)(currentID)] = linkLength;
-                                        currentID = streamID.getValue(y, x);
-                                        if (currentID != noData) {
-                                            linkLength = 0;
-                                            if (linkLengths[(int)currentID] > 0) {
-                                                flag = false;
-                                            }
-                                        } else {
-                                            flag = false;
-                                        }
-                                    }
-
-                                } else {
-                                    linkLengths[(int)currentID] = linkLength;
-                                    flag = false;
-                                }
-                            } while (flag);
-                        }
-                    } else {
-                        output.setValue(row, col, noData);
-                    }
-                }
+                network.addRow(row, streamID.getRowValues(row), pntr.getRowValues(row));
                 if (cancelOp) {
                     cancelOperation();
                     return;
                 }
                 progress = (float) (100f * row / (rows - 1));
-                updateProgress((int) progress);
+                updateProgress("Loop 1 of 2:", (int) progress);
+            }
+            network.build();
+            int numLinks = network.getNumberOfLinks();
+            
+            double[] linkLengths = new double[numLinks];
+            for (link = 0; link < numLinks; link++) {
+                linkLengths[link] = network.getLength(link);
             }
             
+            WhiteboxRaster output = new WhiteboxRaster(outputHeader, "rw", 
+                    streamsLinkIDHeader, WhiteboxRaster.DataType.FLOAT, 0);
+            output.setPreferredPalette("spectrum.pal");
+            output.setDataScale(WhiteboxRaster.DataScale.CONTINUOUS);
+            
+            // write the output and find the ID of each link from its first cell
+            double[] linkIDLengths = new double[(int) maxLinkID + 1];
+            updateProgress("Loop 2 of 2:", 0);
             for (row = 0; row < rows; row++) {
-                for (col = 0; col < cols; col++) {
-                    if (streamID.getValue(row, col) > 0) {
-                        currentID = streamID.getValue(row, col);
-                        output.setValue(row, col, linkLengths[(int)currentID]);
+                double[] ids = streamID.getRowValues(row);
+                for (int c : network.getCellsInRow(row)) {
+                    link = network.getCellLink(c);
+                    if (network.getFirstCell(link) == c) {
+                        linkIDLengths[(int) ids[network.getCellColumn(c)]] = linkLengths[link];
                     }
                 }
+                output.setRowValues(row, network.getRowValues(row, linkLengths, noData, 0));
                 if (cancelOp) {
                     cancelOperation();
                     return;
                 }
                 progress = (float) (100f * row / (rows - 1));
-                updateProgress((int) progress);
+                updateProgress("Loop 2 of 2:", (int) progress);
             }
             
             output.addMetadataEntry("Created by the "
@@ -349,15 +290,18 @@ public class StreamLinkLength implements WhiteboxPlugin {
             // returning a header file string displays the image.
             returnData(outputHeader);
 
-            String retData = "Stream Link Length Output\n";
+            StringBuilder retData = new StringBuilder("Stream Link Length Output\n");
             for (i = 1; i <= maxLinkID; i++) {
-                retData = retData + i + "\t" + linkLengths[i] + "\n";
+                retData.append(i).append("\t").append(linkIDLengths[i]).append("\n");
             }
             
-            returnData(retData);
+            returnData(retData.toString());
             
         } catch (OutOfMemoryError oe) {
             myHost.showFeedback("An out-of-memory error has occurred during operation.");
+        } catch (IllegalArgumentException e) {
+            // an invalid flow pointer value
+            myHost.showFeedback(e.getMessage());
         } catch (Exception e) {
             myHost.showFeedback("An error has occurred during operation. See log file for details.");
             myHost.logException("Error in " + getDescriptiveName(), e);
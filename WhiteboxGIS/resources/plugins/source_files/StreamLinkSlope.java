@@ -17,6 +17,7 @@
 package plugins;
 
 import java.util.Date;
+import whitebox.algorithms.StreamNetwork;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
@@ -30,9 +31,6 @@ public class StreamLinkSlope implements WhiteboxPlugin {
     
     private WhiteboxPluginHost myHost = null;
     private String[] args;
-    
-    // Constants
-    private static final double LnOf2 = 0.693147180559945;
 
     /**
      * Used to retrieve the plugin tool's name. This is a short, unique name
@@ -195,15 +193,9 @@ public class StreamLinkSlope implements WhiteboxPlugin {
         String pointerHeader = null;
         String DEMHeader = null;
         String outputHeader = null;
-        int row, col, x, y;
+        int row, link;
         float progress = 0;
-        int i, c;
-        double z;
-        int[] dX = new int[]{1, 1, 1, 0, -1, -1, -1, 0};
-        int[] dY = new int[]{-1, 0, 1, 1, 1, 0, -1, -1};
-        double[] inflowingVals = new double[]{16, 32, 64, 128, 1, 2, 4, 8};
-        boolean flag = false;
-        double flowDir = 0;
+        int i;
                 
         if (args.length <= 0) {
             showFeedback("Plugin parameters have not been set.");
@@ -233,15 +225,11 @@ public class StreamLinkSlope implements WhiteboxPlugin {
             int rows = streamID.getNumberRows();
             int cols = streamID.getNumberColumns();
             double noData = streamID.getNoDataValue();
-            double gridResX = streamID.getCellSizeX();
-            double gridResY = streamID.getCellSizeY();
-            double diagGridRes = Math.sqrt(gridResX * gridResX + gridResY * gridResY);
-            double[] gridLengths = new double[]{diagGridRes, gridResX, diagGridRes, gridResY, diagGridRes, gridResX, diagGridRes, gridResY};
             
             double maxLinkID = streamID.getMaximumValue();
-            double[] linkLengths = new double[(int)maxLinkID + 1];
             
             WhiteboxRaster pntr = new WhiteboxRaster(pointerHeader, "r");
+            
             if (pntr.getNumberRows() != rows || pntr.getNumberColumns() != cols) {
                 showFeedback("The input images must be of the same dimensions.");
                 return;
@@ -252,89 +240,47 @@ public class StreamLinkSlope implements WhiteboxPlugin {
                 showFeedback("The input images must be of the same dimensions.");
                 return;
             }
+            double demNoData = DEM.getNoDataValue();
             
-            WhiteboxRaster output = new WhiteboxRaster(outputHeader, "rw", 
-                    streamsLinkIDHeader, WhiteboxRaster.DataType.FLOAT, 0);
-            output.setPreferredPalette("spectrum.pal");
-            output.setDataScale(WhiteboxRaster.DataScale.CONTINUOUS);
-            
-            double[][] linkRelief = new double[3][(int)maxLinkID + 1]; //first entry holds 
-            //the minimum elevation, the second holds the maximimum, and the third holds the slope
-            //initialize the LinkRelief array so that the min and max values can be found
-            
-            for (c = 0; c <= maxLinkID; c++) {
-                linkRelief[0][c] = 99999999;
-                linkRelief[1][c] = -99999999;
+            // read the stream network once and trace its links, which 
+            // begin wherever the link ID changes
+            StreamNetwork network = new StreamNetwork(rows, cols, 
+                    streamID.getCellSizeX(), streamID.getCellSizeY(), true);
+            updateProgress("Loop 1 of 3:", 0);
+            for (row = 0; row < rows; row++) {
+                network.addRow(row, streamID.getRowValues(row), pntr.getRowValues(row));
+                if (cancelOp) {
+                    cancelOperation();
+                    return;
+                }
+                progress = (float) (100f * row / (rows - 1));
+                updateProgress("Loop 1 of 3:", (int) progress);
             }
-                    
-            byte numNeighbouringStreamCells = 0;
-            double currentID = 0;
-            double linkLength = 0;
+            network.build();
+            int numLinks = network.getNumberOfLinks();
             
+            // find the minimum and maximum elevation of each link
+            double[] minZ = new double[numLinks];
+            double[] maxZ = new double[numLinks];
+            for (link = 0; link < numLinks; link++) {
+                minZ[link] = Double.POSITIVE_INFINITY;
+                maxZ[link] = Double.NEGATIVE_INFINITY;
+            }
+            int[] linkIDs = new int[numLinks];
+            updateProgress("Loop 2 of 3:", 0);
             for (row = 0; row < rows; row++) {
-                for (col = 0; col < cols; col++) {
-                    if (streamID.getValue(row, col) > 0) {
-                        // see if it is a headwater location
-                        numNeighbouringStreamCells = 0;
-                        for (c = 0; c < 8; c++) {
-                            x = col + dX[c];
-                            y = row + dY[c];
-                            if (streamID.getValue(y, x) > 0 && 
-                                    pntr.getValue(y, x) == inflowingVals[c]) { 
-                                numNeighbouringStreamCells++; 
-                            }
-                        }
-                        if (numNeighbouringStreamCells == 0) {
-                            //it's a headwater location so start a downstream flowpath
-                            x = col;
-                            y = row;
-                            linkLength = 0;
-                            currentID = streamID.getValue(y, x);
-                            flag = true;
-                            do {
-                                z = DEM.getValue(y, x);
-                                if (z < linkRelief[0][(int)currentID]) { linkRelief[0][(int)currentID] = z; }
-                                if (z > linkRelief[1][(int)currentID]) { linkRelief[1][(int)currentID] = z; }
-                                
-                                //find the downslope neighbour
-                                flowDir = pntr.getValue(y, x);
-                                if (flowDir > 0) {
-                                    c = (int)(Math.log(flowDir) / LnOf2);
-                                    if (c > 7) {
-                                        showFeedback("An unexpected value has "
-                                                + "been identified in the pointer "
-                                                + "image. This tool requires a "
-                                                + "pointer grid that has been "
-                                                + "created using either the D8 "
-                                                + "or Rho8 tools.");
-                                        return;
-                                    }
-                                    linkLength += gridLengths[c];
-                                    
-                                    x += dX[c];
-                                    y += dY[c];
-                                    
-                                    if (streamID.getValue(y, x) != currentID) {
-                                        linkLengths[(int)(currentID)] = linkLength;
-                                        currentID = streamID.getValue(y, x);
-                                        if (currentID != noData) {
-                                            linkLength = 0;
-                                            if (linkLengths[(int) currentID] > 0) {
-                                                flag = false;
-                                            }
-                                        } else {
-                                            flag = false;
-                                        }
-                                    }
-
-                                } else {
-                                    linkLengths[(int)currentID] = linkLength;
-                                    flag = false;
-                                }
-                            } while (flag);
-                        }
-                    } else {
-                        output.setValue(row, col, noData);
+                double[] ids = streamID.getRowValues(row);
+                double[] elevations = DEM.getRowValues(row);
+                for (int c : network.getCellsInRow(row)) {
+                    link = network.getCellLink(c);
+                    int col = network.getCellColumn(c);
+                    if (network.getFirstCell(link) == c) {
+                        linkIDs[link] = (int) ids[col];
+                    }
+                    double z = elevations[col];
+                    if (z != demNoData) {
+                        if (z < minZ[link]) { minZ[link] = z; }
+                        if (z > maxZ[link]) { maxZ[link] = z; }
                     }
                 }
                 if (cancelOp) {
@@ -342,26 +288,33 @@ public class StreamLinkSlope implements WhiteboxPlugin {
                     return;
                 }
                 progress = (float) (100f * row / (rows - 1));
-                updateProgress((int) progress);
+                updateProgress("Loop 2 of 3:", (int) progress);
             }
             
-            for (i = 1; i <= maxLinkID; i++) {
-                linkRelief[2][i] = (linkRelief[1][i] - linkRelief[0][i]) / linkLengths[i] * 100;
+            double[] linkSlopes = new double[numLinks];
+            double[] linkIDSlopes = new double[(int) maxLinkID + 1];
+            for (link = 0; link < numLinks; link++) {
+                double length = network.getLength(link);
+                if (length > 0 && maxZ[link] >= minZ[link]) {
+                    linkSlopes[link] = (maxZ[link] - minZ[link]) / length * 100;
+                }
+                linkIDSlopes[linkIDs[link]] = linkSlopes[link];
             }
             
+            WhiteboxRaster output = new WhiteboxRaster(outputHeader, "rw", 
+                    streamsLinkIDHeader, WhiteboxRaster.DataType.FLOAT, 0);
+            output.setPreferredPalette("spectrum.pal");
+            output.setDataScale(WhiteboxRaster.DataScale.CONTINUOUS);
+            
+            updateProgress("Loop 3 of 3:", 0);
             for (row = 0; row < rows; row++) {
-                for (col = 0; col < cols; col++) {
-                    if (streamID.getValue(row, col) > 0) {
-                        currentID = streamID.getValue(row, col);
-                        output.setValue(row, col, linkRelief[2][(int)currentID]);
-                    }
-                }
+                output.setRowValues(row, network.getRowValues(row, linkSlopes, noData, 0));
                 if (cancelOp) {
                     cancelOperation();
                     return;
                 }
                 progress = (float) (100f * row / (rows - 1));
-                updateProgress((int) progress);
+                updateProgress("Loop 3 of 3:", (int) progress);
             }
             
             output.addMetadataEntry("Created by the "
@@ -369,21 +322,25 @@ public class StreamLinkSlope implements WhiteboxPlugin {
             output.addMetadataEntry("Created on " + new Date());
             
             pntr.close();
+            DEM.close();
             streamID.close();
             output.close();
 
             // returning a header file string displays the image.
             returnData(outputHeader);
 
-            String retData = "Stream Link Slope Output\n";
+            StringBuilder retData = new StringBuilder("Stream Link Slope Output\n");
             for (i = 1; i <= maxLinkID; i++) {
-                retData = retData + i + "\t" + linkRelief[2][i] + "\n";
+                retData.append(i).append("\t").append(linkIDSlopes[i]).append("\n");
             }
             
-            returnData(retData);
+            returnData(retData.toString());
             
         } catch (OutOfMemoryError oe) {
             myHost.showFeedback("An out-of-memory error has occurred during operation.");
+        } catch (IllegalArgumentException e) {
+            // an invalid flow pointer value
+            myHost.showFeedback(e.getMessage());
         } catch (Exception e) {
             myHost.showFeedback("An error has occurred during operation. See log file for details.");
             myHost.logException("Error in " + getDescriptiveName(), e);
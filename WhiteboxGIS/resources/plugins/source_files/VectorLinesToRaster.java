@@ -16,11 +16,10 @@
  */
 package plugins;
 
-import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
-import java.util.PriorityQueue;
+import whitebox.algorithms.ScanlineRasterizer;
 import whitebox.geospatialfiles.ShapeFile;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.geospatialfiles.WhiteboxRasterBase;
@@ -30,8 +29,6 @@ import whitebox.geospatialfiles.shapefile.attributes.AttributeTable;
 import whitebox.geospatialfiles.shapefile.*;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
-import whitebox.structures.BoundingBox;
-import whitebox.structures.RowPriorityGridCell;
 
 /**
  * WhiteboxPlugin is used to define a plugin tool for Whitebox GIS.
@@ -203,11 +200,9 @@ public class VectorLinesToRaster implements WhiteboxPlugin {
         int assignmentFieldNum = -1;
         String baseFileHeader = "not specified";
         double backgroundValue = 0;
-        int row, col;
-        double rowYCoord, colXCoord, value, z;
-        int progress = 0;
+        double value;
         double cellSize = -1.0;
-        int rows, topRow, bottomRow, leftCol, rightCol;
+        int rows;
         int cols;
         double noData = -32768.0;
         double east;
@@ -217,13 +212,8 @@ public class VectorLinesToRaster implements WhiteboxPlugin {
         DataType dataType = WhiteboxRasterBase.DataType.INTEGER;
         Object[] data;
         Object[][] allRecords = null;
-        BoundingBox box;
-        double[][] geometry;
-        int numPoints, numParts, i, part;
-        int startingPointInPart, endingPointInPart;
-        double x1, y1, x2, y2, xPrime, yPrime;
+        int i;
         boolean useRecID = false;
-        DecimalFormat df = new DecimalFormat("###,###,###,###");
         
         if (args.length <= 0) {
             showFeedback("Plugin parameters have not been set.");
@@ -278,11 +268,12 @@ public class VectorLinesToRaster implements WhiteboxPlugin {
                     assignmentFieldNum = i;
                     if (field.getDataType() == DBFField.DBFDataType.NUMERIC
                             || field.getDataType() == DBFField.DBFDataType.FLOAT) {
-                        if (field.getDecimalCount() == 0) {
-                            dataType = WhiteboxRasterBase.DataType.INTEGER;
-                        } else {
-                            dataType = WhiteboxRasterBase.DataType.FLOAT;
-                        }
+//                        if (field.getDecimalCount() == 0) {
+//                            dataType = WhiteboxRasterBase.DataType.INTEGER;
+//                        } else {
+//                            dataType = WhiteboxRasterBase.DataType.FLOAT;
+//                        }
+                        dataType = WhiteboxRasterBase.DataType.FLOAT;
                     } else {
                         showFeedback("The type of data contained in the field "
                                 + "can not be mapped into grid cells. Choose a "
@@ -298,7 +289,7 @@ public class VectorLinesToRaster implements WhiteboxPlugin {
             }
 
             // initialize the output raster
-            WhiteboxRaster output;
+            final WhiteboxRaster output;
             if ((cellSize > 0)
                     || ((cellSize < 0) & (baseFileHeader.toLowerCase().contains("not specified")))) {
                 if ((cellSize < 0) & (baseFileHeader.toLowerCase().contains("not specified"))) {
@@ -322,20 +313,11 @@ public class VectorLinesToRaster implements WhiteboxPlugin {
             } else {
                 output = new WhiteboxRaster(outputHeader, "rw",
                         baseFileHeader, dataType, backgroundValue);
+                if (backgroundValue == noData) {
+                    output.setNoDataValue(noData);
+                }
             }
 
-            // first sort the records based on their maxY coordinate. This will
-            // help reduce the amount of disc IO for larger rasters.
-            ArrayList<RecordInfo> myList = new ArrayList<RecordInfo>();
-
-            for (ShapeFileRecord record : input.records) {
-                i = record.getRecordNumber();
-                box = getBoundingBoxFromShapefileRecord(record);
-                myList.add(new RecordInfo(box.getMaxY(), i));
-            }
-
-            Collections.sort(myList);
-            
             if (!useRecID) {
                 allRecords = new Object[numRecs][numberOfFields];
                 int a = 0;
@@ -344,146 +326,44 @@ public class VectorLinesToRaster implements WhiteboxPlugin {
                     a++;
                 }
             }
-            
-            long heapSize = Runtime.getRuntime().totalMemory();
-            int flushSize = (int)(heapSize / 32);
-            int j, numCellsToWrite;
-            PriorityQueue<RowPriorityGridCell> pq = new PriorityQueue<RowPriorityGridCell>(flushSize);
-            RowPriorityGridCell cell;
-            int numRecords = input.getNumberOfRecords();
-            int count = 0;
-            int progressCount = (int) (numRecords / 100.0);
-            if (progressCount <= 0) {
-                progressCount = 1;
-            }
-            ShapeFileRecord record;
-            for (RecordInfo ri : myList) {
-                record = input.getRecord(ri.recNumber - 1);
+
+            // sort the records by their value and then by their record
+            // number. The lines are drawn in this order, so where they cross
+            // the highest value is kept, as it always has been.
+            ArrayList<RecordInfo> myList = new ArrayList<>();
+            for (ShapeFileRecord record : input.records) {
+                if (record.getShapeType() == ShapeType.NULLSHAPE) {
+                    continue;
+                }
                 if (!useRecID) {
-                    data = reader.nextRecord();
-                    value = Double.valueOf(data[assignmentFieldNum].toString());
+                    value = Double.valueOf(allRecords[record.getRecordNumber() - 1][assignmentFieldNum].toString());
                 } else {
                     value = record.getRecordNumber();
                 }
-                geometry = getXYFromShapefileRecord(record);
-                numPoints = geometry.length;
-                numParts = partData.length;
-
-                for (part = 0; part < numParts; part++) {
-                    box = new BoundingBox();
-                    startingPointInPart = partData[part];
-                    if (part < numParts - 1) {
-                        endingPointInPart = partData[part + 1];
-                    } else {
-                        endingPointInPart = numPoints;
-                    }
-                    for (i = startingPointInPart; i < endingPointInPart; i++) {
-                        if (geometry[i][0] < box.getMinX()) {
-                            box.setMinX(geometry[i][0]);
-                        }
-                        if (geometry[i][0] > box.getMaxX()) {
-                            box.setMaxX(geometry[i][0]);
-                        }
-                        if (geometry[i][1] < box.getMinY()) {
-                            box.setMinY(geometry[i][1]);
-                        }
-                        if (geometry[i][1] > box.getMaxY()) {
-                            box.setMaxY(geometry[i][1]);
-                        }
-                    }
-                    topRow = output.getRowFromYCoordinate(box.getMaxY());
-                    bottomRow = output.getRowFromYCoordinate(box.getMinY());
-                    leftCol = output.getColumnFromXCoordinate(box.getMinX());
-                    rightCol = output.getColumnFromXCoordinate(box.getMaxX());
-                    
-                    // find each intersection with a row.
-                    for (row = topRow; row <= bottomRow; row++) {
-
-                        rowYCoord = output.getYCoordinateFromRow(row);
-                        // find the x-coordinates of each of the line segments 
-                        // that intersect this row's y coordinate
-
-                        for (i = startingPointInPart; i < endingPointInPart - 1; i++) {
-                            if (isBetween(rowYCoord, geometry[i][1], geometry[i + 1][1])) {
-                                y1 = geometry[i][1];
-                                y2 = geometry[i + 1][1];
-                                if (y2 != y1) {
-                                    x1 = geometry[i][0];
-                                    x2 = geometry[i + 1][0];
-
-                                    // calculate the intersection point
-                                    xPrime = x1 + (rowYCoord - y1) / (y2 - y1) * (x2 - x1);
-                                    col = output.getColumnFromXCoordinate(xPrime);
-                                    //output.setValue(row, col, value);
-                                    pq.add(new RowPriorityGridCell(row, col, value));
-                                }
-                            }
-                        }
-                    }
-                    
-                    // find each intersection with a column.
-                    for (col = leftCol; col <= rightCol; col++) {
-                        colXCoord = output.getXCoordinateFromColumn(col);
-                        for (i = startingPointInPart; i < endingPointInPart - 1; i++) {
-                            if (isBetween(colXCoord, geometry[i][0], geometry[i + 1][0])) {
-                                x1 = geometry[i][0];
-                                x2 = geometry[i + 1][0];
-                                if (x1 != x2) {
-                                    y1 = geometry[i][1];
-                                    y2 = geometry[i + 1][1];
-                                    
-                                    // calculate the intersection point
-                                    yPrime = y1 + (colXCoord - x1) / (x2 - x1) * (y2 - y1);
-                                    
-                                    row = output.getRowFromYCoordinate(yPrime);
-                                    //output.setValue(row, col, value);
-                                    pq.add(new RowPriorityGridCell(row, col, value));
-                                }
-                            }
-                        }
-                    }
-                }
-                if (pq.size() >= flushSize) {
-                    j = 0;
-                    numCellsToWrite = pq.size();
-                    do {
-                        cell = pq.poll();
-                        output.setValue(cell.row, cell.col, cell.z);
-                        j++;
-                        if (j % 1000 == 0) {
-                            if (cancelOp) {
-                                cancelOperation();
-                                return;
-                            }
-                            updateProgress("Writing to Output (" + df.format(j) + " of " + df.format(numCellsToWrite) + "):", (int) (j * 100.0 / numCellsToWrite));
-                        }
-                    } while (pq.size() > 0);
-                }
-                if (cancelOp) {
-                    cancelOperation();
-                    return;
-                }
-                count++;
-                if (count % progressCount == 0) {
-                    progress++;
-                    updateProgress(progress);
-                }
+                myList.add(new RecordInfo(value, record.getRecordNumber()));
             }
-            
-            j = 0;
-            numCellsToWrite = pq.size();
-            do {
-                cell = pq.poll();
-                output.setValue(cell.row, cell.col, cell.z);
-                j++;
-                if (j % 1000 == 0) {
-                    if (cancelOp) {
-                        cancelOperation();
-                        return;
-                    }
-                    updateProgress("Writing to Output (" + df.format(j) + " of " + df.format(numCellsToWrite) + "):", (int) (j * 100.0 / numCellsToWrite));
+            Collections.sort(myList);
+
+            ScanlineRasterizer rasterizer = new ScanlineRasterizer(output);
+            for (RecordInfo ri : myList) {
+                ShapeFileRecord record = input.getRecord(ri.recNumber - 1);
+                rasterizer.addPolyLine(getXYFromShapefileRecord(record), partData, ri.value);
+            }
+
+            final int numRows = output.getNumberRows();
+            boolean completed = rasterizer.rasterize(backgroundValue, new ScanlineRasterizer.Output() {
+                @Override
+                public boolean processRow(int row, double[] values, double[] coverage) {
+                    output.setRowValues(row, values);
+                    updateProgress("Rasterizing lines:", (int) (100f * (row + 1) / numRows));
+                    return !cancelOp;
                 }
-            } while (pq.size() > 0);
+            });
+            if (!completed) {
+                output.close();
+                cancelOperation();
+                return;
+            }
 
             output.addMetadataEntry("Created by the "
                     + getDescriptiveName() + " tool.");
@@ -507,7 +387,39 @@ public class VectorLinesToRaster implements WhiteboxPlugin {
             myHost.pluginComplete();
         }
     }
-    
+
+    private class RecordInfo implements Comparable<RecordInfo> {
+
+        public double value;
+        public int recNumber;
+
+        public RecordInfo(double value, int recNumber) {
+            this.value = value;
+            this.recNumber = recNumber;
+        }
+
+        @Override
+        public int compareTo(RecordInfo other) {
+            final int BEFORE = -1;
+            final int EQUAL = 0;
+            final int AFTER = 1;
+
+            if (this.value < other.value) {
+                return BEFORE;
+            } else if (this.value > other.value) {
+                return AFTER;
+            }
+
+            if (this.recNumber < other.recNumber) {
+                return BEFORE;
+            } else if (this.recNumber > other.recNumber) {
+                return AFTER;
+            }
+
+            return EQUAL;
+        }
+    }
+
     int[] partData;
 
     private double[][] getXYFromShapefileRecord(ShapeFileRecord record) {
@@ -555,74 +467,6 @@ public class VectorLinesToRaster implements WhiteboxPlugin {
         return ret;
     }
 
-    private BoundingBox getBoundingBoxFromShapefileRecord(ShapeFileRecord record) {
-        BoundingBox ret;
-        ShapeType shapeType = record.getShapeType();
-        switch (shapeType) {
-            case POLYLINE:
-                whitebox.geospatialfiles.shapefile.PolyLine recPolyLine =
-                        (whitebox.geospatialfiles.shapefile.PolyLine) (record.getGeometry());
-                return recPolyLine.getBox();
-            case POLYLINEZ:
-                PolyLineZ recPolyLineZ = (PolyLineZ) (record.getGeometry());
-                return recPolyLineZ.getBox();
-            case POLYLINEM:
-                PolyLineM recPolyLineM = (PolyLineM) (record.getGeometry());
-                return recPolyLineM.getBox();
-            case POLYGON:
-                Polygon recPolygon = (Polygon) (record.getGeometry());
-                return recPolygon.getBox();
-            case POLYGONZ:
-                PolygonZ recPolygonZ = (PolygonZ) (record.getGeometry());
-                return recPolygonZ.getBox();
-            case POLYGONM:
-                PolygonM recPolygonM = (PolygonM) (record.getGeometry());
-                return recPolygonM.getBox();
-            default:
-                return new BoundingBox(Double.NaN, Double.NaN, Double.NaN, Double.NaN);
-        }
-    }
-
-    private class RecordInfo implements Comparable<RecordInfo> {
-
-        public double maxY;
-        public int recNumber;
-
-        public RecordInfo(double maxY, int recNumber) {
-            this.maxY = maxY;
-            this.recNumber = recNumber;
-        }
-
-        @Override
-        public int compareTo(RecordInfo other) {
-            final int BEFORE = -1;
-            final int EQUAL = 0;
-            final int AFTER = 1;
-
-            if (this.maxY < other.maxY) {
-                return BEFORE;
-            } else if (this.maxY > other.maxY) {
-                return AFTER;
-            }
-
-            if (this.recNumber < other.recNumber) {
-                return BEFORE;
-            } else if (this.recNumber > other.recNumber) {
-                return AFTER;
-            }
-
-            return EQUAL;
-        }
-    }
-
-    // Return true if val is between theshold1 and theshold2.
-    private static boolean isBetween(double val, double threshold1, double threshold2) {
-        if (val == threshold1 || val == threshold2) {
-            return true;
-        }
-        return threshold2 > threshold1 ? val > threshold1 && val < threshold2 : val > threshold2 && val < threshold1;
-    }
-    
 //    // This method is only used during testing.
 //    public static void main(String[] args) {
 //        args = new String[6];
@@ -16,12 +16,10 @@
  */
 package plugins;
 
-import java.text.DecimalFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
-import java.util.PriorityQueue;
+import whitebox.algorithms.ScanlineRasterizer;
 import whitebox.geospatialfiles.ShapeFile;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.geospatialfiles.WhiteboxRasterBase;
@@ -34,8 +32,6 @@ import whitebox.geospatialfiles.shapefile.ShapeFileRecord;
 import whitebox.geospatialfiles.shapefile.ShapeType;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
-import whitebox.structures.BoundingBox;
-import whitebox.structures.RowPriorityGridCell;
 
 /**
  * WhiteboxPlugin is used to define a plugin tool for Whitebox GIS.
@@ -207,11 +203,9 @@ public class VectorPolygonsToRaster implements WhiteboxPlugin {
         int assignmentFieldNum = -1;
         String baseFileHeader = "not specified";
         double backgroundValue = 0;
-        int row, col;
-        double rowYCoord, value, z;
-        int progress = 0;
+        double value;
         double cellSize = -1.0;
-        int rows, topRow, bottomRow;
+        int rows;
         int cols;
         double noData = -32768.0;
         double east;
@@ -221,19 +215,8 @@ public class VectorPolygonsToRaster implements WhiteboxPlugin {
         DataType dataType = WhiteboxRasterBase.DataType.INTEGER;
         Object[] data;
         Object[][] allRecords = null;
-        BoundingBox box;
-        double[][] geometry;
-        int numPoints, numParts, i, part, numEdges;
-        int stCol, endCol;
-        int startingPointInPart, endingPointInPart;
-        double x1, y1, x2, y2, xPrime;
-        boolean foundIntersection;
-        ArrayList<Integer> edgeList = new ArrayList<>();
+        int i;
         boolean useRecID = false;
-        DecimalFormat df = new DecimalFormat("###,###,###,###");
-        double smallNumber = -999999.0; // this value will be used
-        // to ensure that when there is a hole in a polygon, the cell containing
-        // the background value will be retreived from the priority queue second.
 
         if (args.length <= 0) {
             showFeedback("Plugin parameters have not been set.");
@@ -291,13 +274,13 @@ public class VectorPolygonsToRaster implements WhiteboxPlugin {
                     }
                 }
             }
-            
+
             if (assignmentFieldNum < 0) {
                 useRecID = true;
             }
 
             // initialize the output raster
-            WhiteboxRaster output;
+            final WhiteboxRaster output;
             if ((cellSize > 0)
                     || ((cellSize < 0) & (baseFileHeader.toLowerCase().contains("not specified")))) {
                 if ((cellSize < 0) & (baseFileHeader.toLowerCase().contains("not specified"))) {
@@ -324,18 +307,6 @@ public class VectorPolygonsToRaster implements WhiteboxPlugin {
                 output.setNoDataValue(noData);
             }
 
-            // first sort the records based on their maxY coordinate. This will
-            // help reduce the amount of disc IO for larger rasters.
-            ArrayList<RecordInfo> myList = new ArrayList<>();
-            
-            for (ShapeFileRecord record : input.records) {
-                i = record.getRecordNumber();
-                box = getBoundingBoxFromShapefileRecord(record);
-                myList.add(new RecordInfo(box.getMaxY(), i));
-            }
-            
-            Collections.sort(myList);
-            
             if (!useRecID) {
                 allRecords = new Object[numRecs][numberOfFields];
                 int a = 0;
@@ -344,245 +315,52 @@ public class VectorPolygonsToRaster implements WhiteboxPlugin {
                     a++;
                 }
             }
-            
-            long heapSize = Runtime.getRuntime().totalMemory();
-            int flushSize = (int)(heapSize / 32);
-            int j, numCellsToWrite;
-            PriorityQueue<RowPriorityGridCell> pq = new PriorityQueue<>(flushSize);
-            RowPriorityGridCell cell;
-            int numRecords = input.getNumberOfRecords();
-            int count = 0;
-            int progressCount = (int)(numRecords / 100.0);
-            if (progressCount <= 0) { progressCount = 1; }
-            ShapeFileRecord record;
-            for (RecordInfo ri : myList) {
-                record = input.getRecord(ri.recNumber - 1);
+
+            // sort the records by their value and then by their maxY
+            // coordinate. The polygons are drawn in this order, so where they
+            // overlap the highest value is kept, as it always has been. Holes
+            // are left unfilled, so that underlying polygons remain visible
+            // within them.
+            ArrayList<RecordInfo> myList = new ArrayList<>();
+            for (ShapeFileRecord record : input.records) {
+                if (record.getShapeType() == ShapeType.NULLSHAPE) {
+                    continue;
+                }
                 if (!useRecID) {
                     value = Double.valueOf(allRecords[record.getRecordNumber() - 1][assignmentFieldNum].toString());
                 } else {
                     value = record.getRecordNumber();
                 }
-                geometry = getXYFromShapefileRecord(record);
-                numPoints = geometry.length;
-                numParts = partData.length;
-                
-                // first do the non-holes.
-                for (part = 0; part < numParts; part++) {
-                    if (!partHoleData[part]) {
-                        box = new BoundingBox();
-                        startingPointInPart = partData[part];
-                        if (part < numParts - 1) {
-                            endingPointInPart = partData[part + 1];
-                        } else {
-                            endingPointInPart = numPoints;
-                        }
-                        for (i = startingPointInPart; i < endingPointInPart; i++) {
-                            if (geometry[i][1] < box.getMinY()) {
-                                box.setMinY(geometry[i][1]);
-                            }
-                            if (geometry[i][1] > box.getMaxY()) {
-                                box.setMaxY(geometry[i][1]);
-                            }
-                        }
-                        topRow = output.getRowFromYCoordinate(box.getMaxY());
-                        bottomRow = output.getRowFromYCoordinate(box.getMinY());
-
-                        for (row = topRow; row <= bottomRow; row++) {
-
-                            edgeList.clear();
-                            foundIntersection = false;
-                            rowYCoord = output.getYCoordinateFromRow(row);
-                            // find the x-coordinates of each of the edges that 
-                            // intersect this row's y coordinate
-
-                            for (i = startingPointInPart; i < endingPointInPart - 1; i++) {
-                                if (isBetween(rowYCoord, geometry[i][1], geometry[i + 1][1])) {
-                                    y1 = geometry[i][1];
-                                    y2 = geometry[i + 1][1];
-                                    if (y2 != y1) {
-                                        x1 = geometry[i][0];
-                                        x2 = geometry[i + 1][0];
-
-                                        // calculate the intersection point
-                                        xPrime = (x1 + (rowYCoord - y1) / (y2 - y1) * (x2 - x1));
-                                        edgeList.add(new Integer(output.getColumnFromXCoordinate(xPrime)));
-                                        foundIntersection = true;
-                                    }
-                                }
-                            }
-
-                            if (foundIntersection) {
-                                numEdges = edgeList.size();
-                                if (numEdges == 2) {
-                                    stCol = Math.min(edgeList.get(0), edgeList.get(1));
-                                    endCol = Math.max(edgeList.get(0), edgeList.get(1));
-                                    for (col = stCol; col <= endCol; col++) {
-                                        //output.setValue(row, col, value);
-                                        pq.add(new RowPriorityGridCell(row, col, value));
-                                    }
-                                } else {
-                                    //sort the edges.
-                                    Integer[] edgeArray = new Integer[numEdges];
-                                    edgeList.toArray(edgeArray);
-                                    Arrays.sort(edgeArray);
-
-                                    boolean fillFlag = true;
-                                    for (i = 0; i < numEdges - 1; i++) {
-                                        stCol = edgeArray[i];
-                                        endCol = edgeArray[i + 1];
-                                        if (fillFlag) {
-                                            for (col = stCol; col <= endCol; col++) {
-                                                //output.setValue(row, col, value);
-                                                pq.add(new RowPriorityGridCell(row, col, value));
-                                            }
-                                        }
-                                        fillFlag = !fillFlag;
-                                    }
-                                }
-                            }
-                        }
-                    }
-                }
-
-                // then do the holes.
-                for (part = 0; part < numParts; part++) {
-                    if (partHoleData[part]) {
+                myList.add(new RecordInfo(value, record.getGeometry().getBox().getMaxY(),
+                        record.getRecordNumber()));
+            }
+            Collections.sort(myList);
 
-                        box = new BoundingBox();
-                        startingPointInPart = partData[part];
-                        if (part < numParts - 1) {
-                            endingPointInPart = partData[part + 1];
-                        } else {
-                            endingPointInPart = numPoints;
-                        }
-                        for (i = startingPointInPart; i < endingPointInPart; i++) {
-                            if (geometry[i][1] < box.getMinY()) {
-                                box.setMinY(geometry[i][1]);
-                            }
-                            if (geometry[i][1] > box.getMaxY()) {
-                                box.setMaxY(geometry[i][1]);
-                            }
-                        }
-                        topRow = output.getRowFromYCoordinate(box.getMaxY());
-                        bottomRow = output.getRowFromYCoordinate(box.getMinY());
-
-                        for (row = topRow; row <= bottomRow; row++) {
-
-                            edgeList.clear();
-                            foundIntersection = false;
-                            rowYCoord = output.getYCoordinateFromRow(row);
-                            // find the x-coordinates of each of the edges that 
-                            // intersect this row's y coordinate
-
-                            for (i = startingPointInPart; i < endingPointInPart - 1; i++) {
-                                if (isBetween(rowYCoord, geometry[i][1], geometry[i + 1][1])) {
-                                    y1 = geometry[i][1];
-                                    y2 = geometry[i + 1][1];
-                                    if (y2 != y1) {
-                                        x1 = geometry[i][0];
-                                        x2 = geometry[i + 1][0];
-
-                                        // calculate the intersection point
-                                        xPrime = (x1 + (rowYCoord - y1) / (y2 - y1) * (x2 - x1));
-                                        edgeList.add(new Integer(output.getColumnFromXCoordinate(xPrime)));
-                                        foundIntersection = true;
-                                    }
-                                }
-                            }
-
-                            if (foundIntersection) {
-                                numEdges = edgeList.size();
-                                if (numEdges == 2) {
-                                    stCol = Math.min(edgeList.get(0), edgeList.get(1));
-                                    endCol = Math.max(edgeList.get(0), edgeList.get(1));
-                                    for (col = stCol; col <= endCol; col++) {
-                                        //output.setValue(row, col, backgroundValue);
-                                        pq.add(new RowPriorityGridCell(row, col, smallNumber));
-                                    }
-                                } else {
-                                    //sort the edges.
-                                    Integer[] edgeArray = new Integer[numEdges];
-                                    edgeList.toArray(edgeArray);
-                                    Arrays.sort(edgeArray);
-
-                                    boolean fillFlag = true;
-                                    for (i = 0; i < numEdges - 1; i++) {
-                                        stCol = edgeArray[i];
-                                        endCol = edgeArray[i + 1];
-                                        if (fillFlag) {
-                                            for (col = stCol; col <= endCol; col++) {
-                                                z = output.getValue(row, col);
-                                                if (z == value) { // this line should allow 
-                                                    // other polygons to still be visible in the
-                                                    // donut holes of overlying polygons.
-                                                    //output.setValue(row, col, backgroundValue);
-                                                    pq.add(new RowPriorityGridCell(row, col, smallNumber));
-                                                }
-                                            }
-                                        }
-                                        fillFlag = !fillFlag;
-                                    }
-                                }
-                            }
-                        }
-                    }
-                }
+            ScanlineRasterizer rasterizer = new ScanlineRasterizer(output);
+            for (RecordInfo ri : myList) {
+                ShapeFileRecord record = input.getRecord(ri.recNumber - 1);
+                rasterizer.addPolygon(getXYFromShapefileRecord(record), partData, ri.value);
+            }
 
-                if (pq.size() >= flushSize) {
-                    j = 0;
-                    numCellsToWrite = pq.size();
-                    do {
-                        cell = pq.poll();
-                        if (cell.z == smallNumber) {
-                            output.setValue(cell.row, cell.col, backgroundValue);
-                        } else {
-                            output.setValue(cell.row, cell.col, cell.z);
-                        }
-                        j++;
-                        if (j % 1000 == 0) {
-                            if (cancelOp) {
-                                cancelOperation();
-                                return;
-                            }
-                            updateProgress("Writing to Output (" + df.format(j) + " of " + df.format(numCellsToWrite) + "):", (int) (j * 100.0 / numCellsToWrite));
-                        }
-                    } while (pq.size() > 0);
-                }
-                
-                if (cancelOp) {
-                    cancelOperation();
-                    return;
-                }
-                count++;
-                if (count % progressCount == 0) {
-                    progress++;
-                    updateProgress(progress);
+            final int numRows = output.getNumberRows();
+            boolean completed = rasterizer.rasterize(backgroundValue, new ScanlineRasterizer.Output() {
+                @Override
+                public boolean processRow(int row, double[] values, double[] coverage) {
+                    output.setRowValues(row, values);
+                    updateProgress("Rasterizing polygons:", (int) (100f * (row + 1) / numRows));
+                    return !cancelOp;
                 }
+            });
+            if (!completed) {
+                output.close();
+                cancelOperation();
+                return;
             }
-            
-            j = 0;
-            numCellsToWrite = pq.size();
-            do {
-                cell = pq.poll();
-                if (cell.z == smallNumber) {
-                    output.setValue(cell.row, cell.col, backgroundValue);
-                } else {
-                    output.setValue(cell.row, cell.col, cell.z);
-                }
-                j++;
-                if (j % 1000 == 0) {
-                    if (cancelOp) {
-                        cancelOperation();
-                        return;
-                    }
-                    updateProgress("Writing to Output (" + df.format(j) + " of " + df.format(numCellsToWrite) + "):", (int) (j * 100.0 / numCellsToWrite));
-                }
-            } while (pq.size() > 0);
 
             output.addMetadataEntry("Created by the "
                     + getDescriptiveName() + " tool.");
             output.addMetadataEntry("Created on " + new Date());
-            
+
             output.flush();
             output.close();
 
@@ -601,73 +379,15 @@ public class VectorPolygonsToRaster implements WhiteboxPlugin {
             myHost.pluginComplete();
         }
     }
-    boolean[] partHoleData;
-    int[] partData;
-
-    private double[][] getXYFromShapefileRecord(ShapeFileRecord record) {
-        double[][] ret;
-        ShapeType shapeType = record.getShapeType();
-        switch (shapeType) {
-            case POLYGON:
-                whitebox.geospatialfiles.shapefile.Polygon recPolygon =
-                        (whitebox.geospatialfiles.shapefile.Polygon) (record.getGeometry());
-                ret = recPolygon.getPoints();
-                partData = recPolygon.getParts();
-                partHoleData = recPolygon.getPartHoleData();
-                break;
-            case POLYGONZ:
-                PolygonZ recPolygonZ = (PolygonZ) (record.getGeometry());
-                ret = recPolygonZ.getPoints();
-                partData = recPolygonZ.getParts();
-                partHoleData = recPolygonZ.getPartHoleData();
-                break;
-            case POLYGONM:
-                PolygonM recPolygonM = (PolygonM) (record.getGeometry());
-                ret = recPolygonM.getPoints();
-                partData = recPolygonM.getParts();
-                partHoleData = recPolygonM.getPartHoleData();
-                break;
-            default:
-                ret = new double[1][2];
-                ret[1][0] = -1;
-                ret[1][1] = -1;
-                break;
-        }
-
-        return ret;
-    }
-
-    private BoundingBox getBoundingBoxFromShapefileRecord(ShapeFileRecord record) {
-        BoundingBox ret;
-        ShapeType shapeType = record.getShapeType();
-        switch (shapeType) {
-            case POLYGON:
-                whitebox.geospatialfiles.shapefile.Polygon recPolygon =
-                        (whitebox.geospatialfiles.shapefile.Polygon) (record.getGeometry());
-                ret = recPolygon.getBox();
-                break;
-            case POLYGONZ:
-                PolygonZ recPolygonZ = (PolygonZ) (record.getGeometry());
-                ret = recPolygonZ.getBox();
-                break;
-            case POLYGONM:
-                PolygonM recPolygonM = (PolygonM) (record.getGeometry());
-                ret = recPolygonM.getBox();
-                break;
-            default:
-                ret = new BoundingBox(Double.NaN, Double.NaN, Double.NaN, Double.NaN);
-                break;
-        }
-
-        return ret;
-    }
 
     private class RecordInfo implements Comparable<RecordInfo> {
 
+        public double value;
         public double maxY;
         public int recNumber;
-        
-        public RecordInfo(double maxY, int recNumber) {
+
+        public RecordInfo(double value, double maxY, int recNumber) {
+            this.value = value;
             this.maxY = maxY;
             this.recNumber = recNumber;
         }
@@ -678,6 +398,12 @@ public class VectorPolygonsToRaster implements WhiteboxPlugin {
             final int EQUAL = 0;
             final int AFTER = 1;
 
+            if (this.value < other.value) {
+                return BEFORE;
+            } else if (this.value > other.value) {
+                return AFTER;
+            }
+
             if (this.maxY < other.maxY) {
                 return BEFORE;
             } else if (this.maxY > other.maxY) {
@@ -694,13 +420,38 @@ public class VectorPolygonsToRaster implements WhiteboxPlugin {
         }
     }
 
-    // Return true if val is between theshold1 and theshold2.
-    private static boolean isBetween(double val, double threshold1, double threshold2) {
-        if (val == threshold1 || val == threshold2) {
-            return true;
+    int[] partData;
+
+    private double[][] getXYFromShapefileRecord(ShapeFileRecord record) {
+        double[][] ret;
+        ShapeType shapeType = record.getShapeType();
+        switch (shapeType) {
+            case POLYGON:
+                whitebox.geospatialfiles.shapefile.Polygon recPolygon
+                        = (whitebox.geospatialfiles.shapefile.Polygon) (record.getGeometry());
+                ret = recPolygon.getPoints();
+                partData = recPolygon.getParts();
+                break;
+            case POLYGONZ:
+                PolygonZ recPolygonZ = (PolygonZ) (record.getGeometry());
+                ret = recPolygonZ.getPoints();
+                partData = recPolygonZ.getParts();
+                break;
+            case POLYGONM:
+                PolygonM recPolygonM = (PolygonM) (record.getGeometry());
+                ret = recPolygonM.getPoints();
+                partData = recPolygonM.getParts();
+                break;
+            default:
+                ret = new double[1][2];
+                ret[1][0] = -1;
+                ret[1][1] = -1;
+                break;
         }
-        return threshold2 > threshold1 ? val > threshold1 && val < threshold2 : val > threshold2 && val < threshold1;
+
+        return ret;
     }
+
 //    // This method is only used during testing.
 //    public static void main(String[] args) {
 //        args = new String[6];
@@ -733,4 +484,4 @@ public class VectorPolygonsToRaster implements WhiteboxPlugin {
 //        vptr.setArgs(args);
 //        vptr.run();
 //    }
-}
\ No newline at end of file
+}
@@ -21,6 +21,7 @@ import java.util.Date;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
+import whitebox.parallel.LocalCombination;
 
 /**
  * WhiteboxPlugin is used to define a plugin tool for Whitebox GIS.
@@ -160,26 +161,12 @@ public class WeightedOverlay implements WhiteboxPlugin {
         amIActive = true;
         
         String outputHeader = null;
-        WhiteboxRaster image = null;
         WhiteboxRaster output = null;
-        int row, col;
-        int nRows, nCols;
-        double z;
-        int progress = 0;
         int i, a;
-        double noData = -32768;
-        double outputNoData = -32768;
-        String inputDataString = null;
         int numImages = 0;
         double sumOfWeights = 0;
-        double d = 0;
-        double weight = 0;
         double scaleMin = 0;
         double scaleMax = 1;
-        double imageMin = 0;
-        double imageMax = 1;
-        double imageRange = 1;
-        double[] data = null;
                 
         if (args.length <= 0) {
             showFeedback("Plugin parameters have not been set.");
@@ -228,92 +215,119 @@ public class WeightedOverlay implements WhiteboxPlugin {
                 showFeedback("At least two factor images must be specified.");
                 return;
             }
-
-            for (a = 0; a < numImages; a++) {
-                d = weights.get(a) / sumOfWeights;
-                weights.set(a, d);
+            
+            // then the constraints, if there are any.
+            ArrayList<String> constraintFiles = new ArrayList<String>();
+            for (a = 0; a < constraints.length; a++) {
+                if (!constraints[a].trim().equals("")
+                        && !constraints[a].trim().toLowerCase().equals("not specified")) {
+                    constraintFiles.add(constraints[a].trim());
+                }
+            }
+            
+            // the factors and constraints are read and combined in a single 
+            // pass; the constraints follow the factors in the list of images
+            final int numFactors = numImages;
+            final int numConstraints = constraintFiles.size();
+            final double[] weight = new double[numFactors];
+            final boolean[] isCost = new boolean[numFactors];
+            final double[] imageMin = new double[numFactors];
+            final double[] imageRange = new double[numFactors];
+            final double[] noData = new double[numFactors + numConstraints];
+            WhiteboxRaster[] images = new WhiteboxRaster[numFactors + numConstraints];
+            for (i = 0; i < numFactors; i++) {
+                images[i] = new WhiteboxRaster(imageFiles.get(i), "r");
+                noData[i] = images[i].getNoDataValue();
+                weight[i] = weights.get(i) / sumOfWeights;
+                isCost[i] = costFactor.get(i);
+                imageMin[i] = images[i].getMinimumValue();
+                imageRange[i] = images[i].getMaximumValue() - imageMin[i];
+            }
+            for (i = 0; i < numConstraints; i++) {
+                images[numFactors + i] = new WhiteboxRaster(constraintFiles.get(i), "r");
+                noData[numFactors + i] = images[numFactors + i].getNoDataValue();
             }
+            final double outputNoData = noData[0];
+            final double minValue = scaleMin;
+            final double maxValue = scaleMax;
             
-            image = new WhiteboxRaster(imageFiles.get(0), "r");
-            nRows = image.getNumberRows();
-            nCols = image.getNumberColumns();
-            outputNoData = image.getNoDataValue();
+            LocalCombination overlay;
+            try {
+                overlay = new LocalCombination(images);
+            } catch (IllegalArgumentException e) {
+                showFeedback(e.getMessage());
+                return;
+            }
             
             output = new WhiteboxRaster(outputHeader, "rw", imageFiles.get(0), 
-                        WhiteboxRaster.DataType.FLOAT, 0);
+                        WhiteboxRaster.DataType.FLOAT, outputNoData);
             
-            for (i = 0; i < numImages; i++) {
-                progress = (int)(100f * (i + 1) / numImages);
-                updateProgress("Loop " + (i + 1) + " of " + numImages + ":", progress);
-                weight = weights.get(i);
-                if (i > 0) {
-                    image = new WhiteboxRaster(imageFiles.get(i), "r");
-                    noData = image.getNoDataValue();
-                    if (image.getNumberRows() != nRows || image.getNumberColumns() != nCols) {
-                        showFeedback("All input images must have the same dimensions (rows and columns).");
-                        return;
-                    }
-                }    
-                imageMin = image.getMinimumValue();
-                imageMax = image.getMaximumValue();
-                imageRange = imageMax - imageMin;
-                Boolean boolCost = costFactor.get(i);
-                
-                for (row = 0; row < nRows; row++) {
-                    data = image.getRowValues(row);
-                    for (col = 0; col < nCols; col++) {
-                        if (data[col] != noData) {
-                            z = output.getValue(row, col);
-                            if (z != outputNoData) {
-                                if (!boolCost) {
-                                    d = (data[col] - imageMin) / imageRange * scaleMax;
-                                    output.setValue(row, col, z + d * weight);
-                                } else {
-                                    d = (1 - (data[col] - imageMin) / imageRange) * scaleMax;
-                                    output.setValue(row, col, z + d * weight);
-                                }
+            boolean completed = overlay.run(output, new LocalCombination.Combiner() {
+                @Override
+                public void combine(int row, double[][] data, double[] outputRow) {
+                    int cols = outputRow.length;
+                    for (int i = 0; i < numFactors; i++) {
+                        double[] d = data[i];
+                        double min = imageMin[i];
+                        double range = imageRange[i];
+                        double w = weight[i];
+                        if (!isCost[i]) {
+                            for (int col = 0; col < cols; col++) {
+                                outputRow[col] += (d[col] - min) / range * maxValue * w;
                             }
                         } else {
-                            output.setValue(row, col, outputNoData);
+                            for (int col = 0; col < cols; col++) {
+                                outputRow[col] += (1 - (d[col] - min) / range) * maxValue * w;
+                            }
                         }
                     }
-                    if (cancelOp) {
-                        cancelOperation();
-                        return;
+                    // a NoData cell in any factor is NoData in the output
+                    for (int i = 0; i < numFactors; i++) {
+                        double[] d = data[i];
+                        for (int col = 0; col < cols; col++) {
+                            if (d[col] == noData[i]) {
+                                outputRow[col] = outputNoData;
+                            }
+                        }
                     }
-                }
-                
-                image.close();
-                
-            }
-            
-            // now deal with the constraints, if there are any.
-            for (i = 0; i < constraints.length; i++) {
-                image = new WhiteboxRaster(constraints[i].trim(), "r");
-                noData = image.getNoDataValue();
-                if (image.getNumberRows() != nRows || image.getNumberColumns() != nCols) {
-                    showFeedback("All input images must have the same dimensions (rows and columns).");
-                    return;
-                }
-                
-                for (row = 0; row < nRows; row++) {
-                    data = image.getRowValues(row);
-                    for (col = 0; col < nCols; col++) {
-                        if (data[col] != noData && data[col] <= 0) {
-                            if (output.getValue(row, col) != outputNoData) {
-                                output.setValue(row, col, scaleMin);
+                    // cells that a constraint marks as unsuitable (zero) are 
+                    // given the minimum of the scale
+                    for (int i = numFactors; i < numFactors + numConstraints; i++) {
+                        double[] d = data[i];
+                        for (int col = 0; col < cols; col++) {
+                            if (d[col] == noData[i]) {
+                                outputRow[col] = outputNoData;
+                            } else if (d[col] <= 0 && outputRow[col] != outputNoData) {
+                                outputRow[col] = minValue;
                             }
-                        } else {
-                            output.setValue(row, col, outputNoData);
                         }
                     }
+                }
+            }, new LocalCombination.Progress() {
+                int oldProgress = -1;
+                
+                @Override
+                public boolean rowsCompleted(int completed, int total) {
                     if (cancelOp) {
-                        cancelOperation();
-                        return;
+                        return false;
+                    }
+                    int progress = (int) (100f * completed / total);
+                    if (progress != oldProgress) {
+                        updateProgress(progress);
+                        oldProgress = progress;
                     }
+                    return true;
                 }
-                
-                image.close();
+            });
+            
+            for (i = 0; i < images.length; i++) {
+                images[i].close();
+            }
+            
+            if (!completed) {
+                output.close();
+                cancelOperation();
+                return;
             }
             
             output.addMetadataEntry("Created by the "
@@ -21,6 +21,7 @@ import java.util.Date;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
+import whitebox.parallel.LocalCombination;
 
 /**
  * WhiteboxPlugin is used to define a plugin tool for Whitebox GIS.
@@ -159,20 +160,10 @@ public class WeightedSum implements WhiteboxPlugin {
         amIActive = true;
         
         String outputHeader = null;
-        WhiteboxRaster image = null;
         WhiteboxRaster output = null;
-        int row, col;
-        int nRows, nCols;
-        double z;
-        int progress = 0;
         int i, a;
-        double noData = -32768;
-        double outputNoData = -32768;
-        String inputDataString = null;
         int numImages = 0;
         double sumOfWeights = 0;
-        double d = 0;
-        double weight = 0;
         
         if (args.length <= 0) {
             showFeedback("Plugin parameters have not been set.");
@@ -200,59 +191,82 @@ public class WeightedSum implements WhiteboxPlugin {
             }
         }
         
-        for (a = 0; a < numImages; a++) {
-            d = weights.get(a) / sumOfWeights;
-            weights.set(a, d);
+        if (numImages < 1) {
+            showFeedback("At least one input image must be specified.");
+            return;
         }
         
         try {
-            image = new WhiteboxRaster(imageFiles.get(0), "r");
-            nRows = image.getNumberRows();
-            nCols = image.getNumberColumns();
-            outputNoData = image.getNoDataValue();
+            final int n = numImages;
+            final double[] weight = new double[n];
+            final double[] noData = new double[n];
+            WhiteboxRaster[] images = new WhiteboxRaster[n];
+            for (i = 0; i < n; i++) {
+                images[i] = new WhiteboxRaster(imageFiles.get(i), "r");
+                noData[i] = images[i].getNoDataValue();
+                weight[i] = weights.get(i) / sumOfWeights;
+            }
+            final double outputNoData = noData[0];
+            
+            LocalCombination overlay;
+            try {
+                overlay = new LocalCombination(images);
+            } catch (IllegalArgumentException e) {
+                showFeedback(e.getMessage());
+                return;
+            }
             
             output = new WhiteboxRaster(outputHeader, "rw", imageFiles.get(0), 
-                        WhiteboxRaster.DataType.FLOAT, 0);
-                
-            for (i = 0; i < numImages; i++) {
-                progress = (int)(100f * (i + 1) / numImages);
-                updateProgress("Loop " + (i + 1) + " of " + numImages + ":", progress);
-                weight = weights.get(i);
-                if (i > 0) {
-                    image = new WhiteboxRaster(imageFiles.get(i), "r");
-                    noData = image.getNoDataValue();
-                    if (image.getNumberRows() != nRows || image.getNumberColumns() != nCols) {
-                        showFeedback("All input images must have the same dimensions (rows and columns).");
-                        return;
+                        WhiteboxRaster.DataType.FLOAT, outputNoData);
+            
+            // all of the images are read and summed in a single pass
+            boolean completed = overlay.run(output, new LocalCombination.Combiner() {
+                @Override
+                public void combine(int row, double[][] data, double[] outputRow) {
+                    int cols = outputRow.length;
+                    for (int i = 0; i < n; i++) {
+                        double[] d = data[i];
+                        double w = weight[i];
+                        for (int col = 0; col < cols; col++) {
+                            outputRow[col] += d[col] * w;
+                        }
                     }
-                }    
-                
-                
-                double[] data = null;
-                for (row = 0; row < nRows; row++) {
-                    data = image.getRowValues(row);
-                    for (col = 0; col < nCols; col++) {
-                        if (data[col] != noData) {
-                            z = output.getValue(row, col);
-                            if (z != outputNoData) {
-                                output.setValue(row, col, z + data[col] * weight);
+                    // a NoData cell in any image is NoData in the output
+                    for (int i = 0; i < n; i++) {
+                        double[] d = data[i];
+                        for (int col = 0; col < cols; col++) {
+                            if (d[col] == noData[i]) {
+                                outputRow[col] = outputNoData;
                             }
-                        } else {
-                            output.setValue(row, col, outputNoData);
                         }
                     }
+                }
+            }, new LocalCombination.Progress() {
+                int oldProgress = -1;
+                
+                @Override
+                public boolean rowsCompleted(int completed, int total) {
                     if (cancelOp) {
-                        cancelOperation();
-                        return;
+                        return false;
+                    }
+                    int progress = (int) (100f * completed / total);
+                    if (progress != oldProgress) {
+                        updateProgress(progress);
+                        oldProgress = progress;
                     }
-                    //progress = (int) (100f * row / (nRows - 1));
-                    //updateProgress(label, progress);
+                    return true;
                 }
-                
-                image.close();
-                
+            });
+            
+            for (i = 0; i < n; i++) {
+                images[i].close();
+            }
+            
+            if (!completed) {
+                output.close();
+                cancelOperation();
+                return;
             }
-
 
             output.addMetadataEntry("Created by the "
                     + getDescriptiveName() + " tool.");
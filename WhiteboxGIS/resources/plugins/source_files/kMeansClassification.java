@@ -19,6 +19,7 @@ package plugins;
 import java.text.DecimalFormat;
 import java.util.Date;
 import java.util.Random;
+import whitebox.algorithms.KMeansClusterer;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.geospatialfiles.WhiteboxRasterBase.DataScale;
 import whitebox.geospatialfiles.WhiteboxRasterInfo;
@@ -160,30 +161,26 @@ public class kMeansClassification implements WhiteboxPlugin {
         String[] imageFiles = null;
         String outputHeader = null;
         WhiteboxRasterInfo[] images = null;
-        WhiteboxRaster ouptut = null;
+        KMeansClusterer clusterer = null;
         int nCols = 0;
         int nRows = 0;
-        double z;
         int numClasses;
         int numImages;
         int progress = 0;
         int col, row;
         int a, i, j;
-        double[][] data;
         double noData = -32768;
         double[][] classCentres;
         double[][] imageMetaData;
         long[] numPixelsInEachClass;
         int maxIterations = 100;
-        double dist, minDist;
-        int whichClass;
-        double minAdjustment = 10;
+        double dist;
         byte initializationMode = 0; // maximum dispersion along diagonal
         long numCellsChanged = 0;
         long totalNumCells = 0;
-        boolean totalNumCellsCounted = false;
         double percentChanged = 0;
         double percentChangedThreshold = 1.0;
+        int miniBatchSize = 0;
 
         if (args.length <= 0) {
             showFeedback("Plugin parameters have not been set.");
@@ -201,6 +198,9 @@ public class kMeansClassification implements WhiteboxPlugin {
         } else {
             initializationMode = 0; //maximum dispersion along multi-dimensional diagonal
         }
+        if (args.length > 6 && !args[6].toLowerCase().contains("not specified")) {
+            miniBatchSize = Integer.parseInt(args[6]);
+        }
 
         try {
             // deal with the input images
@@ -227,9 +227,6 @@ public class kMeansClassification implements WhiteboxPlugin {
 
             }
 
-            data = new double[numImages][];
-            numPixelsInEachClass = new long[numImages];
-
             // now set up the output image
             WhiteboxRaster output = new WhiteboxRaster(outputHeader, "rw",
                     imageFiles[0], WhiteboxRaster.DataType.INTEGER, 0);
@@ -259,93 +256,49 @@ public class kMeansClassification implements WhiteboxPlugin {
                 }
             }
 
-            j = 0;
-            whichClass = 0;
-            do {
-                j++;
-                // assign each pixel to a class
-                updateProgress("Loop " + j, 1);
-                double[][] classCentreData = new double[numClasses][numImages];
-                numPixelsInEachClass = new long[numClasses];
-
-                numCellsChanged = 0;
+            // load the image stack once, unless it is too large for memory,
+            // in which case it is re-read from disk on each iteration
+            clusterer = new KMeansClusterer(images);
+            if (miniBatchSize <= 0 && clusterer.canLoadIntoMemory()) {
                 for (row = 0; row < nRows; row++) {
-                    for (i = 0; i < numImages; i++) {
-                        data[i] = images[i].getRowValues(row);
-                    }
-                    for (col = 0; col < nCols; col++) {
-                        if (data[0][col] != noData) {
-                            if (!totalNumCellsCounted) {
-                                totalNumCells++;
-                            }
-                            // calculate the squared distance to each of the centroids
-                            // and assign the pixel the value of the nearest centroid.
-                            minDist = Double.POSITIVE_INFINITY;
-                            for (a = 0; a < numClasses; a++) {
-                                dist = 0;
-                                for (i = 0; i < numImages; i++) {
-                                    dist += (data[i][col] - classCentres[a][i]) * (data[i][col] - classCentres[a][i]);
-                                }
-                                if (dist < minDist) {
-                                    minDist = dist;
-                                    whichClass = a;
-                                }
-                            }
-                            z = output.getValue(row, col);
-                            if ((int)z != whichClass) {
-                                numCellsChanged++;
-                            }
-                            output.setValue(row, col, whichClass);
-
-                            numPixelsInEachClass[whichClass]++;
-                            for (i = 0; i < numImages; i++) {
-                                classCentreData[whichClass][i] += data[i][col];
-                            }
-                        } else {
-                            output.setValue(row, col, noData);
-                        }
-                    }
+                    clusterer.loadRow(row);
                     if (cancelOp) {
                         cancelOperation();
                         return;
                     }
                     progress = (int) (100f * row / (nRows - 1));
-                    updateProgress("Loop " + j, progress);
+                    updateProgress("Reading data:", progress);
                 }
-                totalNumCellsCounted = true;
-
-                // Update the class centroids
-                for (a = 0; a < numClasses; a++) {
-                    if (numPixelsInEachClass[a] > 0) {
-                        double[] newClassCentre = new double[numImages];
-                        for (i = 0; i < numImages; i++) {
-                            newClassCentre[i] = classCentreData[a][i] / numPixelsInEachClass[a];
-                        }
-                        for (i = 0; i < numImages; i++) {
-                            classCentres[a][i] = newClassCentre[i];
-                        }
+                totalNumCells = clusterer.getNumValidPixels();
+            }
+            clusterer.setClassCentres(classCentres);
 
-                    }
+            j = 0;
+            Random sampler = new Random();
+            do {
+                j++;
+                // assign each pixel to a class and update the class centroids
+                if (miniBatchSize > 0) {
+                    percentChanged = clusterer.miniBatchIterate(miniBatchSize, sampler);
+                } else {
+                    numCellsChanged = clusterer.iterate();
+                    totalNumCells = clusterer.getNumValidPixels();
+                    percentChanged = (double)numCellsChanged / totalNumCells * 100;
                 }
-
-                percentChanged = (double)numCellsChanged / totalNumCells * 100;
+                if (cancelOp) {
+                    cancelOperation();
+                    return;
+                }
+                progress = (int) (100f * j / maxIterations);
+                updateProgress("Loop " + j, progress);
             } while ((percentChanged > percentChangedThreshold) && (j < maxIterations));
+            classCentres = clusterer.getClassCentres();
 
-            // prepare the report
-            double[] totalDeviations = new double[numClasses];
+            // output the classified image
             for (row = 0; row < nRows; row++) {
-                for (i = 0; i < numImages; i++) {
-                    data[i] = images[i].getRowValues(row);
-                }
+                double[] classes = clusterer.classifyRow(row, noData);
                 for (col = 0; col < nCols; col++) {
-                    if (data[0][col] != noData) {
-                        whichClass = (int)(output.getValue(row, col));
-                        dist = 0;
-                        for (i = 0; i < numImages; i++) {
-                            dist += (data[i][col] - classCentres[whichClass][i]) * (data[i][col] - classCentres[whichClass][i]);
-                        }
-                        totalDeviations[whichClass] += dist;
-                    }
+                    output.setValue(row, col, classes[col]);
                 }
                 if (cancelOp) {
                     cancelOperation();
@@ -354,6 +307,9 @@ public class kMeansClassification implements WhiteboxPlugin {
                 progress = (int) (100f * row / (nRows - 1));
                 updateProgress("Loop " + j, progress);
             }
+            numPixelsInEachClass = clusterer.getNumPixelsInEachClass();
+            double[] totalDeviations = clusterer.getClassDeviations();
+            totalNumCells = clusterer.getNumValidPixels();
             
             double[] standardDeviations = new double[numClasses];
             for (a = 0; a < numClasses; a++) {
@@ -430,6 +386,9 @@ public class kMeansClassification implements WhiteboxPlugin {
             myHost.showFeedback("An error has occurred during operation. See log file for details.");
             myHost.logException("Error in " + getDescriptiveName(), e);
         } finally {
+            if (clusterer != null) {
+                clusterer.close();
+            }
             updateProgress("Progress: ", 0);
             // tells the main application that this process is completed.
             amIActive = false;
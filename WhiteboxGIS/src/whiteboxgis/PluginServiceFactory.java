@@ -29,7 +29,7 @@ public class PluginServiceFactory {
     public static PluginService createPluginService(String pluginDirectory) {
         pluginDir = pluginDirectory;
         addPluginJarsToClasspath();
-        return StandardPluginService.getInstance();
+        return StandardPluginService.getInstance(pluginDir);
     }
 
     private static void addPluginJarsToClasspath() {
@@ -17,6 +17,7 @@
 package whiteboxgis;
 
 import whitebox.interfaces.WhiteboxPlugin;
+import java.io.File;
 import java.util.Iterator;
 import java.util.ServiceLoader;
 import java.util.ArrayList;
@@ -24,9 +25,12 @@ import java.util.ResourceBundle;
 import java.util.HashMap;
 import whitebox.interfaces.InteropPlugin;
 import whitebox.internationalization.WhiteboxInternationalizationTools;
+import whitebox.plugins.PluginRegistry;
 import whitebox.structures.InteroperableGeospatialDataFormat;
 
 /**
+ * Provides access to the installed plugins. Plugins are looked up in a
+ * PluginRegistry, so only the requested plugin is instantiated.
  *
  * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
  */
@@ -34,38 +38,53 @@ public class StandardPluginService implements PluginService {
 
     private static StandardPluginService pluginService;
     private ServiceLoader<WhiteboxPlugin> serviceLoader;
+    private PluginRegistry registry;
     private int numberOfPlugins = 0;
     private ResourceBundle pluginsBundle;
     public final static int SIMPLE_NAME = 0;
     public final static int DESCRIPTIVE_NAME = 1;
+    public final static String INDEX_FILE_NAME = "plugins.index";
     private HashMap<String, String> hm = new HashMap<>();
 
-    private StandardPluginService() {
+    private StandardPluginService(File indexFile) {
         pluginsBundle = WhiteboxInternationalizationTools.getPluginsBundle();
         //load all the classes in the classpath that have implemented the interface
         serviceLoader = ServiceLoader.load(WhiteboxPlugin.class);
+        registry = new PluginRegistry(Thread.currentThread().getContextClassLoader(), indexFile);
         createMap();
     }
 
     private void createMap() {
-        String plugName, plugDescriptiveName;
-
-        Iterator<WhiteboxPlugin> iterator = getPlugins();
-        while (iterator.hasNext()) {
-            WhiteboxPlugin plugin = iterator.next();
-            plugName = plugin.getName();
-            if (pluginsBundle.containsKey(plugName)) {
-                plugDescriptiveName = pluginsBundle.getString(plugName);
-            } else {
-                plugDescriptiveName = plugin.getDescriptiveName();
-            }
-            hm.put(plugDescriptiveName, plugName);
+        for (PluginRegistry.Entry entry : registry.getEntries()) {
+            hm.put(getDescriptiveName(entry), entry.getName());
+        }
+    }
+
+    private String getDescriptiveName(PluginRegistry.Entry entry) {
+        String plugName = entry.getName();
+        if (pluginsBundle.containsKey(plugName)) {
+            return pluginsBundle.getString(plugName);
+        } else {
+            return entry.getDescriptiveName();
         }
     }
 
     public static StandardPluginService getInstance() {
+        return getInstance(null);
+    }
+
+    /**
+     * @param pluginDirectory The directory containing the plugin jars, in
+     * which the plugin index is saved. If null, the index is not saved.
+     * @return the plugin service.
+     */
+    public static StandardPluginService getInstance(String pluginDirectory) {
         if (pluginService == null) {
-            pluginService = new StandardPluginService();
+            File indexFile = null;
+            if (pluginDirectory != null) {
+                indexFile = new File(pluginDirectory, INDEX_FILE_NAME);
+            }
+            pluginService = new StandardPluginService(indexFile);
         }
         return pluginService;
     }
@@ -77,56 +96,34 @@ public class StandardPluginService implements PluginService {
 
     @Override
     public void initPlugins() {
-        Iterator<WhiteboxPlugin> iterator = getPlugins();
-        if (!iterator.hasNext()) {
+        numberOfPlugins = registry.size();
+        if (numberOfPlugins == 0) {
             System.err.println("No plugins were found!");
         }
-        while (iterator.hasNext()) {
-            WhiteboxPlugin plugin = iterator.next();
-            //System.out.println("Initializing the plugin " + plugin.getName());
-            numberOfPlugins++;
-        }
     }
 
     @Override
     public WhiteboxPlugin getPlugin(String pluginName, int nameType) {
-        ServiceLoader<WhiteboxPlugin> myServiceLoader = ServiceLoader.load(WhiteboxPlugin.class);
-        Iterator<WhiteboxPlugin> iterator = myServiceLoader.iterator(); //getPlugins();
         if (nameType == DESCRIPTIVE_NAME) {
             if (hm.containsKey(pluginName)) {
                 pluginName = hm.get(pluginName);
-                while (iterator.hasNext()) {
-                    WhiteboxPlugin plugin = iterator.next();
-                    if (plugin.getName().equals(pluginName)) {
-                        return plugin;
-                    }
-                }
             } else {
-                while (iterator.hasNext()) {
-                    WhiteboxPlugin plugin = iterator.next();
-                    if (plugin.getDescriptiveName().equals(pluginName)) {
-                        return plugin;
-                    }
-                }
-            }
-        } else {
-            while (iterator.hasNext()) {
-                WhiteboxPlugin plugin = iterator.next();
-                if (plugin.getName().equals(pluginName)) {
-                    return plugin;
+                PluginRegistry.Entry entry = registry.getEntryByDescriptiveName(pluginName);
+                if (entry == null) {
+                    // no plugin by that name has been located. Return null.
+                    return null;
                 }
+                pluginName = entry.getName();
             }
         }
-
-        // no plugin by that name has been located. Return null.
-        return null;
+        return registry.createPlugin(pluginName);
     }
 
     @Override
     public int getNumberOfPlugins() {
         return numberOfPlugins;
     }
-    
+
     @Override
     public ArrayList<InteroperableGeospatialDataFormat> getInteroperableDataFormats() {
         ArrayList<InteroperableGeospatialDataFormat> interopPlugins = new ArrayList<>();
@@ -135,15 +132,13 @@ public class StandardPluginService implements PluginService {
         String[] extensions;
         boolean isRasterFormat;
         InteropPlugin.InteropPluginType pluginType;
-        Iterator<WhiteboxPlugin> iterator = getPlugins();
-        while (iterator.hasNext()) {
-            WhiteboxPlugin plugin = iterator.next();
-            if (plugin instanceof InteropPlugin) {
-                className = plugin.getName();
-                fileTypeName = ((InteropPlugin)(plugin)).getFileTypeName();
-                extensions = ((InteropPlugin)(plugin)).getExtensions();
-                isRasterFormat = ((InteropPlugin)(plugin)).isRasterFormat();
-                pluginType = ((InteropPlugin)(plugin)).getInteropPluginType();
+        for (PluginRegistry.Entry entry : registry.getEntries()) {
+            if (entry.isInteropPlugin()) {
+                className = entry.getName();
+                fileTypeName = entry.getFileTypeName();
+                extensions = entry.getExtensions();
+                isRasterFormat = entry.isRasterFormat();
+                pluginType = entry.getInteropPluginType();
                 interopPlugins.add(new InteroperableGeospatialDataFormat(fileTypeName, 
                         extensions, className, isRasterFormat, pluginType));
             }
@@ -151,7 +146,7 @@ public class StandardPluginService implements PluginService {
 
         return interopPlugins;
     }
-    
+
     @Override
     public ArrayList getPluginList() {
         ArrayList<PluginInfo> plugInfo = new ArrayList<>();
@@ -159,30 +154,21 @@ public class StandardPluginService implements PluginService {
         String plugDescriptiveName;
         String plugDescription;
         String[] toolboxes;
-        Iterator<WhiteboxPlugin> iterator = getPlugins();
-        while (iterator.hasNext()) {
-            WhiteboxPlugin plugin = iterator.next();
-            plugName = plugin.getName();
-            if (pluginsBundle.containsKey(plugName)) {
-                plugDescriptiveName = pluginsBundle.getString(plugName);
-            } else {
-                plugDescriptiveName = plugin.getDescriptiveName();
-            }
+        for (PluginRegistry.Entry entry : registry.getEntries()) {
+            plugName = entry.getName();
+            plugDescriptiveName = getDescriptiveName(entry);
             if (pluginsBundle.containsKey(plugName + "Description")) {
                 plugDescription = pluginsBundle.getString(plugName + "Description");
             } else {
-                plugDescription = plugin.getToolDescription();
+                plugDescription = entry.getToolDescription();
             }
-            
-            toolboxes = plugin.getToolbox();
-            
-            plugInfo.add(new PluginInfo(plugin.getName(), plugDescriptiveName,
+
+            toolboxes = entry.getToolbox();
+
+            plugInfo.add(new PluginInfo(plugName, plugDescriptiveName,
                     plugDescription, toolboxes, PluginInfo.SORT_MODE_USAGE));
-//            plugInfo.add(new PluginInfo(plugin.getName(), 
-//                    plugin.getDescriptiveName(), plugin.getToolDescription(),
-//                    PluginInfo.SORT_MODE_USAGE));
         }
 
         return plugInfo;
     }
-}
\ No newline at end of file
+}